@@ -71,8 +71,8 @@ public abstract class AbstractCollector extends ServerComponentBean implements
 	
 	private static final AtomicInteger serial = new AtomicInteger();
 	
-	/** The scheduler shared amongst all collector instances */
-	protected static final ScheduledThreadPoolExecutor scheduler = (ScheduledThreadPoolExecutor)Executors.newScheduledThreadPool(10, new ThreadFactory(){
+	/** The scheduler for restart attempts shared amongst all collector instances. Collections are scheduled on the {@link CollectorScheduler}. */
+	protected static final ScheduledThreadPoolExecutor scheduler = (ScheduledThreadPoolExecutor)Executors.newScheduledThreadPool(2, new ThreadFactory(){
 		
 		final ThreadGroup threadGroup = new ThreadGroup("CollectorsThreadGroup");
 		final ClassLoader context = AbstractCollector.class.getClassLoader();
@@ -92,9 +92,11 @@ public abstract class AbstractCollector extends ServerComponentBean implements
 	/** The tracer instance */
 	protected ITracer tracer = null;
 	/** The scheduler handle for this collector */
-	protected ScheduledFuture<?> scheduleHandle = null;
+	protected ScheduledCollection scheduleHandle = null;
 	/** The collection period in ms. */
 	protected long collectionPeriod = -1L;
+	/** The maximum number of this collector's collections queued or running at once. Collections scheduled beyond this are skipped. */
+	protected int maxConcurrentCollections = 1;
 	/** Indicates if details of a collector failures should be logged. */
 	protected boolean logErrors=false;
 	/** 
@@ -345,6 +347,37 @@ public abstract class AbstractCollector extends ServerComponentBean implements
 	public int getNumberOfActiveCollectors() {
 		return numberOfActiveCollectors.get();
 	}
+	@ManagedAttribute (description = "Offset (in ms) within the collection period at which this collector is scheduled")
+	public long getSchedulePhase() {
+		ScheduledCollection sc = scheduleHandle;
+		return sc==null ? -1L : sc.getPhase();
+	}
+	@ManagedAttribute (description = "Number of scheduled collects skipped because the previous collects were still queued or running")
+	public long getSkippedCollectionCount() {
+		ScheduledCollection sc = scheduleHandle;
+		return sc==null ? 0L : sc.getSkipped();
+	}
+	@ManagedAttribute (description = "Highest delay (in ms) of a collect past its scheduled time")
+	public long getMaxCollectionLateness() {
+		ScheduledCollection sc = scheduleHandle;
+		return sc==null ? 0L : sc.getMaxLateness();
+	}
+	@ManagedAttribute (description = "Average CPU time (in µs) of a collect")
+	public long getAverageCollectionCpuTime() {
+		ScheduledCollection sc = scheduleHandle;
+		return sc==null ? 0L : sc.getAverageCpu();
+	}
+	@ManagedAttribute (description = "Maximum number of collects queued or running at once")
+	public int getMaxConcurrentCollections() {
+		return maxConcurrentCollections;
+	}
+	/**
+	 * Sets the maximum number of collects queued or running at once. Applied when the collector is next scheduled.
+	 * @param maxConcurrentCollections the maximum number of concurrent collects
+	 */
+	public void setMaxConcurrentCollections(int maxConcurrentCollections) {
+		this.maxConcurrentCollections = maxConcurrentCollections;
+	}
 	@ManagedAttribute (description = "Number of consecutive errors produced by this collector so far")
 	public int getConsecutiveFailureCount() {
 		return consecutiveFailureCount;
@@ -810,15 +843,16 @@ public abstract class AbstractCollector extends ServerComponentBean implements
 	}	
 	
 	/**
-	 * Schedule this collector with fixed frequency  
+	 * Schedule this collector with fixed frequency on the shared {@link CollectorScheduler}, 
+	 * at a phase within the period determined by the bean name 
 	 */
 	public void scheduleCollect() {
 		long collectPeriod = getCollectionPeriod();
 		final UncaughtExceptionHandler ueh = this;
-		scheduleHandle = scheduler.scheduleAtFixedRate(new Runnable(){
+		scheduleHandle = CollectorScheduler.getInstance().schedule(this.getBeanName(), new Runnable(){
 			public void run() { Thread.currentThread().setUncaughtExceptionHandler(ueh); call(); }
-		}, 0,collectPeriod, TimeUnit.MILLISECONDS);
-		info("Started collection schedule with frequency of ["+ collectPeriod + "] ms. for collector [" + this.getBeanName() + "]");
+		}, collectPeriod, maxConcurrentCollections);
+		info("Started collection schedule with frequency of ["+ collectPeriod + "] ms. and phase of [" + scheduleHandle.getPhase() + "] ms. for collector [" + this.getBeanName() + "]");
 	}
 	
 	/**
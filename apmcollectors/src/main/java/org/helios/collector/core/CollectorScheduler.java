@@ -0,0 +1,357 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.collector.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.helios.apmrouter.jmx.ConfigurationHelper;
+
+/**
+ * <p>Title: CollectorScheduler</p>
+ * <p>Description: The scheduler shared by all collectors. A single dispatcher thread fires each collector's schedule and hands the collection to 
+ * a worker pool, so the dispatcher is never held up by a collection.</p>
+ * <p>Each collector is fired at a phase within its period derived from a hash of its name and aligned to the wall clock, 
+ * so collectors with the same period are spread across the period instead of all firing at once, and keep the same phase across restarts.
+ * A collector has at most <b><code>maxConcurrent</code></b> collections queued or running at once and ticks that find it at that bound are skipped,
+ * so an overrunning collector skips cycles instead of occupying the pool.</p>
+ * <p>The worker pool starts at <b><code>minThreads</code></b>. Every tuning period it grows if collections, including the oldest queued collection, 
+ * were later than the lateness threshold with collections still queued and the system load is below the number of processors, and shrinks back when the pool is mostly idle.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.collector.core.CollectorScheduler</code></p>
+ */
+
+public class CollectorScheduler {
+	/** The shared scheduler */
+	private static volatile CollectorScheduler instance = null;
+	/** The shared scheduler creation lock */
+	private static final Object lock = new Object();
+	
+	/** The system property name for the minimum number of worker threads */
+	public static final String MIN_THREADS_PROP = "org.helios.collector.scheduler.minthreads";
+	/** The default minimum number of worker threads */
+	public static final int DEFAULT_MIN_THREADS = 4;
+	/** The system property name for the maximum number of worker threads */
+	public static final String MAX_THREADS_PROP = "org.helios.collector.scheduler.maxthreads";
+	/** The default maximum number of worker threads */
+	public static final int DEFAULT_MAX_THREADS = 32;
+	/** The system property name for the collection lateness in ms. above which the worker pool grows */
+	public static final String LATENESS_PROP = "org.helios.collector.scheduler.lateness";
+	/** The default lateness threshold in ms. */
+	public static final long DEFAULT_LATENESS = 100L;
+	/** The system property name for the worker pool tuning period in ms. */
+	public static final String TUNE_PERIOD_PROP = "org.helios.collector.scheduler.tuneperiod";
+	/** The default tuning period in ms. */
+	public static final long DEFAULT_TUNE_PERIOD = 1000L;
+	
+	/** Instance logger */
+	protected final Logger log = Logger.getLogger(getClass());
+	/** The minimum number of worker threads */
+	protected final int minThreads;
+	/** The maximum number of worker threads */
+	protected final int maxThreads;
+	/** The lateness in ms. above which the worker pool grows */
+	protected final long latenessThreshold;
+	/** The dispatcher firing collector schedules */
+	protected final ScheduledThreadPoolExecutor dispatcher;
+	/** The worker pool running collections */
+	protected final ThreadPoolExecutor workers;
+	/** The scheduled collections */
+	protected final Set<ScheduledCollection> schedules = Collections.newSetFromMap(new ConcurrentHashMap<ScheduledCollection, Boolean>());
+	/** The highest collection lateness in ms. since the last tuning */
+	protected final AtomicLong windowLateness = new AtomicLong(0L);
+	/** The number of times the worker pool grew */
+	protected final AtomicLong poolGrowths = new AtomicLong(0L);
+	/** The number of times the worker pool shrank */
+	protected final AtomicLong poolShrinks = new AtomicLong(0L);
+	/** The OS MX bean for the system load */
+	protected final OperatingSystemMXBean osMXBean = ManagementFactory.getOperatingSystemMXBean();
+	
+	/**
+	 * Returns the scheduler shared by all collectors, creating it with the sizes in the system properties on first call
+	 * @return the shared scheduler
+	 */
+	public static CollectorScheduler getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new CollectorScheduler(
+							ConfigurationHelper.getIntSystemThenEnvProperty(MIN_THREADS_PROP, DEFAULT_MIN_THREADS),
+							ConfigurationHelper.getIntSystemThenEnvProperty(MAX_THREADS_PROP, DEFAULT_MAX_THREADS),
+							ConfigurationHelper.getLongSystemThenEnvProperty(LATENESS_PROP, DEFAULT_LATENESS),
+							ConfigurationHelper.getLongSystemThenEnvProperty(TUNE_PERIOD_PROP, DEFAULT_TUNE_PERIOD));
+				}
+			}
+		}
+		return instance;
+	}
+	
+	/**
+	 * Creates a new CollectorScheduler
+	 * @param minThreads The minimum number of worker threads
+	 * @param maxThreads The maximum number of worker threads
+	 * @param latenessThreshold The collection lateness in ms. above which the worker pool grows
+	 * @param tunePeriod The worker pool tuning period in ms.
+	 */
+	public CollectorScheduler(int minThreads, int maxThreads, long latenessThreshold, long tunePeriod) {
+		if(minThreads<1) throw new IllegalArgumentException("Invalid min threads [" + minThreads + "]", new Throwable());
+		if(maxThreads<minThreads) throw new IllegalArgumentException("Max threads [" + maxThreads + "] is less than min threads [" + minThreads + "]", new Throwable());
+		this.minThreads = minThreads;
+		this.maxThreads = maxThreads;
+		this.latenessThreshold = latenessThreshold;
+		dispatcher = new ScheduledThreadPoolExecutor(1, new CollectorThreadFactory("CollectorDispatcher#"));
+		workers = new ThreadPoolExecutor(minThreads, minThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new CollectorThreadFactory("CollectorsThread#"));
+		dispatcher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				tune();
+			}
+		}, tunePeriod, tunePeriod, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Schedules a collection
+	 * @param name The collector name, which determines the phase of the collections within the period
+	 * @param task The collection task
+	 * @param period The collection period in ms.
+	 * @param maxConcurrent The maximum number of collections queued or running at once
+	 * @return the schedule
+	 */
+	public ScheduledCollection schedule(String name, Runnable task, long period, int maxConcurrent) {
+		if(period<1) throw new IllegalArgumentException("Invalid period [" + period + "] for [" + name + "]", new Throwable());
+		if(maxConcurrent<1) throw new IllegalArgumentException("Invalid max concurrent [" + maxConcurrent + "] for [" + name + "]", new Throwable());
+		long phase = phase(name, period);
+		long now = System.currentTimeMillis();
+		long delay = ((phase - now%period) + period)%period;
+		ScheduledCollection sc = new ScheduledCollection(this, name, task, period, phase, maxConcurrent, now + delay);
+		schedules.add(sc);
+		sc.handle = dispatcher.scheduleAtFixedRate(sc, delay, period, TimeUnit.MILLISECONDS);
+		return sc;
+	}
+	
+	/**
+	 * Computes the phase of a collector's collections within its period from a hash of its name
+	 * @param name The collector name
+	 * @param period The collection period in ms.
+	 * @return the phase in ms.
+	 */
+	public static long phase(String name, long period) {
+		int h = name==null ? 0 : name.hashCode();
+		// murmur3 finalizer, so similar names land far apart
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return (h & 0x7fffffffL)%period;
+	}
+	
+	/**
+	 * Removes a cancelled schedule
+	 * @param sc The cancelled schedule
+	 */
+	void unschedule(ScheduledCollection sc) {
+		schedules.remove(sc);
+	}
+	
+	/**
+	 * Records the lateness of a collection for the next tuning
+	 * @param lateness The lateness in ms.
+	 */
+	void recordLateness(long lateness) {
+		max(windowLateness, lateness);
+	}
+	
+	/**
+	 * Grows the worker pool if collections were late with collections still queued and there is CPU headroom, 
+	 * or shrinks it if it is mostly idle
+	 */
+	protected void tune() {
+		long lateness = windowLateness.getAndSet(0L);
+		int size = workers.getCorePoolSize();
+		// when every worker is held up few collections complete, so the age of the oldest queued collection counts as lateness too
+		Runnable head = workers.getQueue().peek();
+		boolean backlog = head!=null;
+		if(head instanceof ScheduledCollection.Execution) {
+			lateness = Math.max(lateness, System.currentTimeMillis() - ((ScheduledCollection.Execution)head).nominal);
+		}
+		if(lateness > latenessThreshold && backlog && size < maxThreads && hasCpuHeadroom()) {
+			int newSize = Math.min(maxThreads, size + Math.max(1, size/4));
+			workers.setMaximumPoolSize(newSize);
+			workers.setCorePoolSize(newSize);
+			poolGrowths.incrementAndGet();
+			if(log.isDebugEnabled()) log.debug("Collections were [" + lateness + "] ms. late. Grew worker pool from [" + size + "] to [" + newSize + "]");
+		} else if(!backlog && lateness <= latenessThreshold/2 && size > minThreads && workers.getActiveCount() < size/2) {
+			int newSize = Math.max(minThreads, size - 1);
+			workers.setCorePoolSize(newSize);
+			workers.setMaximumPoolSize(newSize);
+			poolShrinks.incrementAndGet();
+			if(log.isDebugEnabled()) log.debug("Shrank worker pool from [" + size + "] to [" + newSize + "]");
+		}
+	}
+	
+	/**
+	 * Determines if adding worker threads could speed up collections, which is not the case if the CPUs are already saturated
+	 * @return true if the system load average is below the number of processors or not available
+	 */
+	protected boolean hasCpuHeadroom() {
+		double load = osMXBean.getSystemLoadAverage();
+		return load < 0 || load < osMXBean.getAvailableProcessors();
+	}
+	
+	/**
+	 * Stops the scheduler. Running collections are not interrupted.
+	 * The shared scheduler is replaced on the next call to {@link #getInstance()}.
+	 */
+	public void shutdown() {
+		synchronized(lock) {
+			if(instance==this) instance = null;
+		}
+		for(ScheduledCollection sc: new HashSet<ScheduledCollection>(schedules)) {
+			sc.cancel(false);
+		}
+		dispatcher.shutdownNow();
+		workers.shutdown();
+	}
+	
+	/**
+	 * Sets the passed atomic to the passed value if it is higher
+	 * @param max The atomic max
+	 * @param value The value
+	 */
+	static void max(AtomicLong max, long value) {
+		long current;
+		while(value > (current = max.get())) {
+			if(max.compareAndSet(current, value)) return;
+		}
+	}
+	
+	/**
+	 * Returns the scheduled collections
+	 * @return the scheduled collections
+	 */
+	public Set<ScheduledCollection> getSchedules() {
+		return Collections.unmodifiableSet(schedules);
+	}
+	
+	/**
+	 * Returns the current number of worker threads the pool is sized to
+	 * @return the worker pool size
+	 */
+	public int getPoolSize() {
+		return workers.getCorePoolSize();
+	}
+	
+	/**
+	 * Returns the number of worker threads running a collection
+	 * @return the number of active worker threads
+	 */
+	public int getActiveCount() {
+		return workers.getActiveCount();
+	}
+	
+	/**
+	 * Returns the number of collections waiting for a worker thread
+	 * @return the number of queued collections
+	 */
+	public int getQueueDepth() {
+		return workers.getQueue().size();
+	}
+	
+	/**
+	 * Returns the number of times the worker pool grew
+	 * @return the number of pool growths
+	 */
+	public long getPoolGrowths() {
+		return poolGrowths.get();
+	}
+	
+	/**
+	 * Returns the number of times the worker pool shrank
+	 * @return the number of pool shrinks
+	 */
+	public long getPoolShrinks() {
+		return poolShrinks.get();
+	}
+	
+	/**
+	 * Returns the total number of collections skipped because their collector was at its concurrency bound
+	 * @return the number of skipped collections of current schedules
+	 */
+	public long getSkippedCollections() {
+		long total = 0;
+		for(ScheduledCollection sc: schedules) {
+			total += sc.getSkipped();
+		}
+		return total;
+	}
+	
+	/**
+	 * <p>Title: CollectorThreadFactory</p>
+	 * <p>Description: Creates named daemon threads in the collectors thread group</p> 
+	 */
+	protected static class CollectorThreadFactory implements ThreadFactory {
+		/** The collectors thread group */
+		static final ThreadGroup threadGroup = new ThreadGroup("CollectorsThreadGroup");
+		/** The thread name prefix */
+		final String prefix;
+		/** The thread serial number */
+		final AtomicInteger serial = new AtomicInteger(0);
+		/** The context class loader of created threads */
+		final ClassLoader context = CollectorScheduler.class.getClassLoader();
+		
+		/**
+		 * Creates a new CollectorThreadFactory
+		 * @param prefix The thread name prefix
+		 */
+		CollectorThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+		 */
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(threadGroup, r, prefix + serial.incrementAndGet());
+			t.setDaemon(true);
+			t.setContextClassLoader(context);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,317 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.collector.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Title: ScheduledCollection</p>
+ * <p>Description: The schedule of one collector on the {@link CollectorScheduler}. Each tick of the schedule hands the collection to the scheduler's
+ * worker pool unless the collector already has <b><code>maxConcurrent</code></b> collections queued or running, in which case the tick is skipped.
+ * The elapsed and CPU time of each collection and its lateness against the nominal fire time are tracked.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.collector.core.ScheduledCollection</code></p>
+ */
+
+public class ScheduledCollection implements Runnable {
+	/** Thread MX bean for collection CPU time */
+	protected static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+	/** Indicates if thread CPU time can be measured */
+	protected static final boolean cpuTimeEnabled = threadMXBean.isCurrentThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled();
+	
+	/** The scheduler this collection is scheduled on */
+	protected final CollectorScheduler scheduler;
+	/** The collector name */
+	protected final String name;
+	/** The collection task */
+	protected final Runnable task;
+	/** The collection period in ms. */
+	protected final long period;
+	/** The phase of the first collection within the period in ms. */
+	protected final long phase;
+	/** The maximum number of collections queued or running at once */
+	protected final int maxConcurrent;
+	/** The time of the first tick */
+	protected final long firstFireTime;
+	/** The dispatcher handle */
+	protected volatile ScheduledFuture<?> handle = null;
+	/** Indicates if this schedule was cancelled */
+	protected volatile boolean cancelled = false;
+	
+	/** The number of collections queued or running */
+	protected final AtomicInteger inFlight = new AtomicInteger(0);
+	/** The number of ticks */
+	protected final AtomicLong ticks = new AtomicLong(0L);
+	/** The number of collections run */
+	protected final AtomicLong executions = new AtomicLong(0L);
+	/** The number of ticks skipped because the collector was at its concurrency bound */
+	protected final AtomicLong skipped = new AtomicLong(0L);
+	/** The total elapsed time of all collections in ns. */
+	protected final AtomicLong totalElapsed = new AtomicLong(0L);
+	/** The total CPU time of all collections in ns. */
+	protected final AtomicLong totalCpu = new AtomicLong(0L);
+	/** The total lateness of all collections in ms. */
+	protected final AtomicLong totalLateness = new AtomicLong(0L);
+	/** The highest lateness of any collection in ms. */
+	protected final AtomicLong maxLateness = new AtomicLong(0L);
+	/** The elapsed time of the last collection in ns. */
+	protected volatile long lastElapsed = 0L;
+	
+	/**
+	 * Creates a new ScheduledCollection
+	 * @param scheduler The scheduler this collection is scheduled on
+	 * @param name The collector name
+	 * @param task The collection task
+	 * @param period The collection period in ms.
+	 * @param phase The phase of the first collection within the period in ms.
+	 * @param maxConcurrent The maximum number of collections queued or running at once
+	 * @param firstFireTime The time of the first tick
+	 */
+	ScheduledCollection(CollectorScheduler scheduler, String name, Runnable task, long period, long phase, int maxConcurrent, long firstFireTime) {
+		this.scheduler = scheduler;
+		this.name = name;
+		this.task = task;
+		this.period = period;
+		this.phase = phase;
+		this.maxConcurrent = maxConcurrent;
+		this.firstFireTime = firstFireTime;
+	}
+	
+	/**
+	 * The dispatcher tick. Hands a collection to the worker pool unless the collector is at its concurrency bound.
+	 * {@inheritDoc}
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		final long nominal = firstFireTime + ticks.getAndIncrement()*period;
+		if(cancelled) return;
+		if(inFlight.incrementAndGet() > maxConcurrent) {
+			inFlight.decrementAndGet();
+			skipped.incrementAndGet();
+			return;
+		}
+		try {
+			scheduler.workers.execute(new Execution(nominal));
+		} catch (RejectedExecutionException re) {
+			inFlight.decrementAndGet();
+			skipped.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Runs one collection on a worker thread
+	 * @param nominal The nominal fire time of the collection
+	 */
+	protected void execute(long nominal) {
+		long lateness = System.currentTimeMillis() - nominal;
+		long startCpu = cpuTimeEnabled ? threadMXBean.getCurrentThreadCpuTime() : 0L;
+		long start = System.nanoTime();
+		try {
+			if(!cancelled) {
+				task.run();
+			}
+		} catch (Throwable t) {
+			Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), t);
+		} finally {
+			lastElapsed = System.nanoTime() - start;
+			totalElapsed.addAndGet(lastElapsed);
+			if(cpuTimeEnabled) totalCpu.addAndGet(threadMXBean.getCurrentThreadCpuTime() - startCpu);
+			totalLateness.addAndGet(lateness);
+			CollectorScheduler.max(maxLateness, lateness);
+			executions.incrementAndGet();
+			inFlight.decrementAndGet();
+			scheduler.recordLateness(lateness);
+		}
+	}
+	
+	/**
+	 * <p>Title: Execution</p>
+	 * <p>Description: A collection handed to the worker pool, carrying its nominal fire time so the scheduler can see how long it has been queued</p> 
+	 */
+	class Execution implements Runnable {
+		/** The nominal fire time of the collection */
+		final long nominal;
+		
+		/**
+		 * Creates a new Execution
+		 * @param nominal The nominal fire time of the collection
+		 */
+		Execution(long nominal) {
+			this.nominal = nominal;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			execute(nominal);
+		}
+	}
+	
+	/**
+	 * Cancels this schedule. A running collection is not interrupted.
+	 * @param mayInterruptIfRunning ignored, collections are never interrupted
+	 * @return false if this schedule was already cancelled
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if(cancelled) return false;
+		cancelled = true;
+		ScheduledFuture<?> h = handle;
+		if(h!=null) h.cancel(false);
+		scheduler.unschedule(this);
+		return true;
+	}
+	
+	/**
+	 * Indicates if this schedule was cancelled
+	 * @return true if this schedule was cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	/**
+	 * Returns the collector name
+	 * @return the collector name
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Returns the collection period
+	 * @return the collection period in ms.
+	 */
+	public long getPeriod() {
+		return period;
+	}
+	
+	/**
+	 * Returns the phase of the collections within the period
+	 * @return the phase in ms.
+	 */
+	public long getPhase() {
+		return phase;
+	}
+	
+	/**
+	 * Returns the maximum number of collections queued or running at once
+	 * @return the concurrency bound
+	 */
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+	
+	/**
+	 * Returns the number of collections queued or running
+	 * @return the number of collections in flight
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+	
+	/**
+	 * Returns the number of collections run
+	 * @return the number of collections run
+	 */
+	public long getExecutions() {
+		return executions.get();
+	}
+	
+	/**
+	 * Returns the number of ticks skipped because the collector was still at its concurrency bound
+	 * @return the number of skipped collections
+	 */
+	public long getSkipped() {
+		return skipped.get();
+	}
+	
+	/**
+	 * Returns the average elapsed time of a collection
+	 * @return the average elapsed time in ms.
+	 */
+	public long getAverageElapsed() {
+		long n = executions.get();
+		return n==0 ? 0L : TimeUnit.MILLISECONDS.convert(totalElapsed.get()/n, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Returns the elapsed time of the last collection
+	 * @return the last elapsed time in ms.
+	 */
+	public long getLastElapsed() {
+		return TimeUnit.MILLISECONDS.convert(lastElapsed, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Returns the average CPU time of a collection
+	 * @return the average CPU time in µs, or -1 if thread CPU time is not available
+	 */
+	public long getAverageCpu() {
+		if(!cpuTimeEnabled) return -1L;
+		long n = executions.get();
+		return n==0 ? 0L : TimeUnit.MICROSECONDS.convert(totalCpu.get()/n, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Returns the average lateness of a collection against its nominal fire time
+	 * @return the average lateness in ms.
+	 */
+	public long getAverageLateness() {
+		long n = executions.get();
+		return n==0 ? 0L : totalLateness.get()/n;
+	}
+	
+	/**
+	 * Returns the highest lateness of any collection against its nominal fire time
+	 * @return the highest lateness in ms.
+	 */
+	public long getMaxLateness() {
+		return maxLateness.get();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return new StringBuilder("ScheduledCollection [").append(name)
+			.append(", period:").append(period).append(", phase:").append(phase)
+			.append(", executions:").append(executions.get()).append(", skipped:").append(skipped.get())
+			.append(", avgElapsed:").append(getAverageElapsed()).append(", maxLateness:").append(maxLateness.get())
+			.append("]").toString();
+	}
+}
@@ -30,6 +30,7 @@ import org.helios.collector.core.AbstractCollector;
 import org.helios.collector.core.CollectionResult;
 import org.helios.collector.core.CollectorException;
 import org.helios.collector.jdbc.connection.IJDBCConnectionFactory;
+import org.helios.collector.jdbc.connection.PooledJDBCConnectionFactory;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
@@ -40,13 +41,25 @@ import java.sql.DatabaseMetaData;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <p>Title: JDBCCollector</p>
- * <p>Description: Helios collector for JDBC sources.</p> 
+ * <p>Description: Helios collector for JDBC sources. When the parallelism is greater than one, the SQL mappings are executed concurrently 
+ * on the collector's own thread pool, each with its own connection and bounded by its operation timeout, so a collection takes about as long as 
+ * the slowest mapping. Use a {@link PooledJDBCConnectionFactory} sized to the parallelism so connections and prepared statements are re-used.</p> 
  * <p>Company: Helios Development Group</p>
  * @author Whitehead (whitehead.nicholas@gmail.com)
  * @version $LastChangedRevision$
@@ -61,6 +74,17 @@ public class JDBCCollector extends AbstractCollector implements ApplicationConte
 	protected long operationTimeout = 5000;
 	protected Map<String, SQLMapping> sqlMaps = new ConcurrentHashMap<String, SQLMapping>();
 	protected ApplicationContext appContext = null;
+	/** The maximum number of SQL mappings executed concurrently. 1 executes them sequentially on one connection. */
+	protected int parallelism = DEFAULT_PARALLELISM;
+	/** The thread pool the SQL mappings are executed on */
+	protected ExecutorService mappingExecutor = null;
+	/** The connection meta-data, read once from the first connection */
+	protected volatile Map<String, Object> connMetaData = null;
+	
+	/** The default maximum number of SQL mappings executed concurrently */
+	public static final int DEFAULT_PARALLELISM = 4;
+	/** The serial number factory for mapping executor thread names */
+	private static final AtomicInteger serial = new AtomicInteger();
 	
 	
 	/**
@@ -76,6 +100,29 @@ public class JDBCCollector extends AbstractCollector implements ApplicationConte
 	 */
 	public void startCollector() throws CollectorException {
 		log = Logger.getLogger(getClass().getName() + "." + this.beanName);
+		if(parallelism > 1 && mappingExecutor==null) {
+			final String name = "JDBCCollector-" + this.beanName + "#";
+			mappingExecutor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name + serial.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Shuts down the mapping thread pool
+	 * @see org.helios.collector.core.AbstractCollector#stopCollector()
+	 */
+	@Override
+	public void stopCollector() {
+		if(mappingExecutor!=null) {
+			mappingExecutor.shutdownNow();
+			mappingExecutor = null;
+		}
 	}
 	
 	/**
@@ -109,6 +156,9 @@ public class JDBCCollector extends AbstractCollector implements ApplicationConte
 	 */
 	@Override
 	public CollectionResult collectCallback() {
+		if(mappingExecutor!=null) {
+			return parallelCollect();
+		}
 		Connection conn = null;
 		CollectionResult result = new CollectionResult();		
 		try {
@@ -120,6 +170,7 @@ public class JDBCCollector extends AbstractCollector implements ApplicationConte
 			long elapsed = System.currentTimeMillis()-start;			
 			debug("Connected in [" + elapsed + "] ms.");
 			Map<String, Object> connMetaData = getConnMetaData(conn);
+			this.connMetaData = connMetaData;
 			for(SQLMapping sqlMap: sqlMaps.values()) {
 				if(!sqlMap.isPre()) {
 					sqlMap.setConnMetaData(connMetaData);
@@ -138,6 +189,93 @@ public class JDBCCollector extends AbstractCollector implements ApplicationConte
 		return result;
 	}
 
+	/**
+	 * Executes the SQL mappings concurrently, each on its own connection. Waits for each mapping until its operation timeout 
+	 * (or the collector's if the mapping has none) has elapsed since the collection started, cancelling the mapping's statement if it has not completed. 
+	 * @return the collection result which is partial if some, but not all, of the mappings failed or timed out
+	 */
+	protected CollectionResult parallelCollect() {
+		CollectionResult result = new CollectionResult();
+		long start = System.currentTimeMillis();
+		Map<SQLMapping, Future<Boolean>> futures = new LinkedHashMap<SQLMapping, Future<Boolean>>(sqlMaps.size());
+		for(final SQLMapping sqlMap: sqlMaps.values()) {
+			if(sqlMap.isPre()) continue;
+			if(sqlMap.isExecuting()) {
+				if(logErrors) {
+					error("SQLMapping [" + sqlMap.getName() + "] is still executing from a prior collection");
+				}
+				futures.put(sqlMap, null);
+				continue;
+			}
+			futures.put(sqlMap, mappingExecutor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return executeMapping(sqlMap);
+				}
+			}));
+		}
+		int failed = 0;
+		for(Map.Entry<SQLMapping, Future<Boolean>> entry: futures.entrySet()) {
+			SQLMapping sqlMap = entry.getKey();
+			Future<Boolean> future = entry.getValue();
+			if(future==null) {
+				failed++;
+				continue;
+			}
+			long timeout = sqlMap.getOperationTimeOut() > 0 ? sqlMap.getOperationTimeOut() : operationTimeout;
+			long wait = timeout - (System.currentTimeMillis()-start);
+			try {
+				if(!future.get(wait < 1 ? 1 : wait, TimeUnit.MILLISECONDS)) failed++;
+			} catch (TimeoutException te) {
+				failed++;
+				sqlMap.cancel();
+				future.cancel(true);
+				if(logErrors) {
+					error("SQLMapping [" + sqlMap.getName() + "] timed out after [" + timeout + "] ms.");
+				}
+			} catch (InterruptedException ie) {
+				Thread.interrupted();
+				failed++;
+				break;
+			} catch (ExecutionException ee) {
+				failed++;
+				if(logErrors) {
+					error("SQLMapping [" + sqlMap.getName() + "] failed", ee.getCause());
+				}
+			}
+		}
+		if(failed==0) {
+			result.setResultForLastCollection(CollectionResult.Result.SUCCESSFUL);
+		} else if(failed < futures.size()) {
+			result.setResultForLastCollection(CollectionResult.Result.PARTIAL);
+		} else {
+			result.setResultForLastCollection(CollectionResult.Result.FAILURE);
+		}
+		return result;
+	}
+	
+	/**
+	 * Acquires a connection and executes the passed SQL mapping
+	 * @param sqlMap The SQL mapping to execute
+	 * @return true if the mapping executed successfully
+	 * @throws Exception thrown if a connection could not be acquired
+	 */
+	protected boolean executeMapping(SQLMapping sqlMap) throws Exception {
+		Connection conn = null;
+		try {
+			conn = connectionFactory.getJDBCConnection(connectionTimeout);
+			Map<String, Object> metaData = connMetaData;
+			if(metaData==null) {
+				metaData = getConnMetaData(conn);
+				connMetaData = metaData;
+			}
+			sqlMap.setConnMetaData(metaData);
+			return sqlMap.execute(conn);
+		} finally {
+			try { if(conn!=null) conn.close(); } catch (Exception e) {}
+		}
+	}
+
 	/**
 	 * Extracts key values from the DB Connection meta data to pass to mappers.
 	 * @param conn The connection to get the meta-data from.
@@ -201,6 +339,23 @@ public class JDBCCollector extends AbstractCollector implements ApplicationConte
 		this.operationTimeout = operationTimeout;
 	}
 
+	/**
+	 * Returns the maximum number of SQL mappings executed concurrently
+	 * @return the maximum number of SQL mappings executed concurrently
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Sets the maximum number of SQL mappings executed concurrently. 1 executes them sequentially on one connection.
+	 * Takes effect when the collector is next started.
+	 * @param parallelism the maximum number of SQL mappings executed concurrently
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
 	/**
 	 * @param connectionFactory the connectionFactory to set
 	 */
@@ -32,6 +32,7 @@ import org.helios.collector.jdbc.binding.provider.BindVariableProviderFactory;
 import org.helios.collector.jdbc.binding.provider.IBindVariableProvider;
 import org.helios.collector.jdbc.binding.provider.ProviderNotFoundException;
 import org.helios.collector.jdbc.binding.provider.ProviderToken;
+import org.helios.collector.jdbc.connection.IPooledConnection;
 import org.helios.collector.jdbc.extract.ProcessedResultSet;
 import org.helios.collector.jdbc.mapping.InvalidMetricMappingException;
 import org.helios.collector.jdbc.mapping.MetricMap;
@@ -44,6 +45,7 @@ import org.w3c.dom.Node;
 import javax.management.MBeanServer;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 
@@ -88,6 +90,12 @@ public class SQLMapping implements ApplicationContextAware, BeanNameAware {
 	protected boolean pre = false;
 	/** An array of sqlmap names of sqlmaps that are pres for this map */
 	protected String[] pres = null;
+	/** The processed result set recycled across executions */
+	protected ProcessedResultSet results = null;
+	/** The statement currently executing, so it can be cancelled on timeout */
+	protected final AtomicReference<Statement> executing = new AtomicReference<Statement>(null);
+	/** Indicates this mapping is executing */
+	protected final AtomicBoolean running = new AtomicBoolean(false);
 	/** Class logger */
 	protected static Logger LOG = Logger.getLogger(SQLMapping.class);
 	
@@ -123,13 +131,22 @@ public class SQLMapping implements ApplicationContextAware, BeanNameAware {
 	}
 	
 	/**
-	 * @param conn
+	 * Executes this mapping's query and traces the mapped metrics.
+	 * When the connection is an {@link IPooledConnection}, the prepared statement is cached against the connection and re-used on the next execution.
+	 * The query timeout is set from the operation timeout. 
+	 * @param conn The connection to execute against
+	 * @return true if the mapping executed successfully, false if it failed or was already executing on another thread
 	 * @throws SQLException
 	 */
-	public void execute(Connection conn) throws SQLException {
+	public boolean execute(Connection conn) throws SQLException {
+		if(!running.compareAndSet(false, true)) {
+			if(LOG.isEnabledFor(Level.WARN)) LOG.warn("SQLMap [" + mappingName + "] is still executing. Skipping execution.");
+			return false;
+		}
 		PreparedStatement ps = null;
 		Statement st = null;
 		ResultSet rset = null;
+		boolean cachedPs = false;
 		long start = System.currentTimeMillis(), elapsed = 0;
 		try {
 			if(bindVarsSupported) {
@@ -139,7 +156,19 @@ public class SQLMapping implements ApplicationContextAware, BeanNameAware {
 						rSql = bind.getValue().bind(rSql, bind.getKey()).toString();				
 				}
 				if(LOG.isDebugEnabled()) LOG.debug("Prepared SQL:[" + rSql + "]");
-				ps = conn.prepareStatement(rSql);
+				if(conn instanceof IPooledConnection) {
+					Map<String, PreparedStatement> statementCache = ((IPooledConnection)conn).getStatementCache();
+					ps = statementCache.get(rSql);
+					if(ps==null) {
+						ps = conn.prepareStatement(rSql);
+						statementCache.put(rSql, ps);
+					}
+					cachedPs = true;
+				} else {
+					ps = conn.prepareStatement(rSql);
+				}
+				setQueryTimeout(ps);
+				executing.set(ps);
 				for(Map.Entry<Integer, IBindVariableProvider> bind: binds.entrySet()) {
 					bind.getValue().bind(ps, bind.getKey());
 				}
@@ -152,11 +181,18 @@ public class SQLMapping implements ApplicationContextAware, BeanNameAware {
 				}				
 				if(LOG.isDebugEnabled()) LOG.debug("Prepared SQL:[" + boundSql + "]");
 				st = conn.createStatement();
+				setQueryTimeout(st);
+				executing.set(st);
 				if(LOG.isDebugEnabled()) LOG.debug("Executing Statement");
 				rset = st.executeQuery(boundSql.toString());
 			}
-			ProcessedResultSet prs  = new ProcessedResultSet(rset);
-			prs.setQueryName(mappingName);
+			if(results==null) {
+				results = new ProcessedResultSet(rset);
+				results.setQueryName(mappingName);
+			} else {
+				results.reload(rset);
+			}
+			ProcessedResultSet prs = results;
 			//if(LOG.isDebugEnabled()) LOG.debug("Retrieved [" + prs.getRowCount() + "] rows.");
 			try { rset.close(); } catch (Exception e) {}
 			elapsed = System.currentTimeMillis()-start;
@@ -192,15 +228,59 @@ public class SQLMapping implements ApplicationContextAware, BeanNameAware {
 			elapsed = System.currentTimeMillis()-start;
 			//- tracer.traceSticky(elapsed, "Collection Time (ms)", "Helios", "Collectors", "Database", mappingName);
 			tracer.traceGauge(elapsed, "ElapsedTime",  "Collectors", getClass().getSimpleName(),mappingName);
+			return true;
 		} catch (Exception e) {
 			if(LOG.isEnabledFor(Level.ERROR)) LOG.error("SQLMap Execution Error:\n\tSQL:" + sql, e);
+			if(cachedPs) {
+				// the statement may have been left in a bad state so drop it from the cache
+				((IPooledConnection)conn).getStatementCache().values().remove(ps);
+				cachedPs = false;
+			}
+			return false;
 		} finally {
+			executing.set(null);
+			running.set(false);
 			try { if(rset!=null) rset.close(); } catch (Exception e) {}
 			try { if(st!=null) st.close(); } catch (Exception e) {}
-			try { if(ps!=null) ps.close(); } catch (Exception e) {}
+			try { if(ps!=null && !cachedPs) ps.close(); } catch (Exception e) {}
+		}
+	}
+	
+	/**
+	 * Sets the query timeout on the passed statement from the operation timeout, rounding up to the nearest second
+	 * @param st The statement to set the timeout on
+	 * @throws SQLException
+	 */
+	protected void setQueryTimeout(Statement st) throws SQLException {
+		if(operationTimeOut > 0) {
+			st.setQueryTimeout((int)((operationTimeOut + 999) / 1000));
+		}
+	}
+	
+	/**
+	 * Cancels the currently executing statement, if there is one. Called by the collector when this mapping exceeds its operation timeout.
+	 * @return true if a statement was cancelled
+	 */
+	public boolean cancel() {
+		Statement st = executing.get();
+		if(st==null) return false;
+		try {
+			st.cancel();
+			return true;
+		} catch (Exception e) {
+			if(LOG.isDebugEnabled()) LOG.debug("Failed to cancel SQLMap [" + mappingName + "]", e);
+			return false;
 		}
 	}
 	
+	/**
+	 * Indicates if this mapping is executing
+	 * @return true if this mapping is executing
+	 */
+	public boolean isExecuting() {
+		return running.get();
+	}
+	
 	
 	/**
 	 * Processes tokens in the configured sql statement.
@@ -0,0 +1,52 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.collector.jdbc.connection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.Map;
+
+/**
+ * <p>Title: IPooledConnection</p>
+ * <p>Description: Implemented by the pooled connections handed out by a {@link PooledJDBCConnectionFactory}. A pooled connection keeps
+ * the prepared statements compiled against it so they can be re-executed by the SQLMapping that compiled them on the next collection.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.collector.jdbc.connection.IPooledConnection</code></p>
+ */
+public interface IPooledConnection {
+	/**
+	 * Returns the prepared statements cached against this connection keyed by their SQL.
+	 * The cache is only accessed by the thread that has borrowed the connection and the statements are closed when the physical connection is closed. 
+	 * @return the prepared statement cache
+	 */
+	public Map<String, PreparedStatement> getStatementCache();
+	
+	/**
+	 * Returns the underlying physical connection
+	 * @return the underlying physical connection
+	 */
+	public Connection getPhysicalConnection();
+}
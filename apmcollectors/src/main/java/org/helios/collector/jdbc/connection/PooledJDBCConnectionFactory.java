@@ -0,0 +1,342 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.collector.jdbc.connection;
+
+import org.apache.commons.pool.PoolableObjectFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.helios.collector.jdbc.SQLMapping;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>Title: PooledJDBCConnectionFactory</p>
+ * <p>Description: A JDBC Connection Factory that keeps a pool of physical connections acquired from a data source. 
+ * Closing a connection handed out by this factory returns it to the pool, and the prepared statements cached against it 
+ * (see {@link IPooledConnection}) stay open until the physical connection is evicted or the pool is closed.
+ * The maximum number of active connections should be at least the parallelism of the collectors sharing the pool.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.collector.jdbc.connection.PooledJDBCConnectionFactory</code></p>
+ */
+@ManagedResource
+public class PooledJDBCConnectionFactory implements IJDBCConnectionFactory, PoolableObjectFactory {
+	/** A reference to the datasource */
+	protected DataSource dataSource = null;
+	/** The connection pool */
+	protected final GenericObjectPool objectPool;
+	
+	/** The default maximum number of active connections */
+	public static final int DEFAULT_MAX_ACTIVE = 8;
+	/** The interfaces implemented by pooled connection proxies */
+	private static final Class<?>[] PROXY_INTERFACES = new Class[]{Connection.class, IPooledConnection.class};
+	
+	/**
+	 * Simple Constructor for PooledJDBCConnectionFactory
+	 */
+	public PooledJDBCConnectionFactory() {
+		objectPool = new GenericObjectPool(this);
+		objectPool.setMaxActive(DEFAULT_MAX_ACTIVE);
+		objectPool.setMaxIdle(DEFAULT_MAX_ACTIVE);
+		objectPool.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_BLOCK);
+		objectPool.setTestOnBorrow(true);
+	}
+	
+	/**
+	 * Parameterized Constructor for PooledJDBCConnectionFactory
+	 * @param dataSource The injected data source.
+	 */
+	public PooledJDBCConnectionFactory(DataSource dataSource) {
+		this();
+		this.dataSource = dataSource;
+	}
+
+	/**
+	 * Sets the data source to be used by this factory.
+	 * @param dataSource the dataSource to set
+	 */
+	@Override
+	public void setDataSource(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	/**
+	 * Borrows a JDBC Connection from the pool, waiting for as long as the pool's max wait if the pool is exhausted
+	 * @return A JDBC Connection
+	 * @throws JDBCConnectionFactoryException
+	 * @see org.helios.collector.jdbc.connection.IJDBCConnectionFactory#getJDBCConnection()
+	 */
+	@Override
+	public Connection getJDBCConnection() throws JDBCConnectionFactoryException {
+		try {
+			return (Connection)objectPool.borrowObject();
+		} catch (NoSuchElementException nse) {
+			throw new JDBCConnectionFactoryException("Connection pool exhausted", nse);
+		} catch (Exception e) {
+			throw new JDBCConnectionFactoryException("Failed to acquire connection", e);
+		}
+	}
+
+	/**
+	 * Borrows a JDBC Connection from the pool, waiting for no more than the passed timeout if the pool is exhausted.
+	 * @param timeout The timeout in ms.
+	 * @return A JDBC Connection
+	 * @throws JDBCConnectionFactoryException
+	 * @see org.helios.collector.jdbc.connection.IJDBCConnectionFactory#getJDBCConnection(long)
+	 */
+	@Override
+	public Connection getJDBCConnection(long timeout) throws JDBCConnectionFactoryException {
+		if(timeout > 0 && (objectPool.getMaxWait() < 0 || objectPool.getMaxWait() > timeout)) {
+			objectPool.setMaxWait(timeout);
+		}
+		return getJDBCConnection();
+	}
+
+	/**
+	 * @param timeout
+	 * @param sqlmap
+	 * @return
+	 * @throws JDBCConnectionFactoryException
+	 * @see org.helios.collector.jdbc.connection.IJDBCConnectionFactory#getJDBCConnection(long, org.helios.collector.jdbc.SQLMapping)
+	 */
+	@Override
+	public Connection getJDBCConnection(long timeout, SQLMapping sqlmap) throws JDBCConnectionFactoryException {
+		return getJDBCConnection(timeout);
+	}
+	
+	/**
+	 * Creates a new pooled connection proxy around a new physical connection
+	 * @return a pooled connection proxy
+	 * @throws Exception thrown if the physical connection cannot be acquired
+	 * @see org.apache.commons.pool.PoolableObjectFactory#makeObject()
+	 */
+	@Override
+	public Object makeObject() throws Exception {
+		if(dataSource==null) throw new IllegalStateException("No data source has been set", new Throwable());
+		Connection physical = dataSource.getConnection();
+		return Proxy.newProxyInstance(getClass().getClassLoader(), PROXY_INTERFACES, new PooledConnectionHandler(physical));
+	}
+
+	/**
+	 * Closes the cached statements and the physical connection
+	 * @param obj The pooled connection proxy
+	 * @see org.apache.commons.pool.PoolableObjectFactory#destroyObject(java.lang.Object)
+	 */
+	@Override
+	public void destroyObject(Object obj) {
+		PooledConnectionHandler handler = (PooledConnectionHandler)Proxy.getInvocationHandler(obj);
+		for(PreparedStatement ps: handler.statements.values()) {
+			try { ps.close(); } catch (Exception e) {}
+		}
+		handler.statements.clear();
+		try { handler.physical.close(); } catch (Exception e) {}
+	}
+
+	/**
+	 * Checks that the physical connection is still open
+	 * @param obj The pooled connection proxy
+	 * @return true if the physical connection is open
+	 * @see org.apache.commons.pool.PoolableObjectFactory#validateObject(java.lang.Object)
+	 */
+	@Override
+	public boolean validateObject(Object obj) {
+		try {
+			return !((PooledConnectionHandler)Proxy.getInvocationHandler(obj)).physical.isClosed();
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Marks the pooled connection as open when it is borrowed
+	 * @param obj The pooled connection proxy
+	 * @see org.apache.commons.pool.PoolableObjectFactory#activateObject(java.lang.Object)
+	 */
+	@Override
+	public void activateObject(Object obj) {
+		((PooledConnectionHandler)Proxy.getInvocationHandler(obj)).closed = false;
+	}
+
+	/**
+	 * Rolls back any open transaction when the pooled connection is returned
+	 * @param obj The pooled connection proxy
+	 * @throws Exception thrown if the rollback fails, in which case the connection is destroyed
+	 * @see org.apache.commons.pool.PoolableObjectFactory#passivateObject(java.lang.Object)
+	 */
+	@Override
+	public void passivateObject(Object obj) throws Exception {
+		Connection physical = ((PooledConnectionHandler)Proxy.getInvocationHandler(obj)).physical;
+		if(!physical.getAutoCommit()) physical.rollback();
+	}
+	
+	/**
+	 * Closes the pool and all idle physical connections
+	 * @throws Exception thrown on any error closing the pool
+	 */
+	@ManagedOperation
+	public void close() throws Exception {
+		objectPool.close();
+	}
+	
+	/**
+	 * Returns the number of active connections in the pool
+	 * @return the number of active connections
+	 */
+	@ManagedAttribute
+	public int getNumActive() {
+		return objectPool.getNumActive();
+	}
+	
+	/**
+	 * Returns the number of idle connections in the pool
+	 * @return the number of idle connections
+	 */
+	@ManagedAttribute
+	public int getNumIdle() {
+		return objectPool.getNumIdle();
+	}
+	
+	/**
+	 * Returns the maximum number of active connections allowed in the pool
+	 * @return the maximum number of active connections
+	 */
+	@ManagedAttribute
+	public int getMaxActive() {
+		return objectPool.getMaxActive();
+	}
+	
+	/**
+	 * Sets the maximum number of active connections allowed in the pool
+	 * @param max the maximum number of active connections allowed in the pool
+	 */
+	public void setMaxActive(int max) {
+		objectPool.setMaxActive(max);
+		objectPool.setMaxIdle(max);
+	}
+	
+	/**
+	 * Returns the maximum wait time to get a connection from the pool (ms)
+	 * @return the maximum wait time to get a connection from the pool (ms)
+	 */
+	@ManagedAttribute
+	public long getMaxWait() {
+		return objectPool.getMaxWait();
+	}
+	
+	/**
+	 * Sets the maximum wait time to get a connection from the pool (ms)
+	 * @param max the maximum wait time to get a connection from the pool (ms)
+	 */
+	public void setMaxWait(long max) {
+		objectPool.setMaxWait(max);
+	}
+	
+	/**
+	 * Sets the number of milliseconds to sleep between runs of the idle connection evictor thread.
+	 * @param timeBetweenEvictionRunsMillis the number of milliseconds between evictor runs
+	 */
+	public void setTimeBetweenEvictionRunsMillis(long timeBetweenEvictionRunsMillis) {
+		objectPool.setTimeBetweenEvictionRunsMillis(timeBetweenEvictionRunsMillis);
+	}
+	
+	/**
+	 * Sets the minimum time a connection may sit idle in the pool before it is eligible for eviction
+	 * @param minEvictableIdleTimeMillis the minimum idle time in ms.
+	 */
+	public void setMinEvictableIdleTimeMillis(long minEvictableIdleTimeMillis) {
+		objectPool.setMinEvictableIdleTimeMillis(minEvictableIdleTimeMillis);
+	}
+	
+	/**
+	 * <p>Title: PooledConnectionHandler</p>
+	 * <p>Description: The invocation handler for pooled connection proxies. Intercepts <code>close</code> to return the connection to the pool
+	 * and delegates everything else to the physical connection.</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>org.helios.collector.jdbc.connection.PooledJDBCConnectionFactory.PooledConnectionHandler</code></p>
+	 */
+	protected class PooledConnectionHandler implements InvocationHandler {
+		/** The physical connection */
+		protected final Connection physical;
+		/** The prepared statements cached against this connection */
+		protected final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+		/** Indicates the connection has been returned to the pool */
+		protected volatile boolean closed = false;
+		
+		/**
+		 * Creates a new PooledConnectionHandler
+		 * @param physical The physical connection
+		 */
+		protected PooledConnectionHandler(Connection physical) {
+			this.physical = physical;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+		 */
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if("close".equals(name) && method.getParameterTypes().length==0) {
+				if(!closed) {
+					closed = true;
+					objectPool.returnObject(proxy);
+				}
+				return null;
+			} else if("isClosed".equals(name) && method.getParameterTypes().length==0) {
+				return closed || physical.isClosed();
+			} else if("getStatementCache".equals(name)) {
+				return statements;
+			} else if("getPhysicalConnection".equals(name)) {
+				return physical;
+			} else if("equals".equals(name) && method.getParameterTypes().length==1) {
+				return proxy==args[0];
+			} else if("hashCode".equals(name) && method.getParameterTypes().length==0) {
+				return System.identityHashCode(proxy);
+			} else if("toString".equals(name) && method.getParameterTypes().length==0) {
+				return "PooledConnection [" + physical + "]";
+			}
+			if(closed) throw new SQLException("Pooled connection has been closed");
+			try {
+				return method.invoke(physical, args);
+			} catch (InvocationTargetException ite) {
+				throw ite.getCause();
+			}
+		}
+	}
+}
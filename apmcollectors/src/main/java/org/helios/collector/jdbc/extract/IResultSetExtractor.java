@@ -51,6 +51,18 @@ public interface IResultSetExtractor {
 	 */
 	public Map<Integer, Map<Integer, Object>> processResultSet(ResultSet rset, int maxRows, boolean useStrings) throws SQLException, IOException;
 	
+	/**
+	 * Creates a map of the name/values from a result set, recycling the row maps of a previously returned map.
+	 * @param rset The result set to convert.
+	 * @param maxRows The maximum number of rows to read. < 1 means all rows.
+	 * @param useStrings If true, retrieves values as strings. If false, retrieves values according to the JDBC type code.
+	 * @param reuse A map previously returned by this extractor to be refilled, or null to create a new one
+	 * @return A map of name/values for the result set keyed as follows:<code>Map<ROWID, MAP<COLID, VALUE>></code>
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public Map<Integer, Map<Integer, Object>> processResultSet(ResultSet rset, int maxRows, boolean useStrings, Map<Integer, Map<Integer, Object>> reuse) throws SQLException, IOException;
+	
 	/**
 	 * Creates a map of the name/values from a result set. Defaults the maxRows to -1 and useStrings to true.
 	 * @param rset The result set to convert.
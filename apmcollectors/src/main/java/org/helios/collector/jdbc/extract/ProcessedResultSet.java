@@ -65,6 +65,10 @@ public class ProcessedResultSet implements IProcessedResultSet, IReadOnlyProcess
 	protected Map<Integer, Map<Integer, Object>> values = null;
 	protected String queryName = null;
 	protected long timeToGet = 0;
+	/** The maximum number of rows to read. < 1 means all rows. */
+	protected int maxRows = -1;
+	/** If true, retrieves values as strings */
+	protected boolean useStrings = true;
 	
 	
 	/**
@@ -95,17 +99,51 @@ public class ProcessedResultSet implements IProcessedResultSet, IReadOnlyProcess
 	 * @throws IOException
 	 */
 	public ProcessedResultSet(ResultSet rset, int maxRows, boolean useStrings) throws SQLException, IOException {
+		this.maxRows = maxRows;
+		this.useStrings = useStrings;
+		load(rset);
+	}
+	
+	/**
+	 * Reloads this processed result set from a new execution of the same query, recycling the row and column meta-data maps
+	 * so that a mapping executed every collection does not reallocate its extraction buffers.
+	 * The calling thread's row index is reset to before the first row.
+	 * @param rset The result set to load
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public void reload(ResultSet rset) throws SQLException, IOException {
+		load(rset);
+		beforeFirst();
+	}
+	
+	/**
+	 * Loads the values and column meta-data from the passed result set, reusing the existing maps if there are any 
+	 * @param rset The result set to load
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	protected void load(ResultSet rset) throws SQLException, IOException {
 		long start = System.currentTimeMillis();
-		values = rsetExtractor.processResultSet(rset, maxRows, useStrings);
+		values = rsetExtractor.processResultSet(rset, maxRows, useStrings, values);
 		timeToGet = System.currentTimeMillis()-start;
 		ResultSetMetaData rsmd = rset.getMetaData();
 		colCount = rsmd.getColumnCount();
-		nameToIndex = new HashMap<String, Integer>(colCount);
-		jdbcTypes = new HashMap<Integer,Integer>(colCount);
-		jdbcTypeNames = new HashMap<Integer,String>(colCount);
-		jdbcClassNames = new HashMap<Integer,String>(colCount);
-		dbTypeNames = new HashMap<Integer,String>(colCount);
-		columnNames = new HashMap<Integer,String>(colCount);
+		if(nameToIndex==null) {
+			nameToIndex = new HashMap<String, Integer>(colCount);
+			jdbcTypes = new HashMap<Integer,Integer>(colCount);
+			jdbcTypeNames = new HashMap<Integer,String>(colCount);
+			jdbcClassNames = new HashMap<Integer,String>(colCount);
+			dbTypeNames = new HashMap<Integer,String>(colCount);
+			columnNames = new HashMap<Integer,String>(colCount);
+		} else {
+			nameToIndex.clear();
+			jdbcTypes.clear();
+			jdbcTypeNames.clear();
+			jdbcClassNames.clear();
+			dbTypeNames.clear();
+			columnNames.clear();
+		}
 		for(int i = 1; i <= colCount; i++) {
 			nameToIndex.put(rsmd.getColumnName(i), i-1);
 			jdbcTypes.put(i, rsmd.getColumnType(i));
@@ -56,21 +56,43 @@ public class ResultSetExtractorImpl implements IResultSetExtractor {
 	 * @throws IOException
 	 */
 	public Map<Integer, Map<Integer, Object>> processResultSet(ResultSet rset, int maxRows, boolean useStrings) throws SQLException, IOException {
-		
-		Map<Integer, Map<Integer, Object>> prset = new TreeMap<Integer, Map<Integer, Object>>();
+		return processResultSet(rset, maxRows, useStrings, null);
+	}
+	
+	/**
+	 * Creates a map of the name/values from a result set, recycling the row maps of a previously returned map.
+	 * Rows beyond the new row count are dropped from the recycled map.
+	 * @param rset The result set to convert.
+	 * @param maxRows The maximum number of rows to read. < 1 means all rows.
+	 * @param useStrings If true, retrieves values as strings. If false, retrieves values according to the JDBC type code.
+	 * @param reuse A map previously returned by this extractor to be refilled, or null to create a new one
+	 * @return A map of name/values for the result set keyed as follows:<code>Map<ROWID, MAP<COLID, VALUE>></code>
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public Map<Integer, Map<Integer, Object>> processResultSet(ResultSet rset, int maxRows, boolean useStrings, Map<Integer, Map<Integer, Object>> reuse) throws SQLException, IOException {
+		Map<Integer, Map<Integer, Object>> prset = reuse!=null ? reuse : new TreeMap<Integer, Map<Integer, Object>>();
 		ResultSetMetaData rsmd = rset.getMetaData();
 		int columnCount = rsmd.getColumnCount();
 		int rowCount = 0;
 		while(rset.next()) {
-			Map<Integer, Object> row = new HashMap<Integer, Object>(columnCount);
+			Map<Integer, Object> row = prset.get(rowCount);
+			if(row==null) {
+				row = new HashMap<Integer, Object>(columnCount);
+				prset.put(rowCount, row);
+			} else if(row.size()!=columnCount) {
+				row.clear();
+			}
 			for(int i = 1; i <= columnCount; i++) {
 				Object val = useStrings ? getStringValue(i, rset) : getValue(i, rsmd.getColumnType(i), rset);
 				row.put(i-1, val);
 			}
-			prset.put(rowCount, row);
 			rowCount++;
 			if(rowCount==maxRows) break;
 		}
+		for(int r = rowCount, size = prset.size(); r < size; r++) {
+			prset.remove(r);
+		}
 		return prset;
 	}
 	
@@ -0,0 +1,662 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.collector.url;
+
+import java.net.URL;
+import java.nio.channels.ClosedChannelException;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.apache.log4j.Logger;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.codec.http.HttpClientCodec;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * <p>Title: AsyncHttpProbeClient</p>
+ * <p>Description: A non-blocking HTTP client shared by URL collectors. Probes are submitted with a listener and the submitting thread returns immediately.
+ * The request is written on a netty NIO channel and the listener is called back with the status, content and response time when the response arrives,
+ * or with the cause when the connection fails or the probe times out.</p>
+ * <p>Connections are kept alive and up to <b><code>maxIdlePerEndpoint</code></b> idle connections are pooled per endpoint for the next probe.
+ * At most <b><code>maxProbes</code></b> probes are in flight at once. Further probes wait in a pending queue bounded at <b><code>maxPending</code></b> 
+ * and are started as in-flight probes complete. Probes submitted to a full pending queue fail with a {@link RejectedExecutionException}.</p>
+ * <p>HTTPS endpoints are probed with a trust-all SSL context, matching the self-signed certificate acceptance of the blocking URL collector.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.collector.url.AsyncHttpProbeClient</code></p>
+ */
+
+public class AsyncHttpProbeClient {
+	/** The shared client */
+	private static volatile AsyncHttpProbeClient instance = null;
+	/** The shared client creation lock */
+	private static final Object lock = new Object();
+	
+	/** The system property name for the shared client's maximum number of in-flight probes */
+	public static final String MAX_PROBES_PROP = "helios.collector.url.maxprobes";
+	/** The default maximum number of in-flight probes */
+	public static final int DEFAULT_MAX_PROBES = 128;
+	/** The system property name for the shared client's maximum number of pending probes */
+	public static final String MAX_PENDING_PROP = "helios.collector.url.maxpending";
+	/** The default maximum number of pending probes */
+	public static final int DEFAULT_MAX_PENDING = 4096;
+	/** The system property name for the shared client's maximum number of idle connections per endpoint */
+	public static final String MAX_IDLE_PROP = "helios.collector.url.maxidle";
+	/** The default maximum number of idle connections per endpoint */
+	public static final int DEFAULT_MAX_IDLE = 2;
+	/** The system property name for the shared client's number of netty worker threads */
+	public static final String WORKERS_PROP = "helios.collector.url.workers";
+	/** The default number of netty worker threads */
+	public static final int DEFAULT_WORKERS = 2;
+	/** The maximum aggregated response content size in bytes */
+	public static final int MAX_CONTENT_SIZE = 1024*1024;
+	
+	/** Instance logger */
+	protected final Logger log = Logger.getLogger(getClass());
+	/** The maximum number of in-flight probes */
+	protected final int maxProbes;
+	/** The maximum number of pending probes */
+	protected final int maxPending;
+	/** The maximum number of idle connections per endpoint */
+	protected final int maxIdlePerEndpoint;
+	/** The channel factory */
+	protected final NioClientSocketChannelFactory channelFactory;
+	/** The bootstrap for HTTP connections */
+	protected final ClientBootstrap plainBootstrap;
+	/** The bootstrap for HTTPS connections */
+	protected final ClientBootstrap secureBootstrap;
+	/** The probe timeout timer */
+	protected final HashedWheelTimer timer;
+	/** All open connections */
+	protected final ChannelGroup channelGroup = new DefaultChannelGroup("AsyncHttpProbeClient");
+	/** The in-flight probe permits */
+	protected final Semaphore permits;
+	/** The probes waiting for a permit */
+	protected final Queue<HttpProbe> pending = new ConcurrentLinkedQueue<HttpProbe>();
+	/** The number of probes waiting for a permit */
+	protected final AtomicInteger pendingCount = new AtomicInteger(0);
+	/** The idle connections keyed by endpoint */
+	protected final Map<String, Queue<Channel>> idleConnections = new ConcurrentHashMap<String, Queue<Channel>>();
+	/** The SSL context for HTTPS connections */
+	protected final SSLContext sslContext;
+	/** Indicates if this client has been shut down */
+	protected volatile boolean shutdown = false;
+	
+	/** The number of probes submitted */
+	protected final AtomicLong probesSubmitted = new AtomicLong(0L);
+	/** The number of probes that received a response */
+	protected final AtomicLong probesCompleted = new AtomicLong(0L);
+	/** The number of probes that failed */
+	protected final AtomicLong probesFailed = new AtomicLong(0L);
+	/** The number of probes that timed out */
+	protected final AtomicLong probesTimedOut = new AtomicLong(0L);
+	/** The number of probes rejected because the pending queue was full */
+	protected final AtomicLong probesRejected = new AtomicLong(0L);
+	/** The number of connections opened */
+	protected final AtomicLong connectionsOpened = new AtomicLong(0L);
+	/** The number of probes written to a pooled idle connection */
+	protected final AtomicLong connectionsReused = new AtomicLong(0L);
+	
+	/**
+	 * Returns the client shared by all URL collectors, creating it with the sizes in the system properties on first call
+	 * @return the shared client
+	 */
+	public static AsyncHttpProbeClient getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new AsyncHttpProbeClient(
+							Integer.getInteger(MAX_PROBES_PROP, DEFAULT_MAX_PROBES),
+							Integer.getInteger(MAX_PENDING_PROP, DEFAULT_MAX_PENDING),
+							Integer.getInteger(MAX_IDLE_PROP, DEFAULT_MAX_IDLE),
+							Integer.getInteger(WORKERS_PROP, DEFAULT_WORKERS));
+				}
+			}
+		}
+		return instance;
+	}
+	
+	/**
+	 * Creates a new AsyncHttpProbeClient
+	 * @param maxProbes The maximum number of in-flight probes
+	 * @param maxPending The maximum number of probes waiting for an in-flight slot
+	 * @param maxIdlePerEndpoint The maximum number of idle connections pooled per endpoint
+	 * @param workers The number of netty worker threads
+	 */
+	public AsyncHttpProbeClient(int maxProbes, int maxPending, int maxIdlePerEndpoint, int workers) {
+		if(maxProbes<1) throw new IllegalArgumentException("Invalid max probes [" + maxProbes + "]", new Throwable());
+		if(workers<1) throw new IllegalArgumentException("Invalid worker count [" + workers + "]", new Throwable());
+		this.maxProbes = maxProbes;
+		this.maxPending = maxPending;
+		this.maxIdlePerEndpoint = maxIdlePerEndpoint;
+		permits = new Semaphore(maxProbes);
+		channelFactory = new NioClientSocketChannelFactory(
+				Executors.newCachedThreadPool(new ProbeThreadFactory("AsyncHttpProbeBoss")), 
+				Executors.newCachedThreadPool(new ProbeThreadFactory("AsyncHttpProbeWorker")), 
+				workers);
+		timer = new HashedWheelTimer(new ProbeThreadFactory("AsyncHttpProbeTimer"), 10, TimeUnit.MILLISECONDS);
+		sslContext = trustAllContext();
+		plainBootstrap = bootstrap(false);
+		secureBootstrap = bootstrap(true);
+	}
+	
+	/**
+	 * Creates a client bootstrap
+	 * @param secure true for HTTPS connections
+	 * @return the bootstrap
+	 */
+	protected ClientBootstrap bootstrap(final boolean secure) {
+		ClientBootstrap bootstrap = new ClientBootstrap(channelFactory);
+		bootstrap.setOption("tcpNoDelay", true);
+		bootstrap.setOption("keepAlive", true);
+		bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+			@Override
+			public ChannelPipeline getPipeline() throws Exception {
+				ChannelPipeline pipeline = Channels.pipeline();
+				if(secure) {
+					SSLEngine engine = sslContext.createSSLEngine();
+					engine.setUseClientMode(true);
+					SslHandler sslHandler = new SslHandler(engine);
+					sslHandler.setIssueHandshake(true);
+					pipeline.addLast("ssl", sslHandler);
+				}
+				pipeline.addLast("codec", new HttpClientCodec());
+				pipeline.addLast("aggregator", new HttpChunkAggregator(MAX_CONTENT_SIZE));
+				pipeline.addLast("probe", new ProbeHandler());
+				return pipeline;
+			}
+		});
+		return bootstrap;
+	}
+	
+	/**
+	 * Creates an SSL context that trusts all server certificates
+	 * @return the SSL context, or null if one could not be created, in which case HTTPS probes fail
+	 */
+	protected SSLContext trustAllContext() {
+		try {
+			SSLContext ctx = SSLContext.getInstance("TLS");
+			ctx.init(null, new TrustManager[]{new X509TrustManager(){
+				public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+				public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+				public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
+			}}, null);
+			return ctx;
+		} catch (Exception e) {
+			log.warn("Failed to create SSL context. HTTPS probes will fail.", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Submits a probe and returns immediately. The listener is called back when the probe completes.
+	 * @param url The URL to probe
+	 * @param method The HTTP method
+	 * @param headers Additional request headers, may be null
+	 * @param timeout The time in ms. from the start of the probe until it fails with a {@link TimeoutException}
+	 * @param listener The listener notified of the outcome
+	 * @return the submitted probe
+	 */
+	public HttpProbe probe(URL url, HttpMethod method, Map<String, String> headers, long timeout, HttpProbeListener listener) {
+		String path = url.getPath()==null || url.getPath().isEmpty() ? "/" : url.getPath();
+		if(url.getQuery()!=null) path = path + "?" + url.getQuery();
+		HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, method, path);
+		request.setHeader(HttpHeaders.Names.HOST, url.getPort()==-1 ? url.getHost() : url.getHost() + ":" + url.getPort());
+		request.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+		if(headers!=null) {
+			for(Map.Entry<String, String> h: headers.entrySet()) {
+				request.setHeader(h.getKey(), h.getValue());
+			}
+		}
+		HttpProbe probe = new HttpProbe(url, request, timeout, listener);
+		probesSubmitted.incrementAndGet();
+		if(shutdown) {
+			finish(probe, null, new RejectedExecutionException("AsyncHttpProbeClient is shut down"));
+		} else if(permits.tryAcquire()) {
+			start(probe);
+		} else if(pendingCount.incrementAndGet() > maxPending) {
+			pendingCount.decrementAndGet();
+			probesRejected.incrementAndGet();
+			finish(probe, null, new RejectedExecutionException("AsyncHttpProbeClient has [" + maxPending + "] pending probes"));
+		} else {
+			pending.add(probe);
+			// a permit may have been released between the failed acquire and the enqueue
+			startPending();
+		}
+		return probe;
+	}
+	
+	/**
+	 * Starts pending probes while there are permits available
+	 */
+	protected void startPending() {
+		while(!pending.isEmpty() && permits.tryAcquire()) {
+			HttpProbe probe = pending.poll();
+			if(probe==null) {
+				permits.release();
+				return;
+			}
+			pendingCount.decrementAndGet();
+			start(probe);
+		}
+	}
+	
+	/**
+	 * Starts a probe holding a permit, writing it to an idle connection to the endpoint or to a new connection
+	 * @param probe The probe to start
+	 */
+	protected void start(final HttpProbe probe) {
+		probe.permitted = true;
+		probe.startTime = System.nanoTime();
+		probe.timeoutHandle = timer.newTimeout(new TimerTask() {
+			@Override
+			public void run(Timeout timeout) throws Exception {
+				if(finish(probe, null, new TimeoutException("Probe of [" + probe.url + "] timed out after [" + probe.timeout + "] ms."))) {
+					probesTimedOut.incrementAndGet();
+					// the response may still arrive so the connection cannot be reused
+					Channel channel = probe.channel;
+					if(channel!=null) channel.close();
+				}
+			}
+		}, probe.timeout, TimeUnit.MILLISECONDS);
+		Queue<Channel> idle = idleConnections.get(probe.endpointKey);
+		if(idle!=null) {
+			Channel channel;
+			while((channel = idle.poll())!=null) {
+				if(channel.isConnected()) {
+					connectionsReused.incrementAndGet();
+					probe.reused = true;
+					write(probe, channel);
+					return;
+				}
+			}
+		}
+		connect(probe);
+	}
+	
+	/**
+	 * Writes a probe to a new connection
+	 * @param probe The probe
+	 */
+	protected void connect(final HttpProbe probe) {
+		if(probe.secure && sslContext==null) {
+			finish(probe, null, new IllegalStateException("No SSL context for [" + probe.url + "]"));
+			return;
+		}
+		(probe.secure ? secureBootstrap : plainBootstrap).connect(probe.address).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture f) throws Exception {
+				if(f.isSuccess()) {
+					connectionsOpened.incrementAndGet();
+					channelGroup.add(f.getChannel());
+					if(probe.isComplete()) {
+						f.getChannel().close();
+					} else {
+						write(probe, f.getChannel());
+					}
+				} else {
+					finish(probe, null, f.getCause());
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Writes a probe's request to a connection
+	 * @param probe The probe
+	 * @param channel The connection
+	 */
+	protected void write(final HttpProbe probe, final Channel channel) {
+		probe.channel = channel;
+		channel.setAttachment(probe);
+		channel.write(probe.request).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture f) throws Exception {
+				if(!f.isSuccess()) {
+					if(!retry(probe, channel)) finish(probe, null, f.getCause());
+					channel.close();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Retries a probe on a new connection if its pooled keep-alive connection failed before the response arrived, 
+	 * since the server may close an idle connection as the request is written
+	 * @param probe The probe
+	 * @param channel The failed connection
+	 * @return true if the probe was retried, false if it should fail
+	 */
+	protected boolean retry(HttpProbe probe, Channel channel) {
+		if(!probe.reused || probe.isComplete() || shutdown) return false;
+		probe.reused = false;
+		channel.setAttachment(null);
+		connect(probe);
+		return true;
+	}
+	
+	/**
+	 * Completes a probe, releasing its permit, starting the next pending probe and notifying the listener 
+	 * @param probe The probe to complete
+	 * @param response The response, or null if the probe failed
+	 * @param cause The failure cause, or null if a response was received
+	 * @return true if this call completed the probe, false if it had already completed
+	 */
+	protected boolean finish(HttpProbe probe, HttpResponse response, Throwable cause) {
+		if(!probe.completed.compareAndSet(false, true)) return false;
+		if(probe.startTime!=0L) probe.elapsed = System.nanoTime() - probe.startTime;
+		Timeout t = probe.timeoutHandle;
+		if(t!=null) t.cancel();
+		if(response!=null) {
+			probe.status = response.getStatus().getCode();
+			probe.content = response.getContent();
+			probesCompleted.incrementAndGet();
+		} else {
+			probe.cause = cause;
+			probesFailed.incrementAndGet();
+		}
+		if(probe.permitted) {
+			permits.release();
+			startPending();
+		}
+		if(probe.listener!=null) {
+			try {
+				probe.listener.onProbeComplete(probe);
+			} catch (Throwable e) {
+				log.warn("Probe listener failed for [" + probe.url + "]", e);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns a kept-alive connection to its endpoint's idle pool, closing it if the pool is full
+	 * @param probe The probe the connection was last used for
+	 * @param channel The connection
+	 */
+	protected void release(HttpProbe probe, Channel channel) {
+		if(shutdown || !channel.isConnected()) {
+			channel.close();
+			return;
+		}
+		Queue<Channel> idle = idleConnections.get(probe.endpointKey);
+		if(idle==null) {
+			synchronized(idleConnections) {
+				idle = idleConnections.get(probe.endpointKey);
+				if(idle==null) {
+					idle = new ConcurrentLinkedQueue<Channel>();
+					idleConnections.put(probe.endpointKey, idle);
+				}
+			}
+		}
+		if(idle.size() < maxIdlePerEndpoint) {
+			idle.add(channel);
+		} else {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Closes all connections, fails pending probes and releases the netty resources. 
+	 * The shared client is replaced on the next call to {@link #getInstance()}.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		synchronized(lock) {
+			if(instance==this) instance = null;
+		}
+		HttpProbe probe;
+		while((probe = pending.poll())!=null) {
+			pendingCount.decrementAndGet();
+			finish(probe, null, new RejectedExecutionException("AsyncHttpProbeClient is shut down"));
+		}
+		channelGroup.close().awaitUninterruptibly();
+		idleConnections.clear();
+		timer.stop();
+		channelFactory.releaseExternalResources();
+	}
+	
+	/**
+	 * Returns the maximum number of in-flight probes
+	 * @return the maximum number of in-flight probes
+	 */
+	public int getMaxProbes() {
+		return maxProbes;
+	}
+	
+	/**
+	 * Returns the number of in-flight probes
+	 * @return the number of in-flight probes
+	 */
+	public int getInFlightCount() {
+		return maxProbes - permits.availablePermits();
+	}
+	
+	/**
+	 * Returns the number of probes waiting for an in-flight slot
+	 * @return the number of pending probes
+	 */
+	public int getPendingCount() {
+		return pendingCount.get();
+	}
+	
+	/**
+	 * Returns the number of idle pooled connections
+	 * @return the number of idle pooled connections
+	 */
+	public int getIdleConnectionCount() {
+		int total = 0;
+		for(Queue<Channel> idle: idleConnections.values()) {
+			total += idle.size();
+		}
+		return total;
+	}
+	
+	/**
+	 * Returns the total number of probes submitted
+	 * @return the number of probes submitted
+	 */
+	public long getProbesSubmitted() {
+		return probesSubmitted.get();
+	}
+	
+	/**
+	 * Returns the total number of probes that received a response
+	 * @return the number of completed probes
+	 */
+	public long getProbesCompleted() {
+		return probesCompleted.get();
+	}
+	
+	/**
+	 * Returns the total number of probes that failed, including timed out and rejected probes
+	 * @return the number of failed probes
+	 */
+	public long getProbesFailed() {
+		return probesFailed.get();
+	}
+	
+	/**
+	 * Returns the total number of probes that timed out
+	 * @return the number of timed out probes
+	 */
+	public long getProbesTimedOut() {
+		return probesTimedOut.get();
+	}
+	
+	/**
+	 * Returns the total number of probes rejected because the pending queue was full
+	 * @return the number of rejected probes
+	 */
+	public long getProbesRejected() {
+		return probesRejected.get();
+	}
+	
+	/**
+	 * Returns the total number of connections opened
+	 * @return the number of connections opened
+	 */
+	public long getConnectionsOpened() {
+		return connectionsOpened.get();
+	}
+	
+	/**
+	 * Returns the total number of probes written to a pooled keep-alive connection
+	 * @return the number of reused connections
+	 */
+	public long getConnectionsReused() {
+		return connectionsReused.get();
+	}
+	
+	/**
+	 * <p>Title: ProbeHandler</p>
+	 * <p>Description: The terminal handler of a probe connection, completing the probe attached to the channel</p> 
+	 */
+	protected class ProbeHandler extends SimpleChannelUpstreamHandler {
+		/**
+		 * {@inheritDoc}
+		 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#messageReceived(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.MessageEvent)
+		 */
+		@Override
+		public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+			if(!(e.getMessage() instanceof HttpResponse)) {
+				super.messageReceived(ctx, e);
+				return;
+			}
+			HttpResponse response = (HttpResponse)e.getMessage();
+			Channel channel = e.getChannel();
+			HttpProbe probe = (HttpProbe)channel.getAttachment();
+			channel.setAttachment(null);
+			if(probe==null) {
+				channel.close();
+				return;
+			}
+			boolean keepAlive = HttpHeaders.isKeepAlive(response);
+			// release the connection before completing, so the next probe started by the completion can reuse it
+			if(keepAlive && !probe.isComplete()) {
+				release(probe, channel);
+			} else {
+				channel.close();
+			}
+			finish(probe, response, null);
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#channelClosed(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelStateEvent)
+		 */
+		@Override
+		public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+			HttpProbe probe = (HttpProbe)e.getChannel().getAttachment();
+			if(probe!=null && !retry(probe, e.getChannel())) {
+				finish(probe, null, new ClosedChannelException());
+			}
+			super.channelClosed(ctx, e);
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#exceptionCaught(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ExceptionEvent)
+		 */
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+			HttpProbe probe = (HttpProbe)e.getChannel().getAttachment();
+			if(probe!=null && !retry(probe, e.getChannel())) {
+				finish(probe, null, e.getCause());
+			}
+			e.getChannel().close();
+		}
+	}
+	
+	/**
+	 * <p>Title: ProbeThreadFactory</p>
+	 * <p>Description: Creates named daemon threads for the client</p> 
+	 */
+	protected static class ProbeThreadFactory implements ThreadFactory {
+		/** The thread name prefix */
+		final String name;
+		/** The thread serial number */
+		final AtomicInteger serial = new AtomicInteger(0);
+		
+		/**
+		 * Creates a new ProbeThreadFactory
+		 * @param name The thread name prefix
+		 */
+		ProbeThreadFactory(String name) {
+			this.name = name;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+		 */
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name + "#" + serial.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
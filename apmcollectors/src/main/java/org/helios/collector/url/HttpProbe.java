@@ -0,0 +1,192 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.collector.url;
+
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.util.Timeout;
+
+/**
+ * <p>Title: HttpProbe</p>
+ * <p>Description: A single HTTP request submitted to an {@link AsyncHttpProbeClient} and, once complete, its outcome: 
+ * the response status, content and size, the response time and the failure cause if no response was received.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.collector.url.HttpProbe</code></p>
+ */
+
+public class HttpProbe {
+	/** The probed URL */
+	protected final URL url;
+	/** The endpoint address */
+	protected final InetSocketAddress address;
+	/** Indicates if the endpoint is HTTPS */
+	protected final boolean secure;
+	/** The key of the endpoint's idle connection pool */
+	protected final String endpointKey;
+	/** The request to send */
+	protected final HttpRequest request;
+	/** The probe timeout in ms. */
+	protected final long timeout;
+	/** The listener notified of the outcome */
+	protected final HttpProbeListener listener;
+	/** Set when the probe completes, so it completes exactly once */
+	protected final AtomicBoolean completed = new AtomicBoolean(false);
+	
+	/** Indicates if the probe holds one of the client's concurrency permits */
+	volatile boolean permitted = false;
+	/** Indicates if the request was written to a pooled keep-alive connection, which is retried once on a new connection if it was closed by the server */
+	volatile boolean reused = false;
+	/** The channel the request was written to */
+	volatile Channel channel = null;
+	/** The pending timeout */
+	volatile Timeout timeoutHandle = null;
+	/** The nano time the probe was started */
+	volatile long startTime = 0L;
+	/** The elapsed time from start to completion in ns. */
+	volatile long elapsed = -1L;
+	/** The response status code */
+	volatile int status = -1;
+	/** The response content */
+	volatile ChannelBuffer content = null;
+	/** The failure cause */
+	volatile Throwable cause = null;
+	
+	/**
+	 * Creates a new HttpProbe
+	 * @param url The probed URL
+	 * @param request The request to send
+	 * @param timeout The probe timeout in ms.
+	 * @param listener The listener notified of the outcome
+	 */
+	HttpProbe(URL url, HttpRequest request, long timeout, HttpProbeListener listener) {
+		this.url = url;
+		this.request = request;
+		this.timeout = timeout;
+		this.listener = listener;
+		secure = "https".equalsIgnoreCase(url.getProtocol());
+		address = new InetSocketAddress(url.getHost(), url.getPort()==-1 ? url.getDefaultPort() : url.getPort());
+		endpointKey = url.getProtocol().toLowerCase() + "://" + address.getHostName() + ":" + address.getPort();
+	}
+	
+	/**
+	 * Returns the probed URL
+	 * @return the probed URL
+	 */
+	public URL getUrl() {
+		return url;
+	}
+	
+	/**
+	 * Indicates if a response was received. The response status may still indicate an error.
+	 * @return true if a response was received
+	 */
+	public boolean isSuccess() {
+		return completed.get() && cause==null;
+	}
+	
+	/**
+	 * Indicates if this probe has completed
+	 * @return true if this probe has completed
+	 */
+	public boolean isComplete() {
+		return completed.get();
+	}
+	
+	/**
+	 * Returns the response status code
+	 * @return the response status code, or -1 if no response was received
+	 */
+	public int getStatus() {
+		return status;
+	}
+	
+	/**
+	 * Returns the response content size
+	 * @return the response content size in bytes, or -1 if no response was received
+	 */
+	public int getContentSize() {
+		ChannelBuffer c = content;
+		return c==null ? -1 : c.readableBytes();
+	}
+	
+	/**
+	 * Decodes the response content as UTF-8
+	 * @return the response content, or null if no response was received
+	 */
+	public String getContent() {
+		return getContent(CharsetUtil.UTF_8);
+	}
+	
+	/**
+	 * Decodes the response content
+	 * @param charset The content character set
+	 * @return the response content, or null if no response was received
+	 */
+	public String getContent(Charset charset) {
+		ChannelBuffer c = content;
+		return c==null ? null : c.toString(charset);
+	}
+	
+	/**
+	 * Returns the time from the start of the probe to its completion
+	 * @return the response time in ms, or -1 if the probe has not completed
+	 */
+	public long getResponseTime() {
+		long e = elapsed;
+		return e<0 ? -1L : TimeUnit.MILLISECONDS.convert(e, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Returns the failure cause
+	 * @return the failure cause, or null if a response was received
+	 */
+	public Throwable getCause() {
+		return cause;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder("HttpProbe [").append(request.getMethod()).append(" ").append(url);
+		if(completed.get()) {
+			if(cause==null) b.append(", status:").append(status).append(", size:").append(getContentSize());
+			else b.append(", failed:").append(cause);
+			b.append(", time:").append(getResponseTime()).append(" ms.");
+		}
+		return b.append("]").toString();
+	}
+}
@@ -38,6 +38,12 @@ import org.apache.commons.ssl.KeyMaterial;
 import org.helios.collector.core.CollectionResult;
 import org.helios.collector.core.CollectorException;
 import org.helios.collector.core.SocketAbstractCollector;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.base64.Base64;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.util.CharsetUtil;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedResource;
 
@@ -48,6 +54,9 @@ import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
@@ -56,11 +65,14 @@ import java.util.regex.Pattern;
  * 
  * <p>Title: URLCollector </p>
  * <p>Description: Checks URL end points and traces availability and other statistics.</p> 
+ * <p>Unless <b><code>asyncProbe</code></b> is disabled or the endpoint requires a client certificate, probes are submitted to the shared
+ * non-blocking {@link AsyncHttpProbeClient} so a slow endpoint does not hold a collector scheduler thread. The statistics are traced 
+ * when the response arrives and each collect call reports the outcome of the previous probe.</p>
  * <p>Company: Helios Development Group</p>
  * @author Sandeep Malhotra (smalhotra@heliosdev.org)
  */
 @ManagedResource
-public class URLCollector extends SocketAbstractCollector {
+public class URLCollector extends SocketAbstractCollector implements HttpProbeListener {
 
     /** Endpoint URL that collector needs to monitor */
     protected URL url=null;
@@ -71,7 +83,7 @@ public class URLCollector extends SocketAbstractCollector {
     /** Endpooint port */
     private int port=80;
     
-    /** Timeout in milliseconds for initial HTTP/S connection*/
+    /** Timeout in milliseconds for initial HTTP/S connection, or for the whole request when probing asynchronously */
     protected int timeout=5000; 
     
     /** String pattern to be matched match in response to determine endpoint availability*/
@@ -136,6 +148,19 @@ public class URLCollector extends SocketAbstractCollector {
     
     private static final int BYTES_TO_READ = 3000;
     
+    /** Indicates if endpoints not secured by client certificate should be probed with the non-blocking client */
+    protected boolean asyncProbe = true;
+    /** Indicates if this collector's endpoint is probed with the non-blocking client */
+    protected boolean useAsyncProbe = false;
+    /** The non-blocking client, the shared client if not set */
+    protected AsyncHttpProbeClient probeClient = null;
+    /** The additional headers sent with each asynchronous probe */
+    protected final Map<String, String> probeHeaders = new HashMap<String, String>();
+    /** Set while an asynchronous probe is in flight */
+    protected final AtomicBoolean probeInFlight = new AtomicBoolean(false);
+    /** The outcome of the last completed asynchronous probe */
+    protected volatile CollectionResult lastProbeResult = null;
+    
     /**
      * This static block re-registers HTTPS protocol with EasySSLProtocolSocketFactory to
      * trust web sites that presents self-signed certificates.  
@@ -233,6 +258,12 @@ public class URLCollector extends SocketAbstractCollector {
                 throw new CollectorException("KeyStoreLocation and/or KeyStorePassphrase is missing for a secure URL of bean: " + this.getBeanName());
             }
         }
+        useAsyncProbe = asyncProbe && authType != AUTH_TYPE.CLIENT_CERT;
+        probeHeaders.clear();
+        if(useAsyncProbe && authType == AUTH_TYPE.BASIC){
+            ChannelBuffer credentials = Base64.encode(ChannelBuffers.copiedBuffer(userName + ":" + password, CharsetUtil.UTF_8), false);
+            probeHeaders.put(HttpHeaders.Names.AUTHORIZATION, "Basic " + credentials.toString(CharsetUtil.UTF_8));
+        }
         trace("Object [ "+getObjectName()+" ]"+getState());
     }
     
@@ -521,6 +552,9 @@ public class URLCollector extends SocketAbstractCollector {
      * @return CollectionResult Results of the scheduled URL Monitor
      */
     public CollectionResult collectCallback(){
+        if(useAsyncProbe){
+            return asyncCollectCallback();
+        }
         int availability = 0;
         int httpResponseCode=-1;
         int contentSize=-1;
@@ -615,6 +649,76 @@ public class URLCollector extends SocketAbstractCollector {
         return result;
     }
     
+    /**
+     * Submits a probe of the endpoint to the non-blocking client and returns without waiting for the response.
+     * A new probe is not submitted while the previous one is in flight.
+     * @return the outcome of the last completed probe, or a successful result if no probe has completed yet
+     */
+    protected CollectionResult asyncCollectCallback(){
+        CollectionResult result = lastProbeResult;
+        if(probeInFlight.compareAndSet(false, true)){
+            HttpMethod method = isWebServiceEndpoint && wsStyle.equalsIgnoreCase("SOAP") ? HttpMethod.POST : HttpMethod.GET;
+            getProbeClient().probe(url, method, probeHeaders, timeout, this);
+        } else {
+            debug("The previous probe of URL [" + url + "] is still in flight so skipping probe for bean: " + this.getBeanName());
+        }
+        return result==null ? new CollectionResult().setResultForLastCollection(CollectionResult.Result.SUCCESSFUL) : result;
+    }
+    
+    /**
+     * Traces the statistics of a completed asynchronous probe and records its outcome for the next collect call
+     * @param probe The completed probe
+     * @see org.helios.collector.url.HttpProbeListener#onProbeComplete(org.helios.collector.url.HttpProbe)
+     */
+    public void onProbeComplete(HttpProbe probe){
+        int availability = 0;
+        int successContentMatched=0;
+        int failureContentMatched=0;
+        CollectionResult result = new CollectionResult();
+        try {
+            if(!probe.isSuccess()){
+                result.setResultForLastCollection(CollectionResult.Result.FAILURE);
+                result.setAnyException(new CollectorException("Probe of URL ["+this.url.toString()+"] failed", probe.getCause()));
+            } else if(probe.getStatus() != HttpStatus.SC_OK){
+                result.setResultForLastCollection(CollectionResult.Result.FAILURE);
+                result.setAnyException(new CollectorException("HTTP Response Code returned by URL ["+this.url.toString()+"] is: "+probe.getStatus()));
+            } else {
+                availability = 1;
+                if(successContentPattern!=null || failureContentPattern!=null){
+                    String content = probe.getContent();
+                    if(successContentPattern!=null)
+                        successContentMatched = successContentPattern.matcher(content).find()?1:0;
+                    if(failureContentPattern!=null)
+                        failureContentMatched = failureContentPattern.matcher(content).find()?1:0;
+                    if(failureContentMatched==1)
+                        availability = 0;
+                    else if(successContentPattern!=null && successContentMatched == 0)
+                        availability = 0;
+                }
+                result.setResultForLastCollection(CollectionResult.Result.SUCCESSFUL);
+            }
+            if(logErrors && result.getAnyException()!=null){
+                error(result.getAnyException().getMessage(), result.getAnyException());
+            }
+            available = availability==1;
+            tracer.traceGauge(availability, defaultAvailabilityLabel, getTracingNameSpace());
+            tracer.traceGauge(probe.getStatus(), "ResponseCode", getTracingNameSpace());
+            if(probe.isSuccess()){
+                tracer.traceGauge(probe.getContentSize(), "Content Size", getTracingNameSpace());
+                tracer.traceGauge(probe.getResponseTime(), "ResponseTime", getTracingNameSpace());
+            }
+            if(successContentPattern != null){
+                tracer.traceGauge(successContentMatched, "SuccessContentMatch", getTracingNameSpace());
+            }
+            if(failureContentPattern != null){
+                tracer.traceGauge(failureContentMatched, "FailureContentMatch", getTracingNameSpace());
+            }
+        } finally {
+            lastProbeResult = result;
+            probeInFlight.set(false);
+        }
+    }
+    
     /**
      * Parses response returned by endpoint
      * @param reader
@@ -653,6 +757,46 @@ public class URLCollector extends SocketAbstractCollector {
         }
     }
 
+    /**
+     * @return true if endpoints not secured by client certificate are probed with the non-blocking client
+     */
+    @ManagedAttribute
+    public boolean getAsyncProbe() {
+        return asyncProbe;
+    }
+
+    /**
+     * @param asyncProbe true to probe endpoints not secured by client certificate with the non-blocking client. Applied when the collector starts.
+     */
+    public void setAsyncProbe(boolean asyncProbe) {
+        this.asyncProbe = asyncProbe;
+    }
+
+    /**
+     * @return the non-blocking client used by this collector
+     */
+    public AsyncHttpProbeClient getProbeClient() {
+        if(probeClient==null){
+            probeClient = AsyncHttpProbeClient.getInstance();
+        }
+        return probeClient;
+    }
+
+    /**
+     * @param probeClient the non-blocking client to use instead of the shared client
+     */
+    public void setProbeClient(AsyncHttpProbeClient probeClient) {
+        this.probeClient = probeClient;
+    }
+
+    /**
+     * @return true if an asynchronous probe of the endpoint is in flight
+     */
+    @ManagedAttribute
+    public boolean isProbeInFlight() {
+        return probeInFlight.get();
+    }
+
     /**
      * @return the wsStyle
      */
@@ -688,6 +832,7 @@ public class URLCollector extends SocketAbstractCollector {
         retValue.append("myProtocolPrefix = " + this.myProtocolPrefix + TAB);
         retValue.append("wsStyle = " + this.wsStyle + TAB);
         retValue.append("isWebServiceEndpoint = " + this.isWebServiceEndpoint + TAB);
+        retValue.append("asyncProbe = " + this.asyncProbe + TAB);
         retValue.append(" )");
     
         return retValue.toString();
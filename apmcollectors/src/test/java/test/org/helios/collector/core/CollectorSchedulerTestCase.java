@@ -0,0 +1,282 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.collector.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.helios.collector.core.CollectorScheduler;
+import org.helios.collector.core.ScheduledCollection;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>Title: CollectorSchedulerTestCase</p>
+ * <p>Description: Runs hundreds of synthetic collectors with the same period on a plain fixed rate scheduler, as collectors were scheduled before,
+ * and on the {@link CollectorScheduler}, comparing the CPU burned per 100 ms. slot of the period and the lateness of fast collectors 
+ * when some collectors overrun their period.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.collector.core.CollectorSchedulerTestCase</code></p>
+ */
+public class CollectorSchedulerTestCase {
+	/** The collection period in ms. */
+	static final long PERIOD = 1000L;
+	/** The measurement slot size in ms. */
+	static final long SLOT = 100L;
+	/** The number of fast synthetic collectors */
+	static final int COLLECTORS = 300;
+	/** The CPU time burned by a fast collector in µs */
+	static final long BURN_MICROS = 500L;
+	/** The number of slow synthetic collectors */
+	static final int SLOW_COLLECTORS = 10;
+	/** The time a slow collector takes in ms. */
+	static final long SLOW_TIME = 2500L;
+	/** The time in ms. the scheduler is given to size its pool before lateness is expected to be bounded */
+	static final long WARMUP = 2*PERIOD;
+	/** The test run time in ms. */
+	static final long RUN_TIME = 4000L;
+	
+	/**
+	 * Compares the CPU burned per slot of the period by collectors that all have the same period
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testPhaseSpreading() throws Exception {
+		long[] aligned = slotLoad(runLegacy(0));
+		long[] spread = slotLoad(runScheduler(0, new CollectorScheduler(4, 32, 100, 100)));
+		double alignedPeak = peakToMean(aligned), spreadPeak = peakToMean(spread);
+		log("CPU us per %s ms slot, aligned: %s", SLOT, Arrays.toString(aligned));
+		log("CPU us per %s ms slot, spread:  %s", SLOT, Arrays.toString(spread));
+		log("Peak to mean slot CPU, aligned: %.2f, spread: %.2f", alignedPeak, spreadPeak);
+		Assert.assertTrue("Aligned collectors did not spike", alignedPeak > 4);
+		Assert.assertTrue("Spread collectors were not flattened: " + spreadPeak, spreadPeak < 2);
+		Assert.assertEquals("Phase is not deterministic", CollectorScheduler.phase("Collector7", PERIOD), CollectorScheduler.phase("Collector7", PERIOD));
+	}
+	
+	/**
+	 * Compares the lateness of fast collectors sharing the scheduler with collectors that overrun their period
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testBoundedLateness() throws Exception {
+		Run legacy = runLegacy(SLOW_COLLECTORS);
+		// headroom is forced so pool growth does not depend on the load of the test host
+		CollectorScheduler scheduler = new CollectorScheduler(4, 32, 100, 100) {
+			@Override
+			protected boolean hasCpuHeadroom() {
+				return true;
+			}
+		};
+		Run jittered = runScheduler(SLOW_COLLECTORS, scheduler);
+		log("Fast collector lateness, fixed rate: max %s ms", legacy.maxLateness.get());
+		log("Fast collector lateness, scheduler:  max %s ms, after warmup %s ms, pool grew %s times to %s threads, %s slow collections skipped", 
+				jittered.maxLateness.get(), jittered.steadyLateness.get(), scheduler.getPoolGrowths(), jittered.poolSize, jittered.skipped);
+		Assert.assertTrue("Fixed rate collectors were not starved", legacy.maxLateness.get() > 1000);
+		Assert.assertTrue("Lateness not bounded: " + jittered.steadyLateness.get(), jittered.steadyLateness.get() < 250);
+		Assert.assertTrue("Lateness while the pool grew: " + jittered.maxLateness.get(), jittered.maxLateness.get() < 1000);
+		Assert.assertTrue("Pool did not grow", scheduler.getPoolGrowths() > 0);
+		Assert.assertTrue("Overrunning collections were not skipped", jittered.skipped > 0);
+		Assert.assertTrue("Slow collectors occupied more than one thread each", jittered.maxSlowInFlight <= 1);
+	}
+	
+	/**
+	 * Runs the synthetic collectors on a plain 10 thread fixed rate scheduler, all starting immediately
+	 * @param slow The number of slow collectors
+	 * @return the run
+	 * @throws Exception thrown on any error
+	 */
+	protected Run runLegacy(int slow) throws Exception {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(10);
+		Run run = new Run();
+		try {
+			for(int i = 0; i < COLLECTORS + slow; i++) {
+				SyntheticCollector sc = new SyntheticCollector(run, i < slow, System.currentTimeMillis());
+				executor.scheduleAtFixedRate(sc, 0, PERIOD, TimeUnit.MILLISECONDS);
+			}
+			Thread.sleep(RUN_TIME);
+		} finally {
+			executor.shutdownNow();
+		}
+		return run;
+	}
+	
+	/**
+	 * Runs the synthetic collectors on the passed collector scheduler
+	 * @param slow The number of slow collectors
+	 * @param scheduler The scheduler
+	 * @return the run
+	 * @throws Exception thrown on any error
+	 */
+	protected Run runScheduler(int slow, CollectorScheduler scheduler) throws Exception {
+		Run run = new Run();
+		List<ScheduledCollection> slowSchedules = new ArrayList<ScheduledCollection>();
+		try {
+			for(int i = 0; i < COLLECTORS + slow; i++) {
+				String name = "Collector" + i;
+				long now = System.currentTimeMillis();
+				SyntheticCollector sc = new SyntheticCollector(run, i < slow, now + ((CollectorScheduler.phase(name, PERIOD) - now%PERIOD) + PERIOD)%PERIOD);
+				ScheduledCollection schedule = scheduler.schedule(name, sc, PERIOD, 1);
+				if(i < slow) slowSchedules.add(schedule);
+			}
+			long end = System.currentTimeMillis() + RUN_TIME;
+			while(System.currentTimeMillis() < end) {
+				for(ScheduledCollection schedule: slowSchedules) {
+					run.maxSlowInFlight = Math.max(run.maxSlowInFlight, schedule.getInFlight());
+				}
+				Thread.sleep(20);
+			}
+			run.poolSize = scheduler.getPoolSize();
+			run.skipped = scheduler.getSkippedCollections();
+		} finally {
+			scheduler.shutdown();
+		}
+		return run;
+	}
+	
+	/**
+	 * Folds the CPU burned per slot into one period, skipping the first period
+	 * @param run The run
+	 * @return the CPU burned in µs per slot of the period
+	 */
+	protected long[] slotLoad(Run run) {
+		int slots = (int)(PERIOD/SLOT);
+		long[] load = new long[slots];
+		for(int i = 0; i < run.slotCpu.length(); i++) {
+			long slotTime = run.start + i*SLOT;
+			if(slotTime < run.start + PERIOD || slotTime + SLOT > run.start + RUN_TIME) continue;
+			load[(int)((slotTime%PERIOD)/SLOT)] += run.slotCpu.get(i);
+		}
+		return load;
+	}
+	
+	/**
+	 * Computes the ratio of the highest slot to the mean slot
+	 * @param load The slot loads
+	 * @return the peak to mean ratio
+	 */
+	protected double peakToMean(long[] load) {
+		long max = 0, total = 0;
+		for(long l: load) {
+			max = Math.max(max, l);
+			total += l;
+		}
+		return total==0 ? 0 : (double)max/((double)total/load.length);
+	}
+	
+	/**
+	 * <p>Title: Run</p>
+	 * <p>Description: The measurements of one test run</p> 
+	 */
+	static class Run {
+		/** The run start time, aligned to the slot size */
+		final long start = System.currentTimeMillis()/SLOT*SLOT;
+		/** The CPU burned in µs per slot since the start */
+		final AtomicLongArray slotCpu = new AtomicLongArray((int)(RUN_TIME/SLOT) + 20);
+		/** The highest lateness of a fast collection */
+		final AtomicLong maxLateness = new AtomicLong(0L);
+		/** The highest lateness of a fast collection scheduled after the warmup */
+		final AtomicLong steadyLateness = new AtomicLong(0L);
+		/** The highest number of concurrent collections of a slow collector */
+		int maxSlowInFlight = 0;
+		/** The final worker pool size */
+		int poolSize = 0;
+		/** The number of skipped collections */
+		long skipped = 0;
+	}
+	
+	/**
+	 * <p>Title: SyntheticCollector</p>
+	 * <p>Description: A collector task that burns a fixed amount of CPU, or sleeps if slow, and records its lateness against its nominal fire times</p> 
+	 */
+	static class SyntheticCollector implements Runnable {
+		/** The run to record into */
+		final Run run;
+		/** Indicates if this collector is slow */
+		final boolean slow;
+		/** The nominal time of the first collection */
+		final long firstFireTime;
+		/** The number of collections */
+		int executions = 0;
+		
+		/**
+		 * Creates a new SyntheticCollector
+		 * @param run The run to record into
+		 * @param slow true if this collector is slow
+		 * @param firstFireTime The nominal time of the first collection
+		 */
+		SyntheticCollector(Run run, boolean slow, long firstFireTime) {
+			this.run = run;
+			this.slow = slow;
+			this.firstFireTime = firstFireTime;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			long now = System.currentTimeMillis();
+			if(slow) {
+				try { Thread.sleep(SLOW_TIME); } catch (InterruptedException e) {}
+				return;
+			}
+			// a skipped collection shows up as a late one, since the fast collectors never overrun
+			long nominal = firstFireTime + (executions++)*PERIOD;
+			long lateness = now - nominal;
+			max(run.maxLateness, lateness);
+			if(nominal >= run.start + WARMUP) max(run.steadyLateness, lateness);
+			long end = System.nanoTime() + TimeUnit.NANOSECONDS.convert(BURN_MICROS, TimeUnit.MICROSECONDS);
+			while(System.nanoTime() < end);
+			int slot = (int)((now - run.start)/SLOT);
+			if(slot < run.slotCpu.length()) run.slotCpu.addAndGet(slot, BURN_MICROS);
+		}
+		
+		/**
+		 * Sets the passed atomic to the passed value if it is higher
+		 * @param max The atomic max
+		 * @param value The value
+		 */
+		static void max(AtomicLong max, long value) {
+			long current;
+			while(value > (current = max.get()) && !max.compareAndSet(current, value));
+		}
+	}
+	
+	/**
+	 * Formatted out logger
+	 * @param fmt The format
+	 * @param args The format arguments
+	 */
+	public static void log(String fmt, Object...args) {
+		System.out.println(String.format(fmt, args));
+	}
+}
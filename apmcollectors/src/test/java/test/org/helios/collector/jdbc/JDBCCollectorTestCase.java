@@ -0,0 +1,296 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.collector.jdbc;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.h2.tools.SimpleResultSet;
+import org.helios.apmrouter.trace.TracerFactory;
+import org.helios.collector.core.CollectionResult;
+import org.helios.collector.jdbc.JDBCCollector;
+import org.helios.collector.jdbc.SQLMapping;
+import org.helios.collector.jdbc.connection.IPooledConnection;
+import org.helios.collector.jdbc.connection.PooledJDBCConnectionFactory;
+import org.helios.collector.jdbc.extract.ProcessedResultSet;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * <p>Title: JDBCCollectorTestCase</p>
+ * <p>Description: Runs the {@link JDBCCollector} against an in-memory H2 database with many SQL mappings whose queries sleep for a configured time,
+ * comparing the sequential and parallel collection times and verifying statement caching, buffer recycling and per mapping timeouts.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.collector.jdbc.JDBCCollectorTestCase</code></p>
+ */
+public class JDBCCollectorTestCase {
+	/** The number of SQL mappings */
+	static final int MAPPINGS = 12;
+	/** The injected latency of the fastest mapping in ms. */
+	static final int MIN_LATENCY = 50;
+	/** The injected latency increment per mapping in ms. */
+	static final int LATENCY_STEP = 25;
+	/** The number of rows returned by each mapping */
+	static final int ROWS = 10;
+	/** The H2 data source */
+	static JdbcDataSource dataSource = null;
+	/** A connection that keeps the in-memory database open */
+	static Connection keepAlive = null;
+	
+	/**
+	 * Creates the in-memory database and the latency injecting table function
+	 * @throws Exception thrown on any error
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:jdbccollector;MULTI_THREADED=1");
+		keepAlive = dataSource.getConnection();
+		keepAlive.createStatement().execute("CREATE ALIAS DELAYED_ROWS FOR \"" + JDBCCollectorTestCase.class.getName() + ".delayedRows\"");
+	}
+	
+	/**
+	 * Closes the in-memory database
+	 * @throws Exception thrown on any error
+	 */
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		if(keepAlive!=null) keepAlive.close();
+	}
+	
+	/**
+	 * H2 table function that sleeps for the passed time before returning the passed number of rows.
+	 * H2 also calls table functions to compile the column list, in which case it does not sleep.
+	 * @param conn The calling connection
+	 * @param sleepMs The time to sleep in ms.
+	 * @param rows The number of rows to return
+	 * @return a result set of <code>ID, VAL</code> rows
+	 * @throws Exception thrown if interrupted
+	 */
+	public static ResultSet delayedRows(Connection conn, int sleepMs, int rows) throws Exception {
+		SimpleResultSet rset = new SimpleResultSet();
+		rset.addColumn("ID", Types.INTEGER, 10, 0);
+		rset.addColumn("VAL", Types.BIGINT, 19, 0);
+		if(conn.getMetaData().getURL().equals("jdbc:columnlist:connection")) {
+			return rset;
+		}
+		Thread.sleep(sleepMs);
+		for(int i = 0; i < rows; i++) {
+			rset.addRow(i, (long)i * sleepMs);
+		}
+		return rset;
+	}
+	
+	/**
+	 * Compares the sequential and parallel collection times of many mappings with injected latency
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testParallelCollection() throws Exception {
+		long slowest = MIN_LATENCY + (MAPPINGS-1)*LATENCY_STEP, total = 0;
+		for(int i = 0; i < MAPPINGS; i++) total += MIN_LATENCY + i*LATENCY_STEP;
+		PooledJDBCConnectionFactory factory = new PooledJDBCConnectionFactory(dataSource);
+		factory.setMaxActive(MAPPINGS);
+		List<TestMapping> mappings = mappings(MAPPINGS, 5000);
+		try {
+			TestCollector sequential = collector(factory, mappings, 1);
+			TestCollector parallel = collector(factory, mappings, MAPPINGS);
+			// first collections compile the statements
+			Assert.assertEquals("Sequential result", CollectionResult.Result.SUCCESSFUL, sequential.collectCallback().getResultForLastCollection());
+			Assert.assertEquals("Parallel result", CollectionResult.Result.SUCCESSFUL, parallel.collectCallback().getResultForLastCollection());
+			List<ProcessedResultSet> firstResults = new ArrayList<ProcessedResultSet>();
+			for(TestMapping mapping: mappings) {
+				firstResults.add(mapping.getResults());
+			}
+			long start = System.currentTimeMillis();
+			Assert.assertEquals("Sequential result", CollectionResult.Result.SUCCESSFUL, sequential.collectCallback().getResultForLastCollection());
+			long sequentialTime = System.currentTimeMillis()-start;
+			start = System.currentTimeMillis();
+			Assert.assertEquals("Parallel result", CollectionResult.Result.SUCCESSFUL, parallel.collectCallback().getResultForLastCollection());
+			long parallelTime = System.currentTimeMillis()-start;
+			log("%s mappings, slowest %s ms, sum %s ms: sequential collection %s ms, parallel collection %s ms", MAPPINGS, slowest, total, sequentialTime, parallelTime);
+			Assert.assertTrue("Sequential collection was shorter than the sum of latencies", sequentialTime >= total);
+			Assert.assertTrue("Parallel collection [" + parallelTime + "] was not bounded by the slowest mapping [" + slowest + "]", parallelTime < slowest + 250);
+			for(int i = 0; i < mappings.size(); i++) {
+				TestMapping mapping = mappings.get(i);
+				Assert.assertEquals("Rows for " + mapping.getName(), ROWS, mapping.getResults().getRowCount());
+				Assert.assertSame("Results were not recycled for " + mapping.getName(), firstResults.get(i), mapping.getResults());
+			}
+			Assert.assertTrue("Pool grew past the parallelism", factory.getNumActive() + factory.getNumIdle() <= MAPPINGS);
+			Connection conn = factory.getJDBCConnection();
+			try {
+				Assert.assertFalse("No statements were cached", ((IPooledConnection)conn).getStatementCache().isEmpty());
+			} finally {
+				conn.close();
+			}
+			sequential.stopCollector();
+			parallel.stopCollector();
+		} finally {
+			factory.close();
+		}
+	}
+	
+	/**
+	 * Verifies a mapping that exceeds its operation timeout is cancelled without holding up the collection
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testMappingTimeout() throws Exception {
+		PooledJDBCConnectionFactory factory = new PooledJDBCConnectionFactory(dataSource);
+		factory.setMaxActive(4);
+		List<TestMapping> mappings = mappings(3, 5000);
+		TestMapping stuck = new TestMapping("StuckMapping", 10000);
+		stuck.setOperationTimeOut(300);
+		mappings.add(stuck);
+		try {
+			TestCollector parallel = collector(factory, mappings, 4);
+			long start = System.currentTimeMillis();
+			CollectionResult result = parallel.collectCallback();
+			long elapsed = System.currentTimeMillis()-start;
+			log("Collection with a stuck mapping completed in %s ms with result %s", elapsed, result.getResultForLastCollection());
+			Assert.assertEquals("Collection result", CollectionResult.Result.PARTIAL, result.getResultForLastCollection());
+			Assert.assertTrue("Collection was held up by the stuck mapping", elapsed < 1500);
+			for(int i = 0; i < 50 && stuck.isExecuting(); i++) Thread.sleep(20);
+			Assert.assertFalse("Stuck mapping was not cancelled", stuck.isExecuting());
+			parallel.stopCollector();
+		} finally {
+			factory.close();
+		}
+	}
+	
+	/**
+	 * Creates the test SQL mappings with increasing latencies
+	 * @param count The number of mappings
+	 * @param timeout The operation timeout of each mapping in ms.
+	 * @return the mappings
+	 */
+	protected List<TestMapping> mappings(int count, long timeout) {
+		List<TestMapping> mappings = new ArrayList<TestMapping>(count);
+		for(int i = 0; i < count; i++) {
+			TestMapping mapping = new TestMapping("Mapping" + i, MIN_LATENCY + i*LATENCY_STEP);
+			mapping.setOperationTimeOut(timeout);
+			mappings.add(mapping);
+		}
+		return mappings;
+	}
+	
+	/**
+	 * Creates and starts a collector for the passed mappings
+	 * @param factory The connection factory
+	 * @param mappings The SQL mappings
+	 * @param parallelism The collector parallelism
+	 * @return the started collector
+	 * @throws Exception thrown on any error
+	 */
+	protected TestCollector collector(PooledJDBCConnectionFactory factory, List<TestMapping> mappings, int parallelism) throws Exception {
+		TestCollector collector = new TestCollector();
+		collector.setBeanName("TestJDBCCollector" + parallelism);
+		collector.setTracingNameSpace(new String[]{"JDBCCollectorTest"});
+		collector.setConnectionFactory(factory);
+		collector.setParallelism(parallelism);
+		collector.setOperationTimeout(5000);
+		collector.setLogErrors(true);
+		Set<SQLMapping> maps = new LinkedHashSet<SQLMapping>(mappings);
+		collector.setSqlMaps(maps);
+		collector.startCollector();
+		collector.initCollector();
+		return collector;
+	}
+	
+	/**
+	 * <p>Title: TestCollector</p>
+	 * <p>Description: A JDBCCollector with the tracer set without going through the collector lifecycle</p> 
+	 */
+	public static class TestCollector extends JDBCCollector {
+		private static final long serialVersionUID = 1L;
+		/**
+		 * Creates a new TestCollector
+		 */
+		public TestCollector() {
+			tracer = TracerFactory.getTracer();
+		}
+	}
+	
+	/**
+	 * <p>Title: TestMapping</p>
+	 * <p>Description: A SQLMapping that selects delayed rows and exposes its recycled results</p> 
+	 */
+	public static class TestMapping extends SQLMapping {
+		/**
+		 * Creates a new TestMapping
+		 * @param name The mapping name
+		 * @param latency The injected latency in ms.
+		 */
+		public TestMapping(String name, int latency) {
+			setBeanName(name);
+			setSql("SELECT ID, VAL FROM DELAYED_ROWS(" + latency + ", " + ROWS + ")");
+		}
+		
+		/**
+		 * Returns the recycled processed result set
+		 * @return the recycled processed result set
+		 */
+		public ProcessedResultSet getResults() {
+			return results;
+		}
+		
+		/**
+		 * Identity equality, since the base class compares on SQL
+		 * @param obj The object to compare to
+		 * @return true if the passed object is this mapping
+		 */
+		@Override
+		public boolean equals(Object obj) {
+			return this==obj;
+		}
+		
+		/**
+		 * Identity hash code
+		 * @return the identity hash code
+		 */
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(this);
+		}
+	}
+	
+	/**
+	 * Formatted out logger
+	 * @param fmt The format
+	 * @param args The format arguments
+	 */
+	public static void log(String fmt, Object...args) {
+		System.out.println(String.format(fmt, args));
+	}
+}
@@ -0,0 +1,310 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.collector.url;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.helios.apmrouter.trace.TracerFactory;
+import org.helios.collector.core.CollectionResult;
+import org.helios.collector.url.AsyncHttpProbeClient;
+import org.helios.collector.url.URLCollector;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>Title: URLCollectorTestCase</p>
+ * <p>Description: Probes many stub HTTP endpoints, some deliberately slow, from a scheduler sized like the shared collector scheduler,
+ * comparing the blocking and asynchronous URL collectors' probe throughput and the delay they impose on other scheduled collectors.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.collector.url.URLCollectorTestCase</code></p>
+ */
+public class URLCollectorTestCase {
+	/** The number of stub endpoints */
+	static final int ENDPOINTS = 200;
+	/** Every n-th endpoint is slow */
+	static final int SLOW_EVERY = 5;
+	/** The latency of the slow endpoints in ms. */
+	static final int SLOW_LATENCY = 1000;
+	/** The number of collector scheduler threads, as in AbstractCollector */
+	static final int SCHEDULER_THREADS = 10;
+	/** The stub HTTP server */
+	static HttpServer server = null;
+	/** The stub HTTP server's executor */
+	static ExecutorService serverExecutor = null;
+	/** The stub endpoint base URL */
+	static String baseUrl = null;
+	/** The number of requests the stub server is currently handling */
+	static final AtomicInteger concurrentRequests = new AtomicInteger(0);
+	/** The highest number of requests the stub server handled at once */
+	static final AtomicInteger maxConcurrentRequests = new AtomicInteger(0);
+	
+	/**
+	 * Starts the stub HTTP server. A request for <code>/probe/&lt;n&gt;?delay=&lt;ms&gt;</code> is answered after the passed delay.
+	 * @throws Exception thrown on any error
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		// the blocking and asynchronous collectors each keep a connection per endpoint open
+		System.setProperty("sun.net.httpserver.maxIdleConnections", "" + (ENDPOINTS*4));
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+		serverExecutor = Executors.newCachedThreadPool();
+		server.setExecutor(serverExecutor);
+		server.createContext("/probe", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) {
+				int current = concurrentRequests.incrementAndGet();
+				try {
+					int max;
+					while(current > (max = maxConcurrentRequests.get()) && !maxConcurrentRequests.compareAndSet(max, current));
+					String query = exchange.getRequestURI().getQuery();
+					if(query!=null && query.startsWith("delay=")) {
+						Thread.sleep(Long.parseLong(query.substring(6)));
+					}
+					byte[] body = ("<html><body>Endpoint " + exchange.getRequestURI().getPath() + " is UP</body></html>").getBytes("UTF-8");
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream os = exchange.getResponseBody();
+					os.write(body);
+					os.close();
+				} catch (Exception e) {
+					exchange.close();
+				} finally {
+					concurrentRequests.decrementAndGet();
+				}
+			}
+		});
+		server.start();
+		baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/probe/";
+	}
+	
+	/**
+	 * Stops the stub HTTP server
+	 * @throws Exception thrown on any error
+	 */
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		if(server!=null) server.stop(0);
+		if(serverExecutor!=null) serverExecutor.shutdownNow();
+	}
+	
+	/**
+	 * Probes all the stub endpoints with blocking and then asynchronous collectors, measuring the time to complete all probes 
+	 * and how long an unrelated collector scheduled behind them waits for a scheduler thread
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testProbeThroughput() throws Exception {
+		AsyncHttpProbeClient client = new AsyncHttpProbeClient(ENDPOINTS, ENDPOINTS, 32, 2);
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(SCHEDULER_THREADS);
+		try {
+			List<TestCollector> blocking = collectors(ENDPOINTS, false, client, 5000);
+			List<TestCollector> async = collectors(ENDPOINTS, true, client, 5000);
+			long[] blockingTimes = probeAll(scheduler, blocking);
+			long[] asyncTimes = probeAll(scheduler, async);
+			log("%s endpoints, %s slow at %s ms, %s scheduler threads", ENDPOINTS, ENDPOINTS/SLOW_EVERY, SLOW_LATENCY, SCHEDULER_THREADS);
+			log("Blocking: all probes completed in %s ms, other collector delayed %s ms", blockingTimes[0], blockingTimes[1]);
+			log("Async:    all probes completed in %s ms, other collector delayed %s ms", asyncTimes[0], asyncTimes[1]);
+			Assert.assertTrue("Async probes [" + asyncTimes[0] + "] were not far faster than blocking probes [" + blockingTimes[0] + "]", asyncTimes[0]*2 < blockingTimes[0]);
+			Assert.assertTrue("Slow async probes delayed another collector by [" + asyncTimes[1] + "] ms.", asyncTimes[1] < 500);
+			Assert.assertTrue("Blocking probes did not delay another collector", blockingTimes[1] >= SLOW_LATENCY);
+			// the second round reports the first round's results and reuses the kept-alive connections
+			long opened = client.getConnectionsOpened();
+			for(TestCollector collector: async) {
+				Assert.assertEquals("Probe result for " + collector.getUrl(), CollectionResult.Result.SUCCESSFUL, collector.collectCallback().getResultForLastCollection());
+				Assert.assertTrue("Endpoint not available: " + collector.getUrl(), collector.getAvailable());
+			}
+			awaitProbes(async);
+			log("Async second round: %s connections opened, %s reused", client.getConnectionsOpened()-opened, client.getConnectionsReused());
+			Assert.assertTrue("No connections were reused", client.getConnectionsReused() > 0);
+			Assert.assertEquals("Probes failed", 0, client.getProbesFailed());
+			for(TestCollector collector: blocking) collector.stopCollector();
+		} finally {
+			scheduler.shutdownNow();
+			client.shutdown();
+		}
+	}
+	
+	/**
+	 * Verifies the client limits the number of probes in flight and that a probe exceeding its timeout is reported as a failure
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testConcurrencyLimitAndTimeout() throws Exception {
+		int maxProbes = 8;
+		AsyncHttpProbeClient client = new AsyncHttpProbeClient(maxProbes, 1000, 2, 2);
+		try {
+			List<TestCollector> collectors = new ArrayList<TestCollector>();
+			for(int i = 0; i < 40; i++) {
+				collectors.add(collector(baseUrl + "limited" + i + "?delay=100", true, client, 5000));
+			}
+			maxConcurrentRequests.set(0);
+			for(TestCollector collector: collectors) collector.collectCallback();
+			Assert.assertTrue("Probes were not queued", client.getPendingCount() > 0);
+			awaitProbes(collectors);
+			log("Max concurrent requests with a limit of %s: %s", maxProbes, maxConcurrentRequests.get());
+			Assert.assertTrue("Concurrency limit exceeded: " + maxConcurrentRequests.get(), maxConcurrentRequests.get() <= maxProbes);
+			
+			TestCollector stuck = collector(baseUrl + "stuck?delay=3000", true, client, 300);
+			long start = System.currentTimeMillis();
+			Assert.assertEquals("First result", CollectionResult.Result.SUCCESSFUL, stuck.collectCallback().getResultForLastCollection());
+			Assert.assertTrue("Collect call blocked", System.currentTimeMillis()-start < 100);
+			awaitProbes(Collections.singletonList(stuck));
+			long elapsed = System.currentTimeMillis()-start;
+			log("Stuck probe timed out in %s ms", elapsed);
+			Assert.assertTrue("Timeout not applied: " + elapsed, elapsed < 1500);
+			Assert.assertEquals("Timed out probes", 1, client.getProbesTimedOut());
+			Assert.assertEquals("Result after timeout", CollectionResult.Result.FAILURE, stuck.collectCallback().getResultForLastCollection());
+			Assert.assertFalse("Stuck endpoint reported available", stuck.getAvailable());
+		} finally {
+			client.shutdown();
+		}
+	}
+	
+	/**
+	 * Runs one collect on every collector on the passed scheduler, then schedules another task behind them
+	 * @param scheduler The collector scheduler
+	 * @param collectors The collectors
+	 * @return an array of the time in ms. until all probes completed and the time in ms. the other task waited for a thread
+	 * @throws Exception thrown on any error
+	 */
+	protected long[] probeAll(ScheduledThreadPoolExecutor scheduler, final List<TestCollector> collectors) throws Exception {
+		long start = System.currentTimeMillis();
+		for(final TestCollector collector: collectors) {
+			scheduler.execute(new Runnable() {
+				public void run() {
+					collector.collectCallback();
+				}
+			});
+		}
+		final CountDownLatch otherRan = new CountDownLatch(1);
+		final long otherScheduled = System.currentTimeMillis();
+		final long[] otherDelay = new long[1];
+		scheduler.execute(new Runnable() {
+			public void run() {
+				otherDelay[0] = System.currentTimeMillis() - otherScheduled;
+				otherRan.countDown();
+			}
+		});
+		Assert.assertTrue("Other collector never ran", otherRan.await(30, TimeUnit.SECONDS));
+		// wait for the scheduler to hand off every collect call before waiting on the probes
+		while(scheduler.getCompletedTaskCount() < scheduler.getTaskCount()) Thread.sleep(5);
+		awaitProbes(collectors);
+		return new long[]{System.currentTimeMillis()-start, otherDelay[0]};
+	}
+	
+	/**
+	 * Waits for the passed collectors' asynchronous probes to complete
+	 * @param collectors The collectors
+	 * @throws Exception thrown on any error
+	 */
+	protected void awaitProbes(List<TestCollector> collectors) throws Exception {
+		long deadline = System.currentTimeMillis() + 30000;
+		for(TestCollector collector: collectors) {
+			while(collector.isProbeInFlight()) {
+				Assert.assertTrue("Probe of " + collector.getUrl() + " did not complete", System.currentTimeMillis() < deadline);
+				Thread.sleep(5);
+			}
+		}
+	}
+	
+	/**
+	 * Creates and starts collectors for the stub endpoints, every {@link #SLOW_EVERY}th of which is slow
+	 * @param count The number of endpoints
+	 * @param async true to probe asynchronously
+	 * @param client The asynchronous client
+	 * @param timeout The probe timeout in ms.
+	 * @return the collectors
+	 * @throws Exception thrown on any error
+	 */
+	protected List<TestCollector> collectors(int count, boolean async, AsyncHttpProbeClient client, int timeout) throws Exception {
+		List<TestCollector> collectors = new ArrayList<TestCollector>(count);
+		for(int i = 0; i < count; i++) {
+			String url = baseUrl + (async ? "async" : "blocking") + i + (i%SLOW_EVERY==0 ? "?delay=" + SLOW_LATENCY : "");
+			collectors.add(collector(url, async, client, timeout));
+		}
+		return collectors;
+	}
+	
+	/**
+	 * Creates and starts a collector
+	 * @param url The endpoint URL
+	 * @param async true to probe asynchronously
+	 * @param client The asynchronous client
+	 * @param timeout The probe timeout in ms.
+	 * @return the started collector
+	 * @throws Exception thrown on any error
+	 */
+	protected TestCollector collector(String url, boolean async, AsyncHttpProbeClient client, int timeout) throws Exception {
+		TestCollector collector = new TestCollector(url);
+		collector.setBeanName("TestURLCollector");
+		collector.setTracingNameSpace(new String[]{"URLCollectorTest"});
+		collector.setAsyncProbe(async);
+		collector.setProbeClient(client);
+		collector.setTimeout(timeout);
+		collector.setSuccessContentMatch("is UP");
+		collector.startCollector();
+		return collector;
+	}
+	
+	/**
+	 * <p>Title: TestCollector</p>
+	 * <p>Description: A URLCollector with the tracer set without going through the collector lifecycle</p> 
+	 */
+	public static class TestCollector extends URLCollector {
+		/**
+		 * Creates a new TestCollector
+		 * @param url The endpoint URL
+		 */
+		public TestCollector(String url) {
+			super(url);
+			tracer = TracerFactory.getTracer();
+		}
+	}
+	
+	/**
+	 * Formatted out logger
+	 * @param fmt The format
+	 * @param args The format arguments
+	 */
+	public static void log(String fmt, Object...args) {
+		System.out.println(String.format(fmt, args));
+	}
+}
@@ -127,7 +127,7 @@ public class CubeDestination extends BaseDestination implements WebSocketEventLi
 		}
 	}	
 	
-	/** The format of a Cube message */
+	/** The format of a Cube message, for reference. Messages are built by {@link #formatCubeMessage(IMetric)}. */
 	public static final String CUBE_MSG_FORMAT = "{\"type\":\"metric\", \"data\":{" + 
 			"\"host\":\"%s\"," +
 			"\"agent\":\"%s\"," +
@@ -137,21 +137,39 @@ public class CubeDestination extends BaseDestination implements WebSocketEventLi
 			"\"val\":%s" + 
 			"}}";
 	
-      
-      
+	/** Per thread message builder */
+	private static final ThreadLocal<StringBuilder> messageBuilder = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(256);
+		}
+	};
 	
+	/**
+	 * Formats the passed metric into a Cube message, equivalent to formatting {@link #CUBE_MSG_FORMAT} without parsing the format for every metric
+	 * @param metric The metric to format
+	 * @return the Cube message
+	 */
+	public static String formatCubeMessage(IMetric metric) {
+		StringBuilder b = messageBuilder.get();
+		b.setLength(0);
+		b.append("{\"type\":\"metric\", \"data\":{")
+			.append("\"host\":\"").append(metric.getHost()).append("\",")
+			.append("\"agent\":\"").append(metric.getAgent()).append("\",")
+			.append("\"fqn\":\"").append(metric.getFQN()).append("\",")
+			.append("\"type\":\"").append(metric.getType().name()).append("\",")
+			.append("\"ts\":").append(metric.getTime()).append(',')
+			.append("\"val\":").append(metric.getLongValue())
+			.append("}}");
+		return b.toString();
+	}
 	
 	/**
 	 * Writes the metric to cube
 	 * @param metric The metric to write
 	 */
 	protected void writeToCube(IMetric metric) {
-		String message = String.format(CUBE_MSG_FORMAT, 
-				metric.getHost(), metric.getAgent(),
-				metric.getFQN(), metric.getType().name(),
-				metric.getTime(), metric.getLongValue()
-		);
-		webSockClient.sendRequest(message);
+		webSockClient.sendRequest(formatCubeMessage(metric));
 	}
 	
 
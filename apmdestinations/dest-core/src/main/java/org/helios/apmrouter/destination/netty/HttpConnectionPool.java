@@ -0,0 +1,476 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.destination.netty;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.codec.http.HttpClientCodec;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+/**
+ * <p>Title: HttpConnectionPool</p>
+ * <p>Description: A bounded pool of persistent (keep-alive) HTTP client connections to one endpoint.</p>
+ * <p>Submitted requests are written to an idle pooled connection if there is one. Otherwise a new connection is opened, 
+ * up to <b><code>maxConnections</code></b>, and once that many are open requests are pipelined on the least loaded connection, 
+ * up to <b><code>pipelineDepth</code></b> in-flight requests per connection. Once every connection is at its pipeline depth, requests wait in a 
+ * pending queue bounded at <b><code>maxPending</code></b> and are written as responses complete. Requests submitted to a full pending queue are rejected.</p>
+ * <p>Responses arrive in request order on a connection, so each completed response is matched to the oldest in-flight request on its connection.
+ * A connection is closed and replaced if the server does not keep it alive. If a connection closes, its in-flight requests fail.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.destination.netty.HttpConnectionPool</code></p>
+ */
+
+public class HttpConnectionPool implements ChannelPipelineFactory {
+	/** The endpoint address */
+	protected final InetSocketAddress address;
+	/** The host header value sent with every request */
+	protected final String hostHeader;
+	/** The maximum number of connections */
+	protected final int maxConnections;
+	/** The maximum number of in-flight requests per connection */
+	protected final int pipelineDepth;
+	/** The maximum number of requests waiting for a connection */
+	protected final int maxPending;
+	/** The maximum aggregated response content size in bytes */
+	protected int maxResponseSize = 1024*1024;
+	/** The client bootstrap for pooled connections */
+	protected final ClientBootstrap bootstrap;
+	/** All the pooled channels */
+	protected final ChannelGroup channelGroup;
+	
+	/** The lock guarding the pool state */
+	protected final Object lock = new Object();
+	/** The open connections */
+	protected final List<PooledConnection> connections = new ArrayList<PooledConnection>();
+	/** The requests waiting for a connection */
+	protected final Queue<PendingRequest> pending = new ArrayDeque<PendingRequest>();
+	/** The number of connections being opened */
+	protected int connecting = 0;
+	/** Indicates if this pool has been closed */
+	protected boolean closed = false;
+	
+	/** The number of connections opened */
+	protected final AtomicLong connectionsOpened = new AtomicLong(0L);
+	/** The number of requests written */
+	protected final AtomicLong requestsSent = new AtomicLong(0L);
+	/** The number of responses received */
+	protected final AtomicLong responsesReceived = new AtomicLong(0L);
+	/** The number of requests that failed */
+	protected final AtomicLong requestsFailed = new AtomicLong(0L);
+	/** The number of requests rejected because the pending queue was full */
+	protected final AtomicLong requestsRejected = new AtomicLong(0L);
+	
+	/**
+	 * Creates a new HttpConnectionPool
+	 * @param channelFactory The channel factory to create connections with. Not released when this pool is closed.
+	 * @param address The endpoint address
+	 * @param hostHeader The host header value sent with every request
+	 * @param maxConnections The maximum number of connections
+	 * @param pipelineDepth The maximum number of in-flight requests per connection
+	 * @param maxPending The maximum number of requests waiting for a connection
+	 */
+	public HttpConnectionPool(ChannelFactory channelFactory, InetSocketAddress address, String hostHeader, int maxConnections, int pipelineDepth, int maxPending) {
+		if(maxConnections<1) throw new IllegalArgumentException("Invalid max connections [" + maxConnections + "]", new Throwable());
+		if(pipelineDepth<1) throw new IllegalArgumentException("Invalid pipeline depth [" + pipelineDepth + "]", new Throwable());
+		this.address = address;
+		this.hostHeader = hostHeader;
+		this.maxConnections = maxConnections;
+		this.pipelineDepth = pipelineDepth;
+		this.maxPending = maxPending;
+		channelGroup = new DefaultChannelGroup("HttpConnectionPool[" + address + "]");
+		bootstrap = new ClientBootstrap(channelFactory);
+		bootstrap.setOption("tcpNoDelay", true);
+		bootstrap.setOption("keepAlive", true);
+		bootstrap.setPipelineFactory(this);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.jboss.netty.channel.ChannelPipelineFactory#getPipeline()
+	 */
+	@Override
+	public ChannelPipeline getPipeline() throws Exception {
+		ChannelPipeline pipeline = Channels.pipeline();
+		pipeline.addLast("codec", new HttpClientCodec());
+		pipeline.addLast("aggregator", new HttpChunkAggregator(maxResponseSize));
+		pipeline.addLast("connection", new PooledConnection());
+		return pipeline;
+	}
+	
+	/**
+	 * Submits a request to the endpoint. The host and keep-alive headers are set if the request does not have them.
+	 * @param request The request to send
+	 * @param listener The listener notified of the response or failure
+	 * @return true if the request was sent or queued, false if it was rejected, in which case the listener has been notified of the failure
+	 */
+	public boolean submit(HttpRequest request, HttpResponseListener listener) {
+		if(!request.containsHeader(HttpHeaders.Names.HOST)) {
+			request.setHeader(HttpHeaders.Names.HOST, hostHeader);
+		}
+		if(!request.containsHeader(HttpHeaders.Names.CONNECTION)) {
+			request.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+		}
+		PendingRequest pr = new PendingRequest(request, listener);
+		String rejection = null;
+		synchronized(lock) {
+			if(closed) {
+				rejection = "HttpConnectionPool for [" + address + "] is closed";
+			} else {
+				PooledConnection conn = selectConnection();
+				if(conn!=null) {
+					conn.send(pr);
+					return true;
+				}
+				if(pending.size() >= maxPending) {
+					rejection = "HttpConnectionPool for [" + address + "] has [" + maxPending + "] pending requests";
+				} else {
+					pending.add(pr);
+					if(connections.size() + connecting < maxConnections) {
+						openConnection();
+					}
+					return true;
+				}
+			}
+		}
+		requestsRejected.incrementAndGet();
+		pr.fail(new IllegalStateException(rejection, new Throwable()));
+		return false;
+	}
+	
+	/**
+	 * Selects the connection to write a request to. Called with the lock held.
+	 * @return an idle connection, or the least loaded connection below the pipeline depth if no more connections can be opened, or null 
+	 */
+	protected PooledConnection selectConnection() {
+		PooledConnection least = null;
+		for(PooledConnection conn: connections) {
+			int load = conn.inFlight.size();
+			if(load==0) return conn;
+			if(load < pipelineDepth && (least==null || load < least.inFlight.size())) {
+				least = conn;
+			}
+		}
+		if(least!=null && connections.size() + connecting >= maxConnections) {
+			return least;
+		}
+		return null;
+	}
+	
+	/**
+	 * Opens a new connection. Called with the lock held.
+	 */
+	protected void openConnection() {
+		connecting++;
+		bootstrap.connect(address).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture f) throws Exception {
+				List<PendingRequest> failed = null;
+				synchronized(lock) {
+					connecting--;
+					if(f.isSuccess()) {
+						PooledConnection conn = f.getChannel().getPipeline().get(PooledConnection.class);
+						channelGroup.add(f.getChannel());
+						connectionsOpened.incrementAndGet();
+						if(closed) {
+							f.getChannel().close();
+							return;
+						}
+						connections.add(conn);
+						drainPending(conn);
+					} else if(connections.isEmpty() && connecting==0) {
+						// nothing will ever service the pending requests
+						failed = new ArrayList<PendingRequest>(pending);
+						pending.clear();
+					}
+				}
+				if(failed!=null) {
+					for(PendingRequest pr: failed) {
+						pr.fail(f.getCause());
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Writes pending requests to the passed connection up to its pipeline depth. Called with the lock held.
+	 * @param conn The connection to write to
+	 */
+	protected void drainPending(PooledConnection conn) {
+		while(!pending.isEmpty() && conn.inFlight.size() < pipelineDepth) {
+			conn.send(pending.poll());
+		}
+	}
+	
+	/**
+	 * Closes all pooled connections and fails all pending requests
+	 */
+	public void close() {
+		List<PendingRequest> failed;
+		synchronized(lock) {
+			closed = true;
+			failed = new ArrayList<PendingRequest>(pending);
+			pending.clear();
+		}
+		channelGroup.close().awaitUninterruptibly();
+		for(PendingRequest pr: failed) {
+			pr.fail(new ClosedChannelException());
+		}
+	}
+	
+	/**
+	 * Returns the number of open connections
+	 * @return the number of open connections
+	 */
+	public int getConnectionCount() {
+		synchronized(lock) {
+			return connections.size();
+		}
+	}
+	
+	/**
+	 * Returns the number of requests waiting for a connection
+	 * @return the number of pending requests
+	 */
+	public int getPendingCount() {
+		synchronized(lock) {
+			return pending.size();
+		}
+	}
+	
+	/**
+	 * Returns the number of requests written and awaiting a response
+	 * @return the number of in-flight requests
+	 */
+	public int getInFlightCount() {
+		synchronized(lock) {
+			int total = 0;
+			for(PooledConnection conn: connections) {
+				total += conn.inFlight.size();
+			}
+			return total;
+		}
+	}
+	
+	/**
+	 * Returns the total number of connections opened
+	 * @return the number of connections opened
+	 */
+	public long getConnectionsOpened() {
+		return connectionsOpened.get();
+	}
+	
+	/**
+	 * Returns the total number of requests written
+	 * @return the number of requests written
+	 */
+	public long getRequestsSent() {
+		return requestsSent.get();
+	}
+	
+	/**
+	 * Returns the total number of responses received
+	 * @return the number of responses received
+	 */
+	public long getResponsesReceived() {
+		return responsesReceived.get();
+	}
+	
+	/**
+	 * Returns the total number of requests that failed
+	 * @return the number of failed requests
+	 */
+	public long getRequestsFailed() {
+		return requestsFailed.get();
+	}
+	
+	/**
+	 * Returns the total number of requests rejected because the pending queue was full
+	 * @return the number of rejected requests
+	 */
+	public long getRequestsRejected() {
+		return requestsRejected.get();
+	}
+	
+	/**
+	 * Sets the maximum aggregated response content size in bytes for connections opened from now on
+	 * @param maxResponseSize the maximum response size in bytes
+	 */
+	public void setMaxResponseSize(int maxResponseSize) {
+		this.maxResponseSize = maxResponseSize;
+	}
+	
+	/**
+	 * <p>Title: PendingRequest</p>
+	 * <p>Description: A submitted request and its listener</p> 
+	 */
+	protected class PendingRequest {
+		/** The request */
+		final HttpRequest request;
+		/** The listener */
+		final HttpResponseListener listener;
+		
+		/**
+		 * Creates a new PendingRequest
+		 * @param request The request
+		 * @param listener The listener
+		 */
+		PendingRequest(HttpRequest request, HttpResponseListener listener) {
+			this.request = request;
+			this.listener = listener;
+		}
+		
+		/**
+		 * Notifies the listener of a failure
+		 * @param cause The cause of the failure
+		 */
+		void fail(Throwable cause) {
+			requestsFailed.incrementAndGet();
+			if(listener!=null) listener.onFailure(request, cause);
+		}
+		
+		/**
+		 * Notifies the listener of the response
+		 * @param response The response
+		 */
+		void complete(HttpResponse response) {
+			responsesReceived.incrementAndGet();
+			if(listener!=null) listener.onResponse(request, response);
+		}
+	}
+	
+	/**
+	 * <p>Title: PooledConnection</p>
+	 * <p>Description: The terminal handler of a pooled connection, tracking the connection's in-flight requests</p> 
+	 */
+	protected class PooledConnection extends SimpleChannelUpstreamHandler {
+		/** The requests written on this connection awaiting a response, in the order written */
+		final Queue<PendingRequest> inFlight = new ArrayDeque<PendingRequest>(pipelineDepth);
+		/** The connection's channel */
+		volatile Channel channel = null;
+		
+		/**
+		 * Writes a request on this connection. Called with the pool lock held, so requests are written in the order they are queued.
+		 * @param pr The request to write
+		 */
+		void send(PendingRequest pr) {
+			inFlight.add(pr);
+			requestsSent.incrementAndGet();
+			channel.write(pr.request);
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#channelOpen(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelStateEvent)
+		 */
+		@Override
+		public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+			channel = e.getChannel();
+			super.channelOpen(ctx, e);
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#messageReceived(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.MessageEvent)
+		 */
+		@Override
+		public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+			if(!(e.getMessage() instanceof HttpResponse)) {
+				super.messageReceived(ctx, e);
+				return;
+			}
+			HttpResponse response = (HttpResponse)e.getMessage();
+			boolean keepAlive = HttpHeaders.isKeepAlive(response);
+			PendingRequest pr;
+			synchronized(lock) {
+				pr = inFlight.poll();
+				if(keepAlive) {
+					drainPending(this);
+				} else {
+					connections.remove(this);
+				}
+			}
+			if(pr!=null) pr.complete(response);
+			if(!keepAlive) e.getChannel().close();
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#channelClosed(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelStateEvent)
+		 */
+		@Override
+		public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+			List<PendingRequest> failed;
+			synchronized(lock) {
+				connections.remove(this);
+				failed = new ArrayList<PendingRequest>(inFlight);
+				inFlight.clear();
+				if(!closed && !pending.isEmpty() && connections.size() + connecting < maxConnections) {
+					openConnection();
+				}
+			}
+			ClosedChannelException cce = null;
+			for(PendingRequest pr: failed) {
+				if(cce==null) cce = new ClosedChannelException();
+				pr.fail(cce);
+			}
+			super.channelClosed(ctx, e);
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#exceptionCaught(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ExceptionEvent)
+		 */
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+			e.getChannel().close();
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.destination.netty;
+
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+/**
+ * <p>Title: HttpResponseListener</p>
+ * <p>Description: Defines a class that is notified of the outcome of an {@link HttpRequest} submitted to an {@link HttpConnectionPool}.
+ * Callbacks are made on a netty worker thread, so implementations should not block.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.destination.netty.HttpResponseListener</code></p>
+ */
+
+public interface HttpResponseListener {
+	/**
+	 * Callback when the response to the submitted request is received
+	 * @param request The submitted request
+	 * @param response The complete (aggregated) response
+	 */
+	public void onResponse(HttpRequest request, HttpResponse response);
+	
+	/**
+	 * Callback when the submitted request could not be sent or its connection failed before the response was received
+	 * @param request The submitted request
+	 * @param cause The cause of the failure
+	 */
+	public void onFailure(HttpRequest request, Throwable cause);
+}
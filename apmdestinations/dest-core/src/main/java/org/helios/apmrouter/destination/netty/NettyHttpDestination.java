@@ -26,15 +26,26 @@ package org.helios.apmrouter.destination.netty;
 
 import java.util.Collection;
 
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+
 /**
  * <p>Title: NettyHttpDestination</p>
- * <p>Description: Base netty destination for Http endpoints</p> 
+ * <p>Description: Base netty destination for Http endpoints. Requests should be submitted through the destination's {@link HttpConnectionPool}
+ * which keeps persistent connections to the endpoint open across requests.</p> 
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>org.helios.apmrouter.destination.netty.NettyHttpDestination</code></p>
  */
 
 public class NettyHttpDestination extends NettyTCPDestination {
+	/** The pool of persistent connections to the endpoint */
+	protected HttpConnectionPool httpPool = null;
+	/** The maximum number of pooled connections to the endpoint */
+	protected int maxConnections = 4;
+	/** The maximum number of in-flight requests per pooled connection */
+	protected int pipelineDepth = 4;
+	/** The maximum number of requests waiting for a pooled connection */
+	protected int maxPendingRequests = 1000;
 
 	/**
 	 * Creates a new NettyHttpDestination
@@ -58,4 +69,123 @@ public class NettyHttpDestination extends NettyTCPDestination {
 	public NettyHttpDestination() {
 	}
 
+	/**
+	 * Creates the connection pool once the channel factory and socket address are built.
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.destination.netty.NettyDestination#doStart()
+	 */
+	@Override
+	protected void doStart() throws Exception {
+		super.doStart();
+		httpPool = new HttpConnectionPool(channelFactory, socketAddress, host + ":" + port, maxConnections, pipelineDepth, maxPendingRequests);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.destination.netty.NettyDestination#doStop()
+	 */
+	@Override
+	protected void doStop() {
+		if(httpPool!=null) {
+			httpPool.close();
+			httpPool = null;
+		}
+		super.doStop();
+	}
+
+	/**
+	 * Returns the maximum number of pooled connections to the endpoint
+	 * @return the maximum number of pooled connections
+	 */
+	@ManagedAttribute(description="The maximum number of pooled connections to the endpoint")
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Sets the maximum number of pooled connections to the endpoint
+	 * @param maxConnections the maximum number of pooled connections
+	 */
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Returns the maximum number of in-flight requests per pooled connection
+	 * @return the maximum number of in-flight requests per connection
+	 */
+	@ManagedAttribute(description="The maximum number of in-flight requests per pooled connection")
+	public int getPipelineDepth() {
+		return pipelineDepth;
+	}
+
+	/**
+	 * Sets the maximum number of in-flight requests per pooled connection
+	 * @param pipelineDepth the maximum number of in-flight requests per connection
+	 */
+	public void setPipelineDepth(int pipelineDepth) {
+		this.pipelineDepth = pipelineDepth;
+	}
+
+	/**
+	 * Returns the maximum number of requests waiting for a pooled connection
+	 * @return the maximum number of pending requests
+	 */
+	@ManagedAttribute(description="The maximum number of requests waiting for a pooled connection")
+	public int getMaxPendingRequests() {
+		return maxPendingRequests;
+	}
+
+	/**
+	 * Sets the maximum number of requests waiting for a pooled connection
+	 * @param maxPendingRequests the maximum number of pending requests
+	 */
+	public void setMaxPendingRequests(int maxPendingRequests) {
+		this.maxPendingRequests = maxPendingRequests;
+	}
+	
+	/**
+	 * Returns the number of open pooled connections
+	 * @return the number of open pooled connections
+	 */
+	@ManagedAttribute(description="The number of open pooled connections")
+	public int getPooledConnections() {
+		return httpPool==null ? 0 : httpPool.getConnectionCount();
+	}
+	
+	/**
+	 * Returns the total number of pooled connections opened
+	 * @return the number of pooled connections opened
+	 */
+	@ManagedAttribute(description="The total number of pooled connections opened")
+	public long getPooledConnectionsOpened() {
+		return httpPool==null ? 0 : httpPool.getConnectionsOpened();
+	}
+	
+	/**
+	 * Returns the number of requests written and awaiting a response
+	 * @return the number of in-flight requests
+	 */
+	@ManagedAttribute(description="The number of requests written and awaiting a response")
+	public int getInFlightRequests() {
+		return httpPool==null ? 0 : httpPool.getInFlightCount();
+	}
+	
+	/**
+	 * Returns the number of requests waiting for a pooled connection
+	 * @return the number of pending requests
+	 */
+	@ManagedAttribute(description="The number of requests waiting for a pooled connection")
+	public int getPendingRequests() {
+		return httpPool==null ? 0 : httpPool.getPendingCount();
+	}
+	
+	/**
+	 * Returns the number of requests rejected because too many were pending
+	 * @return the number of rejected requests
+	 */
+	@ManagedAttribute(description="The number of requests rejected because too many were pending")
+	public long getRejectedRequests() {
+		return httpPool==null ? 0 : httpPool.getRequestsRejected();
+	}
 }
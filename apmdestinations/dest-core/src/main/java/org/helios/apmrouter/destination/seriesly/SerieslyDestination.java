@@ -27,22 +27,21 @@ package org.helios.apmrouter.destination.seriesly;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.helios.apmrouter.destination.accumulator.MetricAccumulator;
 import org.helios.apmrouter.destination.accumulator.MetricFlushReceiver;
-import org.helios.apmrouter.destination.netty.NettyTCPDestination;
+import org.helios.apmrouter.destination.netty.HttpResponseListener;
+import org.helios.apmrouter.destination.netty.NettyHttpDestination;
 import org.helios.apmrouter.metric.IMetric;
 import org.helios.apmrouter.metric.JSONFormatterImpl;
 import org.helios.apmrouter.util.SystemClock;
-import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBufferFactory;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.buffer.DirectChannelBufferFactory;
-import org.jboss.netty.channel.ChannelFuture;
-import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.Channels;
@@ -50,6 +49,7 @@ import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpVersion;
 import org.jboss.netty.handler.logging.LoggingHandler;
 import org.jboss.netty.logging.InternalLogLevel;
@@ -57,7 +57,8 @@ import org.springframework.jmx.export.annotation.ManagedAttribute;
 
 /**
  * <p>Title: SerieslyDestination</p>
- * <p>Description: Metric destination for the <a href="https://github.com/dustin/seriesly">Seriesly</a> time series database.</p> 
+ * <p>Description: Metric destination for the <a href="https://github.com/dustin/seriesly">Seriesly</a> time series database.
+ * Accumulated metrics are posted in batches over the destination's pooled keep-alive connections.</p> 
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>org.helios.apmrouter.destination.seriesly.SerieslyDestination</code></p>
@@ -65,7 +66,7 @@ import org.springframework.jmx.export.annotation.ManagedAttribute;
  * http://localhost:3133/helios/_query?from=2012&to=2013&group=3600000&ptr=/data/localhost_eggs-cellent_platform=os_resource=cpu_cpu=all:Sys/value&reducer=avg
  */
 
-public class SerieslyDestination extends NettyTCPDestination implements MetricFlushReceiver  {
+public class SerieslyDestination extends NettyHttpDestination implements MetricFlushReceiver  {
 	/** The JSON formatter */
 	protected JSONFormatterImpl jsonFormatter = new JSONFormatterImpl(true, false);
 	/** THe metric accumulator */
@@ -79,8 +80,8 @@ public class SerieslyDestination extends NettyTCPDestination implements MetricFl
 	protected int sizeTrigger = 100;
 	/** Indicates if the db has been created */
 	protected final AtomicBoolean dbCreated = new AtomicBoolean(false);
-	/** The URI prefix for the seriesly server data submission endpoint */
-	protected String uriPrefixTemplate = null;
+	/** The URI prefix for the seriesly server data submission endpoint, completed with the submission timestamp */
+	protected String uriPrefix = null;
 	/** The content channel buffer factory */
 	protected static final ChannelBufferFactory channelBufferFactory = new DirectChannelBufferFactory();
 	
@@ -117,29 +118,34 @@ public class SerieslyDestination extends NettyTCPDestination implements MetricFl
 	 */
 	protected synchronized boolean createDb() {
 		info("Validating Seriesly DB [", dbName, "]");
-		HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.PUT, String.format("http://%s:%s/%s", host, port, dbName));
-		request.setHeader(HttpHeaders.Names.HOST, host);
-		request.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);		
-		ChannelFutureListener fl = new ChannelFutureListener() {
+		HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.PUT, "/" + dbName);
+		final CountDownLatch latch = new CountDownLatch(1);
+		httpPool.submit(request, new HttpResponseListener() {
 			@Override
-			public void operationComplete(ChannelFuture f) throws Exception {
-				if(f.isSuccess()) {
+			public void onResponse(HttpRequest request, HttpResponse response) {
+				// an existing db is refused with a client error, which also validates it
+				if(response.getStatus().getCode() < 500) {
 					dbCreated.set(true);
-					info("Validated Seriesly DB [", dbName, "]");
+					info("Validated Seriesly DB [", dbName, "] (", response.getStatus(), ")");
 				} else {
 					dbCreated.set(false);
-					error("Failed to validate Seriesly DB [", dbName, "]", f.getCause());
-					Throwable t = f.getCause().getCause();
-					if(t!=null) {
-						t.printStackTrace(System.err);
-					}
-				}				
+					error("Failed to validate Seriesly DB [", dbName, "] (", response.getStatus(), ")");
+				}
+				latch.countDown();
+			}
+			@Override
+			public void onFailure(HttpRequest request, Throwable cause) {
+				dbCreated.set(false);
+				error("Failed to validate Seriesly DB [", dbName, "]", cause);
+				latch.countDown();
+			}
+		});
+		try {
+			if(!latch.await(1000, TimeUnit.MILLISECONDS)) {
+				return false;
 			}
-		};
-		
-		ChannelFuture cf = channel.write(request);
-		cf.addListener(fl);
-		if(!cf.awaitUninterruptibly(1000)) {
+		} catch (InterruptedException iex) {
+			Thread.interrupted();
 			return false;
 		}
 		return dbCreated.get();
@@ -148,13 +154,13 @@ public class SerieslyDestination extends NettyTCPDestination implements MetricFl
 	/**
 	 * <p>Creates the seriesly URI prefix.
 	 * {@inheritDoc}
-	 * @see org.helios.apmrouter.destination.netty.NettyDestination#doStart()
+	 * @see org.helios.apmrouter.destination.netty.NettyHttpDestination#doStart()
 	 */
 	@Override
 	protected void doStart() throws Exception {
 		super.doStart();
 		accumulator = new MetricAccumulator(this, sizeTrigger, sizeTrigger, timeTrigger, TimeUnit.MILLISECONDS);
-		uriPrefixTemplate =  String.format("http://%s:%s/%s?ts=%s", host, port, dbName, "%s");
+		uriPrefix = "/" + dbName + "?ts=";
 		createDb();
 	}
 	
@@ -209,45 +215,31 @@ public class SerieslyDestination extends NettyTCPDestination implements MetricFl
 		} catch (Exception e) {
 			incr("MetricsForwardFailures", metricCount);
 			error("JSON Formatting Error", e);
+			return;
 		}
-		String uri = String.format(uriPrefixTemplate, SystemClock.time());
+		String uri = new StringBuilder(uriPrefix.length() + 13).append(uriPrefix).append(SystemClock.time()).toString();
 		final HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, uri);
-		request.setHeader(HttpHeaders.Names.HOST, host);
-		request.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
 		request.setHeader(HttpHeaders.Names.CONTENT_TYPE, "application/json;charset=UTF-8");
 		request.setHeader(HttpHeaders.Names.CONTENT_LENGTH, content.length);
-		//request.setContent(ChannelBuffers.copiedBuffer(JSON_OPEN, metricText, JSON_CLOSE));
 		request.setContent(ChannelBuffers.wrappedBuffer(content));
 		content = null;
-		//request.setHeader(HttpHeaders.Names.ACCEPT_ENCODING, HttpHeaders.Values.GZIP);
-		((ClientBootstrap)bstrap).connect(socketAddress).addListener(new ChannelFutureListener() {
+		httpPool.submit(request, new HttpResponseListener() {
 			@Override
-			public void operationComplete(ChannelFuture f) throws Exception {
-				if(!f.isSuccess()) {
-					error("Failed to forward [", metricCount, "] metrics");
-					incr("MetricsForwardFailures", metricCount);
+			public void onResponse(HttpRequest request, HttpResponse response) {
+				if(response.getStatus().getCode() < 300) {
+					debug("Successfully Forwarded [", metricCount, "] metrics");
+					incr("MetricsForwarded", metricCount);
 				} else {
-					f.getChannel().write(request).addListener(new ChannelFutureListener() {
-						@Override
-						public void operationComplete(ChannelFuture f) throws Exception {
-							if(f.isSuccess()) {
-								debug("Successfully Forwarded [", metricCount, "] metrics");
-								incr("MetricsForwarded", metricCount);
-							} else {
-								error("Failed to forward [", metricCount, "] metrics");
-								incr("MetricsForwardFailures", metricCount);
-								f.getCause().printStackTrace(System.err);
-								Throwable t = f.getCause().getCause();
-								if(t!=null) {
-									t.printStackTrace(System.err);
-								}
-							}
-						}
-					});
+					error("Failed to forward [", metricCount, "] metrics (", response.getStatus(), ")");
+					incr("MetricsForwardFailures", metricCount);
 				}
 			}
+			@Override
+			public void onFailure(HttpRequest request, Throwable cause) {
+				error("Failed to forward [", metricCount, "] metrics", cause);
+				incr("MetricsForwardFailures", metricCount);
+			}
 		});
-		
 	}	
 	
 	
@@ -0,0 +1,254 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.apmrouter.destination.netty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.helios.apmrouter.destination.netty.HttpConnectionPool;
+import org.helios.apmrouter.destination.netty.HttpResponseListener;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpClientCodec;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpServerCodec;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Title: HttpConnectionPoolTestCase</p>
+ * <p>Description: Test cases for {@link HttpConnectionPool} against a local stub HTTP server</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.apmrouter.destination.netty.HttpConnectionPoolTestCase</code></p>
+ */
+public class HttpConnectionPoolTestCase {
+	/** The number of batches posted per test */
+	public static final int BATCHES = 2000;
+	/** The batch content */
+	public static final byte[] BATCH = new byte[4096];
+	
+	/** The stub server channel factory */
+	protected ChannelFactory serverFactory;
+	/** The stub server channel */
+	protected Channel serverChannel;
+	/** The stub server address */
+	protected InetSocketAddress address;
+	/** The client channel factory */
+	protected ChannelFactory clientFactory;
+	/** The number of connections the stub server accepted */
+	protected final AtomicInteger accepted = new AtomicInteger(0);
+	/** If true, the stub server closes every connection after responding */
+	protected volatile boolean closeAfterResponse = false;
+	
+	/**
+	 * Starts the stub server which responds to every request with an empty 200
+	 */
+	@Before
+	public void startServer() {
+		serverFactory = new NioServerSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
+		ServerBootstrap sb = new ServerBootstrap(serverFactory);
+		sb.setPipelineFactory(new ChannelPipelineFactory() {
+			@Override
+			public ChannelPipeline getPipeline() throws Exception {
+				return Channels.pipeline(new HttpServerCodec(), new SimpleChannelUpstreamHandler() {
+					@Override
+					public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+						accepted.incrementAndGet();
+					}
+					@Override
+					public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+						if(!(e.getMessage() instanceof HttpRequest)) return;
+						HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+						response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, 0);
+						if(closeAfterResponse) {
+							response.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+							e.getChannel().write(response).addListener(ChannelFutureListener.CLOSE);
+						} else {
+							e.getChannel().write(response);
+						}
+					}
+				});
+			}
+		});
+		serverChannel = sb.bind(new InetSocketAddress("127.0.0.1", 0));
+		address = (InetSocketAddress)serverChannel.getLocalAddress();
+		clientFactory = new NioClientSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
+	}
+	
+	/**
+	 * Stops the stub server
+	 */
+	@After
+	public void stopServer() {
+		serverChannel.close().awaitUninterruptibly();
+		serverFactory.releaseExternalResources();
+		clientFactory.releaseExternalResources();
+	}
+	
+	/**
+	 * Creates a batch post request
+	 * @return the request
+	 */
+	protected static HttpRequest batchRequest() {
+		HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/helios?ts=" + System.currentTimeMillis());
+		request.setHeader(HttpHeaders.Names.CONTENT_LENGTH, BATCH.length);
+		request.setContent(ChannelBuffers.wrappedBuffer(BATCH));
+		return request;
+	}
+	
+	/**
+	 * Posts the batches through a pool and validates that every batch completes over no more than the pool's max connections,
+	 * then posts the same batches opening a connection per batch and validates the pool's batch rate is higher.
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testConnectionReuse() throws Exception {
+		HttpConnectionPool pool = new HttpConnectionPool(clientFactory, address, "localhost", 4, 4, BATCHES);
+		// warm up both paths
+		postPooled(pool, 200);
+		postPerConnection(200);
+		accepted.set(0);
+		long start = System.nanoTime();
+		postPooled(pool, BATCHES);
+		long pooledNs = System.nanoTime() - start;
+		assertEquals("Pooled connections accepted", 0, accepted.get());
+		assertTrue("Connections opened: " + pool.getConnectionsOpened(), pool.getConnectionsOpened() <= 4);
+		assertEquals("Responses", BATCHES + 200, pool.getResponsesReceived());
+		assertEquals("Failures", 0, pool.getRequestsFailed());
+		pool.close();
+		
+		start = System.nanoTime();
+		postPerConnection(BATCHES);
+		long perConnectionNs = System.nanoTime() - start;
+		assertEquals("Per batch connections accepted", BATCHES, accepted.get());
+		double pooledRate = BATCHES / (pooledNs / 1000000000d), perConnectionRate = BATCHES / (perConnectionNs / 1000000000d);
+		System.out.println(String.format("Batches/s pooled: %.0f, connection per batch: %.0f", pooledRate, perConnectionRate));
+		assertTrue("Pooled rate [" + pooledRate + "] not higher than per connection rate [" + perConnectionRate + "]", pooledRate > perConnectionRate);
+	}
+	
+	/**
+	 * Validates that connections the server does not keep alive are replaced and all requests still complete
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testServerClose() throws Exception {
+		closeAfterResponse = true;
+		HttpConnectionPool pool = new HttpConnectionPool(clientFactory, address, "localhost", 2, 1, 100);
+		postPooled(pool, 100);
+		assertEquals("Responses", 100, pool.getResponsesReceived());
+		assertEquals("Connections opened", 100, pool.getConnectionsOpened());
+		assertEquals("Failures", 0, pool.getRequestsFailed());
+		pool.close();
+	}
+	
+	/**
+	 * Posts batches through the passed pool and waits for all the responses
+	 * @param pool The pool
+	 * @param count The number of batches
+	 * @throws Exception thrown on any error
+	 */
+	protected void postPooled(HttpConnectionPool pool, int count) throws Exception {
+		final CountDownLatch latch = new CountDownLatch(count);
+		final AtomicInteger failed = new AtomicInteger(0);
+		HttpResponseListener listener = new HttpResponseListener() {
+			@Override
+			public void onResponse(HttpRequest request, HttpResponse response) {
+				latch.countDown();
+			}
+			@Override
+			public void onFailure(HttpRequest request, Throwable cause) {
+				failed.incrementAndGet();
+				latch.countDown();
+			}
+		};
+		for(int i = 0; i < count; i++) {
+			pool.submit(batchRequest(), listener);
+		}
+		assertTrue("Timed out waiting for responses", latch.await(30, TimeUnit.SECONDS));
+		assertEquals("Failed requests", 0, failed.get());
+	}
+	
+	/**
+	 * Posts batches opening a new connection for each one, as the seriesly destination did, and waits for all the responses
+	 * @param count The number of batches
+	 * @throws Exception thrown on any error
+	 */
+	protected void postPerConnection(int count) throws Exception {
+		final CountDownLatch latch = new CountDownLatch(count);
+		ClientBootstrap cb = new ClientBootstrap(clientFactory);
+		cb.setPipelineFactory(new ChannelPipelineFactory() {
+			@Override
+			public ChannelPipeline getPipeline() throws Exception {
+				return Channels.pipeline(new HttpClientCodec(), new SimpleChannelUpstreamHandler() {
+					@Override
+					public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+						latch.countDown();
+						e.getChannel().close();
+					}
+				});
+			}
+		});
+		for(int i = 0; i < count; i++) {
+			cb.connect(address).addListener(new ChannelFutureListener() {
+				@Override
+				public void operationComplete(ChannelFuture f) throws Exception {
+					if(f.isSuccess()) {
+						f.getChannel().write(batchRequest());
+					}
+				}
+			});
+		}
+		assertTrue("Timed out waiting for responses", latch.await(30, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,462 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.destination.mongodb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bson.BSON;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * <p>Title: CoalescingUpsertBuffer</p>
+ * <p>Description: Accumulates pending upserts keyed by collection and entity key, collapsing repeated updates to the same 
+ * entity into a single upsert, and flushes them to an {@link UpsertWriter} in batches bounded by operation count and bytes.</p> 
+ * <p>The buffer is bounded by a maximum number of pending entities and bytes. Updates to an entity that is already pending always
+ * succeed since they do not grow the buffer, while new entities wait up to the offer timeout for a flush to make room and are rejected after that, 
+ * leaving the caller to retry or discard them.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.destination.mongodb.CoalescingUpsertBuffer</code></p>
+ */
+
+public class CoalescingUpsertBuffer {
+	/** The pending upserts keyed by collection and entity key, in the order they were first offered */
+	protected final Map<String, PendingUpsert> pending = new LinkedHashMap<String, PendingUpsert>();
+	/** The buffer lock */
+	protected final ReentrantLock lock = new ReentrantLock();
+	/** Signalled when a drain makes room in the buffer */
+	protected final Condition notFull = lock.newCondition();
+	/** Serializes flushes so batches are written in order */
+	protected final ReentrantLock flushLock = new ReentrantLock();
+	/** The writer flushed batches are written to */
+	protected final UpsertWriter writer;
+	/** The maximum number of pending entities */
+	protected volatile int maxPending;
+	/** The maximum estimated bytes of pending upserts */
+	protected volatile long maxPendingBytes;
+	/** The maximum number of operations in one written batch */
+	protected volatile int maxBatchOps;
+	/** The maximum estimated bytes of one written batch */
+	protected volatile long maxBatchBytes;
+	/** The estimated bytes of the pending upserts */
+	protected long pendingBytes = 0;
+	
+	/** The number of offered updates */
+	protected final AtomicLong offered = new AtomicLong(0);
+	/** The number of offered updates merged into an already pending upsert */
+	protected final AtomicLong coalesced = new AtomicLong(0);
+	/** The number of offered updates rejected because the buffer was full */
+	protected final AtomicLong rejected = new AtomicLong(0);
+	/** The number of upserts written */
+	protected final AtomicLong written = new AtomicLong(0);
+	/** The number of upserts that failed to write */
+	protected final AtomicLong failed = new AtomicLong(0);
+	/** The number of batches written */
+	protected final AtomicLong batches = new AtomicLong(0);
+	
+	/**
+	 * <p>Title: UpsertWriter</p>
+	 * <p>Description: Writes a batch of coalesced upserts to the store</p> 
+	 */
+	public static interface UpsertWriter {
+		/**
+		 * Writes the passed batch of upserts
+		 * @param batch The upserts to write
+		 * @throws PartialWriteException thrown if some of the upserts in the batch could not be written
+		 * @throws Exception thrown if the batch could not be written
+		 */
+		public void write(List<PendingUpsert> batch) throws Exception;
+	}
+	
+	/**
+	 * <p>Title: PartialWriteException</p>
+	 * <p>Description: Thrown by an {@link UpsertWriter} when some of the upserts in a batch could not be written, identifying the failed ones</p> 
+	 */
+	public static class PartialWriteException extends Exception {
+		/**  */
+		private static final long serialVersionUID = -2304836482263470530L;
+		/** The upserts that could not be written */
+		protected final List<PendingUpsert> failedUpserts;
+		
+		/**
+		 * Creates a new PartialWriteException
+		 * @param failedUpserts The upserts that could not be written
+		 * @param cause The error of the last failed upsert
+		 */
+		public PartialWriteException(List<PendingUpsert> failedUpserts, Throwable cause) {
+			super("Failed to write [" + failedUpserts.size() + "] upserts", cause);
+			this.failedUpserts = failedUpserts;
+		}
+
+		/**
+		 * Returns the upserts that could not be written
+		 * @return the failed upserts
+		 */
+		public List<PendingUpsert> getFailedUpserts() {
+			return failedUpserts;
+		}
+	}
+	
+	/**
+	 * Creates a new CoalescingUpsertBuffer
+	 * @param writer The writer flushed batches are written to
+	 * @param maxPending The maximum number of pending entities
+	 * @param maxPendingBytes The maximum estimated bytes of pending upserts
+	 * @param maxBatchOps The maximum number of operations in one written batch
+	 * @param maxBatchBytes The maximum estimated bytes of one written batch
+	 */
+	public CoalescingUpsertBuffer(UpsertWriter writer, int maxPending, long maxPendingBytes, int maxBatchOps, long maxBatchBytes) {
+		if(writer==null) throw new IllegalArgumentException("The passed writer was null", new Throwable());
+		this.writer = writer;
+		this.maxPending = maxPending;
+		this.maxPendingBytes = maxPendingBytes;
+		this.maxBatchOps = maxBatchOps;
+		this.maxBatchBytes = maxBatchBytes;
+	}
+	
+	/**
+	 * Offers an update to the entity matched by the passed query in the passed collection.
+	 * If an upsert is already pending for the entity, the <code>$set</code> fields overwrite the pending ones and 
+	 * the <code>$inc</code> amounts are added to the pending ones.
+	 * @param collection The collection name
+	 * @param key The entity key, unique within the collection
+	 * @param query The query matching the entity
+	 * @param set The fields to set, or null
+	 * @param inc The numeric fields to increment, or null
+	 * @param timeout The maximum time in ms. to wait for room in the buffer for a new entity
+	 * @return true if the update was accepted, false if it was rejected because the buffer was full
+	 */
+	public boolean offer(String collection, String key, DBObject query, DBObject set, DBObject inc, long timeout) {
+		offered.incrementAndGet();
+		final String pkey = collection + "/" + key;
+		PendingUpsert upsert = null;
+		lock.lock();
+		try {
+			PendingUpsert existing = pending.get(pkey);
+			if(existing!=null) {
+				existing.merge(set, inc);
+				coalesced.incrementAndGet();
+				return true;
+			}
+			upsert = new PendingUpsert(collection, query, set, inc);
+			long nanos = TimeUnit.NANOSECONDS.convert(timeout, TimeUnit.MILLISECONDS);
+			while(pending.size() >= maxPending || pendingBytes + upsert.bytes > maxPendingBytes) {
+				if(nanos <= 0) {
+					rejected.incrementAndGet();
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+				// the entity may have been offered by another thread while this one waited
+				existing = pending.get(pkey);
+				if(existing!=null) {
+					existing.merge(set, inc);
+					coalesced.incrementAndGet();
+					return true;
+				}
+			}
+			pending.put(pkey, upsert);
+			pendingBytes += upsert.bytes;
+			return true;
+		} catch (InterruptedException iex) {
+			Thread.currentThread().interrupt();
+			rejected.incrementAndGet();
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Removes and returns the oldest pending upserts up to the batch operation and byte limits
+	 * @return the drained batch, which is empty if nothing is pending
+	 */
+	protected List<PendingUpsert> drain() {
+		final int ops = maxBatchOps;
+		final long bytes = maxBatchBytes;
+		lock.lock();
+		try {
+			List<PendingUpsert> batch = new ArrayList<PendingUpsert>(Math.min(ops, pending.size()));
+			long batchBytes = 0;
+			Iterator<PendingUpsert> iter = pending.values().iterator();
+			while(iter.hasNext() && batch.size() < ops) {
+				PendingUpsert upsert = iter.next();
+				if(!batch.isEmpty() && batchBytes + upsert.bytes > bytes) break;
+				iter.remove();
+				batch.add(upsert);
+				batchBytes += upsert.bytes;
+			}
+			if(!batch.isEmpty()) {
+				pendingBytes -= batchBytes;
+				notFull.signalAll();
+			}
+			return batch;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Writes all the pending upserts in batches. Upserts offered while the flush is running may be included.
+	 * Failures are logged by the caller's writer and are not retried. If the writer identifies the failed upserts with a 
+	 * {@link PartialWriteException} only those are counted as failed, otherwise the whole batch is.
+	 * @return the number of upserts written
+	 */
+	public int flush() {
+		int total = 0;
+		flushLock.lock();
+		try {
+			List<PendingUpsert> batch = null;
+			while(!(batch = drain()).isEmpty()) {
+				try {
+					writer.write(batch);
+					written.addAndGet(batch.size());
+					batches.incrementAndGet();
+					total += batch.size();
+				} catch (PartialWriteException pex) {
+					int lost = pex.getFailedUpserts().size();
+					written.addAndGet(batch.size() - lost);
+					failed.addAndGet(lost);
+					batches.incrementAndGet();
+					total += batch.size() - lost;
+				} catch (Exception ex) {
+					failed.addAndGet(batch.size());
+				}
+			}
+			return total;
+		} finally {
+			flushLock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the number of pending upserts
+	 * @return the number of pending upserts
+	 */
+	public int getPendingCount() {
+		lock.lock();
+		try {
+			return pending.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the estimated bytes of the pending upserts
+	 * @return the estimated bytes of the pending upserts
+	 */
+	public long getPendingBytes() {
+		lock.lock();
+		try {
+			return pendingBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of offered updates
+	 * @return the number of offered updates
+	 */
+	public long getOffered() {
+		return offered.get();
+	}
+
+	/**
+	 * Returns the number of offered updates merged into an already pending upsert
+	 * @return the number of coalesced updates
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Returns the number of offered updates rejected because the buffer was full
+	 * @return the number of rejected updates
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Returns the number of upserts written
+	 * @return the number of upserts written
+	 */
+	public long getWritten() {
+		return written.get();
+	}
+
+	/**
+	 * Returns the number of upserts that failed to write
+	 * @return the number of failed upserts
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Returns the number of batches written
+	 * @return the number of batches written
+	 */
+	public long getBatches() {
+		return batches.get();
+	}
+	
+	/**
+	 * Sets the maximum number of pending entities
+	 * @param maxPending the maximum number of pending entities
+	 */
+	public void setMaxPending(int maxPending) {
+		this.maxPending = maxPending;
+	}
+
+	/**
+	 * Sets the maximum estimated bytes of pending upserts
+	 * @param maxPendingBytes the maximum estimated bytes of pending upserts
+	 */
+	public void setMaxPendingBytes(long maxPendingBytes) {
+		this.maxPendingBytes = maxPendingBytes;
+	}
+
+	/**
+	 * Sets the maximum number of operations in one written batch
+	 * @param maxBatchOps the maximum number of operations in one written batch
+	 */
+	public void setMaxBatchOps(int maxBatchOps) {
+		this.maxBatchOps = maxBatchOps;
+	}
+
+	/**
+	 * Sets the maximum estimated bytes of one written batch
+	 * @param maxBatchBytes the maximum estimated bytes of one written batch
+	 */
+	public void setMaxBatchBytes(long maxBatchBytes) {
+		this.maxBatchBytes = maxBatchBytes;
+	}
+
+	/**
+	 * <p>Title: PendingUpsert</p>
+	 * <p>Description: A coalesced upsert waiting to be written</p> 
+	 */
+	public static class PendingUpsert {
+		/** The collection name */
+		protected final String collection;
+		/** The query matching the entity */
+		protected final DBObject query;
+		/** The fields to set */
+		protected final BasicDBObject set = new BasicDBObject();
+		/** The numeric fields to increment */
+		protected final BasicDBObject inc = new BasicDBObject();
+		/** The estimated encoded size of the upsert, taken from its first version */
+		protected final int bytes;
+		/** The number of updates coalesced into this upsert */
+		protected int updates = 1;
+		
+		/**
+		 * Creates a new PendingUpsert
+		 * @param collection The collection name
+		 * @param query The query matching the entity
+		 * @param set The fields to set, or null
+		 * @param inc The numeric fields to increment, or null
+		 */
+		PendingUpsert(String collection, DBObject query, DBObject set, DBObject inc) {
+			this.collection = collection;
+			this.query = query;
+			if(set!=null) this.set.putAll(set);
+			if(inc!=null) this.inc.putAll(inc);
+			bytes = BSON.encode(query).length + BSON.encode(this.set).length + BSON.encode(this.inc).length;
+		}
+		
+		/**
+		 * Merges a subsequent update into this upsert
+		 * @param set The fields to set, or null
+		 * @param inc The numeric fields to increment, or null
+		 */
+		void merge(DBObject set, DBObject inc) {
+			if(set!=null) this.set.putAll(set);
+			if(inc!=null) {
+				for(String field: inc.keySet()) {
+					Number delta = (Number)inc.get(field);
+					Number current = (Number)this.inc.get(field);
+					this.inc.put(field, current==null ? delta.longValue() : current.longValue() + delta.longValue());
+				}
+			}
+			updates++;
+		}
+		
+		/**
+		 * Returns the update document combining the <code>$set</code> and <code>$inc</code> operators
+		 * @return the update document
+		 */
+		public DBObject getUpdate() {
+			BasicDBObject update = new BasicDBObject();
+			if(!set.isEmpty()) update.put("$set", set);
+			if(!inc.isEmpty()) update.put("$inc", inc);
+			return update;
+		}
+
+		/**
+		 * Returns the collection name
+		 * @return the collection name
+		 */
+		public String getCollection() {
+			return collection;
+		}
+
+		/**
+		 * Returns the query matching the entity
+		 * @return the query matching the entity
+		 */
+		public DBObject getQuery() {
+			return query;
+		}
+
+		/**
+		 * Returns the number of updates coalesced into this upsert
+		 * @return the number of updates
+		 */
+		public int getUpdates() {
+			return updates;
+		}
+		
+		/**
+		 * Returns the estimated encoded size of the upsert
+		 * @return the estimated encoded size
+		 */
+		public int getBytes() {
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.destination.mongodb;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.helios.apmrouter.destination.mongodb.CoalescingUpsertBuffer.PartialWriteException;
+import org.helios.apmrouter.destination.mongodb.CoalescingUpsertBuffer.PendingUpsert;
+import org.helios.apmrouter.destination.mongodb.CoalescingUpsertBuffer.UpsertWriter;
+
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
+/**
+ * <p>Title: MongoBulkUpsertWriter</p>
+ * <p>Description: Writes a batch of upserts as one pipelined burst on a single connection. The 2.7 driver has no bulk write API, 
+ * so the upserts are grouped by collection and sent unacknowledged ({@link WriteConcern#NORMAL}), and the configured write concern 
+ * is then applied once for the whole batch with a single <code>getLastError</code>, which waits for every write before it on the 
+ * connection to reach the requested durability. Upserts that fail to send, and the upsert the <code>getLastError</code> reports 
+ * an error for, are reported together in a {@link PartialWriteException}. If the batch cannot be acknowledged at all, the whole batch fails.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.destination.mongodb.MongoBulkUpsertWriter</code></p>
+ */
+
+public class MongoBulkUpsertWriter implements UpsertWriter {
+	/** The database to write to */
+	protected final DB db;
+	/** The write concern a batch is acknowledged with */
+	protected volatile WriteConcern writeConcern;
+	
+	/**
+	 * Creates a new MongoBulkUpsertWriter
+	 * @param db The database to write to
+	 * @param writeConcern The write concern a batch is acknowledged with
+	 */
+	public MongoBulkUpsertWriter(DB db, WriteConcern writeConcern) {
+		this.db = db;
+		this.writeConcern = writeConcern;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.destination.mongodb.CoalescingUpsertBuffer.UpsertWriter#write(java.util.List)
+	 */
+	@Override
+	public void write(List<PendingUpsert> batch) throws Exception {
+		final WriteConcern concern = writeConcern;
+		Map<String, List<PendingUpsert>> byCollection = new LinkedHashMap<String, List<PendingUpsert>>();
+		for(PendingUpsert upsert: batch) {
+			List<PendingUpsert> upserts = byCollection.get(upsert.getCollection());
+			if(upserts==null) {
+				upserts = new ArrayList<PendingUpsert>();
+				byCollection.put(upsert.getCollection(), upserts);
+			}
+			upserts.add(upsert);
+		}
+		List<PendingUpsert> failed = null;
+		MongoException lastError = null;
+		PendingUpsert lastSent = null;
+		// pin the connection for the batch so the getLastError covers every write in it
+		db.requestStart();
+		try {
+			for(Map.Entry<String, List<PendingUpsert>> entry: byCollection.entrySet()) {
+				DBCollection collection = db.getCollection(entry.getKey());
+				for(PendingUpsert upsert: entry.getValue()) {
+					try {
+						collection.update(upsert.getQuery(), upsert.getUpdate(), true, false, WriteConcern.NORMAL);
+						lastSent = upsert;
+					} catch (MongoException mex) {
+						if(failed==null) failed = new ArrayList<PendingUpsert>();
+						failed.add(upsert);
+						lastError = mex;
+					}
+				}
+			}
+			if(lastSent!=null && concern.callGetLastError()) {
+				CommandResult result = db.getLastError(concern);
+				if(!result.ok() || result.getBoolean("wtimeout")) {
+					throw result.getException();
+				}
+				if(result.getErrorMessage()!=null) {
+					if(failed==null) failed = new ArrayList<PendingUpsert>();
+					failed.add(lastSent);
+					lastError = result.getException();
+				}
+			}
+		} finally {
+			db.requestDone();
+		}
+		if(failed!=null) {
+			throw new PartialWriteException(failed, lastError);
+		}
+	}
+
+	/**
+	 * Returns the write concern a batch is acknowledged with
+	 * @return the write concern
+	 */
+	public WriteConcern getWriteConcern() {
+		return writeConcern;
+	}
+
+	/**
+	 * Sets the write concern a batch is acknowledged with
+	 * @param writeConcern the write concern
+	 */
+	public void setWriteConcern(WriteConcern writeConcern) {
+		this.writeConcern = writeConcern;
+	}
+}
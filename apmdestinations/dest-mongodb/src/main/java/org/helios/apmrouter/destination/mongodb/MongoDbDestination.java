@@ -24,32 +24,34 @@
  */
 package org.helios.apmrouter.destination.mongodb;
 
-import static org.springframework.data.mongodb.core.query.Criteria.where;
-import static org.springframework.data.mongodb.core.query.Query.query;
-
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.management.MXBean;
 import javax.management.Notification;
+import javax.management.NotificationListener;
 
 import org.helios.apmrouter.catalog.domain.Agent;
 import org.helios.apmrouter.catalog.domain.Host;
 import org.helios.apmrouter.catalog.domain.Metric;
-//import org.helios.apmrouter.catalog.jdbc.h2.AbstractTrigger;
-//import org.helios.apmrouter.catalog.jdbc.h2.NewElementTriggers;
+import org.helios.apmrouter.catalog.jdbc.h2.AbstractTrigger;
+import org.helios.apmrouter.catalog.jdbc.h2.NewElementTriggers;
 import org.helios.apmrouter.collections.ConcurrentLongSlidingWindow;
+import org.helios.apmrouter.collections.StripedCounter;
 import org.helios.apmrouter.collections.ILongSlidingWindow;
 import org.helios.apmrouter.destination.BaseDestination;
 import org.helios.apmrouter.destination.accumulator.FlushQueueReceiver;
 import org.helios.apmrouter.destination.accumulator.TimeSizeFlushQueue;
+import org.helios.apmrouter.destination.mongodb.CoalescingUpsertBuffer.PartialWriteException;
+import org.helios.apmrouter.destination.mongodb.CoalescingUpsertBuffer.PendingUpsert;
 import org.helios.apmrouter.metric.IMetric;
 import org.helios.apmrouter.tsmodel.Tier;
 import org.helios.apmrouter.tsmodel.TimeSeriesModel;
@@ -58,14 +60,15 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.event.ContextRefreshedEvent;
 import org.springframework.data.mongodb.core.CollectionOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
-import org.springframework.data.mongodb.core.query.Query;
-import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedMetric;
 import org.springframework.jmx.export.annotation.ManagedOperation;
 import org.springframework.jmx.support.MetricType;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
 import com.mongodb.Mongo;
+import com.mongodb.WriteConcern;
 
 /**
  * <p>Title: MongoDbDestination</p>
@@ -75,7 +78,7 @@ import com.mongodb.Mongo;
  * <p><code>org.helios.apmrouter.destination.mongodb.MongoDbDestination</code></p>
  */
 @MXBean(true) 
-public class MongoDbDestination extends BaseDestination implements Runnable, FlushQueueReceiver<IMetric>, MongoDbDestinationMXBean {
+public class MongoDbDestination extends BaseDestination implements Runnable, FlushQueueReceiver<IMetric>, NotificationListener, MongoDbDestinationMXBean {
 	/** The mongo DB template */
 	protected MongoTemplate mongoTemplate = null;
 	/** The raw mongo connection */
@@ -107,6 +110,26 @@ public class MongoDbDestination extends BaseDestination implements Runnable, Flu
 	protected long maxCollectionSizePerPeriod = 650000;
 	/** The live step size */
 	protected long step = 15000;
+	/** The period in ms. between flushes of the pending catalog upserts */
+	protected long catalogFlushPeriod = 1000;
+	/** The maximum time in ms. a catalog upsert waits for room in a full upsert buffer before it is dropped */
+	protected long catalogOfferTimeout = 1000;
+	/** The maximum number of upserts written in one batch */
+	protected int maxBatchOps = 1000;
+	/** The maximum estimated bytes written in one batch */
+	protected long maxBatchBytes = 4 * 1024 * 1024;
+	/** The maximum number of pending coalesced upserts */
+	protected int maxPendingUpserts = 100000;
+	/** The maximum estimated bytes of pending coalesced upserts */
+	protected long maxPendingBytes = 32 * 1024 * 1024;
+	/** The name of the write concern each upsert batch is acknowledged with */
+	protected String writeConcern = "SAFE";
+	/** The coalescing upsert buffer */
+	protected CoalescingUpsertBuffer upsertBuffer = null;
+	/** The batch upsert writer */
+	protected MongoBulkUpsertWriter bulkWriter = null;
+	/** The counter of catalog and time-series updates discarded because the upsert buffer stayed full */
+	protected final StripedCounter upsertsDropped = counter("UpsertsDropped");
 	
 	
 //	BasicDBObject doc = new BasicDBObject();
@@ -117,95 +140,122 @@ public class MongoDbDestination extends BaseDestination implements Runnable, Flu
 	
 	/**
 	 * {@inheritDoc}
+	 * <p>Drains the catalog notification queue into coalesced upserts and periodically flushes the coalesced catalog and time-series upserts</p>
 	 * @see java.lang.Runnable#run()
 	 */
 	@Override
 	public void run() {
-		final List<Host> hosts = new ArrayList<Host>();
-		final List<Agent> agents = new ArrayList<Agent>();
-		final List<Metric> metrics = new ArrayList<Metric>();
-		long loopTime = SystemClock.time() + 5000;
-		while(true) {
-			try {				
-//				Notification notif = notificationQueue.poll(1000, TimeUnit.MILLISECONDS);
-//				try {
-//					if(notif!=null) {
-//						String type = notif.getType();
-//						if(AbstractTrigger.NEW_HOST.equals(type)) {
-//							hosts.add(new Host(notif));
-//							incr("HostsQueued");
-//						} else if(AbstractTrigger.NEW_AGENT.equals(type)) {
-//							agents.add(new Agent(notif));
-//							incr("AgentsQueued");
-//						} else if(AbstractTrigger.NEW_METRIC.equals(type)) {
-//							metrics.add(new Metric(notif));
-//							incr("MetricsQueued");
-//						}
-//					}
-//				} catch (Exception ex) {
-//					error("Failed to create domain object for MongoDb insert.\n\tNotification:", notif, ex);
-//					
-//				}
-				
-				boolean inserts = false;
-				int batchSize = 0;
-				try {
-					
-					if(!hosts.isEmpty() || !agents.isEmpty() || !metrics.isEmpty()) {
-						inserts = true;
-						SystemClock.startTimer();
-					} else {
-						continue;
-					}
-					try {
-						if(!hosts.isEmpty()) {
-							mongoTemplate.insert(hosts, Host.class);
-							incr("HostsInserted", hosts.size());
-							batchSize += hosts.size();
-						}
-					} catch (Exception ex) {
-						error("Failed to save host to MongoDb\n\tHosts:", hosts, ex);
-					}
-					try {
-						if(!agents.isEmpty()) {
-							mongoTemplate.insert(agents, Agent.class);
-							incr("AgentsInserted", agents.size());
-							batchSize += agents.size(); 
-						}
-					} catch (Exception ex) {
-						error("Failed to save agent to MongoDb\n\tAgents:", agents, ex);
-					}
-					try {
-						if(!metrics.isEmpty()) {
-							mongoTemplate.insert(metrics, Metric.class);
-							incr("MetricsInserted", metrics.size());
-							batchSize +=  metrics.size();
-						}
-					} catch (Exception ex) {
-						error("Failed to save metrics to MongoDb\n\tMetrics:", metrics, ex);
-					}
-				} finally {
-					if(inserts) {
-						lastCatalogElapsedNs.insert(SystemClock.endTimer().elapsedNs);
-						lastBatchSize.insert(batchSize);						
+		final List<Notification> notifs = new ArrayList<Notification>(catalogMaxBatchSize);
+		long nextFlush = SystemClock.time() + catalogFlushPeriod;
+		while(keepRunning.get()) {
+			try {
+				long wait = nextFlush - SystemClock.time();
+				Notification notif = wait > 0 ? NewElementTriggers.notificationQueue.poll(wait, TimeUnit.MILLISECONDS) : null;
+				if(notif!=null) {
+					notifs.add(notif);
+					NewElementTriggers.notificationQueue.drainTo(notifs, catalogMaxBatchSize-1);
+					for(Notification n: notifs) {
+						handleNotification(n, null);
 					}
-					loopTime = SystemClock.time() + 5000;
+					notifs.clear();
 				}
-				
-			} catch (Exception iex) {
-				if(keepRunning.get()) {
-					Thread.interrupted();
-				} else {
-					 break;
+			} catch (InterruptedException iex) {
+				if(!keepRunning.get()) break;
+			}
+			if(SystemClock.time() >= nextFlush) {
+				try {
+					flushUpserts();
+				} catch (Exception ex) {
+					error("Failed to flush upserts to MongoDb", ex);
 				}
-			} finally {
-				hosts.clear();
-				agents.clear();
-				metrics.clear();
+				nextFlush = SystemClock.time() + catalogFlushPeriod;
 			}
 		}
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * <p>Queues a coalesced upsert of the host, agent or metric in a catalog notification</p>
+	 * @see javax.management.NotificationListener#handleNotification(javax.management.Notification, java.lang.Object)
+	 */
+	@Override
+	public void handleNotification(Notification notif, Object handback) {
+		String type = notif.getType();
+		try {
+			if(AbstractTrigger.NEW_HOST.equals(type)) {
+				upsertHost(new Host(notif));
+			} else if(AbstractTrigger.NEW_AGENT.equals(type)) {
+				upsertAgent(new Agent(notif));
+			} else if(type.startsWith(AbstractTrigger.NEW_METRIC)) {
+				upsertMetric(new Metric(notif));
+			}
+		} catch (Exception ex) {
+			error("Failed to create domain object for MongoDb upsert.\n\tNotification:", notif, ex);
+		}
+	}
+	
+	/**
+	 * Writes all the pending coalesced upserts, recording the elapsed time and number written
+	 * @return the number of upserts written
+	 */
+	protected int flushUpserts() {
+		SystemClock.startTimer();
+		int written = upsertBuffer.flush();
+		if(written>0) {
+			lastCatalogElapsedNs.insert(SystemClock.endTimer().elapsedNs);
+			lastBatchSize.insert(written);
+		}
+		return written;
+	}
+	
+	/**
+	 * Queues an upsert of the passed host, coalesced with any pending update to the same host
+	 * @param host The host to upsert
+	 * @return true if the upsert was queued, false if it was dropped because the buffer was full
+	 */
+	public boolean upsertHost(Host host) {
+		incr("HostsQueued");
+		return upsertEntity(host, "hostId", host.getHostId());
+	}
+	
+	/**
+	 * Queues an upsert of the passed agent, coalesced with any pending update to the same agent
+	 * @param agent The agent to upsert
+	 * @return true if the upsert was queued, false if it was dropped because the buffer was full
+	 */
+	public boolean upsertAgent(Agent agent) {
+		incr("AgentsQueued");
+		return upsertEntity(agent, "agentId", agent.getAgentId());
+	}
+	
+	/**
+	 * Queues an upsert of the passed metric, coalesced with any pending update to the same metric
+	 * @param metric The metric to upsert
+	 * @return true if the upsert was queued, false if it was dropped because the buffer was full
+	 */
+	public boolean upsertMetric(Metric metric) {
+		incr("MetricsQueued");
+		return upsertEntity(metric, "metricId", metric.getMetricId());
+	}
+	
+	/**
+	 * Converts the passed catalog entity and queues an upsert of it keyed by the passed id field
+	 * @param entity The catalog entity
+	 * @param idField The name of the entity's id field
+	 * @param id The entity's id
+	 * @return true if the upsert was queued, false if it was dropped because the buffer was full
+	 */
+	protected boolean upsertEntity(Object entity, String idField, Object id) {
+		DBObject dbo = new BasicDBObject();
+		mongoTemplate.getConverter().write(entity, dbo);
+		dbo.removeField("_id");
+		if(!upsertBuffer.offer(mongoTemplate.getCollectionName(entity.getClass()), id.toString(), new BasicDBObject(idField, id), dbo, null, catalogOfferTimeout)) {
+			upsertsDropped.increment();
+			return false;
+		}
+		return true;
+	}
+	
 	/**
 	 * Accept Route additive for BaseDestination extensions
 	 * @param routable The metric to route
@@ -229,17 +279,26 @@ public class MongoDbDestination extends BaseDestination implements Runnable, Flu
 	 */
 	@Override
 	public void flushTo(Collection<IMetric> flushedItems) {
-		//info("Flushed [", flushedItems.size(), "] Items");
 		for(IMetric metric: flushedItems) {
 			final long period = getPeriod(metric.getTime());
-			Query query = query(where("period").is(period));
-			Update update = new Update().inc("cnt", 1)
-					.set("min", metric.getLongValue())
-					.set("max", metric.getLongValue());
-			
-			mongoTemplate.upsert(query, update, "live");
+			final long metricId = metric.getToken();
+			final long value = metric.getLongValue();
+			BasicDBObject query = new BasicDBObject("period", period);
+			query.put("metricId", metricId);
+			BasicDBObject set = new BasicDBObject("min", value);
+			set.put("max", value);
+			if(!upsertBuffer.offer("live", period + ":" + metricId, query, set, new BasicDBObject("cnt", 1L), 0L)) {
+				// the store is behind: write what is pending on this flush thread and retry once before dropping
+				flushUpserts();
+				if(!upsertBuffer.offer("live", period + ":" + metricId, query, set, new BasicDBObject("cnt", 1L), 0L)) {
+					upsertsDropped.increment();
+				}
+			}
+		}
+		SystemClock.startTimer();
+		if(upsertBuffer.flush()>0) {
+			lastMetricElapsedNs.insert(SystemClock.endTimer().elapsedNs);
 		}
-		
 	}	
 	
 	/**
@@ -271,7 +330,48 @@ public class MongoDbDestination extends BaseDestination implements Runnable, Flu
 	protected void doStart() throws Exception {
 		super.doStart();
 		tsModel = TimeSeriesModel.create(tsDefinition);
+		final String hostCollection = mongoTemplate.getCollectionName(Host.class);
+		final String agentCollection = mongoTemplate.getCollectionName(Agent.class);
+		final String metricCollection = mongoTemplate.getCollectionName(Metric.class);
+		bulkWriter = new MongoBulkUpsertWriter(mongoTemplate.getDb(), WriteConcern.valueOf(writeConcern)) {
+			@Override
+			public void write(List<PendingUpsert> batch) throws Exception {
+				try {
+					super.write(batch);
+				} catch (PartialWriteException pex) {
+					error("Failed to write [", pex.getFailedUpserts().size(), "] of [", batch.size(), "] upserts to MongoDb", pex.getCause());
+					countInserted(batch, pex.getFailedUpserts());
+					throw pex;
+				} catch (Exception ex) {
+					error("Failed to write batch of [", batch.size(), "] upserts to MongoDb", ex);
+					throw ex;
+				}
+				countInserted(batch, null);
+			}
+			
+			/**
+			 * Counts the written catalog upserts in the passed batch
+			 * @param batch The written batch
+			 * @param failed The upserts in the batch that failed to write, or null if none did
+			 */
+			private void countInserted(List<PendingUpsert> batch, List<PendingUpsert> failed) {
+				Set<PendingUpsert> skip = Collections.emptySet();
+				if(failed!=null) {
+					skip = Collections.newSetFromMap(new IdentityHashMap<PendingUpsert, Boolean>(failed.size()));
+					skip.addAll(failed);
+				}
+				for(PendingUpsert upsert: batch) {
+					if(skip.contains(upsert)) continue;
+					String collection = upsert.getCollection();
+					if(hostCollection.equals(collection)) incr("HostsInserted");
+					else if(agentCollection.equals(collection)) incr("AgentsInserted");
+					else if(metricCollection.equals(collection)) incr("MetricsInserted");
+				}
+			}
+		};
+		upsertBuffer = new CoalescingUpsertBuffer(bulkWriter, maxPendingUpserts, maxPendingBytes, maxBatchOps, maxBatchBytes);
 		flushQueue = new TimeSizeFlushQueue<IMetric>(getClass().getSimpleName(), sizeTrigger, timeTrigger, this);
+		keepRunning.set(true);
 		catalogProcessorThread = new Thread(this, "MongoCatalogProcessorThread");
 		catalogProcessorThread.setDaemon(true);
 	}
@@ -284,7 +384,8 @@ public class MongoDbDestination extends BaseDestination implements Runnable, Flu
 	protected void doStop() {
 		keepRunning.set(false);
 		catalogProcessorThread.interrupt();
-		
+		flushQueue.shutdown();
+		flushUpserts();
 	}
 	
 	
@@ -321,6 +422,7 @@ public class MongoDbDestination extends BaseDestination implements Runnable, Flu
 		_metrics.add("HostsInserted");
 		_metrics.add("MetricsQueued");
 		_metrics.add("MetricsInserted");
+		_metrics.add("UpsertsDropped");
 		return _metrics;
 	}
 	
@@ -439,6 +541,69 @@ public class MongoDbDestination extends BaseDestination implements Runnable, Flu
 	
 	
 	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@ManagedMetric(category="MongoDbMetrics", metricType=MetricType.COUNTER, description="the number of updates offered to the upsert buffer")
+	public long getUpsertsOffered() {
+		return upsertBuffer==null ? 0 : upsertBuffer.getOffered();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@ManagedMetric(category="MongoDbMetrics", metricType=MetricType.COUNTER, description="the number of updates coalesced into a pending upsert")
+	public long getUpsertsCoalesced() {
+		return upsertBuffer==null ? 0 : upsertBuffer.getCoalesced();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@ManagedMetric(category="MongoDbMetrics", metricType=MetricType.COUNTER, description="the number of upserts written")
+	public long getUpsertsWritten() {
+		return upsertBuffer==null ? 0 : upsertBuffer.getWritten();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@ManagedMetric(category="MongoDbMetrics", metricType=MetricType.COUNTER, description="the number of upsert batches written")
+	public long getUpsertBatches() {
+		return upsertBuffer==null ? 0 : upsertBuffer.getBatches();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@ManagedMetric(category="MongoDbMetrics", metricType=MetricType.COUNTER, description="the number of updates dropped because the upsert buffer was full")
+	public long getUpsertsDropped() {
+		return upsertsDropped.get();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@ManagedMetric(category="MongoDbMetrics", metricType=MetricType.COUNTER, description="the number of upserts that failed to write")
+	public long getUpsertsFailed() {
+		return upsertBuffer==null ? 0 : upsertBuffer.getFailed();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@ManagedMetric(category="MongoDbMetrics", metricType=MetricType.GAUGE, description="the number of pending coalesced upserts")
+	public int getPendingUpserts() {
+		return upsertBuffer==null ? 0 : upsertBuffer.getPendingCount();
+	}
+	
 	/**
 	 * Creates a new MongoDbDestination
 	 * @param patterns The metric patterns accepted by this destination
@@ -492,6 +657,140 @@ public class MongoDbDestination extends BaseDestination implements Runnable, Flu
 	}
 	
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@ManagedAttribute(description="The maximum number of upserts written in one batch")
+	public int getMaxBatchOps() {
+		return maxBatchOps;
+	}
+
+	/**
+	 * Sets the maximum number of upserts written in one batch
+	 * @param maxBatchOps the maximum number of upserts written in one batch
+	 */
+	@ManagedAttribute(description="The maximum number of upserts written in one batch")
+	public void setMaxBatchOps(int maxBatchOps) {
+		this.maxBatchOps = maxBatchOps;
+		if(upsertBuffer!=null) upsertBuffer.setMaxBatchOps(maxBatchOps);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@ManagedAttribute(description="The maximum estimated bytes written in one batch")
+	public long getMaxBatchBytes() {
+		return maxBatchBytes;
+	}
+
+	/**
+	 * Sets the maximum estimated bytes written in one batch
+	 * @param maxBatchBytes the maximum estimated bytes written in one batch
+	 */
+	@ManagedAttribute(description="The maximum estimated bytes written in one batch")
+	public void setMaxBatchBytes(long maxBatchBytes) {
+		this.maxBatchBytes = maxBatchBytes;
+		if(upsertBuffer!=null) upsertBuffer.setMaxBatchBytes(maxBatchBytes);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@ManagedAttribute(description="The maximum number of pending coalesced upserts")
+	public int getMaxPendingUpserts() {
+		return maxPendingUpserts;
+	}
+
+	/**
+	 * Sets the maximum number of pending coalesced upserts
+	 * @param maxPendingUpserts the maximum number of pending coalesced upserts
+	 */
+	@ManagedAttribute(description="The maximum number of pending coalesced upserts")
+	public void setMaxPendingUpserts(int maxPendingUpserts) {
+		this.maxPendingUpserts = maxPendingUpserts;
+		if(upsertBuffer!=null) upsertBuffer.setMaxPending(maxPendingUpserts);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@ManagedAttribute(description="The maximum estimated bytes of pending coalesced upserts")
+	public long getMaxPendingBytes() {
+		return maxPendingBytes;
+	}
+
+	/**
+	 * Sets the maximum estimated bytes of pending coalesced upserts
+	 * @param maxPendingBytes the maximum estimated bytes of pending coalesced upserts
+	 */
+	@ManagedAttribute(description="The maximum estimated bytes of pending coalesced upserts")
+	public void setMaxPendingBytes(long maxPendingBytes) {
+		this.maxPendingBytes = maxPendingBytes;
+		if(upsertBuffer!=null) upsertBuffer.setMaxPendingBytes(maxPendingBytes);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@ManagedAttribute(description="The period in ms. between flushes of the pending catalog upserts")
+	public long getCatalogFlushPeriod() {
+		return catalogFlushPeriod;
+	}
+
+	/**
+	 * Sets the period in ms. between flushes of the pending catalog upserts
+	 * @param catalogFlushPeriod the catalog flush period in ms.
+	 */
+	@ManagedAttribute(description="The period in ms. between flushes of the pending catalog upserts")
+	public void setCatalogFlushPeriod(long catalogFlushPeriod) {
+		this.catalogFlushPeriod = catalogFlushPeriod;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@ManagedAttribute(description="The maximum time in ms. a catalog upsert waits for room in a full upsert buffer")
+	public long getCatalogOfferTimeout() {
+		return catalogOfferTimeout;
+	}
+
+	/**
+	 * Sets the maximum time in ms. a catalog upsert waits for room in a full upsert buffer before it is dropped
+	 * @param catalogOfferTimeout the catalog offer timeout in ms.
+	 */
+	@ManagedAttribute(description="The maximum time in ms. a catalog upsert waits for room in a full upsert buffer")
+	public void setCatalogOfferTimeout(long catalogOfferTimeout) {
+		this.catalogOfferTimeout = catalogOfferTimeout;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@ManagedAttribute(description="The name of the write concern each upsert batch is acknowledged with")
+	public String getWriteConcern() {
+		return writeConcern;
+	}
+
+	/**
+	 * Sets the name of the write concern each upsert batch is acknowledged with, e.g. <b>NORMAL</b>, <b>SAFE</b> or <b>JOURNAL_SAFE</b>.
+	 * A write concern that does not wait for an acknowledgement, such as <b>NORMAL</b>, trades error reporting for throughput.
+	 * @param writeConcern the write concern name
+	 */
+	@ManagedAttribute(description="The name of the write concern each upsert batch is acknowledged with")
+	public void setWriteConcern(String writeConcern) {
+		WriteConcern wc = WriteConcern.valueOf(writeConcern.trim().toUpperCase());
+		if(wc==null) throw new IllegalArgumentException("Unrecognized write concern [" + writeConcern + "]", new Throwable());
+		this.writeConcern = writeConcern.trim().toUpperCase();
+		if(bulkWriter!=null) bulkWriter.setWriteConcern(wc);
+	}
+
 	/**
 	 * Creates a new MongoDbDestination
 	 */
@@ -173,4 +173,102 @@ public interface MongoDbDestinationMXBean {
 	@ManagedAttribute(description = "The time-series tiers")
 	public abstract Tier[] getTimeSeriesTiers();
 
-}
\ No newline at end of file
+	/**
+	 * Returns the number of updates offered to the upsert buffer
+	 * @return the number of updates offered to the upsert buffer
+	 */
+	@ManagedMetric(category = "MongoDbMetrics", metricType = MetricType.COUNTER, description = "the number of updates offered to the upsert buffer")
+	public abstract long getUpsertsOffered();
+
+	/**
+	 * Returns the number of updates coalesced into a pending upsert
+	 * @return the number of updates coalesced into a pending upsert
+	 */
+	@ManagedMetric(category = "MongoDbMetrics", metricType = MetricType.COUNTER, description = "the number of updates coalesced into a pending upsert")
+	public abstract long getUpsertsCoalesced();
+
+	/**
+	 * Returns the number of upserts written
+	 * @return the number of upserts written
+	 */
+	@ManagedMetric(category = "MongoDbMetrics", metricType = MetricType.COUNTER, description = "the number of upserts written")
+	public abstract long getUpsertsWritten();
+
+	/**
+	 * Returns the number of upsert batches written
+	 * @return the number of upsert batches written
+	 */
+	@ManagedMetric(category = "MongoDbMetrics", metricType = MetricType.COUNTER, description = "the number of upsert batches written")
+	public abstract long getUpsertBatches();
+
+	/**
+	 * Returns the number of updates dropped because the upsert buffer was full
+	 * @return the number of updates dropped because the upsert buffer was full
+	 */
+	@ManagedMetric(category = "MongoDbMetrics", metricType = MetricType.COUNTER, description = "the number of updates dropped because the upsert buffer was full")
+	public abstract long getUpsertsDropped();
+
+	/**
+	 * Returns the number of upserts that failed to write
+	 * @return the number of upserts that failed to write
+	 */
+	@ManagedMetric(category = "MongoDbMetrics", metricType = MetricType.COUNTER, description = "the number of upserts that failed to write")
+	public abstract long getUpsertsFailed();
+
+	/**
+	 * Returns the number of pending coalesced upserts
+	 * @return the number of pending coalesced upserts
+	 */
+	@ManagedMetric(category = "MongoDbMetrics", metricType = MetricType.GAUGE, description = "the number of pending coalesced upserts")
+	public abstract int getPendingUpserts();
+
+	/**
+	 * Returns the maximum number of upserts written in one batch
+	 * @return the maximum number of upserts written in one batch
+	 */
+	@ManagedAttribute(description = "The maximum number of upserts written in one batch")
+	public abstract int getMaxBatchOps();
+
+	/**
+	 * Returns the maximum estimated bytes written in one batch
+	 * @return the maximum estimated bytes written in one batch
+	 */
+	@ManagedAttribute(description = "The maximum estimated bytes written in one batch")
+	public abstract long getMaxBatchBytes();
+
+	/**
+	 * Returns the maximum number of pending coalesced upserts
+	 * @return the maximum number of pending coalesced upserts
+	 */
+	@ManagedAttribute(description = "The maximum number of pending coalesced upserts")
+	public abstract int getMaxPendingUpserts();
+
+	/**
+	 * Returns the maximum estimated bytes of pending coalesced upserts
+	 * @return the maximum estimated bytes of pending coalesced upserts
+	 */
+	@ManagedAttribute(description = "The maximum estimated bytes of pending coalesced upserts")
+	public abstract long getMaxPendingBytes();
+
+	/**
+	 * Returns the period in ms. between flushes of the pending catalog upserts
+	 * @return the period in ms. between flushes of the pending catalog upserts
+	 */
+	@ManagedAttribute(description = "The period in ms. between flushes of the pending catalog upserts")
+	public abstract long getCatalogFlushPeriod();
+
+	/**
+	 * Returns the maximum time in ms. a catalog upsert waits for room in a full upsert buffer
+	 * @return the maximum time in ms. a catalog upsert waits for room in a full upsert buffer
+	 */
+	@ManagedAttribute(description = "The maximum time in ms. a catalog upsert waits for room in a full upsert buffer")
+	public abstract long getCatalogOfferTimeout();
+
+	/**
+	 * Returns the name of the write concern each upsert batch is acknowledged with
+	 * @return the name of the write concern each upsert batch is acknowledged with
+	 */
+	@ManagedAttribute(description = "The name of the write concern each upsert batch is acknowledged with")
+	public abstract String getWriteConcern();
+
+}
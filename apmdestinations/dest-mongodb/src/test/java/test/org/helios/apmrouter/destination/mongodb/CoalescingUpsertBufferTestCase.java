@@ -0,0 +1,243 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.apmrouter.destination.mongodb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.helios.apmrouter.destination.mongodb.CoalescingUpsertBuffer;
+import org.helios.apmrouter.destination.mongodb.CoalescingUpsertBuffer.PartialWriteException;
+import org.helios.apmrouter.destination.mongodb.CoalescingUpsertBuffer.PendingUpsert;
+import org.helios.apmrouter.destination.mongodb.CoalescingUpsertBuffer.UpsertWriter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * <p>Title: CoalescingUpsertBufferTestCase</p>
+ * <p>Description: Verifies upsert coalescing, batch sizing and bounded buffering of the {@link CoalescingUpsertBuffer} 
+ * against an in-process stand-in for the store that applies the upserts to in-memory documents.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.apmrouter.destination.mongodb.CoalescingUpsertBufferTestCase</code></p>
+ */
+public class CoalescingUpsertBufferTestCase {
+	
+	/**
+	 * <p>Title: StandInStore</p>
+	 * <p>Description: An in-memory store applying upserts to documents keyed by collection and query, counting the operations and batches it receives</p> 
+	 */
+	static class StandInStore implements UpsertWriter {
+		/** The documents keyed by collection and query */
+		final Map<String, BasicDBObject> docs = new HashMap<String, BasicDBObject>();
+		/** The sizes of the received batches */
+		final List<Integer> batches = new ArrayList<Integer>();
+		/** The number of upsert operations received */
+		int operations = 0;
+		
+		@Override
+		public synchronized void write(List<PendingUpsert> batch) throws Exception {
+			batches.add(batch.size());
+			for(PendingUpsert upsert: batch) {
+				operations++;
+				String key = upsert.getCollection() + upsert.getQuery();
+				BasicDBObject doc = docs.get(key);
+				if(doc==null) {
+					doc = new BasicDBObject(upsert.getQuery().toMap());
+					docs.put(key, doc);
+				}
+				DBObject update = upsert.getUpdate();
+				DBObject set = (DBObject)update.get("$set");
+				if(set!=null) doc.putAll(set);
+				DBObject inc = (DBObject)update.get("$inc");
+				if(inc!=null) {
+					for(String field: inc.keySet()) {
+						Number current = (Number)doc.get(field);
+						doc.put(field, (current==null ? 0L : current.longValue()) + ((Number)inc.get(field)).longValue());
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Offers a time-series update for the passed metric and period
+	 * @param buffer The buffer to offer to
+	 * @param metricId The metric id
+	 * @param period The period
+	 * @param value The value
+	 * @param timeout The offer timeout in ms.
+	 * @return true if the update was accepted
+	 */
+	static boolean offer(CoalescingUpsertBuffer buffer, long metricId, long period, long value, long timeout) {
+		BasicDBObject query = new BasicDBObject("period", period);
+		query.put("metricId", metricId);
+		return buffer.offer("live", period + ":" + metricId, query, new BasicDBObject("max", value), new BasicDBObject("cnt", 1L), timeout);
+	}
+
+	/**
+	 * Verifies that repeated updates to the same entities collapse into one upsert each, with the same end result as applying every update
+	 */
+	@Test
+	public void testCoalescing() {
+		final int metrics = 200, updates = 50;
+		StandInStore store = new StandInStore();
+		CoalescingUpsertBuffer buffer = new CoalescingUpsertBuffer(store, 10000, 1024 * 1024, 1000, 1024 * 1024);
+		for(int u = 0; u < updates; u++) {
+			for(int m = 0; m < metrics; m++) {
+				Assert.assertTrue(offer(buffer, m, 15000, u, 0));
+			}
+		}
+		Assert.assertEquals(metrics, buffer.getPendingCount());
+		Assert.assertEquals(metrics, buffer.flush());
+		Assert.assertEquals("Operations sent to the store", metrics, store.operations);
+		Assert.assertEquals((long)metrics * updates, buffer.getOffered());
+		Assert.assertEquals((long)metrics * (updates-1), buffer.getCoalesced());
+		Assert.assertEquals(0, buffer.getPendingBytes());
+		for(BasicDBObject doc: store.docs.values()) {
+			Assert.assertEquals("Coalesced increments", (long)updates, ((Number)doc.get("cnt")).longValue());
+			Assert.assertEquals("Last set value", (long)(updates-1), ((Number)doc.get("max")).longValue());
+		}
+		log("Coalesced [" + buffer.getOffered() + "] updates into [" + store.operations + "] upserts in batches sized " + store.batches);
+	}
+	
+	/**
+	 * Verifies that flushed batches are bounded by the operation count and the estimated bytes
+	 */
+	@Test
+	public void testBatchSizing() {
+		StandInStore store = new StandInStore();
+		CoalescingUpsertBuffer buffer = new CoalescingUpsertBuffer(store, 10000, 1024 * 1024, 100, 1024 * 1024);
+		for(int m = 0; m < 250; m++) offer(buffer, m, 15000, m, 0);
+		buffer.flush();
+		Assert.assertEquals("[100, 100, 50]", store.batches.toString());
+		store.batches.clear();
+		for(int m = 0; m < 100; m++) offer(buffer, m, 30000, m, 0);
+		// size the byte limit to hold 10 upserts
+		buffer.setMaxBatchBytes(upsertBytes(buffer) * 10);
+		buffer.flush();
+		Assert.assertEquals("Batches sized by bytes", 10, store.batches.size());
+		for(int size: store.batches) Assert.assertEquals(10, size);
+	}
+	
+	/**
+	 * Verifies that when the store rejects some of the upserts in a batch only those are counted as failed and the rest are written
+	 */
+	@Test
+	public void testPartialWriteFailure() {
+		final StandInStore store = new StandInStore() {
+			@Override
+			public synchronized void write(List<PendingUpsert> batch) throws Exception {
+				List<PendingUpsert> accepted = new ArrayList<PendingUpsert>();
+				List<PendingUpsert> rejected = new ArrayList<PendingUpsert>();
+				for(PendingUpsert upsert: batch) {
+					// the store rejects the upserts for odd metric ids
+					if(((Number)upsert.getQuery().get("metricId")).longValue() % 2 == 1) rejected.add(upsert);
+					else accepted.add(upsert);
+				}
+				super.write(accepted);
+				if(!rejected.isEmpty()) throw new PartialWriteException(rejected, new Exception("Rejected by the store"));
+			}
+		};
+		CoalescingUpsertBuffer buffer = new CoalescingUpsertBuffer(store, 10000, 1024 * 1024, 100, 1024 * 1024);
+		for(int m = 0; m < 250; m++) offer(buffer, m, 15000, m, 0);
+		Assert.assertEquals(125, buffer.flush());
+		Assert.assertEquals(125, store.operations);
+		Assert.assertEquals(125, buffer.getWritten());
+		Assert.assertEquals(125, buffer.getFailed());
+		Assert.assertEquals(3, buffer.getBatches());
+		Assert.assertEquals(0, buffer.getPendingCount());
+	}
+	
+	/**
+	 * Returns the estimated bytes of one pending upsert in the passed buffer, which must hold same-sized upserts
+	 * @param buffer The buffer
+	 * @return the estimated bytes of one upsert
+	 */
+	static long upsertBytes(CoalescingUpsertBuffer buffer) {
+		return buffer.getPendingBytes() / buffer.getPendingCount();
+	}
+	
+	/**
+	 * Verifies that a full buffer keeps accepting updates to pending entities, makes new entities wait for a flush and drops them when none comes
+	 * @throws Exception thrown on any error
+	 */
+	@Test(timeout=10000)
+	public void testBoundedBuffering() throws Exception {
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicBoolean slow = new AtomicBoolean(true);
+		final StandInStore store = new StandInStore() {
+			@Override
+			public void write(List<PendingUpsert> batch) throws Exception {
+				if(slow.get()) {
+					writing.countDown();
+					release.await();
+				}
+				super.write(batch);
+			}
+		};
+		final CoalescingUpsertBuffer buffer = new CoalescingUpsertBuffer(store, 10, 1024 * 1024, 1000, 1024 * 1024);
+		for(int m = 0; m < 10; m++) Assert.assertTrue(offer(buffer, m, 15000, m, 0));
+		Assert.assertTrue("Update to a pending entity in a full buffer", offer(buffer, 5, 15000, 99, 0));
+		Assert.assertFalse("New entity in a full buffer without waiting", offer(buffer, 10, 15000, 10, 0));
+		Assert.assertFalse("New entity in a full buffer with no flush", offer(buffer, 10, 15000, 10, 50));
+		Assert.assertEquals(2, buffer.getRejected());
+		// a flush to the slow store drains the buffer before writing, so a waiting offer gets in while the store is still busy
+		Thread flusher = new Thread() {
+			@Override
+			public void run() {
+				buffer.flush();
+			}
+		};
+		flusher.start();
+		Assert.assertTrue(writing.await(5, TimeUnit.SECONDS));
+		Assert.assertTrue("New entity after a drain", offer(buffer, 10, 15000, 10, 1000));
+		for(int m = 11; m < 20; m++) Assert.assertTrue(offer(buffer, m, 15000, m, 0));
+		Assert.assertFalse("Buffer bounded while the store is slow", offer(buffer, 20, 15000, 20, 0));
+		slow.set(false);
+		release.countDown();
+		flusher.join();
+		buffer.flush();
+		Assert.assertEquals(0, buffer.getPendingCount());
+		Assert.assertEquals(20, store.operations);
+		Assert.assertEquals(3, buffer.getRejected());
+	}
+	
+	/**
+	 * Out logger
+	 * @param msg the message
+	 */
+	static void log(Object msg) {
+		System.out.println(msg);
+	}
+}
@@ -0,0 +1,234 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.apmrouter.destination.mongodb;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.management.Notification;
+
+import org.helios.apmrouter.catalog.jdbc.h2.AbstractTrigger;
+import org.helios.apmrouter.catalog.jdbc.h2.NewElementTriggers;
+import org.helios.apmrouter.destination.mongodb.CoalescingUpsertBuffer;
+import org.helios.apmrouter.destination.mongodb.CoalescingUpsertBuffer.UpsertWriter;
+import org.helios.apmrouter.destination.mongodb.MongoDbDestination;
+import org.helios.apmrouter.metric.ICEMetric;
+import org.helios.apmrouter.metric.IMetric;
+import org.helios.apmrouter.metric.MetricType;
+import org.helios.apmrouter.metric.catalog.heap.StringKeyedHeapMetricCatalog;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import test.org.helios.apmrouter.destination.mongodb.CoalescingUpsertBufferTestCase.StandInStore;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Mongo;
+
+/**
+ * <p>Title: MongoDbDestinationTestCase</p>
+ * <p>Description: Drives catalog notifications through the {@link MongoDbDestination} catalog processor into an in-process
+ * stand-in for the store, verifying that repeated catalog updates reach the store as one upsert per entity.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.apmrouter.destination.mongodb.MongoDbDestinationTestCase</code></p>
+ */
+public class MongoDbDestinationTestCase {
+	/** The notification serial number */
+	static long serial = 0;
+	/** The destination under test */
+	StandInDestination destination = null;
+	/** The stand-in store the destination writes to */
+	StandInStore store = null;
+	
+	/**
+	 * <p>Title: StandInDestination</p>
+	 * <p>Description: A destination running only its catalog processor, writing to a stand-in store</p> 
+	 */
+	static class StandInDestination extends MongoDbDestination {
+		/**
+		 * Starts the catalog processor writing to the passed writer
+		 * @param writer The writer flushed upserts are written to
+		 */
+		void startCatalogProcessor(UpsertWriter writer) {
+			upsertBuffer = new CoalescingUpsertBuffer(writer, maxPendingUpserts, maxPendingBytes, maxBatchOps, maxBatchBytes);
+			keepRunning.set(true);
+			catalogProcessorThread = new Thread(this, "MongoCatalogProcessorThread");
+			catalogProcessorThread.setDaemon(true);
+			catalogProcessorThread.start();
+		}
+		
+		/**
+		 * Stops the catalog processor and flushes the pending upserts
+		 * @throws InterruptedException thrown if interrupted while waiting for the processor to stop
+		 */
+		void stopCatalogProcessor() throws InterruptedException {
+			keepRunning.set(false);
+			catalogProcessorThread.interrupt();
+			catalogProcessorThread.join(5000);
+			flushUpserts();
+		}
+		
+		/**
+		 * Returns the value of the named metric
+		 * @param name The metric name
+		 * @return the metric value
+		 */
+		long metric(String name) {
+			return getMetricValue(name);
+		}
+	}
+	
+	/**
+	 * Creates the destination with a template that is never connected, since all writes go to the stand-in store 
+	 * @throws Exception thrown on any error
+	 */
+	@Before
+	public void setUp() throws Exception {
+		NewElementTriggers.notificationQueue.clear();
+		store = new StandInStore();
+		destination = new StandInDestination();
+		destination.setMongoTemplate(new MongoTemplate(new Mongo("127.0.0.1"), "apmrouter-test"));
+		// flush only when the test stops the processor so every update to an entity is pending at once
+		destination.setCatalogFlushPeriod(60000);
+	}
+	
+	/**
+	 * Stops the catalog processor
+	 * @throws Exception thrown on any error
+	 */
+	@After
+	public void tearDown() throws Exception {
+		if(destination!=null) destination.stopCatalogProcessor();
+		NewElementTriggers.notificationQueue.clear();
+	}
+	
+	/**
+	 * Verifies that repeated host, agent and metric notifications queued by the catalog triggers
+	 * reach the store as one upsert per entity carrying the last update
+	 * @throws Exception thrown on any error
+	 */
+	@Test(timeout=20000)
+	public void testCatalogNotificationsCoalesced() throws Exception {
+		destination.startCatalogProcessor(store);
+		final int hosts = 5, agents = 10, metrics = 100, updates = 20;
+		final long start = System.currentTimeMillis() - 1000000;
+		for(int u = 0; u < updates; u++) {
+			Timestamp ts = new Timestamp(start + u);
+			for(int h = 0; h < hosts; h++) {
+				enqueue(AbstractTrigger.NEW_HOST, new Object[]{h, "host" + h, "heliosdev.org", "10.0.0." + h, "host" + h + ".heliosdev.org", new Timestamp(start), ts, 1, ts});
+			}
+			for(int a = 0; a < agents; a++) {
+				enqueue(AbstractTrigger.NEW_AGENT, new Object[]{a, a % hosts, "agent" + a, (short)0, new Timestamp(start), ts, ts, "udp://10.0.0." + (a % hosts) + ":" + (2000 + a)});
+			}
+			for(int m = 0; m < metrics; m++) {
+				enqueue(AbstractTrigger.NEW_METRIC + "long", new Object[]{(long)m, m % agents, (short)0, "/jvm", new String[]{"jvm"}, (short)1, "metric" + m, new Timestamp(start), ts});
+			}
+		}
+		final int notifications = (hosts + agents + metrics) * updates;
+		while(!NewElementTriggers.notificationQueue.isEmpty() 
+				|| destination.metric("HostsQueued") + destination.metric("AgentsQueued") + destination.metric("MetricsQueued") < notifications) {
+			Thread.sleep(10);
+		}
+		destination.stopCatalogProcessor();
+		Assert.assertEquals((long)hosts * updates, destination.metric("HostsQueued"));
+		Assert.assertEquals((long)agents * updates, destination.metric("AgentsQueued"));
+		Assert.assertEquals((long)metrics * updates, destination.metric("MetricsQueued"));
+		Assert.assertEquals("Operations sent to the store", hosts + agents + metrics, store.operations);
+		Assert.assertEquals(notifications - (hosts + agents + metrics), destination.getUpsertsCoalesced());
+		final Date last = new Date(start + updates - 1);
+		int lastUpdates = 0;
+		for(BasicDBObject doc: store.docs.values()) {
+			Object lastSeen = doc.containsField("lastConnected") ? doc.get("lastConnected") : doc.get("lastSeen");
+			if(last.equals(lastSeen)) lastUpdates++;
+		}
+		Assert.assertEquals("Documents carrying the last update", hosts + agents + metrics, lastUpdates);
+		log("Coalesced [" + notifications + "] catalog notifications into [" + store.operations + "] upserts in batches sized " + store.batches);
+	}
+	
+	/**
+	 * Verifies that updates are only counted as dropped when they are discarded, not when a full buffer accepts them on the retry after a flush
+	 * @throws Exception thrown on any error
+	 */
+	@Test(timeout=20000)
+	public void testDroppedOnlyWhenDiscarded() throws Exception {
+		destination.setMaxPendingUpserts(2);
+		destination.setCatalogOfferTimeout(0);
+		destination.startCatalogProcessor(store);
+		// time-series updates to a full buffer flush it and are accepted on the retry
+		StringKeyedHeapMetricCatalog catalog = new StringKeyedHeapMetricCatalog();
+		List<IMetric> metrics = new ArrayList<IMetric>();
+		long now = System.currentTimeMillis();
+		for(int m = 1; m <= 5; m++) {
+			catalog.setToken(m, "mongo-host", "mongo-agent", "Metric" + m, MetricType.LONG_GAUGE, "mongo");
+			metrics.add(ICEMetric.newMetric(now, m, MetricType.LONG_GAUGE, catalog.get(m)));
+		}
+		destination.flushTo(metrics);
+		Assert.assertEquals("Time-series upserts written", 5, store.operations);
+		Assert.assertEquals("Dropped after a successful retry", 0, destination.getUpsertsDropped());
+		// catalog updates to a full buffer are discarded once the offer timeout expires
+		final Timestamp ts = new Timestamp(now);
+		for(int h = 0; h < 3; h++) {
+			destination.handleNotification(notification(AbstractTrigger.NEW_HOST, new Object[]{h, "host" + h, "heliosdev.org", "10.0.0." + h, "host" + h + ".heliosdev.org", ts, ts, 1, ts}), null);
+		}
+		Assert.assertEquals("Dropped catalog upserts", 1, destination.getUpsertsDropped());
+		destination.stopCatalogProcessor();
+		Assert.assertEquals("Catalog upserts written", 7, store.operations);
+	}
+	
+	/**
+	 * Queues a catalog notification the way the catalog triggers do
+	 * @param type The notification type
+	 * @param row The new catalog row
+	 * @throws InterruptedException thrown if interrupted while waiting for room in the queue
+	 */
+	static void enqueue(String type, Object[] row) throws InterruptedException {
+		NewElementTriggers.notificationQueue.put(notification(type, row));
+	}
+	
+	/**
+	 * Creates a catalog notification the way the catalog triggers do
+	 * @param type The notification type
+	 * @param row The new catalog row
+	 * @return the notification
+	 */
+	static Notification notification(String type, Object[] row) {
+		Notification n = new Notification(type, MongoDbDestinationTestCase.class.getName(), ++serial, System.currentTimeMillis(), "New Catalog Event [" + row[1] + "]");
+		n.setUserData(row);
+		return n;
+	}
+	
+	/**
+	 * Out logger
+	 * @param msg the message
+	 */
+	static void log(Object msg) {
+		System.out.println(msg);
+	}
+}
@@ -29,9 +29,9 @@ import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 
+import org.helios.apmrouter.collections.StripedCounter;
 import org.helios.apmrouter.destination.BaseDestination;
 import org.helios.apmrouter.metric.IMetric;
-import org.snmp4j.MessageException;
 import org.snmp4j.PDU;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jmx.export.annotation.ManagedMetric;
@@ -39,7 +39,8 @@ import org.springframework.jmx.support.MetricType;
 
 /**
  * <p>Title: SNMPDestination</p>
- * <p>Description: </p> 
+ * <p>Description: Forwards PDU metrics to a set of SNMP managers. Each PDU is handed to every manager's asynchronous sender 
+ * without blocking the routing thread, so a slow or unreachable manager does not delay the others.</p> 
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>org.helios.apmrouter.destination.snmp.SNMPDestination</code></p>
@@ -47,6 +48,10 @@ import org.springframework.jmx.support.MetricType;
 public class SNMPDestination extends BaseDestination {
 	/** The targets for this destination to forward to  */
 	protected final Set<SNMPManager> targets = new CopyOnWriteArraySet<SNMPManager>();
+	/** The counter of PDUs queued to a target's sender */
+	protected final StripedCounter queuedCounter = counter("PDUSendsQueued");
+	/** The counter of PDUs dropped because a target's send queue was full */
+	protected final StripedCounter droppedCounter = counter("PDUSendsDropped");
 	
 	/**
 	 * Creates a new SNMPDestination
@@ -89,21 +94,10 @@ public class SNMPDestination extends BaseDestination {
 		if(!routable.getType().name().equals("PDU")) return;
 		PDU pdu = (PDU)routable.getValue();
 		for(SNMPManager ctf: targets) {
-			try {
-				try {
-					ctf.send(pdu);
-				} catch (MessageException e) {
-					if("Port already listening".equalsIgnoreCase(e.getMessage())) {
-						ctf.send(pdu);						
-					}
-				}
-				//snmp.sendPDU();
-				//snmp.notify(pdu, ctf.getTarget());
-				incr("PDUSendsCompleted");
-			} catch (Exception e) {
-				e.printStackTrace(System.err);
-				incr("PDUSendsFailed");
-				error("Failed to send PDU to " + ctf, e);
+			if(ctf.dispatch(pdu)) {
+				queuedCounter.increment();
+			} else {
+				droppedCounter.increment();
 			}
 		}
 	}
@@ -115,27 +109,49 @@ public class SNMPDestination extends BaseDestination {
 	@Override
 	public Set<String> getSupportedMetricNames() {
 		Set<String> _metrics = new HashSet<String>(super.getSupportedMetricNames());
-		_metrics.add("PDUSendsCompleted");
-		_metrics.add("PDUSendsFailed");
+		_metrics.add("PDUSendsQueued");
+		_metrics.add("PDUSendsDropped");
 		return _metrics;
 	}
 	
+	/**
+	 * Returns the number of PDUs queued to a target's sender
+	 * @return the number of PDUs queued to a target's sender
+	 */
+	@ManagedMetric(category="SNMP", metricType=MetricType.COUNTER, description="the number of PDUs queued to a target's sender")
+	public long getPDUSendsQueued() {
+		return queuedCounter.get();
+	}
+	
+	/**
+	 * Returns the number of PDUs dropped because a target's send queue was full
+	 * @return the number of PDUs dropped because a target's send queue was full
+	 */
+	@ManagedMetric(category="SNMP", metricType=MetricType.COUNTER, description="the number of PDUs dropped because a target's send queue was full")
+	public long getPDUSendsDropped() {
+		return droppedCounter.get();
+	}
+	
 	/**
 	 * Returns the number of PDUs successfully sent to their endpoint
 	 * @return the number of PDUs successfully sent to their endpoint
 	 */
-	@ManagedMetric(category="SNMP", metricType=MetricType.COUNTER, description="the number of PDUs successfully sent to their endpoint")
+	@ManagedMetric(category="SNMP", metricType=MetricType.COUNTER, description="the number of PDUs successfully sent to their endpoint, summed across the targets")
 	public long getPDUSendsCompleted() {
-		return getMetricValue("PDUSendsCompleted");
+		long total = 0;
+		for(SNMPManager ctf: targets) total += ctf.getPDUsSent();
+		return total;
 	}
 	
 	/**
 	 * Returns the number of PDU sends that failed
 	 * @return the number of PDU sends that failed
 	 */
-	@ManagedMetric(category="SNMP", metricType=MetricType.COUNTER, description="the number of PDU sends that failed")
+	@ManagedMetric(category="SNMP", metricType=MetricType.COUNTER, description="the number of PDU sends that failed after all retries, summed across the targets")
 	public long getPDUSendsFailed() {
-		return getMetricValue("PDUSendsFailed");
+		long total = 0;
+		for(SNMPManager ctf: targets) total += ctf.getPDUsFailed();
+		return total;
 	}
 	
 		
@@ -25,7 +25,16 @@
 package org.helios.apmrouter.destination.snmp;
 
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.helios.apmrouter.collections.StripedCounter;
 import org.helios.apmrouter.server.ServerComponentBean;
 import org.snmp4j.CommunityTarget;
 import org.snmp4j.MessageDispatcher;
@@ -46,15 +55,29 @@ import org.snmp4j.util.MultiThreadedMessageDispatcher;
 import org.snmp4j.util.ThreadPool;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.support.MetricType;
 
 /**
  * <p>Title: SNMPManager</p>
- * <p>Description: Builder for an SNMP community target</p> 
+ * <p>Description: Builder for an SNMP community target and its asynchronous sender.</p> 
+ * <p>PDUs are dispatched into a bounded per-target queue drained by the target's own sender thread, so a slow or unreachable
+ * target only delays its own PDUs. Failed sends are retried a bounded number of times with exponential backoff, scheduled off
+ * the sender thread, and PDUs that do not fit in the queue are dropped.</p>
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>org.helios.apmrouter.destination.snmp.SNMPManager</code></p>
  */
-public class SNMPManager extends ServerComponentBean implements InitializingBean {
+public class SNMPManager extends ServerComponentBean implements InitializingBean, Runnable {
+	/** The shared scheduler for send retries */
+	protected static final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "SNMPRetryScheduler");
+			t.setDaemon(true);
+			return t;
+		}
+	});
 
 	/** The transport address */
 	protected Address taddress;
@@ -72,6 +95,30 @@ public class SNMPManager extends ServerComponentBean implements InitializingBean
 	protected int retryCount = 2;
 	/** The thread pool size for the MultiThreadedMessageDispatcher */
 	protected int dispatcherThreadCount = 1;
+	/** The capacity of the send queue */
+	protected int queueSize = 1000;
+	/** The maximum number of times a failed send is retried */
+	protected int maxSendRetries = 3;
+	/** The backoff in ms. before the first retry of a failed send, doubled for each subsequent retry */
+	protected long retryBackoff = 250;
+	/** The maximum backoff in ms. between retries */
+	protected long maxRetryBackoff = 10000;
+	/** The send queue */
+	protected BlockingQueue<QueuedPDU> sendQueue = null;
+	/** The sender thread */
+	protected Thread senderThread = null;
+	/** The sender thread run flag */
+	protected volatile boolean sending = false;
+	/** The counter of PDUs queued for sending */
+	protected final StripedCounter queuedCounter = counter("PDUsQueued");
+	/** The counter of PDUs sent */
+	protected final StripedCounter sentCounter = counter("PDUsSent");
+	/** The counter of PDU sends that failed after all retries */
+	protected final StripedCounter failedCounter = counter("PDUsFailed");
+	/** The counter of PDUs dropped because the send queue was full */
+	protected final StripedCounter droppedCounter = counter("PDUsDropped");
+	/** The counter of PDU send retries */
+	protected final StripedCounter retryCounter = counter("PDURetries");
 	
 	
 	
@@ -167,12 +214,114 @@ public class SNMPManager extends ServerComponentBean implements InitializingBean
 		msgDispatcher.addMessageProcessingModel(new MPv1());			
 		
 		snmp = new Snmp(msgDispatcher, transport);
+		sendQueue = new ArrayBlockingQueue<QueuedPDU>(queueSize);
+		sending = true;
+		senderThread = new Thread(this, "SNMPSender[" + taddress + "]");
+		senderThread.setDaemon(true);
+		senderThread.start();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.server.ServerComponentBean#doStop()
+	 */
+	@Override
+	protected void doStop() {
+		sending = false;
+		if(senderThread!=null) {
+			senderThread.interrupt();
+			senderThread = null;
+		}
+		if(sendQueue!=null) {
+			droppedCounter.add(sendQueue.size());
+			sendQueue.clear();
+		}
+	}
+	
+	/**
+	 * Queues the passed PDU for asynchronous sending to this community without blocking.
+	 * The PDU is copied, so the caller may dispatch the same PDU to several targets.
+	 * @param pdu The PDU to send
+	 * @return true if the PDU was queued, false if it was dropped because the queue was full or this target is not started
+	 */
+	public boolean dispatch(PDU pdu) {
+		return enqueue(new QueuedPDU((PDU)pdu.clone()));
+	}
+	
+	/**
+	 * Adds a queued PDU to the send queue without blocking
+	 * @param queued The queued PDU
+	 * @return true if the PDU was queued, false if it was dropped
+	 */
+	protected boolean enqueue(QueuedPDU queued) {
+		final BlockingQueue<QueuedPDU> queue = sendQueue;
+		if(sending && queue!=null && queue.offer(queued)) {
+			queuedCounter.increment();
+			return true;
+		}
+		droppedCounter.increment();
+		return false;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>Sends queued PDUs until stopped, scheduling a retry with backoff for each failed send</p>
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while(sending) {
+			final QueuedPDU queued;
+			try {
+				queued = sendQueue.take();
+			} catch (InterruptedException iex) {
+				continue;
+			}
+			try {
+				send(queued.pdu);
+				sentCounter.increment();
+			} catch (Exception ex) {
+				if(queued.attempts < maxSendRetries) {
+					final long backoff = Math.min(maxRetryBackoff, retryBackoff << queued.attempts);
+					queued.attempts++;
+					retryCounter.increment();
+					retryScheduler.schedule(new Runnable() {
+						@Override
+						public void run() {
+							enqueue(queued);
+						}
+					}, backoff, TimeUnit.MILLISECONDS);
+				} else {
+					failedCounter.increment();
+					error("Failed to send PDU to ", this, " after [", queued.attempts, "] retries", ex);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * <p>Title: QueuedPDU</p>
+	 * <p>Description: A PDU waiting to be sent, with the number of failed attempts so far</p> 
+	 */
+	protected static class QueuedPDU {
+		/** The PDU to send */
+		final PDU pdu;
+		/** The number of failed send attempts */
+		int attempts = 0;
+		
+		/**
+		 * Creates a new QueuedPDU
+		 * @param pdu The PDU to send
+		 */
+		QueuedPDU(PDU pdu) {
+			this.pdu = pdu;
+		}
 	}
 	
 	
 	
 	/**
-	 * Sends the passed PDU to this community
+	 * Sends the passed PDU to this community synchronously on the calling thread
 	 * @param pdu the pdu to send
 	 * @throws IOException thrown on a send exception
 	 */
@@ -234,4 +383,145 @@ public class SNMPManager extends ServerComponentBean implements InitializingBean
 		this.dispatcherThreadCount = dispatcherThreadCount;
 	}
 	
+	/**
+	 * Returns the capacity of the send queue
+	 * @return the capacity of the send queue
+	 */
+	@ManagedAttribute(description="The capacity of the send queue")
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	/**
+	 * Sets the capacity of the send queue. Takes effect on start.
+	 * @param queueSize the capacity of the send queue
+	 */
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Returns the maximum number of times a failed send is retried
+	 * @return the maximum number of send retries
+	 */
+	@ManagedAttribute(description="The maximum number of times a failed send is retried")
+	public int getMaxSendRetries() {
+		return maxSendRetries;
+	}
+
+	/**
+	 * Sets the maximum number of times a failed send is retried
+	 * @param maxSendRetries the maximum number of send retries
+	 */
+	@ManagedAttribute(description="The maximum number of times a failed send is retried")
+	public void setMaxSendRetries(int maxSendRetries) {
+		this.maxSendRetries = maxSendRetries;
+	}
+
+	/**
+	 * Returns the backoff in ms. before the first retry of a failed send
+	 * @return the initial retry backoff in ms.
+	 */
+	@ManagedAttribute(description="The backoff in ms. before the first retry of a failed send, doubled for each subsequent retry")
+	public long getRetryBackoff() {
+		return retryBackoff;
+	}
+
+	/**
+	 * Sets the backoff in ms. before the first retry of a failed send
+	 * @param retryBackoff the initial retry backoff in ms.
+	 */
+	@ManagedAttribute(description="The backoff in ms. before the first retry of a failed send, doubled for each subsequent retry")
+	public void setRetryBackoff(long retryBackoff) {
+		this.retryBackoff = retryBackoff;
+	}
+
+	/**
+	 * Returns the maximum backoff in ms. between retries
+	 * @return the maximum retry backoff in ms.
+	 */
+	@ManagedAttribute(description="The maximum backoff in ms. between retries")
+	public long getMaxRetryBackoff() {
+		return maxRetryBackoff;
+	}
+
+	/**
+	 * Sets the maximum backoff in ms. between retries
+	 * @param maxRetryBackoff the maximum retry backoff in ms.
+	 */
+	@ManagedAttribute(description="The maximum backoff in ms. between retries")
+	public void setMaxRetryBackoff(long maxRetryBackoff) {
+		this.maxRetryBackoff = maxRetryBackoff;
+	}
+	
+	/**
+	 * Returns the number of PDUs waiting in the send queue
+	 * @return the send queue depth
+	 */
+	@ManagedMetric(category="SNMP", metricType=MetricType.GAUGE, description="the number of PDUs waiting in the send queue")
+	public int getQueueDepth() {
+		final BlockingQueue<QueuedPDU> queue = sendQueue;
+		return queue==null ? 0 : queue.size();
+	}
+	
+	/**
+	 * Returns the number of PDUs queued for sending
+	 * @return the number of PDUs queued
+	 */
+	@ManagedMetric(category="SNMP", metricType=MetricType.COUNTER, description="the number of PDUs queued for sending")
+	public long getPDUsQueued() {
+		return queuedCounter.get();
+	}
+	
+	/**
+	 * Returns the number of PDUs sent
+	 * @return the number of PDUs sent
+	 */
+	@ManagedMetric(category="SNMP", metricType=MetricType.COUNTER, description="the number of PDUs sent")
+	public long getPDUsSent() {
+		return sentCounter.get();
+	}
+	
+	/**
+	 * Returns the number of PDU sends that failed after all retries
+	 * @return the number of failed PDU sends
+	 */
+	@ManagedMetric(category="SNMP", metricType=MetricType.COUNTER, description="the number of PDU sends that failed after all retries")
+	public long getPDUsFailed() {
+		return failedCounter.get();
+	}
+	
+	/**
+	 * Returns the number of PDUs dropped because the send queue was full
+	 * @return the number of dropped PDUs
+	 */
+	@ManagedMetric(category="SNMP", metricType=MetricType.COUNTER, description="the number of PDUs dropped because the send queue was full")
+	public long getPDUsDropped() {
+		return droppedCounter.get();
+	}
+	
+	/**
+	 * Returns the number of PDU send retries
+	 * @return the number of PDU send retries
+	 */
+	@ManagedMetric(category="SNMP", metricType=MetricType.COUNTER, description="the number of PDU send retries")
+	public long getPDURetries() {
+		return retryCounter.get();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.server.ServerComponent#getSupportedMetricNames()
+	 */
+	@Override
+	public Set<String> getSupportedMetricNames() {
+		Set<String> _metrics = new HashSet<String>(super.getSupportedMetricNames());
+		_metrics.add("PDUsQueued");
+		_metrics.add("PDUsSent");
+		_metrics.add("PDUsFailed");
+		_metrics.add("PDUsDropped");
+		_metrics.add("PDURetries");
+		return _metrics;
+	}
+	
 }
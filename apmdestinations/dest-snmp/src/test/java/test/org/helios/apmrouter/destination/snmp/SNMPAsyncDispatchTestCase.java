@@ -0,0 +1,222 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.apmrouter.destination.snmp;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.helios.apmrouter.destination.snmp.SNMPManager;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.snmp4j.CommandResponder;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.TimeTicks;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+/**
+ * <p>Title: SNMPAsyncDispatchTestCase</p>
+ * <p>Description: Verifies that traps dispatched to several {@link SNMPManager}s are delivered to local UDP trap receivers 
+ * without being held up by a dead target whose sends block and fail.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.apmrouter.destination.snmp.SNMPAsyncDispatchTestCase</code></p>
+ */
+public class SNMPAsyncDispatchTestCase {
+	/** The number of traps dispatched */
+	static final int TRAPS = 200;
+	/** The time in ms. a send to the dead target blocks before failing */
+	static final long DEAD_SEND_TIME = 1500;
+	
+	/** The started receivers */
+	final List<Snmp> receivers = new ArrayList<Snmp>();
+	/** The started managers */
+	final List<SNMPManager> managers = new ArrayList<SNMPManager>();
+	
+	/**
+	 * <p>Title: DeadTarget</p>
+	 * <p>Description: A target that blocks on every send and then fails, like an unreachable manager behind a connect or inform timeout</p> 
+	 */
+	static class DeadTarget extends SNMPManager {
+		/** The number of send attempts */
+		final AtomicInteger attempts = new AtomicInteger(0);
+		@Override
+		public void send(PDU pdu) throws IOException {
+			attempts.incrementAndGet();
+			try { Thread.sleep(DEAD_SEND_TIME); } catch (InterruptedException iex) { /* No Op */ }
+			throw new IOException("Target unreachable");
+		}
+	}
+	
+	/**
+	 * Stops the managers and receivers
+	 * @throws Exception thrown on any error
+	 */
+	@After
+	public void tearDown() throws Exception {
+		for(SNMPManager manager: managers) manager.stop();
+		for(Snmp receiver: receivers) receiver.close();
+	}
+	
+	/**
+	 * Starts a local UDP trap receiver counting down the passed latch for each trap received
+	 * @param latch The latch to count down
+	 * @return the receiver's address
+	 * @throws Exception thrown on any error
+	 */
+	UdpAddress startReceiver(final CountDownLatch latch) throws Exception {
+		DatagramSocket ds = new DatagramSocket(0);
+		int port = ds.getLocalPort();
+		ds.close();
+		UdpAddress address = new UdpAddress("127.0.0.1/" + port);
+		DefaultUdpTransportMapping transport = new DefaultUdpTransportMapping(address);
+		Snmp snmp = new Snmp(transport);
+		snmp.addCommandResponder(new CommandResponder() {
+			@Override
+			public void processPdu(CommandResponderEvent event) {
+				latch.countDown();
+			}
+		});
+		transport.listen();
+		receivers.add(snmp);
+		return address;
+	}
+	
+	/**
+	 * Starts a manager for the passed address
+	 * @param manager The manager to start
+	 * @param address The target address
+	 * @return the started manager
+	 * @throws Exception thrown on any error
+	 */
+	SNMPManager startManager(SNMPManager manager, String address) throws Exception {
+		manager.setAddress(address);
+		manager.setRetryBackoff(50);
+		manager.setMaxSendRetries(2);
+		manager.setQueueSize(TRAPS);
+		manager.start();
+		managers.add(manager);
+		return manager;
+	}
+	
+	/**
+	 * Creates a test trap
+	 * @param seq The trap sequence number
+	 * @return the trap PDU
+	 */
+	static PDU trap(int seq) {
+		PDU pdu = new PDU();
+		pdu.setType(PDU.TRAP);
+		pdu.add(new VariableBinding(SnmpConstants.sysUpTime, new TimeTicks(seq)));
+		pdu.add(new VariableBinding(SnmpConstants.snmpTrapOID, new OID("1.3.6.1.4.1.9999.1")));
+		pdu.add(new VariableBinding(new OID("1.3.6.1.4.1.9999.1.1"), new OctetString("trap#" + seq)));
+		return pdu;
+	}
+
+	/**
+	 * Dispatches traps to two healthy receivers and a dead target and verifies that dispatch does not block 
+	 * and that the healthy receivers get every trap long before a single send to the dead target completes
+	 * @throws Exception thrown on any error
+	 */
+	@Test(timeout=30000)
+	public void testDeadTargetDoesNotDelayHealthyTargets() throws Exception {
+		CountDownLatch received = new CountDownLatch(TRAPS * 2);
+		SNMPManager healthy1 = startManager(new SNMPManager(), "udp:" + startReceiver(received));
+		SNMPManager healthy2 = startManager(new SNMPManager(), "udp:" + startReceiver(received));
+		DeadTarget dead = (DeadTarget)startManager(new DeadTarget(), "udp:127.0.0.1/9");
+		SNMPManager[] targets = new SNMPManager[]{dead, healthy1, healthy2};
+		long start = System.nanoTime();
+		for(int i = 0; i < TRAPS; i++) {
+			PDU pdu = trap(i);
+			for(SNMPManager target: targets) {
+				Assert.assertTrue("Dispatch was rejected", target.dispatch(pdu));
+			}
+		}
+		long dispatchMs = TimeUnit.MILLISECONDS.convert(System.nanoTime()-start, TimeUnit.NANOSECONDS);
+		Assert.assertTrue("Healthy targets did not receive all traps", received.await(DEAD_SEND_TIME, TimeUnit.MILLISECONDS));
+		long deliveryMs = TimeUnit.MILLISECONDS.convert(System.nanoTime()-start, TimeUnit.NANOSECONDS);
+		log("Dispatched [" + (TRAPS*3) + "] traps in [" + dispatchMs + "] ms, healthy targets received all in [" + deliveryMs + "] ms");
+		Assert.assertTrue("Dispatch blocked for [" + dispatchMs + "] ms", dispatchMs < DEAD_SEND_TIME);
+		Assert.assertEquals(TRAPS, healthy1.getPDUsSent());
+		Assert.assertEquals(TRAPS, healthy2.getPDUsSent());
+		Assert.assertEquals("Dead target sends completed", 0, dead.getPDUsSent());
+		Assert.assertTrue("Dead target still holds its backlog", dead.getQueueDepth() > 0);
+	}
+	
+	/**
+	 * Verifies that a failed send is retried the configured number of times with backoff and then counted as failed,
+	 * and that a full send queue drops rather than blocks
+	 * @throws Exception thrown on any error
+	 */
+	@Test(timeout=30000)
+	public void testBoundedRetryAndQueue() throws Exception {
+		DeadTarget dead = new DeadTarget() {
+			@Override
+			public void send(PDU pdu) throws IOException {
+				attempts.incrementAndGet();
+				throw new IOException("Target unreachable");
+			}
+		};
+		startManager(dead, "udp:127.0.0.1/9");
+		Assert.assertTrue(dead.dispatch(trap(0)));
+		long deadline = System.currentTimeMillis() + 5000;
+		while(dead.getPDUsFailed()==0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+		Assert.assertEquals("Failed sends", 1, dead.getPDUsFailed());
+		Assert.assertEquals("Retries", 2, dead.getPDURetries());
+		Assert.assertEquals("Attempts", 3, dead.attempts.get());
+		
+		DeadTarget blocked = (DeadTarget)startManager(new DeadTarget(), "udp:127.0.0.1/9");
+		int accepted = 0;
+		long start = System.nanoTime();
+		for(int i = 0; i < TRAPS * 2; i++) {
+			if(blocked.dispatch(trap(i))) accepted++;
+		}
+		long elapsedMs = TimeUnit.MILLISECONDS.convert(System.nanoTime()-start, TimeUnit.NANOSECONDS);
+		// the sender holds one PDU in its blocked send, the queue holds the rest
+		Assert.assertTrue("Accepted [" + accepted + "]", accepted <= TRAPS + 1);
+		Assert.assertEquals(TRAPS * 2 - accepted, blocked.getPDUsDropped());
+		Assert.assertTrue("Dispatch to a full queue blocked for [" + elapsedMs + "] ms", elapsedMs < DEAD_SEND_TIME);
+	}
+	
+	/**
+	 * Out logger
+	 * @param msg the message
+	 */
+	static void log(Object msg) {
+		System.out.println(msg);
+	}
+}
@@ -0,0 +1,51 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.byteman.sockets.impl;
+
+/**
+ * <p>Title: ISocketIOSlot</p>
+ * <p>Description: Synthetic interface woven onto the socket input and output stream classes to carry the id of the
+ * {@link SocketIOSlotTable} slot the stream's I/O is accounted to.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.byteman.sockets.impl.ISocketIOSlot</code></p>
+ */
+
+public interface ISocketIOSlot {
+	/** The name of the slot id field woven onto the stream classes */
+	public static final String SLOT_FIELD = "_$ioSlot";
+	
+	/**
+	 * Returns the I/O slot id of this stream
+	 * @return the slot id or -1 if the stream is not tracked
+	 */
+	public int getIOSlot();
+	
+	/**
+	 * Sets the I/O slot id of this stream
+	 * @param slot the slot id or -1 to stop tracking the stream
+	 */
+	public void setIOSlot(int slot);
+}
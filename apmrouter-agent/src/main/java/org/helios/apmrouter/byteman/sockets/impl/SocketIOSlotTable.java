@@ -0,0 +1,169 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.byteman.sockets.impl;
+
+import java.lang.reflect.Field;
+
+import sun.misc.Unsafe;
+
+/**
+ * <p>Title: SocketIOSlotTable</p>
+ * <p>Description: A fixed size off-heap table of per-socket I/O counters. A slot is reserved when a socket opens and released when it closes.</p>
+ * <p>Each slot is {@link #SLOT_SIZE} bytes, with the input counters on the first cache line and the output counters on the second, since a socket is
+ * usually read and written by different threads. Each side is written by the one thread reading or writing the stream, so the counters are
+ * updated with a plain unsynchronized add and the harvester reads them with a volatile read. Concurrent readers (or writers) of the same stream
+ * may lose an update, which is an acceptable trade for a hot path with no locks or atomics.</p>
+ * <p>The table memory is never freed since a stream may still hold a slot id after its socket is released. 
+ * The owning tracker instance is cached and reused for the life of the JVM.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.byteman.sockets.impl.SocketIOSlotTable</code></p>
+ */
+
+public class SocketIOSlotTable {
+	/** The size of a slot in bytes */
+	public static final int SLOT_SIZE = 128;
+	/** The shift to convert a slot id to a slot offset */
+	private static final int SLOT_SHIFT = 7;
+	/** The slot offset of the bytes read counter */
+	public static final int BYTES_IN = 0;
+	/** The slot offset of the read operations counter */
+	public static final int READS = 8;
+	/** The slot offset of the bytes written counter */
+	public static final int BYTES_OUT = 64;
+	/** The slot offset of the write operations counter */
+	public static final int WRITES = 72;
+	/** The default number of slots */
+	public static final int DEFAULT_CAPACITY = 4096;
+	
+	/** The unsafe instance */
+	private static final Unsafe unsafe;
+	
+	static {
+		try {
+			Field field = Unsafe.class.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = (Unsafe)field.get(null);
+		} catch (Exception e) {
+			throw new RuntimeException("Failed to get the Unsafe instance", e);
+		}
+	}
+	
+	/** The base address of the table */
+	private final long address;
+	/** The number of slots */
+	private final int capacity;
+	/** The stack of free slot ids */
+	private final int[] free;
+	/** The number of free slot ids in the stack */
+	private int freeCount;
+	
+	/**
+	 * Creates a new SocketIOSlotTable
+	 * @param capacity The number of slots
+	 */
+	public SocketIOSlotTable(int capacity) {
+		if(capacity<1) throw new IllegalArgumentException("Invalid capacity [" + capacity + "]", new Throwable());
+		this.capacity = capacity;
+		address = unsafe.allocateMemory((long)capacity << SLOT_SHIFT);
+		unsafe.setMemory(address, (long)capacity << SLOT_SHIFT, (byte)0);
+		free = new int[capacity];
+		for(int i = 0; i < capacity; i++) {
+			free[i] = capacity-1-i;
+		}
+		freeCount = capacity;
+	}
+	
+	/**
+	 * Reserves and zeroes a slot
+	 * @return the reserved slot id or -1 if the table is full
+	 */
+	public synchronized int reserve() {
+		if(freeCount==0) return -1;
+		int slot = free[--freeCount];
+		unsafe.setMemory(address + ((long)slot << SLOT_SHIFT), SLOT_SIZE, (byte)0);
+		return slot;
+	}
+	
+	/**
+	 * Returns a slot to the free stack. The caller is expected to have harvested the slot's final values.
+	 * @param slot The slot id to release
+	 */
+	public synchronized void release(int slot) {
+		if(slot<0 || slot>=capacity) return;
+		free[freeCount++] = slot;
+	}
+	
+	/**
+	 * Accounts a read on the passed slot
+	 * @param slot The slot id, ignored if negative
+	 * @param bytes The number of bytes read
+	 */
+	public void read(int slot, int bytes) {
+		if(slot<0) return;
+		long a = address + ((long)slot << SLOT_SHIFT);
+		unsafe.putLong(a + BYTES_IN, unsafe.getLong(a + BYTES_IN) + bytes);
+		unsafe.putLong(a + READS, unsafe.getLong(a + READS) + 1);
+	}
+	
+	/**
+	 * Accounts a write on the passed slot
+	 * @param slot The slot id, ignored if negative
+	 * @param bytes The number of bytes written
+	 */
+	public void write(int slot, int bytes) {
+		if(slot<0) return;
+		long a = address + ((long)slot << SLOT_SHIFT);
+		unsafe.putLong(a + BYTES_OUT, unsafe.getLong(a + BYTES_OUT) + bytes);
+		unsafe.putLong(a + WRITES, unsafe.getLong(a + WRITES) + 1);
+	}
+	
+	/**
+	 * Reads a counter from a slot
+	 * @param slot The slot id
+	 * @param field The slot offset of the counter, one of {@link #BYTES_IN}, {@link #READS}, {@link #BYTES_OUT} or {@link #WRITES}
+	 * @return the counter value
+	 */
+	public long get(int slot, int field) {
+		if(slot<0 || slot>=capacity) throw new IllegalArgumentException("Invalid slot [" + slot + "]", new Throwable());
+		return unsafe.getLongVolatile(null, address + ((long)slot << SLOT_SHIFT) + field);
+	}
+	
+	/**
+	 * Returns the number of slots
+	 * @return the number of slots
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	/**
+	 * Returns the number of reserved slots
+	 * @return the number of reserved slots
+	 */
+	public synchronized int getReserved() {
+		return capacity - freeCount;
+	}
+}
@@ -0,0 +1,352 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.byteman.sockets.impl;
+
+import org.cliffc.high_scale_lib.NonBlockingHashMap;
+import org.helios.apmrouter.jmx.ConfigurationHelper;
+import org.helios.apmrouter.trace.ITracer;
+import org.helios.apmrouter.trace.TracerFactory;
+import org.helios.apmrouter.util.SimpleLogger;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Title: SocketIOSlotTracker</p>
+ * <p>Description: An {@link ISocketTracker} that accounts socket I/O into per-socket slots of an off-heap {@link SocketIOSlotTable}.</p>
+ * <p>A slot is reserved when a socket connects or is accepted, and its id is set on the socket's instrumented streams through {@link ISocketIOSlot},
+ * so each read and write is a single unsynchronized add with no lookup. The slot is released when the socket closes. The harvester
+ * turns the slot deltas into per remote endpoint metrics, namespaced <b><code>sockets/out/&lt;host&gt;/&lt;port&gt;</code></b> for outbound 
+ * connections and <b><code>sockets/in/&lt;local port&gt;/&lt;host&gt;</code></b> for accepted connections.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.byteman.sockets.impl.SocketIOSlotTracker</code></p>
+ */
+
+public class SocketIOSlotTracker extends EmptySocketTracker {
+	/** The system property name for the number of socket I/O slots */
+	public static final String SOCKET_SLOTS_PROP = "org.helios.apmrouter.socket.slots";
+	
+	/** The off-heap slot table */
+	protected final SocketIOSlotTable table;
+	/** The tracked sockets keyed by socket impl */
+	protected final NonBlockingHashMap<ISocketImpl, TrackedSocket> sockets = new NonBlockingHashMap<ISocketImpl, TrackedSocket>();
+	/** The final deltas of closed sockets awaiting the next harvest, keyed by endpoint */
+	protected final Map<String, long[]> closedDeltas = new HashMap<String, long[]>();
+	/** The number of sockets that could not be tracked because the slot table was full */
+	protected final AtomicLong untrackedSockets = new AtomicLong(0L);
+	
+	/** The endpoint delta index of the bytes read */
+	public static final int DELTA_BYTES_IN = 0;
+	/** The endpoint delta index of the read operations */
+	public static final int DELTA_READS = 1;
+	/** The endpoint delta index of the bytes written */
+	public static final int DELTA_BYTES_OUT = 2;
+	/** The endpoint delta index of the write operations */
+	public static final int DELTA_WRITES = 3;
+	
+	/**
+	 * Creates a new SocketIOSlotTracker
+	 */
+	public SocketIOSlotTracker() {
+		super();
+		table = new SocketIOSlotTable(ConfigurationHelper.getIntSystemThenEnvProperty(SOCKET_SLOTS_PROP, SocketIOSlotTable.DEFAULT_CAPACITY));
+	}
+	
+	/**
+	 * <p>Title: TrackedSocket</p>
+	 * <p>Description: The heap side state of a tracked socket</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>org.helios.apmrouter.byteman.sockets.impl.SocketIOSlotTracker.TrackedSocket</code></p>
+	 */
+	protected static class TrackedSocket {
+		/** The slot id */
+		final int slot;
+		/** The endpoint key */
+		final String endpoint;
+		/** The socket's input stream */
+		volatile ISocketIOSlot in = null;
+		/** The socket's output stream */
+		volatile ISocketIOSlot out = null;
+		/** The counter values at the last harvest, indexed by the endpoint delta indexes */
+		final long[] last = new long[4];
+		
+		/**
+		 * Creates a new TrackedSocket
+		 * @param slot The slot id
+		 * @param endpoint The endpoint key
+		 */
+		TrackedSocket(int slot, String endpoint) {
+			this.slot = slot;
+			this.endpoint = endpoint;
+		}
+	}
+	
+	//==========================================================================================
+	//   Hot path: stream I/O
+	//==========================================================================================
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.byteman.sockets.impl.EmptySocketTracker#onSocketWrite(java.io.OutputStream, java.lang.Object, byte[], int, int)
+	 */
+	@Override
+	public void onSocketWrite(OutputStream os, Object socket, byte[] b, int off, int len) {
+		if(os instanceof ISocketIOSlot) table.write(((ISocketIOSlot)os).getIOSlot(), len);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.byteman.sockets.impl.EmptySocketTracker#onRead(java.io.InputStream, int, java.lang.Object, byte[])
+	 */
+	@Override
+	public void onRead(InputStream is, int actualBytesRead, Object socket, byte[] buffer) {
+		if(actualBytesRead>0 && is instanceof ISocketIOSlot) table.read(((ISocketIOSlot)is).getIOSlot(), actualBytesRead);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.byteman.sockets.impl.EmptySocketTracker#onRead(java.io.InputStream, int, java.lang.Object, byte[], int, int)
+	 */
+	@Override
+	public void onRead(InputStream is, int actualBytesRead, Object socket, byte[] buffer, int off, int length) {
+		if(actualBytesRead>0 && is instanceof ISocketIOSlot) table.read(((ISocketIOSlot)is).getIOSlot(), actualBytesRead);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.byteman.sockets.impl.EmptySocketTracker#onRead(java.io.InputStream, int, java.lang.Object)
+	 */
+	@Override
+	public void onRead(InputStream is, int value, Object socket) {
+		if(value>=0 && is instanceof ISocketIOSlot) table.read(((ISocketIOSlot)is).getIOSlot(), 1);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.byteman.sockets.impl.EmptySocketTracker#onSkip(java.io.InputStream, long, java.lang.Object, long)
+	 */
+	@Override
+	public void onSkip(InputStream is, long skipped, Object socket, long skip) {
+		if(skipped>0 && is instanceof ISocketIOSlot) table.read(((ISocketIOSlot)is).getIOSlot(), (int)skipped);
+	}
+	
+	//==========================================================================================
+	//   Slot lifecycle
+	//==========================================================================================
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.byteman.sockets.impl.EmptySocketTracker#onConnect(org.helios.apmrouter.byteman.sockets.impl.ISocketImpl, java.net.SocketAddress, int)
+	 */
+	@Override
+	public void onConnect(ISocketImpl socketImpl, SocketAddress address, int timeout) {
+		track(socketImpl, false);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.byteman.sockets.impl.EmptySocketTracker#onConnect(org.helios.apmrouter.byteman.sockets.impl.ISocketImpl, java.net.InetAddress, int)
+	 */
+	@Override
+	public void onConnect(ISocketImpl socketImpl, InetAddress address, int timeout) {
+		track(socketImpl, false);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.byteman.sockets.impl.EmptySocketTracker#onConnect(org.helios.apmrouter.byteman.sockets.impl.ISocketImpl, java.lang.String, int)
+	 */
+	@Override
+	public void onConnect(ISocketImpl socketImpl, String host, int port) {
+		track(socketImpl, false);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.byteman.sockets.impl.EmptySocketTracker#onAccept(org.helios.apmrouter.byteman.sockets.impl.ISocketImpl, org.helios.apmrouter.byteman.sockets.impl.ISocketImpl)
+	 */
+	@Override
+	public void onAccept(ISocketImpl socketImpl, ISocketImpl acceptedSocketImpl) {
+		track(acceptedSocketImpl, true);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.byteman.sockets.impl.EmptySocketTracker#onGetInputStream(org.helios.apmrouter.byteman.sockets.impl.ISocketImpl, java.io.InputStream)
+	 */
+	@Override
+	public void onGetInputStream(ISocketImpl socketImpl, InputStream inputStream) {
+		TrackedSocket ts = sockets.get(socketImpl);
+		if(ts!=null && inputStream instanceof ISocketIOSlot) {
+			ts.in = (ISocketIOSlot)inputStream;
+			ts.in.setIOSlot(ts.slot);
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.byteman.sockets.impl.EmptySocketTracker#onGetOutputStream(org.helios.apmrouter.byteman.sockets.impl.ISocketImpl, java.io.OutputStream)
+	 */
+	@Override
+	public void onGetOutputStream(ISocketImpl socketImpl, OutputStream outputStream) {
+		TrackedSocket ts = sockets.get(socketImpl);
+		if(ts!=null && outputStream instanceof ISocketIOSlot) {
+			ts.out = (ISocketIOSlot)outputStream;
+			ts.out.setIOSlot(ts.slot);
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.byteman.sockets.impl.EmptySocketTracker#onClose(org.helios.apmrouter.byteman.sockets.impl.ISocketImpl)
+	 */
+	@Override
+	public void onClose(ISocketImpl socketImpl) {
+		TrackedSocket ts = sockets.remove(socketImpl);
+		if(ts==null) return;
+		if(ts.in!=null) ts.in.setIOSlot(-1);
+		if(ts.out!=null) ts.out.setIOSlot(-1);
+		synchronized(closedDeltas) {
+			fold(ts, closedDeltas);
+			table.release(ts.slot);
+		}
+	}
+	
+	/**
+	 * Reserves a slot for a connected socket if it is not already tracked
+	 * @param socketImpl The connected socket impl
+	 * @param inbound true if the socket was accepted, false if it connected out
+	 */
+	protected void track(ISocketImpl socketImpl, boolean inbound) {
+		if(socketImpl==null || sockets.containsKey(socketImpl)) return;
+		InetAddress remote = socketImpl.getInetAddress();
+		if(remote==null) return;
+		String endpoint = inbound 
+				? "in/" + socketImpl.getLocalPort() + "/" + remote.getHostAddress() 
+				: "out/" + remote.getHostAddress() + "/" + socketImpl.getPort();
+		int slot = table.reserve();
+		if(slot==-1) {
+			if(untrackedSockets.incrementAndGet()==1) {
+				SimpleLogger.warn("SocketIOSlotTracker slot table is full at [", table.getCapacity(), "] sockets. Increase [", SOCKET_SLOTS_PROP, "]");
+			}
+			return;
+		}
+		if(sockets.putIfAbsent(socketImpl, new TrackedSocket(slot, endpoint))!=null) {
+			table.release(slot);
+		}
+	}
+	
+	//==========================================================================================
+	//   Harvesting
+	//==========================================================================================
+	
+	/**
+	 * Adds the deltas of the passed tracked socket since its last harvest into the passed endpoint deltas. Called holding the {@link #closedDeltas} lock.
+	 * @param ts The tracked socket
+	 * @param deltas The endpoint deltas to add to
+	 */
+	protected void fold(TrackedSocket ts, Map<String, long[]> deltas) {
+		long bytesIn = table.get(ts.slot, SocketIOSlotTable.BYTES_IN), reads = table.get(ts.slot, SocketIOSlotTable.READS);
+		long bytesOut = table.get(ts.slot, SocketIOSlotTable.BYTES_OUT), writes = table.get(ts.slot, SocketIOSlotTable.WRITES);
+		if(bytesIn==ts.last[DELTA_BYTES_IN] && reads==ts.last[DELTA_READS] && bytesOut==ts.last[DELTA_BYTES_OUT] && writes==ts.last[DELTA_WRITES]) return;
+		long[] d = deltas.get(ts.endpoint);
+		if(d==null) {
+			d = new long[4];
+			deltas.put(ts.endpoint, d);
+		}
+		d[DELTA_BYTES_IN] += bytesIn - ts.last[DELTA_BYTES_IN];
+		d[DELTA_READS] += reads - ts.last[DELTA_READS];
+		d[DELTA_BYTES_OUT] += bytesOut - ts.last[DELTA_BYTES_OUT];
+		d[DELTA_WRITES] += writes - ts.last[DELTA_WRITES];
+		ts.last[DELTA_BYTES_IN] = bytesIn; ts.last[DELTA_READS] = reads;
+		ts.last[DELTA_BYTES_OUT] = bytesOut; ts.last[DELTA_WRITES] = writes;
+	}
+	
+	/**
+	 * Collects the I/O deltas of all sockets since the last collection, keyed by endpoint
+	 * @return a map of deltas indexed by the endpoint delta indexes, keyed by endpoint
+	 */
+	public Map<String, long[]> collect() {
+		synchronized(closedDeltas) {
+			Map<String, long[]> deltas = new HashMap<String, long[]>(closedDeltas);
+			closedDeltas.clear();
+			for(TrackedSocket ts: sockets.values()) {
+				fold(ts, deltas);
+			}
+			return deltas;
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.byteman.sockets.impl.EmptySocketTracker#harvest()
+	 */
+	@Override
+	protected void harvest() {
+		Map<String, long[]> deltas = collect();
+		if(deltas.isEmpty()) return;
+		ITracer tracer = TracerFactory.getTracer();
+		for(Map.Entry<String, long[]> entry: deltas.entrySet()) {
+			String[] namespace = ("sockets/" + entry.getKey()).split("/");
+			long[] d = entry.getValue();
+			tracer.traceCounter(d[DELTA_BYTES_IN], "BytesIn", namespace);
+			tracer.traceCounter(d[DELTA_READS], "Reads", namespace);
+			tracer.traceCounter(d[DELTA_BYTES_OUT], "BytesOut", namespace);
+			tracer.traceCounter(d[DELTA_WRITES], "Writes", namespace);
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.byteman.sockets.impl.EmptySocketTracker#requiresHarvester()
+	 */
+	@Override
+	public boolean requiresHarvester() {
+		return true;
+	}
+	
+	/**
+	 * Returns the number of currently tracked sockets
+	 * @return the number of currently tracked sockets
+	 */
+	public int getTrackedSocketCount() {
+		return sockets.size();
+	}
+	
+	/**
+	 * Returns the number of sockets that could not be tracked because the slot table was full
+	 * @return the number of untracked sockets
+	 */
+	public long getUntrackedSocketCount() {
+		return untrackedSockets.get();
+	}
+}
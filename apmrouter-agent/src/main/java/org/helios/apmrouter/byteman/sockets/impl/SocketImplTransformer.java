@@ -483,6 +483,20 @@ public class SocketImplTransformer implements ClassFileTransformer {
 		}
 	}
 	
+	/**
+	 * Weaves {@link ISocketIOSlot} onto a socket stream class so a socket tracker can tag the stream with its I/O slot id
+	 * @param stream the javassist representation of the socket stream class
+	 * @throws Exception thrown on any error instrumenting the class
+	 */
+	protected void addIOSlot(CtClass stream) throws Exception {
+		stream.addInterface(classPool.get(ISocketIOSlot.class.getName()));
+		CtField slotField = new CtField(CtClass.intType, ISocketIOSlot.SLOT_FIELD, stream);
+		slotField.setModifiers(Modifier.PRIVATE | Modifier.VOLATILE);
+		stream.addField(slotField, "-1");
+		stream.addMethod(CtNewMethod.make("public int getIOSlot() { return " + ISocketIOSlot.SLOT_FIELD + "; }", stream));
+		stream.addMethod(CtNewMethod.make("public void setIOSlot(int slot) { " + ISocketIOSlot.SLOT_FIELD + " = slot; }", stream));
+	}
+	
 	/**
 	 * Instruments the SocketOutputStream class
 	 * @param socketOutput the javassist representation of the SocketOutputStream class
@@ -490,6 +504,7 @@ public class SocketImplTransformer implements ClassFileTransformer {
 	 * @throws Exception thrown on any error instrumenting the class
 	 */
 	protected byte[] transformSocketOutputStream(CtClass socketOutput) throws Exception {
+		addIOSlot(socketOutput);
 		for(CtMethod method: socketOutput.getDeclaredMethods()) {
 			String key = method.getName() + "." + method.getSignature();
 			String transform = SocketTrackingAdapter.SOCKET_OS_ADAPTERS.get(key);
@@ -507,6 +522,7 @@ public class SocketImplTransformer implements ClassFileTransformer {
 	 * @throws Exception thrown on any error instrumenting the class
 	 */
 	protected byte[] transformSocketInputStream(CtClass socketInput) throws Exception {
+		addIOSlot(socketInput);
 		for(CtMethod method: socketInput.getDeclaredMethods()) {
 			String key = method.getName() + "." + method.getSignature();
 			String transform = SocketTrackingAdapter.SOCKET_IS_ADAPTERS.get(key);
@@ -0,0 +1,428 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.collections;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.helios.apmrouter.jmx.ConfigurationHelper;
+
+/**
+ * <p>Title: LatencyHistogram</p>
+ * <p>Description: A lock-free, fixed memory, log-bucketed histogram for recording elapsed times (or any non-negative long) on hot paths.</p>
+ * <p>Values are counted in buckets of <b><code>16</code></b> linear sub-buckets per power of 2, so any reported value is within about 6% of the recorded one.
+ * Values less than 32 are counted exactly.</p>
+ * <p>Each recording thread is assigned its own bucket array on first use which only that thread writes to, using ordered writes, so recording
+ * takes no locks and shares no cache lines with other recording threads. Readers sum the per-thread arrays into an interval {@link Snapshot}
+ * which is rolled at most once every {@link #getIntervalMs()} ms. Recorders of threads that have terminated are folded into a retired total on the next roll.</p>
+ * <p>Each recording thread uses <b><code>{@value #BUCKET_COUNT} x 8</code></b> bytes per histogram.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.collections.LatencyHistogram</code></p>
+ */
+
+public class LatencyHistogram {
+	/** The number of bits of sub-bucket precision */
+	public static final int SUB_BUCKET_BITS = 4;
+	/** The number of linear sub-buckets per power of 2 */
+	public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** The sub-bucket mask */
+	private static final int SUB_BUCKET_MASK = SUB_BUCKETS - 1;
+	/** The total number of buckets, covering all non-negative longs */
+	public static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	
+	/** The system property or env variable name that defines the default snapshot interval in ms. */
+	public static final String INTERVAL_PROP = "org.helios.apmrouter.histogram.interval";
+	/** The default snapshot interval in ms. */
+	public static final int DEFAULT_INTERVAL = 5000;
+	/** The configured default snapshot interval in ms. */
+	public static final long INTERVAL = ConfigurationHelper.getIntSystemThenEnvProperty(INTERVAL_PROP, DEFAULT_INTERVAL);
+	
+	/** The snapshot interval in ms. */
+	protected final long intervalMs;
+	/** The registered per thread recorders */
+	protected final List<Recorder> recorders = new CopyOnWriteArrayList<Recorder>();
+	/** The per thread recorder for the current thread */
+	protected final ThreadLocal<Recorder> recorder = new ThreadLocal<Recorder>() {
+		@Override
+		protected Recorder initialValue() {
+			Recorder r = new Recorder(Thread.currentThread());
+			recorders.add(r);
+			return r;
+		}
+	};
+	
+	/** The cumulative bucket counts of recorders whose threads have terminated. Guarded by the roll lock */
+	protected final long[] retiredCounts = new long[BUCKET_COUNT];
+	/** The cumulative total of recorders whose threads have terminated. Guarded by the roll lock */
+	protected long retiredTotal = 0;
+	/** The cumulative bucket counts as of the last roll. Guarded by the roll lock */
+	protected final long[] priorCounts = new long[BUCKET_COUNT];
+	/** The cumulative total as of the last roll. Guarded by the roll lock */
+	protected long priorTotal = 0;
+	/** The most recent interval snapshot */
+	protected volatile Snapshot current;
+	
+	/**
+	 * Creates a new LatencyHistogram with the configured default snapshot interval
+	 */
+	public LatencyHistogram() {
+		this(INTERVAL);
+	}
+	
+	/**
+	 * Creates a new LatencyHistogram 
+	 * @param intervalMs The snapshot interval in ms.
+	 */
+	public LatencyHistogram(long intervalMs) {
+		if(intervalMs<0) throw new IllegalArgumentException("Invalid negative interval [" + intervalMs + "]", new Throwable());
+		this.intervalMs = intervalMs;
+		current = new Snapshot(new long[BUCKET_COUNT], 0, 0, 0, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Returns the bucket index for the passed value
+	 * @param value The value to get the bucket index for. Negative values are counted as zero.
+	 * @return the bucket index
+	 */
+	public static int bucketIndex(long value) {
+		if(value<SUB_BUCKETS) return value<0 ? 0 : (int)value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return ((shift + 1) << SUB_BUCKET_BITS) + ((int)(value >>> shift) & SUB_BUCKET_MASK);
+	}
+	
+	/**
+	 * Returns the lowest value counted in the bucket with the passed index
+	 * @param index The bucket index
+	 * @return the lowest value counted in the bucket
+	 */
+	public static long bucketLowValue(int index) {
+		if(index<SUB_BUCKETS) return index;
+		int shift = (index >> SUB_BUCKET_BITS) - 1;
+		return ((long)(SUB_BUCKETS + (index & SUB_BUCKET_MASK))) << shift;
+	}
+	
+	/**
+	 * Returns the highest value counted in the bucket with the passed index
+	 * @param index The bucket index
+	 * @return the highest value counted in the bucket
+	 */
+	public static long bucketHighValue(int index) {
+		if(index<SUB_BUCKETS) return index;
+		int shift = (index >> SUB_BUCKET_BITS) - 1;
+		return bucketLowValue(index) + (1L << shift) - 1;
+	}
+	
+	/**
+	 * Records a value from the calling thread
+	 * @param value The value to record
+	 */
+	public void record(long value) {
+		recorder.get().record(value);
+	}
+	
+	/**
+	 * Records the elapsed time in ns. since the passed {@link System#nanoTime()} start time
+	 * @param startNanos The start time from {@link System#nanoTime()}
+	 * @return the recorded elapsed time in ns.
+	 */
+	public long recordSince(long startNanos) {
+		long elapsed = System.nanoTime() - startNanos;
+		recorder.get().record(elapsed);
+		return elapsed;
+	}
+	
+	/**
+	 * Returns the most recent interval snapshot, rolling a new one if the interval has elapsed
+	 * @return the most recent interval snapshot
+	 */
+	public Snapshot getSnapshot() {
+		Snapshot s = current;
+		if(System.currentTimeMillis()-s.timestamp >= intervalMs) {
+			s = roll(false);
+		}
+		return s;
+	}
+	
+	/**
+	 * Rolls a new interval snapshot covering all values recorded since the last roll, regardless of the interval
+	 * @return the new snapshot
+	 */
+	public Snapshot snapshot() {
+		return roll(true);
+	}
+	
+	/**
+	 * Resets the histogram so the next snapshot only covers values recorded from now
+	 */
+	public synchronized void reset() {
+		roll(true);
+		current = new Snapshot(new long[BUCKET_COUNT], 0, 0, 0, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Returns the snapshot interval in ms.
+	 * @return the snapshot interval in ms.
+	 */
+	public long getIntervalMs() {
+		return intervalMs;
+	}
+	
+	/**
+	 * Returns the number of registered recording threads
+	 * @return the number of registered recording threads
+	 */
+	public int getRecorderCount() {
+		return recorders.size();
+	}
+	
+	/**
+	 * Sums the recorders into a new interval snapshot
+	 * @param force If false, the roll is skipped if another thread rolled a snapshot within the interval
+	 * @return the new or current snapshot
+	 */
+	protected synchronized Snapshot roll(boolean force) {
+		final long now = System.currentTimeMillis();
+		if(!force && now-current.timestamp < intervalMs) return current;
+		final long[] cumulative = retiredCounts.clone();
+		long total = retiredTotal;
+		long max = 0;
+		for(Iterator<Recorder> iter = recorders.iterator(); iter.hasNext();) {
+			Recorder r = iter.next();
+			boolean retired = !r.isAlive();
+			long rmax = r.max.getAndSet(0);
+			if(rmax>max) max = rmax;
+			long rtotal = r.total.get();
+			total += rtotal;
+			for(int i = 0; i < BUCKET_COUNT; i++) {
+				long c = r.counts.get(i);
+				cumulative[i] += c;
+				if(retired) retiredCounts[i] += c;
+			}
+			if(retired) {
+				retiredTotal += rtotal;
+				recorders.remove(r);
+			}
+		}
+		long count = 0;
+		final long[] interval = new long[BUCKET_COUNT];
+		for(int i = 0; i < BUCKET_COUNT; i++) {
+			interval[i] = cumulative[i] - priorCounts[i];
+			count += interval[i];
+			priorCounts[i] = cumulative[i];
+			// a value counted here whose max was raised after the max was collected lands in the next interval's max
+			if(interval[i]>0 && max<bucketLowValue(i)) max = bucketLowValue(i);
+		}
+		final long intervalTotal = total - priorTotal;
+		priorTotal = total;
+		current = new Snapshot(interval, count, intervalTotal, max, now);
+		return current;
+	}
+	
+	/**
+	 * <p>Title: Recorder</p>
+	 * <p>Description: The bucket counts written by one recording thread</p> 
+	 */
+	protected static class Recorder {
+		/** The bucket counts, only written by the owning thread */
+		final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+		/** The total of all recorded values, only written by the owning thread */
+		final AtomicLong total = new AtomicLong(0);
+		/** The maximum value recorded since the last roll, raised by the owning thread and cleared by the roll */
+		final AtomicLong max = new AtomicLong(0);
+		/** The owning thread */
+		final WeakReference<Thread> owner;
+		
+		/**
+		 * Creates a new Recorder
+		 * @param owner The owning thread
+		 */
+		Recorder(Thread owner) {
+			this.owner = new WeakReference<Thread>(owner);
+		}
+		
+		/**
+		 * Records a value. Must only be called by the owning thread.
+		 * @param value The value to record
+		 */
+		void record(long value) {
+			final int index = bucketIndex(value);
+			counts.lazySet(index, counts.get(index)+1);
+			total.lazySet(total.get() + (value<0 ? 0 : value));
+			long current;
+			while(value > (current = max.get())) {
+				if(max.compareAndSet(current, value)) break;
+			}
+		}
+		
+		/**
+		 * Indicates if the owning thread is still alive
+		 * @return true if the owning thread is still alive
+		 */
+		boolean isAlive() {
+			Thread t = owner.get();
+			return t!=null && t.isAlive();
+		}
+	}
+	
+	/**
+	 * <p>Title: Snapshot</p>
+	 * <p>Description: An immutable summary of the values recorded in one interval</p> 
+	 */
+	public static class Snapshot {
+		/** The interval bucket counts */
+		private final long[] counts;
+		/** The number of values recorded in the interval */
+		private final long count;
+		/** The total of the values recorded in the interval */
+		private final long total;
+		/** The maximum value recorded in the interval */
+		private final long max;
+		/** The timestamp of the end of the interval */
+		private final long timestamp;
+		/** The 50th percentile */
+		private final long p50;
+		/** The 99th percentile */
+		private final long p99;
+		/** The 99.9th percentile */
+		private final long p999;
+		
+		/**
+		 * Creates a new Snapshot
+		 * @param counts The interval bucket counts
+		 * @param count The number of values recorded in the interval
+		 * @param total The total of the values recorded in the interval
+		 * @param max The maximum value recorded in the interval
+		 * @param timestamp The timestamp of the end of the interval
+		 */
+		Snapshot(long[] counts, long count, long total, long max, long timestamp) {
+			this.counts = counts;
+			this.count = count;
+			this.total = total;
+			this.max = max;
+			this.timestamp = timestamp;
+			p50 = getPercentile(50D);
+			p99 = getPercentile(99D);
+			p999 = getPercentile(99.9D);
+		}
+		
+		/**
+		 * Returns the value at the passed percentile, which is the highest value of the bucket containing that rank, capped at the interval maximum.
+		 * A value recorded while a roll is in progress can be counted in this interval while its maximum lands in the next one, so the cap is
+		 * never allowed to take the result below the bucket's lowest value.
+		 * @param percentile The percentile (0 - 100)
+		 * @return the value at the passed percentile, or 0 if no values were recorded
+		 */
+		public long getPercentile(double percentile) {
+			if(count==0) return 0;
+			long rank = (long)Math.ceil(Math.min(100D, Math.max(0D, percentile)) / 100D * count);
+			if(rank<1) rank = 1;
+			long seen = 0;
+			for(int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if(seen>=rank) {
+					long high = bucketHighValue(i);
+					return max>0 && max<high ? Math.max(max, bucketLowValue(i)) : high;
+				}
+			}
+			return max;
+		}
+
+		/**
+		 * Returns the number of values recorded in the interval
+		 * @return the number of values recorded in the interval
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Returns the mean of the values recorded in the interval
+		 * @return the mean of the values recorded in the interval, or 0 if none were recorded
+		 */
+		public long getMean() {
+			return count==0 ? 0 : total/count;
+		}
+
+		/**
+		 * Returns the maximum value recorded in the interval
+		 * @return the maximum value recorded in the interval
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * Returns the 50th percentile (median)
+		 * @return the 50th percentile
+		 */
+		public long getP50() {
+			return p50;
+		}
+
+		/**
+		 * Returns the 99th percentile
+		 * @return the 99th percentile
+		 */
+		public long getP99() {
+			return p99;
+		}
+
+		/**
+		 * Returns the 99.9th percentile
+		 * @return the 99.9th percentile
+		 */
+		public long getP999() {
+			return p999;
+		}
+		
+		/**
+		 * Returns the timestamp of the end of the interval
+		 * @return the timestamp of the end of the interval
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return new StringBuilder("Snapshot [count=").append(count)
+				.append(", mean=").append(getMean())
+				.append(", p50=").append(p50)
+				.append(", p99=").append(p99)
+				.append(", p99.9=").append(p999)
+				.append(", max=").append(max)
+				.append("]").toString();
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.collections;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Title: StripedCounter</p>
+ * <p>Description: A concurrent long counter whose updates are spread over a fixed number of cache line padded cells, selected by the updating thread's id.</p>
+ * <p>Increments are a single uncontended CAS on the calling thread's cell in the common case, and reads sum the cells, 
+ * so this suits counters that are updated on hot paths and read periodically.</p>
+ * <p>Each counter uses <b><code>{@link #STRIPES} x 64</code></b> bytes.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.collections.StripedCounter</code></p>
+ */
+
+public class StripedCounter {
+	/** The number of striped cells, the number of available processors rounded up to a power of 2, capped at 16 */
+	public static final int STRIPES;
+	/** The cell index mask */
+	private static final int MASK;
+	/** The number of longs between cells so that each cell is on its own cache line */
+	private static final int PAD = 8;
+	
+	static {
+		int cpus = Math.min(Runtime.getRuntime().availableProcessors(), 16);
+		int s = 1;
+		while(s < cpus) s <<= 1;
+		STRIPES = s;
+		MASK = s-1;
+	}
+	
+	/** The padded cells */
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES*PAD);
+	
+	/**
+	 * Returns the cell index for the current thread
+	 * @return the cell index
+	 */
+	private static int cell() {
+		long id = Thread.currentThread().getId();
+		return (int)(id & MASK) * PAD;
+	}
+	
+	/**
+	 * Adds the passed delta to this counter
+	 * @param delta The amount to add
+	 */
+	public void add(long delta) {
+		cells.getAndAdd(cell(), delta);
+	}
+	
+	/**
+	 * Increments this counter by 1
+	 */
+	public void increment() {
+		cells.getAndIncrement(cell());
+	}
+	
+	/**
+	 * Decrements this counter by 1
+	 */
+	public void decrement() {
+		cells.getAndDecrement(cell());
+	}
+	
+	/**
+	 * Returns the current value of this counter. Not a snapshot if updates are concurrent.
+	 * @return the current value
+	 */
+	public long get() {
+		long total = 0;
+		for(int i = 0; i < STRIPES; i++) {
+			total += cells.get(i*PAD);
+		}
+		return total;
+	}
+	
+	/**
+	 * Sets this counter to the passed value. Concurrent updates may or may not be included.
+	 * @param value The value to set
+	 */
+	public void set(long value) {
+		for(int i = 1; i < STRIPES; i++) {
+			cells.set(i*PAD, 0);
+		}
+		cells.set(0, value);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return Long.toString(get());
+	}
+}
@@ -136,7 +136,7 @@ public class TraceClassFileTransformer implements ClassFileTransformer {
 			    method.setName(newName);
 			    CtMethod wrapperMethod = CtNewMethod.copy(method, originalName, clazz, null);
 
-			    String namespaceFieldName = originalName + "_" + method.getSignature().hashCode();
+			    String namespaceFieldName = TraceCollection.namespaceFieldName(wrapperMethod, method);
 			    CtField namespaceField = new CtField(cp.get(String[].class.getName()),namespaceFieldName, clazz);
 			    namespaceField.setModifiers(tracerField.getModifiers() | Modifier.STATIC | Modifier.FINAL);
 			    StringBuilder namespaceInit = new StringBuilder("new String[]{");
@@ -176,6 +176,9 @@ public class TraceClassFileTransformer implements ClassFileTransformer {
 						return null;
 					}
 				}
+		        if (!"void".equals(type)) {
+		            body.append("return result;\n");
+		        }
 				body.append("}");
 				log(body);
 				wrapperMethod.setBody(body.toString());
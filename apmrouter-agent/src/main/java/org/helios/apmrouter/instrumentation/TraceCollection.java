@@ -69,10 +69,24 @@ public enum TraceCollection {
 	/** The number of times the method invocation resulted in a thrown exception */
 	EXCEPTIONS(new TimeInstrumentor()),
 	/** Traces the exception stack trace */
-	EXCEPTIONSTRACE(new TimeInstrumentor());
+	EXCEPTIONSTRACE(new TimeInstrumentor()),
+	/** Accumulates the invocation count, elapsed time in ns., concurrency and exception count into interval metrics without tracing each invocation */
+	INTERVAL(new IntervalInstrumentor());
 	
 	/** The name of the created tracer field */
 	public static final String TRACER_FIELD = "_$_tracer";
+	/** The class name of the static interval interceptor entry points */
+	public static final String INTERCEPTOR_CLASS = "org.helios.apmrouter.instrumentation.interceptors.InvocationInterceptor";
+	
+	/**
+	 * Returns the name of the static namespace field created for an instrumented method
+	 * @param wrapperMethod The method that wraps the intercepted method
+	 * @param renamedMethod The method being instrumented (wrapped)
+	 * @return the namespace field name
+	 */
+	public static String namespaceFieldName(CtMethod wrapperMethod, CtMethod renamedMethod) {
+		return (wrapperMethod.getName() + "_" + renamedMethod.getSignature().hashCode()).replace('-', '_');
+	}
 	
 	/** The thread MX bean */
 	public static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
@@ -177,7 +191,7 @@ public enum TraceCollection {
 		@Override
 		public void addPostInvoke(CtClass clazz, CtMethod renamedMethod, CtMethod wrapperMethod, TraceImpl ti, final StringBuilder body) throws CannotCompileException, NotFoundException {
 			body.append("long elapsed = System.currentTimeMillis()-start;\n");
-			String namespaceFieldName = wrapperMethod.getName() + "_" + renamedMethod.getSignature().hashCode();
+			String namespaceFieldName = namespaceFieldName(wrapperMethod, renamedMethod);
 			body.append(TRACER_FIELD).append(".traceGauge(elapsed, \"").append("".equals(ti.getName()) ? "ElapsedTimeMs" : ti.getName() + "Ms").append("\", ").append(namespaceFieldName).append(");\n");
 		}
 		
@@ -208,12 +222,49 @@ public enum TraceCollection {
 		@Override
 		public void addPostInvoke(CtClass clazz, CtMethod renamedMethod, CtMethod wrapperMethod, TraceImpl ti, final StringBuilder body) throws CannotCompileException, NotFoundException {
 			body.append("long elapsed = System.nanoTime()-start;\n");
-			String namespaceFieldName = wrapperMethod.getName() + "_" + renamedMethod.getSignature().hashCode();
+			String namespaceFieldName = namespaceFieldName(wrapperMethod, renamedMethod);
 			body.append(TRACER_FIELD).append(".traceGauge(elapsed, \"").append("".equals(ti.getName()) ? "ElapsedTimeNs" : ti.getName() + "Ns").append("\", ").append(namespaceFieldName).append(");\n");
 		}
 		
 	}
 	
+	/**
+	 * <p>Title: IntervalInstrumentor</p>
+	 * <p>Description: Instruments a method to record each invocation into a pre-allocated interceptor slot through the static entry points in
+	 * {@link org.helios.apmrouter.instrumentation.interceptors.InvocationInterceptor}. The slot id is resolved once into a static field
+	 * when the class initializes, and the exception handler is added to the renamed method so the wrapper body stays linear.</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>org.helios.apmrouter.instrumentation.TraceCollection.IntervalInstrumentor</code></p>
+	 */
+	protected static class IntervalInstrumentor implements Instrumentor {
+
+		/**
+		 * {@inheritDoc}
+		 * @see org.helios.apmrouter.instrumentation.TraceCollection.Instrumentor#addPreInvoke(javassist.CtClass, javassist.CtMethod, javassist.CtMethod, org.helios.apmrouter.instrumentation.TraceImpl, java.lang.StringBuilder)
+		 */
+		@Override
+		public void addPreInvoke(CtClass clazz, CtMethod renamedMethod, CtMethod wrapperMethod, TraceImpl ti, final StringBuilder body) throws CannotCompileException, NotFoundException {
+			String namespaceFieldName = namespaceFieldName(wrapperMethod, renamedMethod);
+			String slotFieldName = namespaceFieldName + "_slot";
+			CtField slotField = new CtField(CtClass.intType, slotFieldName, clazz);
+			slotField.setModifiers(Modifier.PRIVATE | Modifier.STATIC | Modifier.FINAL);
+			clazz.addField(slotField, INTERCEPTOR_CLASS + ".register(\"" + ti.getName() + "\", " + namespaceFieldName + ");");
+			renamedMethod.addCatch("{ " + INTERCEPTOR_CLASS + ".exception(" + slotFieldName + "); throw $e; }", clazz.getClassPool().get(Throwable.class.getName()));
+			body.append("long istart = ").append(INTERCEPTOR_CLASS).append(".enter(").append(slotFieldName).append(");\n");
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see org.helios.apmrouter.instrumentation.TraceCollection.Instrumentor#addPostInvoke(javassist.CtClass, javassist.CtMethod, javassist.CtMethod, org.helios.apmrouter.instrumentation.TraceImpl, java.lang.StringBuilder)
+		 */
+		@Override
+		public void addPostInvoke(CtClass clazz, CtMethod renamedMethod, CtMethod wrapperMethod, TraceImpl ti, final StringBuilder body) throws CannotCompileException, NotFoundException {
+			body.append(INTERCEPTOR_CLASS).append(".exit(").append(namespaceFieldName(wrapperMethod, renamedMethod)).append("_slot, istart);\n");
+		}
+		
+	}
+	
 	protected static class TXRoll implements Instrumentor {
 
 		/**
@@ -24,31 +24,353 @@
  */
 package org.helios.apmrouter.instrumentation.interceptors;
 
-/*import io.netty.buffer.CompositeByteBuf;
-import io.netty.buffer.DefaultCompositeByteBuf;
-import io.netty.buffer.UnpooledByteBufAllocator;
-*/
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.helios.apmrouter.trace.ITracer;
+
 /**
  * <p>Title: IntervalMetricAccumulator</p>
- * <p>Description: An off heap metric accumulator for accumulating metrics during an interval</p> 
+ * <p>Description: Accumulates invocation metrics for intercepted methods during an interval.</p>
+ * <p>Each thread that calls an intercepted method records into its own {@link Cells}, which hold a slot of {@link #SLOT_WIDTH} longs 
+ * for each registered method. The cells are only ever written by their owning thread, so the entry points are plain increments published with 
+ * ordered writes, without any atomic read-modify-write or lock, and allocate nothing once the thread's cells have grown to the highest slot it calls. 
+ * The counters only ever increase, and {@link #read(int, boolean)} sums the cells of all threads and reports the change since the slot was last reset. 
+ * The minimum and maximum are kept for the slot's current interval, which each thread detects from the slot's interval epoch.</p>
+ * <p>Only one in every {@link #getSampleRate()} invocations of a method on a thread is timed, so the two clock reads are amortized across the 
+ * untimed invocations. The elapsed times are the totals and extremes of the timed invocations, and the average is taken over those. 
+ * A sample rate of 1 times every invocation.</p>
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>org.helios.apmrouter.instrumentation.interceptors.IntervalMetricAccumulator</code></p>
  */
 
 public class IntervalMetricAccumulator {
-/*	*//** The unpooled bytebuff allocator *//*
-	protected static final UnpooledByteBufAllocator BUFF_ALLOCATOR = UnpooledByteBufAllocator.DIRECT_BY_DEFAULT;
-	*//** The master container for individual metric sub-buffers *//*
-	protected final CompositeByteBuf metricBuffer = new DefaultCompositeByteBuf(BUFF_ALLOCATOR, true, MAX_METRIC_BUFFERS);
-*/	
-	/** The maximum number of metric sub-buffers */
-	public static final int MAX_METRIC_BUFFERS = 1024;
+	/** The default maximum number of method slots */
+	public static final int MAX_METHOD_SLOTS = 1024;
+	/** The default sample rate, one in this many invocations of a method on a thread is timed */
+	public static final int DEFAULT_SAMPLE_RATE = 64;
+	/** The number of longs in each slot of a thread's cells */
+	public static final int SLOT_WIDTH = 8;
+	/** The start time returned by {@link #enter(int)} for an invocation that is not timed */
+	public static final long NOT_TIMED = Long.MIN_VALUE;
+
+	/** The read field index of the interval invocation count */
+	public static final int COUNT = 0;
+	/** The read field index of the interval total elapsed time in ns. of the timed invocations */
+	public static final int TOTAL_NS = 1;
+	/** The read field index of the interval minimum elapsed time in ns. */
+	public static final int MIN_NS = 2;
+	/** The read field index of the interval maximum elapsed time in ns. */
+	public static final int MAX_NS = 3;
+	/** The read field index of the interval exception count */
+	public static final int EXCEPTIONS = 4;
+	/** The read field index of the number of threads currently executing the method. Not reset on flush. */
+	public static final int CONCURRENCY = 5;
+	/** The read field index of the interval timed invocation count */
+	public static final int TIMED = 6;
+	/** The number of fields in a read */
+	public static final int FIELD_COUNT = 7;
+
+	/** The slot offset of the cumulative entered count */
+	private static final int C_ENTERED = 0;
+	/** The slot offset of the cumulative completed count */
+	private static final int C_COUNT = 1;
+	/** The slot offset of the cumulative timed count */
+	private static final int C_TIMED = 2;
+	/** The slot offset of the cumulative total elapsed time in ns. */
+	private static final int C_TOTAL_NS = 3;
+	/** The slot offset of the cumulative exception count */
+	private static final int C_EXCEPTIONS = 4;
+	/** The slot offset of the interval epoch the minimum and maximum belong to */
+	private static final int C_EPOCH = 5;
+	/** The slot offset of the minimum elapsed time in ns. of the epoch */
+	private static final int C_MIN_NS = 6;
+	/** The slot offset of the maximum elapsed time in ns. of the epoch */
+	private static final int C_MAX_NS = 7;
+	/** The slot offsets of the cumulative counters, in the order they are read */
+	private static final int[] CUMULATIVE = {C_COUNT, C_EXCEPTIONS, C_TIMED, C_TOTAL_NS, C_ENTERED};
+
+	/** The maximum number of slots */
+	private final int capacity;
+	/** The sample rate mask */
+	private final long sampleMask;
+	/** The metric names of the allocated slots */
+	private final String[] names;
+	/** The metric namespaces of the allocated slots */
+	private final String[][] namespaces;
+	/** The current interval epoch of each slot */
+	private final AtomicLongArray epochs;
+	/** The cells of every thread that has called an intercepted method */
+	private final CopyOnWriteArrayList<Cells> allCells = new CopyOnWriteArrayList<Cells>();
+	/** The calling thread's cells */
+	private final ThreadLocal<Cells> localCells = new ThreadLocal<Cells>() {
+		@Override
+		protected Cells initialValue() {
+			Cells cells = new Cells(Thread.currentThread());
+			allCells.add(cells);
+			return cells;
+		}
+	};
+	/** The counters of threads that have terminated, folded in by the reader */
+	private final long[] retired;
+	/** The cumulative counters as of each slot's last reset */
+	private final long[] baseline;
+	/** The number of allocated slots */
+	private volatile int allocated = 0;
+
+	/**
+	 * Creates a new IntervalMetricAccumulator that times one in {@link #DEFAULT_SAMPLE_RATE} invocations
+	 * @param capacity The maximum number of method slots
+	 */
+	public IntervalMetricAccumulator(int capacity) {
+		this(capacity, DEFAULT_SAMPLE_RATE);
+	}
+
 	/**
 	 * Creates a new IntervalMetricAccumulator
+	 * @param capacity The maximum number of method slots
+	 * @param sampleRate One in this many invocations of a method on a thread is timed, rounded up to a power of 2. 1 times every invocation.
+	 */
+	public IntervalMetricAccumulator(int capacity, int sampleRate) {
+		if(capacity<1) throw new IllegalArgumentException("Invalid capacity [" + capacity + "]", new Throwable());
+		if(sampleRate<1) throw new IllegalArgumentException("Invalid sample rate [" + sampleRate + "]", new Throwable());
+		this.capacity = capacity;
+		int rate = 1;
+		while(rate < sampleRate) rate <<= 1;
+		sampleMask = rate-1;
+		names = new String[capacity];
+		namespaces = new String[capacity][];
+		epochs = new AtomicLongArray(capacity);
+		for(int i = 0; i < capacity; i++) epochs.set(i, 1L);
+		retired = new long[capacity * SLOT_WIDTH];
+		baseline = new long[capacity * SLOT_WIDTH];
+	}
+
+	/**
+	 * Allocates a slot for an intercepted method
+	 * @param name The metric name prefix for the method's metrics
+	 * @param namespace The metric namespace for the method's metrics
+	 * @return the allocated slot id or -1 if all the slots have been allocated
+	 */
+	public synchronized int allocate(String name, String[] namespace) {
+		int slot = allocated;
+		if(slot==capacity) return -1;
+		names[slot] = name;
+		namespaces[slot] = namespace==null ? new String[0] : namespace;
+		allocated = slot+1;
+		return slot;
+	}
+
+	/**
+	 * Records the start of an invocation
+	 * @param slot The slot id of the invoked method
+	 * @return the start time in ns. to pass to {@link #exit(int, long)}, or {@link #NOT_TIMED} if the invocation is not sampled
+	 */
+	public long enter(int slot) {
+		final AtomicLongArray cells = localCells.get().cells(slot);
+		final int base = slot * SLOT_WIDTH;
+		final long entered = cells.get(base + C_ENTERED);
+		cells.lazySet(base + C_ENTERED, entered + 1);
+		return (entered & sampleMask)==0 ? System.nanoTime() : NOT_TIMED;
+	}
+
+	/**
+	 * Records the successful completion of an invocation
+	 * @param slot The slot id of the invoked method
+	 * @param start The start time returned by {@link #enter(int)}
+	 */
+	public void exit(int slot, long start) {
+		final AtomicLongArray cells = localCells.get().cells(slot);
+		final int base = slot * SLOT_WIDTH;
+		if(start!=NOT_TIMED) {
+			final long elapsedNs = System.nanoTime() - start;
+			cells.lazySet(base + C_TOTAL_NS, cells.get(base + C_TOTAL_NS) + elapsedNs);
+			final long epoch = epochs.get(slot);
+			if(cells.get(base + C_EPOCH)!=epoch) {
+				cells.lazySet(base + C_MIN_NS, elapsedNs);
+				cells.lazySet(base + C_MAX_NS, elapsedNs);
+				cells.lazySet(base + C_EPOCH, epoch);
+			} else {
+				if(elapsedNs < cells.get(base + C_MIN_NS)) cells.lazySet(base + C_MIN_NS, elapsedNs);
+				if(elapsedNs > cells.get(base + C_MAX_NS)) cells.lazySet(base + C_MAX_NS, elapsedNs);
+			}
+			cells.lazySet(base + C_TIMED, cells.get(base + C_TIMED) + 1);
+		}
+		cells.lazySet(base + C_COUNT, cells.get(base + C_COUNT) + 1);
+	}
+
+	/**
+	 * Records the completion of an invocation that threw an exception
+	 * @param slot The slot id of the invoked method
+	 */
+	public void exception(int slot) {
+		final AtomicLongArray cells = localCells.get().cells(slot);
+		final int base = slot * SLOT_WIDTH;
+		cells.lazySet(base + C_EXCEPTIONS, cells.get(base + C_EXCEPTIONS) + 1);
+	}
+
+	/**
+	 * Reads the values of the passed slot since it was last reset, summed across all threads. 
+	 * A value recorded by a thread while the slot is being read may be reported in either the current or the next interval.
+	 * @param slot The slot id to read
+	 * @param reset If true, the interval fields are reset as they are read
+	 * @return an array of {@link #FIELD_COUNT} values indexed by the read field indexes
+	 */
+	public synchronized long[] read(int slot, boolean reset) {
+		if(slot<0 || slot>=allocated) throw new IllegalArgumentException("Invalid slot [" + slot + "]", new Throwable());
+		final int base = slot * SLOT_WIDTH;
+		final long epoch = epochs.get(slot);
+		final long[] totals = new long[SLOT_WIDTH];
+		long min = Long.MAX_VALUE, max = 0;
+		for(int f: CUMULATIVE) totals[f] = retired[base + f];
+		if(retired[base + C_EPOCH]==epoch) {
+			min = retired[base + C_MIN_NS];
+			max = retired[base + C_MAX_NS];
+		}
+		for(Iterator<Cells> iter = allCells.iterator(); iter.hasNext();) {
+			Cells c = iter.next();
+			if(!c.owner.isAlive()) {
+				retire(c);
+				allCells.remove(c);
+			}
+			AtomicLongArray cells = c.cells;
+			if(base >= cells.length()) continue;
+			// completions are read before entries so an invocation is never seen completed but not entered
+			for(int f: CUMULATIVE) totals[f] += cells.get(base + f);
+			if(cells.get(base + C_EPOCH)==epoch) {
+				min = Math.min(min, cells.get(base + C_MIN_NS));
+				max = Math.max(max, cells.get(base + C_MAX_NS));
+			}
+		}
+		long[] values = new long[FIELD_COUNT];
+		values[COUNT] = totals[C_COUNT] - baseline[base + C_COUNT];
+		values[EXCEPTIONS] = totals[C_EXCEPTIONS] - baseline[base + C_EXCEPTIONS];
+		values[TIMED] = totals[C_TIMED] - baseline[base + C_TIMED];
+		values[TOTAL_NS] = totals[C_TOTAL_NS] - baseline[base + C_TOTAL_NS];
+		values[CONCURRENCY] = Math.max(0, totals[C_ENTERED] - totals[C_COUNT] - totals[C_EXCEPTIONS]);
+		values[MIN_NS] = min==Long.MAX_VALUE ? 0 : min;
+		values[MAX_NS] = max;
+		if(reset) {
+			System.arraycopy(totals, 0, baseline, base, SLOT_WIDTH);
+			epochs.set(slot, epoch+1);
+		}
+		return values;
+	}
+
+	/**
+	 * Folds the counters of a terminated thread into the retired counters
+	 * @param c The terminated thread's cells
+	 */
+	private void retire(Cells c) {
+		AtomicLongArray cells = c.cells;
+		for(int slot = 0, slots = Math.min(allocated, cells.length()/SLOT_WIDTH); slot < slots; slot++) {
+			final int base = slot * SLOT_WIDTH;
+			for(int f: CUMULATIVE) retired[base + f] += cells.get(base + f);
+			final long epoch = cells.get(base + C_EPOCH);
+			if(epoch!=epochs.get(slot)) continue;
+			if(retired[base + C_EPOCH]!=epoch) {
+				retired[base + C_EPOCH] = epoch;
+				retired[base + C_MIN_NS] = cells.get(base + C_MIN_NS);
+				retired[base + C_MAX_NS] = cells.get(base + C_MAX_NS);
+			} else {
+				retired[base + C_MIN_NS] = Math.min(retired[base + C_MIN_NS], cells.get(base + C_MIN_NS));
+				retired[base + C_MAX_NS] = Math.max(retired[base + C_MAX_NS], cells.get(base + C_MAX_NS));
+			}
+		}
+	}
+
+	/**
+	 * Reads and resets every allocated slot and traces the interval metrics of the slots that had any activity
+	 * @param tracer The tracer to trace with
+	 * @return the number of slots traced
+	 */
+	public int flush(ITracer tracer) {
+		final int slots = allocated;
+		int traced = 0;
+		for(int slot = 0; slot < slots; slot++) {
+			long[] values = read(slot, true);
+			if(values[COUNT]==0 && values[EXCEPTIONS]==0 && values[CONCURRENCY]==0) continue;
+			String name = names[slot];
+			String[] namespace = namespaces[slot];
+			tracer.traceCounter(values[COUNT], name + "InvocationCount", namespace);
+			tracer.traceCounter(values[EXCEPTIONS], name + "ExceptionCount", namespace);
+			tracer.traceGauge(values[CONCURRENCY], name + "Concurrency", namespace);
+			if(values[TIMED]>0) {
+				tracer.traceGauge(values[TOTAL_NS]/values[TIMED], name + "AvgElapsedTimeNs", namespace);
+				tracer.traceGauge(values[MIN_NS], name + "MinElapsedTimeNs", namespace);
+				tracer.traceGauge(values[MAX_NS], name + "MaxElapsedTimeNs", namespace);
+			}
+			traced++;
+		}
+		return traced;
+	}
+
+	/**
+	 * Returns the number of allocated slots
+	 * @return the number of allocated slots
 	 */
-	public IntervalMetricAccumulator() {
-		//ICEMetricCatalog.getInstance().get(host, agent, name, type, namespace)
+	public int getAllocated() {
+		return allocated;
 	}
 
+	/**
+	 * Returns the maximum number of slots
+	 * @return the maximum number of slots
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the sample rate, one in this many invocations of a method on a thread is timed
+	 * @return the sample rate
+	 */
+	public int getSampleRate() {
+		return (int)sampleMask+1;
+	}
+
+	/**
+	 * <p>Title: Cells</p>
+	 * <p>Description: The slots of one thread, written only by that thread and grown to the highest slot it has called</p> 
+	 */
+	private class Cells {
+		/** The owning thread */
+		final Thread owner;
+		/** The slots */
+		volatile AtomicLongArray cells = new AtomicLongArray(0);
+
+		/**
+		 * Creates a new Cells
+		 * @param owner The owning thread
+		 */
+		Cells(Thread owner) {
+			this.owner = owner;
+		}
+
+		/**
+		 * Returns the slots, grown to hold the passed slot id if required
+		 * @param slot The slot id to hold
+		 * @return the slots
+		 */
+		AtomicLongArray cells(int slot) {
+			AtomicLongArray arr = cells;
+			if(slot * SLOT_WIDTH < arr.length()) return arr;
+			return grow(slot);
+		}
+
+		/**
+		 * Grows the slots to hold the highest allocated slot and the passed slot id
+		 * @param slot The slot id to hold
+		 * @return the grown slots
+		 */
+		private AtomicLongArray grow(int slot) {
+			AtomicLongArray arr = cells;
+			AtomicLongArray grown = new AtomicLongArray(Math.max(slot+1, allocated) * SLOT_WIDTH);
+			for(int i = 0; i < arr.length(); i++) grown.set(i, arr.get(i));
+			cells = grown;
+			return grown;
+		}
+	}
 }
@@ -24,26 +24,127 @@
  */
 package org.helios.apmrouter.instrumentation.interceptors;
 
-import org.cliffc.high_scale_lib.Counter;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.helios.apmrouter.jmx.ConfigurationHelper;
+import org.helios.apmrouter.trace.TracerFactory;
+import org.helios.apmrouter.util.SimpleLogger;
 
 /**
  * <p>Title: InvocationInterceptor</p>
- * <p>Description: An interceptor that measures the metrics enumerated in {@link ThreadResource}.
- * These metrics are accumulated in a buffer and then flushed on a timer because they represent real-time
- * invocation activity and we don't want to blow up the transport layer to the server.</p> 
+ * <p>Description: The static entry points called by methods woven with {@link org.helios.apmrouter.instrumentation.TraceCollection#INTERVAL}.
+ * A woven method registers once for a slot id when its class initializes, then calls {@link #enter(int)} and {@link #exit(int, long)}
+ * (or {@link #exception(int)}) on each invocation. The measurements are accumulated in the {@link IntervalMetricAccumulator}
+ * and then flushed on a timer because they represent real-time invocation activity and we don't want to blow up the transport layer to the server.</p>
+ * <p>The entry points allocate nothing, take no locks and only write to the calling thread's own cells. Only one in every 
+ * <code>org.helios.apmrouter.interceptors.sample</code> invocations is timed, set it to 1 to time every invocation.</p>
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>org.helios.apmrouter.instrumentation.interceptors.InvocationInterceptor</code></p>
  */
 
 public class InvocationInterceptor {
-	/** The number of metrics currently in the buffer */
-	protected final Counter metricCount = new Counter();
+	/** The system property or environment variable name for the maximum number of intercepted methods */
+	public static final String SLOTS_PROP = "org.helios.apmrouter.interceptors.slots";
+	/** The system property or environment variable name for the flush period in ms. */
+	public static final String PERIOD_PROP = "org.helios.apmrouter.interceptors.period";
+	/** The default flush period in ms. */
+	public static final long DEFAULT_PERIOD = 15000;
+	/** The system property or environment variable name for the sample rate, one in this many invocations of a method on a thread is timed */
+	public static final String SAMPLE_PROP = "org.helios.apmrouter.interceptors.sample";
+
+	/** The accumulator the intercepted invocations are recorded into */
+	private static final IntervalMetricAccumulator accumulator = new IntervalMetricAccumulator(
+			ConfigurationHelper.getIntSystemThenEnvProperty(SLOTS_PROP, IntervalMetricAccumulator.MAX_METHOD_SLOTS), 
+			ConfigurationHelper.getIntSystemThenEnvProperty(SAMPLE_PROP, IntervalMetricAccumulator.DEFAULT_SAMPLE_RATE));
+	/** Indicates if the flush schedule has been started */
+	private static final AtomicBoolean started = new AtomicBoolean(false);
+	/** The flush scheduler */
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "InvocationInterceptorFlushThread");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * Registers an intercepted method and starts the flush schedule if it has not been started.
+	 * Called from the static initializer of a woven class.
+	 * @param name The metric name prefix for the method's metrics
+	 * @param namespace The metric namespace for the method's metrics
+	 * @return the slot id to pass to the entry points, or -1 if no slots are left, in which case the entry points ignore the method
+	 */
+	public static int register(String name, String[] namespace) {
+		int slot = accumulator.allocate(name, namespace);
+		if(slot==-1) {
+			SimpleLogger.warn("No interceptor slots left for [", name, "]. Increase [", SLOTS_PROP, "] beyond [", accumulator.getCapacity(), "]");
+		}
+		if(started.compareAndSet(false, true)) {
+			long period = ConfigurationHelper.getLongSystemThenEnvProperty(PERIOD_PROP, DEFAULT_PERIOD);
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						flush();
+					} catch (Throwable t) {
+						SimpleLogger.warn("InvocationInterceptor flush failed", t);
+					}
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+		return slot;
+	}
+
+	/**
+	 * Called when an intercepted method is entered
+	 * @param slot The slot id of the method
+	 * @return the start time in ns. to pass to {@link #exit(int, long)}, or {@link IntervalMetricAccumulator#NOT_TIMED} if the invocation is not timed
+	 */
+	public static long enter(int slot) {
+		if(slot<0) return IntervalMetricAccumulator.NOT_TIMED;
+		return accumulator.enter(slot);
+	}
+
+	/**
+	 * Called when an intercepted method returns
+	 * @param slot The slot id of the method
+	 * @param start The start time returned by {@link #enter(int)}
+	 */
+	public static void exit(int slot, long start) {
+		if(slot<0) return;
+		accumulator.exit(slot, start);
+	}
+
+	/**
+	 * Called when an intercepted method throws
+	 * @param slot The slot id of the method
+	 */
+	public static void exception(int slot) {
+		if(slot<0) return;
+		accumulator.exception(slot);
+	}
+
+	/**
+	 * Flushes the accumulated interval metrics to the default tracer
+	 * @return the number of methods traced
+	 */
+	public static int flush() {
+		return accumulator.flush(TracerFactory.getTracer());
+	}
+
 	/**
-	 * Creates a new InvocationInterceptor
+	 * Returns the accumulator the intercepted invocations are recorded into
+	 * @return the accumulator
 	 */
-	public InvocationInterceptor() {
-		
+	public static IntervalMetricAccumulator getAccumulator() {
+		return accumulator;
 	}
 
+	private InvocationInterceptor() {}
 }
@@ -37,7 +37,10 @@ public class BusyThread implements Comparable<BusyThread> {
 	protected final long cpuTime;	
 	/** The thread name */
 	protected String threadName;
-	
+	/** The thread id, or -1 if not known */
+	protected final long threadId;
+	/** The elapsed time in ns. the cpu time was used in, or 0 if not known */
+	protected final long elapsedTime;
 	
 	
 	/**
@@ -46,10 +49,55 @@ public class BusyThread implements Comparable<BusyThread> {
 	 * @param threadName The thread name
 	 */
 	public BusyThread(long cpuTime, String threadName) {
+		this(cpuTime, threadName, -1L, 0L);
+	}
+
+	/**
+	 * Creates a new BusyThread
+	 * @param cpuTime The cpu time in ns.
+	 * @param threadName The thread name
+	 * @param threadId The thread id
+	 * @param elapsedTime The elapsed time in ns. the cpu time was used in
+	 */
+	public BusyThread(long cpuTime, String threadName, long threadId, long elapsedTime) {
 		this.cpuTime = cpuTime;
 		this.threadName = threadName;
+		this.threadId = threadId;
+		this.elapsedTime = elapsedTime;
+	}
+	
+	/**
+	 * Returns the cpu time in ns.
+	 * @return the cpu time in ns.
+	 */
+	public long getCpuTime() {
+		return cpuTime;
 	}
 
+	/**
+	 * Returns the thread name
+	 * @return the thread name
+	 */
+	public String getThreadName() {
+		return threadName;
+	}
+
+	/**
+	 * Returns the thread id
+	 * @return the thread id, or -1 if not known
+	 */
+	public long getThreadId() {
+		return threadId;
+	}
+
+	/**
+	 * Returns the percentage of the elapsed time the thread was using cpu
+	 * @return the cpu percentage, or 0 if the elapsed time is not known
+	 */
+	public long getCpuPercent() {
+		if(elapsedTime<1) return 0;
+		return cpuTime*100/elapsedTime;
+	}
 
 
 	/**
@@ -0,0 +1,411 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.jmx.threadinfo;
+
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import org.helios.apmrouter.trace.ITracer;
+import org.helios.apmrouter.trace.TracerFactory;
+
+/**
+ * <p>Title: BusyThreadSampler</p>
+ * <p>Description: A continuous sampler of the threads consuming the most CPU between samples.</p> 
+ * <p>The previous CPU time of each thread is kept in an open addressed table of primitive arrays keyed by thread id. 
+ * Each sample looks up each live thread's previous CPU time in the current table and writes its new CPU time into a second table, 
+ * then swaps the two, so threads that have terminated drop out of the table on the next sample. The tables are allocated once for 
+ * a maximum number of tracked threads; threads beyond that are not sampled. The busiest threads are selected with a bounded 
+ * min-heap of the top <b><code>N</code></b> deltas, and {@link BusyThread}s, metrics and stack snapshots are only created for those.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.jmx.threadinfo.BusyThreadSampler</code></p>
+ */
+
+public class BusyThreadSampler implements Runnable {
+	/** The ThreadMXBean providing the cpu times */
+	protected final ThreadMXBean threadMXBean;
+	/** The batch cpu time accessor of the HotSpot ThreadMXBean, or null if not available */
+	protected final Method batchCpuTime;
+	/** The number of busiest threads selected in each sample */
+	protected final int topN;
+	/** The stack depth of the snapshots traced for the busiest threads, or 0 for no snapshots */
+	protected volatile int stackDepth;
+	/** The maximum number of tracked threads */
+	protected final int maxThreads;
+	/** The table index mask */
+	protected final int mask;
+	/** The thread ids of the current table, 0 for an empty slot */
+	protected long[] ids;
+	/** The cpu times of the current table */
+	protected long[] cpuTimes;
+	/** The thread ids of the table being filled by a sample */
+	protected long[] nextIds;
+	/** The cpu times of the table being filled by a sample */
+	protected long[] nextCpuTimes;
+	/** The reusable buffer of live threads */
+	protected final Thread[] threads;
+	/** The reusable buffer of live thread ids passed to the batch cpu time accessor */
+	protected long[] threadIds = new long[0];
+	/** The top N heap of cpu time deltas, with the smallest at the root */
+	protected final long[] heapDeltas;
+	/** The thread buffer indexes of the top N heap entries */
+	protected final int[] heapThreads;
+	/** The number of entries in the top N heap */
+	protected int heapSize = 0;
+	/** The root thread group */
+	protected final ThreadGroup rootThreadGroup;
+	/** The tracer the busiest threads are published to, or null to not publish */
+	protected final ITracer tracer;
+	/** The rank tags of the published metrics */
+	protected final String[] rankTags;
+	/** The timestamp of the last sample in ns. */
+	protected long lastSampleTime = -1L;
+	/** The busiest threads of the last sample */
+	protected volatile BusyThread[] busiest = new BusyThread[0];
+	/** The number of live threads that could not be tracked on account of the table being full in the last sample */
+	protected volatile int untracked = 0;
+	
+	/** The default number of busiest threads */
+	public static final int DEFAULT_TOP_N = 10;
+	/** The default maximum number of tracked threads */
+	public static final int DEFAULT_MAX_THREADS = 16384;
+	
+	/**
+	 * Creates a new BusyThreadSampler
+	 * @param threadMXBean The ThreadMXBean providing the cpu times
+	 * @param topN The number of busiest threads selected in each sample
+	 * @param stackDepth The stack depth of the snapshots traced for the busiest threads, or 0 for no snapshots
+	 * @param maxThreads The maximum number of tracked threads
+	 * @param publish true to trace metrics for the busiest threads of each sample
+	 */
+	public BusyThreadSampler(ThreadMXBean threadMXBean, int topN, int stackDepth, int maxThreads, boolean publish) {
+		if(threadMXBean==null) throw new IllegalArgumentException("The passed ThreadMXBean was null", new Throwable());
+		if(topN<1) throw new IllegalArgumentException("Invalid top N [" + topN + "]", new Throwable());
+		if(maxThreads<1) throw new IllegalArgumentException("Invalid max threads [" + maxThreads + "]", new Throwable());
+		this.threadMXBean = threadMXBean;
+		this.topN = topN;
+		this.stackDepth = stackDepth;
+		this.maxThreads = maxThreads;
+		int capacity = 16;
+		while(capacity < maxThreads*2) capacity <<= 1;
+		mask = capacity-1;
+		ids = new long[capacity];
+		cpuTimes = new long[capacity];
+		nextIds = new long[capacity];
+		nextCpuTimes = new long[capacity];
+		threads = new Thread[maxThreads];
+		heapDeltas = new long[topN];
+		heapThreads = new int[topN];
+		Method m = null;
+		try {
+			Class<?> hotspot = Class.forName("com.sun.management.ThreadMXBean");
+			if(hotspot.isInstance(threadMXBean)) {
+				m = hotspot.getMethod("getThreadCpuTime", long[].class);
+			}
+		} catch (Throwable t) {
+			m = null;
+		}
+		batchCpuTime = m;
+		ThreadGroup group = Thread.currentThread().getThreadGroup();
+		while(group.getParent()!=null) {
+			group = group.getParent();
+		}
+		rootThreadGroup = group;
+		tracer = publish ? TracerFactory.getTracer() : null;
+		rankTags = new String[topN];
+		for(int i = 0; i < topN; i++) {
+			rankTags[i] = "rank=" + (i+1);
+		}
+	}
+	
+	/**
+	 * Creates a new BusyThreadSampler that publishes the busiest threads with the default maximum number of tracked threads 
+	 * @param threadMXBean The ThreadMXBean providing the cpu times
+	 * @param topN The number of busiest threads selected in each sample
+	 * @param stackDepth The stack depth of the snapshots traced for the busiest threads, or 0 for no snapshots
+	 */
+	public BusyThreadSampler(ThreadMXBean threadMXBean, int topN, int stackDepth) {
+		this(threadMXBean, topN, stackDepth, DEFAULT_MAX_THREADS, true);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		try {
+			sample();
+		} catch (Throwable t) {
+			/* No Op */
+		}
+	}
+	
+	/**
+	 * Samples the cpu time of all live threads and selects the busiest since the prior sample.
+	 * The first sample only records the cpu times and returns an empty array.
+	 * @return the busiest threads since the prior sample, busiest first
+	 */
+	public synchronized BusyThread[] sample() {
+		long now = System.nanoTime();
+		int count = rootThreadGroup.enumerate(threads, true);
+		untracked = Math.max(0, threadCount() - count);
+		long[] cpu = cpuTimes(count);
+		Arrays.fill(nextIds, 0L);
+		heapSize = 0;
+		boolean first = lastSampleTime==-1L;
+		for(int i = 0; i < count; i++) {
+			long id = threads[i].getId();
+			long time = cpu==null ? threadMXBean.getThreadCpuTime(id) : cpu[i];
+			if(time<0) continue;
+			put(id, time);
+			if(first) continue;
+			long prior = get(id);
+			// a thread started since the prior sample has used all of its cpu time in this interval
+			long delta = prior<0 ? time : time - prior;
+			offer(delta, i);
+		}
+		long[] tmp = ids; ids = nextIds; nextIds = tmp;
+		tmp = cpuTimes; cpuTimes = nextCpuTimes; nextCpuTimes = tmp;
+		long elapsed = first ? 0 : now - lastSampleTime;
+		lastSampleTime = now;
+		BusyThread[] top = drainHeap(elapsed);
+		Arrays.fill(threads, 0, count, null);
+		busiest = top;
+		if(tracer!=null && top.length>0) publish(top);
+		return top;
+	}
+	
+	/**
+	 * Returns the JVM's live thread count
+	 * @return the live thread count
+	 */
+	protected int threadCount() {
+		return threadMXBean.getThreadCount();
+	}
+	
+	/**
+	 * Reads the cpu times of the enumerated threads in one call if the batch accessor is available
+	 * @param count The number of enumerated threads
+	 * @return the cpu times indexed by thread buffer index, or null if they must be read one thread at a time
+	 */
+	protected long[] cpuTimes(int count) {
+		if(batchCpuTime==null) return null;
+		if(threadIds.length!=count) threadIds = new long[count];
+		for(int i = 0; i < count; i++) {
+			threadIds[i] = threads[i].getId();
+		}
+		try {
+			return (long[])batchCpuTime.invoke(threadMXBean, threadIds);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Records a thread's cpu time in the table being filled
+	 * @param id The thread id
+	 * @param time The cpu time in ns.
+	 */
+	protected void put(long id, long time) {
+		int index = hash(id);
+		while(nextIds[index]!=0L) {
+			index = (index+1) & mask;
+		}
+		nextIds[index] = id;
+		nextCpuTimes[index] = time;
+	}
+	
+	/**
+	 * Returns a thread's cpu time from the current table
+	 * @param id The thread id
+	 * @return the cpu time in ns. recorded in the prior sample, or -1 if the thread was not sampled
+	 */
+	protected long get(long id) {
+		int index = hash(id);
+		long slot;
+		while((slot = ids[index])!=0L) {
+			if(slot==id) return cpuTimes[index];
+			index = (index+1) & mask;
+		}
+		return -1L;
+	}
+	
+	/**
+	 * Computes the table index of a thread id
+	 * @param id The thread id
+	 * @return the table index
+	 */
+	protected int hash(long id) {
+		long h = id * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+	
+	/**
+	 * Offers a thread's cpu time delta to the top N heap
+	 * @param delta The cpu time delta in ns.
+	 * @param thread The thread buffer index
+	 */
+	protected void offer(long delta, int thread) {
+		if(heapSize < topN) {
+			int i = heapSize++;
+			heapDeltas[i] = delta;
+			heapThreads[i] = thread;
+			while(i > 0) {
+				int parent = (i-1) >>> 1;
+				if(heapDeltas[parent] <= heapDeltas[i]) break;
+				swap(i, parent);
+				i = parent;
+			}
+		} else if(delta > heapDeltas[0]) {
+			heapDeltas[0] = delta;
+			heapThreads[0] = thread;
+			siftDown(0, heapSize);
+		}
+	}
+	
+	/**
+	 * Restores the heap order below the passed index
+	 * @param index The heap index
+	 * @param size The heap size
+	 */
+	protected void siftDown(int index, int size) {
+		int i = index;
+		while(true) {
+			int left = (i << 1) + 1;
+			if(left >= size) break;
+			int smallest = left;
+			int right = left + 1;
+			if(right < size && heapDeltas[right] < heapDeltas[left]) smallest = right;
+			if(heapDeltas[i] <= heapDeltas[smallest]) break;
+			swap(i, smallest);
+			i = smallest;
+		}
+	}
+	
+	/**
+	 * Swaps two heap entries
+	 * @param a The first heap index
+	 * @param b The second heap index
+	 */
+	protected void swap(int a, int b) {
+		long d = heapDeltas[a]; heapDeltas[a] = heapDeltas[b]; heapDeltas[b] = d;
+		int t = heapThreads[a]; heapThreads[a] = heapThreads[b]; heapThreads[b] = t;
+	}
+	
+	/**
+	 * Drains the top N heap into an array of BusyThreads, busiest first
+	 * @param elapsed The elapsed time of the sample interval in ns.
+	 * @return the busiest threads
+	 */
+	protected BusyThread[] drainHeap(long elapsed) {
+		BusyThread[] top = new BusyThread[heapSize];
+		for(int size = heapSize; size > 0; size--) {
+			Thread t = threads[heapThreads[0]];
+			top[size-1] = new BusyThread(heapDeltas[0], t.getName() + ":" + t.getId(), t.getId(), elapsed);
+			swap(0, size-1);
+			siftDown(0, size-1);
+		}
+		heapSize = 0;
+		return top;
+	}
+	
+	/**
+	 * Traces the cpu percentage and name of the busiest threads, and their stack snapshots if a stack depth is set
+	 * @param top The busiest threads
+	 */
+	protected void publish(BusyThread[] top) {
+		int depth = stackDepth;
+		ThreadInfo[] infos = null;
+		if(depth>0) {
+			long[] topIds = new long[top.length];
+			for(int i = 0; i < top.length; i++) {
+				topIds[i] = top[i].getThreadId();
+			}
+			infos = threadMXBean.getThreadInfo(topIds, depth);
+		}
+		for(int i = 0; i < top.length; i++) {
+			tracer.traceGauge(top[i].getCpuPercent(), "CpuPercent", "platform=JVM", "category=BusyThreads", rankTags[i]);
+			tracer.traceString(top[i].getThreadName(), "ThreadName", "platform=JVM", "category=BusyThreads", rankTags[i]);
+			if(infos!=null && infos[i]!=null) {
+				StringBuilder b = new StringBuilder(infos[i].getThreadState().name());
+				for(StackTraceElement ste: infos[i].getStackTrace()) {
+					b.append("\n\t").append(ste);
+				}
+				tracer.traceString(b, "Stack", "platform=JVM", "category=BusyThreads", rankTags[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the busiest threads of the last sample, busiest first
+	 * @return the busiest threads of the last sample
+	 */
+	public BusyThread[] getBusiest() {
+		return busiest.clone();
+	}
+	
+	/**
+	 * Returns the number of busiest threads selected in each sample
+	 * @return the number of busiest threads
+	 */
+	public int getTopN() {
+		return topN;
+	}
+	
+	/**
+	 * Returns the stack depth of the snapshots traced for the busiest threads
+	 * @return the stack depth, or 0 for no snapshots
+	 */
+	public int getStackDepth() {
+		return stackDepth;
+	}
+	
+	/**
+	 * Sets the stack depth of the snapshots traced for the busiest threads
+	 * @param stackDepth the stack depth, or 0 for no snapshots
+	 */
+	public void setStackDepth(int stackDepth) {
+		this.stackDepth = stackDepth;
+	}
+	
+	/**
+	 * Returns the maximum number of tracked threads
+	 * @return the maximum number of tracked threads
+	 */
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+	
+	/**
+	 * Returns the number of live threads that could not be tracked in the last sample on account of the maximum number of tracked threads
+	 * @return the number of untracked threads
+	 */
+	public int getUntracked() {
+		return untracked;
+	}
+}
@@ -27,13 +27,12 @@ package org.helios.apmrouter.jmx.threadinfo;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -44,6 +43,7 @@ import javax.management.NotificationBroadcasterSupport;
 import javax.management.ObjectName;
 
 import org.helios.apmrouter.jmx.JMXHelper;
+import org.helios.apmrouter.jmx.ScheduledThreadPoolFactory;
 import org.helios.apmrouter.util.SimpleLogger;
 import org.helios.apmrouter.util.SystemClock;
 
@@ -86,6 +86,10 @@ public class ExtendedThreadManager extends NotificationBroadcasterSupport implem
 	
 	/** The default max depth to get thread Infos with */
 	private int maxDepth = Integer.MAX_VALUE;
+	/** The continuous busy thread sampler */
+	private volatile BusyThreadSampler busyThreadSampler = null;
+	/** The schedule handle of the continuous busy thread sampler */
+	private ScheduledFuture<?> busyThreadHandle = null;
 	
 	// record initial tct and tcm states, store in statics
 	
@@ -321,31 +325,73 @@ Thread[Thread-10,6,main]
 	@Override
 	public String[] getBusyThreads(long sampleTime) {
 		SimpleLogger.info("Starting BusyThreads");
-		ThreadInfo[] infos = delegate.getThreadInfo(delegate.getAllThreadIds());
-		Map<String, Long> init = new HashMap<String, Long>(infos.length);		
-		for(ThreadInfo ti: infos) {
-			init.put(ti.getThreadName() + ":" + ti.getThreadId(), delegate.getThreadCpuTime(ti.getThreadId()));
-		}
+		int threadCount = delegate.getThreadCount() + 64;
+		BusyThreadSampler sampler = new BusyThreadSampler(delegate, threadCount, 0, threadCount, false);
+		sampler.sample();
 		SimpleLogger.info("BusyThreads Sampling Time [", sampleTime, "] ms.");
 		SystemClock.sleep(sampleTime);
 		SimpleLogger.info("Completed BusyThreads Sampling");
-		infos = delegate.getThreadInfo(delegate.getAllThreadIds());
-		Set<BusyThread> bthreads = new TreeSet<BusyThread>();
-		for(ThreadInfo ti: infos) {
-			String key = ti.getThreadName() + ":" + ti.getThreadId();
-			if(!init.containsKey(key)) continue;
-			long elapsedCpu = delegate.getThreadCpuTime(ti.getThreadId())-init.get(key);
-			bthreads.add(new BusyThread(elapsedCpu, key));			
-		}
-		String[] out = new String[bthreads.size()];
-		int cnt = 0;
-		for(BusyThread bt: bthreads) {
-			out[cnt] = bt.toString();
-			cnt++;
+		return toStrings(sampler.sample());
+	}
+	
+	/**
+	 * Renders busy threads as strings
+	 * @param bthreads The busy threads to render
+	 * @return the rendered busy threads
+	 */
+	private static String[] toStrings(BusyThread[] bthreads) {
+		String[] out = new String[bthreads.length];
+		for(int i = 0; i < bthreads.length; i++) {
+			out[i] = bthreads[i].toString();
 		}
 		return out;
-		
-		
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.jmx.threadinfo.ExtendedThreadManagerMXBean#startBusyThreadSampler(long, int, int)
+	 */
+	@Override
+	public synchronized void startBusyThreadSampler(long period, int topN, int stackDepth) {
+		if(period<1) throw new IllegalArgumentException("Invalid period [" + period + "]", new Throwable());
+		stopBusyThreadSampler();
+		busyThreadSampler = new BusyThreadSampler(delegate, topN, stackDepth);
+		busyThreadHandle = ScheduledThreadPoolFactory.newScheduler("Monitor").scheduleWithFixedDelay(busyThreadSampler, 0, period, TimeUnit.MILLISECONDS);
+		SimpleLogger.info("Started BusyThreadSampler with period [", period, "] ms. and top [", topN, "]");
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.jmx.threadinfo.ExtendedThreadManagerMXBean#stopBusyThreadSampler()
+	 */
+	@Override
+	public synchronized void stopBusyThreadSampler() {
+		if(busyThreadHandle!=null) {
+			busyThreadHandle.cancel(false);
+			busyThreadHandle = null;
+			SimpleLogger.info("Stopped BusyThreadSampler");
+		}
+		busyThreadSampler = null;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.jmx.threadinfo.ExtendedThreadManagerMXBean#isBusyThreadSamplerRunning()
+	 */
+	@Override
+	public boolean isBusyThreadSamplerRunning() {
+		return busyThreadSampler!=null;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.jmx.threadinfo.ExtendedThreadManagerMXBean#getTopBusyThreads()
+	 */
+	@Override
+	public String[] getTopBusyThreads() {
+		BusyThreadSampler sampler = busyThreadSampler;
+		if(sampler==null) return new String[0];
+		return toStrings(sampler.getBusiest());
 	}
 	
 
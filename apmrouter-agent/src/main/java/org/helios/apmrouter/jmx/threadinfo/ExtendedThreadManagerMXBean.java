@@ -71,5 +71,30 @@ public interface ExtendedThreadManagerMXBean extends ThreadMXBean {
 	 * @return a list of thread names with the cpu time appended
 	 */
 	public String[] getBusyThreads(long sampleTime);
+	
+	/**
+	 * Starts a continuous sampler that traces the busiest threads of each period, replacing any running sampler
+	 * @param period The sampling period in ms.
+	 * @param topN The number of busiest threads to trace
+	 * @param stackDepth The stack depth of the snapshots traced for the busiest threads, or 0 for no snapshots
+	 */
+	public void startBusyThreadSampler(long period, int topN, int stackDepth);
+	
+	/**
+	 * Stops the continuous busy thread sampler
+	 */
+	public void stopBusyThreadSampler();
+	
+	/**
+	 * Indicates if the continuous busy thread sampler is running
+	 * @return true if the sampler is running
+	 */
+	public boolean isBusyThreadSamplerRunning();
+	
+	/**
+	 * Returns the busiest threads of the continuous sampler's last sample
+	 * @return a list of thread names with the cpu time appended, busiest first
+	 */
+	public String[] getTopBusyThreads();
 
 }
@@ -0,0 +1,373 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.metric;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Title: TokenConflationTable</p>
+ * <p>Description: A double buffered conflation table for {@link IMetric}s keyed by the metric's long catalog token.</p>
+ * <p>Each buffer is an open addressed (linear probing) table of primitive <b><code>long</code></b> token keys with an array of metric value slots, 
+ * so conflating a metric costs a hash of the token and an array probe, with no boxing, no entry allocation and no FQN string hashing.
+ * Metrics that have not been assigned a token yet (token &lt; 0) fall back to a map keyed by the metric FQN.</p>
+ * <p>Each generation of the table is split into a power of 2 number of stripes, each its own buffer selected by the token hash (or the FQN hash 
+ * for untokened metrics), and a writer only synchronizes on the stripe it writes to. Writers of different metrics therefore mostly take 
+ * different locks, and writers of the same metric serialize on its stripe, as conflating into one metric requires.</p>
+ * <p>{@link #drain()} swaps the active generation for the standby generation so writers continue into fresh stripes, then drains each swapped 
+ * out stripe under its lock, so it only waits for a writer that was already in that stripe when the swap happened.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.metric.TokenConflationTable</code></p>
+ */
+
+public class TokenConflationTable {
+	/** The active generation that writers conflate into */
+	protected volatile Generation active;
+	/** The standby generation that becomes active on the next drain */
+	protected Generation standby;
+	/** Lock serializing drains */
+	protected final Object drainLock = new Object();
+	/** The maximum number of distinct metrics each generation will accept before dropping, or &lt; 1 for unbounded */
+	protected volatile int maxSize;
+	/** The stripe mask */
+	protected final int stripeMask;
+	
+	/** The default number of stripes, the number of processors times 2, rounded up to a power of 2 */
+	public static final int DEFAULT_STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()*2 - 1)) << 1;
+	
+	/** The result code for a metric that was added to the table */
+	public static final int ADDED = 0;
+	/** The result code for a metric that was conflated into a metric already in the table */
+	public static final int CONFLATED = 1;
+	/** The result code for a metric that was dropped because the table was full */
+	public static final int DROPPED = 2;
+	
+	/** The empty key marker. Tokens are never negative in the table, the FQN fallback takes those */
+	private static final long EMPTY = -1L;
+
+	/**
+	 * Creates a new TokenConflationTable
+	 * @param initialCapacity The initial number of metrics each buffer can hold before resizing
+	 * @param maxSize The maximum number of distinct metrics each buffer will accept before dropping. A value &lt; 1 means unbounded.
+	 */
+	public TokenConflationTable(int initialCapacity, int maxSize) {
+		this(initialCapacity, maxSize, DEFAULT_STRIPES);
+	}
+	
+	/**
+	 * Creates a new TokenConflationTable
+	 * @param initialCapacity The initial number of metrics each generation can hold before resizing
+	 * @param maxSize The maximum number of distinct metrics each generation will accept before dropping. A value &lt; 1 means unbounded.
+	 * @param stripes The number of independently locked stripes, rounded up to a power of 2
+	 */
+	public TokenConflationTable(int initialCapacity, int maxSize, int stripes) {
+		if(stripes<1) throw new IllegalArgumentException("Invalid stripe count [" + stripes + "]", new Throwable());
+		int len = 1;
+		while(len < stripes) len <<= 1;
+		stripeMask = len-1;
+		this.maxSize = maxSize;
+		int stripeCapacity = Math.max(8, initialCapacity/len);
+		active = new Generation(len, stripeCapacity);
+		standby = new Generation(len, stripeCapacity);
+	}
+	
+	/**
+	 * Returns the number of stripes
+	 * @return the number of stripes
+	 */
+	public int getStripes() {
+		return stripeMask+1;
+	}
+	
+	/**
+	 * Returns the maximum number of distinct metrics each generation will accept before dropping
+	 * @return the maximum number of distinct metrics, or &lt; 1 for unbounded
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	/**
+	 * Sets the maximum number of distinct metrics each generation will accept before dropping
+	 * @param maxSize the maximum number of distinct metrics, or &lt; 1 for unbounded
+	 */
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+	
+	/**
+	 * Adds the passed metric to the table, conflating it into an already pending metric with the same token (or FQN if the metric has no token)
+	 * @param metric The metric to add
+	 * @return One of {@link #ADDED}, {@link #CONFLATED} or {@link #DROPPED}
+	 */
+	public int conflate(IMetric metric) {
+		long token = metric.getToken();
+		int stripe = token<0 ? spread(metric.getFQN().hashCode()) & stripeMask : (int)((token * 0x9E3779B97F4A7C15L) >>> 40) & stripeMask;
+		while(true) {
+			Generation gen = active;
+			Buffer buff = gen.stripes[stripe];
+			synchronized(buff) {
+				// if a drain swapped the generation before we got the lock, retry on the new one
+				if(gen!=active) continue;
+				return buff.put(metric);
+			}
+		}
+	}
+	
+	/**
+	 * Spreads the bits of the passed hash code
+	 * @param h The hash code
+	 * @return the spread hash code
+	 */
+	static int spread(int h) {
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+	
+	/**
+	 * Swaps the active generation and returns the conflated metrics that were pending in it.
+	 * @return an array of the pending metrics, which may be empty but will not be null
+	 */
+	public IMetric[] drain() {
+		synchronized(drainLock) {
+			Generation drained = active;
+			active = standby;
+			IMetric[][] parts = new IMetric[drained.stripes.length][];
+			int total = 0;
+			for(int i = 0; i < parts.length; i++) {
+				Buffer buff = drained.stripes[i];
+				// waits for any writer still in the drained stripe
+				synchronized(buff) {
+					parts[i] = buff.drain();
+				}
+				total += parts[i].length;
+			}
+			drained.size.set(0);
+			IMetric[] metrics = new IMetric[total];
+			int offset = 0;
+			for(IMetric[] part: parts) {
+				System.arraycopy(part, 0, metrics, offset, part.length);
+				offset += part.length;
+			}
+			standby = drained;
+			return metrics;
+		}
+	}
+	
+	/**
+	 * Returns the number of distinct metrics pending in the active generation
+	 * @return the number of distinct metrics pending
+	 */
+	public int size() {
+		return active.size.get();
+	}
+	
+	/**
+	 * Discards all pending metrics
+	 */
+	public void clear() {
+		drain();
+	}
+	
+	/**
+	 * Computes the table slot for the passed token
+	 * @param token The token
+	 * @param mask The table mask
+	 * @return the slot index
+	 */
+	static int slot(long token, int mask) {
+		long h = token * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+	
+	/**
+	 * <p>Title: Generation</p>
+	 * <p>Description: One side of the double buffered table: the stripes and the count of distinct metrics across them</p> 
+	 */
+	protected class Generation {
+		/** The stripes */
+		final Buffer[] stripes;
+		/** The number of distinct metrics in all the stripes */
+		final AtomicInteger size = new AtomicInteger(0);
+		
+		/**
+		 * Creates a new Generation
+		 * @param stripeCount The number of stripes
+		 * @param stripeCapacity The initial number of metrics each stripe can hold before resizing
+		 */
+		Generation(int stripeCount, int stripeCapacity) {
+			stripes = new Buffer[stripeCount];
+			for(int i = 0; i < stripeCount; i++) {
+				stripes[i] = new Buffer(this, stripeCapacity);
+			}
+		}
+		
+		/**
+		 * Reserves room for a new distinct metric
+		 * @return true if reserved, false if the generation is full
+		 */
+		boolean reserve() {
+			int max = maxSize;
+			if(max<1) {
+				size.incrementAndGet();
+				return true;
+			}
+			while(true) {
+				int current = size.get();
+				if(current>=max) return false;
+				if(size.compareAndSet(current, current+1)) return true;
+			}
+		}
+	}
+	
+	/**
+	 * <p>Title: Buffer</p>
+	 * <p>Description: One stripe of a generation. Not thread safe, callers synchronize on the buffer.</p> 
+	 */
+	protected class Buffer {
+		/** The generation this stripe belongs to */
+		final Generation generation;
+		/** The token keys */
+		long[] keys;
+		/** The metric slots, indexed the same as the keys */
+		IMetric[] values;
+		/** The slots in use, in insertion order, so a drain does not scan the whole table */
+		int[] used;
+		/** The number of token keyed metrics */
+		int count = 0;
+		/** The fallback map for metrics without a token */
+		final Map<String, IMetric> untokened = new HashMap<String, IMetric>();
+		
+		/**
+		 * Creates a new Buffer
+		 * @param generation The generation this stripe belongs to
+		 * @param initialCapacity The initial number of metrics the buffer can hold before resizing
+		 */
+		Buffer(Generation generation, int initialCapacity) {
+			this.generation = generation;
+			int len = 16;
+			while(len < initialCapacity*2) len <<= 1;
+			allocate(len);
+		}
+		
+		/**
+		 * Allocates empty arrays of the passed length
+		 * @param len The table length, a power of 2
+		 */
+		private void allocate(int len) {
+			keys = new long[len];
+			Arrays.fill(keys, EMPTY);
+			values = new IMetric[len];
+			used = new int[len/2];
+		}
+		
+		/**
+		 * Returns the number of distinct metrics in this buffer
+		 * @return the number of distinct metrics
+		 */
+		int size() {
+			return count + untokened.size();
+		}
+		
+		/**
+		 * Adds or conflates the passed metric
+		 * @param metric The metric
+		 * @return One of {@link TokenConflationTable#ADDED}, {@link TokenConflationTable#CONFLATED} or {@link TokenConflationTable#DROPPED}
+		 */
+		int put(IMetric metric) {
+			long token = metric.getToken();
+			if(token<0) {
+				IMetric existing = untokened.get(metric.getFQN());
+				if(existing!=null) {
+					existing.conflate(metric);
+					return CONFLATED;
+				}
+				if(!generation.reserve()) return DROPPED;
+				untokened.put(metric.getFQN(), metric);
+				return ADDED;
+			}
+			int mask = keys.length-1;
+			int index = slot(token, mask);
+			long key;
+			while((key = keys[index])!=EMPTY) {
+				if(key==token) {
+					values[index].conflate(metric);
+					return CONFLATED;
+				}
+				index = (index+1) & mask;
+			}
+			if(!generation.reserve()) return DROPPED;
+			keys[index] = token;
+			values[index] = metric;
+			used[count++] = index;
+			if(count==used.length) resize();
+			return ADDED;
+		}
+		
+		/**
+		 * Doubles the table length and rehashes the token keys
+		 */
+		private void resize() {
+			long[] oldKeys = keys;
+			IMetric[] oldValues = values;
+			int[] oldUsed = used;
+			int oldCount = count;
+			allocate(oldKeys.length*2);
+			int mask = keys.length-1;
+			for(int i = 0; i < oldCount; i++) {
+				int oldIndex = oldUsed[i];
+				int index = slot(oldKeys[oldIndex], mask);
+				while(keys[index]!=EMPTY) index = (index+1) & mask;
+				keys[index] = oldKeys[oldIndex];
+				values[index] = oldValues[oldIndex];
+				used[i] = index;
+			}
+		}
+		
+		/**
+		 * Returns all the metrics in this buffer and resets it
+		 * @return the metrics in this buffer
+		 */
+		IMetric[] drain() {
+			IMetric[] metrics = new IMetric[size()];
+			for(int i = 0; i < count; i++) {
+				int index = used[i];
+				metrics[i] = values[index];
+				values[index] = null;
+				keys[index] = EMPTY;
+			}
+			int i = count;
+			for(IMetric metric: untokened.values()) {
+				metrics[i++] = metric;
+			}
+			untokened.clear();
+			count = 0;
+			return metrics;
+		}
+	}
+}
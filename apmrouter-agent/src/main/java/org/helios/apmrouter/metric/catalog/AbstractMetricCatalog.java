@@ -54,6 +54,8 @@ public abstract class AbstractMetricCatalog<K, V> implements IMetricCatalog {
 	protected final Map<Long, IDelegateMetric> tokencache;
 	/** The token ID factory */
 	protected final AtomicLong tokenSerial = new AtomicLong(0);
+	/** The epoch of the server catalog the current tokens were issued by, or 0 if not known */
+	protected volatile long catalogEpoch = 0L;
 	
 	/**
 	 * Creates a new AbstractMetricCatalog
@@ -84,6 +86,20 @@ public abstract class AbstractMetricCatalog<K, V> implements IMetricCatalog {
 		}
 		tokencache.clear();
 	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>Heap catalogs only hold tokens issued in this process, so they are all cleared if the server's catalog epoch has changed.
+	 * @see org.helios.apmrouter.metric.catalog.IMetricCatalog#revalidateTokens(long)
+	 */
+	@Override
+	public int revalidateTokens(long serverEpoch) {
+		if(catalogEpoch!=0 && catalogEpoch!=serverEpoch) {
+			resetTokens();
+		}
+		catalogEpoch = serverEpoch;
+		return tokencache.size();
+	}
 
 	/**
 	 * Sets the serialization token for the passed metric identifier using a contrived token.
@@ -323,6 +323,15 @@ public class ICEMetricCatalog implements IMetricCatalog {
 		actualCatalog.resetTokens();
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.metric.catalog.IMetricCatalog#revalidateTokens(long)
+	 */
+	@Override
+	public int revalidateTokens(long serverEpoch) {
+		return actualCatalog.revalidateTokens(serverEpoch);
+	}
+	
 	
 }
 
@@ -187,5 +187,13 @@ public interface IMetricCatalog {
 	 */
 	public void resetTokens();
 	
+	/**
+	 * Revalidates the catalog's tokens against the server's catalog epoch, clearing any token that was issued under a different epoch.
+	 * Executed when the server confirms the agent's HELLO.
+	 * @param serverEpoch The epoch of the server's metric catalog, or 0 if the server did not advertise one
+	 * @return the number of tokens that remain valid
+	 */
+	public int revalidateTokens(long serverEpoch);
+	
 
 }
\ No newline at end of file
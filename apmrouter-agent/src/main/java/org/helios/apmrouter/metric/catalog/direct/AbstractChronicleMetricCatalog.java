@@ -0,0 +1,179 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.metric.catalog.direct;
+
+import org.helios.apmrouter.metric.MetricType;
+import org.helios.apmrouter.metric.catalog.AbstractMetricCatalog;
+import org.helios.apmrouter.metric.catalog.IDelegateMetric;
+import org.helios.apmrouter.metric.catalog.direct.chronicle.ChronicleController;
+import org.helios.apmrouter.metric.catalog.direct.chronicle.MappedNameIndex;
+import vanilla.java.chronicle.Excerpt;
+import vanilla.java.chronicle.impl.IndexedChronicle;
+
+/**
+ * <p>Title: AbstractChronicleMetricCatalog</p>
+ * <p>Description: The base class for metric catalogs that store metric definitions in the chronicle. 
+ * Names and tokens are resolved through the chronicle's off-heap {@link MappedNameIndex} rather than heap maps, 
+ * so heap usage does not grow with the number of metrics and a retained catalog is usable immediately after a restart.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.metric.catalog.direct.AbstractChronicleMetricCatalog</code></p>
+ * @param <K> The key type the catalog derives from metric names
+ */
+
+public abstract class AbstractChronicleMetricCatalog<K> extends AbstractMetricCatalog<K, Long> {
+	/** The chronicle controller */
+	protected final ChronicleController chron;
+	/** The chronicle's name and token index */
+	protected final MappedNameIndex nameIndex;
+
+	/**
+	 * Creates a new AbstractChronicleMetricCatalog
+	 */
+	protected AbstractChronicleMetricCatalog() {
+		super();
+		chron = ChronicleController.getInstance();
+		nameIndex = chron.getNameIndex();
+	}
+	
+	/**
+	 * Returns the long hash the name index is keyed by for the passed catalog key
+	 * @param key The catalog key
+	 * @return the long hash of the metric name
+	 */
+	protected abstract long indexKey(K key);
+	
+	/**
+	 * Returns the FQN the name index should compare against entries with a matching hash
+	 * @param key The catalog key
+	 * @return the FQN or null to accept the first entry with a matching hash
+	 */
+	protected abstract String indexName(K key);
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.metric.catalog.AbstractMetricCatalog#get(java.lang.Object)
+	 */
+	@Override
+	protected IDelegateMetric get(K key) {
+		long metricId = nameIndex.get(indexKey(key), indexName(key));
+		if(metricId==-1) return null;
+		Excerpt<IndexedChronicle> ex = chron.createExcerpt();
+		if(!ex.index(metricId)) return null;
+		return new ChronicleICEMetric(ex, metricId);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.metric.catalog.AbstractMetricCatalog#create(java.lang.Object, java.lang.String, java.lang.String, java.lang.CharSequence, org.helios.apmrouter.metric.MetricType, java.lang.CharSequence[])
+	 */
+	@Override
+	protected IDelegateMetric create(K key, String host, String agent, CharSequence name, MetricType type, CharSequence... namespace) {
+		ChronicleICEMetric metric = ChronicleICEMetric.newInstance(host, agent, name, type, namespace);
+		nameIndex.put(indexKey(key), metric.index);
+		return metric;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.metric.catalog.AbstractMetricCatalog#get(long)
+	 */
+	@Override
+	public IDelegateMetric get(long metricIdToken) {
+		long metricId = nameIndex.getByToken(metricIdToken);
+		if(metricId==-1) return null;
+		Excerpt<IndexedChronicle> ex = chron.createExcerpt();
+		if(!ex.index(metricId)) return null;
+		return new ChronicleICEMetric(ex, metricId);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.metric.catalog.AbstractMetricCatalog#setToken(long, java.lang.String, java.lang.String, java.lang.CharSequence, org.helios.apmrouter.metric.MetricType, java.lang.CharSequence[])
+	 */
+	@Override
+	public long setToken(long token, String host, String agent, CharSequence name, MetricType type, CharSequence... namespace) {
+		ChronicleICEMetric metric = (ChronicleICEMetric)get(host, agent, name, type, namespace);
+		metric.setToken(token);
+		nameIndex.tokenAssigned(indexKey(createKey(metric.getFQN())), metric.index, token);
+		return token;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.metric.catalog.AbstractMetricCatalog#setToken(java.lang.CharSequence, long)
+	 */
+	@Override
+	public void setToken(CharSequence metricFqn, long token) {
+		K key = createKey(metricFqn.toString());
+		ChronicleICEMetric metric = (ChronicleICEMetric)get(key);
+		if(metric!=null) {
+			metric.setToken(token);
+			nameIndex.tokenAssigned(indexKey(key), metric.index, token);
+		} else {
+			System.err.println("Null IDelegateMetric for [" + metricFqn + "]:" + token);
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.metric.catalog.AbstractMetricCatalog#resetTokens()
+	 */
+	@Override
+	public void resetTokens() {
+		nameIndex.resetTokens();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>Tokens retained in the chronicle from a prior run are kept if they were issued under the passed epoch.
+	 * @see org.helios.apmrouter.metric.catalog.AbstractMetricCatalog#revalidateTokens(long)
+	 */
+	@Override
+	public int revalidateTokens(long serverEpoch) {
+		catalogEpoch = serverEpoch;
+		return nameIndex.revalidate(serverEpoch);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.metric.catalog.AbstractMetricCatalog#size()
+	 */
+	@Override
+	public int size() {
+		return nameIndex.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.metric.catalog.IMetricCatalog#dispose()
+	 * <p><b>DO NOT CALL THIS METHOD UNLESS YOU KNOW WHAT YOU'RE DOING.</b>
+	 */
+	@Override
+	public void dispose() {
+		chron.clear();
+		super.dispose();
+	}
+}
@@ -144,8 +144,8 @@ public class ChronicleICEMetric implements IDelegateMetric {
 		nameOffsets[NAME_POS] = excerpt.position();
 		excerpt.skipBytes(excerpt.readInt());
 		for(int i = 0; i < namespaceOffsets.length; i++) {
-			namespaceOffsets[i] = excerpt.readInt();
-			excerpt.skipBytes(namespaceOffsets[i]);
+			namespaceOffsets[i] = excerpt.position();
+			excerpt.skipBytes(excerpt.readInt());
 		}
 		nameOffsets[UNMAPPED_POS] = excerpt.position();
 	}
@@ -336,11 +336,13 @@ public class ChronicleICEMetric implements IDelegateMetric {
 	}
 	
 	/**
-	 * Returns the serialization token for this IMetric
+	 * Returns the serialization token for this IMetric.
+	 * Tokens retained from a prior run are not returned until the catalog has revalidated them against the server.
 	 * @return the serialization token for this IMetric or -1 if one has not been assigned
 	 */	
 	@Override
 	public long getToken() {
+		if(!ChronicleController.getInstance().isTokensValid()) return -1L;
 		return excerpt.readLong(0);
 	}
 	
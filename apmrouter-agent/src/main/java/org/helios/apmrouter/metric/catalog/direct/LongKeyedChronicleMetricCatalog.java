@@ -24,13 +24,6 @@
  */
 package org.helios.apmrouter.metric.catalog.direct;
 
-import org.helios.apmrouter.metric.MetricType;
-import org.helios.apmrouter.metric.catalog.AbstractMetricCatalog;
-import org.helios.apmrouter.metric.catalog.IDelegateMetric;
-import org.helios.apmrouter.metric.catalog.direct.chronicle.ChronicleController;
-import vanilla.java.chronicle.Excerpt;
-import vanilla.java.chronicle.impl.IndexedChronicle;
-
 /**
  * <p>Title: LongKeyedChronicleMetricCatalog</p>
  * <p>Description: A metric factory that stores the metric catalog in a chronicle and indexes the metric names by a long hash code</p> 
@@ -38,16 +31,12 @@ import vanilla.java.chronicle.impl.IndexedChronicle;
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>org.helios.apmrouter.metric.catalog.direct.LongKeyedChronicleMetricCatalog</code></p>
  */
-public class LongKeyedChronicleMetricCatalog extends AbstractMetricCatalog<Long, Long> {
-	/** The chronicle controller */
-	protected final ChronicleController chron;
-
+public class LongKeyedChronicleMetricCatalog extends AbstractChronicleMetricCatalog<Long> {
 	/**
 	 * Creates a new LongKeyedChronicleMetricCatalog
 	 */
 	public LongKeyedChronicleMetricCatalog() {		
 		super();
-		chron = ChronicleController.getInstance();
 	}
 
 	/**
@@ -61,47 +50,19 @@ public class LongKeyedChronicleMetricCatalog extends AbstractMetricCatalog<Long,
 
 	/**
 	 * {@inheritDoc}
-	 * @see org.helios.apmrouter.metric.catalog.AbstractMetricCatalog#get(java.lang.Object)
-	 */
-	@Override
-	protected IDelegateMetric get(Long key) {
-		Long metricId =  namecache.get(key);
-		if(metricId==null) return null;
-		Excerpt<IndexedChronicle> ex = ChronicleController.getInstance().createExcerpt();
-		if(!ex.index(metricId)) return null;
-		ChronicleICEMetric dim = new ChronicleICEMetric(ex, metricId);
-		namecache.put(key, dim.index);
-		return dim;
-	}
-
-	/**
-	 * {@inheritDoc}
-	 * @see org.helios.apmrouter.metric.catalog.AbstractMetricCatalog#create(java.lang.Object, java.lang.String, java.lang.String, java.lang.CharSequence, org.helios.apmrouter.metric.MetricType, java.lang.CharSequence[])
+	 * @see org.helios.apmrouter.metric.catalog.direct.AbstractChronicleMetricCatalog#indexKey(java.lang.Object)
 	 */
 	@Override
-	protected IDelegateMetric create(Long key, String host, String agent, CharSequence name, MetricType type, CharSequence... namespace) {
-		ChronicleICEMetric metric = ChronicleICEMetric.newInstance(host, agent, name, type, namespace);
-		namecache.put(key, metric.index);
-		return metric;
+	protected long indexKey(Long key) {
+		return key;
 	}
-
-
+	
 	/**
 	 * {@inheritDoc}
-	 * @see org.helios.apmrouter.metric.catalog.IMetricCatalog#dispose()
-	 * <p><b>DO NOT CALL THIS METHOD UNLESS YOU KNOW WHAT YOU'RE DOING.</b>
+	 * @see org.helios.apmrouter.metric.catalog.direct.AbstractChronicleMetricCatalog#indexName(java.lang.Object)
 	 */
 	@Override
-	public void dispose() {
-		chron.clear();
-		super.dispose();
+	protected String indexName(Long key) {
+		return null;
 	}
-	
-	
-	
-	
-
-
-	
-	
 }
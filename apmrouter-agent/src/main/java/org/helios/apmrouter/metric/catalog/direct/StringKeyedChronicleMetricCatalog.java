@@ -24,16 +24,10 @@
  */
 package org.helios.apmrouter.metric.catalog.direct;
 
-import org.helios.apmrouter.metric.MetricType;
-import org.helios.apmrouter.metric.catalog.AbstractMetricCatalog;
-import org.helios.apmrouter.metric.catalog.IDelegateMetric;
-import org.helios.apmrouter.metric.catalog.direct.chronicle.ChronicleController;
-import vanilla.java.chronicle.Excerpt;
-import vanilla.java.chronicle.impl.IndexedChronicle;
-
 /**
  * <p>Title: StringKeyedChronicleMetricCatalog</p>
- * <p>Description: A metric factory that stores the metric catalog in a chronicle and indexes the metric names by the metric FQN.
+ * <p>Description: A metric factory that stores the metric catalog in a chronicle and indexes the metric names by the metric FQN, 
+ * comparing the FQN of every entry whose long hash code matches.
  * Intended to be used instead of {@link LongKeyedChronicleMetricCatalog} in the event that the long hashcode algorithm creates too many collisions.
  * </p> 
  * <p>Company: Helios Development Group LLC</p>
@@ -41,16 +35,12 @@ import vanilla.java.chronicle.impl.IndexedChronicle;
  * <p><code>org.helios.apmrouter.metric.catalog.direct.StringKeyedChronicleMetricCatalog</code></p>
  */
 
-public class StringKeyedChronicleMetricCatalog extends AbstractMetricCatalog<String, Long>{
-	/** The chronicle controller */
-	protected final ChronicleController chron;
-
+public class StringKeyedChronicleMetricCatalog extends AbstractChronicleMetricCatalog<String>{
 	/**
 	 * Creates a new StringKeyedChronicleMetricCatalog
 	 */
 	public StringKeyedChronicleMetricCatalog() {		
 		super();
-		chron = ChronicleController.getInstance();
 	}
 
 	/**
@@ -64,38 +54,19 @@ public class StringKeyedChronicleMetricCatalog extends AbstractMetricCatalog<Str
 
 	/**
 	 * {@inheritDoc}
-	 * @see org.helios.apmrouter.metric.catalog.AbstractMetricCatalog#get(java.lang.Object)
-	 */
-	@Override
-	protected IDelegateMetric get(String key) {
-		Long metricId =  namecache.get(key);
-		if(metricId==null) return null;
-		Excerpt<IndexedChronicle> ex = ChronicleController.getInstance().createExcerpt();
-		if(!ex.index(metricId)) return null;
-		ChronicleICEMetric dim = new ChronicleICEMetric(ex, metricId);
-		namecache.put(key, dim.index);
-		return dim;
-	}
-
-	/**
-	 * {@inheritDoc}
-	 * @see org.helios.apmrouter.metric.catalog.AbstractMetricCatalog#create(java.lang.String, java.lang.String, java.lang.CharSequence, org.helios.apmrouter.metric.MetricType, java.lang.CharSequence[])
+	 * @see org.helios.apmrouter.metric.catalog.direct.AbstractChronicleMetricCatalog#indexKey(java.lang.Object)
 	 */
 	@Override
-	protected IDelegateMetric create(String key, String host, String agent, CharSequence name, MetricType type, CharSequence... namespace) {
-		ChronicleICEMetric metric = ChronicleICEMetric.newInstance(host, agent, name, type, namespace);
-		namecache.put(key, metric.index);
-		return metric;
+	protected long indexKey(String key) {
+		return longHashCode(key);
 	}
 	
 	/**
 	 * {@inheritDoc}
-	 * @see org.helios.apmrouter.metric.catalog.IMetricCatalog#dispose()
-	 * <p><b>DO NOT CALL THIS METHOD UNLESS YOU KNOW WHAT YOU'RE DOING.</b>
+	 * @see org.helios.apmrouter.metric.catalog.direct.AbstractChronicleMetricCatalog#indexName(java.lang.Object)
 	 */
 	@Override
-	public void dispose() {
-		chron.clear();
-		super.dispose();
+	protected String indexName(String key) {
+		return key;
 	}
 }
@@ -33,7 +33,8 @@ import java.nio.ByteOrder;
 
 /**
  * <p>Title: ChronicleController</p>
- * <p>Description: Singleton controller for managing the chronicle</p> 
+ * <p>Description: Singleton controller for managing the chronicle and its {@link MappedNameIndex}. 
+ * When <b><code>apmrouter.chronicle.retain</code></b> is true, both survive a restart and the persisted tokens are held back until revalidated against the server.</p> 
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>org.helios.apmrouter.metric.ChronicleController</code></p>
@@ -49,6 +50,8 @@ public class ChronicleController {
 	protected final boolean initDirect;
 	/** Indicates if the chronicle is retained */
 	protected final boolean retain;
+	/** The off-heap name and token index of the chronicle */
+	protected final MappedNameIndex nameIndex;
 	
 	/** The singleton instance */
 	private static volatile ChronicleController instance = null;
@@ -124,6 +127,15 @@ public class ChronicleController {
 		}
 		initDirect = "true".equalsIgnoreCase(System.getProperty(CHRONICLE_DIRECT_PROP, DEFAULT_CHRONICLE_DIRECT).trim());
 		chronicle.useUnsafe(initDirect);
+		nameIndex = new MappedNameIndex(chroniclePath + ".names", chronicle);
+		if(retain) {
+			Runtime.getRuntime().addShutdownHook(new Thread(){
+				@Override
+				public void run() {
+					nameIndex.close();
+				}
+			});
+		}
 		
 		//log("Initialized chronicle [" + chronicle.name() + "] on path [" + chroniclePath + "] with size [" + chronicle.size() + "]  Direct:" + initDirect);
 	}
@@ -132,6 +144,7 @@ public class ChronicleController {
 	private void deleteChronicle() {
 		new File(chroniclePath + ".data").delete();
 		new File(chroniclePath + ".index").delete();
+		new File(chroniclePath + ".names").delete();
 	}
 	
 	/**
@@ -150,11 +163,31 @@ public class ChronicleController {
 		return chronicle.size();
 	}
 	
+	/**
+	 * Closes the chronicle and its name index
+	 */
 	public void close() {
+		nameIndex.close();
 		chronicle.close();
 		instance=null;
 		
 	}
+	
+	/**
+	 * Returns the name and token index of the chronicle
+	 * @return the name index
+	 */
+	public MappedNameIndex getNameIndex() {
+		return nameIndex;
+	}
+	
+	/**
+	 * Indicates if the tokens stored in the chronicle can be used
+	 * @return false if the tokens were retained from a prior run and have not yet been revalidated against the server
+	 */
+	public boolean isTokensValid() {
+		return nameIndex.isTokensValid();
+	}
 
 	/**
 	 * @param useUnsafe
@@ -211,6 +244,7 @@ public class ChronicleController {
 	 */
 	public void clear() {
 		chronicle.clear();
+		nameIndex.clear();
 	}
 	
 }
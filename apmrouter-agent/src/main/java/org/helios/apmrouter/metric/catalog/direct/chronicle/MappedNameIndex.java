@@ -0,0 +1,565 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.metric.catalog.direct.chronicle;
+
+import org.helios.apmrouter.metric.catalog.AbstractMetricCatalog;
+import org.helios.apmrouter.metric.catalog.direct.ChronicleICEMetric;
+import vanilla.java.chronicle.Excerpt;
+import vanilla.java.chronicle.impl.IndexedChronicle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>Title: MappedNameIndex</p>
+ * <p>Description: An off-heap, memory mapped open addressing hash table that indexes the metric chronicle by the long hash code of
+ * each metric's fully qualified name and by the server issued token. The file sits next to the chronicle's data and index files and
+ * is retained with them, so a restarted agent finds its metrics without rebuilding a heap map.</p>
+ * <p>Each name slot records the server catalog epoch the metric's token was issued under. Until {@link #revalidate(long)} is called
+ * with the epoch advertised by the server, tokens read from a retained chronicle are reported as unassigned. Revalidation is a single
+ * pass over the table that keeps the tokens issued under the advertised epoch and clears the rest.</p>
+ * <p>The file layout is a 64 byte header, <b><code>capacity</code></b> name slots of
+ * <b><code>[name hash (long), chronicle index + 1 (long), epoch (long)]</code></b> and <b><code>capacity</code></b> token slots of
+ * <b><code>[token + 1 (long), chronicle index + 1 (long)]</code></b>. A zero first word marks an empty slot.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.metric.catalog.direct.chronicle.MappedNameIndex</code></p>
+ */
+
+public class MappedNameIndex {
+	/** The index file */
+	protected final File file;
+	/** The chronicle being indexed */
+	protected final IndexedChronicle chronicle;
+	/** The current table */
+	protected volatile Table table;
+	/** The provisional epoch stamped on tokens issued before the server's epoch is known in this process */
+	protected final long sessionEpoch;
+	/** The server catalog epoch tokens are currently being issued under, or 0 if not known */
+	protected volatile long liveEpoch = 0L;
+	/** Indicates if the tokens in the chronicle have been validated against the server */
+	protected volatile boolean tokensValid;
+	/** Indicates if the index was rebuilt from the chronicle when it was opened */
+	protected final boolean rebuilt;
+	
+	/** The system property that defines the initial number of slots in the name index */
+	public static final String INDEX_CAPACITY_PROP = "apmrouter.chronicle.index.capacity";
+	/** The default initial number of slots in the name index */
+	public static final int DEFAULT_INDEX_CAPACITY = 1 << 16;
+	/** The maximum number of slots in the name index */
+	public static final int MAX_CAPACITY = 1 << 25;
+	/** The load factor at which the table is doubled */
+	public static final float LOAD_FACTOR = 0.6f;
+	
+	/** The magic number that identifies a name index file */
+	public static final int MAGIC = 0x41504D4E;
+	/** The name index file format version */
+	public static final int VERSION = 1;
+	/** The size of the file header */
+	public static final int HEADER_SIZE = 64;
+	/** The size of a name slot */
+	public static final int NAME_SLOT_SIZE = 24;
+	/** The size of a token slot */
+	public static final int TOKEN_SLOT_SIZE = 16;
+	
+	/** The header offset of the magic number */
+	protected static final int MAGIC_OFF = 0;
+	/** The header offset of the format version */
+	protected static final int VERSION_OFF = 4;
+	/** The header offset of the slot capacity */
+	protected static final int CAPACITY_OFF = 8;
+	/** The header offset of the number of names */
+	protected static final int SIZE_OFF = 12;
+	/** The header offset of the number of tokens */
+	protected static final int TOKENS_OFF = 16;
+	/** The header offset of the clean shutdown flag */
+	protected static final int CLEAN_OFF = 20;
+	
+	/**
+	 * Opens or creates the name index for the passed chronicle.
+	 * If the file is missing, unreadable or was not closed cleanly, the index is rebuilt by scanning the chronicle.
+	 * @param path The file name of the index
+	 * @param chronicle The chronicle being indexed
+	 */
+	public MappedNameIndex(String path, IndexedChronicle chronicle) {
+		this.file = new File(path);
+		this.chronicle = chronicle;
+		sessionEpoch = -System.currentTimeMillis();
+		try {
+			Table t = Table.open(file);
+			if(t==null) {
+				file.delete();
+				int capacity = capacityFor(chronicle.size(), Integer.parseInt(System.getProperty(INDEX_CAPACITY_PROP, "" + DEFAULT_INDEX_CAPACITY).trim()));
+				t = Table.create(file, capacity);
+				table = t;
+				rebuild();
+				rebuilt = chronicle.size()>0;
+			} else {
+				table = t;
+				rebuilt = false;
+			}
+			table.buff.putInt(CLEAN_OFF, 0);
+			table.buff.force();
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to open metric name index [" + file + "]", e);
+		}
+		tokensValid = chronicle.size()==0;
+	}
+	
+	/**
+	 * Returns the smallest power of two capacity that can hold the passed number of names
+	 * @param names The number of names to hold
+	 * @param min The minimum capacity
+	 * @return the capacity
+	 */
+	protected static int capacityFor(long names, int min) {
+		int capacity = Integer.highestOneBit(Math.max(min, 16)-1)<<1;
+		while(capacity < MAX_CAPACITY && names >= capacity * LOAD_FACTOR) capacity <<= 1;
+		return capacity;
+	}
+	
+	/**
+	 * Rebuilds the name slots by scanning every entry in the chronicle, hashing names with {@link AbstractMetricCatalog#longHashCode(String)}. Tokens found in the chronicle carry no epoch and will be cleared on revalidation.
+	 */
+	protected void rebuild() {
+		Excerpt<IndexedChronicle> ex = chronicle.createExcerpt();
+		long size = chronicle.size();
+		for(long i = 0; i < size; i++) {
+			if(!ex.index(i)) continue;
+			ChronicleICEMetric metric = new ChronicleICEMetric(ex, i);
+			put(AbstractMetricCatalog.longHashCode(metric.getFQN()), i);
+		}
+	}
+	
+	/**
+	 * Spreads a slot key over the table
+	 * @param key The slot key
+	 * @param mask The table mask
+	 * @return the first slot to probe
+	 */
+	protected static int spread(long key, int mask) {
+		long x = key * 0x9E3779B97F4A7C15L;
+		return (int)(x >>> 32) & mask;
+	}
+	
+	/**
+	 * Converts a name hash to a slot key, reserving zero for empty slots
+	 * @param hash The name hash
+	 * @return the slot key
+	 */
+	protected static long nameKey(long hash) {
+		return hash==0 ? 1 : hash;
+	}
+	
+	/**
+	 * Returns the chronicle index of the metric with the passed name hash
+	 * @param hash The long hash of the metric name
+	 * @param fqn The FQN to compare against the indexed entry, or null to accept the first entry with a matching hash
+	 * @return the chronicle index or -1 if the name is not indexed
+	 */
+	public long get(long hash, String fqn) {
+		Table t = table;
+		long key = nameKey(hash);
+		Excerpt<IndexedChronicle> ex = null;
+		for(int i = spread(key, t.mask), n = 0; n < t.capacity; i = (i+1) & t.mask, n++) {
+			int off = t.nameOffset(i);
+			long k = t.buff.getLong(off);
+			if(k==0) return -1;
+			if(k!=key) continue;
+			long index = t.buff.getLong(off+8)-1;
+			// Not yet visible to this thread. The caller retries under the catalog's creation lock.
+			if(index<0) return -1;
+			if(fqn==null) return index;
+			if(ex==null) ex = chronicle.createExcerpt();
+			if(ex.index(index) && fqn.equals(new ChronicleICEMetric(ex, index).getFQN())) return index;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Indexes a new metric
+	 * @param hash The long hash of the metric name
+	 * @param index The chronicle index of the metric
+	 */
+	public synchronized void put(long hash, long index) {
+		Table t = table;
+		if(t.buff.getInt(SIZE_OFF)+1 >= t.capacity * LOAD_FACTOR) t = grow();
+		putName(t, nameKey(hash), index, 0L);
+		t.buff.putInt(SIZE_OFF, t.buff.getInt(SIZE_OFF)+1);
+	}
+	
+	/**
+	 * Writes a name slot, the key last so that unsynchronized readers never see a keyed slot with a stale index
+	 * @param t The table to write to
+	 * @param key The slot key
+	 * @param index The chronicle index
+	 * @param epoch The token epoch
+	 */
+	protected static void putName(Table t, long key, long index, long epoch) {
+		for(int i = spread(key, t.mask); ; i = (i+1) & t.mask) {
+			int off = t.nameOffset(i);
+			if(t.buff.getLong(off)==0) {
+				t.buff.putLong(off+8, index+1);
+				t.buff.putLong(off+16, epoch);
+				t.buff.putLong(off, key);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Writes a token slot, replacing any existing slot for the same token
+	 * @param t The table to write to
+	 * @param token The token
+	 * @param index The chronicle index
+	 * @return true if a new slot was used, false if an existing one was replaced
+	 */
+	protected static boolean putToken(Table t, long token, long index) {
+		long key = token+1;
+		for(int i = spread(key, t.mask); ; i = (i+1) & t.mask) {
+			int off = t.tokenOffset(i);
+			long k = t.buff.getLong(off);
+			if(k==0 || k==key) {
+				t.buff.putLong(off+8, index+1);
+				t.buff.putLong(off, key);
+				return k==0;
+			}
+		}
+	}
+	
+	/**
+	 * Records a token issued by the server for an indexed metric. The token itself is written to the chronicle by the caller.
+	 * @param hash The long hash of the metric name
+	 * @param index The chronicle index of the metric
+	 * @param token The issued token
+	 */
+	public synchronized void tokenAssigned(long hash, long index, long token) {
+		Table t = table;
+		if(t.buff.getInt(TOKENS_OFF)+1 >= t.capacity * LOAD_FACTOR) t = grow();
+		long key = nameKey(hash);
+		long epoch = liveEpoch!=0 ? liveEpoch : sessionEpoch;
+		for(int i = spread(key, t.mask), n = 0; n < t.capacity; i = (i+1) & t.mask, n++) {
+			int off = t.nameOffset(i);
+			long k = t.buff.getLong(off);
+			if(k==0) break;
+			if(k==key && t.buff.getLong(off+8)==index+1) {
+				t.buff.putLong(off+16, epoch);
+				break;
+			}
+		}
+		if(token>=0 && putToken(t, token, index)) {
+			t.buff.putInt(TOKENS_OFF, t.buff.getInt(TOKENS_OFF)+1);
+		}
+	}
+	
+	/**
+	 * Returns the chronicle index of the metric currently holding the passed token
+	 * @param token The token
+	 * @return the chronicle index or -1 if no metric holds the token
+	 */
+	public long getByToken(long token) {
+		if(token<0 || !tokensValid) return -1;
+		Table t = table;
+		long key = token+1;
+		for(int i = spread(key, t.mask), n = 0; n < t.capacity; i = (i+1) & t.mask, n++) {
+			int off = t.tokenOffset(i);
+			long k = t.buff.getLong(off);
+			if(k==0) return -1;
+			if(k!=key) continue;
+			long index = t.buff.getLong(off+8)-1;
+			if(index<0) return -1;
+			// The metric may since have been re-tokenized
+			Excerpt<IndexedChronicle> ex = chronicle.createExcerpt();
+			return ex.index(index) && ex.readLong(0)==token ? index : -1;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Revalidates the tokens in the chronicle against the server's catalog epoch in one pass over the index.
+	 * Tokens issued under the passed epoch, or issued in this process before any epoch was known, are kept. All others are cleared.
+	 * @param serverEpoch The server catalog epoch, or 0 if the server did not advertise one
+	 * @return the number of tokens kept
+	 */
+	public int revalidate(long serverEpoch) {
+		return revalidate(serverEpoch, true);
+	}
+	
+	/**
+	 * Clears every token in the chronicle
+	 */
+	public void resetTokens() {
+		revalidate(0L, false);
+	}
+	
+	/**
+	 * Revalidates the tokens in the chronicle
+	 * @param serverEpoch The server catalog epoch, or 0 if unknown
+	 * @param keepSession true to keep tokens issued in this process before the epoch was known
+	 * @return the number of tokens kept
+	 */
+	protected synchronized int revalidate(long serverEpoch, boolean keepSession) {
+		Table t = table;
+		Excerpt<IndexedChronicle> ex = chronicle.createExcerpt();
+		int tokenBase = t.tokenOffset(0);
+		for(int i = 0; i < t.capacity; i++) {
+			t.buff.putLong(tokenBase + (i*TOKEN_SLOT_SIZE), 0L);
+		}
+		int kept = 0;
+		for(int i = 0; i < t.capacity; i++) {
+			int off = t.nameOffset(i);
+			if(t.buff.getLong(off)==0) continue;
+			long index = t.buff.getLong(off+8)-1;
+			long epoch = t.buff.getLong(off+16);
+			if(index<0 || !ex.index(index)) continue;
+			// The token is the first long of every chronicle entry
+			long token = ex.readLong(0);
+			if(token==-1L) {
+				if(epoch!=0) t.buff.putLong(off+16, 0L);
+				continue;
+			}
+			boolean keep = (serverEpoch!=0 && epoch==serverEpoch) || (keepSession && epoch==sessionEpoch);
+			if(keep) {
+				if(serverEpoch!=0) t.buff.putLong(off+16, serverEpoch);
+				putToken(t, token, index);
+				kept++;
+			} else {
+				ex.writeLong(0, -1L);
+				t.buff.putLong(off+16, 0L);
+			}
+		}
+		t.buff.putInt(TOKENS_OFF, kept);
+		if(serverEpoch!=0) liveEpoch = serverEpoch;
+		tokensValid = true;
+		return kept;
+	}
+	
+	/**
+	 * Doubles the size of the table, copying it into a new file which then replaces the current one
+	 * @return the new table
+	 */
+	protected Table grow() {
+		Table old = table;
+		if(old.capacity >= MAX_CAPACITY) {
+			throw new IllegalStateException("Metric name index [" + file + "] is at its maximum capacity [" + MAX_CAPACITY + "]", new Throwable());
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		tmp.delete();
+		try {
+			Table t = Table.create(tmp, old.capacity << 1);
+			for(int i = 0; i < old.capacity; i++) {
+				int off = old.nameOffset(i);
+				long key = old.buff.getLong(off);
+				if(key!=0) putName(t, key, old.buff.getLong(off+8)-1, old.buff.getLong(off+16));
+				off = old.tokenOffset(i);
+				key = old.buff.getLong(off);
+				if(key!=0) putToken(t, key-1, old.buff.getLong(off+8)-1);
+			}
+			t.buff.putInt(SIZE_OFF, old.buff.getInt(SIZE_OFF));
+			t.buff.putInt(TOKENS_OFF, old.buff.getInt(TOKENS_OFF));
+			t.buff.force();
+			if(!tmp.renameTo(file)) {
+				t.close();
+				throw new IOException("Failed to rename [" + tmp + "] to [" + file + "]");
+			}
+			// The old mapping stays readable for threads still probing it
+			old.close();
+			table = t;
+			return t;
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to grow metric name index [" + file + "]", e);
+		}
+	}
+	
+	/**
+	 * Returns the number of indexed names
+	 * @return the number of indexed names
+	 */
+	public int size() {
+		return table.buff.getInt(SIZE_OFF);
+	}
+	
+	/**
+	 * Returns the number of indexed tokens
+	 * @return the number of indexed tokens
+	 */
+	public int getTokenCount() {
+		return table.buff.getInt(TOKENS_OFF);
+	}
+	
+	/**
+	 * Returns the number of name slots
+	 * @return the number of name slots
+	 */
+	public int getCapacity() {
+		return table.capacity;
+	}
+	
+	/**
+	 * Indicates if the tokens in the chronicle have been validated against the server
+	 * @return true if the tokens can be used, false if they are still pending revalidation
+	 */
+	public boolean isTokensValid() {
+		return tokensValid;
+	}
+	
+	/**
+	 * Indicates if the index was rebuilt from the chronicle when it was opened
+	 * @return true if the index was rebuilt
+	 */
+	public boolean isRebuilt() {
+		return rebuilt;
+	}
+	
+	/**
+	 * Returns the server catalog epoch tokens are being issued under
+	 * @return the server catalog epoch or 0 if not known
+	 */
+	public long getLiveEpoch() {
+		return liveEpoch;
+	}
+	
+	/**
+	 * Removes all entries from the index
+	 */
+	public synchronized void clear() {
+		Table t = table;
+		for(int off = HEADER_SIZE, end = t.tokenOffset(t.capacity); off < end; off += 8) {
+			t.buff.putLong(off, 0L);
+		}
+		t.buff.putInt(SIZE_OFF, 0);
+		t.buff.putInt(TOKENS_OFF, 0);
+		tokensValid = true;
+	}
+	
+	/**
+	 * Flushes the index, marks it as cleanly closed and releases the file
+	 */
+	public synchronized void close() {
+		Table t = table;
+		t.buff.putInt(CLEAN_OFF, 1);
+		t.buff.force();
+		t.close();
+	}
+	
+	/**
+	 * <p>Title: Table</p>
+	 * <p>Description: A mapped index file</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>org.helios.apmrouter.metric.catalog.direct.chronicle.MappedNameIndex.Table</code></p>
+	 */
+	protected static class Table {
+		/** The file */
+		final RandomAccessFile raf;
+		/** The mapped file */
+		final MappedByteBuffer buff;
+		/** The number of slots */
+		final int capacity;
+		/** The slot mask */
+		final int mask;
+		
+		/**
+		 * Creates a new Table
+		 * @param raf The file
+		 * @param capacity The number of slots
+		 * @throws IOException thrown on any IO error
+		 */
+		private Table(RandomAccessFile raf, int capacity) throws IOException {
+			this.raf = raf;
+			this.capacity = capacity;
+			mask = capacity-1;
+			buff = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)capacity * (NAME_SLOT_SIZE + TOKEN_SLOT_SIZE));
+			buff.order(ByteOrder.nativeOrder());
+		}
+		
+		/**
+		 * Creates a new empty index file
+		 * @param f The file to create
+		 * @param capacity The number of slots
+		 * @return the table
+		 * @throws IOException thrown on any IO error
+		 */
+		static Table create(File f, int capacity) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			raf.setLength(HEADER_SIZE + (long)capacity * (NAME_SLOT_SIZE + TOKEN_SLOT_SIZE));
+			Table t = new Table(raf, capacity);
+			t.buff.putInt(MAGIC_OFF, MAGIC);
+			t.buff.putInt(VERSION_OFF, VERSION);
+			t.buff.putInt(CAPACITY_OFF, capacity);
+			return t;
+		}
+		
+		/**
+		 * Opens an existing index file
+		 * @param f The file to open
+		 * @return the table or null if the file does not exist, is not a valid index or was not closed cleanly
+		 * @throws IOException thrown on any IO error
+		 */
+		static Table open(File f) throws IOException {
+			if(!f.exists() || f.length() < HEADER_SIZE) return null;
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			MappedByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			header.order(ByteOrder.nativeOrder());
+			int capacity = header.getInt(CAPACITY_OFF);
+			if(header.getInt(MAGIC_OFF)!=MAGIC || header.getInt(VERSION_OFF)!=VERSION || header.getInt(CLEAN_OFF)!=1
+					|| Integer.bitCount(capacity)!=1 || capacity > MAX_CAPACITY 
+					|| f.length()!=HEADER_SIZE + (long)capacity * (NAME_SLOT_SIZE + TOKEN_SLOT_SIZE)) {
+				raf.close();
+				return null;
+			}
+			return new Table(raf, capacity);
+		}
+		
+		/**
+		 * Returns the offset of a name slot
+		 * @param slot The slot number
+		 * @return the offset
+		 */
+		final int nameOffset(int slot) {
+			return HEADER_SIZE + slot * NAME_SLOT_SIZE;
+		}
+		
+		/**
+		 * Returns the offset of a token slot
+		 * @param slot The slot number
+		 * @return the offset
+		 */
+		final int tokenOffset(int slot) {
+			return HEADER_SIZE + capacity * NAME_SLOT_SIZE + slot * TOKEN_SLOT_SIZE;
+		}
+		
+		/**
+		 * Releases the file. The mapping remains valid until it is collected.
+		 */
+		void close() {
+			try { raf.close(); } catch (Exception e) {/* No Op */}
+		}
+	}
+}
@@ -24,20 +24,25 @@
  */
 package org.helios.apmrouter.monitor.jvm;
 
-import org.helios.apmrouter.jmx.JMXHelper;
+import org.helios.apmrouter.jmx.ConfigurationHelper;
 import org.helios.apmrouter.monitor.AbstractMonitor;
 import org.helios.apmrouter.util.SystemClock;
 
-import javax.management.Attribute;
-import javax.management.ObjectName;
 import java.lang.Thread.State;
 import java.lang.management.*;
+import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <p>Title: JVMMonitor</p>
  * <p>Description: A monitor implementation to collect and trace localStats on the JVM's health and status</p> 
+ * <p>The thread state scan and the deadlock detector are the expensive probes on JVMs with many threads, so each runs on its own
+ * schedule of every <i>n</i> collection sweeps. The monitor measures the cost of each collection and when it exceeds the configured budget, 
+ * doubles the interval of the expensive probes that ran, halving it again once collections are back under half the budget.
+ * Thread states are counted from the live {@link Thread} instances rather than from {@link ThreadInfo} snapshots, 
+ * and the NIO buffer pool beans are resolved once rather than queried through the MBeanServer on each collection.</p>
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>org.helios.apmrouter.monitor.jvm.JVMMonitor</code></p>
@@ -61,6 +66,9 @@ public class JVMMonitor extends AbstractMonitor {
 	/** The JVM's GCMXBeans */
 	protected final Set<GarbageCollectorMXBean> gcMXBeans = new HashSet<GarbageCollectorMXBean>(ManagementFactory.getGarbageCollectorMXBeans());
 	
+	/** The metric name tags of the GC and memory pool MXBeans, built once rather than on each collection */
+	protected final Map<Object, String[]> beanTags = new IdentityHashMap<Object, String[]>();
+	
 	/** The number of processors */
 	public final int PROCESSOR_COUNT = osMXBean.getAvailableProcessors();
 	
@@ -84,17 +92,104 @@ public class JVMMonitor extends AbstractMonitor {
 	protected boolean initialRuntimeCollected = false;
 	/** Indicates if this is Java 7*/
 	protected final boolean isJava7;
-	/** The JMX ObjectName pattern for the NIO MXBeans */
-	protected final ObjectName NIO_MXBEAN_PATTERN = JMXHelper.objectName("java.nio:type=BufferPool,name=*");
-	/** The JMX ObjectNames for the NIO MXBeans */
-	protected final Map<String, ObjectName> nioObjectNames = new HashMap<String, ObjectName>();
-	/** Convenience map for the NIO MXBean attribute unmapping */
-	protected final Map<String, Long> nioAttrValues = new HashMap<String, Long>(3);
-
-	/** The attribute names we want to retrieve for the NIO mxbeans */
-	protected static final String[] NIO_ATTR_NAMES = new String[]{"Count", "MemoryUsed", "TotalCapacity"};
+	/** The resolved NIO BufferPoolMXBeans */
+	protected final List<Object> nioPools = new ArrayList<Object>();
+	/** The type tags of the resolved NIO BufferPoolMXBeans */
+	protected final List<String> nioPoolTags = new ArrayList<String>();
+	/** The NIO BufferPoolMXBean count, memory used and total capacity accessors */
+	protected final Method[] nioAccessors = new Method[3];
+	/** The PID of this JVM */
+	protected final int pid;
 	
-
+	/** The thread state scan probe */
+	protected final Probe threadStateProbe = new Probe("ThreadStates", 1);
+	/** The deadlock detection probe */
+	protected final Probe deadlockProbe = new Probe("Deadlocks", 4);
+	/** The collection cost budget in ns. */
+	protected long budgetNs = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BUDGET);
+	/** The maximum multiple of its base interval that a probe backs off to */
+	protected int maxBackoff = DEFAULT_MAX_BACKOFF;
+	/** The cost in ns. of the last collection */
+	protected long lastCollectCostNs = 0;
+	/** The root thread group */
+	protected final ThreadGroup rootThreadGroup;
+	/** The reusable buffer of live threads for the thread state scan */
+	protected Thread[] threadBuffer = new Thread[256];
+	/** The thread state counts from the last thread state scan */
+	protected final int[] threadStateCounts = new int[Thread.State.values().length];
+	/** The deadlocked thread count from the last deadlock detection */
+	protected int deadlockedCount = 0;
+	
+	/** The property name for configuring the collection cost budget in ms. */
+	public static final String BUDGET_PROP = "monitor.jvm.budget";
+	/** The default collection cost budget in ms. */
+	public static final long DEFAULT_BUDGET = 20;
+	/** The property name for configuring the base number of collection sweeps between thread state scans */
+	public static final String THREAD_STATE_INTERVAL_PROP = "monitor.jvm.threadstates.interval";
+	/** The default base number of collection sweeps between thread state scans */
+	public static final int DEFAULT_THREAD_STATE_INTERVAL = 1;
+	/** The property name for configuring the base number of collection sweeps between deadlock detections */
+	public static final String DEADLOCK_INTERVAL_PROP = "monitor.jvm.deadlock.interval";
+	/** The default base number of collection sweeps between deadlock detections */
+	public static final int DEFAULT_DEADLOCK_INTERVAL = 4;
+	/** The property name for configuring the maximum multiple of its base interval that a probe backs off to */
+	public static final String MAX_BACKOFF_PROP = "monitor.jvm.maxbackoff";
+	/** The default maximum multiple of its base interval that a probe backs off to */
+	public static final int DEFAULT_MAX_BACKOFF = 16;
+	/** The thread states */
+	protected static final Thread.State[] THREAD_STATES = Thread.State.values();
+	
+	/**
+	 * <p>Title: Probe</p>
+	 * <p>Description: The adaptive schedule of an expensive collection probe</p> 
+	 */
+	protected static class Probe {
+		/** The probe name */
+		protected final String name;
+		/** The base number of collection sweeps between runs */
+		protected int interval;
+		/** The current multiple of the base interval */
+		protected int backoff = 1;
+		/** The sweep of the last run */
+		protected long lastSweep = Long.MIN_VALUE;
+		/** Indicates if the probe ran in the current collection */
+		protected boolean ran = false;
+		
+		/**
+		 * Creates a new Probe
+		 * @param name The probe name
+		 * @param interval The base number of collection sweeps between runs
+		 */
+		protected Probe(String name, int interval) {
+			this.name = name;
+			this.interval = interval;
+		}
+		
+		/**
+		 * Determines if the probe is due to run in the passed sweep, and if so, marks it as having run
+		 * @param sweep The collection sweep
+		 * @return true if the probe should run
+		 */
+		protected boolean due(long sweep) {
+			ran = lastSweep==Long.MIN_VALUE || sweep - lastSweep >= (long)interval * backoff;
+			if(ran) lastSweep = sweep;
+			return ran;
+		}
+		
+		/**
+		 * Adjusts the probe's backoff after a collection
+		 * @param costNs The cost of the collection in ns.
+		 * @param budgetNs The collection cost budget in ns.
+		 * @param maxBackoff The maximum backoff
+		 */
+		protected void adjust(long costNs, long budgetNs, int maxBackoff) {
+			if(costNs > budgetNs) {
+				if(ran && backoff < maxBackoff) backoff = Math.min(backoff*2, maxBackoff);
+			} else if(costNs < budgetNs/2 && backoff > 1) {
+				backoff = backoff/2;
+			}
+		}
+	}
 	
 	/**
 	 * Creates a new JVMMonitor
@@ -102,12 +197,46 @@ public class JVMMonitor extends AbstractMonitor {
 	public JVMMonitor() {
 		boolean tmp = false;
 		try {
-			Class.forName("java.lang.management.BufferPoolMXBean");
+			Class<?> poolClass = Class.forName("java.lang.management.BufferPoolMXBean");
+			Method getPools = ManagementFactory.class.getMethod("getPlatformMXBeans", Class.class);
+			Method getName = poolClass.getMethod("getName");
+			nioAccessors[0] = poolClass.getMethod("getCount");
+			nioAccessors[1] = poolClass.getMethod("getMemoryUsed");
+			nioAccessors[2] = poolClass.getMethod("getTotalCapacity");
+			for(Object pool: (List<?>)getPools.invoke(null, poolClass)) {
+				nioPools.add(pool);
+				nioPoolTags.add("type=" + getName.invoke(pool));
+			}
 			tmp = true;
 		} catch (Exception e) {
 			tmp = false;			
 		}
 		isJava7 = tmp;
+		for(GarbageCollectorMXBean gc: gcMXBeans) {
+			beanTags.put(gc, new String[]{"collector=" + gc.getName().replace(" ", "")});
+		}
+		for(MemoryPoolMXBean pool: memoryPoolMXBeans) {
+			beanTags.put(pool, new String[]{"type=" + pool.getType().name(), "pool=" + pool.getName().replace(" ", "")});
+		}
+		pid = Integer.parseInt(runtimeMXBean.getName().split("@")[0]);
+		ThreadGroup group = Thread.currentThread().getThreadGroup();
+		while(group.getParent()!=null) {
+			group = group.getParent();
+		}
+		rootThreadGroup = group;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.AbstractMonitor#setProperties(java.util.Properties)
+	 */
+	@Override
+	public void setProperties(Properties p) {
+		super.setProperties(p);
+		budgetNs = TimeUnit.MILLISECONDS.toNanos(ConfigurationHelper.getLongSystemThenEnvProperty(BUDGET_PROP, DEFAULT_BUDGET, p));
+		threadStateProbe.interval = Math.max(1, ConfigurationHelper.getIntSystemThenEnvProperty(THREAD_STATE_INTERVAL_PROP, DEFAULT_THREAD_STATE_INTERVAL, p));
+		deadlockProbe.interval = Math.max(1, ConfigurationHelper.getIntSystemThenEnvProperty(DEADLOCK_INTERVAL_PROP, DEFAULT_DEADLOCK_INTERVAL, p));
+		maxBackoff = Math.max(1, ConfigurationHelper.getIntSystemThenEnvProperty(MAX_BACKOFF_PROP, DEFAULT_MAX_BACKOFF, p));
 	}
 	
 
@@ -117,6 +246,7 @@ public class JVMMonitor extends AbstractMonitor {
 	 */
 	@Override
 	protected void doCollect(long collectionSweep) {
+		long start = System.nanoTime();
 		resetLoops++;
 		if(resetLoops==resetLoopCount) {
 			resetLoop = true;
@@ -125,9 +255,9 @@ public class JVMMonitor extends AbstractMonitor {
 			resetLoop = false;
 		}
 		lastCollectTime = SystemClock.time();
-		tracer.traceCounter(Integer.parseInt(runtimeMXBean.getName().split("@")[0]), "PID");
+		tracer.traceCounter(pid, "PID");
 		try { collectGc(); } catch (Exception e) {}
-		try { collectThreads();  } catch (Exception e) {}
+		try { collectThreads(collectionSweep);  } catch (Exception e) {}
 		try { collectCompilation(); } catch (Exception e) {}
 		if(maxPoolSize.size()<1) {
 			try { collectInitialMemory(); } catch (Exception e) {}
@@ -142,35 +272,28 @@ public class JVMMonitor extends AbstractMonitor {
 		if(isJava7) {
 			try { collectNioBuffers(); } catch (Exception e) {}
 		}
+		lastCollectCostNs = System.nanoTime() - start;
+		threadStateProbe.adjust(lastCollectCostNs, budgetNs, maxBackoff);
+		deadlockProbe.adjust(lastCollectCostNs, budgetNs, maxBackoff);
+		tracer.traceGauge(TimeUnit.NANOSECONDS.toMicros(lastCollectCostNs), "CollectCostUs", "platform=JVM", "category=Monitor");
+		tracer.traceGauge(threadStateProbe.backoff, "ThreadStateBackoff", "platform=JVM", "category=Monitor");
+		tracer.traceGauge(deadlockProbe.backoff, "DeadlockBackoff", "platform=JVM", "category=Monitor");
 	}
 	
+	/**
+	 * Collects NIO buffer pool data from the resolved BufferPoolMXBeans
+	 */
 	protected void collectNioBuffers() {
-		if(nioObjectNames.isEmpty()) {
-			for(ObjectName on: ManagementFactory.getPlatformMBeanServer().queryNames(NIO_MXBEAN_PATTERN, null)) {
-				nioObjectNames.put(on.getKeyProperty("name"), on);
-			}
-		}
-		for(Map.Entry<String, ObjectName> entry: nioObjectNames.entrySet()) {
-			nioAttrValues.clear();
+		for(int i = 0; i < nioPools.size(); i++) {
+			Object pool = nioPools.get(i);
+			String type = nioPoolTags.get(i);
 			try {
-				for(Attribute attr: ManagementFactory.getPlatformMBeanServer().getAttributes(entry.getValue(), NIO_ATTR_NAMES).asList()) {
-					nioAttrValues.put(attr.getName(), (Long)attr.getValue());
-				}
-				Long value = null;
-				
-				if((value=nioAttrValues.get("Count")) != null) {
-					tracer.traceGauge(value, "Count", "platform=JVM", "category=NIOBufferPools", "type=" + entry.getKey());
-				}
-				if((value=nioAttrValues.get("MemoryUsed")) != null) {
-					tracer.traceGauge(value, "MemoryUsed", "platform=JVM", "category=NIOBufferPools", "type=" + entry.getKey());
-				}
-				if((value=nioAttrValues.get("TotalCapacity")) != null) {
-					tracer.traceGauge(value, "TotalCapacity", "platform=JVM", "category=NIOBufferPools", "type=" + entry.getKey());
-				}				
+				tracer.traceGauge((Long)nioAccessors[0].invoke(pool), "Count", "platform=JVM", "category=NIOBufferPools", type);
+				tracer.traceGauge((Long)nioAccessors[1].invoke(pool), "MemoryUsed", "platform=JVM", "category=NIOBufferPools", type);
+				tracer.traceGauge((Long)nioAccessors[2].invoke(pool), "TotalCapacity", "platform=JVM", "category=NIOBufferPools", type);
 			} catch (Exception e) {
 			}
 		}
-		
 	}
 	
 	/**
@@ -178,16 +301,17 @@ public class JVMMonitor extends AbstractMonitor {
 	 */
 	protected void collectGc() {
 		for(GarbageCollectorMXBean gc: gcMXBeans) {
+			String[] tags = beanTags.get(gc);
 			long currentTime = SystemClock.time();
 			String name = gc.getName();
-			tracer.traceDeltaGauge(gc.getCollectionCount(), "CollectionCount", "platform=JVM", "category=GarbageCollection", "collector=" + name.replace(" ", ""));
+			tracer.traceDeltaGauge(gc.getCollectionCount(), "CollectionCount", "platform=JVM", "category=GarbageCollection", tags[0]);
 			long time = gc.getCollectionTime();
-			tracer.traceDeltaGauge(time, "CollectionTime", "platform=JVM", "category=GarbageCollection", "collector=" + name.replace(" ", ""));
+			tracer.traceDeltaGauge(time, "CollectionTime", "platform=JVM", "category=GarbageCollection", tags[0]);
 			Long prior = lastGCTime.put(name, time);
 			if(prior!=null) {
 				long gcTime = time-prior;
 				long elapsedTime = lastGCCollectTime.put(name, currentTime)*PROCESSOR_COUNT;
-				tracer.traceGauge(percent(elapsedTime, gcTime), "PercentTimeInCollect", "platform=JVM", "category=GarbageCollection", "collector=" + name.replace(" ", ""));
+				tracer.traceGauge(percent(elapsedTime, gcTime), "PercentTimeInCollect", "platform=JVM", "category=GarbageCollection", tags[0]);
 			} else {
 				lastGCCollectTime.put(name, currentTime);
 			}
@@ -195,9 +319,11 @@ public class JVMMonitor extends AbstractMonitor {
 	}
 	
 	/**
-	 * Collects threading localStats
+	 * Collects threading localStats. The thread state scan and deadlock detection only run when their probes are due,
+	 * and the results of their last run are traced otherwise.
+	 * @param collectionSweep The collection sweep
 	 */
-	protected void collectThreads() {
+	protected void collectThreads(long collectionSweep) {
 		int tc = threadMXBean.getThreadCount();
 		int dtc = threadMXBean.getDaemonThreadCount();
 		int ndtc = tc-dtc;
@@ -205,13 +331,23 @@ public class JVMMonitor extends AbstractMonitor {
 		tracer.traceGauge(dtc, "DaemonThreadCount", "platform=JVM", "category=Threads");
 		tracer.traceGauge(ndtc, "NonDaemonThreadCount", "platform=JVM", "category=Threads");
 		tracer.traceGauge(threadMXBean.getPeakThreadCount(), "PeakThreadCount", "platform=JVM", "category=Threads");
-		for(Map.Entry<Thread.State, AtomicInteger> entry: getThreadStates().entrySet()) {
-			tracer.traceGauge(entry.getValue().intValue(), entry.getKey().name(), "platform=JVM", "category=Threads", "type=State");
+		if(threadStateProbe.due(collectionSweep)) {
+			countThreadStates(threadStateCounts);
+		}
+		for(Thread.State state: THREAD_STATES) {
+			tracer.traceGauge(threadStateCounts[state.ordinal()], state.name(), "platform=JVM", "category=Threads", "type=State");
 		}
 		if(resetLoop) threadMXBean.resetPeakThreadCount();
+		if(!deadlockProbe.due(collectionSweep)) {
+			tracer.traceGauge(deadlockedCount, "DeadlockedThreadCount", "platform=JVM", "category=Threads");
+			return;
+		}
 		long[] deadlocked = threadMXBean.findMonitorDeadlockedThreads();
-		tracer.traceGauge(deadlocked==null ? 0 : deadlocked.length, "DeadlockedThreadCount", "platform=JVM", "category=Threads");
+		deadlockedCount = deadlocked==null ? 0 : deadlocked.length;
+		tracer.traceGauge(deadlockedCount, "DeadlockedThreadCount", "platform=JVM", "category=Threads");
 		if(deadlocked != null && deadlocked.length>0) {
+			// keep watching closely while there is a deadlock
+			deadlockProbe.backoff = 1;
 			StringBuilder dlockInfo = new StringBuilder();
 			ThreadInfo[] tis = threadMXBean.getThreadInfo(deadlocked, maxStackDepth);
 			for(ThreadInfo ti : tis) {
@@ -233,16 +369,72 @@ public class JVMMonitor extends AbstractMonitor {
 	 * @return an EnumMap with Thread states as the key and the number of threads in that state as the value
 	 */
 	public EnumMap<Thread.State, AtomicInteger> getThreadStates() {
+		int[] counts = new int[THREAD_STATES.length];
+		countThreadStates(counts);
 		EnumMap<Thread.State, AtomicInteger> map = new EnumMap<State, AtomicInteger>(Thread.State.class);
-		for(Thread.State ts: Thread.State.values()) {
-			map.put(ts, new AtomicInteger(0));
-		}
-		for(ThreadInfo ti : threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds())) {
-			map.get(ti.getThreadState()).incrementAndGet();
+		for(Thread.State ts: THREAD_STATES) {
+			map.put(ts, new AtomicInteger(counts[ts.ordinal()]));
 		}
 		return map;
 	}
 	
+	/**
+	 * Counts the number of live threads in each thread state by reading the state of each thread in the root thread group,
+	 * which avoids the VM operation and the {@link ThreadInfo} allocation of {@link ThreadMXBean#getThreadInfo(long[])}.
+	 * @param counts The array to write the counts into, indexed by thread state ordinal
+	 */
+	protected synchronized void countThreadStates(int[] counts) {
+		int count;
+		while((count = rootThreadGroup.enumerate(threadBuffer, true)) >= threadBuffer.length) {
+			threadBuffer = new Thread[threadBuffer.length*2];
+		}
+		Arrays.fill(counts, 0);
+		for(int i = 0; i < count; i++) {
+			counts[threadBuffer[i].getState().ordinal()]++;
+			threadBuffer[i] = null;
+		}
+	}
+	
+	/**
+	 * Returns the cost of the last collection in microseconds
+	 * @return the cost of the last collection in microseconds
+	 */
+	public long getLastCollectCostUs() {
+		return TimeUnit.NANOSECONDS.toMicros(lastCollectCostNs);
+	}
+	
+	/**
+	 * Returns the collection cost budget in ms.
+	 * @return the collection cost budget in ms.
+	 */
+	public long getBudget() {
+		return TimeUnit.NANOSECONDS.toMillis(budgetNs);
+	}
+	
+	/**
+	 * Sets the collection cost budget in ms.
+	 * @param budget the collection cost budget in ms.
+	 */
+	public void setBudget(long budget) {
+		budgetNs = TimeUnit.MILLISECONDS.toNanos(budget);
+	}
+	
+	/**
+	 * Returns the number of collection sweeps between thread state scans, including the current backoff
+	 * @return the number of collection sweeps between thread state scans
+	 */
+	public int getThreadStateInterval() {
+		return threadStateProbe.interval * threadStateProbe.backoff;
+	}
+	
+	/**
+	 * Returns the number of collection sweeps between deadlock detections, including the current backoff
+	 * @return the number of collection sweeps between deadlock detections
+	 */
+	public int getDeadlockInterval() {
+		return deadlockProbe.interval * deadlockProbe.backoff;
+	}
+	
 	
 	/**
 	 * Collects compilation time 
@@ -256,9 +448,10 @@ public class JVMMonitor extends AbstractMonitor {
 	 */
 	protected void collectInitialMemoryPools() {
 		for(MemoryPoolMXBean pool: memoryPoolMXBeans) {
+			String[] tags = beanTags.get(pool);
 			MemoryUsage usage = pool.getUsage();
-			tracer.traceGauge(usage.getInit(), "Initial", "platform=JVM", "category=MemoryPools", "type=" + pool.getType().name(), "pool=" + pool.getName().replace(" ", ""));
-			tracer.traceGauge(usage.getMax(), "Maximum", "platform=JVM", "category=MemoryPools", "type=" + pool.getType().name(), "pool=" + pool.getName().replace(" ", ""));
+			tracer.traceGauge(usage.getInit(), "Initial", "platform=JVM", "category=MemoryPools", tags[0], tags[1]);
+			tracer.traceGauge(usage.getMax(), "Maximum", "platform=JVM", "category=MemoryPools", tags[0], tags[1]);
 			maxPoolSize.put(pool.getName(), usage.getMax());
 		}
 	}
@@ -268,11 +461,12 @@ public class JVMMonitor extends AbstractMonitor {
 	 */
 	protected void collectMemoryPools() {
 		for(MemoryPoolMXBean pool: memoryPoolMXBeans) {
+			String[] tags = beanTags.get(pool);
 			MemoryUsage usage = pool.getUsage();
-			tracer.traceGauge(usage.getCommitted(), "Committed", "platform=JVM", "category=MemoryPools", "type=" + pool.getType().name(), "pool=" + pool.getName().replace(" ", ""));
-			tracer.traceGauge(usage.getUsed(), "Used", "platform=JVM", "category=MemoryPools", "type=" + pool.getType().name(), "pool=" + pool.getName().replace(" ", ""));
-			tracer.traceGauge(percent(usage.getCommitted(), usage.getUsed()), "PercentUsed", "platform=JVM", "category=MemoryPools", "type=" + pool.getType().name(), "pool=" + pool.getName().replace(" ", ""));
-			tracer.traceGauge(percent(maxPoolSize.get(pool.getName()), usage.getUsed()), "PercentCapacity", "platform=JVM", "category=MemoryPools", "type=" + pool.getType().name(), "pool=" + pool.getName().replace(" ", ""));
+			tracer.traceGauge(usage.getCommitted(), "Committed", "platform=JVM", "category=MemoryPools", tags[0], tags[1]);
+			tracer.traceGauge(usage.getUsed(), "Used", "platform=JVM", "category=MemoryPools", tags[0], tags[1]);
+			tracer.traceGauge(percent(usage.getCommitted(), usage.getUsed()), "PercentUsed", "platform=JVM", "category=MemoryPools", tags[0], tags[1]);
+			tracer.traceGauge(percent(maxPoolSize.get(pool.getName()), usage.getUsed()), "PercentCapacity", "platform=JVM", "category=MemoryPools", tags[0], tags[1]);
 		}
 	}
 	
@@ -27,33 +27,58 @@ package org.helios.apmrouter.monitor.nativex;
 import org.helios.apmrouter.jmx.ConfigurationHelper;
 import org.helios.apmrouter.monitor.AbstractMonitor;
 import org.helios.apmrouter.nativex.APMSigar;
+import org.helios.apmrouter.util.SimpleLogger;
 import org.helios.apmrouter.util.SystemClock;
-import org.hyperic.sigar.*;
+import org.hyperic.sigar.FileSystem;
+import org.hyperic.sigar.FileSystemUsage;
+import org.hyperic.sigar.Sigar;
 
-import java.net.NetworkInterface;
+import java.io.File;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 
 /**
  * <p>Title: NativeMonitor</p>
- * <p>Description: Monitor implementation to monitor native OS resources and performance</p> 
+ * <p>Description: Monitor implementation to monitor native OS resources and performance. Statistics are read from a {@link NativeStatsSource}
+ * which is Sigar where the native library can be loaded and <b><code>/proc</code></b> otherwise. Network interface and cpu meta-data
+ * are cached and refreshed every {@link #NIC_RESCAN_PROP} sweeps, and values are only traced when they change beyond a tolerance
+ * or a heartbeat elapses (see {@link PublicationFilter}).</p> 
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>org.helios.apmrouter.monitor.nativex.NativeMonitor</code></p>
  */
 
 public class NativeMonitor extends AbstractMonitor {
-	/** The wrapped sigar instance */
-	protected final APMSigar hsigar = APMSigar.getInstance();
-	/** The native sigar instance */
-	protected final Sigar sigar = hsigar.getSigar();
+	/** The source of native statistics */
+	protected final NativeStatsSource source;
+	/** The wrapped sigar instance, null if sigar could not be loaded */
+	protected final APMSigar hsigar;
+	/** The native sigar instance, null if sigar could not be loaded */
+	protected final Sigar sigar;
 	/** A map maintaining the last usage and timestamp for each file system */
 	protected final Map<String, long[]> fileSystemState = new HashMap<String, long[]>();
+	/** The filter deciding which collected values are traced */
+	protected PublicationFilter filter = new PublicationFilter(
+			ConfigurationHelper.getLongSystemThenEnvProperty(TOLERANCE_PROP, DEFAULT_TOLERANCE), 
+			ConfigurationHelper.getLongSystemThenEnvProperty(HEARTBEAT_PROP, DEFAULT_HEARTBEAT));
+	
+	/** The cached names of the network interfaces that are up */
+	protected final List<String> nics = new ArrayList<String>();
+	/** The cached network interface configurations keyed by interface name */
+	protected final Map<String, Map<String, Object>> nicConfigs = new HashMap<String, Map<String, Object>>();
+	/** The cached network interface trace namespaces keyed by interface name */
+	protected final Map<String, String[]> nicNamespaces = new HashMap<String, String[]>();
+	/** The cached cpu meta-data */
+	protected final List<Map<String, Object>> cpuInfos = new ArrayList<Map<String, Object>>();
+	/** The cached per cpu trace namespaces */
+	protected final List<String[]> cpuNamespaces = new ArrayList<String[]>();
 	
 	/** The number of collection sweeps before the file systems are rescanned */
 	protected int fsRescanCollectionSweep = 10;
 	/** The number of collection sweeps before a file system time-to-full is computed */
 	protected int fsTimeToFullCollectionSweep = 10;
+	/** The number of collection sweeps before the network interfaces and cpu meta-data are refreshed */
+	protected int nicRescanCollectionSweep = DEFAULT_NIC_RESCAN;
 	/** Indicates if static os meta-data should be traced during rescans */
 	protected boolean traceMeta = false;
 	/** Indicates if detailed localStats for all cpus should be traced */
@@ -125,12 +150,101 @@ public class NativeMonitor extends AbstractMonitor {
 	public static final String CPU_ALL_PROP = "monitor.nativex.cpu.traceall";
 	/** The default configuration for detailed localStats on each cpu should be traced */
 	public static final boolean DEFAULT_CPU_ALL = false;
+	/** The property name for configuring the number of collection sweeps before the network interfaces and cpu meta-data are refreshed */
+	public static final String NIC_RESCAN_PROP = "monitor.nativex.nic.rescan";
+	/** The default count of collection sweeps before the network interfaces and cpu meta-data are refreshed */
+	public static final int DEFAULT_NIC_RESCAN = 20;
+	/** The property name for configuring the percentage change required to trace a value before the heartbeat elapses */
+	public static final String TOLERANCE_PROP = "monitor.nativex.tolerance";
+	/** The default percentage change required to trace a value before the heartbeat elapses */
+	public static final long DEFAULT_TOLERANCE = 0;
+	/** The property name for configuring the heartbeat in ms. after which unchanged values are traced anyways. Zero traces every value. */
+	public static final String HEARTBEAT_PROP = "monitor.nativex.heartbeat";
+	/** The default heartbeat in ms. after which unchanged values are traced anyways */
+	public static final long DEFAULT_HEARTBEAT = 60000;
+	
+	/** The system memory trace namespace */
+	private static final String[] SYSMEM_NS = {PLAT, SYSMEM_RESOURCE};
+	/** The swap trace namespace */
+	private static final String[] SWAP_NS = {PLAT, SWAP_RESOURCE};
+	/** The tcp trace namespace */
+	private static final String[] TCP_NS = {PLAT, TCP_RESOURCE};
+	/** The netstat trace namespace */
+	private static final String[] NET_NS = {PLAT, NET_RESOURCE};
+	/** The process stats trace namespace */
+	private static final String[] PS_NS = {PLAT, PS_RESOURCE};
+	/** The aggregate cpu trace namespace */
+	private static final String[] CPU_ALL_NS = {PLAT, CPU_RESOURCE, String.format(CPU_NAME, "all")};
+	/** The JVM process cpu trace namespace */
+	private static final String[] JVM_CPU_NS = {"platform=JVM", "category=cpu"};
+	/** The JVM process memory trace namespace */
+	private static final String[] JVM_MEM_NS = {"platform=JVM", "category=processMemory"};
+	/** The JVM process file descriptor trace namespace */
+	private static final String[] JVM_FD_NS = {"platform=JVM", "category=fd"};
+	
+	/** The netstat metrics traced as delta gauges */
+	private static final String[] NET_DELTAS = {"Inbound", "Outbound"};
+	/** The netstat metrics traced as counters */
+	private static final String[] NET_COUNTERS = {"TcpBound", "TcpClose", "TcpCloseWait", "TcpClosing", "TcpEstablished", "TcpFinWait1", "TcpFinWait2", 
+		"TcpIdle", "TcpInbound", "TcpOutbound", "TcpLastAck", "TcpListen", "TcpSynRecv", "TcpSynSent", "TcpTimeWait"};
+	/** The tcp metrics traced as delta gauges */
+	private static final String[] TCP_DELTAS = {"Opens", "Fails", "Resets", "InErrors", "InSegs", "OutResets", "OutSegs", "PassiveOpens", "RetransSegs"};
+	/** The NIC metrics traced as delta gauges */
+	private static final String[] NIC_DELTAS = {"RXBytes", "TXBytes", "RXDropped", "TXDropped", "RXErrors", "TXErrors", "RXPackets", "TXPackets", 
+		"RXOverruns", "TXOverruns", "TXCollisions", "TxCarrier", "Speed"};
+	/** The process stats traced as gauges */
+	private static final String[] PS_GAUGES = {"Idle", "Running", "Sleeping", "Stopped", "Threads", "Total", "Zombie"};
+	/** The cpu percentages traced as gauges */
+	private static final String[] CPU_GAUGES = {"Combined", "Idle", "Irq", "Nice", "SoftIrq", "Stolen", "Sys", "User", "Wait"};
+	/** The system memory stats traced as counters, less the total which is only traced on rescans */
+	private static final String[] SYSMEM_COUNTERS = {"ActualFree", "ActualUsed", "Free", "Used", "FreePercent", "UsedPercent"};
+	/** The swap stats traced as counters, less the total which is only traced on rescans */
+	private static final String[] SWAP_COUNTERS = {"Free", "Used", "FreePercent", "UsedPercent", "PageIn", "PageOut"};
+	/** The JVM process cpu stats traced as gauges */
+	private static final String[] JVM_CPU_GAUGES = {"System", "Total", "User", "PercentUsage"};
+	/** The JVM process memory stats traced as gauges */
+	private static final String[] JVM_MEM_GAUGES = {"MajorFaults", "MinorFaults", "PageFaults", "Resident", "Shared", "Size"};
+	
+	/** Trace type for gauges */
+	protected static final int GAUGE = 0;
+	/** Trace type for counters */
+	protected static final int COUNTER = 1;
+	/** Trace type for delta gauges */
+	protected static final int DELTA = 2;
 	
 	/**
-	 * Creates a new NativeMonitor
+	 * Creates a new NativeMonitor using Sigar, or <b><code>/proc</code></b> if the native library cannot be loaded
 	 */
 	public NativeMonitor() {
-		// TODO Auto-generated constructor stub
+		this(defaultSource());
+	}
+	
+	/**
+	 * Creates a new NativeMonitor
+	 * @param source The source of native statistics
+	 */
+	public NativeMonitor(NativeStatsSource source) {
+		if(source==null) throw new IllegalArgumentException("The passed stats source was null", new Throwable());
+		this.source = source;
+		hsigar = (source instanceof SigarStatsSource) ? ((SigarStatsSource)source).hsigar : null;
+		sigar = hsigar==null ? null : hsigar.getSigar();
+	}
+	
+	/**
+	 * Creates the default stats source, Sigar if the native library can be loaded, otherwise <b><code>/proc</code></b>
+	 * @return the default stats source
+	 */
+	protected static NativeStatsSource defaultSource() {
+		try {
+			return new SigarStatsSource(APMSigar.getInstance());
+		} catch (Throwable t) {
+			File procRoot = new File("/proc");
+			if(ProcStatsSource.isAvailable(procRoot)) {
+				SimpleLogger.warn("Failed to load native library. Native monitor falling back to [", procRoot, "]. File systems will not be monitored.");
+				return new ProcStatsSource(procRoot);
+			}
+			throw new RuntimeException("Failed to load native library and no proc file system is available", t);
+		}
 	}
 	
 	/**
@@ -142,8 +256,12 @@ public class NativeMonitor extends AbstractMonitor {
 		super.setProperties(p);
 		fsRescanCollectionSweep = ConfigurationHelper.getIntSystemThenEnvProperty(RESCAN_PROP, DEFAULT_RESCAN, p);
 		fsTimeToFullCollectionSweep = ConfigurationHelper.getIntSystemThenEnvProperty(TTF_PROP, DEFAULT_TTF, p);
+		nicRescanCollectionSweep = ConfigurationHelper.getIntSystemThenEnvProperty(NIC_RESCAN_PROP, DEFAULT_NIC_RESCAN, p);
 		traceMeta = ConfigurationHelper.getBooleanSystemThenEnvProperty(OS_META_PROP, DEFAULT_OS_META, p);
 		traceAllCpus = ConfigurationHelper.getBooleanSystemThenEnvProperty(CPU_ALL_PROP, DEFAULT_CPU_ALL, p);
+		filter = new PublicationFilter(
+				ConfigurationHelper.getLongSystemThenEnvProperty(TOLERANCE_PROP, DEFAULT_TOLERANCE, p), 
+				ConfigurationHelper.getLongSystemThenEnvProperty(HEARTBEAT_PROP, DEFAULT_HEARTBEAT, p));
 	}
 
 	/**
@@ -152,9 +270,14 @@ public class NativeMonitor extends AbstractMonitor {
 	 */
 	@Override
 	protected void doCollect(long collectionSweep) {
-		traceCpus();
-		traceFileSystemUsage();
-		traceNics();
+		boolean rescan = collectionSweep==0 || collectionSweep%nicRescanCollectionSweep==0;
+		if(rescan) {
+			refreshNics();
+			refreshCpuInfos();
+		}
+		traceCpus(rescan);
+		if(hsigar!=null) traceFileSystemUsage();
+		traceNics(rescan);
 		traceSystemMem();
 		traceSwap();
 		traceTCP();
@@ -163,172 +286,169 @@ public class NativeMonitor extends AbstractMonitor {
 		traceProcessStats();
 	}
 	
+	/**
+	 * Traces the passed value if the publication filter passes it
+	 * @param type The trace type ({@link #GAUGE}, {@link #COUNTER} or {@link #DELTA})
+	 * @param value The value to trace
+	 * @param name The metric name
+	 * @param namespace The metric namespace
+	 */
+	protected void trace(int type, long value, String name, CharSequence...namespace) {
+		if(!filter.publish(value, type==DELTA, name, namespace)) return;
+		switch(type) {
+			case GAUGE: tracer.traceGauge(value, name, namespace); break;
+			case COUNTER: tracer.traceCounter(value, name, namespace); break;
+			default: tracer.traceDeltaGauge(value, name, namespace);
+		}
+	}
+	
+	/**
+	 * Traces the named values from the passed map, skipping any the source did not supply
+	 * @param type The trace type ({@link #GAUGE}, {@link #COUNTER} or {@link #DELTA})
+	 * @param values The values keyed by metric name
+	 * @param names The names of the metrics to trace
+	 * @param namespace The metric namespace
+	 */
+	protected void trace(int type, Map<String, Long> values, String[] names, CharSequence...namespace) {
+		for(String name: names) {
+			Long value = values.get(name);
+			if(value!=null) trace(type, value, name, namespace);
+		}
+	}
+	
+	/**
+	 * Refreshes the cached network interfaces and their configurations, skipping any interface whose configuration cannot be read
+	 */
+	protected void refreshNics() {
+		nics.clear();
+		nicConfigs.clear();
+		for(String nic: source.getNetInterfaceList()) {
+			Map<String, Object> config = null;
+			try {
+				config = source.getNetInterfaceConfig(nic);
+			} catch (Exception ex) {
+				continue;
+			}
+			nics.add(nic);
+			nicConfigs.put(nic, config);
+			if(!nicNamespaces.containsKey(nic)) {
+				nicNamespaces.put(nic, new String[]{PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic)});
+			}
+		}
+		nicNamespaces.keySet().retainAll(nics);
+	}
+	
+	/**
+	 * Refreshes the cached cpu meta-data
+	 */
+	protected void refreshCpuInfos() {
+		cpuInfos.clear();
+		if(traceMeta && traceAllCpus) {
+			cpuInfos.addAll(source.getCpuInfoList());
+		}
+	}
+	
+	/**
+	 * Returns the cached per cpu namespace for the passed cpu index
+	 * @param cid The cpu index
+	 * @return the cpu namespace
+	 */
+	protected String[] cpuNamespace(int cid) {
+		while(cpuNamespaces.size()<=cid) {
+			cpuNamespaces.add(new String[]{PLAT, CPU_RESOURCE, String.format(CPU_NAME, cpuNamespaces.size())});
+		}
+		return cpuNamespaces.get(cid);
+	}
+	
 	/**
 	 * Traces the states of system processes
 	 */
 	protected void traceProcessStats() {
-		ProcStat ps = hsigar.getProcStat();
-		tracer.traceGauge(ps.getIdle(), "Idle", PLAT, PS_RESOURCE);
-		tracer.traceGauge(ps.getRunning(), "Running", PLAT, PS_RESOURCE);
-		tracer.traceGauge(ps.getSleeping(), "Sleeping", PLAT, PS_RESOURCE);
-		tracer.traceGauge(ps.getStopped(), "Stopped", PLAT, PS_RESOURCE);
-		tracer.traceGauge(ps.getThreads(), "Threads", PLAT, PS_RESOURCE);
-		tracer.traceGauge(ps.getTotal(), "Total", PLAT, PS_RESOURCE);
-		tracer.traceGauge(ps.getZombie(), "Zombie", PLAT, PS_RESOURCE);
+		trace(GAUGE, source.getProcessStats(), PS_GAUGES, PS_NS);
 	}
 	
 	/**
 	 * Traces network localStats
 	 */
 	protected void traceNetstat() {
-		NetStat net = hsigar.getNetStat();
-		tracer.traceDeltaGauge(net.getAllInboundTotal(), "Inbound", PLAT, NET_RESOURCE);
-		tracer.traceDeltaGauge(net.getAllOutboundTotal(), "Outbound", PLAT, NET_RESOURCE);
-		tracer.traceCounter(net.getTcpBound(), "TcpBound", PLAT, NET_RESOURCE);
-		tracer.traceCounter(net.getTcpClose(), "TcpClose", PLAT, NET_RESOURCE);
-		tracer.traceCounter(net.getTcpCloseWait(), "TcpCloseWait", PLAT, NET_RESOURCE);
-		tracer.traceCounter(net.getTcpClosing(), "TcpClosing", PLAT, NET_RESOURCE);
-		tracer.traceCounter(net.getTcpEstablished(), "TcpEstablished", PLAT, NET_RESOURCE);
-		tracer.traceCounter(net.getTcpFinWait1(), "TcpFinWait1", PLAT, NET_RESOURCE);
-		tracer.traceCounter(net.getTcpFinWait2(), "TcpFinWait2", PLAT, NET_RESOURCE);
-		tracer.traceCounter(net.getTcpIdle(), "TcpIdle", PLAT, NET_RESOURCE);
-		tracer.traceCounter(net.getTcpInboundTotal(), "TcpInbound", PLAT, NET_RESOURCE);
-		tracer.traceCounter(net.getTcpOutboundTotal(), "TcpOutbound", PLAT, NET_RESOURCE);
-		tracer.traceCounter(net.getTcpLastAck(), "TcpLastAck", PLAT, NET_RESOURCE);
-		tracer.traceCounter(net.getTcpListen(), "TcpListen", PLAT, NET_RESOURCE);
-		tracer.traceCounter(net.getTcpSynRecv(), "TcpSynRecv", PLAT, NET_RESOURCE);
-		tracer.traceCounter(net.getTcpSynSent(), "TcpSynSent", PLAT, NET_RESOURCE);
-		tracer.traceCounter(net.getTcpTimeWait(), "TcpTimeWait", PLAT, NET_RESOURCE);		
+		Map<String, Long> net = source.getNetstat();
+		trace(DELTA, net, NET_DELTAS, NET_NS);
+		trace(COUNTER, net, NET_COUNTERS, NET_NS);
 	}
 	
 	/**
 	 * Traces metrics about this process.
 	 */
 	protected void traceMe() {
-		ProcCpu procCpu = hsigar.getProcCpu(hsigar.pid);
-		tracer.traceGauge(procCpu.getSys(), "System", "platform=JVM", "category=cpu");
-		tracer.traceGauge(procCpu.getTotal(), "Total", "platform=JVM", "category=cpu");
-		tracer.traceGauge(procCpu.getUser(), "User", "platform=JVM", "category=cpu");
-		tracer.traceGauge( dbl2longPerc(procCpu.getPercent()), "PercentUsage", "platform=JVM", "category=cpu");
-		ProcMem pmem = hsigar.getProcMem(hsigar.pid);
-		tracer.traceGauge(pmem.getMajorFaults(), "MajorFaults", "platform=JVM", "category=processMemory");
-		tracer.traceGauge(pmem.getMinorFaults(), "MinorFaults", "platform=JVM", "category=processMemory");
-		tracer.traceGauge(pmem.getPageFaults(), "PageFaults", "platform=JVM", "category=processMemory");
-		tracer.traceGauge(pmem.getResident(), "Resident", "platform=JVM", "category=processMemory");
-		if(!isWindows) tracer.traceGauge(pmem.getShare(), "Shared", "platform=JVM", "category=processMemory");
-		tracer.traceGauge(pmem.getSize(), "Size", "platform=JVM", "category=processMemory");
-		tracer.traceGauge(hsigar.getProcFd(hsigar.pid).getTotal(), "OpenFileDescriptors", "platform=JVM", "category=fd");
-		
+		trace(GAUGE, source.getProcessCpu(), JVM_CPU_GAUGES, JVM_CPU_NS);
+		Map<String, Long> pmem = source.getProcessMem();
+		trace(GAUGE, pmem, JVM_MEM_GAUGES, JVM_MEM_NS);
+		Long fds = pmem.get("OpenFileDescriptors");
+		if(fds!=null) trace(GAUGE, fds, "OpenFileDescriptors", JVM_FD_NS);
 	}
 	
 	/**
 	 * Traces tcp metris
 	 */
 	protected void traceTCP() {
-		Tcp tcp = hsigar.getTcp();
-		tracer.traceDeltaGauge(tcp.getActiveOpens(), "Opens", PLAT, TCP_RESOURCE);
-		tracer.traceDeltaGauge(tcp.getAttemptFails(), "Fails", PLAT, TCP_RESOURCE);
-		tracer.traceGauge(tcp.getCurrEstab(), "Established", PLAT, TCP_RESOURCE);
-		tracer.traceDeltaGauge(tcp.getEstabResets(), "Resets", PLAT, TCP_RESOURCE);
-		tracer.traceDeltaGauge(tcp.getInErrs(), "InErrors", PLAT, TCP_RESOURCE);
-		tracer.traceDeltaGauge(tcp.getInSegs(), "InSegs", PLAT, TCP_RESOURCE);
-		tracer.traceDeltaGauge(tcp.getOutRsts(), "OutResets", PLAT, TCP_RESOURCE);
-		tracer.traceDeltaGauge(tcp.getOutSegs(), "OutSegs", PLAT, TCP_RESOURCE);
-		tracer.traceDeltaGauge(tcp.getPassiveOpens(), "PassiveOpens", PLAT, TCP_RESOURCE);
-		tracer.traceDeltaGauge(tcp.getRetransSegs(), "RetransSegs", PLAT, TCP_RESOURCE);		
+		Map<String, Long> tcp = source.getTcp();
+		trace(DELTA, tcp, TCP_DELTAS, TCP_NS);
+		Long established = tcp.get("Established");
+		if(established!=null) trace(GAUGE, established, "Established", TCP_NS);
 	}
 	
 	/**
 	 * Traces metrics on swap space usage
 	 */
 	protected void traceSwap() {
-		Swap swap = hsigar.getSwap();
-		long total = swap.getTotal();
+		Map<String, Long> swap = source.getSwap();
 		if((collectionSweep==0 || collectionSweep%fsRescanCollectionSweep==0)) {
-			tracer.traceCounter(total, "Total", PLAT, SWAP_RESOURCE);			
+			trace(COUNTER, swap, new String[]{"Total"}, SWAP_NS);
 		}
-		long free = swap.getFree();
-		long used = swap.getUsed();
-		tracer.traceCounter(free, "Free", PLAT, SWAP_RESOURCE);
-		tracer.traceCounter(used, "Used", PLAT, SWAP_RESOURCE);
-		tracer.traceCounter(percent(total,free), "FreePercent", PLAT, SWAP_RESOURCE);
-		tracer.traceCounter(percent(total,used), "UsedPercent", PLAT, SWAP_RESOURCE);
-		tracer.traceCounter(swap.getPageIn(), "PageIn", PLAT, SWAP_RESOURCE);
-		tracer.traceCounter(swap.getPageOut(), "PageOut", PLAT, SWAP_RESOURCE);
-	}
-	
-	private static long percent(double total, double part) {
-		if(total==0 || part==0) return 0;
-		double d = part/total*100;
-		return (long)d;
+		trace(COUNTER, swap, SWAP_COUNTERS, SWAP_NS);
 	}
 	
 	/**
 	 * Traces metrics on system memory
 	 */
 	protected void traceSystemMem() {
-		Mem mem = hsigar.getMem();
+		Map<String, Long> mem = source.getSystemMem();
 		if((collectionSweep==0 || collectionSweep%fsRescanCollectionSweep==0)) {
-			tracer.traceCounter(mem.getRam(), "TotalMemMB", PLAT, SYSMEM_RESOURCE);
+			trace(COUNTER, mem, new String[]{"TotalMemMB"}, SYSMEM_NS);
 		}
-		tracer.traceCounter(mem.getActualFree(), "ActualFree", PLAT, SYSMEM_RESOURCE);
-		tracer.traceCounter(mem.getActualUsed(), "ActualUsed", PLAT, SYSMEM_RESOURCE);
-		tracer.traceCounter(mem.getFree(), "Free", PLAT, SYSMEM_RESOURCE);
-		tracer.traceCounter(mem.getUsed(), "Used", PLAT, SYSMEM_RESOURCE);
-		
-		tracer.traceCounter(dbl2longPerc(mem.getFreePercent()), "FreePercent", PLAT, SYSMEM_RESOURCE);
-		tracer.traceCounter(dbl2longPerc(mem.getUsedPercent()), "UsedPercent", PLAT, SYSMEM_RESOURCE);
+		trace(COUNTER, mem, SYSMEM_COUNTERS, SYSMEM_NS);
 	}
 	
 	/**
-	 * Traces metrics on NIC trafic and meta
+	 * Traces metrics on NIC trafic and meta. An interface that has gone away is dropped from the cache until the next rescan finds it again.
+	 * @param rescan true if the network interfaces were refreshed in this sweep
 	 */
-	protected void traceNics() {
+	protected void traceNics(boolean rescan) {
 		StringBuilder b = new StringBuilder("\n\t=================================\n\tDiscovered NICs\n\t=================================");
-		for(String nic: hsigar.getNetInterfaceList()) {
-			NetworkInterface jnic = null;
-			try { 
-				jnic = NetworkInterface.getByName(("lo0".equals(nic) ? "lo" : nic)); // Windows reports "lo" where sigar sees "lo0" 
-				if(jnic==null || !jnic.isUp()) {
-					continue;
-				}
-			} catch (Exception e) { continue; }
-			
+		for(Iterator<String> iter = nics.iterator(); iter.hasNext();) {
+			String nic = iter.next();
+			Map<String, Long> stats = null;
+			try {
+				stats = source.getNetInterfaceStat(nic);
+			} catch (Exception ex) {
+				stats = Collections.emptyMap();
+			}
+			if(stats.isEmpty()) {
+				iter.remove();
+				nicConfigs.remove(nic);
+				nicNamespaces.remove(nic);
+				log("Network interface [" + nic + "] is gone. Dropped until the next rescan.");
+				continue;
+			}
+			String[] ns = nicNamespaces.get(nic);
+			Map<String, Object> config = nicConfigs.get(nic);
 			if(collectionSweep==0) {
-				NetInterfaceConfig config = hsigar.getNetInterfaceConfig(nic);
-				b.append("\n\t").append(nic).append("/").append(config.getName()).append("\t(").append(config.getDescription()).append(")");
+				b.append("\n\t").append(nic).append("/").append(config.get("Name"));
+				if(config.get("Description")!=null) b.append("\t(").append(config.get("Description")).append(")");
 			}
-			NetInterfaceStat nicStat = hsigar.getNetInterfaceStat(nic);
-			tracer.traceDeltaGauge(nicStat.getRxBytes(), "RXBytes", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic));
-			tracer.traceDeltaGauge(nicStat.getTxBytes(), "TXBytes", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic));
-			tracer.traceDeltaGauge(nicStat.getRxDropped(), "RXDropped", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic));
-			tracer.traceDeltaGauge(nicStat.getTxDropped(), "TXDropped", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic));
-			tracer.traceDeltaGauge(nicStat.getRxErrors(), "RXErrors", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic));
-			tracer.traceDeltaGauge(nicStat.getTxErrors(), "TXErrors", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic));
-			tracer.traceDeltaGauge(nicStat.getRxPackets(), "RXPackets", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic));
-			tracer.traceDeltaGauge(nicStat.getTxPackets(), "TXPackets", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic));
-			tracer.traceDeltaGauge(nicStat.getRxOverruns(), "RXOverruns", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic));
-			tracer.traceDeltaGauge(nicStat.getTxOverruns(), "TXOverruns", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic));
-			
-			tracer.traceDeltaGauge(nicStat.getTxCollisions(), "TXCollisions", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic));
-			tracer.traceDeltaGauge(nicStat.getTxCarrier(), "TxCarrier", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic));
-			
-			tracer.traceDeltaGauge(nicStat.getSpeed(), "Speed", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic));
-			if((collectionSweep==0 || collectionSweep%fsRescanCollectionSweep==0) && traceMeta) {
-				NetInterfaceConfig config = hsigar.getNetInterfaceConfig(nic);
-				
-				tracer.traceString(config.getAddress(), "Address", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic), META_TAG);
-				tracer.traceString(config.getBroadcast(), "Broadcast", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic), META_TAG);
-				tracer.traceString(jnic.getDisplayName(), "DisplayName", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic), META_TAG);
-				tracer.traceString(config.getDescription(), "Description", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic), META_TAG);
-				tracer.traceString(config.getDestination(), "Destination", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic), META_TAG);
-				tracer.traceString(config.getHwaddr(), "MAC", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic), META_TAG);
-				tracer.traceString(config.getName(), "Name", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic), META_TAG);				
-				tracer.traceString(config.getNetmask(), "Netmask", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic), META_TAG);
-				tracer.traceString(config.getType(), "Type", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic), META_TAG);
-				tracer.traceCounter(config.getMetric(), "Metric", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic), META_TAG);
-				tracer.traceCounter(config.getMtu(), "Mtu", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic), META_TAG);
-				tracer.traceCounter(config.getFlags(), "Flags", PLAT, NIC_RESOURCE, String.format(NIC_NAME, nic), META_TAG);
+			trace(DELTA, stats, NIC_DELTAS, ns);
+			if(rescan && traceMeta) {
+				traceMeta(config, ns[0], ns[1], ns[2], META_TAG);
 			}
 		}
 		if(collectionSweep==0) {
@@ -338,52 +458,73 @@ public class NativeMonitor extends AbstractMonitor {
 
 	}
 	
+	/**
+	 * Traces the passed meta-data, tracing numbers as counters and anything else as strings 
+	 * @param meta The meta-data keyed by metric name
+	 * @param namespace The metric namespace
+	 */
+	protected void traceMeta(Map<String, Object> meta, CharSequence...namespace) {
+		for(Map.Entry<String, Object> entry: meta.entrySet()) {
+			Object value = entry.getValue();
+			if(value instanceof Number) {
+				tracer.traceCounter(((Number)value).longValue(), entry.getKey(), namespace);
+			} else if(value!=null) {
+				tracer.traceString(value.toString(), entry.getKey(), namespace);
+			}
+		}
+	}
+	
 	/**
 	 * Collects individual and aggregate CPU percentage utilization localStats.
+	 * @param rescan true if the cpu meta-data was refreshed in this sweep
 	 */
-	protected void traceCpus() {
-		int cid = 0;
+	protected void traceCpus(boolean rescan) {
 		if(traceAllCpus) {
-			for(CpuPerc c : hsigar.getCpuPercList()) {
-				traceCpuPerc(c, String.format(CPU_NAME, cid));
+			int cid = 0;
+			for(Map<String, Long> c : source.getCpuList()) {
+				trace(GAUGE, c, CPU_GAUGES, cpuNamespace(cid));
 				cid++;
 			}
 		}
-		traceCpuPerc(hsigar.getCpuPerc(), String.format(CPU_NAME, "all")); 
-		if((collectionSweep==0 || collectionSweep%fsRescanCollectionSweep==0) && traceMeta && traceAllCpus) {
-			CpuInfo[] infos = hsigar.getCpuInfoList();
-			tracer.traceCounter(infos[0].getTotalCores(),"TotalCores", PLAT, CPU_RESOURCE, META_TAG);
-			tracer.traceCounter(infos[0].getTotalCores(),"TotalSockets", PLAT, CPU_RESOURCE, META_TAG);
-			for(int i = 0; i < infos.length; i++) {
-				tracer.traceString(infos[i].getModel(),"Model", PLAT, CPU_RESOURCE, META_TAG, String.format(CPU_NAME, i));
-				tracer.traceString(infos[i].getVendor(),"Vendor", PLAT, CPU_RESOURCE, META_TAG, String.format(CPU_NAME, i));
-				tracer.traceCounter(infos[i].getCacheSize(),"CacheSize", PLAT, CPU_RESOURCE, META_TAG, String.format(CPU_NAME, i));
-				tracer.traceCounter(infos[i].getCoresPerSocket(),"CoresPerSocket", PLAT, CPU_RESOURCE, META_TAG, String.format(CPU_NAME, i));
-				tracer.traceCounter(infos[i].getMhz(),"Mhz", PLAT, CPU_RESOURCE, META_TAG, String.format(CPU_NAME, i));
-				tracer.traceCounter(infos[i].getCoresPerSocket(),"CoresPerSocket", PLAT, CPU_RESOURCE, META_TAG, String.format(CPU_NAME, i));
+		trace(GAUGE, source.getCpu(), CPU_GAUGES, CPU_ALL_NS); 
+		if(rescan && !cpuInfos.isEmpty()) {
+			Object totalCores = cpuInfos.get(0).get("TotalCores");
+			if(totalCores instanceof Number) {
+				tracer.traceCounter(((Number)totalCores).longValue(),"TotalCores", PLAT, CPU_RESOURCE, META_TAG);
+				tracer.traceCounter(((Number)totalCores).longValue(),"TotalSockets", PLAT, CPU_RESOURCE, META_TAG);
+			}
+			for(int i = 0; i < cpuInfos.size(); i++) {
+				Map<String, Object> info = new LinkedHashMap<String, Object>(cpuInfos.get(i));
+				info.remove("TotalCores");
+				traceMeta(info, PLAT, CPU_RESOURCE, META_TAG, String.format(CPU_NAME, i));
 			}
 		}
 	}
 	
 	/**
-	 * Traces the passed PCU percentage localStats
-	 * @param c The CPU percentage localStats
-	 * @param cpuName The cpu name
+	 * Returns the source of native statistics
+	 * @return the source of native statistics
 	 */
-	private void traceCpuPerc(CpuPerc c, String cpuName) {
-		tracer.traceGauge(dbl2longPerc(c.getCombined()), "Combined", PLAT, CPU_RESOURCE, cpuName);
-		tracer.traceGauge(dbl2longPerc(c.getIdle()), "Idle", PLAT, CPU_RESOURCE, cpuName);
-		tracer.traceGauge(dbl2longPerc(c.getIrq()), "Irq", PLAT, CPU_RESOURCE, cpuName);
-		tracer.traceGauge(dbl2longPerc(c.getNice()), "Nice", PLAT, CPU_RESOURCE, cpuName);
-		tracer.traceGauge(dbl2longPerc(c.getSoftIrq()), "SoftIrq", PLAT, CPU_RESOURCE, cpuName);
-		tracer.traceGauge(dbl2longPerc(c.getStolen()), "Stolen", PLAT, CPU_RESOURCE, cpuName);
-		tracer.traceGauge(dbl2longPerc(c.getSys()), "Sys", PLAT, CPU_RESOURCE, cpuName);
-		tracer.traceGauge(dbl2longPerc(c.getUser()), "User", PLAT, CPU_RESOURCE, cpuName);
-		tracer.traceGauge(dbl2longPerc(c.getWait()), "Wait", PLAT, CPU_RESOURCE, cpuName);					
+	public NativeStatsSource getSource() {
+		return source;
 	}
 	
-
+	/**
+	 * Returns the number of collected values that have been traced
+	 * @return the number of collected values that have been traced
+	 */
+	public long getPublishedCount() {
+		return filter.getPublished();
+	}
 	
+	/**
+	 * Returns the number of collected values that were suppressed because they had not changed
+	 * @return the number of collected values that were suppressed
+	 */
+	public long getSuppressedCount() {
+		return filter.getSuppressed();
+	}
+
 	/**
 	 * Traces usage localStats about the local file systems
 	 */
@@ -417,24 +558,24 @@ public class NativeMonitor extends AbstractMonitor {
 			if(collectionSweep==0 || collectionSweep%fsTimeToFullCollectionSweep==0) {
 				if(fsState[FS_STATE_TS]!=0L) {
 					long secondsUntilFull = timeUntilFull(total, used, now, fsState);
-					tracer.traceGauge(secondsUntilFull, "SecondsToFull", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));	
+					trace(GAUGE, secondsUntilFull, "SecondsToFull", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));	
 				}
 				fsState[FS_STATE_USED] = used;
 				fsState[FS_STATE_TOTAL] = total;
 				fsState[FS_STATE_TS] = now;
 			}
-			tracer.traceGauge(fsu.getAvail(), "AvailableKb", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));
-			tracer.traceDeltaGauge(fsu.getDiskReadBytes(), "DiskReadBytes", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));
-			tracer.traceDeltaGauge(fsu.getDiskWriteBytes(), "DiskWriteBytes", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));
-			tracer.traceDeltaGauge(fsu.getDiskReads(), "DiskReads", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));
-			tracer.traceDeltaGauge(fsu.getDiskWrites(), "DiskWrites", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));
+			trace(GAUGE, fsu.getAvail(), "AvailableKb", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));
+			trace(DELTA, fsu.getDiskReadBytes(), "DiskReadBytes", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));
+			trace(DELTA, fsu.getDiskWriteBytes(), "DiskWriteBytes", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));
+			trace(DELTA, fsu.getDiskReads(), "DiskReads", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));
+			trace(DELTA, fsu.getDiskWrites(), "DiskWrites", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));
 			
-			tracer.traceGauge(fsu.getFree(), "FreeKb", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));
-			tracer.traceGauge(fsu.getTotal(), "TotalKb", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));
-			tracer.traceGauge(fsu.getUsed(), "UsedKb", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));
-			tracer.traceGauge((long)fsu.getDiskQueue(), "DiskQueue", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));
+			trace(GAUGE, fsu.getFree(), "FreeKb", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));
+			trace(GAUGE, fsu.getTotal(), "TotalKb", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));
+			trace(GAUGE, fsu.getUsed(), "UsedKb", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));
+			trace(GAUGE, (long)fsu.getDiskQueue(), "DiskQueue", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));
 			// No impl. for Win
-			tracer.traceGauge((long)fsu.getDiskServiceTime(), "DiskServiceTime", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));
+			trace(GAUGE, (long)fsu.getDiskServiceTime(), "DiskServiceTime", PLAT, FS_RESOURCE, String.format(FS_NAME, dirName.replace(":\\", "")));
 			
 			
 		}
@@ -550,14 +691,9 @@ public class NativeMonitor extends AbstractMonitor {
 		System.out.println(msg);
 	}
 	
-	private static long dbl2longPerc(double value) {
-		double d = value*100;
-		return (long)d;
-	}
-	
 	public static void main(String[] args) {
 		NativeMonitor nm = new NativeMonitor();
-		for(String s: nm.hsigar.getNetInterfaceList()) {
+		for(String s: nm.source.getNetInterfaceList()) {
 			l("NIC:" + s);		
 		}
 	}
@@ -0,0 +1,121 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.monitor.nativex;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Title: NativeStatsSource</p>
+ * <p>Description: Defines a source of native OS statistics for the {@link NativeMonitor}. Each group is returned as a map of the 
+ * final traced values keyed by the metric name the monitor traces them under. Metrics a source cannot supply are simply absent from the map.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.monitor.nativex.NativeStatsSource</code></p>
+ */
+
+public interface NativeStatsSource {
+	/**
+	 * Returns the aggregate CPU utilization percentages
+	 * @return the aggregate CPU utilization percentages (Combined, Idle, Irq, Nice, SoftIrq, Stolen, Sys, User, Wait)
+	 */
+	public Map<String, Long> getCpu();
+	
+	/**
+	 * Returns the per CPU utilization percentages
+	 * @return a list of per CPU utilization percentages, keyed as in {@link #getCpu()}
+	 */
+	public List<Map<String, Long>> getCpuList();
+	
+	/**
+	 * Returns the CPU meta-data, which is expected to be cached by the caller
+	 * @return a list of per CPU meta-data maps of strings and numbers (Model, Vendor, CacheSize, CoresPerSocket, Mhz, TotalCores)
+	 */
+	public List<Map<String, Object>> getCpuInfoList();
+	
+	/**
+	 * Returns the names of the network interfaces that are up. Expected to be cached by the caller.
+	 * @return the names of the network interfaces that are up
+	 */
+	public List<String> getNetInterfaceList();
+	
+	/**
+	 * Returns the network interface configuration, which is expected to be cached by the caller
+	 * @param nic The network interface name
+	 * @return a map of interface configuration strings and numbers, empty if not supported or if the interface no longer exists
+	 */
+	public Map<String, Object> getNetInterfaceConfig(String nic);
+	
+	/**
+	 * Returns the network interface traffic counters
+	 * @param nic The network interface name
+	 * @return the network interface traffic counters (RXBytes, TXBytes, RXDropped, TXDropped, RXErrors, TXErrors, RXPackets, TXPackets, RXOverruns, TXOverruns, TXCollisions, TxCarrier, Speed),
+	 * empty if the interface no longer exists
+	 */
+	public Map<String, Long> getNetInterfaceStat(String nic);
+	
+	/**
+	 * Returns the system memory statistics
+	 * @return the system memory statistics (TotalMemMB, ActualFree, ActualUsed, Free, Used, FreePercent, UsedPercent)
+	 */
+	public Map<String, Long> getSystemMem();
+	
+	/**
+	 * Returns the swap statistics
+	 * @return the swap statistics (Total, Free, Used, FreePercent, UsedPercent, PageIn, PageOut)
+	 */
+	public Map<String, Long> getSwap();
+	
+	/**
+	 * Returns the TCP protocol counters
+	 * @return the TCP protocol counters (Opens, Fails, Established, Resets, InErrors, InSegs, OutResets, OutSegs, PassiveOpens, RetransSegs)
+	 */
+	public Map<String, Long> getTcp();
+	
+	/**
+	 * Returns the TCP connection state counts
+	 * @return the TCP connection state counts (Inbound, Outbound, TcpBound, TcpClose, TcpCloseWait, TcpClosing, TcpEstablished, TcpFinWait1, TcpFinWait2, 
+	 * TcpIdle, TcpInbound, TcpOutbound, TcpLastAck, TcpListen, TcpSynRecv, TcpSynSent, TcpTimeWait)
+	 */
+	public Map<String, Long> getNetstat();
+	
+	/**
+	 * Returns the system process state counts
+	 * @return the system process state counts (Idle, Running, Sleeping, Stopped, Threads, Total, Zombie)
+	 */
+	public Map<String, Long> getProcessStats();
+	
+	/**
+	 * Returns the CPU usage of this process
+	 * @return the CPU usage of this process (System, Total, User, PercentUsage)
+	 */
+	public Map<String, Long> getProcessCpu();
+	
+	/**
+	 * Returns the memory usage of this process
+	 * @return the memory usage of this process (MajorFaults, MinorFaults, PageFaults, Resident, Shared, Size, OpenFileDescriptors)
+	 */
+	public Map<String, Long> getProcessMem();
+}
@@ -0,0 +1,581 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.monitor.nativex;
+
+import org.helios.apmrouter.util.SystemClock;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * <p>Title: ProcStatsSource</p>
+ * <p>Description: A {@link NativeStatsSource} that reads the Linux <b><code>/proc</code></b> file system directly, 
+ * used by the {@link NativeMonitor} when the native Sigar library cannot be loaded. Values are scaled to match
+ * the units the {@link SigarStatsSource} reports. File system usage is not available from this source.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.monitor.nativex.ProcStatsSource</code></p>
+ */
+
+public class ProcStatsSource implements NativeStatsSource {
+	/** The proc file system root */
+	protected final File procRoot;
+	/** The last cpu jiffy readings keyed by the cpu name in <code>/proc/stat</code> */
+	protected final Map<String, long[]> lastCpuJiffies = new HashMap<String, long[]>();
+	/** The last process cpu time in ms. and the timestamp it was read at */
+	protected final long[] lastProcessCpu = new long[]{-1L, 0L};
+	/** The last parsed <code>/proc/net/dev</code> shared by the per interface reads of one collection */
+	protected Map<String, long[]> netDevSnapshot = null;
+	/** The timestamp of the last parsed <code>/proc/net/dev</code> */
+	protected long netDevTimestamp = 0L;
+	
+	/** The number of clock ticks per second reported in <code>/proc</code> (USER_HZ) */
+	public static final long TICKS_PER_SECOND = 100;
+	/** The ms. a parsed <code>/proc/net/dev</code> is reused for per interface reads */
+	public static final long NET_DEV_SNAPSHOT_MS = 100;
+	/** The assumed memory page size */
+	public static final long PAGE_SIZE = 4096;
+	/** The aggregate cpu name in <code>/proc/stat</code> */
+	public static final String ALL_CPUS = "cpu";
+	
+	/** The keys of the cpu jiffy columns in <code>/proc/stat</code> */
+	private static final String[] CPU_COLUMNS = {"User", "Nice", "Sys", "Idle", "Wait", "Irq", "SoftIrq", "Stolen"};
+	/** The tcp connection state names indexed by the hex state code in <code>/proc/net/tcp</code> */
+	private static final String[] TCP_STATES = {null, "TcpEstablished", "TcpSynSent", "TcpSynRecv", "TcpFinWait1", "TcpFinWait2", 
+		"TcpTimeWait", "TcpClose", "TcpCloseWait", "TcpLastAck", "TcpListen", "TcpClosing"};
+	/** The tcp listen state code */
+	private static final int TCP_LISTEN = 10;
+	/** The mapping of <code>/proc/net/snmp</code> tcp counter names to traced metric names */
+	private static final Map<String, String> TCP_COUNTERS = new HashMap<String, String>();
+	
+	static {
+		TCP_COUNTERS.put("ActiveOpens", "Opens");
+		TCP_COUNTERS.put("AttemptFails", "Fails");
+		TCP_COUNTERS.put("CurrEstab", "Established");
+		TCP_COUNTERS.put("EstabResets", "Resets");
+		TCP_COUNTERS.put("InErrs", "InErrors");
+		TCP_COUNTERS.put("InSegs", "InSegs");
+		TCP_COUNTERS.put("OutRsts", "OutResets");
+		TCP_COUNTERS.put("OutSegs", "OutSegs");
+		TCP_COUNTERS.put("PassiveOpens", "PassiveOpens");
+		TCP_COUNTERS.put("RetransSegs", "RetransSegs");
+	}
+	
+	/**
+	 * Creates a new ProcStatsSource
+	 * @param procRoot The proc file system root, usually <b><code>/proc</code></b>
+	 */
+	public ProcStatsSource(File procRoot) {
+		if(procRoot==null) throw new IllegalArgumentException("The passed proc root was null", new Throwable());
+		this.procRoot = procRoot;
+	}
+	
+	/**
+	 * Determines if the passed proc root looks like a readable proc file system
+	 * @param procRoot The proc file system root to test
+	 * @return true if the proc root can be read from
+	 */
+	public static boolean isAvailable(File procRoot) {
+		return procRoot!=null && new File(procRoot, "stat").canRead();
+	}
+	
+	/**
+	 * Reads all the lines in the named proc file
+	 * @param path The path of the file relative to the proc root
+	 * @return the lines of the file which will be empty if the file could not be read
+	 */
+	protected List<String> readLines(String path) {
+		return readLines(new File(procRoot, path));
+	}
+	
+	/**
+	 * Reads all the lines in the passed file
+	 * @param file The file to read
+	 * @return the lines of the file which will be empty if the file could not be read
+	 */
+	protected static List<String> readLines(File file) {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(file));
+			String line = null;
+			while((line = reader.readLine())!=null) {
+				lines.add(line);
+			}
+		} catch (IOException e) {
+			/* The file went away or is not supported on this kernel */
+		} finally {
+			if(reader!=null) try { reader.close(); } catch (Exception e) { /* No Op */ }
+		}
+		return lines;
+	}
+	
+	/**
+	 * Splits the passed line on whitespace
+	 * @param line The line to split
+	 * @return the non-empty tokens
+	 */
+	protected static String[] split(String line) {
+		return line.trim().split("\\s+");
+	}
+	
+	/**
+	 * Parses the passed string as a long, returning 0 if it is not a number
+	 * @param s The string to parse
+	 * @return the parsed long
+	 */
+	protected static long parseLong(String s) {
+		try {
+			return Long.parseLong(s.trim());
+		} catch (Exception e) {
+			return 0L;
+		}
+	}
+	
+	/**
+	 * Reads a <code>key: value</code> formatted proc file such as <code>/proc/meminfo</code>
+	 * @param path The path of the file relative to the proc root
+	 * @return a map of the first numeric token of each value keyed by the key
+	 */
+	protected Map<String, Long> readKeyValues(String path) {
+		Map<String, Long> map = new HashMap<String, Long>();
+		for(String line: readLines(path)) {
+			int index = line.indexOf(':');
+			String[] frags = index==-1 ? split(line) : new String[]{line.substring(0, index), line.substring(index+1)};
+			if(frags.length<2) continue;
+			String[] value = split(frags[1]);
+			map.put(frags[0].trim(), parseLong(value[0]));
+		}
+		return map;
+	}
+	
+	/**
+	 * Computes the cpu utilization percentages for the named cpu line from <code>/proc/stat</code> 
+	 * since the last time it was read. The first read computes the utilization since boot.
+	 * @param frags The split cpu line
+	 * @return the cpu utilization percentages
+	 */
+	protected Map<String, Long> cpuPerc(String[] frags) {
+		long[] jiffies = new long[CPU_COLUMNS.length];
+		for(int i = 0; i < jiffies.length && i+1 < frags.length; i++) {
+			jiffies[i] = parseLong(frags[i+1]);
+		}
+		long[] last = lastCpuJiffies.put(frags[0], jiffies.clone());
+		if(last!=null) {
+			for(int i = 0; i < jiffies.length; i++) {
+				jiffies[i] = jiffies[i] - last[i];
+			}
+		}
+		long total = 0;
+		for(long j: jiffies) total += j;
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		long idle = SigarStatsSource.percent(total, jiffies[3]);
+		m.put("Combined", total==0 ? 0L : 100-idle);
+		for(int i = 0; i < jiffies.length; i++) {
+			m.put(CPU_COLUMNS[i], SigarStatsSource.percent(total, jiffies[i]));
+		}
+		return m;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getCpu()
+	 */
+	@Override
+	public Map<String, Long> getCpu() {
+		for(String line: readLines("stat")) {
+			if(line.startsWith("cpu ")) {
+				return cpuPerc(split(line));
+			}
+		}
+		return Collections.emptyMap();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getCpuList()
+	 */
+	@Override
+	public List<Map<String, Long>> getCpuList() {
+		List<Map<String, Long>> list = new ArrayList<Map<String, Long>>();
+		for(String line: readLines("stat")) {
+			if(line.startsWith(ALL_CPUS) && !line.startsWith("cpu ")) {
+				list.add(cpuPerc(split(line)));
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getCpuInfoList()
+	 */
+	@Override
+	public List<Map<String, Object>> getCpuInfoList() {
+		List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+		Map<String, Object> current = null;
+		for(String line: readLines("cpuinfo")) {
+			int index = line.indexOf(':');
+			if(index==-1) continue;
+			String key = line.substring(0, index).trim();
+			String value = line.substring(index+1).trim();
+			if("processor".equals(key)) {
+				current = new LinkedHashMap<String, Object>();
+				list.add(current);
+			} else if(current!=null) {
+				if("model name".equals(key)) current.put("Model", value);
+				else if("vendor_id".equals(key)) current.put("Vendor", value);
+				else if("cache size".equals(key)) current.put("CacheSize", parseLong(split(value)[0]));
+				else if("cpu cores".equals(key)) current.put("CoresPerSocket", parseLong(value));
+				else if("cpu MHz".equals(key)) current.put("Mhz", (long)Double.parseDouble(value));
+			}
+		}
+		for(Map<String, Object> m: list) {
+			m.put("TotalCores", (long)list.size());
+		}
+		return list;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getNetInterfaceList()
+	 */
+	@Override
+	public List<String> getNetInterfaceList() {
+		return new ArrayList<String>(readNetDev().keySet());
+	}
+	
+	/**
+	 * Reads the per interface counters from <code>/proc/net/dev</code>
+	 * @return a map of the interface counter columns keyed by interface name
+	 */
+	protected Map<String, long[]> readNetDev() {
+		Map<String, long[]> map = new LinkedHashMap<String, long[]>();
+		for(String line: readLines("net/dev")) {
+			int index = line.indexOf(':');
+			if(index==-1) continue;
+			String[] frags = split(line.substring(index+1));
+			long[] values = new long[frags.length];
+			for(int i = 0; i < frags.length; i++) {
+				values[i] = parseLong(frags[i]);
+			}
+			map.put(line.substring(0, index).trim(), values);
+		}
+		netDevSnapshot = map;
+		netDevTimestamp = SystemClock.time();
+		return map;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getNetInterfaceConfig(java.lang.String)
+	 */
+	@Override
+	public Map<String, Object> getNetInterfaceConfig(String nic) {
+		Map<String, Object> m = new LinkedHashMap<String, Object>();
+		m.put("Name", nic);
+		return m;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getNetInterfaceStat(java.lang.String)
+	 */
+	@Override
+	public Map<String, Long> getNetInterfaceStat(String nic) {
+		Map<String, long[]> netDev = netDevSnapshot;
+		if(netDev==null || SystemClock.time()-netDevTimestamp>=NET_DEV_SNAPSHOT_MS || !netDev.containsKey(nic)) {
+			netDev = readNetDev();
+		}
+		long[] v = netDev.get(nic);
+		if(v==null || v.length<16) return Collections.emptyMap();
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		m.put("RXBytes", v[0]);
+		m.put("TXBytes", v[8]);
+		m.put("RXDropped", v[3]);
+		m.put("TXDropped", v[11]);
+		m.put("RXErrors", v[2]);
+		m.put("TXErrors", v[10]);
+		m.put("RXPackets", v[1]);
+		m.put("TXPackets", v[9]);
+		m.put("RXOverruns", v[4]);
+		m.put("TXOverruns", v[12]);
+		m.put("TXCollisions", v[13]);
+		m.put("TxCarrier", v[14]);
+		return m;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getSystemMem()
+	 */
+	@Override
+	public Map<String, Long> getSystemMem() {
+		Map<String, Long> info = readKeyValues("meminfo");
+		long total = value(info, "MemTotal")*1024;
+		long free = value(info, "MemFree")*1024;
+		long actualFree = free + (value(info, "Buffers") + value(info, "Cached"))*1024;
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		m.put("TotalMemMB", total/1024/1024);
+		m.put("ActualFree", actualFree);
+		m.put("ActualUsed", total-actualFree);
+		m.put("Free", free);
+		m.put("Used", total-free);
+		// Sigar reports these as percentages which the monitor then scales by 100
+		m.put("FreePercent", SigarStatsSource.percent(total, actualFree)*100);
+		m.put("UsedPercent", SigarStatsSource.percent(total, total-actualFree)*100);
+		return m;
+	}
+	
+	/**
+	 * Returns the named value from the passed map or zero if it is not present
+	 * @param map The map to read from
+	 * @param key The key
+	 * @return the value
+	 */
+	private static long value(Map<String, Long> map, String key) {
+		Long v = map.get(key);
+		return v==null ? 0L : v;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getSwap()
+	 */
+	@Override
+	public Map<String, Long> getSwap() {
+		Map<String, Long> info = readKeyValues("meminfo");
+		Map<String, Long> vmstat = readKeyValues("vmstat");
+		long total = value(info, "SwapTotal")*1024;
+		long free = value(info, "SwapFree")*1024;
+		long used = total - free;
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		m.put("Total", total);
+		m.put("Free", free);
+		m.put("Used", used);
+		m.put("FreePercent", SigarStatsSource.percent(total, free));
+		m.put("UsedPercent", SigarStatsSource.percent(total, used));
+		m.put("PageIn", value(vmstat, "pswpin"));
+		m.put("PageOut", value(vmstat, "pswpout"));
+		return m;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getTcp()
+	 */
+	@Override
+	public Map<String, Long> getTcp() {
+		String[] header = null;
+		for(String line: readLines("net/snmp")) {
+			if(!line.startsWith("Tcp:")) continue;
+			String[] frags = split(line);
+			if(header==null) {
+				header = frags;
+				continue;
+			}
+			Map<String, Long> m = new LinkedHashMap<String, Long>();
+			for(int i = 1; i < frags.length && i < header.length; i++) {
+				String name = TCP_COUNTERS.get(header[i]);
+				if(name!=null) m.put(name, parseLong(frags[i]));
+			}
+			return m;
+		}
+		return Collections.emptyMap();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getNetstat()
+	 */
+	@Override
+	public Map<String, Long> getNetstat() {
+		long[] states = new long[TCP_STATES.length];
+		Set<String> listenPorts = new HashSet<String>();
+		List<String> connectionPorts = new ArrayList<String>();
+		for(String file: new String[]{"net/tcp", "net/tcp6"}) {
+			List<String> lines = readLines(file);
+			for(int i = 1; i < lines.size(); i++) {
+				String[] frags = split(lines.get(i));
+				if(frags.length<4) continue;
+				int state = (int)parseHex(frags[3]);
+				if(state<1 || state>=TCP_STATES.length) continue;
+				states[state]++;
+				String local = frags[1];
+				String port = local.substring(local.indexOf(':')+1);
+				if(state==TCP_LISTEN) listenPorts.add(port);
+				else connectionPorts.add(port);
+			}
+		}
+		long inbound = 0, outbound = 0;
+		for(String port: connectionPorts) {
+			if(listenPorts.contains(port)) inbound++;
+			else outbound++;
+		}
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		m.put("Inbound", inbound);
+		m.put("Outbound", outbound);
+		m.put("TcpBound", 0L);
+		m.put("TcpIdle", 0L);
+		m.put("TcpInbound", inbound);
+		m.put("TcpOutbound", outbound);
+		for(int i = 1; i < TCP_STATES.length; i++) {
+			m.put(TCP_STATES[i], states[i]);
+		}
+		return m;
+	}
+	
+	/**
+	 * Parses the passed hex string, returning -1 if it is not valid hex
+	 * @param s The string to parse
+	 * @return the parsed value
+	 */
+	private static long parseHex(String s) {
+		try {
+			return Long.parseLong(s, 16);
+		} catch (Exception e) {
+			return -1L;
+		}
+	}
+	
+	/**
+	 * Reads and splits the fields of a <code>/proc/&lt;pid&gt;/stat</code> file following the command name
+	 * @param statFile The stat file
+	 * @return the fields starting with the process state, or null if the file could not be read
+	 */
+	protected static String[] readProcessStat(File statFile) {
+		List<String> lines = readLines(statFile);
+		if(lines.isEmpty()) return null;
+		String line = lines.get(0);
+		int index = line.lastIndexOf(')');
+		if(index==-1) return null;
+		String[] frags = split(line.substring(index+1));
+		return frags.length<18 ? null : frags;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getProcessStats()
+	 */
+	@Override
+	public Map<String, Long> getProcessStats() {
+		long idle = 0, running = 0, sleeping = 0, stopped = 0, zombie = 0, threads = 0, total = 0;
+		String[] pids = procRoot.list();
+		if(pids!=null) {
+			for(String pid: pids) {
+				if(pid.isEmpty() || !Character.isDigit(pid.charAt(0))) continue;
+				String[] frags = readProcessStat(new File(new File(procRoot, pid), "stat"));
+				if(frags==null) continue;
+				total++;
+				threads += parseLong(frags[17]);
+				switch(frags[0].charAt(0)) {
+					case 'R': running++; break;
+					case 'S': sleeping++; break;
+					case 'D': case 'I': idle++; break;
+					case 'T': case 't': stopped++; break;
+					case 'Z': zombie++; break;
+					default:
+				}
+			}
+		}
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		m.put("Idle", idle);
+		m.put("Running", running);
+		m.put("Sleeping", sleeping);
+		m.put("Stopped", stopped);
+		m.put("Threads", threads);
+		m.put("Total", total);
+		m.put("Zombie", zombie);
+		return m;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getProcessCpu()
+	 */
+	@Override
+	public Map<String, Long> getProcessCpu() {
+		String[] frags = readProcessStat(new File(procRoot, "self/stat"));
+		if(frags==null) return Collections.emptyMap();
+		long user = parseLong(frags[11])*1000/TICKS_PER_SECOND;
+		long sys = parseLong(frags[12])*1000/TICKS_PER_SECOND;
+		long total = user + sys;
+		long now = SystemClock.time();
+		long percent = 0;
+		if(lastProcessCpu[0]!=-1L && now>lastProcessCpu[1]) {
+			// Sigar reports a fraction of one cpu which the monitor then scales by 100
+			percent = (total-lastProcessCpu[0])*100/(now-lastProcessCpu[1]);
+		}
+		lastProcessCpu[0] = total;
+		lastProcessCpu[1] = now;
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		m.put("System", sys);
+		m.put("Total", total);
+		m.put("User", user);
+		m.put("PercentUsage", percent);
+		return m;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getProcessMem()
+	 */
+	@Override
+	public Map<String, Long> getProcessMem() {
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		String[] frags = readProcessStat(new File(procRoot, "self/stat"));
+		if(frags!=null) {
+			long minor = parseLong(frags[7]);
+			long major = parseLong(frags[9]);
+			m.put("MajorFaults", major);
+			m.put("MinorFaults", minor);
+			m.put("PageFaults", major+minor);
+		}
+		List<String> statm = readLines("self/statm");
+		if(!statm.isEmpty()) {
+			String[] pages = split(statm.get(0));
+			if(pages.length>2) {
+				m.put("Resident", parseLong(pages[1])*PAGE_SIZE);
+				m.put("Shared", parseLong(pages[2])*PAGE_SIZE);
+				m.put("Size", parseLong(pages[0])*PAGE_SIZE);
+			}
+		}
+		String[] fds = new File(procRoot, "self/fd").list();
+		if(fds!=null) m.put("OpenFileDescriptors", (long)fds.length);
+		return m;
+	}
+	
+	/**
+	 * Returns a string describing this source
+	 * @return a string describing this source
+	 */
+	@Override
+	public String toString() {
+		return "ProcStatsSource [" + procRoot + "]";
+	}
+}
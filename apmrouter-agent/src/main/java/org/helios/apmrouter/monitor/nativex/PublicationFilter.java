@@ -0,0 +1,156 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.monitor.nativex;
+
+import org.helios.apmrouter.util.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>Title: PublicationFilter</p>
+ * <p>Description: Decides if a collected value should be traced, suppressing values that have not changed beyond a tolerance 
+ * since they were last traced until a heartbeat interval has elapsed. Values that are traced as delta gauges are published 
+ * on any change, since the tracer computes the delta from the last raw value it saw.
+ * Not thread safe, intended to be called from a single monitor's collection thread.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.monitor.nativex.PublicationFilter</code></p>
+ */
+
+public class PublicationFilter {
+	/** The last published value and timestamp keyed by the metric name and namespace */
+	protected final Map<String, long[]> lastPublished = new HashMap<String, long[]>();
+	/** The percentage change required to publish a value before the heartbeat elapses */
+	protected final long tolerance;
+	/** The heartbeat in ms. after which unchanged values are published anyways. Values less than 1 disable filtering. */
+	protected final long heartbeat;
+	/** The number of values published */
+	protected long published = 0;
+	/** The number of values suppressed */
+	protected long suppressed = 0;
+	
+	/** The last published state value index */
+	private static final int VALUE = 0;
+	/** The last published state timestamp index */
+	private static final int TIMESTAMP = 1;
+	
+	/**
+	 * Creates a new PublicationFilter
+	 * @param tolerance The percentage change required to publish a value before the heartbeat elapses
+	 * @param heartbeat The heartbeat in ms. after which unchanged values are published anyways. Values less than 1 disable filtering.
+	 */
+	public PublicationFilter(long tolerance, long heartbeat) {
+		this.tolerance = tolerance<0 ? 0 : tolerance;
+		this.heartbeat = heartbeat;
+	}
+	
+	/**
+	 * Determines if the passed value should be published, recording it as the last published value if it should
+	 * @param value The collected value
+	 * @param delta true if the value is traced as a delta gauge, in which case any change is published
+	 * @param name The metric name
+	 * @param namespace The metric namespace
+	 * @return true if the value should be published, false if it should be suppressed
+	 */
+	public boolean publish(long value, boolean delta, String name, CharSequence...namespace) {
+		if(heartbeat<1) {
+			published++;
+			return true;
+		}
+		StringBuilder b = new StringBuilder(name);
+		for(CharSequence ns: namespace) {
+			b.append('/').append(ns);
+		}
+		String key = b.toString();
+		long now = SystemClock.time();
+		long[] state = lastPublished.get(key);
+		if(state==null) {
+			lastPublished.put(key, new long[]{value, now});
+			published++;
+			return true;
+		}
+		if(now-state[TIMESTAMP]>=heartbeat || changed(state[VALUE], value, delta)) {
+			state[VALUE] = value;
+			state[TIMESTAMP] = now;
+			published++;
+			return true;
+		}
+		suppressed++;
+		return false;
+	}
+	
+	/**
+	 * Determines if the value has changed enough to be published
+	 * @param last The last published value
+	 * @param value The collected value
+	 * @param delta true if the value is traced as a delta gauge
+	 * @return true if the value should be published
+	 */
+	protected boolean changed(long last, long value, boolean delta) {
+		if(last==value) return false;
+		if(delta || tolerance==0 || last==0) return true;
+		return Math.abs(value-last)*100 > Math.abs(last)*tolerance;
+	}
+	
+	/**
+	 * Clears the last published state so that every value is published on the next collection
+	 */
+	public void reset() {
+		lastPublished.clear();
+	}
+
+	/**
+	 * Returns the number of values published
+	 * @return the number of values published
+	 */
+	public long getPublished() {
+		return published;
+	}
+
+	/**
+	 * Returns the number of values suppressed
+	 * @return the number of values suppressed
+	 */
+	public long getSuppressed() {
+		return suppressed;
+	}
+
+	/**
+	 * Returns the percentage change required to publish a value before the heartbeat elapses
+	 * @return the tolerance percentage
+	 */
+	public long getTolerance() {
+		return tolerance;
+	}
+
+	/**
+	 * Returns the heartbeat in ms. after which unchanged values are published anyways
+	 * @return the heartbeat in ms.
+	 */
+	public long getHeartbeat() {
+		return heartbeat;
+	}
+}
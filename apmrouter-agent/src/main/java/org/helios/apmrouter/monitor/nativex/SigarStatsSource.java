@@ -0,0 +1,355 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.monitor.nativex;
+
+import org.helios.apmrouter.nativex.APMSigar;
+import org.hyperic.sigar.*;
+
+import java.net.NetworkInterface;
+import java.util.*;
+
+/**
+ * <p>Title: SigarStatsSource</p>
+ * <p>Description: A {@link NativeStatsSource} backed by the native Sigar library</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.monitor.nativex.SigarStatsSource</code></p>
+ */
+
+public class SigarStatsSource implements NativeStatsSource {
+	/** The wrapped sigar instance */
+	protected final APMSigar hsigar;
+	
+	/**
+	 * Creates a new SigarStatsSource
+	 * @param hsigar The wrapped sigar instance
+	 */
+	public SigarStatsSource(APMSigar hsigar) {
+		this.hsigar = hsigar;
+	}
+	
+	/**
+	 * Converts a sigar fraction to the traced percentage
+	 * @param value The fraction
+	 * @return the percentage
+	 */
+	static long dbl2longPerc(double value) {
+		double d = value*100;
+		return (long)d;
+	}
+	
+	/**
+	 * Computes a whole percentage
+	 * @param total The total
+	 * @param part The part
+	 * @return the percentage
+	 */
+	static long percent(double total, double part) {
+		if(total==0 || part==0) return 0;
+		double d = part/total*100;
+		return (long)d;
+	}
+	
+	/**
+	 * Converts CPU percentage stats to a map
+	 * @param c The CPU percentage stats
+	 * @return the map
+	 */
+	protected Map<String, Long> cpuPerc(CpuPerc c) {
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		m.put("Combined", dbl2longPerc(c.getCombined()));
+		m.put("Idle", dbl2longPerc(c.getIdle()));
+		m.put("Irq", dbl2longPerc(c.getIrq()));
+		m.put("Nice", dbl2longPerc(c.getNice()));
+		m.put("SoftIrq", dbl2longPerc(c.getSoftIrq()));
+		m.put("Stolen", dbl2longPerc(c.getStolen()));
+		m.put("Sys", dbl2longPerc(c.getSys()));
+		m.put("User", dbl2longPerc(c.getUser()));
+		m.put("Wait", dbl2longPerc(c.getWait()));
+		return m;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getCpu()
+	 */
+	@Override
+	public Map<String, Long> getCpu() {
+		return cpuPerc(hsigar.getCpuPerc());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getCpuList()
+	 */
+	@Override
+	public List<Map<String, Long>> getCpuList() {
+		List<Map<String, Long>> list = new ArrayList<Map<String, Long>>();
+		for(CpuPerc c : hsigar.getCpuPercList()) {
+			list.add(cpuPerc(c));
+		}
+		return list;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getCpuInfoList()
+	 */
+	@Override
+	public List<Map<String, Object>> getCpuInfoList() {
+		List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+		for(CpuInfo info: hsigar.getCpuInfoList()) {
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+			m.put("Model", info.getModel());
+			m.put("Vendor", info.getVendor());
+			m.put("CacheSize", info.getCacheSize());
+			m.put("CoresPerSocket", info.getCoresPerSocket());
+			m.put("Mhz", info.getMhz());
+			m.put("TotalCores", info.getTotalCores());
+			list.add(m);
+		}
+		return list;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getNetInterfaceList()
+	 */
+	@Override
+	public List<String> getNetInterfaceList() {
+		List<String> nics = new ArrayList<String>();
+		for(String nic: hsigar.getNetInterfaceList()) {
+			try { 
+				NetworkInterface jnic = NetworkInterface.getByName(("lo0".equals(nic) ? "lo" : nic)); // Windows reports "lo" where sigar sees "lo0" 
+				if(jnic==null || !jnic.isUp()) {
+					continue;
+				}
+			} catch (Exception e) { continue; }
+			nics.add(nic);
+		}
+		return nics;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getNetInterfaceConfig(java.lang.String)
+	 */
+	@Override
+	public Map<String, Object> getNetInterfaceConfig(String nic) {
+		NetInterfaceConfig config = null;
+		try {
+			config = hsigar.getNetInterfaceConfig(nic);
+		} catch (RuntimeException rex) {
+			// the interface went away since the interface list was read
+			return Collections.emptyMap();
+		}
+		Map<String, Object> m = new LinkedHashMap<String, Object>();
+		m.put("Address", config.getAddress());
+		m.put("Broadcast", config.getBroadcast());
+		try {
+			NetworkInterface jnic = NetworkInterface.getByName(("lo0".equals(nic) ? "lo" : nic));
+			if(jnic!=null) m.put("DisplayName", jnic.getDisplayName());
+		} catch (Exception e) { /* No Op */ }
+		m.put("Description", config.getDescription());
+		m.put("Destination", config.getDestination());
+		m.put("MAC", config.getHwaddr());
+		m.put("Name", config.getName());
+		m.put("Netmask", config.getNetmask());
+		m.put("Type", config.getType());
+		m.put("Metric", config.getMetric());
+		m.put("Mtu", config.getMtu());
+		m.put("Flags", config.getFlags());
+		return m;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getNetInterfaceStat(java.lang.String)
+	 */
+	@Override
+	public Map<String, Long> getNetInterfaceStat(String nic) {
+		NetInterfaceStat nicStat = null;
+		try {
+			nicStat = hsigar.getNetInterfaceStat(nic);
+		} catch (RuntimeException rex) {
+			// the interface went away since the interface list was read
+			return Collections.emptyMap();
+		}
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		m.put("RXBytes", nicStat.getRxBytes());
+		m.put("TXBytes", nicStat.getTxBytes());
+		m.put("RXDropped", nicStat.getRxDropped());
+		m.put("TXDropped", nicStat.getTxDropped());
+		m.put("RXErrors", nicStat.getRxErrors());
+		m.put("TXErrors", nicStat.getTxErrors());
+		m.put("RXPackets", nicStat.getRxPackets());
+		m.put("TXPackets", nicStat.getTxPackets());
+		m.put("RXOverruns", nicStat.getRxOverruns());
+		m.put("TXOverruns", nicStat.getTxOverruns());
+		m.put("TXCollisions", nicStat.getTxCollisions());
+		m.put("TxCarrier", nicStat.getTxCarrier());
+		m.put("Speed", nicStat.getSpeed());
+		return m;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getSystemMem()
+	 */
+	@Override
+	public Map<String, Long> getSystemMem() {
+		Mem mem = hsigar.getMem();
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		m.put("TotalMemMB", mem.getRam());
+		m.put("ActualFree", mem.getActualFree());
+		m.put("ActualUsed", mem.getActualUsed());
+		m.put("Free", mem.getFree());
+		m.put("Used", mem.getUsed());
+		m.put("FreePercent", dbl2longPerc(mem.getFreePercent()));
+		m.put("UsedPercent", dbl2longPerc(mem.getUsedPercent()));
+		return m;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getSwap()
+	 */
+	@Override
+	public Map<String, Long> getSwap() {
+		Swap swap = hsigar.getSwap();
+		long total = swap.getTotal();
+		long free = swap.getFree();
+		long used = swap.getUsed();
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		m.put("Total", total);
+		m.put("Free", free);
+		m.put("Used", used);
+		m.put("FreePercent", percent(total, free));
+		m.put("UsedPercent", percent(total, used));
+		m.put("PageIn", swap.getPageIn());
+		m.put("PageOut", swap.getPageOut());
+		return m;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getTcp()
+	 */
+	@Override
+	public Map<String, Long> getTcp() {
+		Tcp tcp = hsigar.getTcp();
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		m.put("Opens", tcp.getActiveOpens());
+		m.put("Fails", tcp.getAttemptFails());
+		m.put("Established", tcp.getCurrEstab());
+		m.put("Resets", tcp.getEstabResets());
+		m.put("InErrors", tcp.getInErrs());
+		m.put("InSegs", tcp.getInSegs());
+		m.put("OutResets", tcp.getOutRsts());
+		m.put("OutSegs", tcp.getOutSegs());
+		m.put("PassiveOpens", tcp.getPassiveOpens());
+		m.put("RetransSegs", tcp.getRetransSegs());
+		return m;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getNetstat()
+	 */
+	@Override
+	public Map<String, Long> getNetstat() {
+		NetStat net = hsigar.getNetStat();
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		m.put("Inbound", (long)net.getAllInboundTotal());
+		m.put("Outbound", (long)net.getAllOutboundTotal());
+		m.put("TcpBound", (long)net.getTcpBound());
+		m.put("TcpClose", (long)net.getTcpClose());
+		m.put("TcpCloseWait", (long)net.getTcpCloseWait());
+		m.put("TcpClosing", (long)net.getTcpClosing());
+		m.put("TcpEstablished", (long)net.getTcpEstablished());
+		m.put("TcpFinWait1", (long)net.getTcpFinWait1());
+		m.put("TcpFinWait2", (long)net.getTcpFinWait2());
+		m.put("TcpIdle", (long)net.getTcpIdle());
+		m.put("TcpInbound", (long)net.getTcpInboundTotal());
+		m.put("TcpOutbound", (long)net.getTcpOutboundTotal());
+		m.put("TcpLastAck", (long)net.getTcpLastAck());
+		m.put("TcpListen", (long)net.getTcpListen());
+		m.put("TcpSynRecv", (long)net.getTcpSynRecv());
+		m.put("TcpSynSent", (long)net.getTcpSynSent());
+		m.put("TcpTimeWait", (long)net.getTcpTimeWait());
+		return m;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getProcessStats()
+	 */
+	@Override
+	public Map<String, Long> getProcessStats() {
+		ProcStat ps = hsigar.getProcStat();
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		m.put("Idle", ps.getIdle());
+		m.put("Running", ps.getRunning());
+		m.put("Sleeping", ps.getSleeping());
+		m.put("Stopped", ps.getStopped());
+		m.put("Threads", ps.getThreads());
+		m.put("Total", ps.getTotal());
+		m.put("Zombie", ps.getZombie());
+		return m;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getProcessCpu()
+	 */
+	@Override
+	public Map<String, Long> getProcessCpu() {
+		ProcCpu procCpu = hsigar.getProcCpu(hsigar.pid);
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		m.put("System", procCpu.getSys());
+		m.put("Total", procCpu.getTotal());
+		m.put("User", procCpu.getUser());
+		m.put("PercentUsage", dbl2longPerc(procCpu.getPercent()));
+		return m;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.monitor.nativex.NativeStatsSource#getProcessMem()
+	 */
+	@Override
+	public Map<String, Long> getProcessMem() {
+		ProcMem pmem = hsigar.getProcMem(hsigar.pid);
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		m.put("MajorFaults", pmem.getMajorFaults());
+		m.put("MinorFaults", pmem.getMinorFaults());
+		m.put("PageFaults", pmem.getPageFaults());
+		m.put("Resident", pmem.getResident());
+		if(!NativeMonitor.isWindows) m.put("Shared", pmem.getShare());
+		m.put("Size", pmem.getSize());
+		m.put("OpenFileDescriptors", hsigar.getProcFd(hsigar.pid).getTotal());
+		return m;
+	}
+}
@@ -0,0 +1,483 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.monitor.script;
+
+import org.helios.apmrouter.jmx.JMXHelper;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Title: JMXQueryPlan</p>
+ * <p>Description: A compiled, reusable form of a {@link JMXScriptRequest}. The plan resolves the target {@link ObjectName} pattern
+ * once and then keeps the matching set current from the {@link MBeanServerDelegate} registration notifications, so a script monitor
+ * firing every cycle no longer issues a <code>queryNames</code> per request. The attribute and composite paths are pre-split into a single
+ * <code>getAttributes</code> name array, and the per-MBean descriptors (domain and key properties) are recycled between cycles.</p> 
+ * <p>Plans are cached by the request's signature, so equal requests issued from different scripts, or re-parsed from a new native object
+ * on every invocation, share one plan. Caching can be disabled with the system property {@link #PLAN_CACHE_PROP}, in which case a transient
+ * plan is compiled and queried on every call.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.monitor.script.JMXQueryPlan</code></p>
+ */
+
+public class JMXQueryPlan implements NotificationListener {
+	/** The system property that enables or disables the plan cache */
+	public static final String PLAN_CACHE_PROP = "org.helios.apmrouter.jmx.script.plancache";
+	/** The system property defining the maximum number of cached plans */
+	public static final String MAX_PLANS_PROP = "org.helios.apmrouter.jmx.script.maxplans";
+	/** The default maximum number of cached plans */
+	public static final int DEFAULT_MAX_PLANS = 1024;
+	/** The elapsed time in ms. after which an unused plan may be evicted when the cache is full */
+	public static final long IDLE_EVICTION_TIME = 300000L;
+	
+	/** The cached plans keyed by request signature */
+	private static final Map<String, JMXQueryPlan> plans = new ConcurrentHashMap<String, JMXQueryPlan>();
+	/** Indicates if plans are cached */
+	private static volatile boolean cachingEnabled = !"false".equalsIgnoreCase(System.getProperty(PLAN_CACHE_PROP, "true").trim());
+	/** The maximum number of cached plans */
+	private static final int maxPlans = Integer.getInteger(MAX_PLANS_PROP, DEFAULT_MAX_PLANS);
+	/** The number of plans compiled */
+	private static final AtomicLong compiledPlans = new AtomicLong(0L);
+	/** The number of plan cache hits */
+	private static final AtomicLong planHits = new AtomicLong(0L);
+	
+	/** The request this plan was compiled from */
+	protected final JMXScriptRequest request;
+	/** The MBeanServer the request targets */
+	protected final MBeanServerConnection conn;
+	/** The target ObjectName or pattern */
+	protected final ObjectName objectName;
+	/** The plain attribute names */
+	protected final Set<String> attributeNames;
+	/** The composite attribute paths, pre-split and trimmed, keyed by top level attribute name */
+	protected final Map<String, String[]> compositePaths;
+	/** The composite attribute paths as requested, used as the result keys, keyed by top level attribute name */
+	protected final Map<String, String[]> compositeKeys;
+	/** The combined attribute names passed to <code>getAttributes</code> */
+	protected final String[] allNames;
+	/** The recycled per-MBean descriptors, live maintained for patterns if {@link #tracking} is true */
+	protected final Map<ObjectName, MBeanSlot> slots = new ConcurrentHashMap<ObjectName, MBeanSlot>();
+	/** Indicates the plan is tracking registrations rather than querying per cycle */
+	protected volatile boolean tracking = false;
+	/** The timestamp of the last execution */
+	protected volatile long lastUsed = System.currentTimeMillis();
+	
+	/**
+	 * Returns the plan for the passed request, compiling and caching a new one if necessary
+	 * @param request The request to get a plan for
+	 * @return the plan for the request
+	 */
+	public static JMXQueryPlan getPlan(JMXScriptRequest request) {
+		if(request==null) throw new IllegalArgumentException("The passed request was null", new Throwable());
+		if(!cachingEnabled) {
+			return new JMXQueryPlan(request, false);
+		}
+		String key = signature(request);
+		JMXQueryPlan plan = plans.get(key);
+		if(plan!=null) {
+			planHits.incrementAndGet();
+			return plan;
+		}
+		synchronized(plans) {
+			plan = plans.get(key);
+			if(plan==null) {
+				if(plans.size()>=maxPlans) {
+					evictIdle(IDLE_EVICTION_TIME);
+				}
+				plan = new JMXQueryPlan(request, plans.size()<maxPlans);
+				if(plan.tracking) {
+					plans.put(key, plan);
+				}
+			} else {
+				planHits.incrementAndGet();
+			}
+		}
+		return plan;
+	}
+	
+	/**
+	 * Evicts cached plans that have not been executed in the passed period
+	 * @param idleTime The idle time in ms.
+	 * @return the number of plans evicted
+	 */
+	public static int evictIdle(long idleTime) {
+		int evicted = 0;
+		long cutoff = System.currentTimeMillis() - idleTime;
+		synchronized(plans) {
+			for(Iterator<JMXQueryPlan> iter = plans.values().iterator(); iter.hasNext();) {
+				JMXQueryPlan plan = iter.next();
+				if(plan.lastUsed < cutoff) {
+					iter.remove();
+					plan.close();
+					evicted++;
+				}
+			}
+		}
+		return evicted;
+	}
+	
+	/**
+	 * Closes and removes all the cached plans
+	 */
+	public static void clear() {
+		evictIdle(Long.MIN_VALUE/2);
+	}
+	
+	/**
+	 * Enables or disables plan caching. Disabling clears the cache.
+	 * @param enabled true to enable, false to disable
+	 */
+	public static void setCachingEnabled(boolean enabled) {
+		cachingEnabled = enabled;
+		if(!enabled) clear();
+	}
+	
+	/**
+	 * Indicates if plan caching is enabled
+	 * @return true if plan caching is enabled
+	 */
+	public static boolean isCachingEnabled() {
+		return cachingEnabled;
+	}
+	
+	/**
+	 * Returns the number of cached plans
+	 * @return the number of cached plans
+	 */
+	public static int getCachedPlanCount() {
+		return plans.size();
+	}
+	
+	/**
+	 * Returns the number of plans compiled
+	 * @return the number of plans compiled
+	 */
+	public static long getCompiledPlanCount() {
+		return compiledPlans.get();
+	}
+	
+	/**
+	 * Returns the number of plan cache hits
+	 * @return the number of plan cache hits
+	 */
+	public static long getPlanHitCount() {
+		return planHits.get();
+	}
+	
+	/**
+	 * Builds the cache key for the passed request.
+	 * Note that {@link JMXScriptRequest#hashCode()} cannot be used since the composite paths are arrays.
+	 * The composite paths are not trimmed since results are keyed by the paths exactly as requested.
+	 * @param request The request
+	 * @return the request signature
+	 */
+	protected static String signature(JMXScriptRequest request) {
+		StringBuilder b = new StringBuilder();
+		b.append(request.mbeanServerName==null ? "" : request.mbeanServerName.trim()).append('|').append(request.objectName).append('|');
+		String[] attrs = request.attributeNames.clone();
+		Arrays.sort(attrs);
+		for(String s: attrs) {
+			b.append(s).append(',');
+		}
+		b.append('|');
+		for(String s: new TreeSet<String>(request.compositeNames.keySet())) {
+			b.append(s).append('=');
+			for(String p: request.compositeNames.get(s)) {
+				b.append(p).append('/');
+			}
+			b.append(',');
+		}
+		return b.toString();
+	}
+	
+	/**
+	 * Creates a new JMXQueryPlan
+	 * @param request The request to compile
+	 * @param track true to resolve the ObjectName set once and track registrations, false to query on each execution
+	 */
+	protected JMXQueryPlan(JMXScriptRequest request, boolean track) {
+		this.request = request;
+		conn = request.getMBeanServerConnection();
+		objectName = JMXHelper.objectName(request.objectName);
+		attributeNames = new LinkedHashSet<String>(Arrays.asList(request.attributeNames));
+		Map<String, String[]> paths = new HashMap<String, String[]>(request.compositeNames.size());
+		Map<String, String[]> keys = new HashMap<String, String[]>(request.compositeNames.size());
+		for(Map.Entry<String, String[]> entry: request.compositeNames.entrySet()) {
+			String[] path = new String[entry.getValue().length];
+			for(int i = 0; i < path.length; i++) {
+				path[i] = entry.getValue()[i].trim();
+			}
+			paths.put(entry.getKey(), path);
+			keys.put(entry.getKey(), entry.getValue().clone());
+			attributeNames.remove(entry.getKey());
+		}
+		compositePaths = Collections.unmodifiableMap(paths);
+		compositeKeys = Collections.unmodifiableMap(keys);
+		Set<String> names = new LinkedHashSet<String>(attributeNames);
+		names.addAll(compositePaths.keySet());
+		allNames = names.toArray(new String[names.size()]);
+		compiledPlans.incrementAndGet();
+		if(track && objectName.isPattern()) {
+			try {
+				// Listen first so no registration between the query and the subscription is missed
+				conn.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, new RegistrationFilter(objectName), null);
+				tracking = true;
+				for(ObjectName on: conn.queryNames(objectName, null)) {
+					slot(on);
+				}
+			} catch (Exception ex) {
+				tracking = false;
+				slots.clear();
+			}
+		} else if(!objectName.isPattern()) {
+			tracking = track;
+			slot(objectName);
+		}
+	}
+	
+	/**
+	 * Returns the ObjectNames this plan currently resolves to
+	 * @return a collection of ObjectNames
+	 * @throws Exception thrown on any error querying the MBeanServer
+	 */
+	public Collection<ObjectName> resolve() throws Exception {
+		lastUsed = System.currentTimeMillis();
+		if(tracking || !objectName.isPattern()) {
+			return slots.keySet();
+		}
+		return conn.queryNames(objectName, null);
+	}
+	
+	/**
+	 * Executes this plan, appending one result entry per resolved MBean to the passed array
+	 * @param entries The array to append the result entries to
+	 * @throws Exception thrown on any error querying the MBeanServer
+	 */
+	public void execute(JSONArray entries) throws Exception {
+		if(allNames.length<1) return;
+		for(ObjectName on: resolve()) {
+			MBeanSlot slot = slot(on);
+			JSONObject data = new JSONObject();
+			AttributeList attrs = conn.getAttributes(on, allNames);
+			for(Attribute attr: attrs.asList()) {
+				String name = attr.getName();
+				Object value = attr.getValue();
+				String[] path = compositePaths.get(name);
+				if(path==null) {
+					data.put(name, value);
+				} else if(value!=null) {
+					if(value instanceof CompositeData || value instanceof TabularData) {
+						JMXScriptHelper.insertCompositeResult(data, name, compositeKeys.get(name), walk(value, path));
+					} else {
+						data.put(name, value);
+					}
+				}
+			}
+			Map<String, Object> map = new HashMap<String, Object>(3);
+			map.put("d", slot.domain);
+			map.put("p", slot.keyProperties);
+			if(data.length()>0) {
+				map.put("data", data);
+			}
+			entries.put(new JSONObject(map));
+		}
+	}
+	
+	/**
+	 * Reads the plan's attributes from the passed MBean into a name/value map
+	 * @param on The ObjectName of the MBean to read from
+	 * @return a map of the attribute values keyed by attribute name
+	 * @throws Exception thrown on any error querying the MBeanServer
+	 */
+	public Map<String, Object> read(ObjectName on) throws Exception {
+		AttributeList attrs = conn.getAttributes(on, allNames);
+		Map<String, Object> attrMap = new HashMap<String, Object>(attrs.size());
+		for(Attribute attr: attrs.asList()) {
+			attrMap.put(attr.getName(), attr.getValue());
+		}
+		return attrMap;
+	}
+	
+	/**
+	 * Walks the pre-split composite path of the passed value
+	 * @param value The composite or tabular value
+	 * @param path The path to walk
+	 * @return the located value
+	 */
+	protected static Object walk(Object value, String[] path) {
+		for(int i = 0; i < path.length; i++) {
+			String cKey = path[i];
+			if(i==path.length-1 && "*".equals(cKey)) {
+				value = JMXScriptHelper.getNext(value);
+			} else if(!"*".equals(cKey)) {
+				value = JMXScriptHelper.getNext(value, cKey);
+			}
+		}
+		return value;
+	}
+	
+	/**
+	 * Returns the recycled slot for the passed ObjectName, creating it if necessary
+	 * @param on The ObjectName
+	 * @return the slot
+	 */
+	protected MBeanSlot slot(ObjectName on) {
+		MBeanSlot slot = slots.get(on);
+		if(slot==null) {
+			slot = new MBeanSlot(on);
+			if(tracking || !objectName.isPattern()) {
+				slots.put(on, slot);
+			}
+		}
+		return slot;
+	}
+	
+	/**
+	 * Detaches this plan from the MBeanServer's registration notifications
+	 */
+	public void close() {
+		if(tracking && objectName.isPattern()) {
+			try { conn.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this); } catch (Exception ex) {/* No Op */}
+		}
+		tracking = false;
+		slots.clear();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see javax.management.NotificationListener#handleNotification(javax.management.Notification, java.lang.Object)
+	 */
+	@Override
+	public void handleNotification(Notification notification, Object handback) {
+		if(!(notification instanceof MBeanServerNotification)) return;
+		ObjectName on = ((MBeanServerNotification)notification).getMBeanName();
+		if(!objectName.apply(on)) return;
+		if(MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) {
+			slot(on);
+		} else if(MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType())) {
+			slots.remove(on);
+		}
+	}
+	
+	/**
+	 * Returns the request this plan was compiled from
+	 * @return the request
+	 */
+	public JMXScriptRequest getRequest() {
+		return request;
+	}
+	
+	/**
+	 * Indicates if this plan is tracking registrations
+	 * @return true if this plan is tracking registrations, false if it queries on each execution
+	 */
+	public boolean isTracking() {
+		return tracking;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "JMXQueryPlan [" + request.objectName + ", names:" + Arrays.toString(allNames) + ", tracking:" + tracking + ", mbeans:" + slots.size() + "]";
+	}
+	
+	/**
+	 * <p>Title: MBeanSlot</p>
+	 * <p>Description: The recycled, immutable per-MBean part of a plan's results</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>org.helios.apmrouter.monitor.script.JMXQueryPlan.MBeanSlot</code></p>
+	 */
+	public static class MBeanSlot {
+		/** The MBean's ObjectName */
+		public final ObjectName objectName;
+		/** The MBean's domain */
+		public final String domain;
+		/** The MBean's key properties */
+		public final Map<String, String> keys;
+		/** The MBean's key properties as JSON */
+		public final JSONObject keyProperties;
+		
+		/**
+		 * Creates a new MBeanSlot
+		 * @param objectName The MBean's ObjectName
+		 */
+		MBeanSlot(ObjectName objectName) {
+			this.objectName = objectName;
+			domain = objectName.getDomain();
+			keys = Collections.unmodifiableMap(new HashMap<String, String>(objectName.getKeyPropertyList()));
+			keyProperties = new JSONObject(keys);
+		}
+	}
+	
+	/**
+	 * <p>Title: RegistrationFilter</p>
+	 * <p>Description: Filters MBeanServerDelegate notifications down to registrations matching a plan's pattern</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>org.helios.apmrouter.monitor.script.JMXQueryPlan.RegistrationFilter</code></p>
+	 */
+	private static class RegistrationFilter implements NotificationFilter {
+		/**  */
+		private static final long serialVersionUID = -6436427004961727426L;
+		/** The pattern to match */
+		private final ObjectName pattern;
+		
+		/**
+		 * Creates a new RegistrationFilter
+		 * @param pattern The pattern to match
+		 */
+		RegistrationFilter(ObjectName pattern) {
+			this.pattern = pattern;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see javax.management.NotificationFilter#isNotificationEnabled(javax.management.Notification)
+		 */
+		@Override
+		public boolean isNotificationEnabled(Notification notification) {
+			return notification instanceof MBeanServerNotification && pattern.apply(((MBeanServerNotification)notification).getMBeanName());
+		}
+	}
+}
@@ -32,8 +32,6 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import javax.management.Attribute;
-import javax.management.AttributeList;
 import javax.management.MBeanServerConnection;
 import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
@@ -268,26 +266,14 @@ public class JMXScriptHelper {
 			Map<String, List<Object>> accumulator = new HashMap<String, List<Object>>();
 			for(JMXScriptRequest req: calc.jmxRequests) {
 				try {
-					MBeanServerConnection conn = req.getMBeanServerConnection();
-					ObjectName on = JMXHelper.objectName(req.objectName);
-					Set<ObjectName> objectNames = new HashSet<ObjectName>();
-					if(!on.isPattern()) {
-						objectNames.add(on);
-					} else {
-						objectNames.addAll(conn.queryNames(on, null));  // TODO: Support exprs ?
-					}
-					 
-					for(ObjectName objectName: objectNames) {
-						Map<String, String> objectNameKeys = objectName.getKeyPropertyList();
+					JMXQueryPlan plan = JMXQueryPlan.getPlan(req);
+					for(ObjectName objectName: plan.resolve()) {
+						Map<String, String> objectNameKeys = plan.slot(objectName).keys;
 						Map<String, String> keys = new HashMap<String, String>(calc.xParams.size() + objectNameKeys.size());
 						keys.putAll(calc.xParams); keys.putAll(objectNameKeys);
 						String calcKey = buildCalcKey(keys, calc.group);
 						if(calcKey==null) calcKey = calc.aggregateFunction.name();
-						AttributeList attrs = conn.getAttributes(objectName, req.attributeNames);
-						Map<String, Object> attrMap = new HashMap<String, Object>(attrs.size());
-						for(Attribute attr: attrs.asList()) {
-							attrMap.put(attr.getName(), attr.getValue());
-						}
+						Map<String, Object> attrMap = plan.read(objectName);
 						for(String attrName: req.attributeNames) {
 							Object value = attrMap.get(attrName);
 							if(value!=null) {
@@ -299,9 +285,7 @@ public class JMXScriptHelper {
 								objList.add(value);
 							}
 						}
-
 					}
-				
 				} catch (Exception ex) {
 					ex.printStackTrace(System.err);
 				}
@@ -335,82 +319,43 @@ public class JMXScriptHelper {
 			throw new IllegalArgumentException("The passed object was null", new Throwable());
 		}
 		try {
-			final JSONObject result = new JSONObject();
-			final JSONArray entries = new JSONArray();
-			final JSONArray errors = new JSONArray();
-				result.put("results", entries);
-			
-			JMXScriptRequest[] jmxRequests = JSONNativeizer.fromNative(requests);
-			for(JMXScriptRequest req : jmxRequests) {
-				if(req.attributeNames.length<1 && req.compositeNames.isEmpty()) continue;
-				try {
-					MBeanServerConnection conn = req.getMBeanServerConnection();
-					ObjectName on = JMXHelper.objectName(req.objectName);
-					Set<ObjectName> objectNames = new HashSet<ObjectName>();
-					if(!on.isPattern()) {
-						objectNames.add(on);
-					} else {
-						objectNames.addAll(conn.queryNames(on, null));  // TODO: Support exprs ?
-					}
-					
-					for(ObjectName objectName: objectNames) {
-						JSONObject data = new JSONObject();
-						Map<String, Object> map = new HashMap<String, Object>();
-						map.put("d", objectName.getDomain());
-						map.put("p", new JSONObject(objectName.getKeyPropertyList()));
-						 
-						AttributeList attrs = conn.getAttributes(objectName, req.attributeNames);
-						for(Attribute attr: attrs.asList()) {
-							data.put(attr.getName(), attr.getValue());
-						}
-						attrs = conn.getAttributes(objectName, req.compositeNames.keySet().toArray(new String[0]));
-						for(Attribute attr: attrs.asList()) {
-							if(attr.getValue()==null) continue;
-							String[] path = req.compositeNames.get(attr.getName());						
-							if(attr.getValue() instanceof CompositeData || attr.getValue() instanceof TabularData) {							
-								Object value = attr.getValue();
-								for(int i = 0; i < path.length; i++) {
-									String cKey = path[i].trim();
-									if(i==path.length-1 && "*".equals(cKey)) {
-										value = getNext(value);
-									} else {
-										if("*".equals(cKey)) {
-											/* TODO: Figure out how to implement this */
-										} else {
-											value = getNext(value, cKey);
-										}
-									}
-								}
-								insertCompositeResult(data, attr.getName(), path, value); 							
-							} else {
-								data.put(attr.getName(), attr.getValue());
-							}
-						}			
-						if(data.length()>0) {
-							map.put("data", data);
-						}
-						entries.put(new JSONObject(map));
-					}
-				} catch (Exception ex) {
-					Map<String, Object> errMap = new HashMap<String, Object>(2);
-					errMap.put("req", req.toJSON());
-					errMap.put("ex", ex.toString());
-					JSONObject err = new JSONObject(errMap);
-					errors.put(err);
-					ex.printStackTrace(System.err);
-				}
-			}
-			if(errors.length()>0) {
-				result.put("errs", errors); 
-			}
-			//log(result.toString(2));
-			return JSONNativeizer.toNative(result);
+			return JSONNativeizer.toNative(getAttributes(JSONNativeizer.fromNative(requests)));
 		} catch (Exception ex) {
 			ex.printStackTrace(System.err);
 			return null;
 		}
 	}
 	
+	/**
+	 * Executes the cached {@link JMXQueryPlan}s for the passed JMX requests
+	 * @param jmxRequests the JMX requests
+	 * @return The JSON result object
+	 * @throws JSONException thrown on any json exception
+	 */
+	public static JSONObject getAttributes(JMXScriptRequest...jmxRequests) throws JSONException {
+		final JSONObject result = new JSONObject();
+		final JSONArray entries = new JSONArray();
+		final JSONArray errors = new JSONArray();
+		result.put("results", entries);
+		for(JMXScriptRequest req : jmxRequests) {
+			if(req.attributeNames.length<1 && req.compositeNames.isEmpty()) continue;
+			try {
+				JMXQueryPlan.getPlan(req).execute(entries);
+			} catch (Exception ex) {
+				Map<String, Object> errMap = new HashMap<String, Object>(2);
+				errMap.put("req", req.toJSON());
+				errMap.put("ex", ex.toString());
+				JSONObject err = new JSONObject(errMap);
+				errors.put(err);
+				ex.printStackTrace(System.err);
+			}
+		}
+		if(errors.length()>0) {
+			result.put("errs", errors); 
+		}
+		return result;
+	}
+	
 	protected void processCalculators(final Collection<JMXCalculator> calculators, final JSONObject results, final MBeanServerConnection conn, final ObjectName objectName) {
 		if(calculators.isEmpty()) return;
 		for(JMXCalculator calc: calculators) {
@@ -146,30 +146,13 @@ public class AttachService implements AttachServiceMBean, NotificationListener,
 	 */
 
 	/**
-	 * Registers all the located JVMs except this one.
+	 * Registers all the located JVMs except this one, attaching to them in parallel
+	 * and starting the periodic rescan that picks up new and departed JVMs.
+	 * @see JVMScanner
 	 */
 	public static void registerAll() {
 		if(!available) return;
-		for(VirtualMachineDescriptor vmd : VirtualMachineDescriptor.getVirtualMachineDescriptors()) {
-			if(JVM_ID.equals(vmd.id())) continue;
-			try {
-				final JVM jvm = new JVM(vmd);
-//				if(as.getLocalConnectorAddress()==null) {
-//					try { as.installManagementAgent(); } catch (Exception ex) {/* No Op */}
-//				}
-//				if(as.getLocalConnectorAddress()!=null) {
-//					try {
-//						JMXServiceURL surl = new JMXServiceURL(as.getLocalConnectorAddress());
-//						final JMXConnector connector = JMXConnectorFactory.connect(surl);
-//						connector.addConnectionNotificationListener(as, null, null );
-//						VMS.put(as, connector);
-//					} catch (Throwable ex) {/* No Op */}					
-//				}
-			} catch (Exception ex) {
-				SimpleLogger.error("Failed to register JVM [", vmd.id(), "]", ex);
-			}
-			
-		}
+		JVMScanner.getInstance().start();
 	}
 	
 	/**
@@ -161,6 +161,8 @@ public class JVM extends NotificationBroadcasterSupport implements JVMMBean {
 	protected final AtomicLong lastAttachTime = new AtomicLong(-1L); 
 	/** The most recent detach timestamp */
 	protected final AtomicLong lastDetachTime = new AtomicLong(-1L); 
+	/** The agent properties read when this JVM was attached */
+	protected final AtomicReference<Properties> attachedAgentProperties = new AtomicReference<Properties>(null);
 	
 	/**
 	 * Creates a new JVM
@@ -214,12 +216,13 @@ public class JVM extends NotificationBroadcasterSupport implements JVMMBean {
 			synchronized(descriptor) {
 				try {
 					virtualMachine = VirtualMachine.attach(descriptor);
+					attachedAgentProperties.set(virtualMachine.getAgentProperties());
 					attached.set(true);
 					lastAttachTime.set(System.currentTimeMillis());
 					jvmNotification(JVM_ATTACHED_NOTIF, "Attached to JVM [" + descriptor.displayName() + "/" + virtualMachine.id() + "]");
 				} catch (Throwable t) {
 					lastAttachException.set(t);
-					jvmNotification(JVM_ATTACH_EX_NOTIF, "JVM Attach Failed for [" + descriptor.displayName() + "/" + virtualMachine.id() + "]", t);					
+					jvmNotification(JVM_ATTACH_EX_NOTIF, "JVM Attach Failed for [" + descriptor.displayName() + "/" + descriptor.id() + "]", t);					
 					t.printStackTrace(System.err);
 				}
 			}
@@ -236,6 +239,7 @@ public class JVM extends NotificationBroadcasterSupport implements JVMMBean {
 			synchronized(descriptor) {
 				try { virtualMachine.detach(); } catch (Exception ex) {}
 				attached.set(false);
+				attachedAgentProperties.set(null);
 				lastDetachTime.set(System.currentTimeMillis());
 				jvmNotification(JVM_DETACHED_NOTIF, "JVM Detached [" + descriptor.displayName() + "/" + virtualMachine.id() + "]");
 				// use static descriptor to detect if JVM still exists.
@@ -244,6 +248,30 @@ public class JVM extends NotificationBroadcasterSupport implements JVMMBean {
 		}						
 	}
 	
+	/**
+	 * Detaches from this JVM and unregisters its MBean. Called when the JVM is no longer listed.
+	 */
+	public void dispose() {
+		detach();
+		try { JMXHelper.unregisterMBean(objectName); } catch (Exception ex) {/* No Op */}
+	}
+	
+	/**
+	 * Returns the agent property with the passed name, preferring the properties read when the JVM was attached
+	 * @param name The agent property name
+	 * @return the property value or null if not attached
+	 */
+	protected String getAttachedAgentProperty(String name) {
+		if(!attached.get()) return null;
+		Properties p = attachedAgentProperties.get();
+		if(p==null) {
+			p = getAgentProperties();
+			if(p==null) return null;
+			attachedAgentProperties.set(p);
+		}
+		return p.getProperty(name);
+	}
+	
 	/**
 	 * Tests the attach state of the JVM.
 	 * If the test fails, throws a RuntimeException and marks the JVM detached.
@@ -351,8 +379,7 @@ public class JVM extends NotificationBroadcasterSupport implements JVMMBean {
 	 */
 	@Override
 	public String getMainClass() {
-		if(!attached.get()) return null;
-		return virtualMachine.getAgentProperties().getProperty(JVM_MAIN_CLASS);
+		return getAttachedAgentProperty(JVM_MAIN_CLASS);
 	}
 
 
@@ -362,8 +389,7 @@ public class JVM extends NotificationBroadcasterSupport implements JVMMBean {
 	 */
 	@Override
 	public String getJavaVersion() {
-		if(!attached.get()) return null;
-		return virtualMachine.getAgentProperties().getProperty(JVM_JAVA_VERSION);
+		return getAttachedAgentProperty(JVM_JAVA_VERSION);
 	}
 
 
@@ -373,8 +399,7 @@ public class JVM extends NotificationBroadcasterSupport implements JVMMBean {
 	 */
 	@Override
 	public String getHeliosAgentName() {		
-		if(!attached.get()) return null;
-		return virtualMachine.getAgentProperties().getProperty(JVM_HELIOS_NAME);
+		return getAttachedAgentProperty(JVM_HELIOS_NAME);
 	}
 
 
@@ -0,0 +1,473 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.satellite.services.attach;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.helios.apmrouter.jmx.ConfigurationHelper;
+import org.helios.apmrouter.jmx.JMXHelper;
+import org.helios.apmrouter.util.SimpleLogger;
+import org.helios.vm.VirtualMachineDescriptor;
+
+/**
+ * <p>Title: JVMScanner</p>
+ * <p>Description: Discovers the local JVMs and attaches to new ones in parallel through a bounded worker pool.
+ * The {@link JVM} instances are retained between scans keyed by their id, so each scan only attaches to PIDs it has not seen before
+ * and disposes of the ones that are no longer listed. The attaches of a scan share one deadline so a hung target cannot stall the scan,
+ * and an attach still running after a bounded number of rescans is cancelled and its JVM is not attached again until it is relisted.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.satellite.services.attach.JVMScanner</code></p>
+ */
+
+public class JVMScanner implements JVMScannerMBean {
+	/** The singleton instance */
+	private static volatile JVMScanner instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+	
+	/** The System prop/env variable override for the maximum number of concurrent attaches */
+	public static final String SCAN_THREADS_PROP = "org.helios.jvms.scan.threads";
+	/** The default maximum number of concurrent attaches */
+	public static final int DEFAULT_SCAN_THREADS = 8;
+	/** The System prop/env variable override for the per attach timeout in ms. */
+	public static final String ATTACH_TIMEOUT_PROP = "org.helios.jvms.scan.timeout";
+	/** The default per attach timeout in ms. */
+	public static final int DEFAULT_ATTACH_TIMEOUT = 5000;
+	/** The System prop/env variable override for the number of rescans a timed out attach is waited for before it is cancelled */
+	public static final String PENDING_SCANS_PROP = "org.helios.jvms.scan.pending";
+	/** The default number of rescans a timed out attach is waited for before it is cancelled */
+	public static final int DEFAULT_PENDING_SCANS = 3;
+	/** The System prop/env variable override for the rescan period in ms. A period of less than 1 disables rescans. */
+	public static final String SCAN_PERIOD_PROP = "org.helios.jvms.scan.period";
+	/** The default rescan period in ms. */
+	public static final int DEFAULT_SCAN_PERIOD = 30000;
+	/** The System prop/env variable override indicating if discovered JVMs should be attached */
+	public static final String SCAN_ATTACH_PROP = "org.helios.jvms.scan.attach";
+	/** The ObjectName of the scanner MBean */
+	public static final ObjectName OBJECT_NAME = JMXHelper.objectName("org.helios.jvms:service=JVMScanner");
+	
+	/** The known JVMs keyed by id */
+	protected final Map<String, JVM> jvms = new ConcurrentHashMap<String, JVM>();
+	/** The attaches that timed out in a previous scan and are still running, keyed by id */
+	protected final Map<String, PendingAttach> pending = new ConcurrentHashMap<String, PendingAttach>();
+	/** The ids of the JVMs whose attach was cancelled, which are not attached again while they are listed */
+	protected final Set<String> abandoned = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	/** The bounded attach worker pool, created by the first scan after construction or {@link #stop()} */
+	protected ThreadPoolExecutor attachPool = null;
+	/** The rescan scheduler */
+	protected ScheduledExecutorService scheduler = null;
+	/** The maximum number of concurrent attaches */
+	protected final int maxConcurrentAttaches;
+	/** The per attach timeout in ms. */
+	protected final long attachTimeout;
+	/** The number of rescans a timed out attach is waited for before it is cancelled */
+	protected final int maxPendingScans;
+	/** The rescan period in ms. */
+	protected final long scanPeriod;
+	/** Indicates if discovered JVMs are attached */
+	protected final boolean attachOnDiscovery;
+	/** The id of this JVM, which is never attached */
+	protected final String selfId;
+	
+	/** The number of completed scans */
+	protected final AtomicLong scanCount = new AtomicLong(0L);
+	/** The elapsed time of the last scan */
+	protected final AtomicLong lastScanTime = new AtomicLong(-1L);
+	/** The number of attaches made */
+	protected final AtomicLong attachCount = new AtomicLong(0L);
+	/** The number of attaches that timed out */
+	protected final AtomicLong attachTimeouts = new AtomicLong(0L);
+	/** The number of attaches that failed */
+	protected final AtomicLong attachFailures = new AtomicLong(0L);
+	
+	/**
+	 * Acquires the JVMScanner singleton instance
+	 * @return the JVMScanner singleton instance
+	 */
+	public static JVMScanner getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new JVMScanner(
+							ConfigurationHelper.getIntSystemThenEnvProperty(SCAN_THREADS_PROP, DEFAULT_SCAN_THREADS),
+							ConfigurationHelper.getIntSystemThenEnvProperty(ATTACH_TIMEOUT_PROP, DEFAULT_ATTACH_TIMEOUT),
+							ConfigurationHelper.getIntSystemThenEnvProperty(SCAN_PERIOD_PROP, DEFAULT_SCAN_PERIOD),
+							!"false".equalsIgnoreCase(ConfigurationHelper.getSystemThenEnvProperty(SCAN_ATTACH_PROP, "true").trim()),
+							ConfigurationHelper.getIntSystemThenEnvProperty(PENDING_SCANS_PROP, DEFAULT_PENDING_SCANS)
+					);
+					JMXHelper.registerMBean(instance, OBJECT_NAME);
+				}
+			}
+		}
+		return instance;
+	}
+	
+	/**
+	 * Creates a new JVMScanner
+	 * @param maxConcurrentAttaches The maximum number of concurrent attaches
+	 * @param attachTimeout The per attach timeout in ms.
+	 * @param scanPeriod The rescan period in ms.
+	 * @param attachOnDiscovery true to attach discovered JVMs, false to only register them
+	 */
+	public JVMScanner(int maxConcurrentAttaches, long attachTimeout, long scanPeriod, boolean attachOnDiscovery) {
+		this(maxConcurrentAttaches, attachTimeout, scanPeriod, attachOnDiscovery, DEFAULT_PENDING_SCANS);
+	}
+	
+	/**
+	 * Creates a new JVMScanner
+	 * @param maxConcurrentAttaches The maximum number of concurrent attaches
+	 * @param attachTimeout The per attach timeout in ms.
+	 * @param scanPeriod The rescan period in ms.
+	 * @param attachOnDiscovery true to attach discovered JVMs, false to only register them
+	 * @param maxPendingScans The number of rescans a timed out attach is waited for before it is cancelled
+	 */
+	public JVMScanner(int maxConcurrentAttaches, long attachTimeout, long scanPeriod, boolean attachOnDiscovery, int maxPendingScans) {
+		this.maxConcurrentAttaches = Math.max(1, maxConcurrentAttaches);
+		this.attachTimeout = attachTimeout;
+		this.maxPendingScans = Math.max(0, maxPendingScans);
+		this.scanPeriod = scanPeriod;
+		this.attachOnDiscovery = attachOnDiscovery;
+		selfId = AttachService.JVM_ID;
+	}
+	
+	/**
+	 * Creates the bounded attach worker pool
+	 * @return the attach worker pool
+	 */
+	protected ThreadPoolExecutor createAttachPool() {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrentAttaches, maxConcurrentAttaches, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory(){
+			private final AtomicInteger serial = new AtomicInteger(0);
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "JVMScannerThread#" + serial.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+	
+	/**
+	 * Creates the JVM for the passed descriptor and attaches it if {@link #attachOnDiscovery} is true.
+	 * Called on an attach worker thread.
+	 * @param vmd The descriptor of the discovered JVM
+	 * @return the JVM
+	 * @throws Exception thrown on any error creating the JVM
+	 */
+	protected JVM discover(VirtualMachineDescriptor vmd) throws Exception {
+		JVM jvm = new JVM(vmd);
+		if(attachOnDiscovery) {
+			jvm.attach();
+		}
+		return jvm;
+	}
+	
+	/**
+	 * Runs an initial scan and schedules the periodic rescans
+	 */
+	public synchronized void start() {
+		scan();
+		if(scanPeriod>0 && scheduler==null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "JVMScannerScheduler");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			scheduler.scheduleWithFixedDelay(new Runnable(){
+				@Override
+				public void run() {
+					try { scan(); } catch (Exception ex) {
+						SimpleLogger.error("JVM scan failed", ex);
+					}
+				}
+			}, scanPeriod, scanPeriod, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Stops the periodic rescans and the attach workers and disposes all the known JVMs. The scanner can be started or scanned again afterwards.
+	 */
+	public synchronized void stop() {
+		if(scheduler!=null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		if(attachPool!=null) {
+			attachPool.shutdownNow();
+			attachPool = null;
+		}
+		pending.clear();
+		abandoned.clear();
+		for(JVM jvm: jvms.values()) {
+			jvm.dispose();
+		}
+		jvms.clear();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.satellite.services.attach.JVMScannerMBean#scan()
+	 */
+	@Override
+	public synchronized int scan() {
+		long start = System.currentTimeMillis();
+		if(attachPool==null) {
+			attachPool = createAttachPool();
+		}
+		Set<String> liveIds = new HashSet<String>();
+		Map<String, Future<JVM>> discovered = new LinkedHashMap<String, Future<JVM>>();
+		for(final VirtualMachineDescriptor vmd : VirtualMachineDescriptor.getVirtualMachineDescriptors()) {
+			final String id = vmd.id();
+			liveIds.add(id);
+			if(selfId.equals(id) || jvms.containsKey(id) || discovered.containsKey(id) || abandoned.contains(id)) continue;
+			PendingAttach late = pending.get(id);
+			if(late!=null) {
+				// Harvest a timed out attach once it completes, but never start a second one for the same id
+				if(late.future.isDone()) {
+					pending.remove(id);
+					discovered.put(id, late.future);
+				} else if(++late.scans > maxPendingScans) {
+					// A hung attach holds a worker, so give up on it rather than let hung targets exhaust the pool
+					pending.remove(id);
+					late.future.cancel(true);
+					abandoned.add(id);
+					attachFailures.incrementAndGet();
+					SimpleLogger.warn("Cancelled attach to JVM [", id, "] still pending after [", maxPendingScans, "] rescans");
+				}
+				continue;
+			}
+			discovered.put(id, attachPool.submit(new Callable<JVM>() {
+				@Override
+				public JVM call() throws Exception {
+					JVM jvm = discover(vmd);
+					if(Thread.currentThread().isInterrupted()) {
+						// cancelled while attaching, so nothing will collect this JVM
+						jvm.dispose();
+						throw new InterruptedException("Attach to JVM [" + id + "] was cancelled");
+					}
+					if(attachOnDiscovery) {
+						attachCount.incrementAndGet();
+						if(!jvm.isAttached()) attachFailures.incrementAndGet();
+					}
+					return jvm;
+				}
+			}));
+		}
+		// Dispose the departed JVMs
+		for(Iterator<Map.Entry<String, JVM>> iter = jvms.entrySet().iterator(); iter.hasNext();) {
+			Map.Entry<String, JVM> entry = iter.next();
+			if(!liveIds.contains(entry.getKey())) {
+				iter.remove();
+				entry.getValue().dispose();
+			}
+		}
+		for(Iterator<Map.Entry<String, PendingAttach>> iter = pending.entrySet().iterator(); iter.hasNext();) {
+			Map.Entry<String, PendingAttach> entry = iter.next();
+			if(!liveIds.contains(entry.getKey())) {
+				iter.remove();
+				entry.getValue().future.cancel(true);
+			}
+		}
+		abandoned.retainAll(liveIds);
+		VirtualMachineDescriptor.retain(liveIds);
+		// Collect the new JVMs. All the attaches of this scan share one deadline, so the scan waits at most one timeout.
+		int added = 0;
+		List<String> timedOut = new ArrayList<String>();
+		final long deadline = System.currentTimeMillis() + attachTimeout;
+		for(Map.Entry<String, Future<JVM>> entry: discovered.entrySet()) {
+			try {
+				JVM jvm = entry.getValue().get(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				jvms.put(entry.getKey(), jvm);
+				added++;
+			} catch (TimeoutException tex) {
+				pending.put(entry.getKey(), new PendingAttach(entry.getValue()));
+				attachTimeouts.incrementAndGet();
+				timedOut.add(entry.getKey());
+			} catch (Exception ex) {
+				attachFailures.incrementAndGet();
+				SimpleLogger.warn("Failed to register JVM [", entry.getKey(), "]:", ex);
+			}
+		}
+		if(!timedOut.isEmpty()) {
+			SimpleLogger.warn("Attach timed out for JVMs ", timedOut, ". Will be collected on a later scan if they complete.");
+		}
+		lastScanTime.set(System.currentTimeMillis()-start);
+		scanCount.incrementAndGet();
+		return added;
+	}
+	
+	/**
+	 * <p>Title: PendingAttach</p>
+	 * <p>Description: An attach that timed out and the number of rescans it has been pending for</p> 
+	 */
+	protected static class PendingAttach {
+		/** The attach future */
+		final Future<JVM> future;
+		/** The number of rescans this attach has been pending for. Only accessed by the synchronized scan. */
+		int scans = 0;
+		
+		/**
+		 * Creates a new PendingAttach
+		 * @param future The attach future
+		 */
+		PendingAttach(Future<JVM> future) {
+			this.future = future;
+		}
+	}
+	
+	/**
+	 * Returns the known JVM with the passed id
+	 * @param id The JVM id
+	 * @return the JVM or null if it is not known
+	 */
+	public JVM getJVM(String id) {
+		return jvms.get(id);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.satellite.services.attach.JVMScannerMBean#getJVMIds()
+	 */
+	@Override
+	public Set<String> getJVMIds() {
+		return Collections.unmodifiableSet(new HashSet<String>(jvms.keySet()));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.satellite.services.attach.JVMScannerMBean#getJVMCount()
+	 */
+	@Override
+	public int getJVMCount() {
+		return jvms.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.satellite.services.attach.JVMScannerMBean#getScanCount()
+	 */
+	@Override
+	public long getScanCount() {
+		return scanCount.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.satellite.services.attach.JVMScannerMBean#getLastScanTime()
+	 */
+	@Override
+	public long getLastScanTime() {
+		return lastScanTime.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.satellite.services.attach.JVMScannerMBean#getAttachCount()
+	 */
+	@Override
+	public long getAttachCount() {
+		return attachCount.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.satellite.services.attach.JVMScannerMBean#getAttachTimeoutCount()
+	 */
+	@Override
+	public long getAttachTimeoutCount() {
+		return attachTimeouts.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.satellite.services.attach.JVMScannerMBean#getAttachFailureCount()
+	 */
+	@Override
+	public long getAttachFailureCount() {
+		return attachFailures.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.satellite.services.attach.JVMScannerMBean#getMaxPendingScans()
+	 */
+	@Override
+	public int getMaxPendingScans() {
+		return maxPendingScans;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.satellite.services.attach.JVMScannerMBean#getMaxConcurrentAttaches()
+	 */
+	@Override
+	public int getMaxConcurrentAttaches() {
+		return maxConcurrentAttaches;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.satellite.services.attach.JVMScannerMBean#getAttachTimeout()
+	 */
+	@Override
+	public long getAttachTimeout() {
+		return attachTimeout;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.satellite.services.attach.JVMScannerMBean#getScanPeriod()
+	 */
+	@Override
+	public long getScanPeriod() {
+		return scanPeriod;
+	}
+}
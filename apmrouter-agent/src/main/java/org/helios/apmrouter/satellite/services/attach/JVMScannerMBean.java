@@ -0,0 +1,109 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.satellite.services.attach;
+
+import java.util.Set;
+
+/**
+ * <p>Title: JVMScannerMBean</p>
+ * <p>Description: MBean interface for {@link JVMScanner}</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.satellite.services.attach.JVMScannerMBean</code></p>
+ */
+
+public interface JVMScannerMBean {
+	/**
+	 * Scans for new and departed JVMs
+	 * @return the number of newly discovered JVMs
+	 */
+	public int scan();
+	
+	/**
+	 * Returns the ids of the known JVMs
+	 * @return the ids of the known JVMs
+	 */
+	public Set<String> getJVMIds();
+	
+	/**
+	 * Returns the number of known JVMs
+	 * @return the number of known JVMs
+	 */
+	public int getJVMCount();
+	
+	/**
+	 * Returns the number of completed scans
+	 * @return the number of completed scans
+	 */
+	public long getScanCount();
+	
+	/**
+	 * Returns the elapsed time of the last scan in ms.
+	 * @return the elapsed time of the last scan in ms.
+	 */
+	public long getLastScanTime();
+	
+	/**
+	 * Returns the total number of attaches made
+	 * @return the total number of attaches made
+	 */
+	public long getAttachCount();
+	
+	/**
+	 * Returns the total number of attaches that timed out
+	 * @return the total number of attaches that timed out
+	 */
+	public long getAttachTimeoutCount();
+	
+	/**
+	 * Returns the total number of attaches that failed, including those cancelled after timing out
+	 * @return the total number of attaches that failed
+	 */
+	public long getAttachFailureCount();
+	
+	/**
+	 * Returns the number of rescans a timed out attach is waited for before it is cancelled
+	 * @return the number of rescans
+	 */
+	public int getMaxPendingScans();
+	
+	/**
+	 * Returns the maximum number of concurrent attaches
+	 * @return the maximum number of concurrent attaches
+	 */
+	public int getMaxConcurrentAttaches();
+	
+	/**
+	 * Returns the per attach timeout in ms.
+	 * @return the per attach timeout in ms.
+	 */
+	public long getAttachTimeout();
+	
+	/**
+	 * Returns the rescan period in ms.
+	 * @return the rescan period in ms.
+	 */
+	public long getScanPeriod();
+}
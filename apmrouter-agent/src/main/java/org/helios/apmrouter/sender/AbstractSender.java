@@ -127,7 +127,7 @@ public abstract class AbstractSender implements AbstractSenderMXBean, ISender,
 	protected ChannelGroup closeGroup = new DefaultChannelGroup("ShutDownGroup");
 
 	/** The server socket to send to */
-	protected InetSocketAddress socketAddress;
+	protected volatile InetSocketAddress socketAddress;
 	/** The server socket to listen on */
 	protected InetSocketAddress listeningSocketAddress;
 	/** The sender's scheduler */
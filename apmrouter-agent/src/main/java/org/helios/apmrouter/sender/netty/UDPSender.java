@@ -116,6 +116,12 @@ public class UDPSender extends AbstractSender  {
 							senderChannel.write(ping,e.getRemoteAddress());							
 							break;
 						case HELLO_CONFIRM:
+							if(buff.readableBytes()>=8) {
+								int basePort = buff.readInt(), socketCount = buff.readInt();
+								if(socketCount>1) selectSocket(basePort, socketCount);
+							}
+							int validTokens = metricCatalog.revalidateTokens(buff.readableBytes()>=8 ? buff.readLong() : 0L);
+							log("Revalidated [" + validTokens + "] metric tokens");
 							SynchOpSupport.cancelLatch("Hello");
 							break;
 						case WHO:
@@ -156,6 +162,30 @@ public class UDPSender extends AbstractSender  {
 	};
 	
 	
+	/**
+	 * Returns the index of the server socket an agent should send to
+	 * @param agentKey The agent's stable identity key
+	 * @param socketCount The number of server sockets
+	 * @return the socket index
+	 */
+	public static int socketIndex(String agentKey, int socketCount) {
+		if(socketCount<2) return 0;
+		return (agentKey.hashCode() & Integer.MAX_VALUE) % socketCount;
+	}
+	
+	/**
+	 * Selects the server socket to send to from the port range advertised by a multi-socket server
+	 * @param basePort The first port of the server's range
+	 * @param socketCount The number of server sockets
+	 */
+	protected void selectSocket(int basePort, int socketCount) {
+		int port = basePort + socketIndex(AgentIdentity.ID.getHostName() + ":" + AgentIdentity.ID.getAgentName(), socketCount);
+		if(port!=socketAddress.getPort()) {
+			socketAddress = new InetSocketAddress(socketAddress.getAddress(), port);
+			log("Server advertised [" + socketCount + "] sockets. Sending to [" + socketAddress + "]");
+		}
+	}
+	
 	/**
 	 * Executed when a disconnect is detected
 	 */
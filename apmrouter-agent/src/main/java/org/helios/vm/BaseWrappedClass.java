@@ -49,6 +49,8 @@ public abstract class BaseWrappedClass {
 	
 	/** The reflected class methods keyed by the standard method encoding name */
 	protected static final Map<Class<?>, Map<String, Method>> methodMap = new ConcurrentHashMap<Class<?>, Map<String, Method>>();
+	/** The method maps resolved for concrete delegate classes, so the type hierarchy is only climbed once per class */
+	protected static final Map<Class<?>, Map<String, Method>> resolvedMethodMap = new ConcurrentHashMap<Class<?>, Map<String, Method>>();
 	
 	/** Thread local to save (and restore) a calling thread's context classloader */
 	protected static final ThreadLocal<ClassLoader> savedState = new ThreadLocal<ClassLoader>();
@@ -113,11 +115,15 @@ public abstract class BaseWrappedClass {
 	 * @return The method map for the passed class
 	 */
 	protected static Map<String, Method> getMethodMap(Class<?> clazz) {
-		Map<String, Method> mMap = null;
+		Map<String, Method> mMap = resolvedMethodMap.get(clazz);
+		if(mMap!=null) return mMap;
 		Class<?> target = clazz;
 		while(!target.equals(Object.class)) {
 			mMap = methodMap.get(target);
-			if(mMap!=null) return mMap;
+			if(mMap!=null) {
+				resolvedMethodMap.put(clazz, mMap);
+				return mMap;
+			}
 			target = target.getSuperclass();
 		}
 		throw new IllegalArgumentException("No method map for delegate class [" + clazz.getName() + "]", new Throwable());
@@ -25,6 +25,8 @@
 package org.helios.vm;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -39,8 +41,8 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 
 public class VirtualMachineDescriptor extends BaseWrappedClass {
-	/** A map of machine descriptors delegates keyed by their system identity hash codes */
-	private static final Map<Integer, VirtualMachineDescriptor> vmdInstances = new ConcurrentHashMap<Integer, VirtualMachineDescriptor>();
+	/** A map of machine descriptors keyed by the virtual machine id, retained between listings */
+	private static final Map<String, VirtualMachineDescriptor> vmdInstances = new ConcurrentHashMap<String, VirtualMachineDescriptor>();
 
 	/**
 	 * Acquires the wrapped VirtualMachineDescriptor for the passed delegate
@@ -52,7 +54,7 @@ public class VirtualMachineDescriptor extends BaseWrappedClass {
 		if(!VirtualMachineBootstrap.getInstance().isInstanceOf(delegate, VirtualMachineBootstrap.VM_DESC_CLASS)) {
 			throw new IllegalArgumentException("The passed delegate of type [" + delegate.getClass().getName() + "] was not of the type [" + VirtualMachineBootstrap.VM_DESC_CLASS + "]", new Throwable());
 		}		
-		int id = System.identityHashCode(delegate);
+		String id = delegateId(delegate);
 		VirtualMachineDescriptor vmd = vmdInstances.get(id);
 		if(vmd==null) {
 			synchronized(vmdInstances) {
@@ -75,18 +77,7 @@ public class VirtualMachineDescriptor extends BaseWrappedClass {
 		try {
 			pushCl();
 			for(AttachProvider ap: AttachProvider.getAttachProviders()) {
-				for(VirtualMachineDescriptor vmd: ap.listVirtualMachines()) {
-					results.add(vmd);
-					int key = System.identityHashCode(vmd.delegate);
-					if(!vmdInstances.containsKey(key)) {
-						synchronized(vmdInstances) {
-							if(!vmdInstances.containsKey(key)) {
-								VirtualMachineDescriptor virtualMachineDescriptor = new VirtualMachineDescriptor(vmd);
-								vmdInstances.put(key, virtualMachineDescriptor);
-							}
-						}
-					}					
-				}
+				results.addAll(ap.listVirtualMachines());
 			}
 			return results;
 		} catch (Exception e) {
@@ -96,6 +87,36 @@ public class VirtualMachineDescriptor extends BaseWrappedClass {
 		}		
 	}
 	
+	/**
+	 * Discards the retained descriptors for virtual machines that are no longer listed
+	 * @param liveIds The ids of the virtual machines that are still listed
+	 * @return the number of descriptors discarded
+	 */
+	public static int retain(Collection<String> liveIds) {
+		int removed = 0;
+		for(Iterator<String> iter = vmdInstances.keySet().iterator(); iter.hasNext();) {
+			if(!liveIds.contains(iter.next())) {
+				iter.remove();
+				removed++;
+			}
+		}
+		return removed;
+	}
+	
+	/**
+	 * Returns the id of the passed VirtualMachineDescriptor delegate
+	 * @param delegate The VirtualMachineDescriptor delegate object
+	 * @return the virtual machine id
+	 */
+	private static String delegateId(Object delegate) {
+		try {
+			pushCl();
+			return (String)invoke(delegate, null, "id");
+		} finally {
+			popCl();
+		}
+	}
+	
 	/**
 	 * Return the identifier component of this descriptor. 
 	 * @return The identifier component of this descriptor.
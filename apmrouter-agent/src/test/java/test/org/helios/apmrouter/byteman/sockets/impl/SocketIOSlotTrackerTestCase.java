@@ -0,0 +1,332 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.apmrouter.byteman.sockets.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+
+import org.helios.apmrouter.byteman.sockets.impl.ISocketIOSlot;
+import org.helios.apmrouter.byteman.sockets.impl.ISocketImpl;
+import org.helios.apmrouter.byteman.sockets.impl.ISocketTracker;
+import org.helios.apmrouter.byteman.sockets.impl.SocketIOSlotTracker;
+import org.helios.apmrouter.byteman.sockets.impl.SocketImplTransformer;
+import org.helios.apmrouter.byteman.sockets.impl.SocketTrackingAdapter;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * <p>Title: SocketIOSlotTrackerTestCase</p>
+ * <p>Description: Verifies the stream slot weaving, and pushes data through many loopback sockets with and without the {@link SocketIOSlotTracker}
+ * installed, checking the harvested byte counts and comparing throughput. The instrumented streams are emulated with filter streams that call
+ * {@link SocketTrackingAdapter} exactly as the woven socket streams do, since the JDK stream classes cannot be redefined without an agent.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.apmrouter.byteman.sockets.impl.SocketIOSlotTrackerTestCase</code></p>
+ */
+public class SocketIOSlotTrackerTestCase {
+	/** The number of loopback socket pairs */
+	public static final int PAIRS = 32;
+	/** The number of bytes pushed through each socket */
+	public static final int BYTES_PER_SOCKET = 8 * 1024 * 1024;
+	/** The write chunk size */
+	public static final int CHUNK = 8192;
+	/** The number of timed rounds of each mode */
+	public static final int ROUNDS = 3;
+	
+	/** The tracker under test */
+	static SocketIOSlotTracker tracker = null;
+	/** The loopback server socket */
+	static ServerSocket serverSocket = null;
+	
+	/**
+	 * Installs the tracker with a harvester that will not run during the test
+	 * @throws Exception thrown on any error
+	 */
+	@BeforeClass
+	public static void installTracker() throws Exception {
+		System.setProperty(ISocketTracker.SOCKET_HARVESTER_PERIOD_PROP, "3600000");
+		tracker = new SocketIOSlotTracker();
+		serverSocket = new ServerSocket(0, PAIRS * 2, InetAddress.getByName("127.0.0.1"));
+	}
+	
+	/**
+	 * Uninstalls the tracker
+	 * @throws Exception thrown on any error
+	 */
+	@AfterClass
+	public static void uninstallTracker() throws Exception {
+		SocketTrackingAdapter.setISocketTracker(null);
+		System.clearProperty(ISocketTracker.SOCKET_HARVESTER_PERIOD_PROP);
+		serverSocket.close();
+	}
+	
+	/**
+	 * Verifies that the socket stream classes are woven with {@link ISocketIOSlot}
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testStreamWeaving() throws Exception {
+		SocketImplTransformer transformer = new SocketImplTransformer();
+		for(String className: new String[]{SocketImplTransformer.SOCKET_IS_BIN_NAME, SocketImplTransformer.SOCKET_OS_BIN_NAME}) {
+			byte[] original = readClass(className);
+			byte[] woven = transformer.transform(null, className, null, null, original);
+			CtClass ct = new ClassPool(true).makeClass(new ByteArrayInputStream(woven));
+			boolean found = false;
+			for(CtClass iface: ct.getInterfaces()) {
+				if(iface.getName().equals(ISocketIOSlot.class.getName())) found = true;
+			}
+			Assert.assertTrue("[" + className + "] not woven with ISocketIOSlot", found);
+			Assert.assertNotNull(ct.getDeclaredField(ISocketIOSlot.SLOT_FIELD));
+			Assert.assertNotNull(ct.getDeclaredMethod("getIOSlot"));
+		}
+	}
+	
+	/**
+	 * Pushes data through loopback sockets with and without the tracker and verifies the harvested counts
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testLoopbackThroughput() throws Exception {
+		long bestBaseline = Long.MAX_VALUE, bestTracked = Long.MAX_VALUE;
+		run(false); run(true);
+		for(int i = 0; i < ROUNDS; i++) {
+			bestBaseline = Math.min(bestBaseline, run(false));
+			bestTracked = Math.min(bestTracked, run(true));
+		}
+		double mb = (double)PAIRS * BYTES_PER_SOCKET / (1024 * 1024);
+		double baselineRate = mb / (bestBaseline / 1000000000D), trackedRate = mb / (bestTracked / 1000000000D);
+		log(String.format("Loopback throughput over %s sockets: baseline %.0f MB/s, tracked %.0f MB/s (%.1f%%)", PAIRS, baselineRate, trackedRate, trackedRate / baselineRate * 100));
+		Assert.assertTrue("Tracked throughput too low", trackedRate > baselineRate * 0.75);
+	}
+	
+	/**
+	 * Runs one round of pushing data through the loopback socket pairs
+	 * @param tracked true to run through the tracker, false for the uninstrumented baseline
+	 * @return the elapsed time of the round in ns.
+	 * @throws Exception thrown on any error
+	 */
+	protected long run(boolean tracked) throws Exception {
+		SocketTrackingAdapter.setISocketTracker(tracked ? tracker : null);
+		tracker.collect();
+		final Socket[] clients = new Socket[PAIRS], accepted = new Socket[PAIRS];
+		final ISocketImpl[] clientImpls = new ISocketImpl[PAIRS], acceptedImpls = new ISocketImpl[PAIRS];
+		final OutputStream[] outs = new OutputStream[PAIRS];
+		final InputStream[] ins = new InputStream[PAIRS];
+		for(int i = 0; i < PAIRS; i++) {
+			clients[i] = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+			accepted[i] = serverSocket.accept();
+			if(tracked) {
+				clientImpls[i] = socketImpl(clients[i]);
+				acceptedImpls[i] = socketImpl(accepted[i]);
+				SocketTrackingAdapter.onConnect(clientImpls[i], clients[i].getRemoteSocketAddress(), 0);
+				SocketTrackingAdapter.onAccept(null, acceptedImpls[i]);
+				outs[i] = new SlotOutputStream(clients[i].getOutputStream());
+				ins[i] = new SlotInputStream(accepted[i].getInputStream());
+				SocketTrackingAdapter.onGetOutputStream(clientImpls[i], outs[i]);
+				SocketTrackingAdapter.onGetInputStream(acceptedImpls[i], ins[i]);
+			} else {
+				outs[i] = clients[i].getOutputStream();
+				ins[i] = accepted[i].getInputStream();
+			}
+		}
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final CountDownLatch doneLatch = new CountDownLatch(PAIRS * 2);
+		for(int i = 0; i < PAIRS; i++) {
+			final OutputStream out = outs[i];
+			final InputStream in = ins[i];
+			new Thread("Writer#" + i) {
+				@Override
+				public void run() {
+					byte[] buff = new byte[CHUNK];
+					try {
+						startLatch.await();
+						for(int sent = 0; sent < BYTES_PER_SOCKET; sent += CHUNK) out.write(buff, 0, CHUNK);
+						out.flush();
+					} catch (Exception ex) {
+						ex.printStackTrace(System.err);
+					} finally {
+						doneLatch.countDown();
+					}
+				}
+			}.start();
+			new Thread("Reader#" + i) {
+				@Override
+				public void run() {
+					byte[] buff = new byte[CHUNK];
+					try {
+						startLatch.await();
+						int received = 0, read = 0;
+						while(received < BYTES_PER_SOCKET && (read = in.read(buff, 0, CHUNK))!=-1) received += read;
+					} catch (Exception ex) {
+						ex.printStackTrace(System.err);
+					} finally {
+						doneLatch.countDown();
+					}
+				}
+			}.start();
+		}
+		long start = System.nanoTime();
+		startLatch.countDown();
+		doneLatch.await();
+		long elapsed = System.nanoTime() - start;
+		if(tracked) {
+			Assert.assertEquals(PAIRS * 2, tracker.getTrackedSocketCount());
+			Map<String, long[]> deltas = tracker.collect();
+			long[] out = deltas.get("out/127.0.0.1/" + serverSocket.getLocalPort());
+			long[] in = deltas.get("in/" + serverSocket.getLocalPort() + "/127.0.0.1");
+			Assert.assertNotNull("No outbound endpoint deltas", out);
+			Assert.assertNotNull("No inbound endpoint deltas", in);
+			Assert.assertEquals((long)PAIRS * BYTES_PER_SOCKET, out[SocketIOSlotTracker.DELTA_BYTES_OUT]);
+			Assert.assertEquals((long)PAIRS * BYTES_PER_SOCKET / CHUNK, out[SocketIOSlotTracker.DELTA_WRITES]);
+			Assert.assertEquals((long)PAIRS * BYTES_PER_SOCKET, in[SocketIOSlotTracker.DELTA_BYTES_IN]);
+			Assert.assertTrue(in[SocketIOSlotTracker.DELTA_READS] >= PAIRS);
+		}
+		for(int i = 0; i < PAIRS; i++) {
+			if(tracked) {
+				// a final write after the collect is accounted to the closed socket's endpoint
+				outs[i].write(1);
+				SocketTrackingAdapter.onClose(clientImpls[i]);
+				SocketTrackingAdapter.onClose(acceptedImpls[i]);
+			}
+			clients[i].close();
+			accepted[i].close();
+		}
+		if(tracked) {
+			Assert.assertEquals(0, tracker.getTrackedSocketCount());
+			Map<String, long[]> deltas = tracker.collect();
+			Assert.assertEquals(PAIRS, deltas.get("out/127.0.0.1/" + serverSocket.getLocalPort())[SocketIOSlotTracker.DELTA_BYTES_OUT]);
+			Assert.assertTrue("Released slots were harvested twice", tracker.collect().isEmpty());
+		}
+		return elapsed;
+	}
+	
+	/**
+	 * Creates an {@link ISocketImpl} view of the passed socket
+	 * @param socket The socket
+	 * @return the ISocketImpl
+	 */
+	static ISocketImpl socketImpl(final Socket socket) {
+		return (ISocketImpl)Proxy.newProxyInstance(ISocketImpl.class.getClassLoader(), new Class[]{ISocketImpl.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if("getInetAddress".equals(name)) return socket.getInetAddress();
+				if("getPort".equals(name)) return socket.getPort();
+				if("getLocalPort".equals(name)) return socket.getLocalPort();
+				if("getSocket".equals(name)) return socket;
+				if("hashCode".equals(name)) return System.identityHashCode(proxy);
+				if("equals".equals(name)) return proxy==args[0];
+				if("toString".equals(name)) return "ISocketImpl[" + socket + "]";
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * <p>Title: SlotInputStream</p>
+	 * <p>Description: Emulates a woven socket input stream</p> 
+	 */
+	static class SlotInputStream extends FilterInputStream implements ISocketIOSlot {
+		/** The slot id */
+		private volatile int slot = -1;
+		SlotInputStream(InputStream in) { super(in); }
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = in.read(b, off, len);
+			SocketTrackingAdapter.onRead(this, read, null, b, off, len);
+			return read;
+		}
+		@Override
+		public int getIOSlot() { return slot; }
+		@Override
+		public void setIOSlot(int slot) { this.slot = slot; }
+	}
+	
+	/**
+	 * <p>Title: SlotOutputStream</p>
+	 * <p>Description: Emulates a woven socket output stream</p> 
+	 */
+	static class SlotOutputStream extends FilterOutputStream implements ISocketIOSlot {
+		/** The slot id */
+		private volatile int slot = -1;
+		SlotOutputStream(OutputStream out) { super(out); }
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			SocketTrackingAdapter.onSocketWrite(this, null, b, off, len);
+		}
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			SocketTrackingAdapter.onSocketWrite(this, null, null, 0, 1);
+		}
+		@Override
+		public int getIOSlot() { return slot; }
+		@Override
+		public void setIOSlot(int slot) { this.slot = slot; }
+	}
+	
+	/**
+	 * Reads the class file bytes of the named JDK class
+	 * @param binaryName The binary class name
+	 * @return the class file bytes
+	 * @throws IOException thrown on any I/O error
+	 */
+	static byte[] readClass(String binaryName) throws IOException {
+		InputStream is = ClassLoader.getSystemResourceAsStream(binaryName + ".class");
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buff = new byte[4096];
+		int read = -1;
+		while((read = is.read(buff))!=-1) baos.write(buff, 0, read);
+		is.close();
+		return baos.toByteArray();
+	}
+	
+	/**
+	 * Out printer
+	 * @param msg The message to print
+	 */
+	public static void log(Object msg) {
+		System.out.println(msg);
+	}
+}
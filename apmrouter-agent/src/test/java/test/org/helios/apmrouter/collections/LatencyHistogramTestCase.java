@@ -0,0 +1,163 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.apmrouter.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.helios.apmrouter.collections.LatencyHistogram;
+import org.helios.apmrouter.collections.LatencyHistogram.Snapshot;
+import org.junit.Test;
+
+/**
+ * <p>Title: LatencyHistogramTestCase</p>
+ * <p>Description: Test cases for {@link LatencyHistogram}</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.apmrouter.collections.LatencyHistogramTestCase</code></p>
+ */
+public class LatencyHistogramTestCase {
+
+	/**
+	 * Validates that every bucket's value range is contiguous with its neighbours and that values map into their bucket's range
+	 */
+	@Test
+	public void testBucketBoundaries() {
+		long prevHigh = -1;
+		for(int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+			long high = LatencyHistogram.bucketHighValue(i);
+			assertEquals("Bucket [" + i + "] low value", i, LatencyHistogram.bucketIndex(prevHigh + 1));
+			assertEquals("Bucket [" + i + "] high value", i, LatencyHistogram.bucketIndex(high));
+			assertTrue("Bucket [" + i + "] is not increasing", high > prevHigh);
+			prevHigh = high;
+		}
+		assertEquals("Last bucket high value", Long.MAX_VALUE, prevHigh);
+		assertEquals("Negative value bucket", 0, LatencyHistogram.bucketIndex(-5));
+	}
+	
+	/**
+	 * Validates the snapshot percentiles against exact percentiles of random values recorded from several threads
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testConcurrentPercentiles() throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram(Long.MAX_VALUE);
+		final int threads = 4, perThread = 100000;
+		final long[] all = new long[threads*perThread];
+		final Random r = new Random(42);
+		for(int i = 0; i < all.length; i++) {
+			// mostly fast, with a long tail
+			all[i] = r.nextInt(100)==0 ? 1000000 + r.nextInt(9000000) : 1000 + r.nextInt(50000);
+		}
+		final CountDownLatch latch = new CountDownLatch(threads);
+		for(int t = 0; t < threads; t++) {
+			final int offset = t*perThread;
+			new Thread("LatencyHistogramTestThread#" + t) {
+				public void run() {
+					for(int i = 0; i < perThread; i++) {
+						histogram.record(all[offset + i]);
+					}
+					latch.countDown();
+				}
+			}.start();
+		}
+		latch.await();
+		Snapshot snapshot = histogram.snapshot();
+		Arrays.sort(all);
+		long total = 0;
+		for(long v: all) total += v;
+		assertEquals("Count", all.length, snapshot.getCount());
+		assertEquals("Mean", total/all.length, snapshot.getMean());
+		assertEquals("Max", all[all.length-1], snapshot.getMax());
+		assertWithinPrecision("p50", all[(int)Math.ceil(all.length*0.5)-1], snapshot.getP50());
+		assertWithinPrecision("p99", all[(int)Math.ceil(all.length*0.99)-1], snapshot.getP99());
+		assertWithinPrecision("p99.9", all[(int)Math.ceil(all.length*0.999)-1], snapshot.getP999());
+		// the next interval is empty, and the recorders of the terminated threads are retired
+		Thread.sleep(100);
+		snapshot = histogram.snapshot();
+		assertEquals("Empty interval count", 0, snapshot.getCount());
+		assertEquals("Empty interval max", 0, snapshot.getMax());
+		assertEquals("Retired recorders", 0, histogram.getRecorderCount());
+		histogram.record(77);
+		snapshot = histogram.snapshot();
+		assertEquals("Count after retire", 1, snapshot.getCount());
+		assertEquals("p99.9 after retire", 77, snapshot.getP999());
+	}
+	
+	/**
+	 * Rolls snapshots while another thread records, and validates that no interval loses its maximum or reports a percentile
+	 * below the recorded value's bucket, and that every recorded value is counted in exactly one interval
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testRollWhileRecording() throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram(Long.MAX_VALUE);
+		final long value = 5000;
+		final long low = LatencyHistogram.bucketLowValue(LatencyHistogram.bucketIndex(value));
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicLong recorded = new AtomicLong(0);
+		Thread recorder = new Thread("LatencyHistogramRecorderThread") {
+			public void run() {
+				long count = 0;
+				while(running.get()) {
+					histogram.record(value);
+					count++;
+				}
+				recorded.set(count);
+			}
+		};
+		recorder.start();
+		long counted = 0;
+		for(int i = 0; i < 5000; i++) {
+			Snapshot snapshot = histogram.snapshot();
+			counted += snapshot.getCount();
+			if(snapshot.getCount()==0) continue;
+			assertTrue("Interval #" + i + " max [" + snapshot.getMax() + "] below [" + low + "]", snapshot.getMax() >= low);
+			assertTrue("Interval #" + i + " p50 [" + snapshot.getP50() + "] below [" + low + "]", snapshot.getP50() >= low);
+			assertTrue("Interval #" + i + " p99.9 [" + snapshot.getP999() + "] below [" + low + "]", snapshot.getP999() >= low);
+		}
+		running.set(false);
+		recorder.join();
+		counted += histogram.snapshot().getCount();
+		assertEquals("Counted values", recorded.get(), counted);
+	}
+	
+	/**
+	 * Asserts that the reported value is no lower than the exact value and within the bucket precision above it
+	 * @param name The assertion name
+	 * @param exact The exact value
+	 * @param reported The reported value
+	 */
+	protected static void assertWithinPrecision(String name, long exact, long reported) {
+		assertTrue(name + " reported [" + reported + "] lower than exact [" + exact + "]", reported >= exact);
+		assertTrue(name + " reported [" + reported + "] too far above exact [" + exact + "]", reported - exact <= exact / LatencyHistogram.SUB_BUCKETS);
+	}
+}
@@ -0,0 +1,210 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.apmrouter.jmx.threadinfo;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.helios.apmrouter.jmx.threadinfo.BusyThread;
+import org.helios.apmrouter.jmx.threadinfo.BusyThreadSampler;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * <p>Title: BusyThreadSamplerTestCase</p>
+ * <p>Description: Verifies the busy thread sampler finds spinning threads amongst thousands of parked threads and follows thread churn</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.apmrouter.jmx.threadinfo.BusyThreadSamplerTestCase</code></p>
+ */
+public class BusyThreadSamplerTestCase {
+	/** The number of parked threads */
+	static final int PARKED_THREADS = 2000;
+	/** The parked threads */
+	static final List<Thread> parked = new ArrayList<Thread>(PARKED_THREADS);
+	/** Indicates the parked threads should exit */
+	static volatile boolean stop = false;
+	/** The ThreadMXBean */
+	static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+	
+	/**
+	 * Starts the parked threads
+	 * @throws Exception thrown on any error
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		final CountDownLatch started = new CountDownLatch(PARKED_THREADS);
+		for(int i = 0; i < PARKED_THREADS; i++) {
+			Thread t = new Thread("ParkedThread#" + i) {
+				@Override
+				public void run() {
+					started.countDown();
+					while(!stop) {
+						LockSupport.park(this);
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+			parked.add(t);
+		}
+		Assert.assertTrue("Parked threads did not start", started.await(30, TimeUnit.SECONDS));
+	}
+	
+	/**
+	 * Releases the parked threads
+	 */
+	@AfterClass
+	public static void tearDownAfterClass() {
+		stop = true;
+		for(Thread t: parked) {
+			LockSupport.unpark(t);
+		}
+	}
+	
+	/**
+	 * <p>Title: Spinner</p>
+	 * <p>Description: A thread that burns cpu until stopped</p> 
+	 */
+	static class Spinner extends Thread {
+		/** Indicates the spinner should exit */
+		volatile boolean spin = true;
+		/** A sink for the spin loop */
+		volatile long sink = 0;
+		Spinner(String name) {
+			super(name);
+			setDaemon(true);
+		}
+		@Override
+		public void run() {
+			long x = 0;
+			while(spin) {
+				x += System.nanoTime() & 7;
+				if((x & 0xFFFF)==0) sink = x;
+			}
+		}
+	}
+	
+	/**
+	 * Starts the named spinners
+	 * @param names The spinner names
+	 * @return the started spinners
+	 */
+	static List<Spinner> spin(String...names) {
+		List<Spinner> spinners = new ArrayList<Spinner>();
+		for(String name: names) {
+			Spinner s = new Spinner(name);
+			s.start();
+			spinners.add(s);
+		}
+		return spinners;
+	}
+	
+	/**
+	 * Stops the passed spinners
+	 * @param spinners The spinners to stop
+	 * @throws Exception thrown on any error
+	 */
+	static void stop(List<Spinner> spinners) throws Exception {
+		for(Spinner s: spinners) {
+			s.spin = false;
+			s.join(5000);
+		}
+	}
+	
+	/**
+	 * Returns the thread names of the passed busy threads
+	 * @param bthreads The busy threads
+	 * @param count The number of leading busy threads to return the names of
+	 * @return the thread names
+	 */
+	static Set<String> names(BusyThread[] bthreads, int count) {
+		Set<String> names = new HashSet<String>();
+		for(int i = 0; i < count && i < bthreads.length; i++) {
+			String name = bthreads[i].getThreadName();
+			names.add(name.substring(0, name.lastIndexOf(':')));
+		}
+		return names;
+	}
+	
+	/**
+	 * Verifies the spinning threads are the busiest, and that the sampler follows threads being replaced
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testTopNWithChurn() throws Exception {
+		BusyThreadSampler sampler = new BusyThreadSampler(threadMXBean, 5, 0, BusyThreadSampler.DEFAULT_MAX_THREADS, false);
+		List<Spinner> spinners = spin("SpinnerA", "SpinnerB");
+		sampler.sample();
+		Thread.sleep(300);
+		long start = System.nanoTime();
+		BusyThread[] top = sampler.sample();
+		long elapsed = System.nanoTime() - start;
+		log("Sampled %s threads in %s us: %s", threadMXBean.getThreadCount(), TimeUnit.NANOSECONDS.toMicros(elapsed), java.util.Arrays.toString(top));
+		Assert.assertEquals("Top N size", 5, top.length);
+		Assert.assertTrue("Spinners were not the busiest " + names(top, 2), names(top, 2).containsAll(java.util.Arrays.asList("SpinnerA", "SpinnerB")));
+		Assert.assertTrue("Busiest first", top[0].getCpuTime() >= top[1].getCpuTime() && top[1].getCpuTime() >= top[2].getCpuTime());
+		Assert.assertTrue("Spinner cpu percent " + top[1].getCpuPercent(), top[1].getCpuPercent() > 20);
+		stop(spinners);
+		spinners = spin("SpinnerC");
+		sampler.sample();
+		Thread.sleep(300);
+		top = sampler.sample();
+		Assert.assertEquals("Replacement spinner was not the busiest " + java.util.Arrays.toString(top), "SpinnerC", names(top, 1).iterator().next());
+		Assert.assertFalse("Stopped spinners still sampled", names(top, 5).contains("SpinnerA") || names(top, 5).contains("SpinnerB"));
+		stop(spinners);
+	}
+	
+	/**
+	 * Verifies the sampler stays within its maximum number of tracked threads
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testMaxThreads() throws Exception {
+		BusyThreadSampler sampler = new BusyThreadSampler(threadMXBean, 3, 4, 100, false);
+		sampler.sample();
+		BusyThread[] top = sampler.sample();
+		Assert.assertEquals("Top N size", 3, top.length);
+		Assert.assertTrue("Untracked threads " + sampler.getUntracked(), sampler.getUntracked() >= PARKED_THREADS - 100);
+	}
+	
+	/**
+	 * Formatted out logger
+	 * @param fmt The format
+	 * @param args The format args
+	 */
+	public static void log(String fmt, Object...args) {
+		System.out.println(String.format(fmt, args));
+	}
+}
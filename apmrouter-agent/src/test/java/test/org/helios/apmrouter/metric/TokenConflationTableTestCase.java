@@ -0,0 +1,198 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.apmrouter.metric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.helios.apmrouter.metric.ICEMetric;
+import org.helios.apmrouter.metric.IMetric;
+import org.helios.apmrouter.metric.MetricType;
+import org.helios.apmrouter.metric.TokenConflationTable;
+import org.helios.apmrouter.metric.catalog.IDelegateMetric;
+import org.helios.apmrouter.metric.catalog.heap.StringKeyedHeapMetricCatalog;
+import org.junit.Test;
+
+/**
+ * <p>Title: TokenConflationTableTestCase</p>
+ * <p>Description: Test cases for {@link TokenConflationTable}</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.apmrouter.metric.TokenConflationTableTestCase</code></p>
+ */
+public class TokenConflationTableTestCase {
+	/** The test host */
+	public static final String HOST = "conflation-host";
+	/** The test agent */
+	public static final String AGENT = "conflation-agent";
+
+	/**
+	 * Validates that conflating a high cardinality stream by token, with some untokened metrics and several table resizes, 
+	 * produces the same metrics and values as conflating the same stream in a map keyed by FQN.
+	 */
+	@Test
+	public void testSameOutputAsFQNConflation() {
+		final int cardinality = 5000, rounds = 20;
+		StringKeyedHeapMetricCatalog catalog = new StringKeyedHeapMetricCatalog();
+		IDelegateMetric[] delegates = new IDelegateMetric[cardinality];
+		for(int i = 0; i < cardinality; i++) {
+			MetricType type = i%2==0 ? MetricType.LONG_GAUGE : MetricType.LONG_COUNTER;
+			String[] ns = {"conflation", "group" + (i%50)};
+			if(i%10==0) {
+				// no token assigned
+				delegates[i] = catalog.get(HOST, AGENT, "Metric" + i, type, ns);
+			} else {
+				catalog.setToken(i*7919L, HOST, AGENT, "Metric" + i, type, ns);
+				delegates[i] = catalog.get(i*7919L);
+			}
+			assertNotNull("Delegate #" + i, delegates[i]);
+		}
+		TokenConflationTable table = new TokenConflationTable(16, 0);
+		Map<String, IMetric> legacy = new HashMap<String, IMetric>();
+		Random r = new Random(42);
+		long now = System.currentTimeMillis();
+		for(int round = 0; round < rounds; round++) {
+			for(int i = 0; i < cardinality; i++) {
+				long value = r.nextInt(10000);
+				table.conflate(ICEMetric.newMetric(now, value, delegates[i].getType(), delegates[i]));
+				IMetric metric = ICEMetric.newMetric(now, value, delegates[i].getType(), delegates[i]);
+				IMetric existing = legacy.get(metric.getFQN());
+				if(existing!=null) {
+					existing.conflate(metric);
+				} else {
+					legacy.put(metric.getFQN(), metric);
+				}
+			}
+		}
+		assertEquals("Pending size", cardinality, table.size());
+		IMetric[] drained = table.drain();
+		assertEquals("Drained count", legacy.size(), drained.length);
+		for(IMetric metric: drained) {
+			IMetric expected = legacy.get(metric.getFQN());
+			assertNotNull("Missing [" + metric.getFQN() + "]", expected);
+			assertEquals("Value of [" + metric.getFQN() + "]", expected.getLongValue(), metric.getLongValue());
+		}
+		assertEquals("Size after drain", 0, table.size());
+		assertEquals("Second drain", 0, table.drain().length);
+	}
+	
+	/**
+	 * Validates that counters conflated by several threads into overlapping metrics while another thread drains are each counted exactly once,
+	 * and that every drain holds at most one metric per token
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testConcurrentConflateAndDrain() throws Exception {
+		final int threads = 8, cardinality = 1000, rounds = 200;
+		StringKeyedHeapMetricCatalog catalog = new StringKeyedHeapMetricCatalog();
+		final IDelegateMetric[] delegates = new IDelegateMetric[cardinality];
+		for(int i = 0; i < cardinality; i++) {
+			catalog.setToken(i, HOST, AGENT, "Counter" + i, MetricType.LONG_COUNTER, "conflation");
+			delegates[i] = catalog.get(i);
+		}
+		final TokenConflationTable table = new TokenConflationTable(64, 0, 8);
+		final long now = System.currentTimeMillis();
+		final CountDownLatch done = new CountDownLatch(threads);
+		for(int t = 0; t < threads; t++) {
+			final int offset = t;
+			new Thread("TokenConflationTableTestThread#" + t) {
+				public void run() {
+					for(int round = 0; round < rounds; round++) {
+						for(int i = 0; i < cardinality; i++) {
+							// each thread walks the metrics from a different start so threads overlap on every metric
+							IDelegateMetric d = delegates[(i + offset*(cardinality/threads)) % cardinality];
+							table.conflate(ICEMetric.newMetric(now, 1, MetricType.LONG_COUNTER, d));
+						}
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		final long[] perToken = new long[cardinality];
+		final AtomicBoolean draining = new AtomicBoolean(true);
+		final AtomicLong drains = new AtomicLong();
+		Thread drainer = new Thread("TokenConflationTableDrainThread") {
+			public void run() {
+				while(draining.get()) {
+					collect(table.drain(), perToken);
+					drains.incrementAndGet();
+				}
+			}
+		};
+		drainer.start();
+		done.await();
+		draining.set(false);
+		drainer.join();
+		collect(table.drain(), perToken);
+		for(int i = 0; i < cardinality; i++) {
+			assertEquals("Total of token [" + i + "] after [" + drains.get() + "] drains", (long)threads*rounds, perToken[i]);
+		}
+		assertEquals("Size after drain", 0, table.size());
+	}
+	
+	/**
+	 * Adds the values of the drained counters to the per token totals, checking each token appears at most once
+	 * @param drained The drained metrics
+	 * @param perToken The per token totals
+	 */
+	private static void collect(IMetric[] drained, long[] perToken) {
+		boolean[] seen = new boolean[perToken.length];
+		for(IMetric metric: drained) {
+			int token = (int)metric.getToken();
+			assertEquals("Token [" + token + "] drained twice", false, seen[token]);
+			seen[token] = true;
+			perToken[token] += metric.getLongValue();
+		}
+	}
+	
+	/**
+	 * Validates that new metrics are dropped once a buffer reaches its max size, while pending metrics still conflate
+	 */
+	@Test
+	public void testMaxSize() {
+		StringKeyedHeapMetricCatalog catalog = new StringKeyedHeapMetricCatalog();
+		TokenConflationTable table = new TokenConflationTable(4, 3);
+		IDelegateMetric[] delegates = new IDelegateMetric[4];
+		for(int i = 0; i < delegates.length; i++) {
+			catalog.setToken(i, HOST, AGENT, "Metric" + i, MetricType.LONG_COUNTER, "conflation");
+			delegates[i] = catalog.get(i);
+		}
+		long now = System.currentTimeMillis();
+		for(int i = 0; i < 3; i++) {
+			assertEquals("Add #" + i, TokenConflationTable.ADDED, table.conflate(ICEMetric.newMetric(now, 1, MetricType.LONG_COUNTER, delegates[i])));
+		}
+		assertEquals("Over max", TokenConflationTable.DROPPED, table.conflate(ICEMetric.newMetric(now, 1, MetricType.LONG_COUNTER, delegates[3])));
+		assertEquals("Conflate at max", TokenConflationTable.CONFLATED, table.conflate(ICEMetric.newMetric(now, 1, MetricType.LONG_COUNTER, delegates[0])));
+		assertEquals("Drained count", 3, table.drain().length);
+		assertEquals("Add after drain", TokenConflationTable.ADDED, table.conflate(ICEMetric.newMetric(now, 1, MetricType.LONG_COUNTER, delegates[3])));
+	}
+}
@@ -0,0 +1,224 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.apmrouter.metric.catalog.direct;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+
+import org.helios.apmrouter.metric.MetricType;
+import org.helios.apmrouter.metric.catalog.IDelegateMetric;
+import org.helios.apmrouter.metric.catalog.IMetricCatalog;
+import org.helios.apmrouter.metric.catalog.direct.LongKeyedChronicleMetricCatalog;
+import org.helios.apmrouter.metric.catalog.direct.StringKeyedChronicleMetricCatalog;
+import org.helios.apmrouter.metric.catalog.direct.chronicle.ChronicleController;
+import org.helios.apmrouter.metric.catalog.direct.chronicle.MappedNameIndex;
+import org.helios.apmrouter.metric.catalog.heap.StringKeyedHeapMetricCatalog;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * <p>Title: ChronicleCatalogRestartTestCase</p>
+ * <p>Description: Populates a retained chronicle metric catalog with a large number of tokenized metrics, restarts it and verifies 
+ * that the tokens are usable right after revalidation against the same server catalog epoch, and that heap usage does not grow with the metric count.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.apmrouter.metric.catalog.direct.ChronicleCatalogRestartTestCase</code></p>
+ */
+public class ChronicleCatalogRestartTestCase {
+	/** The number of metrics to populate the catalog with */
+	public static final int METRIC_COUNT = 200000;
+	/** The server catalog epoch the tokens are issued under */
+	public static final long EPOCH = 1357000000000L;
+	/** The test chronicle name */
+	public static final String CHRONICLE_NAME = "restart-test-" + System.currentTimeMillis();
+	/** The test host */
+	public static final String HOST = "restarthost";
+	/** The test agent */
+	public static final String AGENT = "restartagent";
+	
+	/**
+	 * Opens a retained chronicle under a test name
+	 */
+	@BeforeClass
+	public static void openChronicle() {
+		System.setProperty(ChronicleController.CHRONICLE_RETAIN_PROP, "true");
+		System.setProperty(ChronicleController.CHRONICLE_PROP, CHRONICLE_NAME);
+		if(!CHRONICLE_NAME.equals(ChronicleController.getInstance().name())) {
+			// Another test left a catalog open on a different chronicle
+			ChronicleController.getInstance().close();
+		}
+		Assert.assertEquals(CHRONICLE_NAME, ChronicleController.getInstance().name());
+	}
+	
+	/**
+	 * Closes and deletes the test chronicle
+	 */
+	@AfterClass
+	public static void deleteChronicle() {
+		ChronicleController.getInstance().close();
+		for(String ext: new String[]{".data", ".index", ".names"}) {
+			new File(ChronicleController.CHRONICLE_HOME_DIR, CHRONICLE_NAME + ext).delete();
+		}
+		System.clearProperty(ChronicleController.CHRONICLE_RETAIN_PROP);
+		System.clearProperty(ChronicleController.CHRONICLE_PROP);
+	}
+	
+	/**
+	 * Simulates an agent restart by closing the chronicle and opening a new catalog over the retained files
+	 * @return the new catalog
+	 */
+	protected static IMetricCatalog restart() {
+		ChronicleController.getInstance().close();
+		return new LongKeyedChronicleMetricCatalog();
+	}
+	
+	/**
+	 * Returns the metric with the passed number
+	 * @param catalog The catalog to get the metric from
+	 * @param i The metric number
+	 * @return the metric
+	 */
+	protected static IDelegateMetric metric(IMetricCatalog catalog, int i) {
+		return catalog.get(HOST, AGENT, "metric" + i, MetricType.LONG_GAUGE, "ns" + (i%100), "sub" + (i%7));
+	}
+	
+	/**
+	 * Returns the heap used after a full collection
+	 * @return the used heap in bytes
+	 */
+	protected static long usedHeap() {
+		for(int i = 0; i < 3; i++) {
+			System.gc();
+			try { Thread.sleep(100); } catch (Exception e) {/* No Op */}
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+	
+	/**
+	 * Populates, restarts and revalidates the catalog
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testRestartRevalidation() throws Exception {
+		long heapBefore = usedHeap();
+		IMetricCatalog catalog = new LongKeyedChronicleMetricCatalog();
+		Assert.assertEquals(0, catalog.size());
+		Assert.assertEquals(0, catalog.revalidateTokens(EPOCH));
+		long start = System.nanoTime();
+		for(int i = 0; i < METRIC_COUNT; i++) {
+			// The same path as a SEND_METRIC_TOKEN from the server
+			catalog.setToken(metric(catalog, i).getFQN(), i+1);
+		}
+		long announceMs = (System.nanoTime()-start)/1000000;
+		Assert.assertEquals(METRIC_COUNT, catalog.size());
+		MappedNameIndex index = ChronicleController.getInstance().getNameIndex();
+		Assert.assertEquals(METRIC_COUNT, index.getTokenCount());
+		long chronicleHeap = usedHeap() - heapBefore;
+		
+		// Restart: the names are found without a rebuild but the tokens are held back
+		catalog = restart();
+		index = ChronicleController.getInstance().getNameIndex();
+		Assert.assertFalse("Index was rebuilt after a clean close", index.isRebuilt());
+		Assert.assertEquals(METRIC_COUNT, catalog.size());
+		Assert.assertEquals(-1L, metric(catalog, 5).getToken());
+		Assert.assertNull(catalog.get(6L));
+		
+		start = System.nanoTime();
+		int valid = catalog.revalidateTokens(EPOCH);
+		long revalidateMs = (System.nanoTime()-start)/1000000;
+		Assert.assertEquals(METRIC_COUNT, valid);
+		for(int i = 0; i < METRIC_COUNT; i++) {
+			IDelegateMetric m = metric(catalog, i);
+			Assert.assertEquals("Token for metric" + i, i+1, m.getToken());
+		}
+		Assert.assertEquals(METRIC_COUNT, catalog.size());
+		for(int i = 0; i < METRIC_COUNT; i += 997) {
+			Assert.assertEquals(metric(catalog, i).getFQN(), catalog.get(i+1).getFQN());
+		}
+		// A catalog that compares names resolves the same entries
+		IMetricCatalog exact = new StringKeyedChronicleMetricCatalog();
+		Assert.assertEquals(METRIC_COUNT/2, metric(exact, METRIC_COUNT/2).getToken()-1);
+		Assert.assertEquals(METRIC_COUNT, exact.size());
+		
+		// Tokens issued since revalidation carry the live epoch
+		IDelegateMetric added = catalog.get(HOST, AGENT, "added", MetricType.LONG_GAUGE, "ns0");
+		catalog.setToken(added.getFQN(), METRIC_COUNT + 1);
+		catalog = restart();
+		Assert.assertEquals(METRIC_COUNT + 1, catalog.revalidateTokens(EPOCH));
+		
+		// A restart against a different catalog epoch clears every token
+		catalog = restart();
+		Assert.assertEquals(0, catalog.revalidateTokens(EPOCH + 1));
+		for(int i = 0; i < METRIC_COUNT; i += 101) {
+			Assert.assertEquals(-1L, metric(catalog, i).getToken());
+		}
+		Assert.assertNull(catalog.get(1L));
+		
+		// Tokens issued before the epoch is known are kept when it arrives
+		catalog = restart();
+		catalog.setToken(metric(catalog, 3).getFQN(), 4);
+		Assert.assertEquals(1, catalog.revalidateTokens(EPOCH + 1));
+		Assert.assertEquals(4L, metric(catalog, 3).getToken());
+		
+		// An index that was not closed cleanly is rebuilt from the chronicle and its tokens are dropped
+		ChronicleController.getInstance().close();
+		RandomAccessFile raf = new RandomAccessFile(new File(ChronicleController.CHRONICLE_HOME_DIR, CHRONICLE_NAME + ".names"), "rw");
+		raf.seek(20);
+		raf.write(new byte[4]);
+		raf.close();
+		catalog = new LongKeyedChronicleMetricCatalog();
+		index = ChronicleController.getInstance().getNameIndex();
+		Assert.assertTrue("Index was not rebuilt after an unclean close", index.isRebuilt());
+		Assert.assertEquals(METRIC_COUNT + 1, catalog.size());
+		Assert.assertEquals(0, catalog.revalidateTokens(EPOCH + 1));
+		Assert.assertEquals("metric77", metric(catalog, 77).getName());
+		
+		// The same population in a heap catalog for comparison
+		long heapBase = usedHeap();
+		IMetricCatalog heap = new StringKeyedHeapMetricCatalog();
+		for(int i = 0; i < METRIC_COUNT; i++) {
+			heap.setToken(metric(heap, i), i+1);
+		}
+		long heapCatalogHeap = usedHeap() - heapBase;
+		Assert.assertEquals(METRIC_COUNT, heap.size());
+		
+		log("Metrics: " + METRIC_COUNT + ", Index capacity: " + index.getCapacity());
+		log("Initial announce and tokenize: " + announceMs + " ms, Revalidate after restart: " + revalidateMs + " ms");
+		log("Retained heap, chronicle catalog: " + (chronicleHeap/1024) + " KB, heap catalog: " + (heapCatalogHeap/1024) + " KB");
+		Assert.assertTrue("Chronicle catalog retained " + chronicleHeap + " bytes of heap", chronicleHeap < 4 * 1024 * 1024);
+		Assert.assertTrue("Revalidation took " + revalidateMs + " ms vs " + announceMs + " ms to announce", revalidateMs < announceMs);
+	}
+	
+	/**
+	 * Out logger
+	 * @param msg the message to log
+	 */
+	public static void log(Object msg) {
+		System.out.println(msg);
+	}
+}
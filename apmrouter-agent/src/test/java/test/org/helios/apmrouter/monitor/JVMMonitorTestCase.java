@@ -0,0 +1,158 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.apmrouter.monitor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.helios.apmrouter.monitor.jvm.JVMMonitor;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * <p>Title: JVMMonitorTestCase</p>
+ * <p>Description: Measures the JVMMonitor collection cost on a JVM with thousands of parked threads</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.apmrouter.monitor.JVMMonitorTestCase</code></p>
+ */
+public class JVMMonitorTestCase {
+	/** The number of parked threads */
+	static final int PARKED_THREADS = 3000;
+	/** The number of measured collections */
+	static final int COLLECTIONS = 64;
+	/** The parked threads */
+	static final List<Thread> parked = new ArrayList<Thread>(PARKED_THREADS);
+	/** Indicates the parked threads should exit */
+	static volatile boolean stop = false;
+	
+	/**
+	 * Starts the parked threads
+	 * @throws Exception thrown on any error
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		final CountDownLatch started = new CountDownLatch(PARKED_THREADS);
+		for(int i = 0; i < PARKED_THREADS; i++) {
+			Thread t = new Thread("ParkedThread#" + i) {
+				@Override
+				public void run() {
+					started.countDown();
+					while(!stop) {
+						LockSupport.park(this);
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+			parked.add(t);
+		}
+		Assert.assertTrue("Parked threads did not start", started.await(30, TimeUnit.SECONDS));
+		Thread.sleep(200);
+	}
+	
+	/**
+	 * Releases the parked threads
+	 */
+	@AfterClass
+	public static void tearDownAfterClass() {
+		stop = true;
+		for(Thread t: parked) {
+			LockSupport.unpark(t);
+		}
+	}
+	
+	/**
+	 * Verifies the enumerated thread state counts see the parked threads and are cheaper than a ThreadInfo scan
+	 */
+	@Test
+	public void testThreadStateScan() {
+		JVMMonitor monitor = new JVMMonitor();
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		int[] counts = new int[Thread.State.values().length];
+		long infoScan = Long.MAX_VALUE, stateScan = Long.MAX_VALUE;
+		for(int i = 0; i < 20; i++) {
+			long start = System.nanoTime();
+			int waiting = 0;
+			for(ThreadInfo ti : threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds())) {
+				if(ti!=null && ti.getThreadState()==Thread.State.WAITING) waiting++;
+			}
+			infoScan = Math.min(infoScan, System.nanoTime() - start);
+			Assert.assertTrue("ThreadInfo waiting count", waiting >= PARKED_THREADS);
+			start = System.nanoTime();
+			monitor.getThreadStates();
+			stateScan = Math.min(stateScan, System.nanoTime() - start);
+		}
+		int waiting = monitor.getThreadStates().get(Thread.State.WAITING).get();
+		log("Thread state scan of %s threads: ThreadInfo %s us, enumerated %s us", threadMXBean.getThreadCount(), TimeUnit.NANOSECONDS.toMicros(infoScan), TimeUnit.NANOSECONDS.toMicros(stateScan));
+		Assert.assertTrue("Enumerated waiting count " + waiting, waiting >= PARKED_THREADS);
+		Assert.assertTrue("Enumerated scan was not cheaper", stateScan < infoScan);
+	}
+	
+	/**
+	 * Verifies the collection cost falls once the expensive probes back off under a tight budget
+	 */
+	@Test
+	public void testCollectionBackoff() {
+		JVMMonitor fixed = new JVMMonitor();
+		fixed.setBudget(Long.MAX_VALUE/1000000);
+		JVMMonitor adaptive = new JVMMonitor();
+		adaptive.setBudget(0);
+		// warm up the tracer's metric names for both monitors
+		for(int i = 0; i < 8; i++) {
+			fixed.collect();
+			adaptive.collect();
+		}
+		long fixedCost = 0, adaptiveCost = 0;
+		for(int i = 0; i < COLLECTIONS; i++) {
+			fixed.collect();
+			fixedCost += fixed.getLastCollectCostUs();
+			adaptive.collect();
+			adaptiveCost += adaptive.getLastCollectCostUs();
+		}
+		log("Average collection cost with %s threads: fixed %s us, adaptive %s us (thread state interval %s, deadlock interval %s)", 
+				ManagementFactory.getThreadMXBean().getThreadCount(), fixedCost/COLLECTIONS, adaptiveCost/COLLECTIONS, adaptive.getThreadStateInterval(), adaptive.getDeadlockInterval());
+		Assert.assertEquals("Fixed thread state interval", 1, fixed.getThreadStateInterval());
+		Assert.assertEquals("Adaptive thread state interval", JVMMonitor.DEFAULT_MAX_BACKOFF, adaptive.getThreadStateInterval());
+		Assert.assertTrue("Adaptive collection cost did not fall", adaptiveCost < fixedCost);
+	}
+	
+	/**
+	 * Formatted out logger
+	 * @param fmt The format
+	 * @param args The format args
+	 */
+	public static void log(String fmt, Object...args) {
+		System.out.println(String.format(fmt, args));
+	}
+}
@@ -0,0 +1,340 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.apmrouter.monitor.nativex;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.helios.apmrouter.monitor.nativex.NativeMonitor;
+import org.helios.apmrouter.monitor.nativex.ProcStatsSource;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * <p>Title: NativeMonitorTestCase</p>
+ * <p>Description: Runs the {@link NativeMonitor} against a fake <b><code>/proc</code></b> tree, comparing a monitor that rescans and traces 
+ * every value each sweep with one that caches interface and cpu meta-data and only traces changed values.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.apmrouter.monitor.nativex.NativeMonitorTestCase</code></p>
+ */
+public class NativeMonitorTestCase {
+	/** The number of fake cpus */
+	static final int CPUS = 16;
+	/** The number of fake network interfaces */
+	static final int NICS = 32;
+	/** The number of fake processes */
+	static final int PIDS = 200;
+	/** The number of fake listening sockets */
+	static final int LISTENERS = 5;
+	/** The number of fake inbound connections */
+	static final int INBOUND = 200;
+	/** The number of fake outbound connections */
+	static final int OUTBOUND = 300;
+	/** The number of collection sweeps per monitor */
+	static final int SWEEPS = 20;
+	
+	/** The fake proc root */
+	static File procRoot = null;
+	/** The fake cpu jiffy counter */
+	static long jiffies = 1000;
+	/** The fake free memory in kb */
+	static long memFree = 4000000;
+	/** The fake rx byte counter of the first interface */
+	static long rxBytes = 1000;
+	
+	/**
+	 * Creates the fake proc tree
+	 * @throws Exception thrown on any error
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		procRoot = File.createTempFile("fakeproc", "");
+		procRoot.delete();
+		procRoot.mkdirs();
+		writeVolatileFiles();
+		StringBuilder b = new StringBuilder();
+		for(int i = 0; i < CPUS; i++) {
+			b.append("processor\t: ").append(i).append("\nvendor_id\t: GenuineIntel\nmodel name\t: Fake CPU\ncpu MHz\t\t: 2400.000\ncache size\t: 8192 KB\ncpu cores\t: ").append(CPUS).append("\n\n");
+		}
+		write("cpuinfo", b);
+		write("vmstat", "pgpgin 100\npgpgout 200\npswpin 3\npswpout 4\n");
+		write("net/snmp", "Ip: Forwarding DefaultTTL\nIp: 1 64\nTcp: RtoAlgorithm RtoMin RtoMax MaxConn ActiveOpens PassiveOpens AttemptFails EstabResets CurrEstab InSegs OutSegs RetransSegs InErrs OutRsts\nTcp: 1 200 120000 -1 10 20 30 40 50 60 70 80 90 100\n");
+		b = new StringBuilder("  sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode\n");
+		int sl = 0;
+		for(int i = 0; i < LISTENERS; i++) {
+			b.append(tcpLine(sl++, 8080+i, 0, 0x0A));
+		}
+		for(int i = 0; i < INBOUND; i++) {
+			b.append(tcpLine(sl++, 8080, 40000+i, 0x01));
+		}
+		for(int i = 0; i < OUTBOUND; i++) {
+			b.append(tcpLine(sl++, 50000+i, 443, i%2==0 ? 0x01 : 0x06));
+		}
+		write("net/tcp", b);
+		for(int i = 0; i < PIDS; i++) {
+			write((i+1) + "/stat", processStat(i+1, i%10==0 ? 'R' : 'S'));
+		}
+		write("self/stat", processStat(PIDS+1, 'R'));
+		write("self/statm", "1000 500 100 10 0 200 0\n");
+		for(int i = 0; i < 12; i++) {
+			write("self/fd/" + i, "");
+		}
+	}
+	
+	/**
+	 * Deletes the fake proc tree
+	 */
+	@AfterClass
+	public static void tearDownAfterClass() {
+		delete(procRoot);
+	}
+	
+	/**
+	 * Verifies the proc source parses the fake tree into the same metric names and units as sigar
+	 */
+	@Test
+	public void testProcParsing() {
+		ProcStatsSource source = new ProcStatsSource(procRoot);
+		Assert.assertEquals("Cpu count", CPUS, source.getCpuList().size());
+		Assert.assertEquals("Cpu info count", CPUS, source.getCpuInfoList().size());
+		Assert.assertEquals("Cpu info total cores", (long)CPUS, source.getCpuInfoList().get(0).get("TotalCores"));
+		Assert.assertEquals("NIC count", NICS, source.getNetInterfaceList().size());
+		Assert.assertEquals("eth0 RXBytes", rxBytes, source.getNetInterfaceStat("eth0").get("RXBytes").longValue());
+		Assert.assertEquals("eth1 TXPackets", 1L*10, source.getNetInterfaceStat("eth1").get("TXPackets").longValue());
+		Map<String, Long> mem = source.getSystemMem();
+		Assert.assertEquals("TotalMemMB", 8000000L/1024, mem.get("TotalMemMB").longValue());
+		Assert.assertEquals("Free", memFree*1024, mem.get("Free").longValue());
+		Assert.assertEquals("ActualFree", (memFree+200000+1000000)*1024, mem.get("ActualFree").longValue());
+		Map<String, Long> swap = source.getSwap();
+		Assert.assertEquals("Swap Used", 1000000L*1024, swap.get("Used").longValue());
+		Assert.assertEquals("Swap PageIn", 3L, swap.get("PageIn").longValue());
+		Map<String, Long> tcp = source.getTcp();
+		Assert.assertEquals("Tcp Opens", 10L, tcp.get("Opens").longValue());
+		Assert.assertEquals("Tcp OutResets", 100L, tcp.get("OutResets").longValue());
+		Map<String, Long> net = source.getNetstat();
+		Assert.assertEquals("TcpListen", (long)LISTENERS, net.get("TcpListen").longValue());
+		Assert.assertEquals("Inbound", (long)INBOUND, net.get("Inbound").longValue());
+		Assert.assertEquals("Outbound", (long)OUTBOUND, net.get("Outbound").longValue());
+		Assert.assertEquals("TcpTimeWait", (long)OUTBOUND/2, net.get("TcpTimeWait").longValue());
+		Map<String, Long> ps = source.getProcessStats();
+		Assert.assertEquals("Process Total", (long)PIDS, ps.get("Total").longValue());
+		Assert.assertEquals("Process Running", (long)PIDS/10, ps.get("Running").longValue());
+		Assert.assertEquals("Process Threads", PIDS*4L, ps.get("Threads").longValue());
+		Map<String, Long> pmem = source.getProcessMem();
+		Assert.assertEquals("Resident", 500L*ProcStatsSource.PAGE_SIZE, pmem.get("Resident").longValue());
+		Assert.assertEquals("OpenFileDescriptors", 12L, pmem.get("OpenFileDescriptors").longValue());
+		Assert.assertEquals("PageFaults", 7L+9L, pmem.get("PageFaults").longValue());
+		Assert.assertEquals("Process Cpu Total", (5L+6L)*1000/ProcStatsSource.TICKS_PER_SECOND, source.getProcessCpu().get("Total").longValue());
+	}
+	
+	/**
+	 * Compares the traced metric count and collection cost of a monitor that rescans and traces every value 
+	 * with one that caches meta-data and suppresses unchanged values
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testDeltaPublication() throws Exception {
+		Properties every = new Properties();
+		every.setProperty(NativeMonitor.CPU_ALL_PROP, "true");
+		every.setProperty(NativeMonitor.NIC_RESCAN_PROP, "1");
+		every.setProperty(NativeMonitor.HEARTBEAT_PROP, "0");
+		Properties filtered = new Properties();
+		filtered.setProperty(NativeMonitor.CPU_ALL_PROP, "true");
+		filtered.setProperty(NativeMonitor.NIC_RESCAN_PROP, "20");
+		filtered.setProperty(NativeMonitor.HEARTBEAT_PROP, "60000");
+		filtered.setProperty(NativeMonitor.TOLERANCE_PROP, "1");
+		// warm up both paths
+		run(every, 3);
+		run(filtered, 3);
+		long[] everyResult = run(every, SWEEPS);
+		long[] filteredResult = run(filtered, SWEEPS);
+		log("Trace every value:   published %s, suppressed %s, %s us per sweep", everyResult[0], everyResult[1], TimeUnit.NANOSECONDS.toMicros(everyResult[2]/SWEEPS));
+		log("Trace changed value: published %s, suppressed %s, %s us per sweep", filteredResult[0], filteredResult[1], TimeUnit.NANOSECONDS.toMicros(filteredResult[2]/SWEEPS));
+		Assert.assertEquals("Unfiltered monitor suppressed values", 0L, everyResult[1]);
+		Assert.assertTrue("Filtered monitor did not suppress values", filteredResult[1] > 0);
+		Assert.assertTrue("Filtered monitor published more than a third of the unfiltered count", filteredResult[0]*3 < everyResult[0]);
+		Assert.assertTrue("Filtered monitor was not cheaper", filteredResult[2] < everyResult[2]);
+	}
+	
+	/**
+	 * Verifies that an interface that goes away is dropped from the cache without aborting the rest of the sweep, and is picked up again by the next rescan
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testVanishingInterface() throws Exception {
+		final Set<String> vanished = new HashSet<String>();
+		final Map<String, Integer> statReads = new HashMap<String, Integer>();
+		final int[] processStatReads = {0};
+		ProcStatsSource source = new ProcStatsSource(procRoot) {
+			@Override
+			public Map<String, Long> getNetInterfaceStat(String nic) {
+				Integer reads = statReads.get(nic);
+				statReads.put(nic, reads==null ? 1 : reads+1);
+				// sigar throws for an interface it can no longer find
+				if(vanished.contains(nic)) throw new RuntimeException("No such device or address [" + nic + "]");
+				return super.getNetInterfaceStat(nic);
+			}
+			@Override
+			public Map<String, Long> getProcessStats() {
+				processStatReads[0]++;
+				return super.getProcessStats();
+			}
+		};
+		Properties p = new Properties();
+		p.setProperty(NativeMonitor.NIC_RESCAN_PROP, "3");
+		NativeMonitor monitor = new NativeMonitor(source);
+		monitor.setProperties(p);
+		monitor.collect();
+		vanished.add("eth5");
+		monitor.collect();
+		monitor.collect();
+		Assert.assertEquals("Stat reads of the vanished interface", 2, statReads.get("eth5").intValue());
+		Assert.assertEquals("Stat reads of the next interface", 3, statReads.get("eth6").intValue());
+		Assert.assertEquals("Sweeps that reached the process stats", 3, processStatReads[0]);
+		vanished.clear();
+		// the third sweep after the first rescans the interfaces
+		monitor.collect();
+		Assert.assertEquals("Stat reads of the returned interface", 3, statReads.get("eth5").intValue());
+		Assert.assertEquals("Sweeps that reached the process stats", 4, processStatReads[0]);
+	}
+	
+	/**
+	 * Runs a monitor over the fake proc tree, changing a few values between each sweep
+	 * @param p The monitor configuration
+	 * @param sweeps The number of sweeps to run
+	 * @return an array of the published count, the suppressed count and the total collection time in ns.
+	 * @throws Exception thrown on any error
+	 */
+	protected long[] run(Properties p, int sweeps) throws Exception {
+		NativeMonitor monitor = new NativeMonitor(new ProcStatsSource(procRoot));
+		monitor.setProperties(p);
+		long elapsed = 0;
+		for(int i = 0; i < sweeps; i++) {
+			// let the net/dev snapshot expire, as it would between real collection periods
+			Thread.sleep(ProcStatsSource.NET_DEV_SNAPSHOT_MS + 10);
+			jiffies += 100;
+			memFree += 10;
+			rxBytes += 5000;
+			writeVolatileFiles();
+			long start = System.nanoTime();
+			monitor.collect();
+			elapsed += System.nanoTime() - start;
+		}
+		Assert.assertEquals("Traced rx bytes", rxBytes, new ProcStatsSource(procRoot).getNetInterfaceStat("eth0").get("RXBytes").longValue());
+		return new long[]{monitor.getPublishedCount(), monitor.getSuppressedCount(), elapsed};
+	}
+	
+	/**
+	 * Writes the fake proc files whose values change between sweeps
+	 * @throws IOException thrown on any IO error
+	 */
+	protected static void writeVolatileFiles() throws IOException {
+		StringBuilder b = new StringBuilder();
+		b.append("cpu  ").append(jiffies*CPUS).append(" 0 ").append(jiffies*CPUS).append(" ").append(jiffies*CPUS*2).append(" 0 0 0 0 0 0\n");
+		for(int i = 0; i < CPUS; i++) {
+			b.append("cpu").append(i).append(" ").append(jiffies).append(" 0 ").append(jiffies).append(" ").append(jiffies*2).append(" 0 0 0 0 0 0\n");
+		}
+		b.append("procs_running 2\nprocs_blocked 0\n");
+		write("stat", b);
+		write("meminfo", "MemTotal:        8000000 kB\nMemFree:         " + memFree + " kB\nBuffers:          200000 kB\nCached:          1000000 kB\nSwapTotal:       2000000 kB\nSwapFree:        1000000 kB\n");
+		b = new StringBuilder("Inter-|   Receive                                                |  Transmit\n face |bytes    packets errs drop fifo frame compressed multicast|bytes    packets errs drop fifo colls carrier compressed\n");
+		for(int i = 0; i < NICS; i++) {
+			long rx = i==0 ? rxBytes : 1000L*i;
+			b.append(String.format("  eth%s: %s %s 0 0 0 0 0 0 %s %s 0 0 0 0 0 0\n", i, rx, i, 2000L*i, i*10));
+		}
+		write("net/dev", b);
+	}
+	
+	/**
+	 * Formats a <code>/proc/net/tcp</code> line
+	 * @param sl The socket slot
+	 * @param localPort The local port
+	 * @param remotePort The remote port
+	 * @param state The connection state code
+	 * @return the formatted line
+	 */
+	protected static String tcpLine(int sl, int localPort, int remotePort, int state) {
+		return String.format("%4d: 0100007F:%04X 0100007F:%04X %02X 00000000:00000000 00:00000000 00000000  1000        0 %s 1\n", sl, localPort, remotePort, state, 10000+sl);
+	}
+	
+	/**
+	 * Formats a <code>/proc/&lt;pid&gt;/stat</code> line with 4 threads
+	 * @param pid The process id
+	 * @param state The process state
+	 * @return the formatted line
+	 */
+	protected static String processStat(int pid, char state) {
+		return pid + " (fake proc " + pid + ") " + state + " 1 1 1 0 -1 4194560 7 0 9 0 5 6 0 0 20 0 4 0 100 1000 500\n";
+	}
+	
+	/**
+	 * Writes a fake proc file
+	 * @param path The path relative to the fake proc root
+	 * @param content The file content
+	 * @throws IOException thrown on any IO error
+	 */
+	protected static void write(String path, CharSequence content) throws IOException {
+		File f = new File(procRoot, path);
+		f.getParentFile().mkdirs();
+		FileWriter fw = new FileWriter(f);
+		try {
+			fw.write(content.toString());
+		} finally {
+			fw.close();
+		}
+	}
+	
+	/**
+	 * Recursively deletes the passed file
+	 * @param f The file to delete
+	 */
+	protected static void delete(File f) {
+		if(f==null) return;
+		File[] children = f.listFiles();
+		if(children!=null) {
+			for(File c: children) delete(c);
+		}
+		f.delete();
+	}
+	
+	/**
+	 * Formatted out logger
+	 * @param fmt The format
+	 * @param args The format arguments
+	 */
+	public static void log(String fmt, Object...args) {
+		System.out.println(String.format(fmt, args));
+	}
+}
@@ -0,0 +1,338 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.apmrouter.monitor.script;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.helios.apmrouter.monitor.script.JMXQueryPlan;
+import org.helios.apmrouter.monitor.script.JMXScriptHelper;
+import org.helios.apmrouter.monitor.script.JMXScriptRequest;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * <p>Title: JMXQueryPlanTestCase</p>
+ * <p>Description: Runs many script monitor requests over a large MBean population with and without cached query plans</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.apmrouter.monitor.script.JMXQueryPlanTestCase</code></p>
+ */
+public class JMXQueryPlanTestCase {
+	/** The test MBean domain */
+	static final String DOMAIN = "test.queryplan";
+	/** The number of registered MBeans */
+	static final int MBEANS = 3000;
+	/** The number of MBean groups */
+	static final int GROUPS = 30;
+	/** The number of measured cycles */
+	static final int CYCLES = 15;
+	/** The MBeanServer */
+	static final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	/** The script monitor requests, one per group plus a few broad ones */
+	static final List<JMXScriptRequest> requests = new ArrayList<JMXScriptRequest>();
+	
+	/**
+	 * <p>Title: PlanTargetMXBean</p>
+	 * <p>Description: The test MBean interface</p> 
+	 */
+	public static interface PlanTargetMXBean {
+		/** @return the value */
+		public int getValue();
+		/** @return the name */
+		public String getLabel();
+		/** @return a composite */
+		public MemoryUsage getUsage();
+	}
+	
+	/**
+	 * <p>Title: PlanTarget</p>
+	 * <p>Description: The test MBean</p> 
+	 */
+	public static class PlanTarget implements PlanTargetMXBean {
+		final int id;
+		PlanTarget(int id) { this.id = id; }
+		public int getValue() { return id * 7; }
+		public String getLabel() { return "Target#" + id; }
+		public MemoryUsage getUsage() { return new MemoryUsage(id, id * 2L, id * 3L, id * 4L); }
+	}
+	
+	/**
+	 * Registers the MBean population and builds the requests
+	 * @throws Exception thrown on any error
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		for(int i = 0; i < MBEANS; i++) {
+			server.registerMBean(new PlanTarget(i), name(i));
+		}
+		Map<String, String[]> composite = new HashMap<String, String[]>();
+		composite.put("Usage", new String[]{"used"});
+		for(int g = 0; g < GROUPS; g++) {
+			requests.add(new JMXScriptRequest(null, DOMAIN + ":group=G" + g + ",*", composite, "Value", "Label"));
+		}
+		Map<String, String[]> all = new HashMap<String, String[]>();
+		all.put("Usage", new String[]{" * "});
+		requests.add(new JMXScriptRequest(null, DOMAIN + ":type=PlanTarget,group=G1,*", all));
+		requests.add(new JMXScriptRequest(null, DOMAIN + ":id=5,*", null, "Value"));
+		requests.add(new JMXScriptRequest(null, name(42).toString(), composite, "Label"));
+	}
+	
+	/**
+	 * Unregisters the MBean population
+	 * @throws Exception thrown on any error
+	 */
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		for(ObjectName on: server.queryNames(new ObjectName(DOMAIN + ":*"), null)) {
+			server.unregisterMBean(on);
+		}
+		JMXQueryPlan.setCachingEnabled(true);
+	}
+	
+	/**
+	 * Clears the plan cache
+	 */
+	@After
+	public void tearDown() {
+		JMXQueryPlan.setCachingEnabled(true);
+		JMXQueryPlan.clear();
+	}
+	
+	/**
+	 * Builds the ObjectName of a test MBean
+	 * @param id The MBean id
+	 * @return the ObjectName
+	 * @throws Exception thrown on any error
+	 */
+	static ObjectName name(int id) throws Exception {
+		return new ObjectName(DOMAIN + ":type=PlanTarget,group=G" + (id % GROUPS) + ",id=" + id);
+	}
+	
+	/**
+	 * Runs one collection cycle for all the requests
+	 * @return the normalized results
+	 * @throws Exception thrown on any error
+	 */
+	static String cycle() throws Exception {
+		JSONObject result = JMXScriptHelper.getAttributes(requests.toArray(new JMXScriptRequest[requests.size()]));
+		Assert.assertFalse("Cycle reported errors:" + result.opt("errs"), result.has("errs"));
+		return normalize(result);
+	}
+	
+	/**
+	 * Builds the expected results for all the requests by querying and reading each MBean directly from the MBeanServer
+	 * in the result layout the script helper has always produced
+	 * @return the normalized results
+	 * @throws Exception thrown on any error
+	 */
+	static String direct() throws Exception {
+		JSONArray entries = new JSONArray();
+		for(JMXScriptRequest req: requests) {
+			for(ObjectName on: server.queryNames(new ObjectName(req.objectName), null)) {
+				JSONObject data = new JSONObject();
+				for(String attr: req.attributeNames) {
+					data.put(attr, server.getAttribute(on, attr));
+				}
+				for(Map.Entry<String, String[]> entry: req.compositeNames.entrySet()) {
+					CompositeData cd = (CompositeData)server.getAttribute(on, entry.getKey());
+					String key = entry.getValue()[0];
+					Object value = null;
+					if("*".equals(key.trim())) {
+						Map<String, Object> items = new HashMap<String, Object>();
+						for(String item: cd.getCompositeType().keySet()) {
+							items.put(item, cd.get(item));
+						}
+						value = items;
+					} else {
+						value = cd.get(key);
+					}
+					data.put(entry.getKey(), new JSONObject().put(key, value));
+				}
+				JSONObject entry = new JSONObject();
+				entry.put("d", on.getDomain());
+				entry.put("p", new JSONObject(on.getKeyPropertyList()));
+				entry.put("data", data);
+				entries.put(entry);
+			}
+		}
+		return normalize(new JSONObject().put("results", entries));
+	}
+	
+	/**
+	 * Renders the passed JSON value with sorted keys and sorted array members so results can be compared
+	 * @param value The value to render
+	 * @return the normalized rendering
+	 * @throws Exception thrown on any error
+	 */
+	static String normalize(Object value) throws Exception {
+		if(value instanceof JSONObject) {
+			JSONObject jo = (JSONObject)value;
+			Map<String, String> sorted = new TreeMap<String, String>();
+			for(Iterator<?> iter = jo.keys(); iter.hasNext();) {
+				String key = iter.next().toString();
+				sorted.put(key, normalize(jo.get(key)));
+			}
+			return sorted.toString();
+		} else if(value instanceof JSONArray) {
+			JSONArray ja = (JSONArray)value;
+			TreeSet<String> sorted = new TreeSet<String>();
+			for(int i = 0; i < ja.length(); i++) {
+				sorted.add(normalize(ja.get(i)));
+			}
+			return sorted.toString() + ":" + ja.length();
+		} else if(value instanceof Map) {
+			return normalize(new JSONObject((Map<?, ?>)value));
+		}
+		return String.valueOf(value);
+	}
+	
+	/**
+	 * Runs the measured cycles and returns the median cycle time
+	 * @param expected The expected normalized result of each cycle
+	 * @return the median elapsed time of a cycle in ns.
+	 * @throws Exception thrown on any error
+	 */
+	static long measure(String expected) throws Exception {
+		long[] times = new long[CYCLES];
+		for(int i = 0; i < CYCLES; i++) {
+			long start = System.nanoTime();
+			String result = cycle();
+			times[i] = System.nanoTime() - start;
+			Assert.assertEquals("Cycle #" + i + " result mismatch", expected, result);
+		}
+		Arrays.sort(times);
+		return times[CYCLES/2];
+	}
+	
+	/**
+	 * Verifies that cached and uncached plans both return the values read directly from the MBeanServer,
+	 * and that cached plans cost less per cycle
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCachedPlansMatchAndCostLess() throws Exception {
+		String expected = direct();
+		Assert.assertTrue("Unexpected empty results", expected.length() > MBEANS);
+		JMXQueryPlan.setCachingEnabled(false);
+		Assert.assertEquals("Uncached plan results differ from the MBeanServer", expected, cycle());
+		for(int i = 0; i < 3; i++) cycle();
+		long uncached = measure(expected);
+		Assert.assertEquals("Plans were cached while disabled", 0, JMXQueryPlan.getCachedPlanCount());
+		
+		JMXQueryPlan.setCachingEnabled(true);
+		Assert.assertEquals("Cached plan results differ from the MBeanServer", expected, cycle());
+		Assert.assertEquals("Unexpected plan count", requests.size(), JMXQueryPlan.getCachedPlanCount());
+		for(int i = 0; i < 3; i++) cycle();
+		long hits = JMXQueryPlan.getPlanHitCount();
+		long cached = measure(expected);
+		Assert.assertEquals("Unexpected plan hits", (long)CYCLES * requests.size(), JMXQueryPlan.getPlanHitCount() - hits);
+		System.out.println("[JMXQueryPlanTestCase] Median cycle: uncached " + (uncached/1000) + " us, cached " + (cached/1000) + " us");
+		Assert.assertTrue("Cached cycle [" + cached + "] was not cheaper than uncached [" + uncached + "]", cached < uncached);
+	}
+	
+	/**
+	 * Verifies that requests whose composite paths differ only in whitespace get their own plans and their results are keyed as each requested
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCompositeKeysAsRequested() throws Exception {
+		Map<String, String[]> padded = new HashMap<String, String[]>();
+		padded.put("Usage", new String[]{" * "});
+		Map<String, String[]> bare = new HashMap<String, String[]>();
+		bare.put("Usage", new String[]{"*"});
+		JMXScriptRequest paddedReq = new JMXScriptRequest(null, name(7).toString(), padded);
+		JMXScriptRequest bareReq = new JMXScriptRequest(null, name(7).toString(), bare);
+		Assert.assertNotSame("Requests shared a plan", JMXQueryPlan.getPlan(paddedReq), JMXQueryPlan.getPlan(bareReq));
+		for(JMXScriptRequest req: new JMXScriptRequest[]{paddedReq, bareReq, paddedReq}) {
+			String key = req.compositeNames.get("Usage")[0];
+			JSONObject usage = JMXScriptHelper.getAttributes(new JMXScriptRequest[]{req}).getJSONArray("results").getJSONObject(0).getJSONObject("data").getJSONObject("Usage");
+			Assert.assertEquals("Unexpected result keys for [" + key + "]", Collections.singletonList(key), keys(usage));
+		}
+	}
+	
+	/**
+	 * Returns the keys of the passed JSON object
+	 * @param jo The JSON object
+	 * @return the keys
+	 */
+	static List<String> keys(JSONObject jo) {
+		List<String> keys = new ArrayList<String>();
+		for(Iterator<?> iter = jo.keys(); iter.hasNext();) {
+			keys.add(iter.next().toString());
+		}
+		return keys;
+	}
+	
+	/**
+	 * Verifies that a cached plan picks up MBean registrations and unregistrations without re-querying
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testPlanTracksRegistrations() throws Exception {
+		JMXScriptRequest req = new JMXScriptRequest(null, DOMAIN + ":group=G3,*", null, "Value");
+		JMXQueryPlan plan = JMXQueryPlan.getPlan(req);
+		Assert.assertTrue("Plan is not tracking", plan.isTracking());
+		Assert.assertSame("Equal request did not share the plan", plan, JMXQueryPlan.getPlan(new JMXScriptRequest(null, DOMAIN + ":group=G3,*", null, "Value")));
+		int initial = plan.resolve().size();
+		Assert.assertEquals("Unexpected resolved count", MBEANS / GROUPS, initial);
+		ObjectName added = name(MBEANS + 3 + GROUPS * 10);
+		server.registerMBean(new PlanTarget(MBEANS + 3 + GROUPS * 10), added);
+		try {
+			Assert.assertEquals("Registration not tracked", initial + 1, plan.resolve().size());
+			Assert.assertTrue("Registered MBean not resolved", plan.resolve().contains(added));
+			server.unregisterMBean(name(3));
+			Assert.assertEquals("Unregistration not tracked", initial, plan.resolve().size());
+			Assert.assertFalse("Unregistered MBean still resolved", plan.resolve().contains(name(3)));
+			JSONArray entries = new JSONArray();
+			plan.execute(entries);
+			Assert.assertEquals("Unexpected entry count", initial, entries.length());
+		} finally {
+			server.registerMBean(new PlanTarget(3), name(3));
+			server.unregisterMBean(added);
+		}
+		Assert.assertTrue("Re-registration not tracked", plan.resolve().contains(name(3)));
+		JMXQueryPlan.clear();
+		Assert.assertFalse("Closed plan still tracking", plan.isTracking());
+	}
+}
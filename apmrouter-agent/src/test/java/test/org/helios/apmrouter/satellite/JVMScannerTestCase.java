@@ -0,0 +1,274 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.apmrouter.satellite;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.helios.apmrouter.satellite.services.attach.JVM;
+import org.helios.apmrouter.satellite.services.attach.JVMScanner;
+import org.helios.vm.VirtualMachineDescriptor;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * <p>Title: JVMScannerTestCase</p>
+ * <p>Description: Spawns local JVMs and verifies that the parallel scanner attaches to them in time that scales sublinearly</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.apmrouter.satellite.JVMScannerTestCase</code></p>
+ */
+public class JVMScannerTestCase {
+	/** The spawned JVMs */
+	static final List<Process> children = new ArrayList<Process>();
+	/** The scanner under test */
+	static JVMScanner scanner = null;
+	
+	/**
+	 * <p>Title: Sleeper</p>
+	 * <p>Description: The main class of the spawned JVMs</p> 
+	 */
+	public static class Sleeper {
+		/**
+		 * Sleeps until stdin closes
+		 * @param args None
+		 * @throws Exception thrown on any error
+		 */
+		public static void main(String[] args) throws Exception {
+			while(System.in.read()!=-1) {/* No Op */}
+		}
+	}
+	
+	/**
+	 * Creates the scanner and records the JVMs that were running before the test
+	 * @throws Exception thrown on any error
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		scanner = new JVMScanner(8, 10000, -1, true);
+		scanner.scan();
+	}
+	
+	/**
+	 * Stops the spawned JVMs and the scanner
+	 * @throws Exception thrown on any error
+	 */
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		for(Process p: children) {
+			p.destroy();
+		}
+		if(scanner!=null) scanner.stop();
+	}
+	
+	/**
+	 * Spawns the passed number of JVMs and waits for them to be listed
+	 * @param count The number of JVMs to spawn
+	 * @return the ids of the spawned JVMs
+	 * @throws Exception thrown on any error
+	 */
+	static Set<String> spawn(int count) throws Exception {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		String cp = new File(Sleeper.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getAbsolutePath();
+		Set<String> before = ids();
+		for(int i = 0; i < count; i++) {
+			children.add(new ProcessBuilder(java, "-Xmx16m", "-cp", cp, Sleeper.class.getName()).start());
+		}
+		long timeout = System.currentTimeMillis() + 60000;
+		while(System.currentTimeMillis() < timeout) {
+			Set<String> added = ids();
+			added.removeAll(before);
+			if(added.size()>=count) {
+				// Give the new JVMs a moment to finish starting before they are attached
+				Thread.sleep(1000);
+				return added;
+			}
+			Thread.sleep(100);
+		}
+		throw new Exception("Spawned JVMs were not listed");
+	}
+	
+	/**
+	 * Returns the currently listed JVM ids
+	 * @return a set of JVM ids
+	 */
+	static Set<String> ids() {
+		Set<String> ids = new HashSet<String>();
+		for(VirtualMachineDescriptor vmd: VirtualMachineDescriptor.getVirtualMachineDescriptors()) {
+			ids.add(vmd.id());
+		}
+		return ids;
+	}
+	
+	/**
+	 * Scans for the passed spawned JVMs and verifies they are all attached
+	 * @param spawned The ids of the spawned JVMs
+	 * @return the elapsed scan time in ms.
+	 */
+	static long scan(Set<String> spawned) {
+		long start = System.nanoTime();
+		int added = scanner.scan();
+		long elapsed = (System.nanoTime() - start)/1000000;
+		Assert.assertEquals("Unexpected number of new JVMs", spawned.size(), added);
+		for(String id: spawned) {
+			JVM jvm = scanner.getJVM(id);
+			Assert.assertNotNull("JVM [" + id + "] not registered", jvm);
+			Assert.assertTrue("JVM [" + id + "] not attached", jvm.isAttached());
+			Assert.assertEquals("Unexpected main class", Sleeper.class.getName(), jvm.getMainClass());
+		}
+		return elapsed;
+	}
+	
+	/**
+	 * Attaches 2 and then 8 new JVMs and verifies the scan time grows by less than the JVM count,
+	 * and that an unchanged population is not re-attached.
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testScanScalesSublinearly() throws Exception {
+		Set<String> spawned = spawn(2);
+		long small = scan(spawned);
+		Set<String> more = spawn(8);
+		long large = scan(more);
+		spawned.addAll(more);
+		long attaches = scanner.getAttachCount();
+		long rescan = System.nanoTime();
+		Assert.assertEquals("Known JVMs were rediscovered", 0, scanner.scan());
+		rescan = (System.nanoTime() - rescan)/1000000;
+		Assert.assertEquals("Known JVMs were re-attached", attaches, scanner.getAttachCount());
+		System.out.println("[JVMScannerTestCase] Scan time: 2 JVMs " + small + " ms, 8 JVMs " + large + " ms, rescan " + rescan + " ms");
+		Assert.assertTrue("Scan of 8 JVMs [" + large + " ms] was not sublinear vs 2 JVMs [" + small + " ms]", large < small * 4);
+		// Departed JVMs are disposed
+		for(Process p: children) p.destroy();
+		for(Process p: children) p.waitFor();
+		scanner.scan();
+		for(String id: spawned) {
+			Assert.assertNull("Departed JVM [" + id + "] still known", scanner.getJVM(id));
+		}
+	}
+	
+	/**
+	 * <p>Title: HangingScanner</p>
+	 * <p>Description: A scanner whose attaches hang until they are interrupted</p> 
+	 */
+	static class HangingScanner extends JVMScanner {
+		/**
+		 * Creates a new HangingScanner
+		 * @param attachTimeout The attach timeout in ms.
+		 * @param maxPendingScans The number of rescans a timed out attach is waited for
+		 */
+		HangingScanner(long attachTimeout, int maxPendingScans) {
+			super(2, attachTimeout, -1, true, maxPendingScans);
+		}
+		
+		@Override
+		protected JVM discover(VirtualMachineDescriptor vmd) throws Exception {
+			Thread.sleep(Long.MAX_VALUE);
+			return null;
+		}
+		
+		/**
+		 * Returns the number of attach workers running an attach
+		 * @return the number of busy attach workers
+		 */
+		int getBusyWorkers() {
+			return attachPool==null ? 0 : attachPool.getActiveCount();
+		}
+	}
+	
+	/**
+	 * Verifies that hung attaches to live JVMs bound the scan to one timeout, are cancelled as failures after the configured
+	 * number of rescans, release their workers, and are not attached again
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testHungAttachesAreCancelled() throws Exception {
+		final long timeout = 500;
+		HangingScanner hanging = new HangingScanner(timeout, 2);
+		int before = children.size();
+		spawn(3);
+		try {
+			long start = System.nanoTime();
+			hanging.scan();
+			long elapsed = (System.nanoTime() - start)/1000000;
+			long hung = hanging.getAttachTimeoutCount();
+			Assert.assertTrue("Expected at least 3 hung attaches but got [" + hung + "]", hung >= 3);
+			Assert.assertTrue("Scan of [" + hung + "] hung attaches took [" + elapsed + "] ms", elapsed < timeout * 2);
+			Assert.assertEquals("Busy workers", 2, hanging.getBusyWorkers());
+			hanging.scan();
+			hanging.scan();
+			Assert.assertEquals("Cancelled before the pending rescans elapsed", 0, hanging.getAttachFailureCount());
+			hanging.scan();
+			Assert.assertEquals("Hung attaches not cancelled as failures", hung, hanging.getAttachFailureCount());
+			long wait = System.currentTimeMillis() + 5000;
+			while(hanging.getBusyWorkers()>0 && System.currentTimeMillis() < wait) Thread.sleep(50);
+			Assert.assertEquals("Cancelled attaches still hold workers", 0, hanging.getBusyWorkers());
+			hanging.scan();
+			Assert.assertEquals("Abandoned JVMs were attached again", hung, hanging.getAttachTimeoutCount());
+			Assert.assertEquals("Abandoned JVMs were attached again", 0, hanging.getBusyWorkers());
+			Assert.assertEquals("Unexpected known JVMs", 0, hanging.getJVMCount());
+		} finally {
+			hanging.stop();
+			// the other test counts the JVMs new to the shared scanner, so these must be gone before it runs
+			for(Process p: children.subList(before, children.size())) {
+				p.destroy();
+				p.waitFor();
+			}
+		}
+	}
+	
+	/**
+	 * Verifies that a stopped scanner can be scanned and started again
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testScanAfterStop() throws Exception {
+		JVMScanner restartable = new JVMScanner(2, 10000, -1, true);
+		Set<String> spawned = spawn(1);
+		Process child = children.get(children.size()-1);
+		try {
+			String id = spawned.iterator().next();
+			restartable.scan();
+			Assert.assertNotNull("JVM [" + id + "] not registered", restartable.getJVM(id));
+			restartable.stop();
+			Assert.assertNull("JVM [" + id + "] still known after stop", restartable.getJVM(id));
+			restartable.scan();
+			Assert.assertTrue("JVM [" + id + "] not attached after a scan following a stop", restartable.getJVM(id).isAttached());
+			restartable.stop();
+			restartable.start();
+			Assert.assertTrue("JVM [" + id + "] not attached after a restart", restartable.getJVM(id).isAttached());
+		} finally {
+			restartable.stop();
+			// the other test counts the JVMs new to the shared scanner, so this one must be gone before it runs
+			child.destroy();
+			child.waitFor();
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <p>Title: BenchmarkRunner</p>
+ * <p>Description: Launches the apmrouter micro benchmarks with the GC profiler attached so that each result
+ * reports the allocation rate (<b><code>gc.alloc.rate.norm</code></b>) alongside the throughput.
+ * Any standard JMH command line options can be passed, e.g. a benchmark name regex to run a subset.
+ * The shaded <b><code>benchmarks.jar</code></b> can also be run directly with <b><code>java -jar benchmarks.jar -prof gc</code></b>.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.bench.BenchmarkRunner</code></p>
+ */
+public class BenchmarkRunner {
+	/** The default pattern of benchmarks to run when none is specified on the command line */
+	public static final String BENCHMARK_PATTERN = "org\\.helios\\.apmrouter\\..*Benchmark.*";
+	/** The host name used for benchmark metrics */
+	public static final String HOST = "bench-host";
+	/** The agent name used for benchmark metrics */
+	public static final String AGENT = "bench-agent";
+	/** Namespace fragments used to build metric namespaces */
+	private static final String[] NAMESPACE_PARTS = {"JVM", "Memory", "Threads", "GC", "Platform", "Sockets", "Collector"};
+	
+	/**
+	 * Runs the benchmarks
+	 * @param args Standard JMH command line options
+	 * @throws Exception thrown on any error parsing options or running the benchmarks
+	 */
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cmdLine = new CommandLineOptions(args);
+		ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmdLine).addProfiler(GCProfiler.class);
+		if(cmdLine.getIncludes().isEmpty()) {
+			builder.include(BENCHMARK_PATTERN);
+		}
+		new Runner(builder.build()).run();
+	}
+	
+	/**
+	 * Returns a 3 level metric namespace that varies with the passed index
+	 * @param index The metric index
+	 * @return a metric namespace
+	 */
+	public static String[] namespace(int index) {
+		return new String[]{
+			NAMESPACE_PARTS[index % NAMESPACE_PARTS.length], 
+			NAMESPACE_PARTS[(index/NAMESPACE_PARTS.length) % NAMESPACE_PARTS.length],
+			"ns" + (index % 17)
+		};
+	}
+	
+	/**
+	 * Returns the fully qualified metric name for the passed index, matching the names built from {@link #namespace(int)}
+	 * @param index The metric index
+	 * @return a metric fully qualified name
+	 */
+	public static String fqn(int index) {
+		StringBuilder b = new StringBuilder(HOST).append("/").append(AGENT);
+		for(String ns: namespace(index)) {
+			b.append("/").append(ns);
+		}
+		return b.append(":Metric").append(index).toString();
+	}
+}
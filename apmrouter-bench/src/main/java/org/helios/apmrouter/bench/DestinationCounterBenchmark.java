@@ -0,0 +1,117 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.helios.apmrouter.destination.BaseDestination;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Title: DestinationCounterBenchmark</p>
+ * <p>Description: Benchmarks the accepted route counter updates made by {@link BaseDestination#acceptRoute(org.helios.apmrouter.metric.IMetric)}
+ * for a route to many destinations from several threads, as the pattern router workers do, through the registered counter handle 
+ * versus looked up by name on every route. The rest of <code>acceptRoute</code> is left out since formatting the metric's routing key 
+ * for the pattern match costs far more than either counter update and would hide the difference.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.bench.DestinationCounterBenchmark</code></p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Threads(4)
+@Fork(1)
+public class DestinationCounterBenchmark {
+	/** The number of destinations each route is counted by */
+	@Param({"16"})
+	public int destinationCount;
+	/** The destinations */
+	protected CountingDestination[] destinations;
+	
+	/**
+	 * <p>Title: CountingDestination</p>
+	 * <p>Description: A destination exposing its accepted route counter updates</p> 
+	 */
+	public static class CountingDestination extends BaseDestination {
+		/**
+		 * Counts an accepted route through the counter handle
+		 */
+		public void countByHandle() {
+			acceptedRoutes.increment();
+		}
+		
+		/**
+		 * Counts an accepted route by name
+		 */
+		public void countByName() {
+			incr("AcceptedRoutes");
+		}
+	}
+	
+	/**
+	 * Creates the destinations
+	 */
+	@Setup
+	public void setup() {
+		destinations = new CountingDestination[destinationCount];
+		for(int i = 0; i < destinationCount; i++) {
+			destinations[i] = new CountingDestination();
+		}
+	}
+	
+	/**
+	 * Counts a route on each destination through the registered counter handle
+	 */
+	@Benchmark
+	public void handleCounters() {
+		for(CountingDestination destination: destinations) {
+			destination.countByHandle();
+		}
+	}
+	
+	/**
+	 * Counts a route on each destination by counter name
+	 */
+	@Benchmark
+	public void namedCounters() {
+		for(CountingDestination destination: destinations) {
+			destination.countByName();
+		}
+	}
+}
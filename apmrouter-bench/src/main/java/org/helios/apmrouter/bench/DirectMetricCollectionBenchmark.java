@@ -0,0 +1,145 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.helios.apmrouter.metric.ICEMetric;
+import org.helios.apmrouter.metric.IMetric;
+import org.helios.apmrouter.metric.MetricType;
+import org.helios.apmrouter.trace.DirectMetricCollection;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Title: DirectMetricCollectionBenchmark</p>
+ * <p>Description: Benchmarks the encoding of metrics into a {@link DirectMetricCollection}, the decoding back into {@link IMetric}s
+ * and the splitting of a large DMC into payload sized DMCs as done by the UDP sender.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.bench.DirectMetricCollectionBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class DirectMetricCollectionBenchmark {
+	/** The number of metrics in each collection */
+	@Param({"10", "100"})
+	public int metricCount;
+	/** The maximum byte size of a split DMC */
+	@Param({"1024"})
+	public int splitSize;
+	
+	/** The metrics to encode */
+	protected IMetric[] metrics;
+	/** A pre-encoded DMC to decode and split */
+	protected DirectMetricCollection encoded;
+	
+	/**
+	 * Creates the metrics and the pre-encoded DMC
+	 */
+	@Setup(Level.Trial)
+	public void setup() {
+		metrics = new IMetric[metricCount];
+		for(int i = 0; i < metricCount; i++) {
+			metrics[i] = ICEMetric.trace((long)i, BenchmarkRunner.HOST, BenchmarkRunner.AGENT, "Metric" + i, MetricType.LONG_GAUGE, BenchmarkRunner.namespace(i));
+		}
+		encoded = DirectMetricCollection.newDirectMetricCollection(metrics);
+	}
+	
+	/**
+	 * Releases the pre-encoded DMC
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		encoded.destroy();
+	}
+	
+	/**
+	 * Encodes the metrics into a new DMC
+	 * @return the encoded byte size
+	 */
+	@Benchmark
+	public int encode() {
+		DirectMetricCollection dmc = DirectMetricCollection.newDirectMetricCollection(metrics);
+		try {
+			return dmc.getSize();
+		} finally {
+			dmc.destroy();
+		}
+	}
+	
+	/**
+	 * Encodes the metrics into a new DMC and writes it to a {@link ChannelBuffer} for transmission
+	 * @return the channel buffer
+	 */
+	@Benchmark
+	public ChannelBuffer encodeToChannelBuffer() {
+		DirectMetricCollection dmc = DirectMetricCollection.newDirectMetricCollection(metrics);
+		try {
+			return dmc.toChannelBuffer();
+		} finally {
+			dmc.destroy();
+		}
+	}
+	
+	/**
+	 * Decodes the pre-encoded DMC back into metrics
+	 * @return the decoded metrics
+	 */
+	@Benchmark
+	public IMetric[] decode() {
+		return encoded.decode();
+	}
+	
+	/**
+	 * Splits the pre-encoded DMC into DMCs of no more than {@link #splitSize} bytes
+	 * @return the number of split DMCs
+	 */
+	@Benchmark
+	public int split() {
+		int count = 0;
+		for(DirectMetricCollection d: encoded.newSplitReader(splitSize)) {
+			count++;
+			if(d!=encoded) d.destroy();
+		}
+		return count;
+	}
+}
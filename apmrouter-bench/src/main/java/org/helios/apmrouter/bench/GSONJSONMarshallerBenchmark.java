@@ -0,0 +1,116 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.bench;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.helios.apmrouter.dataservice.json.JsonResponse;
+import org.helios.apmrouter.dataservice.json.marshalling.GSONJSONMarshaller;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Title: GSONJSONMarshallerBenchmark</p>
+ * <p>Description: Benchmarks {@link GSONJSONMarshaller} output of a time-series shaped {@link JsonResponse}
+ * to text (the websocket path) and to a channel buffer (the netty listener path).</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.bench.GSONJSONMarshallerBenchmark</code></p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class GSONJSONMarshallerBenchmark {
+	/** The number of series in the response */
+	@Param({"10"})
+	public int seriesCount;
+	/** The number of data points in each series */
+	@Param({"60"})
+	public int pointCount;
+	
+	/** The marshaller under test */
+	protected GSONJSONMarshaller marshaller;
+	/** The response to marshall */
+	protected JsonResponse response;
+	
+	/**
+	 * Creates the marshaller and the response
+	 */
+	@Setup
+	public void setup() {
+		marshaller = new GSONJSONMarshaller();
+		// the setter rebuilds the gson instance
+		marshaller.setPrettyPrint(false);
+		long now = System.currentTimeMillis();
+		List<Map<String, Object>> series = new ArrayList<Map<String, Object>>(seriesCount);
+		for(int s = 0; s < seriesCount; s++) {
+			Map<String, Object> entry = new LinkedHashMap<String, Object>();
+			List<long[]> points = new ArrayList<long[]>(pointCount);
+			for(int p = 0; p < pointCount; p++) {
+				points.add(new long[]{now - (pointCount-p)*15000L, p, p*3, p*2, 3});
+			}
+			entry.put("id", s);
+			entry.put("fqn", BenchmarkRunner.fqn(s));
+			entry.put("data", points);
+			series.add(entry);
+		}
+		response = new JsonResponse(1, JsonResponse.RESP_TYPE_RESP).setContent(series);
+	}
+	
+	/**
+	 * Marshalls the response to text
+	 * @return the JSON text
+	 */
+	@Benchmark
+	public String marshallToText() {
+		return marshaller.marshallToText(response);
+	}
+	
+	/**
+	 * Marshalls the response to a channel buffer
+	 * @return the JSON channel buffer
+	 */
+	@Benchmark
+	public ChannelBuffer marshallToChannel() {
+		return marshaller.marshallToChannel(response.getOpCode(), response);
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.helios.apmrouter.collections.ConcurrentLongSlidingWindow;
+import org.helios.apmrouter.collections.LatencyHistogram;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Title: LatencyHistogramBenchmark</p>
+ * <p>Description: Benchmarks the recording cost of {@link LatencyHistogram} against the {@link ConcurrentLongSlidingWindow} it replaces
+ * for hot path elapsed time instrumentation, single threaded and with 4 concurrent recording threads.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.bench.LatencyHistogramBenchmark</code></p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class LatencyHistogramBenchmark {
+	/** The histogram under test */
+	protected final LatencyHistogram histogram = new LatencyHistogram();
+	/** The sliding window baseline */
+	protected final ConcurrentLongSlidingWindow window = new ConcurrentLongSlidingWindow(60);
+	/** A varying value to record */
+	protected long value = 1000;
+	
+	/**
+	 * Returns the next value to record
+	 * @return the next value to record
+	 */
+	protected long next() {
+		// racy across threads, which is fine for a varying input
+		long v = value + 7919;
+		value = v > 10000000 ? 1000 : v;
+		return v;
+	}
+	
+	/**
+	 * Records a value in the histogram
+	 */
+	@Benchmark
+	@Threads(1)
+	public void histogramRecord() {
+		histogram.record(next());
+	}
+	
+	/**
+	 * Records a value in the histogram from 4 threads
+	 */
+	@Benchmark
+	@Threads(4)
+	public void histogramRecordContended() {
+		histogram.record(next());
+	}
+	
+	/**
+	 * Inserts a value into the sliding window
+	 */
+	@Benchmark
+	@Threads(1)
+	public void slidingWindowInsert() {
+		window.insert(next());
+	}
+	
+	/**
+	 * Inserts a value into the sliding window from 4 threads
+	 */
+	@Benchmark
+	@Threads(4)
+	public void slidingWindowInsertContended() {
+		window.insert(next());
+	}
+}
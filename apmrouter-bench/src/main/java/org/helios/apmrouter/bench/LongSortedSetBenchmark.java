@@ -0,0 +1,139 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.helios.apmrouter.collections.ConcurrentLongSortedSet;
+import org.helios.apmrouter.collections.LongSortedSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Title: LongSortedSetBenchmark</p>
+ * <p>Description: Benchmarks the lookup and mutation operations of {@link LongSortedSet} and {@link ConcurrentLongSortedSet},
+ * which back the routing pattern hit/miss caches.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.bench.LongSortedSetBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class LongSortedSetBenchmark {
+	/** The set implementation to benchmark */
+	@Param({"plain", "concurrent"})
+	public String impl;
+	/** The number of values loaded into the set */
+	@Param({"100", "10000"})
+	public int size;
+	
+	/** The set under test */
+	protected LongSortedSet set;
+	/** The values loaded into the set */
+	protected long[] present;
+	/** Values not loaded into the set */
+	protected long[] absent;
+	/** The lookup cursor */
+	protected int cursor = 0;
+	
+	/**
+	 * Creates and loads the set
+	 */
+	@Setup
+	public void setup() {
+		Random r = new Random(size);
+		set = "concurrent".equals(impl) ? new ConcurrentLongSortedSet() : new LongSortedSet();
+		present = new long[size];
+		absent = new long[size];
+		for(int i = 0; i < size; i++) {
+			// even values are loaded, odd values are never loaded
+			present[i] = r.nextLong() & ~1L;
+			absent[i] = present[i] | 1L;
+			set.add(present[i]);
+		}
+	}
+	
+	/**
+	 * Returns the next cursor index
+	 * @return the next cursor index
+	 */
+	protected int next() {
+		int c = cursor++;
+		if(cursor==size) cursor = 0;
+		return c;
+	}
+	
+	/**
+	 * Looks up a value known to be in the set
+	 * @return true
+	 */
+	@Benchmark
+	public boolean containsHit() {
+		return set.contains(present[next()]);
+	}
+	
+	/**
+	 * Looks up a value known not to be in the set
+	 * @return false
+	 */
+	@Benchmark
+	public boolean containsMiss() {
+		return set.contains(absent[next()]);
+	}
+	
+	/**
+	 * Adds a value to the set and then removes it
+	 * @return the result of the remove
+	 */
+	@Benchmark
+	public boolean addRemove() {
+		long v = absent[next()];
+		set.add(v);
+		return set.remove(v);
+	}
+	
+	/**
+	 * Reads a value by index
+	 * @return the value at the next index
+	 */
+	@Benchmark
+	public long get() {
+		return set.get(next() % set.size());
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.helios.apmrouter.metric.MetricType;
+import org.helios.apmrouter.metric.catalog.AbstractMetricCatalog;
+import org.helios.apmrouter.metric.catalog.IDelegateMetric;
+import org.helios.apmrouter.metric.catalog.heap.LongKeyedHeapMetricCatalog;
+import org.helios.apmrouter.metric.catalog.heap.StringKeyedHeapMetricCatalog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Title: MetricCatalogBenchmark</p>
+ * <p>Description: Benchmarks {@link AbstractMetricCatalog} lookups of already cataloged metrics, 
+ * by metric name components and by serialization token, for each of the heap catalog implementations.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.bench.MetricCatalogBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class MetricCatalogBenchmark {
+	/** The simple class name of the catalog implementation to benchmark */
+	@Param({"StringKeyedHeapMetricCatalog", "LongKeyedHeapMetricCatalog"})
+	public String catalogType;
+	/** The number of metrics in the catalog */
+	@Param({"10000"})
+	public int metricCount;
+	
+	/** The catalog under test */
+	protected AbstractMetricCatalog<?, ?> catalog;
+	/** The metric names */
+	protected String[] names;
+	/** The metric namespaces */
+	protected String[][] namespaces;
+	/** The metric tokens */
+	protected long[] tokens;
+	/** The lookup cursor */
+	protected int cursor = 0;
+	
+	/**
+	 * Creates and loads the catalog
+	 */
+	@Setup
+	public void setup() {
+		catalog = LongKeyedHeapMetricCatalog.class.getSimpleName().equals(catalogType) ? new LongKeyedHeapMetricCatalog() : new StringKeyedHeapMetricCatalog();
+		names = new String[metricCount];
+		namespaces = new String[metricCount][];
+		tokens = new long[metricCount];
+		for(int i = 0; i < metricCount; i++) {
+			names[i] = "Metric" + i;
+			namespaces[i] = BenchmarkRunner.namespace(i);
+			tokens[i] = catalog.setToken(BenchmarkRunner.HOST, BenchmarkRunner.AGENT, names[i], MetricType.LONG_GAUGE, namespaces[i]);
+		}
+	}
+	
+	/**
+	 * Returns the next cursor index
+	 * @return the next cursor index
+	 */
+	protected int next() {
+		int c = cursor++;
+		if(cursor==metricCount) cursor = 0;
+		return c;
+	}
+	
+	/**
+	 * Looks up a cataloged metric by its name components
+	 * @return the cataloged metric
+	 */
+	@Benchmark
+	public IDelegateMetric getByName() {
+		int i = next();
+		return catalog.get(BenchmarkRunner.HOST, BenchmarkRunner.AGENT, names[i], MetricType.LONG_GAUGE, namespaces[i]);
+	}
+	
+	/**
+	 * Looks up a cataloged metric by its token
+	 * @return the cataloged metric
+	 */
+	@Benchmark
+	public IDelegateMetric getByToken() {
+		return catalog.get(tokens[next()]);
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.helios.apmrouter.metric.ICEMetric;
+import org.helios.apmrouter.metric.IMetric;
+import org.helios.apmrouter.metric.MetricType;
+import org.helios.apmrouter.metric.TokenConflationTable;
+import org.helios.apmrouter.metric.catalog.heap.StringKeyedHeapMetricCatalog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Title: MetricConflationBenchmark</p>
+ * <p>Description: Benchmarks conflating a high cardinality metric stream, flushing once per pass over the stream, 
+ * using a {@link TokenConflationTable} versus the FQN keyed map and copy-on-flush the conflation services used previously.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.bench.MetricConflationBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class MetricConflationBenchmark {
+	/** The number of distinct metrics in the stream */
+	@Param({"100000"})
+	public int cardinality;
+	/** The number of times each metric appears in the stream per flush */
+	@Param({"4"})
+	public int repeats;
+	
+	/** The metric stream */
+	protected IMetric[] metrics;
+	/** The token conflation table */
+	protected TokenConflationTable table;
+	/** The FQN keyed conflation map */
+	protected ConcurrentHashMap<String, IMetric> fqnMap;
+	/** The lock the FQN keyed map is updated and copied under */
+	protected final Object lock = new Object();
+	/** The stream cursor */
+	protected int cursor = 0;
+	
+	/**
+	 * Creates the metric stream
+	 */
+	@Setup
+	public void setup() {
+		StringKeyedHeapMetricCatalog catalog = new StringKeyedHeapMetricCatalog();
+		metrics = new IMetric[cardinality];
+		long now = System.currentTimeMillis();
+		for(int i = 0; i < cardinality; i++) {
+			long token = catalog.setToken(BenchmarkRunner.HOST, BenchmarkRunner.AGENT, "Metric" + i, MetricType.LONG_GAUGE, BenchmarkRunner.namespace(i));
+			metrics[i] = ICEMetric.newMetric(now, i, MetricType.LONG_GAUGE, catalog.get(token));
+		}
+		table = new TokenConflationTable(cardinality, 0);
+		fqnMap = new ConcurrentHashMap<String, IMetric>(cardinality);
+	}
+	
+	/**
+	 * Returns the next metric in the stream
+	 * @return the next metric
+	 */
+	protected IMetric next() {
+		return metrics[cursor++ % cardinality];
+	}
+	
+	/**
+	 * Determines if a full pass of the stream has been conflated and resets the cursor if it has
+	 * @return true if the pending metrics should be flushed
+	 */
+	protected boolean flushDue() {
+		if(cursor==cardinality*repeats) {
+			cursor = 0;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Conflates the next metric by token, swapping out and draining the table once per pass
+	 * @return the number of metrics drained
+	 */
+	@Benchmark
+	public int tokenTable() {
+		table.conflate(next());
+		return flushDue() ? table.drain().length : 0;
+	}
+	
+	/**
+	 * Conflates the next metric by FQN, copying and clearing the map once per pass
+	 * @return the number of metrics copied
+	 */
+	@Benchmark
+	public int fqnMap() {
+		IMetric metric = next();
+		synchronized(lock) {
+			IMetric alreadyQueued = fqnMap.get(metric.getFQN());
+			if(alreadyQueued!=null) {
+				alreadyQueued.conflate(metric);
+			} else {
+				fqnMap.put(metric.getFQN(), metric);
+			}
+		}
+		if(flushDue()) {
+			Map<String, IMetric> flushed;
+			synchronized(lock) {
+				flushed = new HashMap<String, IMetric>(fqnMap);
+				fqnMap.clear();
+			}
+			return flushed.size();
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.helios.apmrouter.router.PatternMatch;
+import org.helios.apmrouter.router.PatternMatch.PatternMatchGroup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Title: PatternMatchBenchmark</p>
+ * <p>Description: Benchmarks routing key matching through {@link PatternMatch} and {@link PatternMatchGroup}
+ * against a raw regex match of the same pattern as a baseline.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.bench.PatternMatchBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class PatternMatchBenchmark {
+	/** The number of distinct routing keys matched */
+	@Param({"1000"})
+	public int keyCount;
+	
+	/** The routing pattern */
+	public static final String PATTERN = ".*/JVM/.*|.*/GC/.*";
+	/** The routing patterns of the pattern group */
+	public static final String[] GROUP_PATTERNS = {".*/Platform/.*", ".*/Sockets/.*", ".*/Collector/.*", PATTERN};
+	
+	/** The routing keys */
+	protected String[] keys;
+	/** The pattern match under test */
+	protected PatternMatch patternMatch;
+	/** The pattern match group under test */
+	protected PatternMatchGroup group;
+	/** The raw regex baseline */
+	protected Pattern regex;
+	/** The key cursor */
+	protected int cursor = 0;
+	
+	/**
+	 * Creates the routing keys and patterns
+	 */
+	@Setup
+	public void setup() {
+		keys = new String[keyCount];
+		for(int i = 0; i < keyCount; i++) {
+			keys[i] = BenchmarkRunner.fqn(i);
+		}
+		patternMatch = PatternMatch.getInstance(PATTERN);
+		group = PatternMatch.newPatternMatchGroup(GROUP_PATTERNS);
+		regex = Pattern.compile(PATTERN);
+	}
+	
+	/**
+	 * Returns the next routing key
+	 * @return the next routing key
+	 */
+	protected String next() {
+		String key = keys[cursor++];
+		if(cursor==keyCount) cursor = 0;
+		return key;
+	}
+	
+	/**
+	 * Matches a routing key against a single pattern match
+	 * @return the match result
+	 */
+	@Benchmark
+	public boolean patternMatch() {
+		return patternMatch.matches(next());
+	}
+	
+	/**
+	 * Matches a routing key against a pattern match group
+	 * @return the match result
+	 */
+	@Benchmark
+	public boolean patternMatchGroup() {
+		return group.matches(next());
+	}
+	
+	/**
+	 * Matches a routing key using the raw regex
+	 * @return the match result
+	 */
+	@Benchmark
+	public boolean regexBaseline() {
+		return regex.matcher(next()).matches();
+	}
+}
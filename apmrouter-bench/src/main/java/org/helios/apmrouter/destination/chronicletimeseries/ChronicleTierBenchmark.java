@@ -0,0 +1,231 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.destination.chronicletimeseries;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.helios.apmrouter.metric.ICEMetric;
+import org.helios.apmrouter.metric.IMetric;
+import org.helios.apmrouter.bench.BenchmarkRunner;
+import org.helios.apmrouter.metric.MetricType;
+import org.helios.apmrouter.metric.catalog.IDelegateMetric;
+import org.helios.apmrouter.metric.catalog.heap.StringKeyedHeapMetricCatalog;
+import org.helios.apmrouter.tsmodel.Tier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * <p>Title: ChronicleTierBenchmark</p>
+ * <p>Description: Benchmarks {@link ChronicleTier#addValue(IMetric)} updating the current period of a standalone tier,
+ * single threaded and with several threads contending for the tier's write stripes, with the threads either cycling through the same series 
+ * or each writing its own. Each benchmark runs with a single write stripe, which serializes every update to the tier as it was before 
+ * the writes were striped, and with the default number of stripes, so the contended results show the gain from striping.
+ * Lives in the tier's package since tiers are otherwise only created by the {@link ChronicleTSManager}.
+ * The tier chronicle is created under {@link ChronicleTier#CHRONICLE_HOME_DIR} at a tier level the server does not use
+ * and is deleted when the trial completes.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.destination.chronicletimeseries.ChronicleTierBenchmark</code></p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class ChronicleTierBenchmark {
+	/** The tier level of the benchmark tier, which determines the chronicle file name */
+	public static final int BENCH_TIER_LEVEL = 99;
+	/** The benchmark tier definition */
+	public static final String BENCH_TIER_DEF = "p=15s,t=150s";
+	
+	/**
+	 * <p>Title: TierState</p>
+	 * <p>Description: The shared tier and its metric IDs</p> 
+	 */
+	@State(Scope.Benchmark)
+	public static class TierState {
+		/** The number of metrics in the tier */
+		@Param({"2000"})
+		public int metricCount;
+		/** The number of write stripes in the tier */
+		@Param({"1", "" + ChronicleTier.DEFAULT_WRITE_STRIPES})
+		public int stripes;
+		/** The tier under test */
+		protected ChronicleTier tier;
+		/** The delegate metrics, tokenized with their tier metric ID */
+		protected IDelegateMetric[] delegates;
+		
+		/**
+		 * Creates the tier and its metric entries
+		 */
+		@Setup(Level.Trial)
+		public void setup() {
+			ChronicleTier.CHRONICLE_HOME_DIR.mkdirs();
+			System.setProperty(ChronicleTier.WRITE_STRIPES_PROP, "" + stripes);
+			tier = new ChronicleTier(Tier.newTier(BENCH_TIER_DEF, BENCH_TIER_LEVEL), null, null);
+			tier.clear();
+			StringKeyedHeapMetricCatalog catalog = new StringKeyedHeapMetricCatalog();
+			delegates = new IDelegateMetric[metricCount];
+			for(int i = 0; i < metricCount; i++) {
+				long metricId = tier.createNewMetric();
+				catalog.setToken(metricId, BenchmarkRunner.HOST, BenchmarkRunner.AGENT, "Metric" + i, MetricType.LONG_GAUGE, BenchmarkRunner.namespace(i));
+				delegates[i] = catalog.get(metricId);
+			}
+		}
+		
+		/**
+		 * Closes the tier and deletes its chronicle files
+		 */
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			System.clearProperty(ChronicleTier.WRITE_STRIPES_PROP);
+			tier.close();
+			new File(tier.getChroniclePath() + ".data").delete();
+			new File(tier.getChroniclePath() + ".index").delete();
+		}
+	}
+	
+	/**
+	 * <p>Title: AbstractMetricState</p>
+	 * <p>Description: Per thread metrics to add, all timestamped in the current period, and rebuilt each iteration by the subclass's 
+	 * setup so the timestamps stay within the tier's current period</p> 
+	 */
+	public abstract static class AbstractMetricState {
+		/** The metrics to add */
+		protected IMetric[] metrics;
+		/** The metric cursor */
+		protected int cursor = 0;
+		
+		/**
+		 * Creates the metrics for a range of the tier's series
+		 * @param tierState The shared tier state
+		 * @param from The first series
+		 * @param count The number of series
+		 */
+		protected void create(TierState tierState, int from, int count) {
+			long now = System.currentTimeMillis();
+			metrics = new IMetric[count];
+			for(int i = 0; i < count; i++) {
+				metrics[i] = ICEMetric.newMetric(now, from + i, MetricType.LONG_GAUGE, tierState.delegates[from + i]);
+			}
+		}
+		
+		/**
+		 * Returns the next metric
+		 * @return the next metric
+		 */
+		protected IMetric next() {
+			IMetric m = metrics[cursor++];
+			if(cursor==metrics.length) cursor = 0;
+			return m;
+		}
+	}
+	
+	/**
+	 * <p>Title: MetricState</p>
+	 * <p>Description: Per thread metrics to add for all of the tier's series, each thread starting from a different series</p> 
+	 */
+	@State(Scope.Thread)
+	public static class MetricState extends AbstractMetricState {
+		/**
+		 * Creates the metrics
+		 * @param tierState The shared tier state
+		 */
+		@Setup(Level.Iteration)
+		public void setup(TierState tierState) {
+			create(tierState, 0, tierState.metricCount);
+			cursor = (int)(Thread.currentThread().getId() % metrics.length);
+		}
+	}
+	
+	/**
+	 * <p>Title: OwnedMetricState</p>
+	 * <p>Description: Per thread metrics to add, for a slice of the tier's series that no other thread writes</p> 
+	 */
+	@State(Scope.Thread)
+	public static class OwnedMetricState extends AbstractMetricState {
+		/**
+		 * Creates the metrics for this thread's slice of the series
+		 * @param tierState The shared tier state
+		 * @param threadParams The benchmark thread parameters
+		 */
+		@Setup(Level.Iteration)
+		public void setup(TierState tierState, ThreadParams threadParams) {
+			int slice = tierState.metricCount / threadParams.getThreadCount();
+			create(tierState, threadParams.getThreadIndex() * slice, slice);
+			cursor = 0;
+		}
+	}
+	
+	/**
+	 * Adds a value to the tier from a single thread
+	 * @param tierState The shared tier state
+	 * @param metricState The thread's metrics
+	 * @return the rolled value, usually null
+	 */
+	@Benchmark
+	@Threads(1)
+	public long[] addValue(TierState tierState, MetricState metricState) {
+		return tierState.tier.addValue(metricState.next());
+	}
+	
+	/**
+	 * Adds a value to the tier from 4 concurrent threads cycling through the same series
+	 * @param tierState The shared tier state
+	 * @param metricState The thread's metrics
+	 * @return the rolled value, usually null
+	 */
+	@Benchmark
+	@Threads(4)
+	public long[] addValueContended(TierState tierState, MetricState metricState) {
+		return tierState.tier.addValue(metricState.next());
+	}
+	
+	/**
+	 * Adds a value to the tier from 4 concurrent threads each writing its own series
+	 * @param tierState The shared tier state
+	 * @param metricState The thread's metrics
+	 * @return the rolled value, usually null
+	 */
+	@Benchmark
+	@Threads(4)
+	public long[] addValueContendedOwned(TierState tierState, OwnedMetricState metricState) {
+		return tierState.tier.addValue(metricState.next());
+	}
+}
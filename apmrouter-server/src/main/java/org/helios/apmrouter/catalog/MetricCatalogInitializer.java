@@ -266,4 +266,13 @@ public class MetricCatalogInitializer extends ServerComponentBean implements IMe
 	public void resetTokens() {
 		/* No Op */		
 	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.metric.catalog.IMetricCatalog#revalidateTokens(long)
+	 */
+	@Override
+	public int revalidateTokens(long serverEpoch) {
+		return catalog.revalidateTokens(serverEpoch);
+	}
 }
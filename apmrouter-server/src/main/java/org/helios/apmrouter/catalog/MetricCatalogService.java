@@ -127,4 +127,11 @@ public interface MetricCatalogService extends EntryStatusChangeListener {
 	 */
 	public long isAssigned(String host, String agent, String namespace, String name);	
 	
+	/**
+	 * Returns the epoch of this catalog. The epoch is created with the catalog's store and changes only when the store is recreated,
+	 * so an agent can keep tokens issued under the same epoch across restarts of either side.
+	 * @return the catalog epoch
+	 */
+	public long getCatalogEpoch();
+	
 }
@@ -53,6 +53,10 @@ public class AgentTrigger extends AbstractTrigger implements AgentTriggerMBean {
 	public static final int AGENT_COLUMN_ID = 0;
 	/** The ID of the column containing the agent name for an agent */
 	public static final int AGENT_NAME_ID = 2;
+	/** The ID of the column containing the host id for an agent */
+	public static final int HOST_COLUMN_ID = 1;
+	/** The ID of the column containing the minimum metric level for an agent */
+	public static final int MIN_LEVEL_ID = 3;
 	
 	/**
 	 * Creates a new AgentTrigger
@@ -74,8 +78,10 @@ public class AgentTrigger extends AbstractTrigger implements AgentTriggerMBean {
 				int rowsUpdated = markAgentMetricsDown(conn, (Integer)newRow[AGENT_COLUMN_ID]);
 				log.info("Marked [" + rowsUpdated + "] metrics OFFLINE for agent [" + newRow[AGENT_NAME_ID] + "]");
 			}
+			NewElementTriggers.fireAgentChange(oldRow, newRow);
 		} else if(TriggerOp.INSERT.isEnabled(type)) {
 			log.info("\n\t=================\n\tNEW AGENT:" + Arrays.toString(newRow) + "\n\t=================\n");
+			NewElementTriggers.fireAgentChange(null, newRow);
 			//sendNotification(NEW_AGENT, newRow);								
 		}
 		callCount.incrementAndGet();
@@ -0,0 +1,70 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.catalog.jdbc.h2;
+
+/**
+ * <p>Title: CatalogChangeListener</p>
+ * <p>Description: Defines a listener synchronously notified by the catalog triggers when hosts, agents or metrics are added
+ * or change state. Implementations are called on the thread executing the catalog update, so they must be quick.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.catalog.jdbc.h2.CatalogChangeListener</code></p>
+ */
+
+public interface CatalogChangeListener {
+	/**
+	 * Callback when a new host is added to the catalog
+	 * @param hostId The id of the new host
+	 */
+	public void onNewHost(int hostId);
+	
+	/**
+	 * Callback when an existing host connects or disconnects, its agent count changes or its name, domain or address changes
+	 * @param hostId The id of the host
+	 */
+	public void onHostChange(int hostId);
+	
+	/**
+	 * Callback when a new agent is added to the catalog, or an existing agent connects or disconnects
+	 * @param agentId The id of the agent
+	 * @param hostId The id of the agent's host
+	 */
+	public void onAgentChange(int agentId, int hostId);
+	
+	/**
+	 * Callback when a new metric is added to the catalog
+	 * @param metricId The id of the new metric
+	 * @param agentId The id of the metric's agent
+	 */
+	public void onNewMetric(long metricId, int agentId);
+	
+	/**
+	 * Callback when a metric's state changes
+	 * @param metricId The id of the metric
+	 * @param agentId The id of the metric's agent
+	 * @param state The new state of the metric
+	 */
+	public void onMetricStateChange(long metricId, int agentId, byte state);
+}
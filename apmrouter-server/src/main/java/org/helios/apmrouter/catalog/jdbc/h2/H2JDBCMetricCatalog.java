@@ -47,9 +47,9 @@ import org.helios.apmrouter.catalog.DChannelEventType;
 import org.helios.apmrouter.catalog.EntryStatus;
 import org.helios.apmrouter.catalog.EntryStatus.EntryStatusChange;
 import org.helios.apmrouter.catalog.MetricCatalogService;
-import org.helios.apmrouter.collections.ConcurrentLongSlidingWindow;
 import org.helios.apmrouter.collections.ConcurrentLongSortedSet;
-import org.helios.apmrouter.collections.LongSlidingWindow;
+import org.helios.apmrouter.collections.LatencyHistogram;
+import org.helios.apmrouter.collections.StripedCounter;
 import org.helios.apmrouter.destination.chronicletimeseries.ChronicleTSManager;
 import org.helios.apmrouter.destination.chronicletimeseries.ChronicleTier;
 import org.helios.apmrouter.metric.IMetric;
@@ -88,9 +88,15 @@ public class H2JDBCMetricCatalog extends ServerComponentBean implements MetricCa
 	
 	/** Indicates if the metric catalog should be kept real time */
 	protected boolean realtime = false;
+	/** The epoch of the catalog store */
+	protected long catalogEpoch = 0L;
 	
-	/** Sliding windows of catalog call elapsed times in ns. */
-	protected final LongSlidingWindow elapsedTimesNs = new ConcurrentLongSlidingWindow(50);
+	/** Histogram of catalog call elapsed times in ns. */
+	protected final LatencyHistogram callTimesNs = new LatencyHistogram();
+	/** The catalog call counter */
+	protected final StripedCounter callCount = counter("CallCount");
+	/** The token lookup counter */
+	protected final StripedCounter tokenLookups = counter("TokenLookups");
 
 	/**
 	 * Creates a new H2JDBCMetricCatalog
@@ -125,6 +131,15 @@ public class H2JDBCMetricCatalog extends ServerComponentBean implements MetricCa
 			ps.executeBatch();	
 			ps.close();
 			st = conn.createStatement();
+			ResultSet rset = st.executeQuery("SELECT EPOCH FROM CATALOG_EPOCH");
+			if(rset.next()) {
+				catalogEpoch = rset.getLong(1);
+			} else {
+				catalogEpoch = System.currentTimeMillis();
+				st.executeUpdate("INSERT INTO CATALOG_EPOCH VALUES(" + catalogEpoch + ")");
+			}
+			rset.close();
+			info("Metric Catalog Epoch [", catalogEpoch, "]");
 			st.executeUpdate("UPDATE HOST SET CONNECTED = NULL, AGENTS = 0");
 			st.executeUpdate("UPDATE AGENT SET CONNECTED = NULL, URI = 'RESTART'");
 			st.close();
@@ -201,7 +216,7 @@ public class H2JDBCMetricCatalog extends ServerComponentBean implements MetricCa
 		PreparedStatement ps = null;
 		ResultSet rset = null;
 		try {
-			incr("TokenLookups");
+			tokenLookups.increment();
 			conn = ds.getConnection();
 			ps = conn.prepareStatement(GET_METRIC_SQL);
 			ps.setLong(1, token);
@@ -264,7 +279,7 @@ public class H2JDBCMetricCatalog extends ServerComponentBean implements MetricCa
 		if(tokenRef!=-1 && !realtime) return 0;
 		SystemClock.startTimer();
 		final long token = tokenRef!=-1 ? tokenRef : liveTier.createNewMetric();
-		incr("CallCount");		
+		callCount.increment();		
 		Connection conn = null;
 		CallableStatement cs = null;		
 		//PreparedStatement ps = null;
@@ -283,7 +298,7 @@ public class H2JDBCMetricCatalog extends ServerComponentBean implements MetricCa
 			long id = cs.getLong(1);
 			incr("AssignedMetricIDs");
 			ElapsedTime et = SystemClock.endTimer();
-			elapsedTimesNs.insert(et.elapsedNs);
+			callTimesNs.record(et.elapsedNs);
 			return id;
 		} catch (Exception e) {
 			error("Failed to get ID for [" , String.format("%s/%s%s:%s", host, agent, namespace, name) , "]", e);
@@ -333,7 +348,7 @@ public class H2JDBCMetricCatalog extends ServerComponentBean implements MetricCa
 	@Override
 	public DChannelEvent hostAgentState(boolean connected, String host, String ip, String agent, String agentURI) {
 		SystemClock.startTimer();
-		incr("CallCount");		
+		callCount.increment();		
 		Connection conn = null;
 		PreparedStatement ps = null;
 		ResultSet rset = null;
@@ -352,7 +367,7 @@ public class H2JDBCMetricCatalog extends ServerComponentBean implements MetricCa
 			int agentId = rset.getInt(3);
 			String[] domain = rset.getString(4).split("\\.");
 			ElapsedTime et = SystemClock.endTimer();
-			elapsedTimesNs.insert(et.elapsedNs);			
+			callTimesNs.record(et.elapsedNs);			
 			return DChannelEvent.newEvent(connected ? DChannelEventType.IDENT : DChannelEventType.CLOSED, 
 					domain, host, hostId, agent, agentId, 
 					connected ? agentCount==1 : agentCount<1 
@@ -383,7 +398,7 @@ public class H2JDBCMetricCatalog extends ServerComponentBean implements MetricCa
 	@Override
 	public Map<Integer, String> listHosts(boolean onlineOnly) {
 		SystemClock.startTimer();
-		incr("CallCount");		
+		callCount.increment();		
 		Connection conn = null;
 		PreparedStatement ps = null;
 		ResultSet rset = null;
@@ -396,7 +411,7 @@ public class H2JDBCMetricCatalog extends ServerComponentBean implements MetricCa
 				map.put(rset.getInt(2), rset.getString(1));
 			}
 			ElapsedTime et = SystemClock.endTimer();
-			elapsedTimesNs.insert(et.elapsedNs);			
+			callTimesNs.record(et.elapsedNs);			
 			return map;
 		} catch (Exception e) {
 			error("Failed to list hosts" , e);
@@ -443,7 +458,17 @@ public class H2JDBCMetricCatalog extends ServerComponentBean implements MetricCa
 	@Override
 	public void resetMetrics() {
 		super.resetMetrics();
-		elapsedTimesNs.clear();		
+		callTimesNs.reset();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.catalog.MetricCatalogService#getCatalogEpoch()
+	 */
+	@Override
+	@ManagedAttribute(description="The epoch of the catalog store")
+	public long getCatalogEpoch() {
+		return catalogEpoch;
 	}
 	
 	/**
@@ -461,7 +486,7 @@ public class H2JDBCMetricCatalog extends ServerComponentBean implements MetricCa
 	 */
 	@ManagedMetric(category="MetricCatalogService", metricType=org.springframework.jmx.support.MetricType.COUNTER, description="The number of token lookups")
 	public long getTokenLookups() {
-		return getMetricValue("TokenLookups");
+		return tokenLookups.get();
 	}	
 	
 
@@ -471,27 +496,62 @@ public class H2JDBCMetricCatalog extends ServerComponentBean implements MetricCa
 	 */
 	@ManagedMetric(category="MetricCatalogService", metricType=org.springframework.jmx.support.MetricType.COUNTER, description="The cumulative number of catalog calls")
 	public long getCallCount() {
-		return getMetricValue("CallCount");
+		return callCount.get();
 	}	
 	
 	/**
-	 * Returns the sliding average elapsed time in ns. of the last 50 catalog calls
-	 * @return the sliding average elapsed time in ns. of the last 50 catalog calls
+	 * Returns the average elapsed time in ns. of catalog calls in the last histogram interval
+	 * @return the average elapsed time in ns. of catalog calls in the last histogram interval
 	 */
-	@ManagedMetric(category="MetricCatalogService", displayName="AverageCallTimeNs", metricType=org.springframework.jmx.support.MetricType.GAUGE, description="The sliding average elapsed time in ns. of the last 50 catalog calls")
+	@ManagedMetric(category="MetricCatalogService", displayName="AverageCallTimeNs", metricType=org.springframework.jmx.support.MetricType.GAUGE, description="The average elapsed time in ns. of catalog calls in the last histogram interval")
 	public long getAverageCallTimeNs() {
-		return elapsedTimesNs.avg();
+		return callTimesNs.getSnapshot().getMean();
 	}
 	
 	/**
-	 * Returns the sliding average elapsed time in ms. of the last 50 catalog calls
-	 * @return the sliding average elapsed time in ms. of the last 50 catalog calls
+	 * Returns the average elapsed time in ms. of catalog calls in the last histogram interval
+	 * @return the average elapsed time in ms. of catalog calls in the last histogram interval
 	 */
-	@ManagedMetric(category="MetricCatalogService", displayName="AverageCallTimeMs",  metricType=org.springframework.jmx.support.MetricType.GAUGE, description="The sliding average elapsed time in ms. of the last 50 catalog calls")
+	@ManagedMetric(category="MetricCatalogService", displayName="AverageCallTimeMs",  metricType=org.springframework.jmx.support.MetricType.GAUGE, description="The average elapsed time in ms. of catalog calls in the last histogram interval")
 	public long getAverageCallTimeMs() {
 		return TimeUnit.MILLISECONDS.convert(getAverageCallTimeNs(), TimeUnit.NANOSECONDS);
 	}	
 	
+	/**
+	 * Returns the median elapsed time in ns. of catalog calls in the last histogram interval
+	 * @return the median elapsed time in ns. of catalog calls in the last histogram interval
+	 */
+	@ManagedMetric(category="MetricCatalogService", displayName="CallTimeP50Ns", metricType=org.springframework.jmx.support.MetricType.GAUGE, description="The median elapsed time in ns. of catalog calls in the last histogram interval")
+	public long getCallTimeP50Ns() {
+		return callTimesNs.getSnapshot().getP50();
+	}
+	
+	/**
+	 * Returns the 99th percentile elapsed time in ns. of catalog calls in the last histogram interval
+	 * @return the 99th percentile elapsed time in ns. of catalog calls in the last histogram interval
+	 */
+	@ManagedMetric(category="MetricCatalogService", displayName="CallTimeP99Ns", metricType=org.springframework.jmx.support.MetricType.GAUGE, description="The 99th percentile elapsed time in ns. of catalog calls in the last histogram interval")
+	public long getCallTimeP99Ns() {
+		return callTimesNs.getSnapshot().getP99();
+	}
+	
+	/**
+	 * Returns the 99.9th percentile elapsed time in ns. of catalog calls in the last histogram interval
+	 * @return the 99.9th percentile elapsed time in ns. of catalog calls in the last histogram interval
+	 */
+	@ManagedMetric(category="MetricCatalogService", displayName="CallTimeP999Ns", metricType=org.springframework.jmx.support.MetricType.GAUGE, description="The 99.9th percentile elapsed time in ns. of catalog calls in the last histogram interval")
+	public long getCallTimeP999Ns() {
+		return callTimesNs.getSnapshot().getP999();
+	}
+	
+	/**
+	 * Returns the maximum elapsed time in ns. of catalog calls in the last histogram interval
+	 * @return the maximum elapsed time in ns. of catalog calls in the last histogram interval
+	 */
+	@ManagedMetric(category="MetricCatalogService", displayName="CallTimeMaxNs", metricType=org.springframework.jmx.support.MetricType.GAUGE, description="The maximum elapsed time in ns. of catalog calls in the last histogram interval")
+	public long getCallTimeMaxNs() {
+		return callTimesNs.getSnapshot().getMax();
+	}
 
 	/**
 	 * Indicates if the metric catalog is real time 
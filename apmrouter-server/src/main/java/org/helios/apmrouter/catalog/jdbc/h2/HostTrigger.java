@@ -34,13 +34,19 @@ import javax.management.Notification;
 
 /**
  * <p>Title: HostTrigger</p>
- * <p>Description: Trigger fired when a new host is inserted</p> 
- * <p>Called by <b><code>HOST_TRG  AFTER INSERT ON HOST FOR EACH</code></b></p>
+ * <p>Description: Trigger fired when a new host is inserted or a host is updated</p> 
+ * <p>Called by <b><code>HOST_TRG  AFTER INSERT ON HOST FOR EACH</code></b> and <b><code>HOST_UPDATE_TRG  AFTER UPDATE ON HOST FOR EACH</code></b></p>
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>org.helios.apmrouter.catalog.jdbc.h2.HostTrigger</code></p>
  */
 public class HostTrigger extends AbstractTrigger implements HostTriggerMBean {
+	/** The ID of the column containing the host id for a host */
+	public static final int HOST_COLUMN_ID = 0;
+	/** The ID of the column containing the last connected timestamp for a host */
+	public static final int LAST_CONNECT_COLUMN_ID = 6;
+	/** The ID of the column containing the connected timestamp for a host */
+	public static final int CONNECT_COLUMN_ID = 8;
 	
 	/**
 	 * Creates a new HostTrigger
@@ -55,8 +61,13 @@ public class HostTrigger extends AbstractTrigger implements HostTriggerMBean {
 	 */
 	@Override
 	public void fire(Connection conn, Object[] oldRow, Object[] newRow) throws SQLException {
-		log.info("\n\t=================\n\tNEW HOST:" + Arrays.toString(newRow) + "\n\t=================\n");
 		callCount.incrementAndGet();
+		if(TriggerOp.UPDATE.isEnabled(type)) {
+			NewElementTriggers.fireHostChange(oldRow, newRow);
+			return;
+		}
+		log.info("\n\t=================\n\tNEW HOST:" + Arrays.toString(newRow) + "\n\t=================\n");
+		NewElementTriggers.fireHostChange(null, newRow);
 		//sendNotification(NEW_HOST, newRow);
 	}
 }
\ No newline at end of file
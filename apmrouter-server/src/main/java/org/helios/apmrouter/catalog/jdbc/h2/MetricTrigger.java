@@ -195,6 +195,18 @@ public class MetricTrigger extends AsynchAbstractTrigger implements MetricTrigge
 	public static final String DATA_METRIC_EVENT = "metric.event.data";
 
 	
+	/**
+	 * <p>Notifies the catalog change listeners on the updating thread, so that they see the change before it is committed,
+	 * then hands the row off for asynchronous processing.</p>
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.catalog.jdbc.h2.AsynchAbstractTrigger#fire(java.sql.Connection, java.lang.Object[], java.lang.Object[])
+	 */
+	@Override
+	public void fire(Connection conn, Object[] oldRow, Object[] newRow) throws SQLException {
+		NewElementTriggers.fireMetricChange(TriggerOp.INSERT.isEnabled(type) ? null : oldRow, newRow);
+		super.fire(conn, oldRow, newRow);
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 * @see org.helios.apmrouter.catalog.jdbc.h2.AsynchAbstractTrigger#doFire(javax.sql.DataSource, java.lang.Object[], java.lang.Object[])
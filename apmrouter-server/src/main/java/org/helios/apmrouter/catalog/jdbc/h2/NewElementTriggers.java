@@ -23,13 +23,16 @@
  *
  */
 package org.helios.apmrouter.catalog.jdbc.h2;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.Notification;
 
+import org.apache.log4j.Logger;
 import org.helios.apmrouter.jmx.ThreadPoolFactory;
 
 
@@ -55,7 +58,109 @@ public class NewElementTriggers {
 	public static final BlockingQueue<Object[]> newMetricQueue = new ArrayBlockingQueue<Object[]>(10000, true);
 	/** A queue to write real time data events into */
 	public static final BlockingQueue<Object[]> realTimeDataQueue = new ArrayBlockingQueue<Object[]>(10000, false);
-
 	
+	/** The registered catalog change listeners */
+	private static final Set<CatalogChangeListener> changeListeners = new CopyOnWriteArraySet<CatalogChangeListener>();
+	/** Static class logger */
+	private static final Logger LOG = Logger.getLogger(NewElementTriggers.class);
+	
+	/**
+	 * Registers a catalog change listener
+	 * @param listener The listener to register
+	 */
+	public static void addChangeListener(CatalogChangeListener listener) {
+		if(listener!=null) changeListeners.add(listener);
+	}
+	
+	/**
+	 * Removes a registered catalog change listener
+	 * @param listener The listener to remove
+	 */
+	public static void removeChangeListener(CatalogChangeListener listener) {
+		if(listener!=null) changeListeners.remove(listener);
+	}
+	
+	/**
+	 * Notifies the registered listeners of an inserted host, or an updated host that changed in any way other than its connected timestamps
+	 * @param oldRow The HOST row before the change, null on insert
+	 * @param newRow The HOST row after the change
+	 */
+	public static void fireHostChange(Object[] oldRow, Object[] newRow) {
+		if(changeListeners.isEmpty() || newRow==null) return;
+		int hostId = ((Number)newRow[HostTrigger.HOST_COLUMN_ID]).intValue();
+		if(oldRow==null) {
+			for(CatalogChangeListener listener: changeListeners) {
+				try { listener.onNewHost(hostId); } catch (Exception ex) {
+					LOG.warn("Catalog change listener [" + listener + "] failed on new host", ex);
+				}
+			}
+			return;
+		}
+		boolean changed = (oldRow[HostTrigger.CONNECT_COLUMN_ID]==null)!=(newRow[HostTrigger.CONNECT_COLUMN_ID]==null);
+		for(int i = 0; i < newRow.length && !changed; i++) {
+			if(i==HostTrigger.CONNECT_COLUMN_ID || i==HostTrigger.LAST_CONNECT_COLUMN_ID) continue;
+			changed = !eq(oldRow[i], newRow[i]);
+		}
+		if(!changed) return;
+		for(CatalogChangeListener listener: changeListeners) {
+			try { listener.onHostChange(hostId); } catch (Exception ex) {
+				LOG.warn("Catalog change listener [" + listener + "] failed on host change", ex);
+			}
+		}
+	}
+	
+	/**
+	 * Notifies the registered listeners of an inserted agent, or an updated agent whose connection state or minimum level changed
+	 * @param oldRow The AGENT row before the change, null on insert
+	 * @param newRow The AGENT row after the change
+	 */
+	public static void fireAgentChange(Object[] oldRow, Object[] newRow) {
+		if(changeListeners.isEmpty() || newRow==null) return;
+		if(oldRow!=null 
+				&& (oldRow[AgentTrigger.CONNECT_COLUMN_ID]==null)==(newRow[AgentTrigger.CONNECT_COLUMN_ID]==null)
+				&& eq(oldRow[AgentTrigger.MIN_LEVEL_ID], newRow[AgentTrigger.MIN_LEVEL_ID])) return;
+		int agentId = ((Number)newRow[AgentTrigger.AGENT_COLUMN_ID]).intValue();
+		int hostId = ((Number)newRow[AgentTrigger.HOST_COLUMN_ID]).intValue();
+		for(CatalogChangeListener listener: changeListeners) {
+			try { listener.onAgentChange(agentId, hostId); } catch (Exception ex) {
+				LOG.warn("Catalog change listener [" + listener + "] failed on agent change", ex);
+			}
+		}
+	}
+	
+	/**
+	 * Notifies the registered listeners of an inserted metric, or an updated metric whose state changed
+	 * @param oldRow The METRIC row before the change, null on insert
+	 * @param newRow The METRIC row after the change
+	 */
+	public static void fireMetricChange(Object[] oldRow, Object[] newRow) {
+		if(changeListeners.isEmpty() || newRow==null) return;
+		long metricId = ((Number)newRow[MetricTrigger.METRIC_COLUMN_ID]).longValue();
+		int agentId = ((Number)newRow[MetricTrigger.AGENT_COLUMN_ID]).intValue();
+		if(oldRow==null) {
+			for(CatalogChangeListener listener: changeListeners) {
+				try { listener.onNewMetric(metricId, agentId); } catch (Exception ex) {
+					LOG.warn("Catalog change listener [" + listener + "] failed on new metric", ex);
+				}
+			}
+		} else if(!eq(oldRow[MetricTrigger.STATE_COLUMN_ID], newRow[MetricTrigger.STATE_COLUMN_ID])) {
+			byte state = ((Number)newRow[MetricTrigger.STATE_COLUMN_ID]).byteValue();
+			for(CatalogChangeListener listener: changeListeners) {
+				try { listener.onMetricStateChange(metricId, agentId, state); } catch (Exception ex) {
+					LOG.warn("Catalog change listener [" + listener + "] failed on metric state change", ex);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Null safe column value equality
+	 * @param a One value
+	 * @param b Another value
+	 * @return true if the values are equal
+	 */
+	private static boolean eq(Object a, Object b) {
+		return a==null ? b==null : a.equals(b);
+	}
 
 }
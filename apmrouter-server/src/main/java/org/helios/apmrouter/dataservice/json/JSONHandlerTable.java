@@ -0,0 +1,207 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.dataservice.json;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * <p>Title: JSONHandlerTable</p>
+ * <p>Description: An immutable, precomputed dispatch table of {@link JSONRequestHandlerImpl}s keyed by the UTF-8 bytes of the
+ * service and op names, so a decoded request envelope can be resolved to its handler directly against the frame buffer
+ * without materializing the names as strings.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.dataservice.json.JSONHandlerTable</code></p>
+ */
+
+public class JSONHandlerTable {
+	/** The open addressed entry slots */
+	private final Entry[] slots;
+	/** The slot index mask */
+	private final int mask;
+	/** The number of handlers in the table */
+	private final int size;
+	
+	/** An empty table */
+	public static final JSONHandlerTable EMPTY = new JSONHandlerTable(new ArrayList<Entry>());
+	/** The UTF-8 character set */
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/**
+	 * <p>Title: Entry</p>
+	 * <p>Description: A table entry binding a service/op name pair to its handler</p> 
+	 */
+	public static class Entry {
+		/** The service name */
+		public final String serviceName;
+		/** The op name */
+		public final String opName;
+		/** The handler */
+		public final JSONRequestHandlerImpl handler;
+		/** The service name bytes */
+		private final byte[] svc;
+		/** The op name bytes */
+		private final byte[] op;
+		/** The combined hash */
+		private final int hash;
+		
+		/**
+		 * Creates a new Entry
+		 * @param serviceName The service name
+		 * @param opName The op name
+		 * @param handler The handler
+		 */
+		Entry(String serviceName, String opName, JSONRequestHandlerImpl handler) {
+			this.serviceName = serviceName;
+			this.opName = opName;
+			this.handler = handler;
+			svc = serviceName.getBytes(UTF8);
+			op = opName.getBytes(UTF8);
+			hash = hash(op, 0, op.length, hash(svc, 0, svc.length, 1));
+		}
+	}
+	
+	/**
+	 * Builds a new handler table from the passed router services map
+	 * @param services A map of handlers keyed by op name, keyed by service name
+	 * @return the new table
+	 */
+	public static JSONHandlerTable build(Map<String, Map<String, JSONRequestHandlerImpl>> services) {
+		List<Entry> entries = new ArrayList<Entry>();
+		for(Map.Entry<String, Map<String, JSONRequestHandlerImpl>> service: services.entrySet()) {
+			for(Map.Entry<String, JSONRequestHandlerImpl> op: service.getValue().entrySet()) {
+				entries.add(new Entry(service.getKey(), op.getKey(), op.getValue()));
+			}
+		}
+		return new JSONHandlerTable(entries);
+	}
+	
+	/**
+	 * Creates a new JSONHandlerTable
+	 * @param entries The table entries
+	 */
+	private JSONHandlerTable(List<Entry> entries) {
+		int capacity = 8;
+		while(capacity < entries.size()*2) capacity <<= 1;
+		slots = new Entry[capacity];
+		mask = capacity-1;
+		size = entries.size();
+		for(Entry e: entries) {
+			int index = e.hash & mask;
+			while(slots[index]!=null) index = (index+1) & mask;
+			slots[index] = e;
+		}
+	}
+	
+	/**
+	 * Looks up the entry for the service and op names at the passed offsets in the passed buffer
+	 * @param buffer The buffer containing the names
+	 * @param svcOffset The offset of the service name bytes
+	 * @param svcLength The length of the service name bytes
+	 * @param opOffset The offset of the op name bytes
+	 * @param opLength The length of the op name bytes
+	 * @return the matching entry or null if one was not found
+	 */
+	public Entry get(ChannelBuffer buffer, int svcOffset, int svcLength, int opOffset, int opLength) {
+		int hash = hash(buffer, opOffset, opLength, hash(buffer, svcOffset, svcLength, 1));
+		for(int index = hash & mask; slots[index]!=null; index = (index+1) & mask) {
+			Entry e = slots[index];
+			if(e.hash==hash && equals(e.svc, buffer, svcOffset, svcLength) && equals(e.op, buffer, opOffset, opLength)) return e;
+		}
+		return null;
+	}
+	
+	/**
+	 * Looks up the entry for the passed service and op names
+	 * @param serviceName The service name
+	 * @param opName The op name
+	 * @return the matching entry or null if one was not found
+	 */
+	public Entry get(String serviceName, String opName) {
+		if(serviceName==null || opName==null) return null;
+		byte[] svc = serviceName.getBytes(UTF8), op = opName.getBytes(UTF8);
+		int hash = hash(op, 0, op.length, hash(svc, 0, svc.length, 1));
+		for(int index = hash & mask; slots[index]!=null; index = (index+1) & mask) {
+			Entry e = slots[index];
+			if(e.hash==hash && serviceName.equals(e.serviceName) && opName.equals(e.opName)) return e;
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the number of handlers in the table
+	 * @return the number of handlers in the table
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Compares the passed bytes to the bytes at the passed offset in the passed buffer
+	 * @param bytes The bytes to compare
+	 * @param buffer The buffer to compare against
+	 * @param offset The buffer offset
+	 * @param length The number of buffer bytes
+	 * @return true if the bytes are equal
+	 */
+	private static boolean equals(byte[] bytes, ChannelBuffer buffer, int offset, int length) {
+		if(bytes.length!=length) return false;
+		for(int i = 0; i < length; i++) {
+			if(bytes[i]!=buffer.getByte(offset+i)) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Continues a hash over the passed bytes
+	 * @param bytes The bytes to hash
+	 * @param offset The offset of the first byte
+	 * @param length The number of bytes
+	 * @param hash The starting hash
+	 * @return the continued hash
+	 */
+	private static int hash(byte[] bytes, int offset, int length, int hash) {
+		for(int i = offset; i < offset+length; i++) hash = 31*hash + bytes[i];
+		return 31*hash;
+	}
+	
+	/**
+	 * Continues a hash over the bytes in the passed buffer
+	 * @param buffer The buffer to hash
+	 * @param offset The offset of the first byte
+	 * @param length The number of bytes
+	 * @param hash The starting hash
+	 * @return the continued hash
+	 */
+	private static int hash(ChannelBuffer buffer, int offset, int length, int hash) {
+		for(int i = offset; i < offset+length; i++) hash = 31*hash + buffer.getByte(i);
+		return 31*hash;
+	}
+}
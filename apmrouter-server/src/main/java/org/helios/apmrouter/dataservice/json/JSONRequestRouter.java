@@ -25,13 +25,13 @@
 package org.helios.apmrouter.dataservice.json;
 
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 import org.helios.apmrouter.server.ServerComponentBean;
 import org.helios.apmrouter.util.StringHelper;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -50,8 +50,21 @@ import org.springframework.jmx.export.annotation.ManagedAttribute;
 public class JSONRequestRouter extends ServerComponentBean {
 	/** A map of {@link JSONDataService}s keyed by the service name */
 	protected final Map<String, Map<String, JSONRequestHandlerImpl>> services = new ConcurrentHashMap<String, Map<String, JSONRequestHandlerImpl>>();
+	/** The precomputed dispatch table of all the registered service ops */
+	protected volatile JSONHandlerTable handlerTable = JSONHandlerTable.EMPTY;
 	/** Instance logger */
 	protected final Logger log = Logger.getLogger(getClass());
+	/** Per thread reusable envelopes for streamed decoding */
+	private static final ThreadLocal<JsonEnvelopeDecoder.Envelope> envelopes = new ThreadLocal<JsonEnvelopeDecoder.Envelope>() {
+		@Override
+		protected JsonEnvelopeDecoder.Envelope initialValue() {
+			return new JsonEnvelopeDecoder.Envelope();
+		}
+	};
+	/** The request type code for a standard request */
+	public static final String TYPE_REQUEST = "req";
+	/** The request type code for a client identification */
+	public static final String TYPE_WHO = "who";
 	/** The key indicating a request is being sent (as opposed to .... ) */
 	public static final String REQUEST_FLAG = "t";
 	/** The request ID sent by the client which will be returned with every response */
@@ -84,20 +97,11 @@ public class JSONRequestRouter extends ServerComponentBean {
 			String op = request.getString(OP_NAME);
 			JsonRequest jreq = new JsonRequest(channel, flag, requestId, service, op, request);
 			if(request.has(ARGS_NAME)) {
-				JSONArray arr = null;
-				try {
-					arr = request.getJSONArray(ARGS_NAME);
-					for(int i = 0; i < arr.length(); i++) {
-						jreq.addArg(i, arr.get(i));
-					}
-				} catch (Exception ex) {}
-				if(arr==null) {
-					JSONObject map = request.getJSONObject(ARGS_NAME);
-					for(Iterator<?> iter = map.keys(); iter.hasNext();) {
-						Object key = iter.next();
-						jreq.addArg(key.toString(), map.get(key.toString()));
-					}
+				Object args = request.get(ARGS_NAME);
+				if(!(args instanceof JSONArray) && !(args instanceof JSONObject)) {
+					throw new JSONException("JSONObject[\"" + ARGS_NAME + "\"] is not a JSONArray or JSONObject.");
 				}
+				jreq.addArgs(args);
 			}
 			return jreq;
 		} catch (JSONException ex) {
@@ -108,6 +112,59 @@ public class JSONRequestRouter extends ServerComponentBean {
 		}
 	}
 	
+	/**
+	 * Decodes a JSON request directly from the passed frame buffer. The envelope fields are scanned in place and resolved 
+	 * against the precomputed handler table, and the arguments are left unparsed until the handler reads them.
+	 * Frames the streaming decoder cannot handle are parsed in full.
+	 * @param frame The buffer containing the JSON request. Its indexes are not modified.
+	 * @param channel The channel the request was received from (and where the response should be written back to)
+	 * @return the decoded request
+	 * @throws JSONException thrown on any JSON unmarshalling error
+	 */
+	public JsonRequest decode(ChannelBuffer frame, Channel channel) throws JSONException {
+		JsonEnvelopeDecoder.Envelope env = envelopes.get();
+		if(!JsonEnvelopeDecoder.decode(frame, env)) {
+			JSONObject request = new JSONObject(frame.toString(JSONHandlerTable.UTF8));
+			if(TYPE_WHO.equals(request.opt(REQUEST_FLAG))) {
+				return new JsonRequest(channel, TYPE_WHO, request.optLong(REQUEST_ID, -1L), null, null, request);
+			}
+			return parse(request, channel);
+		}
+		if(env.tLength==-1) throw new JSONException("JSONObject[\"" + REQUEST_FLAG + "\"] not found.");
+		String flag = typeCode(frame, env.tOffset, env.tLength);
+		JSONHandlerTable.Entry entry = null;
+		String service = null, op = null;
+		if(env.svcLength!=-1 && env.opLength!=-1) {
+			entry = handlerTable.get(frame, env.svcOffset, env.svcLength, env.opOffset, env.opLength);
+			if(entry!=null) {
+				service = entry.serviceName;
+				op = entry.opName;
+			} else {
+				service = frame.toString(env.svcOffset, env.svcLength, JSONHandlerTable.UTF8);
+				op = frame.toString(env.opOffset, env.opLength, JSONHandlerTable.UTF8);
+			}
+		}
+		JsonRequest jreq = new JsonRequest(channel, flag, env.rid, service, op, frame, env.argsOffset, env.argsLength);
+		jreq.entry = entry;
+		return jreq;
+	}
+	
+	/**
+	 * Returns the type code at the passed offset, returning the constant for the well known codes
+	 * @param frame The frame buffer
+	 * @param offset The offset of the type code bytes
+	 * @param length The length of the type code bytes
+	 * @return the type code
+	 */
+	private static String typeCode(ChannelBuffer frame, int offset, int length) {
+		if(length==3) {
+			byte b0 = frame.getByte(offset), b1 = frame.getByte(offset+1), b2 = frame.getByte(offset+2);
+			if(b0=='r' && b1=='e' && b2=='q') return TYPE_REQUEST;
+			if(b0=='w' && b1=='h' && b2=='o') return TYPE_WHO;
+		}
+		return frame.toString(offset, length, JSONHandlerTable.UTF8);
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 * @see org.helios.apmrouter.server.ApplicationContextLifecycleListener#onApplicationContextRefresh(org.springframework.context.event.ContextRefreshedEvent)
@@ -117,16 +174,35 @@ public class JSONRequestRouter extends ServerComponentBean {
 		Map<String, Object> handlerServices = applicationContext.getBeansWithAnnotation(JSONRequestHandler.class);
 		info("Processing [", handlerServices.size(), "] JSON Handler Services");
 		for(Map.Entry<String, Object> entry: handlerServices.entrySet()) {
-			Map<String, JSONRequestHandlerImpl> ops = JSONRequestHandlerImpl.generateHandlers(entry.getKey(), entry.getValue());
-			if(ops.size()<1) {
-				warn("JSON Service [", entry.getKey(), "] had zero ops");
-			} else {
-				services.put(entry.getKey(), ops);
-				info("Added JSON Handler Service [", entry.getKey(), "]");				
-			}
+			registerService(entry.getKey(), entry.getValue());
 		}
 	}
 	
+	/**
+	 * Registers the {@link JSONRequestHandler} annotated ops of the passed service and rebuilds the dispatch table
+	 * @param serviceName The service name
+	 * @param serviceImpl The service implementation
+	 */
+	public void registerService(String serviceName, Object serviceImpl) {
+		Map<String, JSONRequestHandlerImpl> ops = JSONRequestHandlerImpl.generateHandlers(serviceName, serviceImpl);
+		if(ops.size()<1) {
+			warn("JSON Service [", serviceName, "] had zero ops");
+		} else {
+			services.put(serviceName, ops);
+			handlerTable = JSONHandlerTable.build(services);
+			info("Added JSON Handler Service [", serviceName, "]");				
+		}
+	}
+	
+	/**
+	 * Returns the number of ops in the dispatch table
+	 * @return the number of ops in the dispatch table
+	 */
+	@ManagedAttribute(description="The number of ops in the dispatch table")
+	public int getHandlerCount() {
+		return handlerTable.size();
+	}
+	
 	/**
 	 * Returns a map of service names and ops
 	 * @return A map of arrays of ops keyed by the service name
@@ -147,15 +223,9 @@ public class JSONRequestRouter extends ServerComponentBean {
 	 * @param channel The channel to respond on
 	 */
 	public void invoke(JSONObject request, Channel channel) {
+		JsonRequest req = null;
 		try {
-			JsonRequest req = parse(request, channel);
-			Map<String, JSONRequestHandlerImpl> service = services.get(req.serviceName);
-			if(service!=null) {
-				JSONRequestHandlerImpl handler = service.get(req.opName);
-				handler.processRequest(req, channel);
-			} else {
-				req.error(StringHelper.fastConcat("JSON Invocation from [", channel.toString(), "] for req [", req.serviceName, "/", req.opName, "] failed. Could not locate service/op")).send(channel);
-			}
+			req = parse(request, channel);
 		} catch (Exception ex) {
 			error("Failed to invoke request", ex);
 			long requestId = -1;
@@ -163,6 +233,27 @@ public class JSONRequestRouter extends ServerComponentBean {
 				requestId = request.getLong(REQUEST_ID);
 			} catch (Exception e) {}
 			sendError(ex, requestId, channel);
+			return;
+		}
+		invoke(req, channel);
+	}
+	
+	/**
+	 * Invokes the passed decoded request
+	 * @param req The decoded request
+	 * @param channel The channel to respond on
+	 */
+	public void invoke(JsonRequest req, Channel channel) {
+		try {
+			JSONHandlerTable.Entry entry = req.entry!=null ? req.entry : handlerTable.get(req.serviceName, req.opName);
+			if(entry!=null) {
+				entry.handler.processRequest(req, channel);
+			} else {
+				req.error(StringHelper.fastConcat("JSON Invocation from [", String.valueOf(channel), "] for req [", req.serviceName, "/", req.opName, "] failed. Could not locate service/op")).send(channel);
+			}
+		} catch (Exception ex) {
+			error("Failed to invoke request", ex);
+			sendError(ex, req.rid, channel);
 		}
 	}
 	
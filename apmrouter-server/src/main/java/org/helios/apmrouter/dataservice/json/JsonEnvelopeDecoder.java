@@ -0,0 +1,279 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.dataservice.json;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * <p>Title: JsonEnvelopeDecoder</p>
+ * <p>Description: A single pass scanner that locates the standard envelope fields of a JSON data service request 
+ * (<b><code>t</code></b>, <b><code>rid</code></b>, <b><code>svc</code></b>, <b><code>op</code></b> and <b><code>args</code></b>)
+ * directly in the request frame's bytes. Only offsets and the request id are recorded, so nothing is allocated and the 
+ * arguments are left unparsed until a handler asks for them. Input the scanner does not fully understand (escaped envelope 
+ * strings, malformed documents) is rejected so the caller can fall back to a full JSON parse.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.dataservice.json.JsonEnvelopeDecoder</code></p>
+ */
+
+public class JsonEnvelopeDecoder {
+	
+	/**
+	 * <p>Title: Envelope</p>
+	 * <p>Description: The reusable offsets of a scanned request envelope. A length of <code>-1</code> indicates the field was not present.</p> 
+	 */
+	public static class Envelope {
+		/** The offset of the type code */
+		public int tOffset;
+		/** The length of the type code */
+		public int tLength;
+		/** The offset of the service name */
+		public int svcOffset;
+		/** The length of the service name */
+		public int svcLength;
+		/** The offset of the op name */
+		public int opOffset;
+		/** The length of the op name */
+		public int opLength;
+		/** The offset of the raw arguments value */
+		public int argsOffset;
+		/** The length of the raw arguments value */
+		public int argsLength;
+		/** The request id or <code>-1</code> if one was not supplied */
+		public long rid;
+		
+		/**
+		 * Resets this envelope for reuse
+		 * @return this envelope
+		 */
+		public Envelope reset() {
+			tOffset = svcOffset = opOffset = argsOffset = 0;
+			tLength = svcLength = opLength = argsLength = -1;
+			rid = -1L;
+			return this;
+		}
+	}
+	
+	/** Envelope key: type code */
+	private static final int KEY_T = 1;
+	/** Envelope key: request id */
+	private static final int KEY_RID = 2;
+	/** Envelope key: service name */
+	private static final int KEY_SVC = 3;
+	/** Envelope key: op name */
+	private static final int KEY_OP = 4;
+	/** Envelope key: arguments */
+	private static final int KEY_ARGS = 5;
+	
+	/** Sentinel returned when the scanner cannot handle the input */
+	private static final int FAIL = -1;
+	
+	/**
+	 * Scans the readable bytes of the passed buffer into the passed envelope. The buffer's indexes are not modified.
+	 * @param buffer The buffer containing a JSON request
+	 * @param env The envelope to populate
+	 * @return true if the envelope was decoded, false if the caller should fall back to a full parse
+	 */
+	public static boolean decode(ChannelBuffer buffer, Envelope env) {
+		env.reset();
+		final int end = buffer.writerIndex();
+		int pos = skipWhitespace(buffer, buffer.readerIndex(), end);
+		if(pos>=end || buffer.getByte(pos)!='{') return false;
+		pos = skipWhitespace(buffer, pos+1, end);
+		if(pos<end && buffer.getByte(pos)=='}') return true;
+		while(pos<end) {
+			// ==== the key ====
+			if(buffer.getByte(pos)!='"') return false;
+			int keyEnd = scanString(buffer, pos+1, end);
+			if(keyEnd==FAIL) return false;
+			int key = key(buffer, pos+1, keyEnd-pos-1);
+			pos = skipWhitespace(buffer, keyEnd+1, end);
+			if(pos>=end || buffer.getByte(pos)!=':') return false;
+			pos = skipWhitespace(buffer, pos+1, end);
+			if(pos>=end) return false;
+			// ==== the value ====
+			int valueStart = pos;
+			byte b = buffer.getByte(pos);
+			int valueEnd;
+			if(b=='"') {
+				int close = scanString(buffer, pos+1, end);
+				if(close==FAIL) return false;
+				valueEnd = close+1;
+				if(key==KEY_T || key==KEY_SVC || key==KEY_OP) {
+					if(buffer.bytesBefore(pos+1, close-pos-1, (byte)'\\')!=-1) return false;
+					if(key==KEY_T) { env.tOffset = pos+1; env.tLength = close-pos-1; }
+					else if(key==KEY_SVC) { env.svcOffset = pos+1; env.svcLength = close-pos-1; }
+					else { env.opOffset = pos+1; env.opLength = close-pos-1; }
+				} else if(key==KEY_RID) {
+					long rid = parseLong(buffer, pos+1, close);
+					if(rid==Long.MIN_VALUE) return false;
+					env.rid = rid;
+				}
+			} else if(b=='{' || b=='[') {
+				valueEnd = skipNested(buffer, pos, end);
+				if(valueEnd==FAIL) return false;
+			} else {
+				valueEnd = pos;
+				while(valueEnd<end) {
+					byte c = buffer.getByte(valueEnd);
+					if(c==',' || c=='}' || isWhitespace(c)) break;
+					valueEnd++;
+				}
+				if(valueEnd==pos) return false;
+				if(key==KEY_RID) {
+					long rid = parseLong(buffer, pos, valueEnd);
+					if(rid==Long.MIN_VALUE) return false;
+					env.rid = rid;
+				}
+			}
+			if(key==KEY_ARGS) {
+				env.argsOffset = valueStart;
+				env.argsLength = valueEnd-valueStart;
+			}
+			// ==== the separator ====
+			pos = skipWhitespace(buffer, valueEnd, end);
+			if(pos>=end) return false;
+			b = buffer.getByte(pos);
+			if(b=='}') return true;
+			if(b!=',') return false;
+			pos = skipWhitespace(buffer, pos+1, end);
+		}
+		return false;
+	}
+	
+	/**
+	 * Identifies an envelope key
+	 * @param buffer The buffer
+	 * @param offset The offset of the key bytes
+	 * @param length The length of the key bytes
+	 * @return the key constant or 0 if the key is not an envelope key
+	 */
+	private static int key(ChannelBuffer buffer, int offset, int length) {
+		switch(length) {
+			case 1:
+				return buffer.getByte(offset)=='t' ? KEY_T : 0;
+			case 2:
+				return buffer.getByte(offset)=='o' && buffer.getByte(offset+1)=='p' ? KEY_OP : 0;
+			case 3:
+				byte b0 = buffer.getByte(offset), b1 = buffer.getByte(offset+1), b2 = buffer.getByte(offset+2);
+				if(b0=='r' && b1=='i' && b2=='d') return KEY_RID;
+				if(b0=='s' && b1=='v' && b2=='c') return KEY_SVC;
+				return 0;
+			case 4:
+				return buffer.getByte(offset)=='a' && buffer.getByte(offset+1)=='r' && buffer.getByte(offset+2)=='g' && buffer.getByte(offset+3)=='s' ? KEY_ARGS : 0;
+			default:
+				return 0;
+		}
+	}
+	
+	/**
+	 * Finds the closing quote of a string
+	 * @param buffer The buffer
+	 * @param pos The offset of the first byte after the opening quote
+	 * @param end The end of the readable bytes
+	 * @return the offset of the closing quote or {@link #FAIL}
+	 */
+	private static int scanString(ChannelBuffer buffer, int pos, int end) {
+		while(pos<end) {
+			byte b = buffer.getByte(pos);
+			if(b=='"') return pos;
+			pos += (b=='\\') ? 2 : 1;
+		}
+		return FAIL;
+	}
+	
+	/**
+	 * Skips a nested object or array, including any strings it contains
+	 * @param buffer The buffer
+	 * @param pos The offset of the opening brace or bracket
+	 * @param end The end of the readable bytes
+	 * @return the offset after the matching closing brace or bracket, or {@link #FAIL}
+	 */
+	private static int skipNested(ChannelBuffer buffer, int pos, int end) {
+		int depth = 0;
+		while(pos<end) {
+			byte b = buffer.getByte(pos);
+			if(b=='"') {
+				pos = scanString(buffer, pos+1, end);
+				if(pos==FAIL) return FAIL;
+			} else if(b=='{' || b=='[') {
+				depth++;
+			} else if(b=='}' || b==']') {
+				if(--depth==0) return pos+1;
+			}
+			pos++;
+		}
+		return FAIL;
+	}
+	
+	/**
+	 * Parses a decimal long from the passed bytes. A fractional part is truncated as {@link org.json.JSONObject#getLong(String)} would. 
+	 * @param buffer The buffer
+	 * @param pos The offset of the first digit or sign
+	 * @param end The offset after the last byte
+	 * @return the parsed value or {@link Long#MIN_VALUE} if the bytes are not a plain decimal number
+	 */
+	private static long parseLong(ChannelBuffer buffer, int pos, int end) {
+		if(pos>=end) return Long.MIN_VALUE;
+		boolean negative = buffer.getByte(pos)=='-';
+		if(negative) pos++;
+		long value = 0;
+		int digits = 0;
+		for(; pos<end; pos++) {
+			byte b = buffer.getByte(pos);
+			if(b=='.') break;
+			if(b<'0' || b>'9' || digits>17) return Long.MIN_VALUE;
+			value = value*10 + (b-'0');
+			digits++;
+		}
+		for(pos++; pos<end; pos++) {
+			byte b = buffer.getByte(pos);
+			if(b<'0' || b>'9') return Long.MIN_VALUE;
+		}
+		if(digits==0) return Long.MIN_VALUE;
+		return negative ? -value : value;
+	}
+	
+	/**
+	 * Skips JSON whitespace
+	 * @param buffer The buffer
+	 * @param pos The starting offset
+	 * @param end The end of the readable bytes
+	 * @return the offset of the first non-whitespace byte
+	 */
+	private static int skipWhitespace(ChannelBuffer buffer, int pos, int end) {
+		while(pos<end && isWhitespace(buffer.getByte(pos))) pos++;
+		return pos;
+	}
+	
+	/**
+	 * Determines if the passed byte is JSON whitespace
+	 * @param b The byte to test
+	 * @return true if the byte is whitespace
+	 */
+	private static boolean isWhitespace(byte b) {
+		return b==' ' || b=='\t' || b=='\n' || b=='\r';
+	}
+}
@@ -26,15 +26,19 @@ package org.helios.apmrouter.dataservice.json;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeMap;
 
 import org.helios.apmrouter.util.StringHelper;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.DownstreamMessageEvent;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 /**
  * <p>Title: JsonRequest</p>
@@ -52,15 +56,29 @@ public class JsonRequest {
 	public final String serviceName;
 	/** The requested op name */
 	public final String opName;
-	/** The original request, in case there is other stuff in there that the data service needs */
-	public final JSONObject request;
+	/** The original request, in case there is other stuff in there that the data service needs. Lazily parsed for streamed requests. */
+	protected JSONObject request;
 	
 	/** The channel that the request came in on. May sometimes be null */
 	private final Channel channel;
 	
+	/** The frame buffer a streamed request was decoded from, or null if the request was parsed eagerly */
+	private final ChannelBuffer source;
+	/** The offset of the request in the source buffer */
+	private final int sourceOffset;
+	/** The length of the request in the source buffer */
+	private final int sourceLength;
+	/** The offset of the raw arguments in the source buffer */
+	private final int argsOffset;
+	/** The length of the raw arguments in the source buffer, <code>-1</code> if there were none */
+	private final int argsLength;
+	/** Indicates if the raw arguments have been parsed into the argument map */
+	private boolean argsResolved;
+	/** The dispatch table entry resolved when a streamed request was decoded */
+	JSONHandlerTable.Entry entry = null;
 
 	/** The arguments supplied to the op */
-	public final Map<Object, Object> arguments = new TreeMap<Object, Object>();
+	protected final Map<Object, Object> arguments = new TreeMap<Object, Object>();
 	
 	/**
 	 * Creates a new JsonRequest
@@ -78,6 +96,88 @@ public class JsonRequest {
 		this.serviceName = serviceName;
 		this.opName = opName;
 		this.request = request;
+		this.source = null;
+		sourceOffset = sourceLength = argsOffset = 0;
+		argsLength = -1;
+		argsResolved = true;
+	}
+	
+	/**
+	 * Creates a new JsonRequest for a request streamed from a frame buffer. The arguments and the original request
+	 * are only parsed from the buffer when first accessed.
+	 * @param channel The channel that the request came in on. Ignored if null 
+	 * @param tCode the type code of the request
+	 * @param rid The client supplied request ID
+	 * @param serviceName The service name requested
+	 * @param opName The op name requested
+	 * @param source The buffer the request was decoded from
+	 * @param argsOffset The offset of the raw arguments in the source buffer
+	 * @param argsLength The length of the raw arguments in the source buffer, <code>-1</code> if there were none
+	 */
+	public JsonRequest(Channel channel, String tCode, long rid, String serviceName, String opName, ChannelBuffer source, int argsOffset, int argsLength) {
+		this.channel = channel;
+		this.tCode = tCode;
+		this.rid = rid;
+		this.serviceName = serviceName;
+		this.opName = opName;
+		this.request = null;
+		this.source = source;
+		this.sourceOffset = source.readerIndex();
+		this.sourceLength = source.readableBytes();
+		this.argsOffset = argsOffset;
+		this.argsLength = argsLength;
+		argsResolved = argsLength < 1;
+	}
+	
+	/**
+	 * Returns the original request, parsing it from the source frame if this request was streamed
+	 * @return the original request
+	 */
+	public synchronized JSONObject getRequest() {
+		if(request==null && source!=null) {
+			try {
+				request = new JSONObject(source.toString(sourceOffset, sourceLength, JSONHandlerTable.UTF8));
+			} catch (JSONException ex) {
+				throw new RuntimeException("Failed to parse request", ex);
+			}
+		}
+		return request;
+	}
+	
+	/**
+	 * Returns the op arguments, parsing them from the source frame on first access if this request was streamed
+	 * @return the op arguments keyed by sequence if supplied as an array, or by name if supplied as a map
+	 */
+	public synchronized Map<Object, Object> getArguments() {
+		if(!argsResolved) {
+			argsResolved = true;
+			try {
+				addArgs(new JSONTokener(source.toString(argsOffset, argsLength, JSONHandlerTable.UTF8)).nextValue());
+			} catch (JSONException ex) {
+				throw new RuntimeException("Failed to parse request arguments", ex);
+			}
+		}
+		return arguments;
+	}
+	
+	/**
+	 * Adds the passed JSON arguments value to the argument map
+	 * @param args A {@link JSONArray} of positional arguments or a {@link JSONObject} of named arguments 
+	 * @throws JSONException thrown on any JSON error reading the arguments
+	 */
+	public void addArgs(Object args) throws JSONException {
+		if(args instanceof JSONArray) {
+			JSONArray arr = (JSONArray)args;
+			for(int i = 0; i < arr.length(); i++) {
+				addArg(i, arr.get(i));
+			}
+		} else if(args instanceof JSONObject) {
+			JSONObject map = (JSONObject)args;
+			for(Iterator<?> iter = map.keys(); iter.hasNext();) {
+				String key = iter.next().toString();
+				addArg(key, map.get(key));
+			}
+		}
 	}
 	
 	/**
@@ -158,12 +258,13 @@ public class JsonRequest {
 	 * @return the value for the passed key
 	 */
 	public <T> T getArgument(String key,  T defaultValue) {
-		Object value = arguments.get(key);
+		Object value = getArguments().get(key);
 		if(Map.class.isAssignableFrom(defaultValue.getClass()) && value instanceof JSONObject) {
 			JSONObject jsonMap = (JSONObject)value;
 			Map<String, Object> map = new HashMap<String, Object>();
 			try {
-				for(String mapKey: JSONObject.getNames(jsonMap)) {
+				String[] names = JSONObject.getNames(jsonMap);
+				if(names!=null) for(String mapKey: names) {
 					map.put(mapKey, jsonMap.get(mapKey));
 				}
 			} catch (JSONException ex) {
@@ -185,7 +286,7 @@ public class JsonRequest {
 	 * @return The string value of the argument or null if no value was found
 	 */
 	public String getArgument(String key) {
-		Object value = arguments.get(key);
+		Object value = getArguments().get(key);
 		if(value!=null) return value.toString().trim();
 		return null;
 	}
@@ -197,7 +298,7 @@ public class JsonRequest {
 	 * @return the value for the passed key
 	 */
 	public <T> T getArgumentOrNull(String key,  Class<T> type) {
-		Object value = arguments.get(key);
+		Object value = getArguments().get(key);
 		if(value==null) {
 			return null;
 		}
@@ -212,7 +313,7 @@ public class JsonRequest {
 	 * @return the value for the passed index
 	 */
 	public <T> T getArgument(int index,  T defaultValue) {
-		Object value = arguments.get(index);
+		Object value = getArguments().get(index);
 		if(value==null || !defaultValue.getClass().isInstance(value)) {
 			return defaultValue;
 		}
@@ -236,7 +337,7 @@ public class JsonRequest {
 	public String toString() {
 		return String
 				.format("JsonRequest [\\n\\ttCode:%s, rid:%s, serviceName:%s, opName:%s, request:%s, arguments:%s]",
-						tCode, rid, serviceName, opName, request, arguments);
+						tCode, rid, serviceName, opName, getRequest(), getArguments());
 	}
 	
 }
\ No newline at end of file
@@ -24,8 +24,6 @@
  */
 package org.helios.apmrouter.dataservice.json.catalog;
 
-import java.beans.PropertyEditor;
-import java.beans.PropertyEditorManager;
 import java.lang.reflect.Field;
 import java.util.HashMap;
 import java.util.List;
@@ -36,19 +34,23 @@ import org.helios.apmrouter.catalog.api.impl.DataServiceInterceptor;
 import org.helios.apmrouter.catalog.domain.AgentMetricSet;
 import org.helios.apmrouter.catalog.domain.DomainObject;
 import org.helios.apmrouter.catalog.domain.Metric;
+import org.helios.apmrouter.catalog.jdbc.h2.NewElementTriggers;
 import org.helios.apmrouter.dataservice.json.JSONRequestHandler;
 import org.helios.apmrouter.dataservice.json.JsonRequest;
 import org.helios.apmrouter.dataservice.json.JsonResponse;
 import org.helios.apmrouter.dataservice.json.marshalling.JSONMarshaller;
 import org.helios.apmrouter.server.ServerComponentBean;
 import org.helios.apmrouter.util.URLHelper;
-import org.hibernate.Query;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.engine.NamedQueryDefinition;
 import org.hibernate.impl.SessionFactoryImpl;
 import org.jboss.netty.channel.Channel;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.support.MetricType;
 
 /**
  * <p>Title: CatalogJSONDataService</p>
@@ -70,6 +72,17 @@ public class CatalogJSONDataService extends ServerComponentBean {
 	protected JSONMarshaller marshaller = null;
 	/** The named queries map */
 	protected final Map<String, NamedQueryDefinition> namedQueries = new HashMap<String, NamedQueryDefinition>();
+	/** The precompiled named query plans keyed by query name */
+	protected final Map<String, NamedQueryPlan> queryPlans = new HashMap<String, NamedQueryPlan>();
+	/** The catalog query result cache */
+	protected CatalogQueryCache queryCache = null;
+	/** Indicates if catalog query results are cached */
+	protected boolean queryCacheEnabled = true;
+	/** The maximum number of cached catalog query results */
+	protected int queryCacheSize = CatalogQueryCache.DEFAULT_MAX_SIZE;
+	
+	/** The cache key prefix for agent metric sets */
+	public static final String AGENT_METRIC_SET_KEY = "ams?agentId=";
 	
 	/** The namedQueries map field */
 	private static final Field namedQueriesField;
@@ -97,6 +110,29 @@ public class CatalogJSONDataService extends ServerComponentBean {
 		super.doStart();
 		namedQueries.putAll((Map<String, NamedQueryDefinition>) namedQueriesField.get(sessionFactory));
 		namedQueries.putAll((Map<String, NamedQueryDefinition>) namedSqlQueriesField.get(sessionFactory));
+		for(Map.Entry<String, NamedQueryDefinition> entry: namedQueries.entrySet()) {
+			queryPlans.put(entry.getKey(), new NamedQueryPlan(entry.getKey(), entry.getValue()));
+		}
+		queryCache = new CatalogQueryCache(queryCacheSize);
+		if(queryCacheEnabled) {
+			NewElementTriggers.addChangeListener(queryCache);
+		}
+		info("Compiled [", queryPlans.size(), "] named query plans. Result caching enabled:", queryCacheEnabled);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.server.ServerComponentBean#doStop()
+	 */
+	@Override
+	protected void doStop() {
+		if(queryCache!=null) {
+			NewElementTriggers.removeChangeListener(queryCache);
+			queryCache.clear();
+		}
+		queryPlans.clear();
+		namedQueries.clear();
+		super.doStop();
 	}
 
 	/**
@@ -162,27 +198,30 @@ public class CatalogJSONDataService extends ServerComponentBean {
 
 		Session session = null;
 		try {
-			session = sessionFactory.openSession(new DataServiceInterceptor());
-			Query query = session.getNamedQuery(name);
-			NamedQueryDefinition nqd = namedQueries.get(name);
-			
-			
+			NamedQueryPlan plan = queryPlans.get(name);
+			if(plan==null) throw new RuntimeException("No named query found for name [" + name + "]", new Throwable());
 			for(Map.Entry<String, ?> param: params.entrySet()) {
-				String type = nqd.getParameterTypes().get(param.getKey()).toString();
-				PropertyEditor pe = PropertyEditorManager.findEditor(Class.forName(type));
-				if(param.getValue().toString().equals("null")) {
+				if(param.getValue()==null || param.getValue().toString().equals("null")) {
 					warn("Param with null value [", param.getKey(), "]");
 				}
-				pe.setAsText(param.getValue().toString());
-				query.setParameter(param.getKey(), pe.getValue());
 			}
-			List<?> results = query.list();
-			if(!results.isEmpty() && results.iterator().next() instanceof DomainObject) {
-				Object obj = results.toArray(new DomainObject[0]);
-				channel.write(request.response().setContent(obj));
-			} else {
-				channel.write(request.response().setContent(results));
+			Map<String, Object> bound = plan.convert(params);
+			String key = queryCacheEnabled ? plan.cacheKey(bound) : null;
+			Object content = key==null ? null : queryCache.get(key);
+			if(content==null) {
+				long generation = queryCache.generation();
+				session = sessionFactory.openSession(new DataServiceInterceptor());
+				List<?> results = plan.bind(session.getNamedQuery(name), bound).list();
+				if(!results.isEmpty() && results.iterator().next() instanceof DomainObject) {
+					content = results.toArray(new DomainObject[0]);
+				} else {
+					content = results;
+				}
+				if(key!=null) {
+					queryCache.put(key, content, plan.getTables(), NamedQueryPlan.scope(bound, NamedQueryPlan.AGENT_SCOPE_PARAM), NamedQueryPlan.scope(bound, NamedQueryPlan.HOST_SCOPE_PARAM), generation);
+				}
 			}
+			channel.write(request.response().setContent(content));
 		} catch (Exception ex) {
 			error("Failed to execute named query [", name, "] with params [" + params + "]", ex);
 		} finally {
@@ -200,8 +239,17 @@ public class CatalogJSONDataService extends ServerComponentBean {
 		Session session = null;
 		try {
 			int agentId = Integer.parseInt(request.getArgument("agentId"));
-			session = sessionFactory.openSession();
-			request.response().setContent(AgentMetricSet.newInstance(session, agentId)).send(channel);
+			String key = queryCacheEnabled ? AGENT_METRIC_SET_KEY + agentId : null;
+			Object ams = key==null ? null : queryCache.get(key);
+			if(ams==null) {
+				long generation = queryCache.generation();
+				session = sessionFactory.openSession();
+				ams = AgentMetricSet.newInstance(session, agentId);
+				if(key!=null) {
+					queryCache.put(key, ams, CatalogQueryCache.METRIC | CatalogQueryCache.AGENT, agentId, -1, generation);
+				}
+			}
+			request.response().setContent(ams).send(channel);
 		} catch (Exception ex) {
 			request.error("Failed to execute agentMetricSet [" + request + "]", ex);
 			error("Failed to execute agentMetricSet [" , request , "]", ex);
@@ -211,6 +259,84 @@ public class CatalogJSONDataService extends ServerComponentBean {
 	}
 	
 
+	/**
+	 * Indicates if catalog query results are cached
+	 * @return true if catalog query results are cached
+	 */
+	@ManagedAttribute(description="Indicates if catalog query results are cached")
+	public boolean isQueryCacheEnabled() {
+		return queryCacheEnabled;
+	}
+
+	/**
+	 * Sets if catalog query results are cached. Only effective before the service starts.
+	 * @param queryCacheEnabled true to cache catalog query results
+	 */
+	public void setQueryCacheEnabled(boolean queryCacheEnabled) {
+		this.queryCacheEnabled = queryCacheEnabled;
+	}
+
+	/**
+	 * Returns the maximum number of cached catalog query results
+	 * @return the maximum number of cached catalog query results
+	 */
+	@ManagedAttribute(description="The maximum number of cached catalog query results")
+	public int getQueryCacheSize() {
+		return queryCacheSize;
+	}
+
+	/**
+	 * Sets the maximum number of cached catalog query results. Only effective before the service starts.
+	 * @param queryCacheSize the maximum number of cached catalog query results
+	 */
+	public void setQueryCacheSize(int queryCacheSize) {
+		this.queryCacheSize = queryCacheSize;
+	}
+	
+	/**
+	 * Returns the number of cached catalog query results
+	 * @return the number of cached catalog query results
+	 */
+	@ManagedMetric(category="CatalogJSONDataService", displayName="CachedResults", metricType=MetricType.GAUGE, description="The number of cached catalog query results")
+	public long getCachedResults() {
+		return queryCache==null ? 0 : queryCache.size();
+	}
+	
+	/**
+	 * Returns the number of catalog queries served from the cache
+	 * @return the number of catalog queries served from the cache
+	 */
+	@ManagedMetric(category="CatalogJSONDataService", displayName="CacheHits", metricType=MetricType.COUNTER, description="The number of catalog queries served from the cache")
+	public long getCacheHits() {
+		return queryCache==null ? 0 : queryCache.getHits();
+	}
+	
+	/**
+	 * Returns the number of catalog queries executed against the catalog database
+	 * @return the number of catalog queries executed against the catalog database
+	 */
+	@ManagedMetric(category="CatalogJSONDataService", displayName="CacheMisses", metricType=MetricType.COUNTER, description="The number of catalog queries executed against the catalog database")
+	public long getCacheMisses() {
+		return queryCache==null ? 0 : queryCache.getMisses();
+	}
+	
+	/**
+	 * Returns the number of cached results invalidated by catalog changes
+	 * @return the number of cached results invalidated by catalog changes
+	 */
+	@ManagedMetric(category="CatalogJSONDataService", displayName="CacheInvalidations", metricType=MetricType.COUNTER, description="The number of cached catalog query results invalidated by catalog changes")
+	public long getCacheInvalidations() {
+		return queryCache==null ? 0 : queryCache.getInvalidations();
+	}
+	
+	/**
+	 * Clears the catalog query result cache
+	 */
+	@ManagedOperation(description="Clears the catalog query result cache")
+	public void clearQueryCache() {
+		if(queryCache!=null) queryCache.clear();
+	}
+
 	/**
 	 * Sets the object Json marshaller
 	 * @param marshaller the object Json marshaller
@@ -0,0 +1,270 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.dataservice.json.catalog;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.helios.apmrouter.catalog.jdbc.h2.CatalogChangeListener;
+
+/**
+ * <p>Title: CatalogQueryCache</p>
+ * <p>Description: A result cache for catalog queries served to the console. Each entry records the catalog tables its query 
+ * read and the agent or host the query was scoped to, and is removed by the catalog change events that could alter its result
+ * rather than by expiry. A generation counter, advanced by every change event, stops a query that was running while the catalog 
+ * changed from caching its result. When the cache is full, the least recently used result is evicted.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.dataservice.json.catalog.CatalogQueryCache</code></p>
+ */
+
+public class CatalogQueryCache implements CatalogChangeListener {
+	/** The cached results keyed by query and bound parameters, in access order. Guarded by its own monitor. */
+	protected final LinkedHashMap<String, CachedResult> cache;
+	/** The catalog change generation */
+	protected final AtomicLong generation = new AtomicLong(0L);
+	/** The maximum number of cached results */
+	protected final int maxSize;
+	/** The number of cache hits */
+	protected final AtomicLong hits = new AtomicLong(0L);
+	/** The number of cache misses */
+	protected final AtomicLong misses = new AtomicLong(0L);
+	/** The number of invalidated results */
+	protected final AtomicLong invalidations = new AtomicLong(0L);
+	
+	/** Table mask bit for the HOST table */
+	public static final int HOST = 1;
+	/** Table mask bit for the AGENT table */
+	public static final int AGENT = 2;
+	/** Table mask bit for the METRIC table */
+	public static final int METRIC = 4;
+	
+	/** The default maximum number of cached results */
+	public static final int DEFAULT_MAX_SIZE = 1024;
+	
+	/**
+	 * <p>Title: CachedResult</p>
+	 * <p>Description: A cached query result and the catalog scope it depends on</p> 
+	 */
+	protected static class CachedResult {
+		/** The cached result */
+		final Object result;
+		/** The catalog tables the result was read from */
+		final int tables;
+		/** The agent the query was scoped to, or <code>-1</code> */
+		final int agentId;
+		/** The host the query was scoped to, or <code>-1</code> */
+		final int hostId;
+		
+		/**
+		 * Creates a new CachedResult
+		 * @param result The cached result
+		 * @param tables The catalog tables the result was read from
+		 * @param agentId The agent the query was scoped to, or <code>-1</code>
+		 * @param hostId The host the query was scoped to, or <code>-1</code>
+		 */
+		CachedResult(Object result, int tables, int agentId, int hostId) {
+			this.result = result;
+			this.tables = tables;
+			this.agentId = agentId;
+			this.hostId = hostId;
+		}
+	}
+	
+	/**
+	 * Creates a new CatalogQueryCache
+	 * @param maxSize The maximum number of cached results
+	 */
+	public CatalogQueryCache(final int maxSize) {
+		this.maxSize = maxSize;
+		cache = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+			/**  */
+			private static final long serialVersionUID = -2930486071393626147L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+	
+	/**
+	 * Returns the current catalog change generation. Callers read this before running a query and pass it to 
+	 * {@link #put(String, Object, int, int, int, long)} when caching the result.
+	 * @return the current catalog change generation
+	 */
+	public long generation() {
+		return generation.get();
+	}
+	
+	/**
+	 * Returns the cached result for the passed key
+	 * @param key The cache key
+	 * @return the cached result or null if there was none
+	 */
+	public Object get(String key) {
+		CachedResult cr = null;
+		synchronized(cache) {
+			cr = cache.get(key);
+		}
+		if(cr==null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return cr.result;
+	}
+	
+	/**
+	 * Caches a query result, unless the catalog changed while the query was running, evicting the least recently used result if the cache is full
+	 * @param key The cache key
+	 * @param result The result to cache
+	 * @param tables The catalog tables the result was read from
+	 * @param agentId The agent the query was scoped to, or <code>-1</code>
+	 * @param hostId The host the query was scoped to, or <code>-1</code>
+	 * @param startGeneration The {@link #generation()} read before the query was run
+	 * @return true if the result was cached
+	 */
+	public boolean put(String key, Object result, int tables, int agentId, int hostId, long startGeneration) {
+		if(result==null || tables==0) return false;
+		synchronized(cache) {
+			// an invalidation advances the generation before it takes the lock, so a result cached here is either rejected or seen by the invalidation 
+			if(generation.get()!=startGeneration) return false;
+			cache.put(key, new CachedResult(result, tables, agentId, hostId));
+			return true;
+		}
+	}
+	
+	/**
+	 * Removes the cached results that read any of the passed tables and are unscoped or scoped to the passed agent or host
+	 * @param tables The changed catalog tables
+	 * @param agentId The changed agent, or <code>-1</code> if unknown
+	 * @param hostId The changed host, or <code>-1</code> if unknown
+	 */
+	public void invalidate(int tables, int agentId, int hostId) {
+		generation.incrementAndGet();
+		synchronized(cache) {
+			if(cache.isEmpty()) return;
+			for(Iterator<CachedResult> iter = cache.values().iterator(); iter.hasNext();) {
+				CachedResult cr = iter.next();
+				if((cr.tables & tables)==0) continue;
+				if(agentId!=-1 && cr.agentId!=-1 && cr.agentId!=agentId) continue;
+				if(hostId!=-1 && cr.hostId!=-1 && cr.hostId!=hostId) continue;
+				iter.remove();
+				invalidations.incrementAndGet();
+			}
+		}
+	}
+	
+	/**
+	 * Removes all cached results
+	 */
+	public void clear() {
+		generation.incrementAndGet();
+		synchronized(cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.catalog.jdbc.h2.CatalogChangeListener#onNewHost(int)
+	 */
+	@Override
+	public void onNewHost(int hostId) {
+		invalidate(HOST, -1, hostId);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.catalog.jdbc.h2.CatalogChangeListener#onHostChange(int)
+	 */
+	@Override
+	public void onHostChange(int hostId) {
+		invalidate(HOST, -1, hostId);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.catalog.jdbc.h2.CatalogChangeListener#onAgentChange(int, int)
+	 */
+	@Override
+	public void onAgentChange(int agentId, int hostId) {
+		invalidate(HOST | AGENT, agentId, hostId);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.catalog.jdbc.h2.CatalogChangeListener#onNewMetric(long, int)
+	 */
+	@Override
+	public void onNewMetric(long metricId, int agentId) {
+		invalidate(METRIC, agentId, -1);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.catalog.jdbc.h2.CatalogChangeListener#onMetricStateChange(long, int, byte)
+	 */
+	@Override
+	public void onMetricStateChange(long metricId, int agentId, byte state) {
+		invalidate(METRIC, agentId, -1);
+	}
+	
+	/**
+	 * Returns the number of cached results
+	 * @return the number of cached results
+	 */
+	public int size() {
+		synchronized(cache) {
+			return cache.size();
+		}
+	}
+
+	/**
+	 * Returns the number of cache hits
+	 * @return the number of cache hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of cache misses
+	 * @return the number of cache misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of invalidated results
+	 * @return the number of invalidated results
+	 */
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+}
@@ -0,0 +1,212 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.dataservice.json.catalog;
+
+import java.beans.PropertyEditor;
+import java.beans.PropertyEditorManager;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hibernate.Query;
+import org.hibernate.engine.NamedQueryDefinition;
+
+/**
+ * <p>Title: NamedQueryPlan</p>
+ * <p>Description: A named query definition precompiled for repeated execution by the catalog data service.
+ * The parameter binders are resolved once from the definition's declared parameter types, and the catalog tables 
+ * the query reads are extracted so that cached results can be invalidated by the catalog events that affect them.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.dataservice.json.catalog.NamedQueryPlan</code></p>
+ */
+
+public class NamedQueryPlan {
+	/** The named query name */
+	protected final String name;
+	/** The catalog tables read by the query as a {@link CatalogQueryCache} table mask */
+	protected final int tables;
+	/** The parameter binders keyed by parameter name */
+	protected final Map<String, ParamBinder> binders = new HashMap<String, ParamBinder>();
+	
+	/** The name of the parameter that scopes a query to one agent */
+	public static final String AGENT_SCOPE_PARAM = "agentId";
+	/** The name of the parameter that scopes a query to one host */
+	public static final String HOST_SCOPE_PARAM = "hostId";
+	/** The pattern matching the catalog table or entity names in a query */
+	public static final Pattern TABLE_PATTERN = Pattern.compile("\\b(host|agent|metric)\\b", Pattern.CASE_INSENSITIVE);
+	
+	/**
+	 * Creates a new NamedQueryPlan
+	 * @param name The named query name
+	 * @param definition The named query definition
+	 */
+	public NamedQueryPlan(String name, NamedQueryDefinition definition) {
+		this.name = name;
+		int mask = 0;
+		Matcher m = TABLE_PATTERN.matcher(definition.getQueryString());
+		while(m.find()) {
+			String table = m.group(1).toLowerCase();
+			if("host".equals(table)) mask |= CatalogQueryCache.HOST;
+			else if("agent".equals(table)) mask |= CatalogQueryCache.AGENT;
+			else mask |= CatalogQueryCache.METRIC;
+		}
+		tables = mask;
+		for(Object o: definition.getParameterTypes().entrySet()) {
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>)o;
+			binders.put(entry.getKey().toString(), new ParamBinder(entry.getKey().toString(), entry.getValue().toString()));
+		}
+	}
+	
+	/**
+	 * Converts the passed client supplied parameters into the query's declared types
+	 * @param params The client supplied parameters keyed by parameter name
+	 * @return the converted parameters, sorted by parameter name
+	 */
+	public Map<String, Object> convert(Map<String, ?> params) {
+		Map<String, Object> converted = new TreeMap<String, Object>();
+		for(Map.Entry<String, ?> param: params.entrySet()) {
+			ParamBinder binder = binders.get(param.getKey());
+			if(binder==null) throw new IllegalArgumentException("The named query [" + name + "] has no parameter named [" + param.getKey() + "]");
+			converted.put(param.getKey(), binder.convert(param.getValue()));
+		}
+		return converted;
+	}
+	
+	/**
+	 * Binds the passed converted parameters to the passed query
+	 * @param query The query to bind to
+	 * @param converted The parameters returned from {@link #convert(Map)}
+	 * @return the bound query
+	 */
+	public Query bind(Query query, Map<String, Object> converted) {
+		for(Map.Entry<String, Object> param: converted.entrySet()) {
+			query.setParameter(param.getKey(), param.getValue());
+		}
+		return query;
+	}
+	
+	/**
+	 * Returns the result cache key for this query and the passed converted parameters
+	 * @param converted The parameters returned from {@link #convert(Map)}
+	 * @return the cache key
+	 */
+	public String cacheKey(Map<String, Object> converted) {
+		StringBuilder b = new StringBuilder(name).append('?');
+		for(Map.Entry<String, Object> param: converted.entrySet()) {
+			b.append(param.getKey()).append('=').append(param.getValue()).append('&');
+		}
+		return b.toString();
+	}
+	
+	/**
+	 * Returns the id a query is scoped to by the passed parameter
+	 * @param converted The parameters returned from {@link #convert(Map)}
+	 * @param scopeParam The name of the scoping parameter
+	 * @return the scope id or <code>-1</code> if the query is not scoped by the named parameter
+	 */
+	public static int scope(Map<String, Object> converted, String scopeParam) {
+		Object value = converted.get(scopeParam);
+		return (value instanceof Number) ? ((Number)value).intValue() : -1;
+	}
+	
+	/**
+	 * Returns the named query name
+	 * @return the named query name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the catalog tables read by the query
+	 * @return a {@link CatalogQueryCache} table mask
+	 */
+	public int getTables() {
+		return tables;
+	}
+	
+	/**
+	 * <p>Title: ParamBinder</p>
+	 * <p>Description: Converts client supplied values to a parameter's declared type. The common types are decoded directly
+	 * and any other type is converted by the {@link PropertyEditor} resolved when the plan was created.</p> 
+	 */
+	protected static class ParamBinder {
+		/** The parameter name */
+		final String name;
+		/** The declared parameter type */
+		final Class<?> type;
+		/** The property editor class for types not decoded directly */
+		final Class<? extends PropertyEditor> editorClass;
+		
+		/**
+		 * Creates a new ParamBinder
+		 * @param name The parameter name
+		 * @param typeName The declared parameter type name
+		 */
+		ParamBinder(String name, String typeName) {
+			this.name = name;
+			try {
+				type = Class.forName(typeName);
+			} catch (ClassNotFoundException ex) {
+				throw new RuntimeException("Failed to load type [" + typeName + "] for named query parameter [" + name + "]", ex);
+			}
+			if(type==String.class || type==Integer.class || type==Long.class || type==Short.class || type==Boolean.class || type==Double.class) {
+				editorClass = null;
+			} else {
+				PropertyEditor pe = PropertyEditorManager.findEditor(type);
+				if(pe==null) throw new RuntimeException("No property editor for type [" + typeName + "] for named query parameter [" + name + "]");
+				editorClass = pe.getClass();
+			}
+		}
+		
+		/**
+		 * Converts the passed value to this parameter's type
+		 * @param value The client supplied value
+		 * @return the converted value
+		 */
+		Object convert(Object value) {
+			if(value!=null && type.isInstance(value)) return value;
+			if(type==String.class) return String.valueOf(value);
+			String text = String.valueOf(value).trim();
+			if(type==Integer.class) return Integer.decode(text);
+			if(type==Long.class) return Long.decode(text);
+			if(type==Short.class) return Short.decode(text);
+			if(type==Boolean.class) return Boolean.valueOf(text);
+			if(type==Double.class) return Double.valueOf(text);
+			try {
+				PropertyEditor pe = editorClass.newInstance();
+				pe.setAsText(text);
+				return pe.getValue();
+			} catch (InstantiationException ex) {
+				throw new RuntimeException("Failed to create property editor for named query parameter [" + name + "]", ex);
+			} catch (IllegalAccessException ex) {
+				throw new RuntimeException("Failed to create property editor for named query parameter [" + name + "]", ex);
+			}
+		}
+	}
+}
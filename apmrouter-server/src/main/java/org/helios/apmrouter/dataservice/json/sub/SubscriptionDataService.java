@@ -59,7 +59,7 @@ public class SubscriptionDataService {
 	 */
 	@JSONRequestHandler(name="start")
 	public void start(JsonRequest request, Channel channel)  {
-		SubscriptionCriteriaBuilder<?,?,?> builder = subService.getBuilder(request.arguments.get(JSON_EVENT_SOURCE).toString());
+		SubscriptionCriteriaBuilder<?,?,?> builder = subService.getBuilder(request.getArguments().get(JSON_EVENT_SOURCE).toString());
 		SubscriptionCriteria<?,?,?> criteria =  builder.build(request);
 		long subId = subService.addCriteria(channel, criteria, request);
 		log.info("Started subId [" + subId + "] for channel [" + channel + "] with criteria [" + criteria + "]");
@@ -28,6 +28,8 @@ import java.util.Collection;
 import java.util.concurrent.TimeUnit;
 
 import org.helios.apmrouter.collections.ConcurrentLongSlidingWindow;
+import org.helios.apmrouter.collections.LatencyHistogram;
+import org.helios.apmrouter.collections.StripedCounter;
 import org.helios.apmrouter.destination.accumulator.FlushQueueReceiver;
 import org.helios.apmrouter.destination.accumulator.TimeSizeFlushQueue;
 import org.helios.apmrouter.metric.IMetric;
@@ -51,11 +53,23 @@ public abstract class BaseAsyncDestination extends BaseDestination implements Fl
 	protected int sizeTrigger = 75;
 	/** The queue's time flush trigger */
 	protected long timeTrigger = 5000;
+	/** The queue's ring capacity. If less than 1, the queue sizes its ring from the size trigger */
+	protected int queueCapacity = -1;
+	/** The queue's policy for metrics routed to a full queue */
+	protected TimeSizeFlushQueue.OverflowPolicy overflowPolicy = TimeSizeFlushQueue.OverflowPolicy.DROP_NEWEST;
 	
-	/** A sliding window of flush elapsed times */
-	protected final ConcurrentLongSlidingWindow flushElapsedTimes = new ConcurrentLongSlidingWindow(20); 
+	/** Histogram of flush elapsed times in ns. */
+	protected final LatencyHistogram flushTimesNs = new LatencyHistogram();
+	/** The last flush elapsed time in ns. */
+	protected volatile long lastFlushTimeNs = -1L;
 	/** A sliding window of flush sizes */
 	protected final ConcurrentLongSlidingWindow flushSize = new ConcurrentLongSlidingWindow(20); 
+	/** The queued routes counter */
+	protected final StripedCounter queuedRoutes = counter("QueuedRoutes");
+	/** The dropped routes counter */
+	protected final StripedCounter droppedRoutes = counter("DroppedRoutes");
+	/** The dequeued routes counter */
+	protected final StripedCounter dequeuedRoutes = counter("DequeuedRoutes");
 	
 	/**
 	 * {@inheritDoc}
@@ -63,8 +77,8 @@ public abstract class BaseAsyncDestination extends BaseDestination implements Fl
 	 */
 	@Override
 	protected void doStart() throws Exception {		
-		flushQueue = new TimeSizeFlushQueue<IMetric>(beanName, sizeTrigger, timeTrigger, this);
-		info("Created flush queue for [", beanName, "]\n\tST:", sizeTrigger, "\n\tTT:", timeTrigger);
+		flushQueue = new TimeSizeFlushQueue<IMetric>(beanName, sizeTrigger, timeTrigger, queueCapacity, overflowPolicy, this, null, null);
+		info("Created flush queue for [", beanName, "]\n\tST:", sizeTrigger, "\n\tTT:", timeTrigger, "\n\tCapacity:", flushQueue.getQueueCapacity(), "\n\tOverflow:", overflowPolicy);
 		super.doStart();
 	}
 	
@@ -74,10 +88,21 @@ public abstract class BaseAsyncDestination extends BaseDestination implements Fl
 	 */
 	@Override
 	protected void doStop() {
+		 if(flushQueue!=null) flushQueue.shutdown();
 		 flushQueue = null;
 		 super.doStop();
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.destination.BaseDestination#resetMetrics()
+	 */
+	@Override
+	public void resetMetrics() {
+		super.resetMetrics();
+		flushTimesNs.reset();
+	}
+	
 	/**
 	 * Accept Route additive for BaseDestination extensions
 	 * @param routable The metric to route
@@ -86,9 +111,9 @@ public abstract class BaseAsyncDestination extends BaseDestination implements Fl
 	protected void doAcceptRoute(IMetric routable) {
 		if(routable!=null) {
 			if(flushQueue.add(routable)) {
-				incr("QueuedRoutes");
+				queuedRoutes.increment();
 			} else {
-				incr("DroppedRoutes");
+				droppedRoutes.increment();
 			}
 		}
 	}
@@ -99,7 +124,7 @@ public abstract class BaseAsyncDestination extends BaseDestination implements Fl
 	 */
 	@ManagedMetric(category="AsyncRoutingDestinations", metricType=MetricType.COUNTER, description="The number messages queued by this destination", displayName="QueuedRoutes")
 	public long getQueuedRouteCount() {
-		return getMetricValue("QueuedRoutes");
+		return queuedRoutes.get();
 	}
 	
 	/**
@@ -108,7 +133,7 @@ public abstract class BaseAsyncDestination extends BaseDestination implements Fl
 	 */
 	@ManagedMetric(category="AsyncRoutingDestinations", metricType=MetricType.COUNTER, description="The number messages dequeued by this destination", displayName="DequeuedRoutes")
 	public long getDequeuedRouteCount() {
-		return getMetricValue("DequeuedRoutes");
+		return dequeuedRoutes.get();
 	}
 	
 	
@@ -118,25 +143,43 @@ public abstract class BaseAsyncDestination extends BaseDestination implements Fl
 	 */
 	@ManagedMetric(category="AsyncRoutingDestinations", metricType=MetricType.COUNTER, description="The number messages dropped by this destination", displayName="DropedRoutes")
 	public long getDroppedRouteCount() {
-		return getMetricValue("DroppedRoutes");
+		return droppedRoutes.get();
 	}
 	
 	/**
-	 * Returns the rolling average elapsed flush time in ns.
-	 * @return the rolling average elapsed flush time in ns.
+	 * Returns the average elapsed flush time in ns. in the last histogram interval
+	 * @return the average elapsed flush time in ns. in the last histogram interval
 	 */
-	@ManagedMetric(category="AsyncRoutingDestinations", metricType=MetricType.GAUGE, description="The rolling average elapsed flush time in ns.", displayName="AverageElapsedFlushTimeNs")
+	@ManagedMetric(category="AsyncRoutingDestinations", metricType=MetricType.GAUGE, description="The average elapsed flush time in ns. in the last histogram interval", displayName="AverageElapsedFlushTimeNs")
 	public long getAverageElapsedFlushTimeNs() {
-		return flushElapsedTimes.avg();
+		return flushTimesNs.getSnapshot().getMean();
 	}	
 	
 	/**
-	 * Returns the rolling average elapsed flush time in ms.
-	 * @return the rolling average elapsed flush time in ms.
+	 * Returns the average elapsed flush time in ms. in the last histogram interval
+	 * @return the average elapsed flush time in ms. in the last histogram interval
 	 */
-	@ManagedMetric(category="AsyncRoutingDestinations", metricType=MetricType.GAUGE, description="The rolling average elapsed flush time in ms.", displayName="AverageElapsedFlushTimeMs")
+	@ManagedMetric(category="AsyncRoutingDestinations", metricType=MetricType.GAUGE, description="The average elapsed flush time in ms. in the last histogram interval", displayName="AverageElapsedFlushTimeMs")
 	public long getAverageElapsedFlushTimeMs() {
-		return TimeUnit.MILLISECONDS.convert(flushElapsedTimes.avg(), TimeUnit.NANOSECONDS);
+		return TimeUnit.MILLISECONDS.convert(getAverageElapsedFlushTimeNs(), TimeUnit.NANOSECONDS);
+	}	
+	
+	/**
+	 * Returns the 99th percentile elapsed flush time in ns. in the last histogram interval
+	 * @return the 99th percentile elapsed flush time in ns. in the last histogram interval
+	 */
+	@ManagedMetric(category="AsyncRoutingDestinations", metricType=MetricType.GAUGE, description="The 99th percentile elapsed flush time in ns. in the last histogram interval", displayName="FlushTimeP99Ns")
+	public long getFlushTimeP99Ns() {
+		return flushTimesNs.getSnapshot().getP99();
+	}	
+	
+	/**
+	 * Returns the maximum elapsed flush time in ns. in the last histogram interval
+	 * @return the maximum elapsed flush time in ns. in the last histogram interval
+	 */
+	@ManagedMetric(category="AsyncRoutingDestinations", metricType=MetricType.GAUGE, description="The maximum elapsed flush time in ns. in the last histogram interval", displayName="FlushTimeMaxNs")
+	public long getFlushTimeMaxNs() {
+		return flushTimesNs.getSnapshot().getMax();
 	}	
 	
 	/**
@@ -145,7 +188,7 @@ public abstract class BaseAsyncDestination extends BaseDestination implements Fl
 	 */
 	@ManagedMetric(category="AsyncRoutingDestinations", metricType=MetricType.GAUGE, description="The last elapsed flush time in ns.", displayName="LastElapsedFlushTimeNs")
 	public long getLastElapsedFlushTimeNs() {
-		return flushElapsedTimes.isEmpty() ? -1L : flushElapsedTimes.get(0);
+		return lastFlushTimeNs;
 	}	
 	
 	/**
@@ -193,13 +236,11 @@ public abstract class BaseAsyncDestination extends BaseDestination implements Fl
 	public void flushTo(Collection<IMetric> flushedItems) {
 		if(flushedItems==null || flushedItems.isEmpty()) return;
 		int size = flushedItems.size();
-		incr("DequeuedRoutes", size);
+		dequeuedRoutes.add(size);
 		flushSize.insert(size);
 		final long start = System.nanoTime();
 		doFlush(flushedItems);
-		flushedItems.clear();
-		final long elapsed = System.nanoTime()-start;
-		flushElapsedTimes.insert(elapsed);
+		lastFlushTimeNs = flushTimesNs.recordSince(start);
 	}	
 	
 	/**
@@ -246,6 +287,44 @@ public abstract class BaseAsyncDestination extends BaseDestination implements Fl
 		if(flushQueue!=null) flushQueue.setTimeTrigger(time);
 	}
 	
+	/**
+	 * Returns the flush queue ring capacity
+	 * @return the flush queue ring capacity
+	 */
+	@ManagedAttribute(description="The maximum number of metrics held in the flush queue")
+	public int getQueueCapacity() {
+		if(flushQueue==null) return queueCapacity;
+		return flushQueue.getQueueCapacity();
+	}
+	
+	/**
+	 * Sets the flush queue ring capacity. Takes effect when the destination is next started.
+	 * @param capacity the flush queue ring capacity
+	 */
+	public void setQueueCapacity(int capacity) {
+		queueCapacity = capacity;
+	}
+	
+	/**
+	 * Returns the name of the policy applied to metrics routed to a full flush queue
+	 * @return the overflow policy name
+	 */
+	@ManagedAttribute(description="The policy applied to metrics routed to a full flush queue")
+	public String getOverflowPolicy() {
+		if(flushQueue==null) return overflowPolicy.name();
+		return flushQueue.getOverflowPolicyName();
+	}
+	
+	/**
+	 * Sets the policy applied to metrics routed to a full flush queue
+	 * @param policy the overflow policy name (DROP_NEWEST, DROP_OLDEST or BLOCK)
+	 */
+	@ManagedAttribute(description="The policy applied to metrics routed to a full flush queue")
+	public void setOverflowPolicy(String policy) {
+		overflowPolicy = TimeSizeFlushQueue.OverflowPolicy.valueOf(policy.trim().toUpperCase());
+		if(flushQueue!=null) flushQueue.setOverflowPolicy(overflowPolicy);
+	}
+	
 	/**
 	 * Creates a new BaseAsyncDestination
 	 * @param patterns The patterns this destination accepts
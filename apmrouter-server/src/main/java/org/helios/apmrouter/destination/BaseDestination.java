@@ -32,6 +32,8 @@ import java.util.concurrent.CopyOnWriteArraySet;
 
 import javax.management.ObjectName;
 
+import org.helios.apmrouter.collections.LatencyHistogram;
+import org.helios.apmrouter.collections.StripedCounter;
 import org.helios.apmrouter.destination.event.DestinationStartedEvent;
 import org.helios.apmrouter.destination.event.DestinationStoppedEvent;
 import org.helios.apmrouter.jmx.JMXHelper;
@@ -58,6 +60,10 @@ public class BaseDestination extends ServerComponentBean implements RouteDestina
 	protected final PatternMatchGroup pmg;
 	/** The match patterns for this destination */
 	protected final Set<String> matchPatterns = new CopyOnWriteArraySet<String>();
+	/** Histogram of the elapsed times in ns. to accept a matched route */
+	protected final LatencyHistogram acceptTimesNs = new LatencyHistogram();
+	/** The accepted routes counter */
+	protected final StripedCounter acceptedRoutes = counter("AcceptedRoutes");
 	
 	
 	/**
@@ -189,8 +195,10 @@ public class BaseDestination extends ServerComponentBean implements RouteDestina
 			//info("TXContext[", routable.getTXContext(), "]");
 		}
 		if(pmg.matches(routable.getRoutingKey())) {
-			incr("AcceptedRoutes");
+			acceptedRoutes.increment();
+			final long start = System.nanoTime();
 			doAcceptRoute(routable);
+			acceptTimesNs.recordSince(start);
 		}		
 	}
 	
@@ -202,13 +210,59 @@ public class BaseDestination extends ServerComponentBean implements RouteDestina
 		
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.server.ServerComponent#resetMetrics()
+	 */
+	@Override
+	public void resetMetrics() {
+		super.resetMetrics();
+		acceptTimesNs.reset();
+	}
+	
+	/**
+	 * Returns the median elapsed time in ns. to accept a route in the last histogram interval
+	 * @return the median elapsed time in ns. to accept a route in the last histogram interval
+	 */
+	@ManagedMetric(category="RoutingDestinations", metricType=MetricType.GAUGE, description="The median elapsed time in ns. to accept a route in the last histogram interval", displayName="AcceptTimeP50Ns")
+	public long getAcceptTimeP50Ns() {
+		return acceptTimesNs.getSnapshot().getP50();
+	}
+	
+	/**
+	 * Returns the 99th percentile elapsed time in ns. to accept a route in the last histogram interval
+	 * @return the 99th percentile elapsed time in ns. to accept a route in the last histogram interval
+	 */
+	@ManagedMetric(category="RoutingDestinations", metricType=MetricType.GAUGE, description="The 99th percentile elapsed time in ns. to accept a route in the last histogram interval", displayName="AcceptTimeP99Ns")
+	public long getAcceptTimeP99Ns() {
+		return acceptTimesNs.getSnapshot().getP99();
+	}
+	
+	/**
+	 * Returns the 99.9th percentile elapsed time in ns. to accept a route in the last histogram interval
+	 * @return the 99.9th percentile elapsed time in ns. to accept a route in the last histogram interval
+	 */
+	@ManagedMetric(category="RoutingDestinations", metricType=MetricType.GAUGE, description="The 99.9th percentile elapsed time in ns. to accept a route in the last histogram interval", displayName="AcceptTimeP999Ns")
+	public long getAcceptTimeP999Ns() {
+		return acceptTimesNs.getSnapshot().getP999();
+	}
+	
+	/**
+	 * Returns the maximum elapsed time in ns. to accept a route in the last histogram interval
+	 * @return the maximum elapsed time in ns. to accept a route in the last histogram interval
+	 */
+	@ManagedMetric(category="RoutingDestinations", metricType=MetricType.GAUGE, description="The maximum elapsed time in ns. to accept a route in the last histogram interval", displayName="AcceptTimeMaxNs")
+	public long getAcceptTimeMaxNs() {
+		return acceptTimesNs.getSnapshot().getMax();
+	}
+	
 	/**
 	 * Returns the number messages accepted by this destination
 	 * @return the number messages accepted by this destination
 	 */
 	@ManagedMetric(category="RoutingDestinations", metricType=MetricType.COUNTER, description="The number messages accepted by this destination", displayName="AcceptedRoutes")
 	public long getAcceptedRouteCount() {
-		return getMetricValue("AcceptedRoutes");
+		return acceptedRoutes.get();
 	}
 
 }
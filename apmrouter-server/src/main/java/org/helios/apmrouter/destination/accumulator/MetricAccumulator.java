@@ -25,10 +25,8 @@
 package org.helios.apmrouter.destination.accumulator;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -37,11 +35,14 @@ import java.util.concurrent.atomic.AtomicLong;
 
 import org.helios.apmrouter.jmx.ScheduledThreadPoolFactory;
 import org.helios.apmrouter.metric.IMetric;
+import org.helios.apmrouter.metric.TokenConflationTable;
 import org.helios.apmrouter.util.SystemClock;
 
 /**
  * <p>Title: MetricAccumulator</p>
  * <p>Description: Accumulates and conflates {@link IMetric}s in preparation for a metric count or time based flush.</p> 
+ * <p>Metrics are conflated by catalog token into a {@link TokenConflationTable} which is swapped out on flush, so appending threads are not
+ * blocked while the flushed metrics are copied out.</p>
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>org.helios.apmrouter.destination.accumulator.MetricAccumulator</code></p>
@@ -62,8 +63,8 @@ public class MetricAccumulator implements Runnable {
 	protected final AtomicBoolean flushInProgress = new AtomicBoolean(false);
 	/** The timed flush schedule handle */
 	protected ScheduledFuture<?> scheduleHandle = null;
-	/** The accumulation map */
-	protected final ConcurrentHashMap<String, IMetric> accumulatedMetrics; 
+	/** The accumulation table */
+	protected final TokenConflationTable accumulatedMetrics; 
 
 	/**
 	 * Creates a new MetricAccumulator
@@ -74,7 +75,7 @@ public class MetricAccumulator implements Runnable {
 	 * @param unit The unit of the time trigger
 	 */
 	public MetricAccumulator(MetricFlushReceiver receiver, int bufferSize, int sizeTrigger, long timeTrigger, TimeUnit unit) {
-		accumulatedMetrics = new ConcurrentHashMap<String, IMetric>(bufferSize);
+		accumulatedMetrics = new TokenConflationTable(bufferSize, 0);
 		this.receiver = receiver;
 		this.sizeTrigger = sizeTrigger;
 		this.timeTrigger = TimeUnit.MILLISECONDS.convert(timeTrigger, unit);
@@ -113,14 +114,7 @@ public class MetricAccumulator implements Runnable {
 		}
 		if(metrics!=null && metrics.length>0) {
 			for(IMetric metric: metrics) {
-				synchronized(flushInProgress) {
-					IMetric alreadyQueued = accumulatedMetrics.get(metric.getFQN());
-					if(alreadyQueued!=null) {
-						alreadyQueued.conflate(metric);
-					} else {
-						accumulatedMetrics.put(metric.getFQN(), metric);
-					}
-				}
+				accumulatedMetrics.conflate(metric);
 			}
 			
 			if(accumulatedMetrics.size() >= sizeTrigger) {
@@ -138,18 +132,14 @@ public class MetricAccumulator implements Runnable {
 	}
 	
 	/**
-	 * Copies the accumulated buffer into a new buffer, flushes the copy, clears the accumulated buffer and returns the copy
+	 * Swaps out the accumulated buffer and flushes its metrics to the receiver
 	 */
 	public void flush() {
 		if(flushInProgress.compareAndSet(false, true)) {
 			try {
-				Map<String, IMetric> flushed = null;
-				synchronized(flushInProgress) {
-					flushed = new HashMap<String, IMetric>(accumulatedMetrics);
-					accumulatedMetrics.clear();
-				}
+				IMetric[] flushed = accumulatedMetrics.drain();
 				lastFlush.set(SystemClock.time());
-				receiver.flush(flushed.values(), flushed.size());
+				receiver.flush(Arrays.asList(flushed), flushed.length);
 			} finally {
 				flushInProgress.set(false);
 			}
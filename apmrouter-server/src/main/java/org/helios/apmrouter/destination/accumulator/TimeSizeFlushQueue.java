@@ -24,22 +24,20 @@
  */
 package org.helios.apmrouter.destination.accumulator;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Collections;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.log4j.Logger;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
@@ -47,6 +45,12 @@ import org.springframework.jmx.export.annotation.ManagedAttribute;
 /**
  * <p>Title: TimeSizeFlushQueue</p>
  * <p>Description: A queue that is flushed when triggered by a size threshold and/or an elapsed time between flushes.</p> 
+ * <p>Items are added to a pre-allocated multi-producer ring buffer. A producer claims a slot with a CAS on the claim sequence, 
+ * writes the item and publishes the slot, so producers never lock and never contend with the flusher. 
+ * A single flusher at a time drains published items in order into a batch array of up to <b><code>sizeTrigger</code></b> items, 
+ * releasing the ring slots as soon as they are copied, and hands the batch to the {@link FlushQueueReceiver} as a fixed size list view of the array.
+ * Every added item is flushed exactly once, including distinct adds of the same instance.</p>
+ * <p>When the ring is full, the queue's {@link OverflowPolicy} determines what happens to the item being added.</p>
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>org.helios.apmrouter.destination.accumulator.TimeSizeFlushQueue</code></p>
@@ -62,18 +66,33 @@ public class TimeSizeFlushQueue<T> implements Runnable {
 	private static final Object schedulerLock = new Object();
 	/** Creation lock for the default threadPool */
 	private static final Object threadPoolLock = new Object();
+	
+	/** The default ring capacity as a multiple of the size trigger */
+	public static final int DEFAULT_CAPACITY_MULTIPLIER = 8;
+	/** The minimum ring capacity */
+	public static final int MIN_CAPACITY = 64;
+	
+	/**
+	 * <p>Title: OverflowPolicy</p>
+	 * <p>Description: Enumerates what happens to an item added to a full queue</p> 
+	 */
+	public static enum OverflowPolicy {
+		/** The item being added is dropped */
+		DROP_NEWEST,
+		/** The oldest unflushed item is dropped to make room for the item being added */
+		DROP_OLDEST,
+		/** The adding thread waits up to the block timeout for room, and the item is dropped if none frees up */
+		BLOCK;
+	}
+	
 	/** The name of the flushQueue */
 	protected final String name;	
 	/** The queue size threshold */
 	protected final AtomicInteger sizeTrigger = new AtomicInteger(0);
 	/** The elapsed time since last flush threshold in ms. */
 	protected final AtomicLong timeTrigger = new AtomicLong(0);
-	/** The flush queue */
-	protected final BlockingQueue<T> queue;
 	/** The flush queue runnable */
 	protected final FlushQueueReceiver<T> receiver;
-	/** The flush running lock */
-	protected final ReentrantLock flushLock = new ReentrantLock(false);
 	/** The scheduler for time triggered flushes */
 	protected final ScheduledExecutorService scheduler;
 	/** The thread pool for processing flushes */
@@ -82,6 +101,8 @@ public class TimeSizeFlushQueue<T> implements Runnable {
 	protected ScheduledFuture<?> handle = null;
 	/** The elapsed time in ms. of the last flush */
 	protected final AtomicLong lastFlushElapsed = new AtomicLong(0L);
+	/** The timestamp of the last flush */
+	protected volatile long lastFlushTime = System.currentTimeMillis();
 	/** The total number of completed flushes */
 	protected final AtomicLong flushCount = new AtomicLong(0L);
 	/** The total number of flush exceptions */
@@ -92,13 +113,31 @@ public class TimeSizeFlushQueue<T> implements Runnable {
 	protected final boolean bypassQueue;
 	/** Instance logger */
 	protected final Logger log;
-	
-	
-	/** The flush buffer which is the queue drains to synchronously in the trigger thread */
-	protected final Set<T> flushBuffer;
 	/** static logger */
 	protected static final Logger LOG = Logger.getLogger(TimeSizeFlushQueue.class);
 	
+	/** The overflow policy */
+	protected volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+	/** The maximum time in ms. an add waits for room under the {@link OverflowPolicy#BLOCK} policy */
+	protected volatile long blockTimeout = 1000;
+	
+	/** The ring buffer slots */
+	protected final Object[] ring;
+	/** The ring index mask */
+	protected final int mask;
+	/** The sequence published in each slot, or -1 if the slot is empty */
+	protected final AtomicLongArray published;
+	/** The next sequence to be claimed by a producer */
+	protected final AtomicLong claimed = new AtomicLong(0L);
+	/** The next sequence to be consumed. Only advanced while holding the {@link #draining} flag. */
+	protected volatile long consumed = 0L;
+	/** Held while slots are being consumed */
+	protected final AtomicBoolean draining = new AtomicBoolean(false);
+	/** Held while a flush is delivering batches to the receiver */
+	protected final AtomicBoolean flushing = new AtomicBoolean(false);
+	/** Indicates a flush has been submitted to the thread pool and not started yet */
+	protected final AtomicBoolean flushPending = new AtomicBoolean(false);
+	
 	/**
 	 * Creates the default scheduler
 	 * @return a scheduler
@@ -144,33 +183,40 @@ public class TimeSizeFlushQueue<T> implements Runnable {
 				}
 			}
 		}
-		return defaultScheduler;
+		return defaultThreadPool;
 	}
 	
-	
-	
 	/**
 	 * Creates a new TimeSizeFlushQueue
 	 * @param name The name for this flushQueue
 	 * @param sizeTrigger The flush size trigger
 	 * @param timeTrigger The flush time trigger
+	 * @param capacity The ring capacity, rounded up to a power of 2. If less than 1, defaults to {@link #DEFAULT_CAPACITY_MULTIPLIER} x the size trigger. 
+	 * @param overflowPolicy The policy for items added to a full queue. If null, defaults to {@link OverflowPolicy#DROP_NEWEST}.
 	 * @param receiver The receiver runnable responsible for processing the flush
 	 * @param scheduler An externally provided scheduler. If null, uses the default shared scheduler.
 	 * @param threadPool An externally provided thread pool. If null, uses the default shared pool. 
 	 */
-	public TimeSizeFlushQueue(String name, int sizeTrigger, long timeTrigger, FlushQueueReceiver<T> receiver, ScheduledExecutorService scheduler, ExecutorService threadPool) {
+	public TimeSizeFlushQueue(String name, int sizeTrigger, long timeTrigger, int capacity, OverflowPolicy overflowPolicy, FlushQueueReceiver<T> receiver, ScheduledExecutorService scheduler, ExecutorService threadPool) {
 		this.name = name;
 		log = Logger.getLogger(getClass().getName() + "." + this.name);
 		this.sizeTrigger.set(sizeTrigger);
 		this.timeTrigger.set(timeTrigger);
+		if(overflowPolicy!=null) this.overflowPolicy = overflowPolicy;
 		bypassQueue = (sizeTrigger<2 && timeTrigger<1);
 		if(!bypassQueue) {
-			queue = new ArrayBlockingQueue<T>(sizeTrigger+2, false);
-			flushBuffer = new HashSet<T>(sizeTrigger+2);
+			if(capacity<1) capacity = sizeTrigger * DEFAULT_CAPACITY_MULTIPLIER;
+			int cap = MIN_CAPACITY;
+			while(cap < capacity) cap <<= 1;
+			ring = new Object[cap];
+			mask = cap-1;
+			published = new AtomicLongArray(cap);
+			for(int i = 0; i < cap; i++) published.set(i, -1L);
 			this.scheduler = scheduler==null ? getDefaultScheduler() : scheduler;			
 		} else {
-			queue = null;
-			flushBuffer = null;
+			ring = null;
+			mask = 0;
+			published = null;
 			this.scheduler = null;
 		}
 		this.receiver = receiver;		
@@ -179,6 +225,19 @@ public class TimeSizeFlushQueue<T> implements Runnable {
 		log.info("Created TimeSizeFlushQueue [" + this.name + "]");
 	}
 	
+	/**
+	 * Creates a new TimeSizeFlushQueue
+	 * @param name The name for this flushQueue
+	 * @param sizeTrigger The flush size trigger
+	 * @param timeTrigger The flush time trigger
+	 * @param receiver The receiver runnable responsible for processing the flush
+	 * @param scheduler An externally provided scheduler. If null, uses the default shared scheduler.
+	 * @param threadPool An externally provided thread pool. If null, uses the default shared pool. 
+	 */
+	public TimeSizeFlushQueue(String name, int sizeTrigger, long timeTrigger, FlushQueueReceiver<T> receiver, ScheduledExecutorService scheduler, ExecutorService threadPool) {
+		this(name, sizeTrigger, timeTrigger, -1, null, receiver, scheduler, threadPool);
+	}
+	
 	/**
 	 * Creates a new TimeSizeFlushQueue using the default shared scheduler and thread pool.
 	 * @param name The name for this flushQueue
@@ -187,21 +246,32 @@ public class TimeSizeFlushQueue<T> implements Runnable {
 	 * @param receiver The receiver runnable responsible for processing the flush
 	 */
 	public TimeSizeFlushQueue(String name, int sizeTrigger, long timeTrigger, FlushQueueReceiver<T> receiver) {
-		this(name, sizeTrigger, timeTrigger, receiver, null, null);
+		this(name, sizeTrigger, timeTrigger, -1, null, receiver, null, null);
 	}
 	
 	/**
-	 * Schedules the time flush callback.
+	 * Schedules the time flush check at the time trigger rate.
 	 */
 	protected void schedule() {
 		long time = timeTrigger.get();
 		if(time>0 && scheduler!=null) {
-			handle = scheduler.schedule(new Runnable(){
+			handle = scheduler.scheduleWithFixedDelay(new Runnable(){
 				@Override
 				public void run() {timeFlush();};
-			}, time, TimeUnit.MILLISECONDS);
-			if(log.isDebugEnabled()) log.debug("Scheduled for timed trigger in [" + time + "] ms.");
+			}, time, time, TimeUnit.MILLISECONDS);
+			if(log.isDebugEnabled()) log.debug("Scheduled for timed trigger every [" + time + "] ms.");
+		}
+	}
+	
+	/**
+	 * Stops the timed flushes and flushes any remaining items
+	 */
+	public void shutdown() {
+		if(handle!=null) {
+			handle.cancel(false);
+			handle = null;
 		}
+		if(!bypassQueue) triggerFlush();
 	}
 	
 	/**
@@ -211,133 +281,201 @@ public class TimeSizeFlushQueue<T> implements Runnable {
 	protected boolean sizeTriggered() {
 		int trig = sizeTrigger.get();
 		if(trig<2) return false;
-		return queue.size()>=trig;
+		return getQueueSize()>=trig;
 	}
 	
 	/**
-	 * Triggered when the size trigger is exceeded
+	 * Submits a flush to the thread pool unless one is already pending
 	 */
-	public void sizeFlush() {
-		if(log.isDebugEnabled()) log.debug("Starting Size Triggered Flush");
-		boolean acquiredLock = false;
-		try {
-			acquiredLock = flushLock.tryLock();
-			if(!acquiredLock) {
-				return;
-			}
-			if(handle!=null) handle.cancel(true);
-			if(!queue.isEmpty()) {
-				queue.drainTo(flushBuffer);
+	protected void triggerFlush() {
+		if(flushPending.compareAndSet(false, true)) {
+			try {
 				flushThreadPool.execute(this);
-			}
-		} finally {
-			try { 
-				schedule(); 
-			} catch (Exception e) {
-				handle=null;
-				LOG.fatal("Failed to reschedule timer trigger", e);
-			}
-			if(acquiredLock) {
-				while(flushLock.getHoldCount()>0) {
-					flushLock.unlock();
-				}
+			} catch (RuntimeException re) {
+				flushPending.set(false);
+				throw re;
 			}
 		}
 	}
 	
 	/**
-	 * Triggered when the flush time elapsed
+	 * Triggered when the size trigger is exceeded
+	 */
+	public void sizeFlush() {
+		if(log.isDebugEnabled()) log.debug("Starting Size Triggered Flush");
+		triggerFlush();
+	}
+	
+	/**
+	 * Triggered by the time trigger schedule. Flushes if there are queued items and no flush in the last time trigger period.
 	 */
 	public void timeFlush() {
-		if(log.isDebugEnabled()) log.debug("Starting Time Triggered Flush");
-		boolean acquiredLock = false;
+		if(getQueueSize()>0 && System.currentTimeMillis()-lastFlushTime >= timeTrigger.get()) {
+			if(log.isDebugEnabled()) log.debug("Starting Time Triggered Flush");
+			triggerFlush();
+		}
+	}
+	
+	/**
+	 * Executes the flush, draining batches to the receiver until the queue is empty
+	 */
+	@Override
+	public void run() {
+		flushPending.set(false);
+		if(!flushing.compareAndSet(false, true)) return;
 		try {
-			acquiredLock = flushLock.tryLock();
-			if(!acquiredLock) {
-				return;
-			}
-			if(!queue.isEmpty()) {
-				queue.drainTo(flushBuffer);
-				flushThreadPool.execute(this);
+			T[] batch;
+			while((batch = drain(Math.max(sizeTrigger.get(), 1)))!=null) {
+				deliver(Arrays.asList(batch));
 			}
 		} finally {
-			try { 
-				schedule(); 
-			} catch (Exception e) {
-				handle=null;
-				LOG.fatal("Failed to reschedule timer trigger", e);
-			}
-			if(acquiredLock) {
-				while(flushLock.getHoldCount()>0) {
-					flushLock.unlock();
-				}
-			}
-		}		
+			flushing.set(false);
+		}
+		// items added while the last batch was being delivered 
+		if(sizeTriggered()) triggerFlush();
 	}
 	
 	/**
-	 * Executes the flush
+	 * Delivers a batch to the receiver
+	 * @param items The items to deliver
 	 */
-	@Override
-	public void run() {
-		int itemsToFlush = flushBuffer.size();
-		if(log.isDebugEnabled()) log.debug("Starting Flush of [" + itemsToFlush + "] items.");
+	protected void deliver(Collection<T> items) {
+		if(log.isDebugEnabled()) log.debug("Starting Flush of [" + items.size() + "] items.");
 		long start = System.currentTimeMillis();
 		try {
-			if(itemsToFlush>0) {
-				receiver.flushTo(flushBuffer);
-				flushBuffer.clear();
-			} else {
-				return;
-			}			
+			receiver.flushTo(items);
 		} catch (Exception e) {
 			flushExceptionCount.incrementAndGet();
 		} finally {
-			lastFlushElapsed.set(System.currentTimeMillis()-start);
+			lastFlushTime = System.currentTimeMillis();
+			lastFlushElapsed.set(lastFlushTime-start);
 			flushCount.incrementAndGet();
 		}
 	}
 	
+	/**
+	 * Consumes up to the passed number of published items into a new batch array, releasing their ring slots.
+	 * @param max The maximum number of items to drain
+	 * @return the batch array, or null if there were no items
+	 */
+	@SuppressWarnings("unchecked")
+	protected T[] drain(int max) {
+		while(!draining.compareAndSet(false, true)) {
+			Thread.yield();
+		}
+		try {
+			long head = consumed;
+			long available = Math.min(claimed.get() - head, max);
+			if(available<1) return null;
+			Object[] batch = new Object[(int)available];
+			for(int i = 0; i < available; i++) {
+				long seq = head + i;
+				int index = (int)(seq & mask);
+				// the producer has claimed the slot but may not have published it yet
+				while(published.get(index)!=seq) {
+					Thread.yield();
+				}
+				batch[i] = ring[index];
+				ring[index] = null;
+				published.lazySet(index, -1L);
+			}
+			consumed = head + available;
+			return (T[])batch;
+		} finally {
+			draining.set(false);
+		}
+	}
+	
+	/**
+	 * Drops the oldest queued item if it has been published and the ring is still full
+	 * @param full The claimed sequence that found the ring full
+	 */
+	protected void dropOldest(long full) {
+		if(!draining.compareAndSet(false, true)) {
+			Thread.yield();
+			return;
+		}
+		try {
+			long head = consumed;
+			if(full - head < ring.length) return;
+			int index = (int)(head & mask);
+			if(published.get(index)!=head) return;
+			ring[index] = null;
+			published.lazySet(index, -1L);
+			consumed = head + 1;
+			queueDropCount.incrementAndGet();
+		} finally {
+			draining.set(false);
+		}
+	}
+	
+	/**
+	 * Adds an item to the ring, applying the overflow policy if the ring is full
+	 * @param t The item to add
+	 * @param policy The overflow policy
+	 * @param timeoutNanos The maximum time to wait for room under the {@link OverflowPolicy#BLOCK} policy
+	 * @return true if the item was added, false if it was dropped
+	 */
+	protected boolean enqueue(T t, OverflowPolicy policy, long timeoutNanos) {
+		long deadline = 0;
+		while(true) {
+			long seq = claimed.get();
+			if(seq - consumed >= ring.length) {
+				switch(policy) {
+					case DROP_OLDEST:
+						dropOldest(seq);
+						continue;
+					case BLOCK:
+						if(deadline==0) {
+							deadline = System.nanoTime() + timeoutNanos;
+						} else if(System.nanoTime() - deadline >= 0) {
+							queueDropCount.incrementAndGet();
+							return false;
+						}
+						triggerFlush();
+						LockSupport.parkNanos(10000);
+						continue;
+					default:
+						queueDropCount.incrementAndGet();
+						triggerFlush();
+						return false;
+				}
+			}
+			if(claimed.compareAndSet(seq, seq+1)) {
+				int index = (int)(seq & mask);
+				ring[index] = t;
+				published.set(index, seq);
+				return true;
+			}
+		}
+	}
 	
 	/**
 	 * Calls the receiver with the passed items directly (i.e. not from the flushQueue)
 	 * @param items A collection of items to flush
 	 */
 	protected void directRun(final Collection<T> items) {
+		if(items.isEmpty()) return;
 		flushThreadPool.execute(new Runnable(){
 			@Override
 			public void run() {
-				long start = System.currentTimeMillis();
-				try {
-					if(items.size()>0) {
-						receiver.flushTo(items);
-						items.clear();
-					} else {
-						return;
-					}
-				} catch (Exception e) {
-					flushExceptionCount.incrementAndGet();
-				} finally {
-					lastFlushElapsed.set(System.currentTimeMillis()-start);
-					flushCount.incrementAndGet();
-				}				
+				deliver(items);
 			}
 		});
 	}
 
 	/**
-	 * Adds an item to the queue.
+	 * Adds an item to the queue, applying the overflow policy if the queue is full.
 	 * @param t the item to add
 	 * @return true if the item was successfully processed
-	 * @see java.util.concurrent.BlockingQueue#add(java.lang.Object)
 	 */
 	public boolean add(T t) {
 		if(t==null) return false;
 		if(bypassQueue) {
-			directRun(new ArrayList<T>(Arrays.asList(t)));
+			directRun(Collections.singletonList(t));
 			return true;
 		}
-		boolean b = queue.add(t);
+		boolean b = enqueue(t, overflowPolicy, TimeUnit.MILLISECONDS.toNanos(blockTimeout));
 		if(sizeTriggered()) {
 			sizeFlush();
 		}
@@ -345,10 +483,9 @@ public class TimeSizeFlushQueue<T> implements Runnable {
 	}
 
 	/**
-	 * Adds a collection of Ts to the queue
+	 * Adds a collection of Ts to the queue, applying the overflow policy to each item if the queue is full.
 	 * @param tcoll The collection of Ts to add.
-	 * @return true if the add succeeded, false if it did not.
-	 * @see java.util.Collection#addAll(java.util.Collection)
+	 * @return true if all the items were added, false if any were dropped.
 	 */
 	public boolean addAll(Collection<T> tcoll) {
 		if(tcoll==null) return true;
@@ -356,20 +493,17 @@ public class TimeSizeFlushQueue<T> implements Runnable {
 			directRun(tcoll);
 			return true;
 		}		
-		try {
-			boolean b = queue.addAll(tcoll);
-			if(!b) queueDropCount.addAndGet(tcoll.size());
-			 if(sizeTriggered()) {
-				 flushThreadPool.execute(new Runnable(){
-					 @Override
-					 public void run() {sizeFlush();};
-				 });				 
-			 }
-			 return b;
-		} catch (Exception e) {
-			queueDropCount.addAndGet(tcoll.size());
-			return false;
+		boolean b = true;
+		OverflowPolicy policy = overflowPolicy;
+		long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+		for(T t: tcoll) {
+			if(t==null) continue;
+			b &= enqueue(t, policy, timeoutNanos);
+		}
+		if(sizeTriggered()) {
+			sizeFlush();
 		}
+		return b;
 	}
 
 	/**
@@ -378,83 +512,56 @@ public class TimeSizeFlushQueue<T> implements Runnable {
 	 * @param waitTime The time to wait to insert if the queue is full
 	 * @param unit The unit of time to wait
 	 * @return true if the insert succeeded.
-	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object, long, java.util.concurrent.TimeUnit)
 	 */
 	public boolean offer(T t, long waitTime, TimeUnit unit) {
 		if(t==null) return true;
 		if(bypassQueue) {
-			directRun(new ArrayList<T>(Arrays.asList(t)));
+			directRun(Collections.singletonList(t));
 			return true;
 		}		
-		try {
-			boolean b = queue.offer(t, waitTime, unit);
-			if(!b) queueDropCount.incrementAndGet();
-			 if(sizeTriggered()) {
-				 flushThreadPool.execute(new Runnable(){
-					 @Override
-					 public void run() {sizeFlush();};
-				 });				 
-			 }
-			 return b;
-		} catch (Exception e) {
-			queueDropCount.incrementAndGet();
-			return false;
+		boolean b = enqueue(t, OverflowPolicy.BLOCK, unit.toNanos(waitTime));
+		if(sizeTriggered()) {
+			sizeFlush();
 		}
+		return b;
 	}
 
 	/**
 	 * Offers a T to the queue without waiting if the queue is full
 	 * @param t The instance of T to offer
 	 * @return true if the insert succeeded.
-	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object)
 	 */
 	public boolean offer(T t) {
 		if(t==null) return true;
 		if(bypassQueue) {
-			directRun(new ArrayList<T>(Arrays.asList(t)));
+			directRun(Collections.singletonList(t));
 			return true;
 		}		
-		try {
-			boolean b = queue.offer(t);
-			if(!b) queueDropCount.incrementAndGet();
-			 if(sizeTriggered()) {
-				 flushThreadPool.execute(new Runnable(){
-					 @Override
-					 public void run() {sizeFlush();};
-				 });				 
-			 }
-			 return b;
-		} catch (Exception e) {
-			queueDropCount.incrementAndGet();
-			return false;
-		}		
+		boolean b = enqueue(t, OverflowPolicy.DROP_NEWEST, 0);
+		if(sizeTriggered()) {
+			sizeFlush();
+		}
+		return b;
 	}
 
 	/**
 	 * Puts a T to the queue waiting if the queue is full
 	 * @param t The instance of T to offer
 	 * @throws InterruptedException Thrown if put is interrupted
-	 * @see java.util.concurrent.BlockingQueue#put(java.lang.Object)
 	 */
 	public void put(T t) throws InterruptedException {
 		if(t==null) return;
 		if(bypassQueue) {
-			directRun(new ArrayList<T>(Arrays.asList(t)));
+			directRun(Collections.singletonList(t));
 			return;
 		}		
-		try {
-			queue.put(t);
-			 if(sizeTriggered()) {
-				 flushThreadPool.execute(new Runnable(){
-					 @Override
-					 public void run() {sizeFlush();};
-				 });				 
-			 }
-		} catch (Exception e) {
-			queueDropCount.incrementAndGet();
-		}		
+		while(!enqueue(t, OverflowPolicy.BLOCK, TimeUnit.MILLISECONDS.toNanos(blockTimeout))) {
+			if(Thread.interrupted()) throw new InterruptedException();
+		}
+		if(sizeTriggered()) {
+			sizeFlush();
+		}
 	}
-
 	/**
 	 * Returns the size trigger threshold
 	 * @return the sizeTrigger
@@ -488,7 +595,10 @@ public class TimeSizeFlushQueue<T> implements Runnable {
 	 */
 	public void setTimeTrigger(long time) {
 		if(time<1) throw new IllegalArgumentException("Time cannot be less than one");
-		timeTrigger.set(time);
+		if(timeTrigger.getAndSet(time)!=time && handle!=null) {
+			handle.cancel(false);
+			schedule();
+		}
 	}
 
 	/**
@@ -497,7 +607,61 @@ public class TimeSizeFlushQueue<T> implements Runnable {
 	 */
 	@ManagedAttribute(description="The number of items in the queue")
 	public int getQueueSize() {
-		return queue.size();
+		if(bypassQueue) return 0;
+		return (int)(claimed.get() - consumed);
+	}
+	
+	/**
+	 * Returns the ring buffer capacity
+	 * @return the ring buffer capacity
+	 */
+	@ManagedAttribute(description="The maximum number of items in the queue")
+	public int getQueueCapacity() {
+		return bypassQueue ? 0 : ring.length;
+	}
+	
+	/**
+	 * Returns the name of the policy applied to items added to a full queue
+	 * @return the overflow policy name
+	 */
+	@ManagedAttribute(description="The policy applied to items added to a full queue")
+	public String getOverflowPolicyName() {
+		return overflowPolicy.name();
+	}
+
+	/**
+	 * Returns the policy applied to items added to a full queue
+	 * @return the overflow policy
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Sets the policy applied to items added to a full queue
+	 * @param overflowPolicy the overflow policy
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		if(overflowPolicy==null) throw new IllegalArgumentException("The passed overflow policy was null");
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Returns the maximum time in ms. an add waits for room under the {@link OverflowPolicy#BLOCK} policy
+	 * @return the block timeout in ms.
+	 */
+	@ManagedAttribute(description="The maximum time in ms. an add waits for room in a full queue under the BLOCK policy")
+	public long getBlockTimeout() {
+		return blockTimeout;
+	}
+
+	/**
+	 * Sets the maximum time in ms. an add waits for room under the {@link OverflowPolicy#BLOCK} policy
+	 * @param blockTimeout the block timeout in ms.
+	 */
+	@ManagedAttribute(description="The maximum time in ms. an add waits for room in a full queue under the BLOCK policy")
+	public void setBlockTimeout(long blockTimeout) {
+		this.blockTimeout = blockTimeout;
 	}
 
 	/**
@@ -510,12 +674,12 @@ public class TimeSizeFlushQueue<T> implements Runnable {
 	}
 
 	/**
-	 * Returns the lock state of the flush lock
-	 * @return true if the flushLock is locked
+	 * Indicates if a flush is in progress
+	 * @return true if a flush is in progress
 	 */
 	@ManagedAttribute(description="The state of the flush lock")
 	public boolean getFlushLockState() {
-		return flushLock.isLocked();
+		return flushing.get();
 	}
 
 	/**
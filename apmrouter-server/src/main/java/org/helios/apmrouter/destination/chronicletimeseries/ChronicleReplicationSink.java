@@ -0,0 +1,231 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.destination.chronicletimeseries;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.helios.apmrouter.util.SystemClock;
+
+import vanilla.java.chronicle.impl.IndexedChronicle;
+import vanilla.java.chronicle.impl.UnsafeExcerpt;
+
+/**
+ * <p>Title: ChronicleReplicationSink</p>
+ * <p>Description: Connects to a {@link ChronicleReplicationSource} and applies the replicated entries to the local chronicle tiers of a hot-standby.</p> 
+ * <p>The replica's tiers are matched to the primary's by name and must have the same entry size. The replication lag is the age 
+ * of the oldest entry of the primary's most recent tick, from when it was marked dirty on the primary until the tick's heartbeat was applied, 
+ * so it includes the time the entry waited for its tick as well as the transit. The age compares the primary's clock with this replica's, 
+ * so it is only as accurate as the hosts' clock synchronization, and is floored at zero.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.destination.chronicletimeseries.ChronicleReplicationSink</code></p>
+ */
+
+public class ChronicleReplicationSink implements Runnable {
+	/** The delay between connection attempts in ms. */
+	public static final long RECONNECT_DELAY = 1000;
+	
+	/** Instance logger */
+	protected final Logger log = Logger.getLogger(getClass());
+	/** The local tiers keyed by name */
+	protected final Map<String, ChronicleTier> localTiers = new HashMap<String, ChronicleTier>();
+	/** The primary's host */
+	protected final String host;
+	/** The primary's replication port */
+	protected final int port;
+	/** The total number of entry frames applied */
+	protected final AtomicLong framesApplied = new AtomicLong(0);
+	/** The replication lag in ms. as of the last heartbeat */
+	protected final AtomicLong lag = new AtomicLong(-1L);
+	/** The timestamp of the last heartbeat */
+	protected final AtomicLong lastHeartbeat = new AtomicLong(-1L);
+	/** The receiver thread */
+	protected Thread receiverThread = null;
+	/** The current socket */
+	protected volatile Socket socket = null;
+	/** The run flag */
+	protected volatile boolean running = false;
+	
+	/**
+	 * Creates a new ChronicleReplicationSink
+	 * @param tiers The local tiers to apply replicated entries to
+	 * @param primary The primary's replication address as <code>host:port</code>
+	 */
+	public ChronicleReplicationSink(List<ChronicleTier> tiers, String primary) {
+		if(primary==null || primary.trim().isEmpty()) throw new IllegalArgumentException("The passed primary address was null or empty", new Throwable());
+		String[] frags = primary.trim().split(":");
+		if(frags.length!=2) throw new IllegalArgumentException("The passed primary address [" + primary + "] was not host:port", new Throwable());
+		host = frags[0].trim();
+		port = Integer.parseInt(frags[1].trim());
+		for(ChronicleTier tier: tiers) {
+			localTiers.put(tier.chronicleName, tier);
+		}
+	}
+	
+	/**
+	 * Starts the receiver thread
+	 */
+	public synchronized void start() {
+		if(running) return;
+		running = true;
+		receiverThread = new Thread(this, "ChronicleReplicationSink#" + host + ":" + port);
+		receiverThread.setDaemon(true);
+		receiverThread.start();
+	}
+	
+	/**
+	 * Stops the receiver thread and closes the connection to the primary
+	 */
+	public synchronized void stop() {
+		if(!running) return;
+		running = false;
+		closeSocket();
+		receiverThread.interrupt();
+		try { receiverThread.join(RECONNECT_DELAY); } catch (InterruptedException iex) { /* No Op */ }
+		log.info("Chronicle replication from [" + host + ":" + port + "] stopped");
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>Connects to the primary and applies replicated entries, reconnecting when the connection is lost, until stopped</p>
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while(running) {
+			try {
+				socket = new Socket();
+				socket.connect(new InetSocketAddress(host, port), (int)RECONNECT_DELAY);
+				log.info("Connected to replication primary [" + host + ":" + port + "]");
+				receive(new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536)));
+			} catch (Exception ex) {
+				if(running) log.debug("Replication connection to [" + host + ":" + port + "] failed:" + ex);
+			} finally {
+				closeSocket();
+			}
+			if(running) {
+				try {
+					Thread.sleep(RECONNECT_DELAY);
+				} catch (InterruptedException iex) {
+					/* No Op */
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Validates the primary's handshake and applies frames until the connection fails
+	 * @param in The input stream from the primary
+	 * @throws IOException thrown on any read failure
+	 */
+	@SuppressWarnings("unchecked")
+	protected void receive(DataInputStream in) throws IOException {
+		if(in.readInt()!=ChronicleReplicationSource.MAGIC) throw new IOException("Invalid replication handshake from [" + host + ":" + port + "]");
+		boolean bigEndian = in.readBoolean();
+		if(bigEndian != (ByteOrder.nativeOrder()==ByteOrder.BIG_ENDIAN)) throw new IOException("The primary's byte order does not match this replica's");
+		final int tierCount = in.readInt();
+		final ChronicleTier[] tiers = new ChronicleTier[tierCount];
+		final UnsafeExcerpt<IndexedChronicle>[] excerpts = new UnsafeExcerpt[tierCount];
+		final byte[][] buffers = new byte[tierCount][];
+		for(int t = 0; t < tierCount; t++) {
+			String name = in.readUTF();
+			int entrySize = in.readInt();
+			ChronicleTier tier = localTiers.get(name);
+			if(tier==null) throw new IOException("The primary's tier [" + name + "] does not exist in this replica");
+			if(tier.getEntrySize()!=entrySize) throw new IOException("The primary's tier [" + name + "] entry size [" + entrySize + "] does not match this replica's [" + tier.getEntrySize() + "]");
+			tiers[t] = tier;
+			excerpts[t] = tier.createUnsafeExcerpt();
+			buffers[t] = new byte[entrySize];
+		}
+		while(running) {
+			final int t = in.readInt();
+			if(t==ChronicleReplicationSource.HEARTBEAT) {
+				final long oldestDirty = in.readLong();
+				final long now = SystemClock.time();
+				lastHeartbeat.set(now);
+				lag.set(Math.max(0L, now - oldestDirty));
+				continue;
+			}
+			if(t < 0 || t >= tierCount) throw new IOException("Invalid tier ordinal [" + t + "] from [" + host + ":" + port + "]");
+			final long index = in.readLong();
+			in.readFully(buffers[t]);
+			tiers[t].applyReplicatedEntry(excerpts[t], index, buffers[t]);
+			framesApplied.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Closes the current socket
+	 */
+	protected void closeSocket() {
+		Socket s = socket;
+		if(s!=null) {
+			try { s.close(); } catch (Exception ex) { /* No Op */ }
+		}
+	}
+	
+	/**
+	 * Returns the replication lag in ms. as of the last heartbeat, or -1 if no heartbeat has been received
+	 * @return the replication lag in ms.
+	 */
+	public long getLag() {
+		return lag.get();
+	}
+	
+	/**
+	 * Returns the timestamp of the last heartbeat received from the primary, or -1 if none has been received
+	 * @return the timestamp of the last heartbeat
+	 */
+	public long getLastHeartbeat() {
+		return lastHeartbeat.get();
+	}
+	
+	/**
+	 * Returns the total number of entry frames applied
+	 * @return the total number of entry frames applied
+	 */
+	public long getFramesApplied() {
+		return framesApplied.get();
+	}
+	
+	/**
+	 * Indicates if the sink is connected to the primary
+	 * @return true if the sink is connected to the primary
+	 */
+	public boolean isConnected() {
+		Socket s = socket;
+		return s!=null && s.isConnected() && !s.isClosed();
+	}
+}
@@ -0,0 +1,375 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.destination.chronicletimeseries;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.helios.apmrouter.util.SystemClock;
+
+import vanilla.java.chronicle.impl.IndexedChronicle;
+import vanilla.java.chronicle.impl.UnsafeExcerpt;
+
+/**
+ * <p>Title: ChronicleReplicationSource</p>
+ * <p>Description: Streams the entries of the primary's chronicle tiers to hot-standby replicas over TCP.</p> 
+ * <p>Tier entries are fixed size records updated in place, so rather than tailing appended excerpts, each tier tracks the entries 
+ * written since the last replication tick in a {@link DirtyEntryTracker} and the replication thread sends the current bytes of each 
+ * dirty entry to every connected replica. Writers only set a bit, so the primary never waits on a replica. Each heartbeat carries the time 
+ * the oldest entry sent in that tick was marked dirty, so the replica's lag includes the up to one period an entry waits for its tick.</p>
+ * <p>Protocol, all in network order apart from the raw entry bytes which are in the chronicle's native order:<ul>
+ * 	<li>Handshake: <code>[magic int][native big endian boolean][tier count int]</code>, then <code>[tier name UTF][entry size int]</code> for each tier</li>
+ * 	<li>Entry frame: <code>[tier ordinal int][entry index long][entry bytes]</code></li>
+ * 	<li>Heartbeat frame, sent at the end of each tick: <code>[-1 int][oldest dirty timestamp long]</code>, 
+ * 	where the timestamp is the start of the tick if no entries were sent</li>
+ * </ul></p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.destination.chronicletimeseries.ChronicleReplicationSource</code></p>
+ */
+
+public class ChronicleReplicationSource implements Runnable {
+	/** The protocol magic number */
+	public static final int MAGIC = 0xC4501CE1;
+	/** The tier ordinal of a heartbeat frame */
+	public static final int HEARTBEAT = -1;
+	/** The default replication period in ms. */
+	public static final long DEFAULT_PERIOD = 100;
+	
+	/** Instance logger */
+	protected final Logger log = Logger.getLogger(getClass());
+	/** The replicated tiers in ordinal order */
+	protected final ChronicleTier[] tiers;
+	/** The dirty entry trackers of the replicated tiers in ordinal order */
+	protected final DirtyEntryTracker[] trackers;
+	/** The reusable read excerpts of the replicated tiers in ordinal order */
+	protected final UnsafeExcerpt<IndexedChronicle>[] excerpts;
+	/** The reusable entry buffers of the replicated tiers in ordinal order */
+	protected final byte[][] buffers;
+	/** The listening port */
+	protected final int port;
+	/** The replication period in ms. */
+	protected final long period;
+	/** The connected replicas */
+	protected final List<Replica> replicas = new CopyOnWriteArrayList<Replica>();
+	/** Newly accepted replicas waiting for their initial snapshot */
+	protected final Queue<Replica> pending = new ConcurrentLinkedQueue<Replica>();
+	/** The total number of entry frames sent */
+	protected final AtomicLong framesSent = new AtomicLong(0);
+	/** The server socket */
+	protected ServerSocket serverSocket = null;
+	/** The replication thread */
+	protected Thread replicationThread = null;
+	/** The acceptor thread */
+	protected Thread acceptorThread = null;
+	/** The run flag */
+	protected volatile boolean running = false;
+	
+	/**
+	 * Creates a new ChronicleReplicationSource
+	 * @param tiers The tiers to replicate, in the order agreed with the replicas
+	 * @param port The port to listen on
+	 * @param period The replication period in ms.
+	 */
+	@SuppressWarnings("unchecked")
+	public ChronicleReplicationSource(List<ChronicleTier> tiers, int port, long period) {
+		this.tiers = tiers.toArray(new ChronicleTier[tiers.size()]);
+		this.port = port;
+		this.period = period<1 ? DEFAULT_PERIOD : period;
+		trackers = new DirtyEntryTracker[this.tiers.length];
+		excerpts = new UnsafeExcerpt[this.tiers.length];
+		buffers = new byte[this.tiers.length][];
+		for(int i = 0; i < this.tiers.length; i++) {
+			trackers[i] = this.tiers[i].trackDirtyEntries();
+			excerpts[i] = this.tiers[i].createUnsafeExcerpt();
+			buffers[i] = new byte[this.tiers[i].getEntrySize()];
+		}
+	}
+	
+	/**
+	 * Starts listening for replicas and starts the replication thread
+	 * @throws IOException thrown if the server socket cannot be bound
+	 */
+	public synchronized void start() throws IOException {
+		if(running) return;
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress(port));
+		running = true;
+		acceptorThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "ChronicleReplicationAcceptor#" + port);
+		acceptorThread.setDaemon(true);
+		acceptorThread.start();
+		replicationThread = new Thread(this, "ChronicleReplicationSource#" + port);
+		replicationThread.setDaemon(true);
+		replicationThread.start();
+		log.info("Chronicle replication source listening on [" + port + "] for [" + tiers.length + "] tiers");
+	}
+	
+	/**
+	 * Stops the source and closes all replica connections
+	 */
+	public synchronized void stop() {
+		if(!running) return;
+		running = false;
+		try { serverSocket.close(); } catch (Exception ex) { /* No Op */ }
+		replicationThread.interrupt();
+		for(Replica replica: replicas) replica.close();
+		for(Replica replica: pending) replica.close();
+		replicas.clear();
+		pending.clear();
+		log.info("Chronicle replication source on [" + port + "] stopped");
+	}
+	
+	/**
+	 * Accepts replica connections until stopped
+	 */
+	protected void accept() {
+		while(running) {
+			try {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				pending.add(new Replica(socket));
+				log.info("Accepted replica connection from [" + socket.getRemoteSocketAddress() + "]");
+			} catch (Exception ex) {
+				if(running) log.warn("Replica accept failed", ex);
+			}
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>Runs the replication ticks until stopped</p>
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while(running) {
+			final long tickStart = SystemClock.time();
+			try {
+				tick(tickStart);
+			} catch (Throwable t) {
+				log.error("Replication tick failed", t);
+			}
+			final long sleep = period - (SystemClock.time()-tickStart);
+			if(sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException iex) {
+					if(!running) return;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Runs one replication tick: brings new replicas up to date with a full snapshot, 
+	 * then sends the entries dirtied since the last tick and a heartbeat to all replicas
+	 * @param tickStart The timestamp of the start of the tick
+	 */
+	protected void tick(long tickStart) {
+		Replica replica = null;
+		while((replica = pending.poll())!=null) {
+			if(snapshot(replica)) replicas.add(replica);
+		}
+		// the dirty times are taken before the bits, so they cover every entry sent below
+		long oldestDirty = tickStart;
+		for(DirtyEntryTracker tracker: trackers) {
+			long since = tracker.takeDirtySince();
+			if(since!=0L && since < oldestDirty) oldestDirty = since;
+		}
+		if(replicas.isEmpty()) {
+			// nothing to send to, but the dirty bits still have to be cleared
+			for(DirtyEntryTracker tracker: trackers) {
+				for(int w = 0, words = tracker.words(); w < words; w++) tracker.take(w);
+			}
+			return;
+		}
+		for(int t = 0; t < tiers.length; t++) {
+			final DirtyEntryTracker tracker = trackers[t];
+			for(int w = 0, words = tracker.words(); w < words; w++) {
+				long bits = tracker.take(w);
+				while(bits!=0L) {
+					final int bit = Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+					final long index = (((long)w) << 6) + bit;
+					if(tiers[t].readEntry(excerpts[t], index, buffers[t])) {
+						for(Replica r: replicas) {
+							if(!r.send(t, index, buffers[t])) drop(r);
+						}
+					}
+				}
+			}
+		}
+		for(Replica r: replicas) {
+			if(!r.heartbeat(oldestDirty)) drop(r);
+		}
+	}
+	
+	/**
+	 * Sends the handshake and every entry of every tier to a newly connected replica
+	 * @param replica The replica to bring up to date
+	 * @return true if the replica is up to date, false if the connection failed
+	 */
+	protected boolean snapshot(Replica replica) {
+		try {
+			replica.out.writeInt(MAGIC);
+			replica.out.writeBoolean(ByteOrder.nativeOrder()==ByteOrder.BIG_ENDIAN);
+			replica.out.writeInt(tiers.length);
+			for(ChronicleTier tier: tiers) {
+				replica.out.writeUTF(tier.chronicleName);
+				replica.out.writeInt(tier.getEntrySize());
+			}
+			for(int t = 0; t < tiers.length; t++) {
+				for(long index = 0, size = tiers[t].getSize(); index < size; index++) {
+					if(tiers[t].readEntry(excerpts[t], index, buffers[t]) && !replica.send(t, index, buffers[t])) {
+						replica.close();
+						return false;
+					}
+				}
+			}
+			replica.out.flush();
+			log.info("Sent snapshot to replica [" + replica.socket.getRemoteSocketAddress() + "]");
+			return true;
+		} catch (IOException ex) {
+			log.warn("Failed to send snapshot to replica [" + replica.socket.getRemoteSocketAddress() + "]", ex);
+			replica.close();
+			return false;
+		}
+	}
+	
+	/**
+	 * Closes and removes a failed replica
+	 * @param replica The failed replica
+	 */
+	protected void drop(Replica replica) {
+		log.warn("Dropping replica [" + replica.socket.getRemoteSocketAddress() + "]");
+		replica.close();
+		replicas.remove(replica);
+	}
+	
+	/**
+	 * Returns the total number of entry frames sent
+	 * @return the total number of entry frames sent
+	 */
+	public long getFramesSent() {
+		return framesSent.get();
+	}
+	
+	/**
+	 * Returns the number of connected replicas
+	 * @return the number of connected replicas
+	 */
+	public int getReplicaCount() {
+		return replicas.size();
+	}
+	
+	/**
+	 * Returns the replication period in ms.
+	 * @return the replication period in ms.
+	 */
+	public long getPeriod() {
+		return period;
+	}
+	
+	/**
+	 * <p>Title: Replica</p>
+	 * <p>Description: A connected replica</p> 
+	 */
+	protected class Replica {
+		/** The replica's socket */
+		final Socket socket;
+		/** The replica's output stream */
+		final DataOutputStream out;
+		
+		/**
+		 * Creates a new Replica
+		 * @param socket The replica's socket
+		 * @throws IOException thrown if the output stream cannot be opened
+		 */
+		Replica(Socket socket) throws IOException {
+			this.socket = socket;
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+		}
+		
+		/**
+		 * Sends an entry frame
+		 * @param tier The tier ordinal
+		 * @param index The entry index
+		 * @param entry The entry bytes
+		 * @return true if the frame was written, false if the connection failed
+		 */
+		boolean send(int tier, long index, byte[] entry) {
+			try {
+				out.writeInt(tier);
+				out.writeLong(index);
+				out.write(entry);
+				framesSent.incrementAndGet();
+				return true;
+			} catch (IOException ex) {
+				return false;
+			}
+		}
+		
+		/**
+		 * Sends a heartbeat frame and flushes the stream
+		 * @param oldestDirty The time the oldest entry sent in the tick was marked dirty
+		 * @return true if the frame was written, false if the connection failed
+		 */
+		boolean heartbeat(long oldestDirty) {
+			try {
+				out.writeInt(HEARTBEAT);
+				out.writeLong(oldestDirty);
+				out.flush();
+				return true;
+			} catch (IOException ex) {
+				return false;
+			}
+		}
+		
+		/**
+		 * Closes the connection
+		 */
+		void close() {
+			try { socket.close(); } catch (Exception ex) { /* No Op */ }
+		}
+	}
+
+}
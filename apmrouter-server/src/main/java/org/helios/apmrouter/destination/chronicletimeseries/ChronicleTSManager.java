@@ -26,15 +26,18 @@ package org.helios.apmrouter.destination.chronicletimeseries;
 
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -96,6 +99,18 @@ public class ChronicleTSManager extends ServerComponentBean implements UncaughtE
 	protected long offLineWindowSize = -1L;
 	/** Status check timeout in ms. */
 	protected long statusCheckTimeout = 5000;
+	/** The port to serve tier replication to hot-standby replicas on, or -1 if the tiers are not replicated */
+	protected int replicationPort = -1;
+	/** The <code>host:port</code> of the primary to replicate the tiers from, making this instance a read-only hot-standby, or null if this is a primary */
+	protected String replicateFrom = null;
+	/** The replication period in ms. */
+	protected long replicationPeriod = ChronicleReplicationSource.DEFAULT_PERIOD;
+	/** The replication source when replicating to hot-standbys */
+	protected volatile ChronicleReplicationSource replicationSource = null;
+	/** The replication sink when running as a hot-standby */
+	protected volatile ChronicleReplicationSink replicationSink = null;
+	/** The scheduled status check handle */
+	protected ScheduledFuture<?> statusCheckHandle = null;
 	
 
 	/** Flag indicating if a status check is running */
@@ -271,8 +286,90 @@ public class ChronicleTSManager extends ServerComponentBean implements UncaughtE
 		t.setDaemon(false);
 		t.setPriority(Thread.MAX_PRIORITY);
 		Runtime.getRuntime().addShutdownHook(t);
-		ChronicleTSAdapter.setCts(this);		
-		scheduler.scheduleWithFixedDelay(new Runnable(){
+		ChronicleTSAdapter.setCts(this);
+		if(replicateFrom!=null) {
+			for(ChronicleTier ct: tiers.values()) {
+				ct.setReadOnly(true);
+			}
+			replicationSink = new ChronicleReplicationSink(getOrderedTiers(), replicateFrom);
+			replicationSink.start();
+			info("Started as a read-only hot-standby replicating from [", replicateFrom, "]");
+		} else {
+			startReplicationSource();
+			startStatusChecks();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.apmrouter.server.ServerComponentBean#doStop()
+	 */
+	@Override
+	protected void doStop() {
+		if(replicationSink!=null) {
+			replicationSink.stop();
+			replicationSink = null;
+		}
+		if(replicationSource!=null) {
+			replicationSource.stop();
+			replicationSource = null;
+		}
+		if(statusCheckHandle!=null) {
+			statusCheckHandle.cancel(false);
+			statusCheckHandle = null;
+		}
+	}
+	
+	/**
+	 * Promotes this hot-standby to primary: stops replicating from the old primary, makes the tiers writable,
+	 * starts the status checks and, if a replication port is configured, starts serving replication to new hot-standbys.
+	 * @throws Exception thrown if the replication source fails to start
+	 */
+	@ManagedOperation(description="Promotes this hot-standby to primary")
+	public synchronized void promote() throws Exception {
+		if(replicationSink==null) {
+			warn("Promote requested but this instance is not a hot-standby");
+			return;
+		}
+		replicationSink.stop();
+		replicationSink = null;
+		replicateFrom = null;
+		for(ChronicleTier ct: tiers.values()) {
+			ct.setReadOnly(false);
+		}
+		startReplicationSource();
+		startStatusChecks();
+		info("Promoted to primary");
+	}
+	
+	/**
+	 * Returns the tiers sorted by name, which is the tier order agreed between replication primaries and hot-standbys
+	 * @return the tiers sorted by name
+	 */
+	protected List<ChronicleTier> getOrderedTiers() {
+		List<ChronicleTier> ordered = new ArrayList<ChronicleTier>(tiers.size());
+		for(String name: new TreeSet<String>(tiers.keySet())) {
+			ordered.add(tiers.get(name));
+		}
+		return ordered;
+	}
+	
+	/**
+	 * Starts the replication source if a replication port is configured
+	 * @throws Exception thrown if the replication source fails to start
+	 */
+	protected void startReplicationSource() throws Exception {
+		if(replicationPort>0) {
+			replicationSource = new ChronicleReplicationSource(getOrderedTiers(), replicationPort, replicationPeriod);
+			replicationSource.start();
+		}
+	}
+	
+	/**
+	 * Starts the scheduled live tier status checks and runs an initial one
+	 */
+	protected void startStatusChecks() {
+		statusCheckHandle = scheduler.scheduleWithFixedDelay(new Runnable(){
 			@Override
 			public void run() {
 				if(!statusCheckRunning.compareAndSet(false, true)) {
@@ -539,6 +636,106 @@ public class ChronicleTSManager extends ServerComponentBean implements UncaughtE
 		this.statusCheckTimeout = statusCheckTimeout;
 	}
 	
+	/**
+	 * Returns the port tier replication is served to hot-standbys on
+	 * @return the replication port, or -1 if the tiers are not replicated
+	 */
+	@ManagedAttribute(description="The port tier replication is served to hot-standbys on")
+	public int getReplicationPort() {
+		return replicationPort;
+	}
+
+	/**
+	 * Sets the port tier replication is served to hot-standbys on. Takes effect on start or promotion.
+	 * @param replicationPort the replication port, or -1 to disable
+	 */
+	public void setReplicationPort(int replicationPort) {
+		this.replicationPort = replicationPort;
+	}
+
+	/**
+	 * Returns the <code>host:port</code> of the primary this hot-standby replicates from
+	 * @return the primary's replication address, or null if this is a primary
+	 */
+	@ManagedAttribute(description="The host:port of the primary this hot-standby replicates from")
+	public String getReplicateFrom() {
+		return replicateFrom;
+	}
+
+	/**
+	 * Sets the <code>host:port</code> of the primary to replicate from, making this instance a read-only hot-standby. Takes effect on start.
+	 * @param replicateFrom the primary's replication address
+	 */
+	public void setReplicateFrom(String replicateFrom) {
+		this.replicateFrom = (replicateFrom==null || replicateFrom.trim().isEmpty()) ? null : replicateFrom.trim();
+	}
+
+	/**
+	 * Returns the replication period in ms.
+	 * @return the replication period in ms.
+	 */
+	@ManagedAttribute(description="The replication period in ms.")
+	public long getReplicationPeriod() {
+		return replicationPeriod;
+	}
+
+	/**
+	 * Sets the replication period in ms. Takes effect on start or promotion.
+	 * @param replicationPeriod the replication period in ms.
+	 */
+	public void setReplicationPeriod(long replicationPeriod) {
+		this.replicationPeriod = replicationPeriod;
+	}
+	
+	/**
+	 * Indicates if this instance is a read-only hot-standby
+	 * @return true if this instance is a read-only hot-standby
+	 */
+	@ManagedAttribute(description="Indicates if this instance is a read-only hot-standby")
+	public boolean isHotStandby() {
+		return replicationSink!=null;
+	}
+	
+	/**
+	 * Returns the replication lag of this hot-standby in ms., the age of the oldest entry of the last replicated tick from when it was written on the primary
+	 * @return the replication lag in ms., or -1 if this is not a connected hot-standby
+	 */
+	@ManagedMetric(category="ChronicleTimeSeries", displayName="ReplicationLagMs", metricType=MetricType.GAUGE, description="The replication lag of this hot-standby in ms.")
+	public long getReplicationLagMs() {
+		ChronicleReplicationSink sink = replicationSink;
+		return sink==null ? -1L : sink.getLag();
+	}
+	
+	/**
+	 * Returns the number of entry frames applied by this hot-standby
+	 * @return the number of entry frames applied
+	 */
+	@ManagedMetric(category="ChronicleTimeSeries", displayName="ReplicationFramesApplied", metricType=MetricType.COUNTER, description="The number of entry frames applied by this hot-standby")
+	public long getReplicationFramesApplied() {
+		ChronicleReplicationSink sink = replicationSink;
+		return sink==null ? 0L : sink.getFramesApplied();
+	}
+	
+	/**
+	 * Returns the number of entry frames sent to hot-standbys
+	 * @return the number of entry frames sent
+	 */
+	@ManagedMetric(category="ChronicleTimeSeries", displayName="ReplicationFramesSent", metricType=MetricType.COUNTER, description="The number of entry frames sent to hot-standbys")
+	public long getReplicationFramesSent() {
+		ChronicleReplicationSource source = replicationSource;
+		return source==null ? 0L : source.getFramesSent();
+	}
+	
+	/**
+	 * Returns the number of connected hot-standbys
+	 * @return the number of connected hot-standbys
+	 */
+	@ManagedMetric(category="ChronicleTimeSeries", displayName="ReplicaCount", metricType=MetricType.GAUGE, description="The number of connected hot-standbys")
+	public int getReplicaCount() {
+		ChronicleReplicationSource source = replicationSource;
+		return source==null ? 0 : source.getReplicaCount();
+	}
+	
 	/**
 	 * Returns the elapsed time of the most recent entry status check in ns.
 	 * @return the elapsed time of the most recent entry status check in ns.
@@ -45,6 +45,7 @@ import org.helios.apmrouter.catalog.EntryStatus;
 import org.helios.apmrouter.catalog.EntryStatus.EntryStatusChange;
 import org.helios.apmrouter.catalog.jdbc.h2.MetricTrigger;
 import org.helios.apmrouter.catalog.jdbc.h2.NewElementTriggers;
+import org.helios.apmrouter.jmx.ConfigurationHelper;
 import org.helios.apmrouter.jmx.JMXHelper;
 import org.helios.apmrouter.metric.IMetric;
 import org.helios.apmrouter.tsmodel.Tier;
@@ -95,6 +96,18 @@ public class ChronicleTier implements ChronicleTierMXBean, NotificationListener
 	protected final AtomicLong endPeriod = new AtomicLong(Long.MIN_VALUE);
 	/** The number of metric offline notifications received */
 	protected final AtomicLong offlineNotifications = new AtomicLong(0);
+	/** The write lock stripes, indexed by metric ID masked with {@link #stripeMask} */
+	private final WriteStripe[] stripes;
+	/** The mask applied to a metric ID to select its write stripe */
+	private final int stripeMask;
+	/** The start and end timestamp of the most recent period seen by this tier */
+	private volatile long[] currentPeriodBoundaries = new long[]{Long.MIN_VALUE, Long.MIN_VALUE};
+	/** The tracker of entries written since they were last replicated, or null if the tier is not replicated */
+	private volatile DirtyEntryTracker dirtyEntries = null;
+	/** Indicates if this tier is a read-only replica */
+	private volatile boolean readOnly = false;
+	/** The number of writes rejected because this tier is a read-only replica */
+	protected final AtomicLong rejectedWrites = new AtomicLong(0);
 	
 
 	/** The number of values in each series entry */
@@ -107,8 +120,10 @@ public class ChronicleTier implements ChronicleTierMXBean, NotificationListener
 	/** The size of each series entry, ie. longs for TS, MIN, MAX, AVG and CNTS */
 	protected static final int SERIES_SIZE_IN_BYTES = SERIES_SIZE_IN_LONGS * 8; 
 	
-	/** The chronicle home directory. We're storing them in the same sub-dir as the H2 metric catalog */
-	public static final File CHRONICLE_HOME_DIR = new File(System.getProperty("user.home") + File.separator + ".apmrouter" + File.separator + "h2" + File.separator + "time-series");
+	/** The system property or environment variable name to override the chronicle home directory */
+	public static final String CHRONICLE_HOME_PROP = "org.helios.apmrouter.chronicle.home";
+	/** The chronicle home directory. We're storing them in the same sub-dir as the H2 metric catalog unless overriden by {@link #CHRONICLE_HOME_PROP} */
+	public static final File CHRONICLE_HOME_DIR = new File(ConfigurationHelper.getSystemThenEnvProperty(CHRONICLE_HOME_PROP, System.getProperty("user.home") + File.separator + ".apmrouter" + File.separator + "h2" + File.separator + "time-series"));
 	/** The default chronicle databit size estimate */
 	public static final int CHRONICLE_SIZE_EST = 10;
 	
@@ -136,6 +151,22 @@ public class ChronicleTier implements ChronicleTierMXBean, NotificationListener
 	public static final int H_SIZE = H_END + 8; //16;
 	/** The series offset for the header entry status */
 	public static final int H_STATUS = H_SIZE + 4;
+	// ===================================================
+	// Current period value offsets
+	// ===================================================
+	/** The series offset for the current period's min value */
+	protected static final int OFFSET_MIN = HEADER_OFFSET + (MIN << 3);
+	/** The series offset for the current period's max value */
+	protected static final int OFFSET_MAX = HEADER_OFFSET + (MAX << 3);
+	/** The series offset for the current period's avg value */
+	protected static final int OFFSET_AVG = HEADER_OFFSET + (AVG << 3);
+	/** The series offset for the current period's count value */
+	protected static final int OFFSET_CNT = HEADER_OFFSET + (CNT << 3);
+	
+	/** The system property name to override the number of write lock stripes per tier */
+	public static final String WRITE_STRIPES_PROP = "org.helios.apmrouter.chronicle.stripes";
+	/** The default number of write lock stripes per tier */
+	public static final int DEFAULT_WRITE_STRIPES = 64;
 	
 	/** The JMX ObjectName's prefix to which the tier name is appended to create the full object name */
 	public static final String OBJECT_NAME_PREFIX = "org.helios.apmrouter.timeseries:type=chronicle,name=";
@@ -165,7 +196,7 @@ public class ChronicleTier implements ChronicleTierMXBean, NotificationListener
 		entrySize = HEADER_OFFSET + (SERIES_SIZE_IN_BYTES * periods);
 		
 		if(!CHRONICLE_HOME_DIR.exists()) {
-			if(!CHRONICLE_HOME_DIR.mkdir()) {
+			if(!CHRONICLE_HOME_DIR.mkdirs()) {
 				throw new RuntimeException("Failed to create chronicle ts home directory [" + CHRONICLE_HOME_DIR + "]", new Throwable());
 			}
 		} else {
@@ -177,6 +208,11 @@ public class ChronicleTier implements ChronicleTierMXBean, NotificationListener
 		try {
 			chronicle = new IndexedChronicle(chroniclePath, CHRONICLE_SIZE_EST);
 			chronicle.useUnsafe(true);
+			stripes = new WriteStripe[powerOfTwo(ConfigurationHelper.getIntSystemThenEnvProperty(WRITE_STRIPES_PROP, DEFAULT_WRITE_STRIPES))];
+			stripeMask = stripes.length-1;
+			for(int i = 0; i < stripes.length; i++) {
+				stripes[i] = new WriteStripe(chronicle.createUnsafeExcerpt());
+			}
 			initSeries();
 			JMXHelper.getHeliosMBeanServer().registerMBean(this, objectName);
 		} catch (Exception e) {
@@ -311,47 +347,48 @@ public class ChronicleTier implements ChronicleTierMXBean, NotificationListener
 	}
 
 	/**
-	 * Adds a new value to the corresponding series in this tier
+	 * Adds a new value to the corresponding series in this tier.
+	 * The update is serialized against other updates for metric IDs sharing the same lock stripe
+	 * and performed with the stripe's reusable excerpt as a single read-modify-write of the series entry.
 	 * @param metric The metric add values into the series from
 	 * @return the rolled value or null if this operation updates the current period
 	 */
 	public long[] addValue(IMetric metric) {
 		try {
-			long metricId = metric.getToken(), timestamp = metric.getTime();
+			final long metricId = metric.getToken();
 			if(metricId<0) throw new IllegalArgumentException("The metric ID cannot be < 0", new Throwable());
-			UnsafeExcerpt<IndexedChronicle> ex = createUnsafeExcerpt(metricId);
-			final long period = SystemClock.period(periodDurationMs, timestamp);
-			ex.readLong(); ex.readLong();
-			int pCount = ex.readInt();	
-			if(pCount>this.periods || pCount<0) {
-				SeriesEntry se = new SeriesEntry(createUnsafeExcerpt(), metric.getToken(), false);
-				Throwable t = new Throwable();
-				t.printStackTrace(System.err);
-				throw new RuntimeException("Read pCount was [" + pCount + "] but tier count is [" + this.periods + "] for metric [" + metric.getToken() + "/" + metric.getFQN() + "]\n\tSeries Dump:" + se , new Throwable());
-			}
-			if(pCount==0) {
-				ex.finish();
-				writeNewPeriod(period, metric);		
-				tickPeriods(period, period);
+			if(readOnly) {
+				rejectedWrites.incrementAndGet();
 				return null;
 			}
-			int periodIndex = getPeriodIndex(metric.getToken(), period);
-			switch(periodIndex) {
-				case -1:
+			final long period = period(metric.getTime());
+			final WriteStripe stripe = stripes[(int)(metricId & stripeMask)];
+			synchronized(stripe) {
+				final UnsafeExcerpt<IndexedChronicle> ex = stripe.excerpt;
+				if(!ex.index(metricId)) throw new IllegalArgumentException("Failed to set the excerpt index to [" + metricId + "] in tier [" + chronicleName + "]", new Throwable());
+				final int pCount = ex.readInt(H_SIZE);
+				if(pCount>this.periods || pCount<0) {
+					SeriesEntry se = new SeriesEntry(createUnsafeExcerpt(), metricId, false);
+					throw new RuntimeException("Read pCount was [" + pCount + "] but tier count is [" + this.periods + "] for metric [" + metricId + "/" + metric.getFQN() + "]\n\tSeries Dump:" + se , new Throwable());
+				}
+				if(pCount==0) {
+					writeNewPeriod(ex, period, metric);
+					tickPeriods(period, period);
+					markDirty(metricId);
 					return null;
-				case 0:
-					ex.finish();
-					writeNewPeriod(period, metric);
-					break;				
-				case 1:
+				}
+				final long currentPeriod = ex.readLong(HEADER_OFFSET);
+				if(period==currentPeriod) {
 					updateCurrentPeriod(ex, metric, true);
-					break;
-				case 2:
-					// roll and update 
-					return rollAndMerge(pCount, period, metric, ex);
-					//break;
-				default:
-					log.warn("Unexpected period index ["+ periodIndex + "]");
+					markDirty(metricId);
+					return null;
+				} else if(period>currentPeriod) {
+					final long[] rolled = rollAndMerge(pCount, period, metric, ex);
+					markDirty(metricId);
+					return rolled;
+				}
+				// period is older than the current period so it is dropped
+				return null;
 			}
 		} catch (Throwable t) {
 			log.error("Add Value Error:", t);
@@ -359,6 +396,53 @@ public class ChronicleTier implements ChronicleTierMXBean, NotificationListener
 		return null;
 	}
 	
+	/**
+	 * Returns the start of the period for the passed timestamp,
+	 * using the cached boundaries of the most recent period when the timestamp falls within it.
+	 * @param timestamp The timestamp to get the period for
+	 * @return the period start timestamp
+	 */
+	protected long period(long timestamp) {
+		final long[] boundaries = currentPeriodBoundaries;
+		if(timestamp >= boundaries[0] && timestamp < boundaries[1]) return boundaries[0];
+		final long period = SystemClock.period(periodDurationMs, timestamp);
+		if(period > boundaries[0]) {
+			currentPeriodBoundaries = new long[]{period, period + periodDurationMs};
+		}
+		return period;
+	}
+	
+	/**
+	 * Rounds the passed value up to the next power of 2
+	 * @param value The value to round up
+	 * @return the next power of 2 
+	 */
+	private static int powerOfTwo(int value) {
+		int p = 1;
+		while(p < value) p <<= 1;
+		return p;
+	}
+	
+	/**
+	 * <p>Title: WriteStripe</p>
+	 * <p>Description: One of the fixed set of write locks for a tier, owning an excerpt that is re-indexed for each update made under the lock</p> 
+	 */
+	private static final class WriteStripe {
+		/** The stripe's excerpt */
+		final UnsafeExcerpt<IndexedChronicle> excerpt;
+		/** Padding to keep stripes on separate cache lines */
+		@SuppressWarnings("unused")
+		long p1, p2, p3, p4, p5, p6, p7;
+		
+		/**
+		 * Creates a new WriteStripe
+		 * @param excerpt The stripe's excerpt
+		 */
+		WriteStripe(UnsafeExcerpt<IndexedChronicle> excerpt) {
+			this.excerpt = excerpt;
+		}
+	}
+	
 	/**
 	 * Triggers a period roll, where the existing period data is rolled one period to the right and a new period is initialized in the current slot.
 	 * @param currentSize The current number of periods in the series
@@ -397,7 +481,17 @@ public class ChronicleTier implements ChronicleTierMXBean, NotificationListener
 	 * @param metric The metric to write
 	 */
 	protected void writeNewPeriod(long period, IMetric metric) {
-		UnsafeExcerpt<IndexedChronicle> ex = createUnsafeExcerpt(metric.getToken());
+		writeNewPeriod(createUnsafeExcerpt(metric.getToken()), period, metric);
+		markDirty(metric.getToken());
+	}
+	
+	/**
+	 * Writes the passed metric into a new period using the passed excerpt
+	 * @param ex The excerpt which has already been set to the metric's index
+	 * @param period The period
+	 * @param metric The metric to write
+	 */
+	protected void writeNewPeriod(UnsafeExcerpt<IndexedChronicle> ex, long period, IMetric metric) {
 		ex.writeLongArray(new long[]{period, period + this.periodDurationMs});
 		ex.writeInt(1);
 		byte priorStatus = ex.readByte(H_STATUS);
@@ -417,20 +511,21 @@ public class ChronicleTier implements ChronicleTierMXBean, NotificationListener
 	 * @param finish If true, the write is committed, otherwise, the excerpt is left open
 	 */
 	protected void updateCurrentPeriod(UnsafeExcerpt<IndexedChronicle> ex, IMetric metric, boolean finish) {		
-		long[] values = ex.readLongArray(HEADER_OFFSET, SERIES_SIZE_IN_LONGS);
-		long val = metric.getLongValue();
-		if(val < values[MIN]) values[MIN] = val;
-		if(val > values[MAX]) values[MAX] = val;
-		if(values[CNT]==0) {
-			values[AVG] = val;
+		final long val = metric.getLongValue();
+		final long min = ex.readLong(OFFSET_MIN), max = ex.readLong(OFFSET_MAX), cnt = ex.readLong(OFFSET_CNT);
+		if(val < min) ex.writeLong(OFFSET_MIN, val);
+		if(val > max) ex.writeLong(OFFSET_MAX, val);
+		if(cnt==0) {
+			ex.writeLong(OFFSET_AVG, val);
 		} else {
-			long tmpTotal = values[AVG]+val;
-			values[AVG] = tmpTotal==0 ? 0 : tmpTotal/2;
+			long tmpTotal = ex.readLong(OFFSET_AVG)+val;
+			ex.writeLong(OFFSET_AVG, tmpTotal==0 ? 0 : tmpTotal/2);
 		}
-		values[CNT]++;
+		ex.writeLong(OFFSET_CNT, cnt+1);
 		byte priorStatus = ex.readByte(H_STATUS);
-		ex.write(H_STATUS, EntryStatus.ACTIVE.byteOrdinal());		
-		ex.writeLongArray(HEADER_OFFSET, values);
+		if(priorStatus!=EntryStatus.ACTIVE.byteOrdinal()) {
+			ex.write(H_STATUS, EntryStatus.ACTIVE.byteOrdinal());
+		}
 		if(finish) {
 			ex.finish();
 		}
@@ -511,11 +606,13 @@ public class ChronicleTier implements ChronicleTierMXBean, NotificationListener
 		if(elapsed >= offLineThreshold) {
 			if(status!=EntryStatus.OFFLINE) {
 				se.updateStatus(EntryStatus.OFFLINE);
+				markDirty(metricId);
 				return EntryStatus.OFFLINE;
 			}
 		} else 	if(elapsed >= staleThreshold) {
 			if(status!=EntryStatus.STALE) {
 				se.updateStatus(EntryStatus.STALE);
+				markDirty(metricId);
 				return EntryStatus.STALE;
 			}
 		}
@@ -533,6 +630,7 @@ public class ChronicleTier implements ChronicleTierMXBean, NotificationListener
 		try {
 			SeriesEntry se = new SeriesEntry(createUnsafeExcerpt(), metricId, false);
 			se.updateStatus(status);
+			markDirty(metricId);
 		} catch (Exception ex) {
 			/* No Op */
 		}
@@ -564,6 +662,9 @@ public class ChronicleTier implements ChronicleTierMXBean, NotificationListener
 		ex.writeLongArray(HEADER_OFFSET + (seriesIndex * SERIES_SIZE_IN_BYTES), values);
 		if(status!=EntryStatus.ACTIVE) {
 			ex.write(H_STATUS, EntryStatus.ACTIVE.byteOrdinal());
+		}
+		markDirty(index);
+		if(status!=EntryStatus.ACTIVE) {
 			fireEventStatusChangeEvent(EntryStatus.EntryStatusChange.getChangeMap(SystemClock.time(), index, EntryStatus.ACTIVE));
 		}
 	}
@@ -651,6 +752,17 @@ public class ChronicleTier implements ChronicleTierMXBean, NotificationListener
 	 * @return the index of the new entry
 	 */
 	public synchronized long createNewMetric() {		
+		if(readOnly) throw new IllegalStateException("Cannot create a new metric entry in read-only replica tier [" + chronicleName + "]", new Throwable());
+		final long index = appendEntry();
+		markDirty(index);
+		return index;
+	}
+	
+	/**
+	 * Appends a new initialized entry to the chronicle
+	 * @return the index of the new entry
+	 */
+	private long appendEntry() {
 		try {
 			Excerpt<IndexedChronicle> ex = chronicle.createExcerpt();
 			ex.startExcerpt(entrySize);
@@ -672,6 +784,90 @@ public class ChronicleTier implements ChronicleTierMXBean, NotificationListener
 	}	
 	
 	
+	/**
+	 * Marks the entry at the passed index as written if this tier is being replicated
+	 * @param index The index of the written entry
+	 */
+	protected void markDirty(long index) {
+		final DirtyEntryTracker tracker = dirtyEntries;
+		if(tracker!=null) tracker.mark(index);
+	}
+	
+	/**
+	 * Starts tracking written entries for replication and returns the tracker
+	 * @return the dirty entry tracker for this tier
+	 */
+	synchronized DirtyEntryTracker trackDirtyEntries() {
+		if(dirtyEntries==null) {
+			dirtyEntries = new DirtyEntryTracker(chronicle.size());
+		}
+		return dirtyEntries;
+	}
+	
+	/**
+	 * Copies the raw bytes of the entry at the passed index into the passed array
+	 * @param ex The excerpt to read with
+	 * @param index The entry index
+	 * @param entry The array to read into, sized to {@link #getEntrySize()}
+	 * @return true if the entry was read, false if the index does not exist
+	 */
+	boolean readEntry(UnsafeExcerpt<IndexedChronicle> ex, long index, byte[] entry) {
+		if(index >= chronicle.size() || !ex.index(index)) return false;
+		ex.position(0);
+		ex.readFully(entry);
+		return true;
+	}
+	
+	/**
+	 * Writes the raw bytes of an entry replicated from a primary into the entry at the passed index,
+	 * appending initialized entries until the index exists.
+	 * @param ex The excerpt to write with
+	 * @param index The entry index
+	 * @param entry The entry bytes
+	 */
+	synchronized void applyReplicatedEntry(UnsafeExcerpt<IndexedChronicle> ex, long index, byte[] entry) {
+		while(chronicle.size() <= index) {
+			appendEntry();
+		}
+		if(!ex.index(index)) throw new IllegalArgumentException("Failed to set the excerpt index to [" + index + "] in tier [" + chronicleName + "]", new Throwable());
+		ex.write(0, entry);
+		tickPeriods(ex.readLong(H_START), ex.readLong(H_END));
+	}
+	
+	/**
+	 * Returns the byte size of one metric entry
+	 * @return the byte size of one metric entry
+	 */
+	public int getEntrySize() {
+		return entrySize;
+	}
+	
+	/**
+	 * Indicates if this tier is a read-only replica
+	 * @return true if this tier is a read-only replica
+	 */
+	@Override
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+	
+	/**
+	 * Sets the read-only replica state of this tier
+	 * @param readOnly true to reject writes, false to accept them
+	 */
+	void setReadOnly(boolean readOnly) {
+		this.readOnly = readOnly;
+	}
+	
+	/**
+	 * Returns the number of writes rejected because this tier is a read-only replica
+	 * @return the number of rejected writes
+	 */
+	@Override
+	public long getRejectedWriteCount() {
+		return rejectedWrites.get();
+	}
+	
 	/**
 	 * Dumps a formatted output of the excerpt at the passed index
 	 * @param index The index to dump
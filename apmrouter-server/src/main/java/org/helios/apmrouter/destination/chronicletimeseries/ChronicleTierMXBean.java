@@ -149,7 +149,19 @@ public interface ChronicleTierMXBean {
 	 * Returns the total number of metric offline notifications received.
 	 * @return the total number of metric offline notifications received.
 	 */
-	public long getOffLineNotificationCount();	
+	public long getOffLineNotificationCount();
+	
+	/**
+	 * Indicates if this tier is a read-only replica
+	 * @return true if this tier is a read-only replica
+	 */
+	public boolean isReadOnly();
+	
+	/**
+	 * Returns the number of writes rejected because this tier is a read-only replica
+	 * @return the number of rejected writes
+	 */
+	public long getRejectedWriteCount();
 	
 	
 }
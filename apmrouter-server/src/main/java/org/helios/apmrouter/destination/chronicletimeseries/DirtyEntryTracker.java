@@ -0,0 +1,147 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.destination.chronicletimeseries;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.helios.apmrouter.util.SystemClock;
+
+/**
+ * <p>Title: DirtyEntryTracker</p>
+ * <p>Description: A lock-free, growable bitmap of the chronicle entry indexes that have been written since they were last taken.</p> 
+ * <p>Writers mark an index once their write to the entry is complete, so an entry taken while a write is in progress is marked again 
+ * when that write completes. Marking is a CAS on one word of the bitmap and never blocks, apart from the rare growth of the bitmap. 
+ * The tracker also keeps the time the oldest entry still waiting to be taken was marked, so the age of the replicated data can be reported, 
+ * which only costs the first writer after each {@link #takeDirtySince()} a clock read.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.destination.chronicletimeseries.DirtyEntryTracker</code></p>
+ */
+
+public class DirtyEntryTracker {
+	/** The current bitmap */
+	private volatile AtomicLongArray bits;
+	/** The time the first entry was marked since the last call to {@link #takeDirtySince()}, or zero if none has been */
+	private final AtomicLong dirtySince = new AtomicLong(0L);
+	
+	/**
+	 * Creates a new DirtyEntryTracker
+	 * @param initialEntries The number of entries to size the bitmap for
+	 */
+	public DirtyEntryTracker(long initialEntries) {
+		bits = new AtomicLongArray(Math.max(16, (int)((initialEntries >>> 6) + 1) * 2));
+	}
+	
+	/**
+	 * Marks the passed entry index as dirty
+	 * @param index The entry index
+	 */
+	public void mark(long index) {
+		// stamped before the bit is set, so an entry is never taken before the time it was marked is
+		if(dirtySince.get()==0L) dirtySince.compareAndSet(0L, SystemClock.time());
+		final int word = (int)(index >>> 6);
+		final long bit = 1L << (index & 63);
+		AtomicLongArray arr = bits;
+		while(true) {
+			if(word >= arr.length()) arr = grow(word);
+			long w = arr.get(word);
+			if((w & bit)!=0 || arr.compareAndSet(word, w, w | bit)) {
+				// if the bitmap grew while the bit was being set, the bit may have been set in the copied-from bitmap
+				AtomicLongArray current = bits;
+				if(current==arr) return;
+				arr = current;
+			}
+		}
+	}
+	
+	/**
+	 * Returns and clears the time the first entry was marked since the last call. 
+	 * Called before the bitmap words are taken, this is the time the oldest of the taken entries was marked.
+	 * @return the time the oldest waiting entry was marked, or zero if no entry has been marked
+	 */
+	public long takeDirtySince() {
+		if(dirtySince.get()==0L) return 0L;
+		return dirtySince.getAndSet(0L);
+	}
+	
+	/**
+	 * Marks all the entry indexes up to the passed size as dirty
+	 * @param size The number of entries to mark
+	 */
+	public void markAll(long size) {
+		for(long i = 0; i < size; i++) {
+			mark(i);
+		}
+	}
+	
+	/**
+	 * Returns the number of words in the bitmap
+	 * @return the number of words
+	 */
+	public int words() {
+		return bits.length();
+	}
+	
+	/**
+	 * Takes and clears one word of the bitmap. Bit <code>n</code> of word <code>w</code> represents entry index <code>(w * 64) + n</code>.
+	 * @param word The word index
+	 * @return the dirty bits of the word
+	 */
+	public long take(int word) {
+		AtomicLongArray arr = bits;
+		if(word >= arr.length()) return 0L;
+		if(arr.get(word)==0L) return 0L;
+		return arr.getAndSet(word, 0L);
+	}
+	
+	/**
+	 * Grows the bitmap to hold the passed word index, moving the bits of the current bitmap into the new one
+	 * @param word The word index to hold
+	 * @return the new bitmap
+	 */
+	private synchronized AtomicLongArray grow(int word) {
+		AtomicLongArray arr = bits;
+		if(word < arr.length()) return arr;
+		int size = arr.length();
+		while(size <= word) size <<= 1;
+		AtomicLongArray grown = new AtomicLongArray(size);
+		for(int i = 0; i < arr.length(); i++) {
+			grown.set(i, arr.getAndSet(i, 0L));
+		}
+		bits = grown;
+		// bits set in the old bitmap after it was copied are re-marked by their writers
+		for(int i = 0; i < arr.length(); i++) {
+			long late = arr.getAndSet(i, 0L);
+			if(late!=0L) {
+				while(true) {
+					long w = grown.get(i);
+					if(grown.compareAndSet(i, w, w | late)) break;
+				}
+			}
+		}
+		return grown;
+	}
+}
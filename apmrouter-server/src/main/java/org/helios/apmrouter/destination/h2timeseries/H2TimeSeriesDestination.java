@@ -225,10 +225,7 @@ public class H2TimeSeriesDestination extends BaseDestination implements FlushQue
 			routable.getLongValue();
 			//flushQueue.put(routable);
 			SystemClock.startTimer();
-			long[] rolledPeriod = null;
-			synchronized(routable.getMetricId()) {
-				rolledPeriod = liveTier.addValue(routable);
-			}
+			long[] rolledPeriod = liveTier.addValue(routable);
 			// ==========================================================
 			// ==========================================================
 			//		Queue Metrics for URISubscriptions here
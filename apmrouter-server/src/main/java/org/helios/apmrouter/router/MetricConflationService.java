@@ -25,15 +25,14 @@
 package org.helios.apmrouter.router;
 
 import java.lang.Thread.UncaughtExceptionHandler;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.helios.apmrouter.collections.StripedCounter;
 import org.helios.apmrouter.metric.IMetric;
+import org.helios.apmrouter.metric.TokenConflationTable;
 import org.helios.apmrouter.server.ServerComponentBean;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedMetric;
@@ -42,6 +41,8 @@ import org.springframework.jmx.support.MetricType;
 /**
  * <p>Title: MetricConflationService</p>
  * <p>Description: Service to conflate incoming metrics</p> 
+ * <p>Long typed metrics are conflated by catalog token into a double buffered {@link TokenConflationTable}. Once every conflation period, 
+ * the flush thread swaps out the pending buffer and forwards its metrics to the router. Non long metrics cannot be conflated and are forwarded immediately.</p>
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>org.helios.apmrouter.router.MetricConflationService</code></p>
@@ -49,31 +50,37 @@ import org.springframework.jmx.support.MetricType;
 public class MetricConflationService extends ServerComponentBean implements Runnable, UncaughtExceptionHandler {
 	/** The maximum number of metrics that can be pending conflation at a time */
 	protected int maxQueueSize = 100000;
-	/** The number of worker threads to spin up to service the queue */
+	/** The number of worker threads to spin up to service the queue. Drains are serialized so only one is started. */
 	protected int workerThreads = 1;
-	/** The minimum period of time each metric remains in the conflation queue, unless is it conflated into another metric */
+	/** The period of time in ms. between flushes of the conflation queue */
 	protected long conflationPeriod = 1000;
 	/** The pattern router */
 	protected PatternRouter router = null;
 	/** The conflation queue */
-	protected final ConcurrentSkipListMap<Long, Map<String, IMetric>> conflationQueue = new ConcurrentSkipListMap<Long, Map<String, IMetric>>();
+	protected final TokenConflationTable conflationQueue = new TokenConflationTable(1024, maxQueueSize);
 	/** Indicates if the threads should be running */
 	protected boolean keepRunning = false;
 	/** The thread group containing the worker threads */
 	protected ThreadGroup threadGroup = new ThreadGroup("MetricConflationService");
 	/** Id factory for the threads */
 	protected final AtomicInteger serial = new AtomicInteger(0);
+	/** The forwarded metrics counter */
+	protected final StripedCounter metricsForwarded = counter("MetricsForwarded");
+	/** The queued metrics counter */
+	protected final StripedCounter metricsQueued = counter("MetricsQueued");
+	/** The conflated metrics counter */
+	protected final StripedCounter metricsConflated = counter("MetricsConflated");
+	/** The dropped metrics counter */
+	protected final StripedCounter metricsDropped = counter("MetricsDropped");
 	
 	@Override
 	protected void doStart() throws Exception {
 		super.doStart();
 		keepRunning = true;
-		for(int i = 0; i < workerThreads; i++) {					
-			Thread t = new Thread(threadGroup, this, "MetricConflationThread#" + serial.incrementAndGet());
-			t.setDaemon(true);
-			t.setUncaughtExceptionHandler(this);
-			t.start();
-		}
+		Thread t = new Thread(threadGroup, this, "MetricConflationThread#" + serial.incrementAndGet());
+		t.setDaemon(true);
+		t.setUncaughtExceptionHandler(this);
+		t.start();
 	}
 	
 	protected void doStop() {
@@ -87,54 +94,50 @@ public class MetricConflationService extends ServerComponentBean implements Runn
 	 */
 	public void queue(IMetric...imetrics) {
 		if(imetrics==null || imetrics.length==0) return;
-		long now = System.currentTimeMillis() + conflationPeriod;	
-		Map<String, IMetric> map = conflationQueue.get(now);
-		if(map==null) {
-			synchronized(conflationQueue) {
-				map = conflationQueue.get(now);
-				if(map==null) {
-					map = new ConcurrentHashMap<String, IMetric>();
-					conflationQueue.put(now, map);
-				}
-			}
-		}		
 		for(IMetric metric: imetrics) {
 			if(!metric.getType().isLong()) {
 				router.queue(metric);
-				incr("MetricsForwarded");
-
+				metricsForwarded.increment();
+				continue;
 			}
-			IMetric alreadyQueued = map.get(metric.getFQN());
-			if(alreadyQueued==null) {
-				synchronized(map) {
-					alreadyQueued = map.get(metric.getFQN());
-					if(alreadyQueued!=null) {
-						alreadyQueued.conflate(metric);
-						incr("MetricsConflated");
-					} else {
-						if(conflationQueue.size() >= maxQueueSize) {
-							incr("MetricsDropped");
-						} else {
-							map.put(metric.getFQN(), metric);
-							incr("MetricsQueued");
-						}						
-					}
+			try {
+				switch(conflationQueue.conflate(metric)) {
+					case TokenConflationTable.ADDED:
+						metricsQueued.increment();
+						break;
+					case TokenConflationTable.CONFLATED:
+						metricsConflated.increment();
+						break;
+					default:
+						metricsDropped.increment();
 				}
+			} catch (Exception ex) {
+				incr("ConflationErrors");
 			}
-				
 		}	
 	}
 
 	
 	/**
-	 * Returns the number of periods in the queue
-	 * @return the number of periods in the queue
+	 * Returns the number of metrics pending conflation
+	 * @return the number of metrics pending conflation
 	 */
 	@ManagedAttribute
 	public int getQueueSize() {
 		return conflationQueue.size();
 	}
 	
+	/**
+	 * Swaps out the pending metrics and forwards them to the router
+	 */
+	protected void flush() {
+		IMetric[] forwards = conflationQueue.drain();
+		if(forwards.length>0) {
+			router.queue(Arrays.asList(forwards));
+			metricsForwarded.add(forwards.length);
+		}
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 * @see java.lang.Runnable#run()
@@ -142,39 +145,15 @@ public class MetricConflationService extends ServerComponentBean implements Runn
 	public void run() {
 		while(keepRunning) {
 			try {
-				long now = System.currentTimeMillis();
-				Map<Long, Map<String, IMetric>> clearMetrics = conflationQueue.tailMap(now, true);
-				Map<String, IMetric> forwards = new HashMap<String, IMetric>();
-				for(Map.Entry<Long, Map<String, IMetric>> entry: clearMetrics.entrySet()) {
-					Map<String, IMetric> map = conflationQueue.remove(entry.getKey());
-					if(map!=null) {									
-						for(Map.Entry<String, IMetric> fentry: map.entrySet()) {
-							IMetric existing = forwards.get(fentry.getKey());
-							if(existing!=null) {
-								try {
-									existing.conflate(fentry.getValue());
-								} catch (Exception ex) {
-									incr("ConflationErrors");
-									//error("Failed to conflate.\n\tThis metric:", existing, "\n\tThat metric:", fentry.getValue());
-								}
-								incr("MetricsConflated");
-								continue;
-							}
-							forwards.put(fentry.getKey(), fentry.getValue());
-						}
-					}
-				}
-				if(!forwards.isEmpty()) {
-					router.queue(forwards.values());
-					incr("MetricsForwarded", forwards.size());
-					forwards.clear();
-					
-				}
-				Thread.currentThread().join(50);
+				Thread.sleep(conflationPeriod);
+				flush();
+			} catch (InterruptedException ie) {
+				Thread.interrupted();
 			} catch (Exception e) {
 				e.printStackTrace(System.err);
 			}
 		}
+		flush();
 	}
 	
 	/**
@@ -192,6 +171,7 @@ public class MetricConflationService extends ServerComponentBean implements Runn
 	 */
 	public void setMaxQueueSize(int maxQueueSize) {
 		this.maxQueueSize = maxQueueSize;
+		conflationQueue.setMaxSize(maxQueueSize);
 	}
 
 
@@ -214,8 +194,8 @@ public class MetricConflationService extends ServerComponentBean implements Runn
 
 
 	/**
-	 * Returns the minimum period of time in ms each metric remains in the conflation queue, unless is it conflated into another metric 
-	 * @return the minimum period of time in ms each metric remains in the conflation queue, unless is it conflated into another metric
+	 * Returns the period of time in ms. between flushes of the conflation queue 
+	 * @return the period of time in ms. between flushes of the conflation queue
 	 */
 	public long getConflationPeriod() {
 		return conflationPeriod;
@@ -223,8 +203,8 @@ public class MetricConflationService extends ServerComponentBean implements Runn
 
 
 	/**
-	 * Sets the minimum period of time in ms each metric remains in the conflation queue, unless is it conflated into another metric
-	 * @param conflationPeriod the minimum period of time in ms each metric remains in the conflation queue, unless is it conflated into another metric
+	 * Sets the period of time in ms. between flushes of the conflation queue
+	 * @param conflationPeriod the period of time in ms. between flushes of the conflation queue
 	 */
 	public void setConflationPeriod(long conflationPeriod) {
 		this.conflationPeriod = conflationPeriod;
@@ -245,7 +225,7 @@ public class MetricConflationService extends ServerComponentBean implements Runn
 	 */
 	@ManagedMetric(category="ConflationService", metricType=MetricType.COUNTER, description="the number of metrics forwarded from ConflationService")
 	public long getMetricsForwarded() {
-		return getMetricValue("MetricsForwarded");
+		return metricsForwarded.get();
 	}
 	
 	
@@ -255,7 +235,7 @@ public class MetricConflationService extends ServerComponentBean implements Runn
 	 */
 	@ManagedMetric(category="ConflationService", metricType=MetricType.COUNTER, description="the number of metrics that were dropped because ConflationService was backlogged")
 	public long getMetricsDropped() {
-		return getMetricValue("MetricsDropped");
+		return metricsDropped.get();
 	}
 	
 	/**
@@ -264,7 +244,7 @@ public class MetricConflationService extends ServerComponentBean implements Runn
 	 */
 	@ManagedMetric(category="ConflationService", metricType=MetricType.COUNTER, description="the number of metrics that were conflated")
 	public long getMetricsConflated() {
-		return getMetricValue("MetricsConflated");
+		return metricsConflated.get();
 	}
 	
 	/**
@@ -273,7 +253,7 @@ public class MetricConflationService extends ServerComponentBean implements Runn
 	 */
 	@ManagedMetric(category="ConflationService", metricType=MetricType.COUNTER, description="the number of metrics that were queued")
 	public long getMetricsQueued() {
-		return getMetricValue("MetricsQueued");
+		return metricsQueued.get();
 	}
 	
 	/**
@@ -35,16 +35,15 @@ import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import org.helios.apmrouter.collections.ConcurrentLongSlidingWindow;
-import org.helios.apmrouter.collections.LongSlidingWindow;
+import org.helios.apmrouter.collections.LatencyHistogram;
+import org.helios.apmrouter.collections.StripedCounter;
 import org.helios.apmrouter.destination.event.DestinationEvent;
 import org.helios.apmrouter.metric.ExpandedMetric;
 import org.helios.apmrouter.metric.ICEMetric;
 import org.helios.apmrouter.metric.IMetric;
 import org.helios.apmrouter.server.ServerComponentBean;
-import org.helios.apmrouter.util.SystemClock;
-import org.helios.apmrouter.util.SystemClock.ElapsedTime;
 import org.helios.apmrouter.util.thread.ManagedThreadPool;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationEvent;
@@ -79,10 +78,12 @@ public class PatternRouter extends ServerComponentBean implements UncaughtExcept
 	/** An uncaught exception handler applied to threads running in the router's thread pool */
 	protected final UncaughtExceptionHandler ucex = this;
 	
-	/** Sliding windows of route elapsed times in ns. */
-	protected final LongSlidingWindow elapsedTimesNs = new ConcurrentLongSlidingWindow(15);
-	/** Sliding windows of route elapsed times in ms. */
-	protected final LongSlidingWindow elapsedTimesMs = new ConcurrentLongSlidingWindow(15); 
+	/** Histogram of route elapsed times in ns. */
+	protected final LatencyHistogram routeTimesNs = new LatencyHistogram();
+	/** The completed routes counter */
+	protected final StripedCounter completedRoutes = counter("CompletedRoutes");
+	/** The dropped routes counter */
+	protected final StripedCounter droppedRoutes = counter("DroppedRoutes");
 	
 	
 	/** Metric conflation service */
@@ -180,8 +181,7 @@ public class PatternRouter extends ServerComponentBean implements UncaughtExcept
 	@Override
 	public void resetMetrics() {
 		super.resetMetrics();
-		elapsedTimesNs.clear();
-		elapsedTimesMs.clear();
+		routeTimesNs.reset();
 	}	
 	
 	
@@ -231,22 +231,19 @@ public class PatternRouter extends ServerComponentBean implements UncaughtExcept
 			if(metric==null) continue;
 			this.threadPool.execute(new Runnable(){
 				public void run() {
+					final long start = System.nanoTime();
 					try {
-						SystemClock.startTimer();
 						IMetric routableMetric = metric;
 						if(metric.getType()==org.helios.apmrouter.metric.MetricType.BLOB) {
 							routableMetric = new ExpandedMetric((ICEMetric)metric);
 						}						
 						for(RouteDestination<IMetric> destination: destinations) {
 							destination.acceptRoute(routableMetric);
-							incr("CompletedRoutes");
+							completedRoutes.increment();
 						}
-						ElapsedTime et = SystemClock.endTimer();
-						elapsedTimesNs.insert(et.elapsedNs);
-						elapsedTimesMs.insert(et.elapsedMs);
+						routeTimesNs.recordSince(start);
 					} catch (Throwable e) {
-						SystemClock.endTimer();
-						incr("DroppedRoutes");
+						droppedRoutes.increment();
 						e.printStackTrace(System.err);
 					}
 					
@@ -320,21 +317,57 @@ public class PatternRouter extends ServerComponentBean implements UncaughtExcept
 	}
 	
 	/**
-	 * Returns the sliding average elapsed time in ns. of the last 15 route events
-	 * @return the sliding average elapsed time in ns. of the last 15 route events
+	 * Returns the average elapsed time in ns. of route events in the last histogram interval
+	 * @return the average elapsed time in ns. of route events in the last histogram interval
 	 */
-	@ManagedMetric(category="MetricRouter", metricType=MetricType.GAUGE, description="The sliding average elapsed time in ns. of the last 15 route events")
+	@ManagedMetric(category="MetricRouter", metricType=MetricType.GAUGE, description="The average elapsed time in ns. of route events in the last histogram interval")
 	public long getAverageRouteTimeNs() {
-		return elapsedTimesNs.avg();
+		return routeTimesNs.getSnapshot().getMean();
 	}
 	
 	/**
-	 * Returns the sliding average elapsed time in ms. of the last 15 route events
-	 * @return the sliding average elapsed time in ms. of the last 15 route events
+	 * Returns the average elapsed time in ms. of route events in the last histogram interval
+	 * @return the average elapsed time in ms. of route events in the last histogram interval
 	 */
-	@ManagedMetric(category="MetricRouter", metricType=MetricType.GAUGE, description="The sliding average elapsed time in ms. of the last 15 route events")
+	@ManagedMetric(category="MetricRouter", metricType=MetricType.GAUGE, description="The average elapsed time in ms. of route events in the last histogram interval")
 	public long getAverageRouteTimeMs() {
-		return elapsedTimesMs.avg();
+		return TimeUnit.MILLISECONDS.convert(getAverageRouteTimeNs(), TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Returns the median elapsed time in ns. of route events in the last histogram interval
+	 * @return the median elapsed time in ns. of route events in the last histogram interval
+	 */
+	@ManagedMetric(category="MetricRouter", metricType=MetricType.GAUGE, description="The median elapsed time in ns. of route events in the last histogram interval")
+	public long getRouteTimeP50Ns() {
+		return routeTimesNs.getSnapshot().getP50();
+	}
+	
+	/**
+	 * Returns the 99th percentile elapsed time in ns. of route events in the last histogram interval
+	 * @return the 99th percentile elapsed time in ns. of route events in the last histogram interval
+	 */
+	@ManagedMetric(category="MetricRouter", metricType=MetricType.GAUGE, description="The 99th percentile elapsed time in ns. of route events in the last histogram interval")
+	public long getRouteTimeP99Ns() {
+		return routeTimesNs.getSnapshot().getP99();
+	}
+	
+	/**
+	 * Returns the 99.9th percentile elapsed time in ns. of route events in the last histogram interval
+	 * @return the 99.9th percentile elapsed time in ns. of route events in the last histogram interval
+	 */
+	@ManagedMetric(category="MetricRouter", metricType=MetricType.GAUGE, description="The 99.9th percentile elapsed time in ns. of route events in the last histogram interval")
+	public long getRouteTimeP999Ns() {
+		return routeTimesNs.getSnapshot().getP999();
+	}
+	
+	/**
+	 * Returns the maximum elapsed time in ns. of route events in the last histogram interval
+	 * @return the maximum elapsed time in ns. of route events in the last histogram interval
+	 */
+	@ManagedMetric(category="MetricRouter", metricType=MetricType.GAUGE, description="The maximum elapsed time in ns. of route events in the last histogram interval")
+	public long getRouteTimeMaxNs() {
+		return routeTimesNs.getSnapshot().getMax();
 	}
 	
 	
@@ -345,7 +378,7 @@ public class PatternRouter extends ServerComponentBean implements UncaughtExcept
 	 */
 	@ManagedMetric(category="MetricRouter", metricType=MetricType.COUNTER, description="The number of metrics routed")
 	public long getRoutedMetricCount() {
-		return getMetricValue("CompletedRoutes");
+		return completedRoutes.get();
 	}
 	
 	/**
@@ -354,7 +387,7 @@ public class PatternRouter extends ServerComponentBean implements UncaughtExcept
 	 */
 	@ManagedMetric(category="MetricRouter", metricType=org.springframework.jmx.support.MetricType.COUNTER, description="The number of metrics dropped in routing")
 	public long getDroppedMetricCount() {
-		return getMetricValue("DroppedRoutes");
+		return droppedRoutes.get();
 	}
 	
 	
@@ -426,7 +459,7 @@ public class PatternRouter extends ServerComponentBean implements UncaughtExcept
 	@Override
 	public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
 		warn("Pattern Router Rejected execution\n\tTask:", r.getClass().getName(), "\n\tWorker QueueDepth:" + executor.getQueue().size(), new Throwable());
-		incr("DroppedRoutes");
+		droppedRoutes.increment();
 	}
 	
 	
@@ -35,9 +35,8 @@ import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
-import org.cliffc.high_scale_lib.ConcurrentAutoTable;
-import org.cliffc.high_scale_lib.Counter;
 import org.cliffc.high_scale_lib.NonBlockingHashMap;
+import org.helios.apmrouter.collections.StripedCounter;
 import org.helios.apmrouter.logging.APMLogLevel;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedMetric;
@@ -59,7 +58,7 @@ public abstract class ServerComponent {
 	protected APMLogLevel level = APMLogLevel.pCode(log.getEffectiveLevel().toInt());
 	
 	/** Metrics accumulator */
-	protected final NonBlockingHashMap<String, Counter> metrics = new NonBlockingHashMap<String, Counter>();
+	protected final NonBlockingHashMap<String, StripedCounter> metrics = new NonBlockingHashMap<String, StripedCounter>();
 	/** The last reset time of these metrics */
 	protected AtomicLong lastMetricResetTime = new AtomicLong(System.currentTimeMillis());
 	
@@ -259,22 +258,37 @@ public abstract class ServerComponent {
 	 */
 	protected void initCounters() {
 		for(String name: getSupportedMetricNames()) {
-			name = name.trim();
-			if(!metrics.containsKey(name)) {
-				metrics.put(name, new Counter());
-			}
+			mget(name.trim());
 		}
 	}
 	
-	protected Counter mget(String name) {
-		Counter ctr = metrics.get(name);
+	/**
+	 * Returns the named metric counter, creating it if it does not exist
+	 * @param name The name of the metric
+	 * @return the metric counter
+	 */
+	protected StripedCounter mget(String name) {
+		StripedCounter ctr = metrics.get(name);
 		if(ctr==null) {
-			ctr = new Counter();
-			metrics.put(name, ctr);
+			ctr = new StripedCounter();
+			StripedCounter prior = metrics.putIfAbsent(name, ctr);
+			if(prior!=null) ctr = prior;
 		}		
 		return ctr;
 	}
 	
+	/**
+	 * Registers the named metric counter and returns its handle. 
+	 * Components should register their hot path counters once, typically in a field initializer, 
+	 * and update the handle directly rather than calling {@link #incr(String)} which looks the counter up by name on every call.
+	 * The handle is the same counter read by {@link #getMetricValue(String)} and reset by {@link #resetMetrics()}.
+	 * @param name The name of the metric
+	 * @return the metric counter
+	 */
+	protected StripedCounter counter(String name) {
+		return mget(name);
+	}
+	
 	/**
 	 * Increments the named metric by the passed value
 	 * @param name The name of the metric
@@ -338,7 +352,7 @@ public abstract class ServerComponent {
 	 */
 	@ManagedOperation
 	public void resetMetrics() {
-		for(Counter ctr: metrics.values()) {
+		for(StripedCounter ctr: metrics.values()) {
 			ctr.set(0);
 		}
 	}
@@ -111,7 +111,7 @@ public class BaseAgentListener extends ServerComponentBean implements ChannelPip
 			for(Map.Entry<Integer, String> entry: channelHandlers.entrySet()) {
 				ChannelHandler handler = applicationContext.getBean(entry.getValue(), ChannelHandler.class);
 				debug("Resolved Channel Handler [", entry.getValue(), "]");
-				resolvedHandlers.put(beanName, handler);
+				resolvedHandlers.put(entry.getValue(), handler);
 			}
 			info("Resolved [", resolvedHandlers.size(), "] Channel Handlers");
 			socketAddress = new InetSocketAddress(bindHost, bindPort);
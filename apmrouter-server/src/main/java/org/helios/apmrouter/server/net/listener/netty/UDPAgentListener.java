@@ -24,6 +24,8 @@
  */
 package org.helios.apmrouter.server.net.listener.netty;
 
+import org.helios.apmrouter.OpCode;
+import org.helios.apmrouter.sender.netty.UDPSender;
 import org.helios.apmrouter.server.services.session.ChannelType;
 import org.helios.apmrouter.server.services.session.SharedChannelGroup;
 import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
@@ -36,10 +38,19 @@ import org.jboss.netty.channel.socket.nio.NioDatagramChannelFactory;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * <p>Title: UDPAgentListener</p>
- * <p>Description: Service to listen for agent requests over UDP.</p> 
+ * <p>Description: Service to listen for agent requests over UDP.</p>
+ * <p>The listener binds {@link #getSocketCount()} datagram sockets on consecutive ports starting at the bind port, each drained by its own
+ * NIO worker thread. Agents are told the port range in the {@link OpCode#HELLO_CONFIRM} and pick one socket by a stable hash of their identity (see {@link UDPSender#socketIndex(String, int)}), 
+ * so the kernel receive load is spread across sockets. Decoding and routing run in the pipeline's execution handler, so the reader threads only drain the sockets.</p> 
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>org.helios.apmrouter.server.net.listener.netty.UDPAgentListener</code></p>
@@ -50,10 +61,25 @@ public class UDPAgentListener extends BaseAgentListener {
 	protected NioDatagramChannelFactory channelFactory;  
 	/** The agent listener bootstrap */
 	protected ConnectionlessBootstrap bstrap; 
-	/** The server channel */
+	/** The server channel bound to the bind port */
 	protected NioDatagramChannel serverChannel;
+	/** All the bound server channels, in port order */
+	protected final List<NioDatagramChannel> serverChannels = new CopyOnWriteArrayList<NioDatagramChannel>();
+	/** The number of datagram sockets to bind */
+	protected int socketCount = 1;
+	/** The maximum datagram size in bytes */
+	protected int maxDatagramSize = DEFAULT_MAX_DATAGRAM_SIZE;
+	/** The socket receive buffer size in bytes. Zero or less uses the OS default */
+	protected int socketReceiveBufferSize = 0;
+	
+	/**
+	 * The default maximum datagram size. Agent metric datagrams are split at {@link UDPSender#MAXSIZE}, 
+	 * but JMX responses and notifications from agents are larger and would be truncated at that size.
+	 */
+	public static final int DEFAULT_MAX_DATAGRAM_SIZE = 8192;
+	/** The maximum UDP payload size */
+	public static final int MAX_UDP_PAYLOAD = 65507;
 	
-
 	/**
 	 * {@inheritDoc}
 	 * @see org.helios.apmrouter.server.net.listener.netty.BaseAgentListener#doStart()
@@ -61,10 +87,13 @@ public class UDPAgentListener extends BaseAgentListener {
 	@Override
 	protected void doStart() throws Exception {
 		super.doStart();
-		channelFactory = new NioDatagramChannelFactory(workerPool);	
+		channelFactory = new NioDatagramChannelFactory(workerPool, socketCount);	
 		bstrap = new ConnectionlessBootstrap(channelFactory);
 		bstrap.setOptions(channelOptions);
-		bstrap.setOption("receiveBufferSizePredictorFactory", new FixedReceiveBufferSizePredictorFactory(1024));
+		bstrap.setOption("receiveBufferSizePredictorFactory", new FixedReceiveBufferSizePredictorFactory(maxDatagramSize));
+		if(socketReceiveBufferSize>0) {
+			bstrap.setOption("receiveBufferSize", socketReceiveBufferSize);
+		}
 		bstrap.setPipelineFactory(this);
 	}
 	
@@ -75,17 +104,23 @@ public class UDPAgentListener extends BaseAgentListener {
 	 * @param cre The context refreshed event
 	 */
 	public void onApplicationContextRefresh(ContextRefreshedEvent cre) {
-		serverChannel = (NioDatagramChannel)bstrap.bind(socketAddress);
-		SharedChannelGroup.getInstance().add(serverChannel, ChannelType.UDP_SERVER, getClass().getSimpleName());
+		for(int i = 0; i < socketCount; i++) {
+			InetSocketAddress address = new InetSocketAddress(socketAddress.getAddress(), socketAddress.getPort() + i);
+			NioDatagramChannel channel = (NioDatagramChannel)bstrap.bind(address);
+			channel.getConfig().setBufferFactory(new DirectChannelBufferFactory());
+			channel.setAttachment(new SocketRange(socketAddress.getPort(), socketCount));
+			SharedChannelGroup.getInstance().add(channel, ChannelType.UDP_SERVER, getClass().getSimpleName() + (i==0 ? "" : ("#" + i)));
+			serverChannels.add(channel);
+			info("Started UDP listener on [", address, "] with receive buffer [", channel.getConfig().getReceiveBufferSize(), "]");
+		}
+		serverChannel = serverChannels.get(0);
 		closeFuture = serverChannel.getCloseFuture();
 		closeFuture.addListener(new ChannelFutureListener() {
 			public void operationComplete(ChannelFuture future) throws Exception {
 				connected.set(false);
 			}
 		});		
-		serverChannel.getConfig().setBufferFactory(new DirectChannelBufferFactory());
 		connected.set(true);
-		info("Started UDP listener on [", socketAddress , "]");		
 	}
 	
 	
@@ -96,17 +131,107 @@ public class UDPAgentListener extends BaseAgentListener {
 	@Override
 	protected void doStop() {
 		info("Closing ChannelGroup....");
+		for(NioDatagramChannel channel: serverChannels) {
+			channel.close();
+		}
+		serverChannels.clear();
 		info("Closing ChannelFactory....");
 		channelFactory.releaseExternalResources();
 		super.doStop();
 	}
-		
-
 	
+	/**
+	 * Returns the number of datagram sockets bound on consecutive ports starting at the bind port
+	 * @return the number of datagram sockets
+	 */
+	@ManagedAttribute(description="The number of datagram sockets bound on consecutive ports starting at the bind port")
+	public int getSocketCount() {
+		return socketCount;
+	}
 
-	
+	/**
+	 * Sets the number of datagram sockets bound on consecutive ports starting at the bind port
+	 * @param socketCount the number of datagram sockets
+	 */
+	public void setSocketCount(int socketCount) {
+		if(isStarted()) throw new IllegalStateException("Cannot set the socket count once listener is bound", new Throwable());
+		if(socketCount<1) throw new IllegalArgumentException("Invalid socket count [" + socketCount + "]", new Throwable());
+		this.socketCount = socketCount;
+	}
 
+	/**
+	 * Returns the maximum datagram size in bytes
+	 * @return the maximum datagram size in bytes
+	 */
+	@ManagedAttribute(description="The maximum datagram size in bytes")
+	public int getMaxDatagramSize() {
+		return maxDatagramSize;
+	}
+
+	/**
+	 * Sets the maximum datagram size in bytes
+	 * @param maxDatagramSize the maximum datagram size in bytes
+	 */
+	public void setMaxDatagramSize(int maxDatagramSize) {
+		if(isStarted()) throw new IllegalStateException("Cannot set the maximum datagram size once listener is bound", new Throwable());
+		if(maxDatagramSize<UDPSender.MAXSIZE || maxDatagramSize>MAX_UDP_PAYLOAD) throw new IllegalArgumentException("Invalid maximum datagram size [" + maxDatagramSize + "]", new Throwable());
+		this.maxDatagramSize = maxDatagramSize;
+	}
+
+	/**
+	 * Returns the requested socket receive buffer size in bytes
+	 * @return the requested socket receive buffer size in bytes
+	 */
+	@ManagedAttribute(description="The requested socket receive buffer size in bytes")
+	public int getSocketReceiveBufferSize() {
+		return socketReceiveBufferSize;
+	}
+
+	/**
+	 * Sets the requested socket receive buffer size in bytes. Zero or less uses the OS default. 
+	 * @param socketReceiveBufferSize the requested socket receive buffer size in bytes
+	 */
+	public void setSocketReceiveBufferSize(int socketReceiveBufferSize) {
+		if(isStarted()) throw new IllegalStateException("Cannot set the socket receive buffer size once listener is bound", new Throwable());
+		this.socketReceiveBufferSize = socketReceiveBufferSize;
+	}
 	
+	/**
+	 * <p>Title: SocketRange</p>
+	 * <p>Description: The port range of a multi-socket listener, attached to each of its channels so the 
+	 * {@link OpCode#HELLO_CONFIRM} can tell agents which ports they can spread across</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>org.helios.apmrouter.server.net.listener.netty.UDPAgentListener.SocketRange</code></p>
+	 */
+	public static class SocketRange {
+		/** The first port in the range */
+		public final int basePort;
+		/** The number of consecutive ports */
+		public final int count;
+		
+		/**
+		 * Creates a new SocketRange
+		 * @param basePort The first port in the range
+		 * @param count The number of consecutive ports
+		 */
+		public SocketRange(int basePort, int count) {
+			this.basePort = basePort;
+			this.count = count;
+		}
+	}
 	
-
+	/**
+	 * Returns the ports the listener is bound to
+	 * @return the bound ports
+	 */
+	@ManagedAttribute(description="The ports the listener is bound to")
+	public int[] getBoundPorts() {
+		List<NioDatagramChannel> channels = new ArrayList<NioDatagramChannel>(serverChannels);
+		int[] ports = new int[channels.size()];
+		for(int i = 0; i < ports.length; i++) {
+			ports[i] = channels.get(i).getLocalAddress().getPort();
+		}
+		return ports;
+	}
 }
@@ -38,8 +38,8 @@ import java.util.concurrent.TimeoutException;
 
 import org.helios.apmrouter.OpCode;
 import org.helios.apmrouter.catalog.MetricCatalogService;
-import org.helios.apmrouter.collections.ConcurrentLongSlidingWindow;
-import org.helios.apmrouter.collections.LongSlidingWindow;
+import org.helios.apmrouter.collections.LatencyHistogram;
+import org.helios.apmrouter.collections.StripedCounter;
 import org.helios.apmrouter.metric.ICEMetric;
 import org.helios.apmrouter.metric.IMetric;
 import org.helios.apmrouter.metric.catalog.ICEMetricCatalog;
@@ -83,10 +83,24 @@ public class AgentMetricHandler extends AbstractAgentRequestHandler implements M
 	/** A timeout map of agent addresses for which there is a pending reset confirm */
 	protected final TimeoutQueueMap<SocketAddress, SocketAddress> pendingResets = new TimeoutQueueMap<SocketAddress, SocketAddress>(15000);
 	
-	/** Sliding window of processMetrics elapsed times in ns. */
-	protected final LongSlidingWindow processMetricsTimesNs = new ConcurrentLongSlidingWindow(60);
-	/** Sliding window of processMetrics elapsed time per metric in ns. */
-	protected final LongSlidingWindow processTimePerMetricNs = new ConcurrentLongSlidingWindow(60);
+	/** Histogram of processMetrics elapsed times in ns. */
+	protected final LatencyHistogram processMetricsTimesNs = new LatencyHistogram();
+	/** Histogram of processMetrics elapsed time per metric in ns. */
+	protected final LatencyHistogram processTimePerMetricNs = new LatencyHistogram();
+	/** The last processMetrics elapsed time in ns. */
+	protected volatile long lastProcessTimeNs = -1L;
+	/** The last processMetrics elapsed time per metric in ns. */
+	protected volatile long lastPerMetricTimeNs = -1L;
+	/** The bytes received counter */
+	protected final StripedCounter bytesReceived = counter("BytesReceived");
+	/** The metrics received counter */
+	protected final StripedCounter metricsReceived = counter("MetricsReceived");
+	/** The non-tokenized metrics received counter */
+	protected final StripedCounter nonTokenizedMetrics = counter("NonTokenizedMetrics");
+	/** The confirms sent counter */
+	protected final StripedCounter confirmsSent = counter("ConfirmsSent");
+	/** The tokens sent counter */
+	protected final StripedCounter tokensSent = counter("TokensSent");
 
 	
 	/** The OpCodes this handler accepts */
@@ -107,16 +121,52 @@ public class AgentMetricHandler extends AbstractAgentRequestHandler implements M
 	 */
 	@ManagedMetric(category="LastProcessTimeNs", metricType=MetricType.GAUGE, description="The last elapsed time to process metrics in ns.")
 	public long getLastProcessTimeNs() {
-		return processMetricsTimesNs.isEmpty() ? -1L : processMetricsTimesNs.get(0);
+		return lastProcessTimeNs;
 	}
 	
 	/**
-	 * Returns the rolling average elapsed time to process metrics in ns.
-	 * @return the rolling average elapsed time to process metrics in ns.
+	 * Returns the average elapsed time to process metrics in ns. in the last histogram interval
+	 * @return the average elapsed time to process metrics in ns. in the last histogram interval
 	 */
-	@ManagedMetric(category="AverageProcessTimeNs", metricType=MetricType.GAUGE, description="The rolling average elapsed time to process metrics in ns.")
+	@ManagedMetric(category="AverageProcessTimeNs", metricType=MetricType.GAUGE, description="The average elapsed time to process metrics in ns. in the last histogram interval")
 	public long getAverageProcessTimeNs() {
-		return processMetricsTimesNs.isEmpty() ? -1L : processMetricsTimesNs.avg();
+		return processMetricsTimesNs.getSnapshot().getMean();
+	}
+	
+	/**
+	 * Returns the median elapsed time to process metrics in ns. in the last histogram interval
+	 * @return the median elapsed time to process metrics in ns. in the last histogram interval
+	 */
+	@ManagedMetric(category="ProcessTimeNs", metricType=MetricType.GAUGE, description="The median elapsed time to process metrics in ns. in the last histogram interval")
+	public long getProcessTimeP50Ns() {
+		return processMetricsTimesNs.getSnapshot().getP50();
+	}
+	
+	/**
+	 * Returns the 99th percentile elapsed time to process metrics in ns. in the last histogram interval
+	 * @return the 99th percentile elapsed time to process metrics in ns. in the last histogram interval
+	 */
+	@ManagedMetric(category="ProcessTimeNs", metricType=MetricType.GAUGE, description="The 99th percentile elapsed time to process metrics in ns. in the last histogram interval")
+	public long getProcessTimeP99Ns() {
+		return processMetricsTimesNs.getSnapshot().getP99();
+	}
+	
+	/**
+	 * Returns the 99.9th percentile elapsed time to process metrics in ns. in the last histogram interval
+	 * @return the 99.9th percentile elapsed time to process metrics in ns. in the last histogram interval
+	 */
+	@ManagedMetric(category="ProcessTimeNs", metricType=MetricType.GAUGE, description="The 99.9th percentile elapsed time to process metrics in ns. in the last histogram interval")
+	public long getProcessTimeP999Ns() {
+		return processMetricsTimesNs.getSnapshot().getP999();
+	}
+	
+	/**
+	 * Returns the maximum elapsed time to process metrics in ns. in the last histogram interval
+	 * @return the maximum elapsed time to process metrics in ns. in the last histogram interval
+	 */
+	@ManagedMetric(category="ProcessTimeNs", metricType=MetricType.GAUGE, description="The maximum elapsed time to process metrics in ns. in the last histogram interval")
+	public long getProcessTimeMaxNs() {
+		return processMetricsTimesNs.getSnapshot().getMax();
 	}
 	
 	/**
@@ -125,20 +175,26 @@ public class AgentMetricHandler extends AbstractAgentRequestHandler implements M
 	 */
 	@ManagedMetric(category="LastPerMetricTimeNs", metricType=MetricType.GAUGE, description="The last per metric processing elapsed time in ns.")
 	public long getLastPerMetricTimeNs() {
-		return processTimePerMetricNs.isEmpty() ? -1L : processTimePerMetricNs.get(0);
+		return lastPerMetricTimeNs;
 	}
 	
 	/**
-	 * Returns the rolling average per metric processing elapsed time in ns.
-	 * @return the rolling average per metric processing elapsed time in ns.
+	 * Returns the average per metric processing elapsed time in ns. in the last histogram interval
+	 * @return the average per metric processing elapsed time in ns. in the last histogram interval
 	 */
-	@ManagedMetric(category="AveragePerMetricTimeNs", metricType=MetricType.GAUGE, description="The rolling average per metric processing elapsed time in ns.")
+	@ManagedMetric(category="AveragePerMetricTimeNs", metricType=MetricType.GAUGE, description="The average per metric processing elapsed time in ns. in the last histogram interval")
 	public long getAveragePerMetricTimeNs() {
-		return processTimePerMetricNs.isEmpty() ? -1L : processTimePerMetricNs.avg();
+		return processTimePerMetricNs.getSnapshot().getMean();
 	}
 	
-	
-
+	/**
+	 * Returns the 99th percentile per metric processing elapsed time in ns. in the last histogram interval
+	 * @return the 99th percentile per metric processing elapsed time in ns. in the last histogram interval
+	 */
+	@ManagedMetric(category="PerMetricTimeNs", metricType=MetricType.GAUGE, description="The 99th percentile per metric processing elapsed time in ns. in the last histogram interval")
+	public long getPerMetricTimeP99Ns() {
+		return processTimePerMetricNs.getSnapshot().getP99();
+	}
 	
 	
 	/**
@@ -155,7 +211,7 @@ public class AgentMetricHandler extends AbstractAgentRequestHandler implements M
 			incr("ResetConfirmsReceived");
 			return;
 		}
-		incr("BytesReceived", buff.getInt(2));
+		bytesReceived.add(buff.getInt(2));
 		DirectMetricCollection dmc = DirectMetricCollection.fromChannelBuffer(buff);		
 //		int byteOrder = buff.getByte(1);
 //		int totalSize = buff.getInt(2);
@@ -201,14 +257,14 @@ public class AgentMetricHandler extends AbstractAgentRequestHandler implements M
 		}	
 		
 		if(metrics!=null) {
-			incr("MetricsReceived", metrics.size());
+			metricsReceived.add(metrics.size());
 			if(channel!=null && remoteAddress!=null) {
 				for(final IMetric metric: metrics) {
 					if(opCode==OpCode.SEND_METRIC_DIRECT) {
 						sendConfirm(channel, remoteAddress,  metric);
 					}
 					if(metric.getToken()==-1) {			
-						incr("NonTokenizedMetrics");
+						nonTokenizedMetrics.increment();
 						sendToken(channel, remoteAddress,  metric);
 					}			
 				}
@@ -218,8 +274,10 @@ public class AgentMetricHandler extends AbstractAgentRequestHandler implements M
 			long elapsed = System.nanoTime()-startTime;
 			int metricCount = metrics.size();
 			long perMetric = rate(elapsed, metricCount);
-			processMetricsTimesNs.insert(elapsed);
-			processTimePerMetricNs.insert(perMetric);
+			processMetricsTimesNs.record(elapsed);
+			processTimePerMetricNs.record(perMetric);
+			lastProcessTimeNs = elapsed;
+			lastPerMetricTimeNs = perMetric;
 		}
 		
 	}
@@ -271,7 +329,7 @@ public class AgentMetricHandler extends AbstractAgentRequestHandler implements M
 			@Override
 			public void operationComplete(ChannelFuture future) throws Exception {
 				if(future.isSuccess()) {
-					incr("ConfirmsSent");
+					confirmsSent.increment();
 				} else {
 					System.err.println("Failed to send confirm for direct metric [" + metric + "]");
 					future.getCause().printStackTrace(System.err);
@@ -318,7 +376,7 @@ public class AgentMetricHandler extends AbstractAgentRequestHandler implements M
 			@Override
 			public void operationComplete(ChannelFuture future) throws Exception {
 				if(future.isSuccess()) {
-					incr("TokensSent");
+					tokensSent.increment();
 				} else {
 					System.err.println("Failed to send token for direct metric [" + metric + "]");
 					future.getCause().printStackTrace(System.err);
@@ -351,7 +409,7 @@ public class AgentMetricHandler extends AbstractAgentRequestHandler implements M
 	 */
 	@ManagedAttribute
 	public long getBytesReceived() {
-		return getMetricValue("BytesReceived");
+		return bytesReceived.get();
 	}
 	
 	/**
@@ -360,7 +418,7 @@ public class AgentMetricHandler extends AbstractAgentRequestHandler implements M
 	 */
 	@ManagedAttribute
 	public long getMetricsReceived() {
-		return getMetricValue("MetricsReceived");
+		return metricsReceived.get();
 	}
 	
 	/**
@@ -369,7 +427,7 @@ public class AgentMetricHandler extends AbstractAgentRequestHandler implements M
 	 */
 	@ManagedAttribute(description="The number of confirms sent")
 	public long getConfirmsSent() {
-		return getMetricValue("ConfirmsSent");
+		return confirmsSent.get();
 	}	
 	
 	/**
@@ -378,7 +436,7 @@ public class AgentMetricHandler extends AbstractAgentRequestHandler implements M
 	 */
 	@ManagedAttribute(description="The number of tokens sent")
 	public long getTokensSent() {
-		return getMetricValue("TokensSent");
+		return tokensSent.get();
 	}
 	
 	/**
@@ -387,7 +445,7 @@ public class AgentMetricHandler extends AbstractAgentRequestHandler implements M
 	 */
 	@ManagedAttribute(description="The number of non-tokenized metrics received")
 	public long getNonTokenizedMetrics() {
-		return getMetricValue("NonTokenizedMetrics");
+		return nonTokenizedMetrics.get();
 	}
 	
 	/**
@@ -24,6 +24,7 @@
  */
 package org.helios.apmrouter.server.net.listener.netty.handlers.udp;
 
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.Collection;
 import java.util.EnumMap;
@@ -31,7 +32,9 @@ import java.util.HashSet;
 import java.util.Set;
 
 import org.helios.apmrouter.OpCode;
+import org.helios.apmrouter.catalog.MetricCatalogService;
 import org.helios.apmrouter.jmx.mbeanserver.AgentMBeanServerConnectionFactory;
+import org.helios.apmrouter.server.net.listener.netty.UDPAgentListener.SocketRange;
 import org.helios.apmrouter.server.net.listener.netty.handlers.AbstractAgentRequestHandler;
 import org.helios.apmrouter.server.net.listener.netty.handlers.AgentRequestHandler;
 import org.helios.apmrouter.server.services.session.DecoratedChannel;
@@ -65,7 +68,17 @@ public class UDPAgentOperationRouter extends AbstractAgentRequestHandler impleme
 
 	/** A map of agent request handlers keyed by the opcode */
 	protected final EnumMap<OpCode, AgentRequestHandler> handlers = new EnumMap<OpCode, AgentRequestHandler>(OpCode.class);
+	/** The metric catalog service whose epoch is advertised to agents */
+	protected MetricCatalogService metricCatalogService = null;
 	
+	/**
+	 * Sets the metric catalog service
+	 * @param metricCatalogService the metric catalog service
+	 */
+	@Autowired(required=false)
+	public void setMetricCatalogService(MetricCatalogService metricCatalogService) {
+		this.metricCatalogService = metricCatalogService;
+	}
 	
 	
 	/**
@@ -237,8 +250,19 @@ public class UDPAgentOperationRouter extends AbstractAgentRequestHandler impleme
 		} else if(opCode==OpCode.HELLO) {
 			getChannelForRemote(channel, remoteAddress);
 			info("Agent at [", remoteAddress, "] sent HELLO");
-			ChannelBuffer cb = ChannelBuffers.directBuffer(1);
+			// Tell the agent the port range so it can pick its socket, and the catalog epoch so it can revalidate its tokens
+			ChannelBuffer cb = ChannelBuffers.directBuffer(1 + 4 + 4 + 8);
 			cb.writeByte(OpCode.HELLO_CONFIRM.op());
+			Object attachment = channel.getAttachment();
+			if(attachment instanceof SocketRange && ((SocketRange)attachment).count>1) {
+				SocketRange range = (SocketRange)attachment;
+				cb.writeInt(range.basePort);
+				cb.writeInt(range.count);
+			} else {
+				cb.writeInt(((InetSocketAddress)channel.getLocalAddress()).getPort());
+				cb.writeInt(1);
+			}
+			cb.writeLong(metricCatalogService==null ? 0L : metricCatalogService.getCatalogEpoch());
 			channel.write(cb, remoteAddress);
 			sendWho(channel, remoteAddress);
 			
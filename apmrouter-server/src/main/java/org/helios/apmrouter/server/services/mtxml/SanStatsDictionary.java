@@ -0,0 +1,340 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.server.services.mtxml;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * <p>Title: SanStatsDictionary</p>
+ * <p>Description: A per-array dictionary that interns the dimension names (vv names, host names, ports) found in san stats xml
+ * into integer IDs and resolves each distinct dimension tuple to a node ID and metric namespace once, retaining the
+ * resolutions across parsing intervals so that a steady state document resolves every vlun without creating any strings.</p>
+ * <p>Also retains the per-node aggregation slots so they can be reused from one document to the next.</p>
+ * <p>This class is <b><i>not</i></b> thread-safe. Callers must synchronize on the dictionary for the duration of a document.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.server.services.mtxml.SanStatsDictionary</code></p>
+ */
+
+public class SanStatsDictionary {
+	/** The number of dimensions in a vlun tuple */
+	public static final int DIMENSIONS = 5;
+	/** The number of raw counter slots aggregated per node */
+	public static final int TOTAL_SLOTS = 12;
+	/** The number of calculated slots aggregated per node */
+	public static final int CALCED_SLOTS = 10;
+	/** The no entry marker in the open addressed tables */
+	private static final int EMPTY = -1;
+	
+	/** The granularity format */
+	protected final String gformat;
+	/** The array system name */
+	protected final String systemName;
+	
+	/** The interned name bytes indexed by name ID */
+	private byte[][] nameBytes = new byte[256][];
+	/** The interned names indexed by name ID */
+	private String[] names = new String[256];
+	/** The hash codes of the interned names indexed by name ID */
+	private int[] nameHashes = new int[256];
+	/** The open addressed name table containing name IDs */
+	private int[] nameTable = newTable(512);
+	/** The number of interned names */
+	private int nameCount = 0;
+	
+	/** The interned dimension tuples, {@link #DIMENSIONS} name IDs per tuple */
+	private int[] tuples = new int[256 * DIMENSIONS];
+	/** The node ID for each tuple indexed by tuple ID */
+	private int[] tupleNodes = new int[256];
+	/** The open addressed tuple table containing tuple IDs */
+	private int[] tupleTable = newTable(512);
+	/** The number of interned tuples */
+	private int tupleCount = 0;
+	
+	/** The node IDs keyed by the formatted node key. Only consulted when a new tuple is seen. */
+	private final Map<String, Integer> nodeIds = new HashMap<String, Integer>(256);
+	/** The formatted node keys indexed by node ID */
+	private String[] nodeKeys = new String[256];
+	/** The metric namespaces indexed by node ID */
+	private String[][] nodeNamespaces = new String[256][];
+	/** The number of nodes */
+	private int nodeCount = 0;
+	
+	/** The raw counter aggregation slots, {@link #TOTAL_SLOTS} per node */
+	long[] totals = new long[256 * TOTAL_SLOTS];
+	/** The calculated aggregation slots, {@link #CALCED_SLOTS} per node */
+	long[] calced = new long[256 * CALCED_SLOTS];
+	/** Indicates if a node was seen in the current document */
+	boolean[] touched = new boolean[256];
+
+	/**
+	 * Creates a new SanStatsDictionary
+	 * @param gformat The granularity format
+	 * @param systemName The array system name
+	 */
+	public SanStatsDictionary(String gformat, String systemName) {
+		this.gformat = gformat;
+		this.systemName = systemName;
+	}
+	
+	/**
+	 * Creates a new empty open addressed table
+	 * @param size The size of the table, which must be a power of 2
+	 * @return the new table
+	 */
+	private static int[] newTable(int size) {
+		int[] table = new int[size];
+		Arrays.fill(table, EMPTY);
+		return table;
+	}
+	
+	/**
+	 * Interns the name in the passed buffer range and returns its ID
+	 * @param b The buffer containing the name bytes
+	 * @param offset The offset of the first byte of the name in the buffer
+	 * @param length The length of the name
+	 * @return the name ID
+	 */
+	public int intern(ChannelBuffer b, int offset, int length) {
+		int h = 0x811C9DC5;
+		for(int i = 0; i < length; i++) {
+			h = (h ^ b.getByte(offset + i)) * 0x01000193;
+		}
+		final int mask = nameTable.length-1;
+		int slot = h & mask;
+		while(true) {
+			int id = nameTable[slot];
+			if(id==EMPTY) break;
+			if(nameHashes[id]==h && equals(nameBytes[id], b, offset, length)) return id;
+			slot = (slot+1) & mask;
+		}
+		if(nameCount==names.length) {
+			int newSize = nameCount << 1;
+			names = Arrays.copyOf(names, newSize);
+			nameBytes = Arrays.copyOf(nameBytes, newSize);
+			nameHashes = Arrays.copyOf(nameHashes, newSize);
+		}
+		int id = nameCount++;
+		byte[] bytes = new byte[length];
+		b.getBytes(offset, bytes);
+		nameBytes[id] = bytes;
+		names[id] = new String(bytes);
+		nameHashes[id] = h;
+		nameTable[slot] = id;
+		if(nameCount*2 > nameTable.length) {
+			nameTable = newTable(nameTable.length << 1);
+			for(int i = 0; i < nameCount; i++) {
+				int s = nameHashes[i] & (nameTable.length-1);
+				while(nameTable[s]!=EMPTY) s = (s+1) & (nameTable.length-1);
+				nameTable[s] = i;
+			}
+		}
+		return id;
+	}
+	
+	/**
+	 * Compares the passed bytes with the passed buffer range
+	 * @param bytes The bytes to compare
+	 * @param b The buffer to compare
+	 * @param offset The offset of the range in the buffer
+	 * @param length The length of the range
+	 * @return true if equal, false otherwise
+	 */
+	private static boolean equals(byte[] bytes, ChannelBuffer b, int offset, int length) {
+		if(bytes.length!=length) return false;
+		for(int i = 0; i < length; i++) {
+			if(bytes[i]!=b.getByte(offset + i)) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the node ID for the passed dimension tuple, resolving a new node the first time the tuple is seen
+	 * @param dims The array containing the name IDs of the tuple
+	 * @param offset The offset of the tuple's first name ID in the array
+	 * @return the node ID
+	 */
+	public int node(int[] dims, int offset) {
+		int h = 17;
+		for(int i = 0; i < DIMENSIONS; i++) {
+			h = h * 31 + dims[offset + i];
+		}
+		h ^= (h >>> 16);
+		final int mask = tupleTable.length-1;
+		int slot = h & mask;
+		while(true) {
+			int id = tupleTable[slot];
+			if(id==EMPTY) break;
+			if(tupleEquals(id, dims, offset)) return tupleNodes[id];
+			slot = (slot+1) & mask;
+		}
+		if(tupleCount==tupleNodes.length) {
+			tupleNodes = Arrays.copyOf(tupleNodes, tupleCount << 1);
+			tuples = Arrays.copyOf(tuples, (tupleCount << 1) * DIMENSIONS);
+		}
+		int id = tupleCount++;
+		System.arraycopy(dims, offset, tuples, id * DIMENSIONS, DIMENSIONS);
+		tupleNodes[id] = resolveNode(dims, offset);
+		tupleTable[slot] = id;
+		if(tupleCount*2 > tupleTable.length) {
+			tupleTable = newTable(tupleTable.length << 1);
+			for(int i = 0; i < tupleCount; i++) {
+				int th = 17;
+				for(int d = 0; d < DIMENSIONS; d++) {
+					th = th * 31 + tuples[i * DIMENSIONS + d];
+				}
+				th ^= (th >>> 16);
+				int s = th & (tupleTable.length-1);
+				while(tupleTable[s]!=EMPTY) s = (s+1) & (tupleTable.length-1);
+				tupleTable[s] = i;
+			}
+		}
+		return tupleNodes[id];
+	}
+	
+	/**
+	 * Determines if the interned tuple with the passed ID is equal to the passed tuple
+	 * @param id The interned tuple ID
+	 * @param dims The array containing the tuple to compare
+	 * @param offset The offset of the tuple in the array
+	 * @return true if equal, false otherwise
+	 */
+	private boolean tupleEquals(int id, int[] dims, int offset) {
+		final int base = id * DIMENSIONS;
+		for(int i = 0; i < DIMENSIONS; i++) {
+			if(tuples[base + i]!=dims[offset + i]) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Formats the node key for a new tuple and returns the matching node ID, creating a new node if required.
+	 * Different tuples can resolve to the same node when the granularity format does not use all the dimensions.
+	 * @param dims The array containing the name IDs of the tuple
+	 * @param offset The offset of the tuple's first name ID in the array
+	 * @return the node ID
+	 */
+	private int resolveNode(int[] dims, int offset) {
+		String nodeKey = String.format(gformat, 
+				systemName,
+				names[dims[offset]],
+				names[dims[offset+1]],
+				names[dims[offset+2]],
+				names[dims[offset+3]],
+				names[dims[offset+4]]
+		);
+		Integer nodeId = nodeIds.get(nodeKey);
+		if(nodeId!=null) return nodeId;
+		if(nodeCount==nodeKeys.length) {
+			int newSize = nodeCount << 1;
+			nodeKeys = Arrays.copyOf(nodeKeys, newSize);
+			nodeNamespaces = Arrays.copyOf(nodeNamespaces, newSize);
+			totals = Arrays.copyOf(totals, newSize * TOTAL_SLOTS);
+			calced = Arrays.copyOf(calced, newSize * CALCED_SLOTS);
+			touched = Arrays.copyOf(touched, newSize);
+		}
+		int id = nodeCount++;
+		nodeKeys[id] = nodeKey;
+		String ns = nodeKey.trim();
+		while(ns.startsWith("/")) {
+			ns = ns.substring(1);
+		}
+		nodeNamespaces[id] = ns.trim().split("/");
+		nodeIds.put(nodeKey, id);
+		return id;
+	}
+	
+	/**
+	 * Clears the aggregation slots in preparation for a new document
+	 */
+	void resetAggregates() {
+		Arrays.fill(totals, 0, nodeCount * TOTAL_SLOTS, 0L);
+		Arrays.fill(calced, 0, nodeCount * CALCED_SLOTS, 0L);
+		Arrays.fill(touched, 0, nodeCount, false);
+	}
+	
+	/**
+	 * Returns the number of interned names
+	 * @return the number of interned names
+	 */
+	public int getNameCount() {
+		return nameCount;
+	}
+	
+	/**
+	 * Returns the number of interned dimension tuples
+	 * @return the number of interned dimension tuples
+	 */
+	public int getTupleCount() {
+		return tupleCount;
+	}
+
+	/**
+	 * Returns the number of resolved nodes
+	 * @return the number of resolved nodes
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+	
+	/**
+	 * Returns the formatted node key for the passed node ID
+	 * @param nodeId The node ID
+	 * @return the node key
+	 */
+	public String getNodeKey(int nodeId) {
+		return nodeKeys[nodeId];
+	}
+	
+	/**
+	 * Returns the metric namespace for the passed node ID
+	 * @param nodeId The node ID
+	 * @return the metric namespace
+	 */
+	public String[] getNamespace(int nodeId) {
+		return nodeNamespaces[nodeId];
+	}
+
+	/**
+	 * Returns the array system name
+	 * @return the array system name
+	 */
+	public String getSystemName() {
+		return systemName;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return new StringBuilder("SanStatsDictionary[").append(systemName).append("] names:").append(nameCount).append(" tuples:").append(tupleCount).append(" nodes:").append(nodeCount).toString();
+	}
+}
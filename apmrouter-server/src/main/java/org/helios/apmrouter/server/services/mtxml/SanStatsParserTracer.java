@@ -84,6 +84,10 @@ public class SanStatsParserTracer extends ServerComponentBean implements Channel
 	protected TimeUnit parseQueueTimeoutUnit = TimeUnit.MILLISECONDS;	
 	/** The parsing task queue */
 	protected BlockingQueue<ChannelBuffer> parseQueue = null;
+	/** Indicates if documents are processed with the streaming parser rather than the per-vlun map parser */
+	protected boolean streaming = true;
+	/** The streaming parser */
+	protected final SanStatsStreamingParser streamingParser;
 	
 	
 	/** The granularity formatter */
@@ -115,6 +119,8 @@ public class SanStatsParserTracer extends ServerComponentBean implements Channel
 	 */
 	public SanStatsParserTracer(String gformat) {
 		this.gformat = gformat;
+		streamingParser = new SanStatsStreamingParser(gformat);
+		streamingParser.setMaxSections(parseWorkers);
 	}
 	
 	/** The name of this decoder in the pipeline */
@@ -226,6 +232,7 @@ public class SanStatsParserTracer extends ServerComponentBean implements Channel
 		fileProcessingTimesNs.clear();
 		segmentProcessingTimesNs.clear();
 		processedFiles.set(0L);
+		streamingParser.resetMetrics();
 		super.resetMetrics();
 	}
 	
@@ -370,6 +377,10 @@ public class SanStatsParserTracer extends ServerComponentBean implements Channel
 			runTestData.set(true);
 		}
 		final int bufferSize = b.readableBytes();
+		if(streaming) {
+			processStreaming(b, bufferSize);
+			return;
+		}
 		
 		final SanStatsParsingContext ctx = new SanStatsParsingContext(gformat, runTestData.get());
 		long fileStart = System.nanoTime();
@@ -473,6 +484,20 @@ public class SanStatsParserTracer extends ServerComponentBean implements Channel
 	}
 	
 	
+	/**
+	 * Processes a SAN stats xml buffer using the streaming parser
+	 * @param b A channel buffer containing the bytes of the SAN stats xml to process
+	 * @param bufferSize The readable bytes in the buffer
+	 */
+	protected void processStreaming(ChannelBuffer b, int bufferSize) {
+		long fileStart = System.nanoTime();
+		int traced = streamingParser.process(b, threadPool, ServerTracerFactory.getInstance().getTracer(), runTestData.get());
+		processedFiles.incrementAndGet();
+		long elapsed = System.nanoTime()-fileStart;
+		fileProcessingTimesNs.insert(elapsed);
+		info("Processed SanStats Buffer [", bufferSize, "] and traced [", traced, "] metrics in [", TimeUnit.MILLISECONDS.convert(elapsed, TimeUnit.NANOSECONDS), "] ms.");
+	}
+	
 	/**
 	 * Returns the next vlun xml fragment in a sub-buffer
 	 * @param b The buffer to read from
@@ -713,6 +738,7 @@ public class SanStatsParserTracer extends ServerComponentBean implements Channel
 	@ManagedAttribute(description="The parse queue completion timeout")
 	public void setParseQueueTimeout(long parseQueueTimeout) {
 		this.parseQueueTimeout = parseQueueTimeout;
+		streamingParser.setSectionTimeout(this.parseQueueTimeout, this.parseQueueTimeoutUnit);
 	}
 
 
@@ -735,10 +761,47 @@ public class SanStatsParserTracer extends ServerComponentBean implements Channel
 	@ManagedAttribute(description="The parse queue completion timeout unit")
 	public void setParseQueueTimeoutUnit(String parseQueueTimeoutUnit) {
 		this.parseQueueTimeoutUnit = TimeUnit.valueOf(parseQueueTimeoutUnit.trim().toUpperCase());
+		streamingParser.setSectionTimeout(this.parseQueueTimeout, this.parseQueueTimeoutUnit);
 	}
 
 
 
+	/**
+	 * Indicates if documents are processed with the streaming parser
+	 * @return true if documents are processed with the streaming parser, false if they are processed with the per-vlun map parser
+	 */
+	@ManagedAttribute(description="Indicates if documents are processed with the streaming parser")
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * Sets the parser used to process documents
+	 * @param streaming true to process documents with the streaming parser, false to use the per-vlun map parser
+	 */
+	@ManagedAttribute(description="Indicates if documents are processed with the streaming parser")
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+	
+	/**
+	 * Returns the cummulative number of vluns parsed by the streaming parser
+	 * @return the cummulative number of vluns parsed by the streaming parser
+	 */
+	@ManagedMetric(category="SanStatsParser", displayName="StreamingVlunsParsed", metricType=MetricType.COUNTER, description="The cummulative number of vluns parsed by the streaming parser")
+	public long getStreamingVlunsParsed() {
+		return streamingParser.getVlunsParsed();
+	}
+	
+	/**
+	 * Returns the cummulative number of malformed vluns skipped by the streaming parser
+	 * @return the cummulative number of malformed vluns skipped by the streaming parser
+	 */
+	@ManagedMetric(category="SanStatsParser", displayName="StreamingMalformedVluns", metricType=MetricType.COUNTER, description="The cummulative number of malformed vluns skipped by the streaming parser")
+	public long getStreamingMalformedVluns() {
+		return streamingParser.getMalformedVluns();
+	}
+	
 	/**
 	 * Returns 
 	 * @return the parseWorkers
@@ -755,6 +818,7 @@ public class SanStatsParserTracer extends ServerComponentBean implements Channel
 	 */
 	public void setParseWorkers(int parseWorkers) {
 		this.parseWorkers = parseWorkers;
+		streamingParser.setMaxSections(parseWorkers);
 	}
 
 
@@ -26,6 +26,7 @@ package org.helios.apmrouter.server.services.mtxml;
 
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -381,6 +382,18 @@ the top two would be sum by host and sum by vv_name
 		}
 	}
 	
+	/**
+	 * Returns a copy of the calculated values
+	 * @return a map of calculated values keyed by metric name within a map keyed by the node key
+	 */
+	public Map<String, Map<String, Long>> getCalcedTotals() {
+		Map<String, Map<String, Long>> copy = new HashMap<String, Map<String, Long>>(arrayCalcedTotals.size());
+		for(Map.Entry<String, NonBlockingHashMap<String, Long>> entry: arrayCalcedTotals.entrySet()) {
+			copy.put(entry.getKey(), new HashMap<String, Long>(entry.getValue()));
+		}
+		return copy;
+	}
+	
 	/**
 	 * Returns a positive random int between zero and the passed value.
 	 * @param upTo The max range of the random number
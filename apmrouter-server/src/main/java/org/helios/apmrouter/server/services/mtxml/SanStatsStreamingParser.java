@@ -0,0 +1,632 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.apmrouter.server.services.mtxml;
+
+import static org.helios.apmrouter.server.services.mtxml.SanStatsDictionary.CALCED_SLOTS;
+import static org.helios.apmrouter.server.services.mtxml.SanStatsDictionary.DIMENSIONS;
+import static org.helios.apmrouter.server.services.mtxml.SanStatsDictionary.TOTAL_SLOTS;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.cliffc.high_scale_lib.NonBlockingHashMap;
+import org.helios.apmrouter.trace.ITracer;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * <p>Title: SanStatsStreamingParser</p>
+ * <p>Description: A streaming, byte level parser for 3par san stats xml documents. The <b><code>statvlun</code></b> section of the document
+ * is split at <b><code>statvlun</code></b> boundaries into sections which are scanned in parallel directly from the {@link ChannelBuffer}.
+ * Scanning records only the buffer offsets of the dimension names and the parsed long values, so no strings or maps are created per vlun.
+ * The scanned sections are then aggregated in document order against a {@link SanStatsDictionary} retained across intervals,
+ * which means the output is identical to a sequential {@link SanStatsParsingContext} parse of the same document.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.apmrouter.server.services.mtxml.SanStatsStreamingParser</code></p>
+ */
+
+public class SanStatsStreamingParser {
+	/** Static class logger */
+	protected static final Logger log = Logger.getLogger(SanStatsStreamingParser.class);
+	
+	/** The number of long values read from each vlun */
+	public static final int VALUES = 13;
+	/** The default minimum number of bytes in a parallel parsed section */
+	public static final int DEFAULT_MIN_SECTION_BYTES = 64 * 1024;
+	
+	/** The XML header indicating the start of the statvluns */
+	private static final byte[] ALL_STAT_OPENER = "<all_statvlun>".getBytes();
+	/** The XML footer indicating the end of the statvluns */
+	private static final byte[] ALL_STAT_CLOSER = "</all_statvlun>".getBytes();
+	/** Opener format for statvlun instances */
+	private static final byte[] STATVLUN_OPENER = "<statvlun>".getBytes();
+	/** Opener for system info */
+	private static final byte[] SYSINFO_OPENER = "<system_info>".getBytes();
+	/** Closer for system info */
+	private static final byte[] SYSINFO_CLOSER = "</system_info>".getBytes();
+	/** Opener for the system name */
+	private static final byte[] SYSNAME_OPENER = "<sys_name>".getBytes();
+	/** Closer for the system name */
+	private static final byte[] SYSNAME_CLOSER = "</sys_name>".getBytes();
+	
+	/** The tag index of the statvlun opener */
+	private static final int TAG_VLUN_OPEN = -2;
+	/** The tag index of the statvlun closer */
+	private static final int TAG_VLUN_CLOSE = -3;
+	/** The tag index of an unrecognized tag */
+	private static final int TAG_NONE = -1;
+	/** The leaf tag names, the dimensions first, followed by the values in the order of {@link SanStatsParsingContext#addVLun(Map)} */
+	private static final byte[][] LEAF_TAGS = bytes(
+			SanStatsParsingContext.VVNAME, SanStatsParsingContext.VVHOSTNAME, SanStatsParsingContext.PORTNODE, SanStatsParsingContext.PORTSLOT, SanStatsParsingContext.PORTPORT,
+			SanStatsParsingContext.NOW, SanStatsParsingContext.QUEUE_LENGTH, SanStatsParsingContext.BUSY_TIME, 
+			SanStatsParsingContext.READ_COUNT, SanStatsParsingContext.READ_BYTES, SanStatsParsingContext.READ_ERRORS, SanStatsParsingContext.READ_DROPS, SanStatsParsingContext.READ_TICKS,
+			SanStatsParsingContext.WRITE_COUNT, SanStatsParsingContext.WRITE_BYTES, SanStatsParsingContext.WRITE_ERRORS, SanStatsParsingContext.WRITE_DROPS, SanStatsParsingContext.WRITE_TICKS
+	);
+	/** The statvlun tag name */
+	private static final byte[] VLUN_TAG = "statvlun".getBytes();
+	/** The statvlun closing tag name */
+	private static final byte[] VLUN_END_TAG = "/statvlun".getBytes();
+	/** The bit mask of a vlun with all leaf tags present */
+	private static final int COMPLETE = (1 << LEAF_TAGS.length) - 1;
+	
+	/** The calculated metric names in slot order */
+	private static final String[] CALCED_NAMES = new String[]{
+		SanStatsParsingContext.QLENGTH, SanStatsParsingContext.IOPS, SanStatsParsingContext.BPS, SanStatsParsingContext.SVCTIME, SanStatsParsingContext.IOSIZE, SanStatsParsingContext.BUSYTIME,
+		SanStatsParsingContext.READERRORS, SanStatsParsingContext.READDROPS, SanStatsParsingContext.WRITEERRORS, SanStatsParsingContext.WRITEDROPS
+	};
+	/** The number of calculated slots traced as gauges. The remainder are traced as delta gauges. */
+	private static final int GAUGE_SLOTS = 6;
+	/** The random test value ranges for each calculated slot */
+	private static final int[] TEST_VALUE_RANGES = new int[]{10, 100, 10000, 500000, 2000000, 5, 10, 10, 10, 10};
+	
+	/** The granularity format */
+	protected final String gformat;
+	/** The dictionaries keyed by array system name */
+	protected final NonBlockingHashMap<String, SanStatsDictionary> dictionaries = new NonBlockingHashMap<String, SanStatsDictionary>();
+	/** The minimum number of bytes in a parallel parsed section */
+	protected int minSectionBytes = DEFAULT_MIN_SECTION_BYTES;
+	/** The maximum number of sections a document is split into */
+	protected int maxSections = 5;
+	/** The timeout waiting for section scans to complete */
+	protected long sectionTimeout = 5000;
+	/** The section scan timeout unit */
+	protected TimeUnit sectionTimeoutUnit = TimeUnit.MILLISECONDS;
+	
+	/** The cummulative count of parsed vluns */
+	protected final AtomicLong vlunsParsed = new AtomicLong(0L);
+	/** The cummulative count of malformed vluns that were skipped */
+	protected final AtomicLong malformedVluns = new AtomicLong(0L);
+	
+	/**
+	 * Creates a new SanStatsStreamingParser
+	 * @param gformat The granularity format
+	 */
+	public SanStatsStreamingParser(String gformat) {
+		if(gformat==null) throw new IllegalArgumentException("The passed granularity format was null", new Throwable());
+		this.gformat = gformat;
+	}
+	
+	/**
+	 * Parses the passed san stats document and traces the calculated values
+	 * @param b The buffer containing the san stats xml
+	 * @param executor The executor to scan sections with. If null, the document is scanned in the calling thread.
+	 * @param tracer The tracer to trace with
+	 * @param testValues Indicates if random test values should be added to the traced values
+	 * @return the number of traced metrics
+	 */
+	public int process(ChannelBuffer b, Executor executor, ITracer tracer, boolean testValues) {
+		SanStatsDictionary dict = getDictionary(b);
+		Section[] sections = scan(b, executor);
+		synchronized(dict) {
+			aggregate(dict, b, sections);
+			return trace(dict, tracer, testValues);
+		}
+	}
+	
+	/**
+	 * Parses the passed san stats document and returns the calculated values
+	 * @param b The buffer containing the san stats xml
+	 * @param executor The executor to scan sections with. If null, the document is scanned in the calling thread.
+	 * @return a map of calculated values keyed by metric name within a map keyed by the node key
+	 */
+	public Map<String, Map<String, Long>> parse(ChannelBuffer b, Executor executor) {
+		SanStatsDictionary dict = getDictionary(b);
+		Section[] sections = scan(b, executor);
+		synchronized(dict) {
+			aggregate(dict, b, sections);
+			Map<String, Map<String, Long>> results = new HashMap<String, Map<String, Long>>(dict.getNodeCount());
+			for(int node = 0; node < dict.getNodeCount(); node++) {
+				if(!dict.touched[node]) continue;
+				Map<String, Long> values = new LinkedHashMap<String, Long>(CALCED_SLOTS);
+				for(int i = 0; i < CALCED_SLOTS; i++) {
+					values.put(CALCED_NAMES[i], dict.calced[node * CALCED_SLOTS + i]);
+				}
+				results.put(dict.getNodeKey(node), values);
+			}
+			return results;
+		}
+	}
+	
+	/**
+	 * Returns the dictionary for the array that submitted the passed document
+	 * @param b The buffer containing the san stats xml
+	 * @return the dictionary
+	 */
+	protected SanStatsDictionary getDictionary(ChannelBuffer b) {
+		String systemName = SanStatsParsingContext.UNKNOWN;
+		final int readerIndex = b.readerIndex(), writerIndex = b.writerIndex();
+		int sysStart = indexOf(b, SYSINFO_OPENER, readerIndex, writerIndex);
+		if(sysStart!=-1) {
+			int sysEnd = indexOf(b, SYSINFO_CLOSER, sysStart, writerIndex);
+			int nameStart = indexOf(b, SYSNAME_OPENER, sysStart, sysEnd==-1 ? writerIndex : sysEnd);
+			if(nameStart!=-1) {
+				nameStart += SYSNAME_OPENER.length;
+				int nameEnd = indexOf(b, SYSNAME_CLOSER, nameStart, writerIndex);
+				if(nameEnd!=-1) {
+					byte[] bytes = new byte[nameEnd-nameStart];
+					b.getBytes(nameStart, bytes);
+					systemName = new String(bytes);
+				}
+			}
+		}
+		SanStatsDictionary dict = dictionaries.get(systemName);
+		if(dict==null) {
+			synchronized(dictionaries) {
+				dict = dictionaries.get(systemName);
+				if(dict==null) {
+					dict = new SanStatsDictionary(gformat, systemName);
+					dictionaries.put(systemName, dict);
+				}
+			}
+		}
+		return dict;
+	}
+	
+	/**
+	 * Splits the statvlun content of the passed document into sections and scans them
+	 * @param b The buffer containing the san stats xml
+	 * @param executor The executor to scan sections with. If null, the document is scanned in the calling thread.
+	 * @return the scanned sections in document order
+	 */
+	protected Section[] scan(ChannelBuffer b, Executor executor) {
+		final int writerIndex = b.writerIndex();
+		int bodyStart = indexOf(b, ALL_STAT_OPENER, b.readerIndex(), writerIndex);
+		if(bodyStart==-1) return new Section[0];
+		bodyStart += ALL_STAT_OPENER.length;
+		int bodyEnd = indexOf(b, ALL_STAT_CLOSER, bodyStart, writerIndex);
+		if(bodyEnd==-1) bodyEnd = writerIndex;
+		final int bodyLength = bodyEnd - bodyStart;
+		int sectionCount = executor==null ? 1 : Math.max(1, Math.min(maxSections, bodyLength / Math.max(1, minSectionBytes)));
+		int[] boundaries = new int[sectionCount+1];
+		int found = 0;
+		int from = bodyStart;
+		for(int i = 0; i < sectionCount; i++) {
+			int target = Math.max(from, bodyStart + (int)(((long)bodyLength * i) / sectionCount));
+			int boundary = indexOf(b, STATVLUN_OPENER, target, bodyEnd);
+			if(boundary==-1) break;
+			boundaries[found++] = boundary;
+			from = boundary + STATVLUN_OPENER.length;
+		}
+		if(found==0) return new Section[0];
+		boundaries[found] = bodyEnd;
+		final Section[] sections = new Section[found];
+		for(int i = 0; i < found; i++) {
+			sections[i] = new Section(b, boundaries[i], boundaries[i+1]);
+		}
+		if(found==1) {
+			sections[0].run();
+		} else {
+			final CountDownLatch latch = new CountDownLatch(found-1);
+			for(int i = 1; i < found; i++) {
+				final Section section = sections[i];
+				Runnable r = new Runnable() {
+					@Override
+					public void run() {
+						try {
+							section.run();
+						} finally {
+							latch.countDown();
+						}
+					}
+				};
+				try {
+					executor.execute(r);
+				} catch (Exception ex) {
+					r.run();
+				}
+			}
+			sections[0].run();
+			try {
+				if(!latch.await(sectionTimeout, sectionTimeoutUnit)) {
+					throw new RuntimeException("Timeout waiting [" + sectionTimeout + " " + sectionTimeoutUnit.name() + "] for san stats section scans", new Throwable());
+				}
+			} catch (InterruptedException iex) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted waiting for san stats section scans", iex);
+			}
+		}
+		return sections;
+	}
+	
+	/**
+	 * Aggregates the scanned sections into the passed dictionary in document order.
+	 * The caller must hold the dictionary's monitor.
+	 * @param dict The dictionary to aggregate into
+	 * @param b The buffer containing the san stats xml
+	 * @param sections The scanned sections
+	 */
+	protected void aggregate(SanStatsDictionary dict, ChannelBuffer b, Section[] sections) {
+		dict.resetAggregates();
+		final int[] ids = new int[DIMENSIONS];
+		long parsed = 0, malformed = 0;
+		for(Section section: sections) {
+			malformed += section.malformed;
+			final int[] dims = section.dims;
+			final long[] values = section.values;
+			for(int r = 0; r < section.count; r++) {
+				final int dbase = r * DIMENSIONS * 2;
+				for(int d = 0; d < DIMENSIONS; d++) {
+					ids[d] = dict.intern(b, dims[dbase + d*2], dims[dbase + d*2 + 1]);
+				}
+				final int node = dict.node(ids, 0);
+				accumulate(dict, node, values, r * VALUES);
+				parsed++;
+			}
+		}
+		vlunsParsed.addAndGet(parsed);
+		if(malformed>0) {
+			malformedVluns.addAndGet(malformed);
+			log.warn("Skipped [" + malformed + "] malformed vluns in array [" + dict.getSystemName() + "]");
+		}
+	}
+	
+	/**
+	 * Accumulates one vlun's values into the passed node's slots.
+	 * The calculations mirror {@link SanStatsParsingContext#addVLun(Map)} exactly.
+	 * @param dict The dictionary holding the slots
+	 * @param node The node ID
+	 * @param values The scanned values
+	 * @param base The offset of the vlun's values
+	 */
+	private static void accumulate(SanStatsDictionary dict, int node, long[] values, int base) {
+		final long[] totals = dict.totals;
+		final long[] calced = dict.calced;
+		final int t = node * TOTAL_SLOTS;
+		final int c = node * CALCED_SLOTS;
+		for(int i = 0; i < TOTAL_SLOTS; i++) {
+			totals[t + i] += values[base + 1 + i];
+		}
+		dict.touched[node] = true;
+		final long now = values[base];
+		// Total slots: 0:qlen, 1:busy, 2:rcount, 3:rbytes, 4:rerror, 5:rdrops, 6:rticks, 7:wcount, 8:wbytes, 9:werror, 10:wdrops, 11:wticks 
+		calced[c]   += values[base + 1];
+		calced[c+1] += SanStatsParsingContext.calcIosPerSec(totals[t+2], totals[t+7], now);
+		calced[c+2] += SanStatsParsingContext.calcIosPerSec(totals[t+3], totals[t+8], now);
+		calced[c+3] += SanStatsParsingContext.calcServiceTime(totals[t+2], totals[t+7], totals[t+6], totals[t+11]);
+		calced[c+4] += SanStatsParsingContext.calcIoSize(totals[t+3], totals[t+8], totals[t+2], totals[t+7]);
+		calced[c+5] += SanStatsParsingContext.calcBusyTime(totals[t+1], now);
+		calced[c+6] += values[base + 5];
+		calced[c+7] += values[base + 6];
+		calced[c+8] += values[base + 10];
+		calced[c+9] += values[base + 11];
+	}
+	
+	/**
+	 * Traces the aggregated values in the passed dictionary.
+	 * The caller must hold the dictionary's monitor.
+	 * @param dict The dictionary holding the aggregated values
+	 * @param tracer The tracer to trace with
+	 * @param testValues Indicates if random test values should be added to the traced values
+	 * @return the number of traced metrics
+	 */
+	protected int trace(SanStatsDictionary dict, ITracer tracer, boolean testValues) {
+		int cntr = 0;
+		final long[] calced = dict.calced;
+		final ThreadLocalRandom random = testValues ? ThreadLocalRandom.current() : null;
+		for(int node = 0; node < dict.getNodeCount(); node++) {
+			if(!dict.touched[node]) continue;
+			final String[] namespace = dict.getNamespace(node);
+			final int c = node * CALCED_SLOTS;
+			for(int i = 0; i < CALCED_SLOTS; i++) {
+				long value = calced[c + i];
+				if(testValues) value += random.nextInt(TEST_VALUE_RANGES[i]);
+				if(i < GAUGE_SLOTS) {
+					tracer.traceGauge(value, CALCED_NAMES[i], namespace);
+				} else {
+					tracer.traceDeltaGauge(value, CALCED_NAMES[i], namespace);
+				}
+				cntr++;
+			}
+		}
+		return cntr;
+	}
+	
+	/**
+	 * Returns the index of the first occurence of the passed byte sequence in the passed buffer range
+	 * @param b The buffer to search
+	 * @param seq The byte sequence to search for
+	 * @param from The index to start searching at (inclusive)
+	 * @param to The index to stop searching at (exclusive)
+	 * @return the absolute index of the first byte of the sequence or -1 if it was not found
+	 */
+	static int indexOf(ChannelBuffer b, byte[] seq, int from, int to) {
+		final byte first = seq[0];
+		final int last = to - seq.length;
+		outer:
+		for(int i = from; i <= last; i++) {
+			if(b.getByte(i)!=first) continue;
+			for(int k = 1; k < seq.length; k++) {
+				if(b.getByte(i+k)!=seq[k]) continue outer;
+			}
+			return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Converts the passed strings to byte arrays
+	 * @param strs The strings to convert
+	 * @return an array of byte arrays
+	 */
+	private static byte[][] bytes(String...strs) {
+		byte[][] arr = new byte[strs.length][];
+		for(int i = 0; i < strs.length; i++) {
+			arr[i] = strs[i].getBytes();
+		}
+		return arr;
+	}
+	
+	/**
+	 * Identifies the tag name in the passed buffer range
+	 * @param b The buffer
+	 * @param offset The offset of the first byte of the tag name
+	 * @param length The length of the tag name
+	 * @return the leaf tag index, {@link #TAG_VLUN_OPEN}, {@link #TAG_VLUN_CLOSE} or {@link #TAG_NONE}
+	 */
+	private static int tagIndex(ChannelBuffer b, int offset, int length) {
+		for(int i = 0; i < LEAF_TAGS.length; i++) {
+			if(matches(LEAF_TAGS[i], b, offset, length)) return i;
+		}
+		if(matches(VLUN_TAG, b, offset, length)) return TAG_VLUN_OPEN;
+		if(matches(VLUN_END_TAG, b, offset, length)) return TAG_VLUN_CLOSE;
+		return TAG_NONE;
+	}
+	
+	/**
+	 * Determines if the passed tag bytes match the passed buffer range
+	 * @param tag The tag bytes
+	 * @param b The buffer
+	 * @param offset The offset of the range
+	 * @param length The length of the range
+	 * @return true for a match, false otherwise
+	 */
+	private static boolean matches(byte[] tag, ChannelBuffer b, int offset, int length) {
+		if(tag.length!=length || tag[0]!=b.getByte(offset)) return false;
+		for(int i = 1; i < length; i++) {
+			if(tag[i]!=b.getByte(offset+i)) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * <p>Title: Section</p>
+	 * <p>Description: A contiguous range of statvluns in a document and the offsets and values scanned from them</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>org.helios.apmrouter.server.services.mtxml.SanStatsStreamingParser.Section</code></p>
+	 */
+	protected static class Section implements Runnable {
+		/** The buffer being scanned */
+		private final ChannelBuffer b;
+		/** The starting index of the section */
+		private final int start;
+		/** The ending index of the section (exclusive) */
+		private final int end;
+		/** The dimension name offset and length pairs, {@link SanStatsDictionary#DIMENSIONS} pairs per vlun */
+		int[] dims;
+		/** The parsed values, {@link SanStatsStreamingParser#VALUES} per vlun */
+		long[] values;
+		/** The number of complete vluns scanned */
+		int count = 0;
+		/** The number of malformed vluns skipped */
+		int malformed = 0;
+		
+		/**
+		 * Creates a new Section
+		 * @param b The buffer being scanned
+		 * @param start The starting index of the section
+		 * @param end The ending index of the section (exclusive)
+		 */
+		Section(ChannelBuffer b, int start, int end) {
+			this.b = b;
+			this.start = start;
+			this.end = end;
+			int estimate = ((end - start) / 512) + 16;
+			dims = new int[estimate * DIMENSIONS * 2];
+			values = new long[estimate * VALUES];
+		}
+		
+		/**
+		 * Scans the section
+		 * {@inheritDoc}
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			int i = start;
+			int seen = -1;
+			while(i < end) {
+				while(i < end && b.getByte(i)!='<') i++;
+				final int nameStart = i + 1;
+				int j = nameStart;
+				while(j < end && b.getByte(j)!='>') j++;
+				if(j >= end) break;
+				i = j + 1;
+				final int tag = tagIndex(b, nameStart, j - nameStart);
+				if(tag==TAG_VLUN_OPEN) {
+					if(seen!=-1) malformed++;
+					seen = 0;
+					ensureCapacity();
+				} else if(tag==TAG_VLUN_CLOSE) {
+					if(seen==COMPLETE) count++;
+					else malformed++;
+					seen = -1;
+				} else if(tag>=0 && seen>=0) {
+					int valueEnd = i;
+					while(valueEnd < end && b.getByte(valueEnd)!='<') valueEnd++;
+					if(tag < DIMENSIONS) {
+						final int d = count * DIMENSIONS * 2 + tag * 2;
+						dims[d] = i;
+						dims[d+1] = valueEnd - i;
+						seen |= (1 << tag);
+					} else if(parseLong(i, valueEnd, count * VALUES + tag - DIMENSIONS)) {
+						seen |= (1 << tag);
+					}
+					i = valueEnd;
+				}
+			}
+			if(seen!=-1) malformed++;
+		}
+		
+		/**
+		 * Parses a decimal long from the passed range into the values array
+		 * @param from The starting index (inclusive)
+		 * @param to The ending index (exclusive)
+		 * @param slot The values slot to write the parsed value into
+		 * @return true if the value was parsed, false if the content was not a number
+		 */
+		private boolean parseLong(int from, int to, int slot) {
+			while(from < to && b.getByte(from)<=' ') from++;
+			while(to > from && b.getByte(to-1)<=' ') to--;
+			if(from==to) return false;
+			boolean negative = false;
+			if(b.getByte(from)=='-') {
+				negative = true;
+				from++;
+				if(from==to) return false;
+			}
+			long v = 0;
+			for(int i = from; i < to; i++) {
+				final int digit = b.getByte(i) - '0';
+				if(digit < 0 || digit > 9) return false;
+				v = v * 10 + digit;
+			}
+			values[slot] = negative ? -v : v;
+			return true;
+		}
+		
+		/**
+		 * Ensures there is capacity for one more vlun
+		 */
+		private void ensureCapacity() {
+			if((count+1) * VALUES > values.length) {
+				values = Arrays.copyOf(values, values.length * 2);
+				dims = Arrays.copyOf(dims, dims.length * 2);
+			}
+		}
+	}
+
+	/**
+	 * Returns the cummulative count of parsed vluns 
+	 * @return the cummulative count of parsed vluns
+	 */
+	public long getVlunsParsed() {
+		return vlunsParsed.get();
+	}
+	
+	/**
+	 * Returns the cummulative count of malformed vluns that were skipped
+	 * @return the cummulative count of malformed vluns
+	 */
+	public long getMalformedVluns() {
+		return malformedVluns.get();
+	}
+	
+	/**
+	 * Returns the number of array dictionaries
+	 * @return the number of array dictionaries
+	 */
+	public int getDictionaryCount() {
+		return dictionaries.size();
+	}
+	
+	/**
+	 * Resets the parser metrics
+	 */
+	public void resetMetrics() {
+		vlunsParsed.set(0L);
+		malformedVluns.set(0L);
+	}
+
+	/**
+	 * Returns the minimum number of bytes in a parallel parsed section
+	 * @return the minimum number of bytes in a parallel parsed section
+	 */
+	public int getMinSectionBytes() {
+		return minSectionBytes;
+	}
+
+	/**
+	 * Sets the minimum number of bytes in a parallel parsed section
+	 * @param minSectionBytes the minimum number of bytes in a parallel parsed section
+	 */
+	public void setMinSectionBytes(int minSectionBytes) {
+		this.minSectionBytes = minSectionBytes;
+	}
+
+	/**
+	 * Returns the maximum number of sections a document is split into
+	 * @return the maximum number of sections a document is split into
+	 */
+	public int getMaxSections() {
+		return maxSections;
+	}
+
+	/**
+	 * Sets the maximum number of sections a document is split into
+	 * @param maxSections the maximum number of sections a document is split into
+	 */
+	public void setMaxSections(int maxSections) {
+		this.maxSections = Math.max(1, maxSections);
+	}
+
+	/**
+	 * Sets the timeout waiting for section scans to complete
+	 * @param sectionTimeout the timeout
+	 * @param sectionTimeoutUnit the timeout unit
+	 */
+	public void setSectionTimeout(long sectionTimeout, TimeUnit sectionTimeoutUnit) {
+		this.sectionTimeout = sectionTimeout;
+		this.sectionTimeoutUnit = sectionTimeoutUnit;
+	}
+}
@@ -36,12 +36,14 @@ import java.net.SocketAddress;
 import java.util.Collections;
 
 import org.helios.apmrouter.dataservice.json.JSONRequestRouter;
+import org.helios.apmrouter.dataservice.json.JsonRequest;
 import org.helios.apmrouter.dataservice.json.JsonResponse;
 import org.helios.apmrouter.dataservice.json.marshalling.JSONMarshaller;
 import org.helios.apmrouter.dataservice.json.marshalling.netty.ChannelBufferizable;
 import org.helios.apmrouter.server.ServerComponentBean;
 import org.helios.apmrouter.server.services.session.ChannelType;
 import org.helios.apmrouter.server.services.session.SharedChannelGroup;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelDownstreamHandler;
@@ -152,19 +154,19 @@ public class WebSocketServiceHandler extends ServerComponentBean implements Chan
             throw new UnsupportedOperationException(String.format("%s frame types not supported", frame.getClass()
                     .getName()));
         }
-        String request = ((TextWebSocketFrame) frame).getText();
-        JSONObject wsRequest = null;
+        ChannelBuffer request = frame.getBinaryData();
         try {
-        	wsRequest = new JSONObject(request);
-        	if("who".equals(wsRequest.get("t"))) {
+        	JsonRequest wsRequest = router.decode(request, ctx.getChannel());
+        	if(JSONRequestRouter.TYPE_WHO.equals(wsRequest.tCode)) {
         		SocketAddress sa = ctx.getChannel().getRemoteAddress();
         		String host = "unknown";
         		String agent = "unknown";
         		if(sa!=null) {
         			host = ((InetSocketAddress)sa).getHostName();        			
         		}
-        		if(wsRequest.get("agent")!=null) {
-        			agent = wsRequest.get("agent").toString();
+        		Object agentName = wsRequest.getRequest().opt("agent");
+        		if(agentName!=null) {
+        			agent = agentName.toString();
         		}
         		SharedChannelGroup.getInstance().add(ctx.getChannel(), ChannelType.WEBSOCKET_REMOTE, "ClientWebSocket", host, agent);
         	} else {
@@ -173,7 +175,7 @@ public class WebSocketServiceHandler extends ServerComponentBean implements Chan
         	
         		
         } catch (Exception ex) {
-        	log.error("Failed to parse request [" + request + "]", ex);
+        	log.error("Failed to parse request [" + request.toString(CharsetUtil.UTF_8) + "]", ex);
         }		
 	}
 	
@@ -51,6 +51,10 @@ CREATE TABLE IF NOT EXISTS  PUBLIC.TRACE_TYPE(
 ) ;            
 ALTER TABLE PUBLIC.TRACE_TYPE ADD CONSTRAINT IF NOT EXISTS PUBLIC.TRACE_TYPE_PK PRIMARY KEY(TYPE_ID);        
 
+CREATE TABLE IF NOT EXISTS  PUBLIC.CATALOG_EPOCH(
+    EPOCH LONG NOT NULL COMMENT 'Identifies this catalog instance. Metric tokens issued by a catalog with a different epoch are not valid here.'
+) ;
+
 ALTER TABLE PUBLIC.AGENT ADD CONSTRAINT IF NOT EXISTS PUBLIC.AGENT_HOST_FK FOREIGN KEY(HOST_ID) REFERENCES PUBLIC.HOST(HOST_ID) NOCHECK;     
 ALTER TABLE PUBLIC.METRIC ADD CONSTRAINT IF NOT EXISTS PUBLIC.METRIC_TRACE_TYPE_FK FOREIGN KEY(TYPE_ID) REFERENCES PUBLIC.TRACE_TYPE(TYPE_ID) NOCHECK;       
 ALTER TABLE PUBLIC.METRIC ADD CONSTRAINT IF NOT EXISTS PUBLIC.METRIC_AGENT_FK FOREIGN KEY(AGENT_ID) REFERENCES PUBLIC.AGENT(AGENT_ID) NOCHECK;
@@ -79,6 +83,7 @@ CREATE ALIAS IF NOT EXISTS STATUS FOR "org.helios.apmrouter.catalog.jdbc.h2.H2St
 -- =============================================================================
 
 CREATE TRIGGER IF NOT EXISTS HOST_TRG  AFTER INSERT ON HOST FOR EACH ROW CALL "org.helios.apmrouter.catalog.jdbc.h2.HostTrigger";
+CREATE TRIGGER IF NOT EXISTS HOST_UPDATE_TRG  AFTER UPDATE ON HOST FOR EACH ROW CALL "org.helios.apmrouter.catalog.jdbc.h2.HostTrigger";
 CREATE TRIGGER IF NOT EXISTS AGENT_TRG  AFTER INSERT ON AGENT FOR EACH ROW CALL "org.helios.apmrouter.catalog.jdbc.h2.AgentTrigger";
 CREATE TRIGGER IF NOT EXISTS AGENT_UPDATE_TRG  AFTER UPDATE ON AGENT FOR EACH ROW CALL "org.helios.apmrouter.catalog.jdbc.h2.AgentTrigger";
 
@@ -0,0 +1,277 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.apmrouter.dataservice.json;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.helios.apmrouter.dataservice.json.JSONRequestHandler;
+import org.helios.apmrouter.dataservice.json.JSONRequestRouter;
+import org.helios.apmrouter.dataservice.json.JsonEnvelopeDecoder;
+import org.helios.apmrouter.dataservice.json.JsonRequest;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.util.CharsetUtil;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * <p>Title: JsonEnvelopeDecoderTestCase</p>
+ * <p>Description: Verifies that streamed request decoding produces the same requests as the full JSON parse, and compares 
+ * the decode and dispatch cost of both paths for a mix of console requests.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.apmrouter.dataservice.json.JsonEnvelopeDecoderTestCase</code></p>
+ */
+public class JsonEnvelopeDecoderTestCase {
+	/** The router under test */
+	static final JSONRequestRouter router = new JSONRequestRouter();
+	/** The number of requests handled */
+	static final AtomicLong handled = new AtomicLong(0L);
+	/** A sink for argument values so reads are not optimized away */
+	static final AtomicLong sink = new AtomicLong(0L);
+	
+	/** A console request mix: live data polls, metric uri subscriptions, named queries and subscription starts/stops */
+	static final String[] CONSOLE_MIX = {
+		"{\"t\":\"req\",\"svc\":\"h2ts\",\"op\":\"livedata\",\"args\":{\"IDS\":[12,13,14,15,16,17,18,19,20,21,22,23]},\"rid\":101}",
+		"{\"t\":\"req\",\"svc\":\"h2ts\",\"op\":\"livedata\",\"args\":{\"IDS\":[41,42,43]},\"rid\":102}",
+		"{\"t\":\"req\",\"svc\":\"catalog\",\"op\":\"submetricuri\",\"args\":{\"uri\":\"DefaultDomain/njw810/APMRouterServer/platform=JVM/category=cpu?type=LONG\",\"sub\":true},\"rid\":103}",
+		"{\"t\":\"req\",\"svc\":\"catalog\",\"op\":\"nq\",\"args\":{\"name\":\"findLevelFoldersForAgent\",\"p\":{\"level\":1,\"agentId\":\"1\",\"parent\":\"/platform=JVM%\"}},\"rid\":104}",
+		"{\"t\":\"req\",\"svc\":\"catalog\",\"op\":\"nq\",\"args\":{\"name\":\"allDomains\"},\"rid\":105}",
+		"{\"t\":\"req\",\"svc\":\"sub\",\"op\":\"start\",\"args\":{\"es\":\"jmx\",\"esn\":\"service:jmx:local://DefaultDomain\",\"f\":\"org.helios.apmrouter.session:service=SharedChannelGroup\"},\"rid\":106}",
+		"{\"t\":\"req\",\"svc\":\"sub\",\"op\":\"stop\",\"args\":{\"subId\":4711},\"rid\":107}",
+		"{\"t\":\"req\",\"svc\":\"catalog\",\"op\":\"listhosts\",\"args\":[true],\"rid\":108}"
+	};
+	
+	/**
+	 * <p>Title: ConsoleService</p>
+	 * <p>Description: A JSON data service exposing the console's ops, each reading its arguments as the real service would</p> 
+	 */
+	public static class ConsoleService {
+		/**
+		 * Live data poll
+		 * @param request The request
+		 * @param channel The channel
+		 */
+		@JSONRequestHandler(name="livedata")
+		public void liveData(JsonRequest request, Channel channel) {
+			JSONArray ids = request.getArgumentOrNull("IDS", JSONArray.class);
+			sink.addAndGet(ids.length());
+			handled.incrementAndGet();
+		}
+		/**
+		 * Metric uri subscription
+		 * @param request The request
+		 * @param channel The channel
+		 */
+		@JSONRequestHandler(name="submetricuri")
+		public void subMetricUri(JsonRequest request, Channel channel) {
+			sink.addAndGet(request.getArgument("uri").length() + (request.getArgument("sub", Boolean.FALSE) ? 1 : 0));
+			handled.incrementAndGet();
+		}
+		/**
+		 * Named query
+		 * @param request The request
+		 * @param channel The channel
+		 */
+		@JSONRequestHandler(name="nq")
+		public void namedQuery(JsonRequest request, Channel channel) {
+			String name = request.getArgumentOrNull("name", String.class);
+			Map<String, ?> params = request.getArgument("p", new java.util.HashMap<String, Object>());
+			sink.addAndGet(name.length() + params.size());
+			handled.incrementAndGet();
+		}
+		/**
+		 * Host listing
+		 * @param request The request
+		 * @param channel The channel
+		 */
+		@JSONRequestHandler(name="listhosts")
+		public void listHosts(JsonRequest request, Channel channel) {
+			sink.addAndGet(request.getArgument(0, false) ? 1 : 0);
+			handled.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * <p>Title: SubService</p>
+	 * <p>Description: A JSON data service exposing the subscription ops</p> 
+	 */
+	public static class SubService {
+		/**
+		 * Subscription start
+		 * @param request The request
+		 * @param channel The channel
+		 */
+		@JSONRequestHandler(name="start")
+		public void start(JsonRequest request, Channel channel) {
+			sink.addAndGet(request.getArguments().get("es").toString().length() + request.getArgument("f", "").length());
+			handled.incrementAndGet();
+		}
+		/**
+		 * Subscription stop
+		 * @param request The request
+		 * @param channel The channel
+		 */
+		@JSONRequestHandler(name="stop")
+		public void stop(JsonRequest request, Channel channel) {
+			sink.addAndGet(request.getArgumentOrNull("subId", Number.class).longValue());
+			handled.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Registers the test services
+	 */
+	@BeforeClass
+	public static void registerServices() {
+		router.registerService("h2ts", new ConsoleService());
+		router.registerService("catalog", new ConsoleService());
+		router.registerService("sub", new SubService());
+	}
+	
+	/**
+	 * Wraps the passed string in a frame buffer
+	 * @param json The json text
+	 * @return the frame buffer
+	 */
+	static ChannelBuffer frame(String json) {
+		return ChannelBuffers.copiedBuffer(json, CharsetUtil.UTF_8);
+	}
+	
+	/**
+	 * Verifies the streamed envelope and lazily parsed arguments match a full parse
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testStreamedMatchesFullParse() throws Exception {
+		String[] extra = {
+			" { \"rid\" : \"55\" , \"op\":\"nq\", \"args\" : { \"name\" : \"q}\\\"]\", \"p\" : [1, {\"a\":\"}\"}] } , \"svc\" : \"catalog\", \"t\" : \"req\" } ",
+			"{\"t\":\"req\",\"svc\":\"catalog\",\"op\":\"nq\",\"x\":null,\"y\":-2.5e3,\"rid\":9}"
+		};
+		JsonEnvelopeDecoder.Envelope env = new JsonEnvelopeDecoder.Envelope();
+		for(String[] set: new String[][]{CONSOLE_MIX, extra}) {
+			for(String json: set) {
+				ChannelBuffer frame = frame(json);
+				Assert.assertTrue("Streamed decode rejected [" + json + "]", JsonEnvelopeDecoder.decode(frame, env));
+				JsonRequest req = router.decode(frame, null);
+				JSONObject full = new JSONObject(json);
+				Assert.assertEquals(full.getString("t"), req.tCode);
+				Assert.assertEquals(full.getLong("rid"), req.rid);
+				Assert.assertEquals(full.getString("svc"), req.serviceName);
+				Assert.assertEquals(full.getString("op"), req.opName);
+				Map<Object, Object> args = req.getArguments();
+				Object fullArgs = full.opt("args");
+				if(fullArgs instanceof JSONObject) {
+					Assert.assertEquals(((JSONObject)fullArgs).length(), args.size());
+					for(String key: JSONObject.getNames((JSONObject)fullArgs)) {
+						Assert.assertEquals(((JSONObject)fullArgs).get(key).toString(), args.get(key).toString());
+					}
+				} else if(fullArgs instanceof JSONArray) {
+					Assert.assertEquals(((JSONArray)fullArgs).length(), args.size());
+				} else {
+					Assert.assertTrue(args.isEmpty());
+				}
+				Assert.assertEquals(full.toString(), req.getRequest().toString());
+				Assert.assertEquals("Frame indexes were modified", json.getBytes("UTF-8").length, frame.readableBytes());
+			}
+		}
+	}
+	
+	/**
+	 * Verifies that frames the streaming decoder rejects still decode through the full parse
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testFallback() throws Exception {
+		String json = "{\"t\":\"req\",\"svc\":\"cat\\u0061log\",\"op\":\"nq\",\"args\":{\"name\":\"allDomains\"},\"rid\":7}";
+		Assert.assertFalse(JsonEnvelopeDecoder.decode(frame(json), new JsonEnvelopeDecoder.Envelope()));
+		JsonRequest req = router.decode(frame(json), null);
+		Assert.assertEquals("catalog", req.serviceName);
+		Assert.assertEquals("allDomains", req.getArgument("name"));
+		long before = handled.get();
+		router.invoke(req, null);
+		Assert.assertEquals(before+1, handled.get());
+		JsonRequest who = router.decode(frame("{\"t\":\"who\",\"agent\":\"Chrome\"}"), null);
+		Assert.assertEquals(JSONRequestRouter.TYPE_WHO, who.tCode);
+		Assert.assertEquals("Chrome", who.getRequest().getString("agent"));
+	}
+	
+	/**
+	 * Compares the per request time and allocation of the full parse and streamed dispatch of the console request mix
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testDecodeCost() throws Exception {
+		final ChannelBuffer[] frames = new ChannelBuffer[CONSOLE_MIX.length];
+		for(int i = 0; i < frames.length; i++) frames[i] = frame(CONSOLE_MIX[i]);
+		final int warmup = 20000, loops = 100000;
+		for(int i = 0; i < warmup; i++) {
+			legacy(frames[i%frames.length]);
+			streamed(frames[i%frames.length]);
+		}
+		com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+		long[] results = new long[4];
+		for(int pass = 0; pass < 2; pass++) {
+			long before = handled.get();
+			long alloc = tmx.getThreadAllocatedBytes(tid);
+			long start = System.nanoTime();
+			for(int i = 0; i < loops; i++) {
+				if(pass==0) legacy(frames[i%frames.length]);
+				else streamed(frames[i%frames.length]);
+			}
+			results[pass*2] = (System.nanoTime()-start)/loops;
+			results[pass*2+1] = (tmx.getThreadAllocatedBytes(tid)-alloc)/loops;
+			Assert.assertEquals(loops, handled.get()-before);
+		}
+		System.out.println("Full parse: " + results[0] + " ns/req, " + results[1] + " bytes/req");
+		System.out.println("Streamed  : " + results[2] + " ns/req, " + results[3] + " bytes/req");
+		Assert.assertTrue("Streamed decode allocated more than the full parse", results[3] < results[1]);
+	}
+	
+	/**
+	 * The original decode path: frame text to a JSONObject, then parsed and dispatched by name
+	 * @param frame The frame buffer
+	 * @throws Exception thrown on any error
+	 */
+	static void legacy(ChannelBuffer frame) throws Exception {
+		router.invoke(new JSONObject(frame.toString(CharsetUtil.UTF_8)), null);
+	}
+	
+	/**
+	 * The streamed decode path
+	 * @param frame The frame buffer
+	 * @throws Exception thrown on any error
+	 */
+	static void streamed(ChannelBuffer frame) throws Exception {
+		router.invoke(router.decode(frame, null), null);
+	}
+}
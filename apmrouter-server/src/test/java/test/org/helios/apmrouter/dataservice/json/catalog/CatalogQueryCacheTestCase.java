@@ -0,0 +1,407 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.apmrouter.dataservice.json.catalog;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.helios.apmrouter.catalog.domain.Metric;
+import org.helios.apmrouter.catalog.jdbc.h2.AbstractTrigger;
+import org.helios.apmrouter.catalog.jdbc.h2.AgentTrigger;
+import org.helios.apmrouter.catalog.jdbc.h2.HostTrigger;
+import org.helios.apmrouter.catalog.jdbc.h2.NewElementTriggers;
+import org.helios.apmrouter.catalog.jdbc.h2.TriggerOp;
+import org.helios.apmrouter.dataservice.json.JsonRequest;
+import org.helios.apmrouter.dataservice.json.JsonResponse;
+import org.helios.apmrouter.dataservice.json.catalog.CatalogJSONDataService;
+import org.helios.apmrouter.dataservice.json.catalog.CatalogQueryCache;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * <p>Title: CatalogQueryCacheTestCase</p>
+ * <p>Description: Runs catalog named queries and agent metric set requests against an in-memory H2 catalog through hibernate,
+ * and verifies that repeated requests are served without touching the database while catalog inserts and state changes 
+ * invalidate exactly the cached results they affect.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.apmrouter.dataservice.json.catalog.CatalogQueryCacheTestCase</code></p>
+ */
+public class CatalogQueryCacheTestCase {
+	/** The catalog JDBC URL */
+	static final String URL = "jdbc:h2:mem:db;DB_CLOSE_DELAY=-1";
+	/** A connection held open for catalog updates */
+	static Connection conn = null;
+	/** The hibernate session factory */
+	static SessionFactory sessionFactory = null;
+	/** The service under test */
+	static TestCatalogService service = null;
+	/** The last response written to the test channel */
+	static final AtomicReference<JsonResponse> lastResponse = new AtomicReference<JsonResponse>();
+	/** The last response frame sent down the test channel's pipeline */
+	static final AtomicReference<String> lastFrame = new AtomicReference<String>();
+	/** The test channel */
+	static Channel channel = null;
+	/** The request id factory */
+	static long rid = 0;
+	
+	/**
+	 * <p>Title: TestCatalogService</p>
+	 * <p>Description: A catalog data service started outside of a spring context</p> 
+	 */
+	static class TestCatalogService extends CatalogJSONDataService {
+		/**
+		 * Starts the service
+		 * @throws Exception thrown on any error
+		 */
+		void begin() throws Exception {
+			doStart();
+		}
+		/**
+		 * Stops the service
+		 */
+		void end() {
+			doStop();
+		}
+	}
+	
+	/**
+	 * <p>Title: TestMetricTrigger</p>
+	 * <p>Description: Stands in for the MetricTrigger, which needs a running application context, 
+	 * and notifies the catalog change listeners the same way.</p> 
+	 */
+	public static class TestMetricTrigger extends AbstractTrigger {
+		/**
+		 * {@inheritDoc}
+		 * @see org.h2.api.Trigger#fire(java.sql.Connection, java.lang.Object[], java.lang.Object[])
+		 */
+		@Override
+		public void fire(Connection conn, Object[] oldRow, Object[] newRow) throws SQLException {
+			NewElementTriggers.fireMetricChange(TriggerOp.INSERT.isEnabled(type) ? null : oldRow, newRow);
+		}
+	}
+	
+	/**
+	 * Creates the catalog, the session factory and the service
+	 * @throws Exception thrown on any error
+	 */
+	@BeforeClass
+	public static void setup() throws Exception {
+		Class.forName("org.h2.Driver");
+		conn = DriverManager.getConnection(URL, "sa", "");
+		sql("CREATE TABLE HOST(HOST_ID INTEGER NOT NULL IDENTITY, NAME VARCHAR2(255) NOT NULL, DOMAIN VARCHAR2(255) NOT NULL, IP VARCHAR2(15), FQN VARCHAR2(255), FIRST_CONNECTED TIMESTAMP NOT NULL, LAST_CONNECTED TIMESTAMP NOT NULL, AGENTS INTEGER NOT NULL DEFAULT 0, CONNECTED TIMESTAMP NULL)");
+		sql("CREATE TABLE AGENT(AGENT_ID INTEGER NOT NULL IDENTITY, HOST_ID INTEGER NOT NULL, NAME VARCHAR2(120) NOT NULL, MIN_LEVEL SMALLINT NOT NULL, FIRST_CONNECTED TIMESTAMP NOT NULL, LAST_CONNECTED TIMESTAMP NOT NULL, CONNECTED TIMESTAMP NULL, URI VARCHAR2(120) NULL)");
+		sql("CREATE TABLE METRIC(METRIC_ID LONG NOT NULL, AGENT_ID INTEGER NOT NULL, TYPE_ID SMALLINT NOT NULL, NAMESPACE VARCHAR2(200), NARR ARRAY NOT NULL, LEVEL SMALLINT NOT NULL, NAME VARCHAR2(60), FIRST_SEEN TIMESTAMP NOT NULL, STATE TINYINT DEFAULT 0 NOT NULL, LAST_SEEN TIMESTAMP)");
+		sql("CREATE TABLE TRACE_TYPE(TYPE_ID SMALLINT NOT NULL PRIMARY KEY, TYPE_NAME VARCHAR2(30))");
+		sql("INSERT INTO TRACE_TYPE VALUES (0, 'LONG')");
+		sql("CREATE TRIGGER HOST_TRG AFTER INSERT ON HOST FOR EACH ROW CALL \"" + HostTrigger.class.getName() + "\"");
+		sql("CREATE TRIGGER HOST_UPDATE_TRG AFTER UPDATE ON HOST FOR EACH ROW CALL \"" + HostTrigger.class.getName() + "\"");
+		sql("CREATE TRIGGER AGENT_TRG AFTER INSERT ON AGENT FOR EACH ROW CALL \"" + AgentTrigger.class.getName() + "\"");
+		sql("CREATE TRIGGER AGENT_UPDATE_TRG AFTER UPDATE ON AGENT FOR EACH ROW CALL \"" + AgentTrigger.class.getName() + "\"");
+		sql("CREATE TRIGGER METRIC_TRG AFTER INSERT ON METRIC FOR EACH ROW CALL \"" + TestMetricTrigger.class.getName() + "\"");
+		sql("CREATE TRIGGER METRIC_TRG_UPDATE AFTER UPDATE ON METRIC FOR EACH ROW CALL \"" + TestMetricTrigger.class.getName() + "\"");
+		host(1, "host1", "domainA");
+		agent(1, 1, "agent1");
+		agent(2, 1, "agent2");
+		metric(1, 1, "/platform=JVM", "cpu");
+		metric(2, 1, "/platform=JVM", "heap");
+		metric(3, 2, "/platform=JVM", "cpu");
+		sessionFactory = new Configuration().configure("hibernate/hibernate.cfg.xml")
+			.setProperty("hibernate.connection.driver_class", "org.h2.Driver")
+			.setProperty("hibernate.connection.url", URL)
+			.setProperty("hibernate.connection.username", "sa")
+			.setProperty("hibernate.connection.password", "")
+			.setProperty("hibernate.generate_statistics", "true")
+			.buildSessionFactory();
+		service = new TestCatalogService();
+		service.setSessionFactory(sessionFactory);
+		service.begin();
+		final ChannelPipeline pipeline = (ChannelPipeline)Proxy.newProxyInstance(CatalogQueryCacheTestCase.class.getClassLoader(), new Class[]{ChannelPipeline.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if("sendDownstream".equals(method.getName())) {
+					lastFrame.set(((TextWebSocketFrame)((MessageEvent)args[0]).getMessage()).getText());
+				}
+				return null;
+			}
+		});
+		channel = (Channel)Proxy.newProxyInstance(CatalogQueryCacheTestCase.class.getClassLoader(), new Class[]{Channel.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if("write".equals(name)) {
+					lastResponse.set((JsonResponse)args[0]);
+					return Channels.succeededFuture((Channel)proxy);
+				}
+				if("isWritable".equals(name) || "isOpen".equals(name)) return true;
+				if("getPipeline".equals(name)) return pipeline;
+				if("toString".equals(name)) return "TestChannel";
+				if("hashCode".equals(name)) return System.identityHashCode(proxy);
+				if("equals".equals(name)) return proxy==args[0];
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Stops the service and drops the catalog
+	 * @throws Exception thrown on any error
+	 */
+	@AfterClass
+	public static void teardown() throws Exception {
+		if(service!=null) service.end();
+		if(sessionFactory!=null) sessionFactory.close();
+		if(conn!=null) {
+			sql("DROP ALL OBJECTS");
+			conn.close();
+		}
+	}
+	
+	/**
+	 * Executes a catalog update
+	 * @param sql The SQL to execute
+	 * @throws SQLException thrown on any SQL error
+	 */
+	static void sql(String sql) throws SQLException {
+		Statement st = conn.createStatement();
+		try { st.execute(sql); } finally { st.close(); }
+	}
+	
+	/**
+	 * Inserts a host
+	 * @param id The host id
+	 * @param name The host name
+	 * @param domain The host domain
+	 * @throws SQLException thrown on any SQL error
+	 */
+	static void host(int id, String name, String domain) throws SQLException {
+		sql("INSERT INTO HOST (HOST_ID, NAME, DOMAIN, FIRST_CONNECTED, LAST_CONNECTED, CONNECTED) VALUES (" + id + ", '" + name + "', '" + domain + "', CURRENT_TIMESTAMP, CURRENT_TIMESTAMP, CURRENT_TIMESTAMP)");
+	}
+	
+	/**
+	 * Inserts a connected agent
+	 * @param id The agent id
+	 * @param hostId The host id
+	 * @param name The agent name
+	 * @throws SQLException thrown on any SQL error
+	 */
+	static void agent(int id, int hostId, String name) throws SQLException {
+		sql("INSERT INTO AGENT (AGENT_ID, HOST_ID, NAME, MIN_LEVEL, FIRST_CONNECTED, LAST_CONNECTED, CONNECTED, URI) VALUES (" + id + ", " + hostId + ", '" + name + "', 1, CURRENT_TIMESTAMP, CURRENT_TIMESTAMP, CURRENT_TIMESTAMP, 'RESTART')");
+	}
+	
+	/**
+	 * Inserts an active metric
+	 * @param id The metric id
+	 * @param agentId The agent id
+	 * @param namespace The metric namespace
+	 * @param name The metric name
+	 * @throws SQLException thrown on any SQL error
+	 */
+	static void metric(long id, int agentId, String namespace, String name) throws SQLException {
+		sql("INSERT INTO METRIC (METRIC_ID, AGENT_ID, TYPE_ID, NAMESPACE, NARR, LEVEL, NAME, FIRST_SEEN, STATE, LAST_SEEN) VALUES (" + id + ", " + agentId + ", 0, '" + namespace + "', ('" + namespace.substring(1) + "',), 1, '" + name + "', CURRENT_TIMESTAMP, 1, CURRENT_TIMESTAMP)");
+	}
+	
+	/**
+	 * Returns the number of statements hibernate has prepared against the catalog
+	 * @return the number of prepared statements
+	 */
+	static long dbHits() {
+		return sessionFactory.getStatistics().getPrepareStatementCount();
+	}
+	
+	/**
+	 * Issues a named query request to the service
+	 * @param name The named query name
+	 * @param params The query parameters
+	 * @return the response content
+	 * @throws Exception thrown on any error
+	 */
+	static Object nq(String name, JSONObject params) throws Exception {
+		JsonRequest request = new JsonRequest(channel, "req", ++rid, "catalog", "nq", null);
+		request.addArg("name", name);
+		request.addArg("p", params);
+		lastResponse.set(null);
+		service.processNamedQuery(request, channel);
+		Assert.assertNotNull("No response to named query [" + name + "]", lastResponse.get());
+		return lastResponse.get().getContent();
+	}
+	
+	/**
+	 * Issues an agent metric set request to the service
+	 * @param agentId The agent id
+	 * @return the number of metrics in the returned metric set
+	 * @throws Exception thrown on any error
+	 */
+	static int ams(int agentId) throws Exception {
+		JsonRequest request = new JsonRequest(channel, "req", ++rid, "catalog", "ams", null);
+		request.addArg("agentId", "" + agentId);
+		lastFrame.set(null);
+		service.agentMetricSet(request, channel);
+		String frame = lastFrame.get();
+		Assert.assertNotNull("No response to agent metric set", frame);
+		return frame.split("\"id\":\"metric-").length-1;
+	}
+	
+	/**
+	 * Returns the size of a named query result
+	 * @param content The response content
+	 * @return the result size
+	 */
+	static int size(Object content) {
+		return content instanceof Object[] ? ((Object[])content).length : ((Collection<?>)content).size();
+	}
+	
+	/**
+	 * Verifies repeated queries are served from the cache, and that catalog changes invalidate exactly the affected results
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCacheInvalidation() throws Exception {
+		JSONObject agent1 = new JSONObject().put("level", 1).put("agentId", "1");
+		JSONObject agent2 = new JSONObject().put("level", "1").put("agentId", 2);
+		JSONObject domainA = new JSONObject().put("domain", "domainA");
+		JSONObject host1 = new JSONObject().put("hostId", 1);
+		
+		// ==== Cold queries hit the database, warm queries do not ====
+		Assert.assertEquals(2, size(nq("findLevelMetricsForAgent", agent1)));
+		Assert.assertEquals(1, size(nq("findLevelMetricsForAgent", agent2)));
+		Assert.assertEquals(1, size(nq("allDomains", new JSONObject())));
+		Assert.assertEquals(1, size(nq("hostsByDomain", domainA)));
+		Assert.assertEquals(2, size(nq("upAgentsByHost", host1)));
+		Assert.assertEquals(2, ams(1));
+		long hits = dbHits();
+		for(int i = 0; i < 10; i++) {
+			Assert.assertEquals(2, size(nq("findLevelMetricsForAgent", new JSONObject().put("agentId", 1).put("level", "1"))));
+			Assert.assertEquals(1, size(nq("findLevelMetricsForAgent", agent2)));
+			Assert.assertEquals(1, size(nq("allDomains", new JSONObject())));
+			Assert.assertEquals(2, size(nq("upAgentsByHost", host1)));
+			Assert.assertEquals(2, ams(1));
+		}
+		Assert.assertEquals("Warm queries touched the database", hits, dbHits());
+		Assert.assertEquals(6, service.getCachedResults());
+		
+		// ==== A new metric for agent 2 invalidates only agent 2's metric queries ====
+		metric(4, 2, "/platform=JVM", "heap");
+		Assert.assertEquals(2, size(nq("findLevelMetricsForAgent", agent1)));
+		Assert.assertEquals(2, ams(1));
+		Assert.assertEquals(1, size(nq("allDomains", new JSONObject())));
+		Assert.assertEquals("Unaffected queries touched the database", hits, dbHits());
+		Assert.assertEquals(2, size(nq("findLevelMetricsForAgent", agent2)));
+		Assert.assertTrue(dbHits() > hits);
+		
+		// ==== A new metric for agent 1 refreshes agent 1's metric queries and metric set ====
+		metric(5, 1, "/platform=JVM", "threads");
+		Assert.assertEquals(3, size(nq("findLevelMetricsForAgent", agent1)));
+		Assert.assertEquals(3, ams(1));
+		
+		// ==== A metric state change refreshes the metric's state ====
+		sql("UPDATE METRIC SET STATE = 2 WHERE METRIC_ID = 5");
+		boolean found = false;
+		for(Object o: (Object[])nq("findLevelMetricsForAgent", agent1)) {
+			Metric m = (Metric)o;
+			if(m.getMetricId()==5) { Assert.assertEquals(2, m.getState()); found = true; }
+		}
+		Assert.assertTrue(found);
+		
+		// ==== A touch of last seen is not a state change ====
+		hits = dbHits();
+		sql("UPDATE METRIC SET LAST_SEEN = CURRENT_TIMESTAMP WHERE METRIC_ID = 1");
+		nq("findLevelMetricsForAgent", agent1);
+		Assert.assertEquals(hits, dbHits());
+		
+		// ==== A new host refreshes host queries but not metric queries ====
+		host(2, "host2", "domainB");
+		Assert.assertEquals(2, size(nq("allDomains", new JSONObject())));
+		hits = dbHits();
+		nq("findLevelMetricsForAgent", agent1);
+		Assert.assertEquals(hits, dbHits());
+		
+		// ==== An agent disconnect refreshes its host's agent queries ====
+		sql("UPDATE AGENT SET CONNECTED = NULL WHERE AGENT_ID = 2");
+		Assert.assertEquals(1, size(nq("upAgentsByHost", host1)));
+		Assert.assertTrue(service.getCacheInvalidations() > 0);
+		
+		// ==== A host disconnect refreshes the host queries but not metric queries, a touch of last connected does neither ====
+		Assert.assertEquals(1, size(nq("upHostsByDomain", domainA)));
+		hits = dbHits();
+		sql("UPDATE HOST SET LAST_CONNECTED = CURRENT_TIMESTAMP WHERE HOST_ID = 1");
+		Assert.assertEquals(1, size(nq("upHostsByDomain", domainA)));
+		Assert.assertEquals(hits, dbHits());
+		sql("UPDATE HOST SET CONNECTED = NULL, AGENTS = 0 WHERE HOST_ID = 1");
+		nq("findLevelMetricsForAgent", agent1);
+		Assert.assertEquals(hits, dbHits());
+		Assert.assertEquals(0, size(nq("upHostsByDomain", domainA)));
+		Assert.assertEquals(1, size(nq("hostsByDomain", domainA)));
+		
+		// ==== Every cached result matches a fresh query ====
+		service.clearQueryCache();
+		Assert.assertEquals(3, size(nq("findLevelMetricsForAgent", agent1)));
+		Assert.assertEquals(2, size(nq("findLevelMetricsForAgent", agent2)));
+		Assert.assertEquals(2, size(nq("allDomains", new JSONObject())));
+		Assert.assertEquals(1, size(nq("upAgentsByHost", host1)));
+		Assert.assertEquals(0, size(nq("upHostsByDomain", domainA)));
+		Assert.assertEquals(3, ams(1));
+		System.out.println("Cache hits: " + service.getCacheHits() + ", misses: " + service.getCacheMisses() + ", invalidations: " + service.getCacheInvalidations());
+	}
+	
+	/**
+	 * Verifies that a full cache evicts the least recently used result
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testLeastRecentlyUsedEviction() throws Exception {
+		CatalogQueryCache cache = new CatalogQueryCache(2);
+		Assert.assertTrue(cache.put("a", "A", CatalogQueryCache.HOST, -1, -1, cache.generation()));
+		Assert.assertTrue(cache.put("b", "B", CatalogQueryCache.HOST, -1, -1, cache.generation()));
+		Assert.assertEquals("A", cache.get("a"));
+		Assert.assertTrue(cache.put("c", "C", CatalogQueryCache.HOST, -1, -1, cache.generation()));
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals("The recently used result was evicted", "A", cache.get("a"));
+		Assert.assertNull("The least recently used result was not evicted", cache.get("b"));
+		Assert.assertEquals("C", cache.get("c"));
+		long generation = cache.generation();
+		cache.onHostChange(1);
+		Assert.assertFalse("A result computed across a change was cached", cache.put("d", "D", CatalogQueryCache.HOST, -1, -1, generation));
+		Assert.assertEquals(0, cache.size());
+	}
+}
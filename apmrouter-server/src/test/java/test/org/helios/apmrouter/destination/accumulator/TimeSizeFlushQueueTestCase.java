@@ -0,0 +1,282 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.apmrouter.destination.accumulator;
+
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.helios.apmrouter.destination.accumulator.FlushQueueReceiver;
+import org.helios.apmrouter.destination.accumulator.TimeSizeFlushQueue;
+import org.helios.apmrouter.destination.accumulator.TimeSizeFlushQueue.OverflowPolicy;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>Title: TimeSizeFlushQueueTestCase</p>
+ * <p>Description: Verifies delivery, overflow policies and burst behaviour of the ring buffer backed {@link TimeSizeFlushQueue}</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.apmrouter.destination.accumulator.TimeSizeFlushQueueTestCase</code></p>
+ */
+public class TimeSizeFlushQueueTestCase {
+	/** The number of burst producer threads */
+	static final int PRODUCERS = 4;
+	/** The number of items each burst producer adds */
+	static final int PER_PRODUCER = 50000;
+	/** The shared flush thread pool */
+	static final ExecutorService threadPool = Executors.newFixedThreadPool(2);
+	
+	/**
+	 * Shuts down the flush thread pool
+	 */
+	@AfterClass
+	public static void tearDownAfterClass() {
+		threadPool.shutdownNow();
+	}
+	
+	/**
+	 * <p>Title: Item</p>
+	 * <p>Description: A queued item recording its id and enqueue time</p> 
+	 */
+	static class Item {
+		/** The item id */
+		final int id;
+		/** The enqueue time in ns. */
+		final long created = System.nanoTime();
+		Item(int id) {
+			this.id = id;
+		}
+	}
+	
+	/**
+	 * <p>Title: RecordingReceiver</p>
+	 * <p>Description: Counts the deliveries of each item id and the enqueue to delivery latency</p> 
+	 */
+	static class RecordingReceiver implements FlushQueueReceiver<Item> {
+		/** The number of deliveries per item id */
+		final AtomicIntegerArray deliveries;
+		/** The total number of delivered items */
+		final AtomicInteger delivered = new AtomicInteger();
+		/** The total enqueue to delivery latency in ns. */
+		final AtomicLong totalLatency = new AtomicLong();
+		/** The maximum enqueue to delivery latency in ns. */
+		volatile long maxLatency = 0;
+		/** A simulated per-batch processing cost in ns. */
+		final long batchCost;
+		RecordingReceiver(int size, long batchCost) {
+			deliveries = new AtomicIntegerArray(size);
+			this.batchCost = batchCost;
+		}
+		@Override
+		public void flushTo(Collection<Item> flushedItems) {
+			long now = System.nanoTime();
+			for(Item item: flushedItems) {
+				deliveries.incrementAndGet(item.id);
+				long latency = now - item.created;
+				totalLatency.addAndGet(latency);
+				if(latency>maxLatency) maxLatency = latency;
+			}
+			delivered.addAndGet(flushedItems.size());
+			if(batchCost>0) {
+				long end = System.nanoTime() + batchCost;
+				while(System.nanoTime() < end) { /* simulated work */ }
+			}
+		}
+		/**
+		 * Waits until the expected number of items have been delivered
+		 * @param expected The expected number of delivered items
+		 * @param timeout The timeout in ms.
+		 */
+		void await(int expected, long timeout) throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+			while(delivered.get() < expected && System.currentTimeMillis() < end) {
+				Thread.sleep(5);
+			}
+		}
+	}
+	
+	/**
+	 * Runs a multi-producer burst into the passed queue
+	 * @param queue The queue to add to
+	 * @param perProducer The number of items each producer adds
+	 * @return the elapsed time in ns.
+	 */
+	static long burst(final TimeSizeFlushQueue<Item> queue, final int perProducer) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(PRODUCERS);
+		for(int p = 0; p < PRODUCERS; p++) {
+			final int base = p * perProducer;
+			Thread t = new Thread("BurstProducer#" + p) {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for(int i = 0; i < perProducer; i++) {
+							queue.add(new Item(base + i));
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		Assert.assertTrue("Burst timed out", done.await(30, TimeUnit.SECONDS));
+		return System.nanoTime() - begin;
+	}
+	
+	/**
+	 * Verifies that a blocking queue delivers every item of a multi-producer burst exactly once, 
+	 * and that the same instance added twice is delivered twice.
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testBurstDeliversEveryItemOnce() throws Exception {
+		final int total = PRODUCERS * PER_PRODUCER;
+		RecordingReceiver receiver = new RecordingReceiver(total + 1, 0);
+		TimeSizeFlushQueue<Item> queue = new TimeSizeFlushQueue<Item>("BurstBlock", 100, 50, 1024, OverflowPolicy.BLOCK, receiver, null, threadPool);
+		long elapsed = burst(queue, PER_PRODUCER);
+		Item twice = new Item(total);
+		queue.add(twice);
+		queue.add(twice);
+		receiver.await(total + 2, 10000);
+		queue.shutdown();
+		Assert.assertEquals("Drop count", 0, queue.getQueueDropCount());
+		Assert.assertEquals("Delivered count", total + 2, receiver.delivered.get());
+		for(int i = 0; i < total; i++) {
+			Assert.assertEquals("Deliveries of item #" + i, 1, receiver.deliveries.get(i));
+		}
+		Assert.assertEquals("Deliveries of item added twice", 2, receiver.deliveries.get(total));
+		Assert.assertEquals("Queue size after flush", 0, queue.getQueueSize());
+		log("Blocking burst: %s items in %s ms, %s flushes, avg latency %s us", total, TimeUnit.NANOSECONDS.toMillis(elapsed), queue.getFlushCount(), TimeUnit.NANOSECONDS.toMicros(receiver.totalLatency.get()/receiver.delivered.get()));
+	}
+	
+	/**
+	 * Compares drops and latency of a burst against a slow receiver between a queue bounded near the size trigger 
+	 * (the bound of the previous blocking queue implementation) and a ring sized to absorb the burst.
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testBurstDropsAndLatency() throws Exception {
+		final int perProducer = 2000;
+		final int total = PRODUCERS * perProducer;
+		RecordingReceiver tightReceiver = new RecordingReceiver(total, 20000);
+		TimeSizeFlushQueue<Item> tight = new TimeSizeFlushQueue<Item>("BurstTight", 100, 50, 102, OverflowPolicy.DROP_NEWEST, tightReceiver, null, threadPool);
+		burst(tight, perProducer);
+		tightReceiver.await((int)(total - tight.getQueueDropCount()), 10000);
+		tight.shutdown();
+		
+		RecordingReceiver ringReceiver = new RecordingReceiver(total, 20000);
+		TimeSizeFlushQueue<Item> ring = new TimeSizeFlushQueue<Item>("BurstRing", 100, 50, total, OverflowPolicy.DROP_NEWEST, ringReceiver, null, threadPool);
+		burst(ring, perProducer);
+		ringReceiver.await((int)(total - ring.getQueueDropCount()), 10000);
+		ring.shutdown();
+		
+		log("Capacity %s: %s drops, %s delivered, max latency %s us", tight.getQueueCapacity(), tight.getQueueDropCount(), tightReceiver.delivered.get(), TimeUnit.NANOSECONDS.toMicros(tightReceiver.maxLatency));
+		log("Capacity %s: %s drops, %s delivered, max latency %s us", ring.getQueueCapacity(), ring.getQueueDropCount(), ringReceiver.delivered.get(), TimeUnit.NANOSECONDS.toMicros(ringReceiver.maxLatency));
+		Assert.assertEquals("Tight delivered + dropped", total, tightReceiver.delivered.get() + tight.getQueueDropCount());
+		Assert.assertEquals("Ring delivered + dropped", total, ringReceiver.delivered.get() + ring.getQueueDropCount());
+		Assert.assertEquals("Ring sized for the burst dropped items", 0, ring.getQueueDropCount());
+	}
+	
+	/**
+	 * Fills a queue whose flushes are held up behind a blocked executor, then releases the executor and returns the receiver
+	 * @param policy The overflow policy to test
+	 * @param count The number of items to add
+	 * @param queueRef Receives the created queue
+	 * @return the receiver
+	 */
+	static RecordingReceiver overflow(OverflowPolicy policy, int count, TimeSizeFlushQueue<?>[] queueRef) throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		final CountDownLatch hold = new CountDownLatch(1);
+		try {
+			executor.execute(new Runnable(){
+				@Override
+				public void run() {
+					try { hold.await(); } catch (InterruptedException e) { /* releasing */ }
+				}
+			});
+			RecordingReceiver receiver = new RecordingReceiver(count, 0);
+			TimeSizeFlushQueue<Item> queue = new TimeSizeFlushQueue<Item>("Overflow" + policy, 1000, 60000, 64, policy, receiver, null, executor);
+			queue.setBlockTimeout(2);
+			queueRef[0] = queue;
+			for(int i = 0; i < count; i++) {
+				queue.add(new Item(i));
+			}
+			Assert.assertEquals("Queue size when full", 64, queue.getQueueSize());
+			hold.countDown();
+			queue.shutdown();
+			receiver.await(64, 5000);
+			return receiver;
+		} finally {
+			hold.countDown();
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Verifies which items each overflow policy retains when the queue is full
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testOverflowPolicies() throws Exception {
+		TimeSizeFlushQueue<?>[] queue = new TimeSizeFlushQueue<?>[1];
+		for(OverflowPolicy policy: new OverflowPolicy[]{OverflowPolicy.DROP_NEWEST, OverflowPolicy.BLOCK}) {
+			RecordingReceiver receiver = overflow(policy, 100, queue);
+			Assert.assertEquals(policy + " drop count", 36, queue[0].getQueueDropCount());
+			Assert.assertEquals(policy + " delivered", 64, receiver.delivered.get());
+			for(int i = 0; i < 100; i++) {
+				Assert.assertEquals(policy + " deliveries of item #" + i, i < 64 ? 1 : 0, receiver.deliveries.get(i));
+			}
+		}
+		RecordingReceiver receiver = overflow(OverflowPolicy.DROP_OLDEST, 100, queue);
+		Assert.assertEquals("DROP_OLDEST drop count", 36, queue[0].getQueueDropCount());
+		Assert.assertEquals("DROP_OLDEST delivered", 64, receiver.delivered.get());
+		for(int i = 0; i < 100; i++) {
+			Assert.assertEquals("DROP_OLDEST deliveries of item #" + i, i < 36 ? 0 : 1, receiver.deliveries.get(i));
+		}
+	}
+	
+	/**
+	 * Formatted out logger
+	 * @param fmt The format
+	 * @param args The format args
+	 */
+	public static void log(String fmt, Object...args) {
+		System.out.println(String.format(fmt, args));
+	}
+}
@@ -0,0 +1,279 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.apmrouter.destination.chronicletimeseries;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+import org.helios.apmrouter.destination.chronicletimeseries.ChronicleTSManager;
+import org.helios.apmrouter.destination.chronicletimeseries.ChronicleTier;
+import org.helios.apmrouter.metric.ICEMetric;
+import org.helios.apmrouter.metric.MetricType;
+import org.helios.apmrouter.metric.catalog.ICEMetricCatalog;
+import org.helios.apmrouter.metric.catalog.IDelegateMetric;
+import org.helios.apmrouter.util.SystemClock;
+import org.junit.Assert;
+import org.junit.Test;
+
+import vanilla.java.chronicle.impl.IndexedChronicle;
+import vanilla.java.chronicle.impl.UnsafeExcerpt;
+
+/**
+ * <p>Title: ChronicleReplicationTestCase</p>
+ * <p>Description: Runs a primary and a hot-standby chronicle time-series in two local processes, loads the primary 
+ * and verifies the replication lag stays small and that the standby's live tier converges to the primary's.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.apmrouter.destination.chronicletimeseries.ChronicleReplicationTestCase</code></p>
+ */
+public class ChronicleReplicationTestCase {
+	/** The number of metrics the primary writes */
+	static final int METRICS = 500;
+	/** The time the primary writes for in ms. */
+	static final long LOAD_TIME = 5000;
+	/** The replication period in ms. */
+	static final long PERIOD = 50;
+	/** The maximum acceptable replication lag in ms., an entry waits up to one period for its tick, so a replica that cannot apply a batch within another period is falling behind */
+	static final long MAX_LAG = PERIOD * 2;
+	/** The maximum acceptable median replication lag in ms., entries are written throughout the period so the oldest of each tick waits about one period */
+	static final long MAX_MEDIAN_LAG = PERIOD + PERIOD/2;
+
+	/**
+	 * Loads a primary and verifies that the hot-standby keeps up and converges
+	 * @throws Exception thrown on any error
+	 */
+	@Test(timeout=120000)
+	public void testHotStandbyReplication() throws Exception {
+		final int port;
+		ServerSocket ss = new ServerSocket(0);
+		port = ss.getLocalPort();
+		ss.close();
+		File home = new File(System.getProperty("java.io.tmpdir"), "chronicle-replication-" + System.nanoTime());
+		Process primary = null, replica = null;
+		try {
+			primary = launch(new File(home, "primary"), "primary", "" + port);
+			replica = launch(new File(home, "replica"), "replica", "" + port);
+			final AtomicReference<String> primaryDigest = new AtomicReference<String>();
+			final AtomicReference<String> replicaDigest = new AtomicReference<String>();
+			final List<Long> lags = Collections.synchronizedList(new ArrayList<Long>());
+			final AtomicReference<Boolean> loading = new AtomicReference<Boolean>(null);
+			pump(primary, new LineHandler() {
+				@Override
+				public void onLine(String line) {
+					if(line.startsWith("LOADING")) loading.set(true);
+					else if(line.startsWith("DIGEST")) { loading.set(false); primaryDigest.set(line); }
+				}
+			});
+			pump(replica, new LineHandler() {
+				@Override
+				public void onLine(String line) {
+					if(line.startsWith("LAG")) {
+						long lag = Long.parseLong(line.split(" ")[1]);
+						if(lag>=0 && Boolean.TRUE.equals(loading.get())) lags.add(lag);
+					} else if(line.startsWith("DIGEST")) {
+						replicaDigest.set(line);
+					}
+				}
+			});
+			long deadline = System.currentTimeMillis() + 90000;
+			while(System.currentTimeMillis() < deadline) {
+				String p = primaryDigest.get();
+				if(p!=null && p.equals(replicaDigest.get())) break;
+				Thread.sleep(200);
+			}
+			log("Primary Digest:" + primaryDigest.get() + "  Replica Digest:" + replicaDigest.get());
+			Assert.assertNotNull("The primary never finished loading", primaryDigest.get());
+			Assert.assertEquals("The replica did not converge to the primary", primaryDigest.get(), replicaDigest.get());
+			Assert.assertFalse("No lag samples were taken under load", lags.isEmpty());
+			List<Long> sorted = new ArrayList<Long>(lags);
+			Collections.sort(sorted);
+			long median = sorted.get(sorted.size()/2), max = sorted.get(sorted.size()-1);
+			log("Lag under load: samples:" + sorted.size() + "  median:" + median + " ms  max:" + max + " ms");
+			Assert.assertTrue("Median lag under load [" + median + "] exceeded [" + MAX_MEDIAN_LAG + "]", median < MAX_MEDIAN_LAG);
+			Assert.assertTrue("Maximum lag under load [" + max + "] exceeded [" + MAX_LAG + "]", max < MAX_LAG);
+		} finally {
+			if(primary!=null) primary.destroy();
+			if(replica!=null) replica.destroy();
+			delete(home);
+		}
+	}
+	
+	/**
+	 * Runs a primary or replica chronicle time-series. The chronicle home must be set in the system properties.
+	 * <ul>
+	 * 	<li><b>primary &lt;port&gt;</b>: writes to the live tier for {@link #LOAD_TIME} and then prints the live tier digest</li>
+	 * 	<li><b>replica &lt;port&gt;</b>: replicates from the primary, printing the lag and the live tier digest</li>
+	 * </ul>
+	 * @param args The role and the replication port
+	 * @throws Exception thrown on any error
+	 */
+	public static void main(String[] args) throws Exception {
+		ChronicleTSManager cts = new ChronicleTSManager("p=15s,t=5m");
+		cts.setExecutorService(Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				return t;
+			}
+		}));
+		cts.setReplicationPeriod(PERIOD);
+		ChronicleTier live = cts.getLiveTier();
+		if("primary".equals(args[0])) {
+			cts.setReplicationPort(Integer.parseInt(args[1]));
+			cts.start();
+			ICEMetricCatalog catalog = ICEMetricCatalog.getInstance();
+			IDelegateMetric[] metrics = new IDelegateMetric[METRICS];
+			for(int i = 0; i < METRICS; i++) {
+				long token = live.createNewMetric();
+				catalog.setToken(token, "replication-host", "replication-agent", "metric" + i, MetricType.LONG_GAUGE, "test");
+				metrics[i] = catalog.get("replication-host", "replication-agent", "metric" + i, MetricType.LONG_GAUGE, "test");
+			}
+			// give the replica time to connect
+			while(cts.getReplicaCount()==0) Thread.sleep(100);
+			System.out.println("LOADING");
+			long end = System.currentTimeMillis() + LOAD_TIME;
+			long value = 0;
+			while(System.currentTimeMillis() < end) {
+				for(int i = 0; i < METRICS; i++) {
+					live.addValue(ICEMetric.newMetric(SystemClock.time(), value++, MetricType.LONG_GAUGE, metrics[i]));
+				}
+			}
+			System.out.println("DIGEST " + digest(live));
+			// keep serving until the test destroys this process
+			while(true) Thread.sleep(1000);
+		}
+		cts.setReplicateFrom("localhost:" + args[1]);
+		cts.start();
+		while(true) {
+			System.out.println("LAG " + cts.getReplicationLagMs());
+			System.out.println("DIGEST " + digest(live));
+			Thread.sleep(100);
+		}
+	}
+	
+	/**
+	 * Computes a digest of the size and entry bytes of the passed tier
+	 * @param tier The tier to digest
+	 * @return the size and CRC of the tier
+	 */
+	static String digest(ChronicleTier tier) {
+		CRC32 crc = new CRC32();
+		byte[] entry = new byte[tier.getEntrySize()];
+		long size = tier.getSize();
+		for(long index = 0; index < size; index++) {
+			UnsafeExcerpt<IndexedChronicle> ex = tier.createUnsafeExcerpt(index);
+			ex.position(0);
+			ex.readFully(entry);
+			crc.update(entry);
+		}
+		return size + " " + crc.getValue();
+	}
+	
+	/**
+	 * Launches a primary or replica process
+	 * @param home The chronicle home directory for the process
+	 * @param args The role and port
+	 * @return the process
+	 * @throws Exception thrown on any error
+	 */
+	static Process launch(File home, String...args) throws Exception {
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add("-D" + ChronicleTier.CHRONICLE_HOME_PROP + "=" + home.getAbsolutePath());
+		cmd.add(ChronicleReplicationTestCase.class.getName());
+		Collections.addAll(cmd, args);
+		return new ProcessBuilder(cmd).redirectErrorStream(true).start();
+	}
+	
+	/**
+	 * <p>Title: LineHandler</p>
+	 * <p>Description: Callback for lines read from a child process</p> 
+	 */
+	interface LineHandler {
+		/**
+		 * Called for each line read
+		 * @param line The line read
+		 */
+		void onLine(String line);
+	}
+	
+	/**
+	 * Starts a thread reading lines from the passed process
+	 * @param process The process to read from
+	 * @param handler The handler to pass lines to
+	 */
+	static void pump(final Process process, final LineHandler handler) {
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+					String line = null;
+					while((line = reader.readLine())!=null) {
+						handler.onLine(line);
+					}
+				} catch (Exception ex) {
+					/* No Op */
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * Recursively deletes the passed file
+	 * @param f The file to delete
+	 */
+	static void delete(File f) {
+		File[] children = f.listFiles();
+		if(children!=null) {
+			for(File c: children) delete(c);
+		}
+		f.delete();
+	}
+	
+	/**
+	 * Out logger
+	 * @param msg the message
+	 */
+	static void log(Object msg) {
+		System.out.println(msg);
+	}
+}
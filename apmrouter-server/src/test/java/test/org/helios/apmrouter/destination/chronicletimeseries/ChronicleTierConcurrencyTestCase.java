@@ -0,0 +1,210 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.apmrouter.destination.chronicletimeseries;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.helios.apmrouter.destination.chronicletimeseries.ChronicleTSManager;
+import org.helios.apmrouter.destination.chronicletimeseries.ChronicleTier;
+import org.helios.apmrouter.metric.ICEMetric;
+import org.helios.apmrouter.metric.MetricType;
+import org.helios.apmrouter.metric.catalog.ICEMetricCatalog;
+import org.helios.apmrouter.metric.catalog.IDelegateMetric;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * <p>Title: ChronicleTierConcurrencyTestCase</p>
+ * <p>Description: Has several threads add values concurrently to the live tier, both to series every thread writes and to series 
+ * owned by one thread, with fewer write stripes than series so that distinct series share stripes, and verifies that every 
+ * value landed in its own series' current period.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.apmrouter.destination.chronicletimeseries.ChronicleTierConcurrencyTestCase</code></p>
+ */
+public class ChronicleTierConcurrencyTestCase {
+	/** The number of writer threads */
+	static final int THREADS = 8;
+	/** The number of series every thread writes to */
+	static final int SHARED = 16;
+	/** The number of series each thread writes to alone */
+	static final int OWNED = 8;
+	/** The number of values each thread adds to each of its series */
+	static final int ROUNDS = 2000;
+	/** The number of write stripes, fewer than the series */
+	static final int STRIPES = 4;
+	
+	/** The chronicle home directory */
+	static File home = null;
+	/** The time-series manager */
+	static ChronicleTSManager cts = null;
+	
+	/**
+	 * Points the chronicle home at a temporary directory and creates the time-series
+	 * @throws Exception thrown on any error
+	 */
+	@BeforeClass
+	public static void setup() throws Exception {
+		home = File.createTempFile("chronicle-tier", "");
+		home.delete();
+		home.mkdirs();
+		System.setProperty(ChronicleTier.CHRONICLE_HOME_PROP, home.getAbsolutePath());
+		System.setProperty(ChronicleTier.WRITE_STRIPES_PROP, "" + STRIPES);
+		// the home is fixed when the tier class loads, so do not write to another test's, or the user's, chronicles
+		Assume.assumeTrue(ChronicleTier.CHRONICLE_HOME_DIR.getAbsoluteFile().equals(home.getAbsoluteFile()));
+		cts = new ChronicleTSManager("p=15s,t=5m");
+	}
+	
+	/**
+	 * Closes the live tier and deletes the chronicle home
+	 */
+	@AfterClass
+	public static void teardown() {
+		System.clearProperty(ChronicleTier.WRITE_STRIPES_PROP);
+		if(cts!=null) cts.getLiveTier().close();
+		if(home!=null) ChronicleReplicationTestCase.delete(home);
+	}
+	
+	/**
+	 * Adds values to shared and owned series from concurrent threads and verifies the count, minimum and maximum of each series
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testConcurrentWriters() throws Exception {
+		final ChronicleTier live = cts.getLiveTier();
+		final ICEMetricCatalog catalog = ICEMetricCatalog.getInstance();
+		final IDelegateMetric[] shared = new IDelegateMetric[SHARED];
+		final IDelegateMetric[][] owned = new IDelegateMetric[THREADS][OWNED];
+		for(int s = 0; s < SHARED; s++) {
+			shared[s] = delegate(live, catalog, "shared" + s);
+		}
+		for(int t = 0; t < THREADS; t++) {
+			for(int o = 0; o < OWNED; o++) {
+				owned[t][o] = delegate(live, catalog, "owned" + t + "-" + o);
+			}
+		}
+		// one timestamp for every value so they all land in the same period
+		final long timestamp = System.currentTimeMillis();
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final CountDownLatch endLatch = new CountDownLatch(THREADS);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		for(int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			new Thread("ChronicleTierWriter#" + t) {
+				@Override
+				public void run() {
+					try {
+						startLatch.await();
+						for(int r = 0; r < ROUNDS; r++) {
+							for(int s = 0; s < SHARED; s++) {
+								live.addValue(ICEMetric.newMetric(timestamp, sharedValue(thread, s), MetricType.LONG_GAUGE, shared[s]));
+							}
+							for(int o = 0; o < OWNED; o++) {
+								IDelegateMetric d = owned[thread][o];
+								live.addValue(ICEMetric.newMetric(timestamp, ownedValue(d.getToken(), r), MetricType.LONG_GAUGE, d));
+							}
+						}
+					} catch (Throwable ex) {
+						failure.set(ex);
+					} finally {
+						endLatch.countDown();
+					}
+				}
+			}.start();
+		}
+		startLatch.countDown();
+		endLatch.await();
+		Assert.assertNull("A writer failed", failure.get());
+		for(int s = 0; s < SHARED; s++) {
+			long[] values = currentPeriod(live, shared[s].getToken());
+			Assert.assertEquals("Count of shared series " + s, THREADS * ROUNDS, values[3]);
+			Assert.assertEquals("Min of shared series " + s, sharedValue(0, s), values[0]);
+			Assert.assertEquals("Max of shared series " + s, sharedValue(THREADS-1, s), values[1]);
+		}
+		for(int t = 0; t < THREADS; t++) {
+			for(int o = 0; o < OWNED; o++) {
+				long token = owned[t][o].getToken();
+				long[] values = currentPeriod(live, token);
+				Assert.assertEquals("Count of owned series " + t + "-" + o, ROUNDS, values[3]);
+				Assert.assertEquals("Min of owned series " + t + "-" + o, ownedValue(token, 0), values[0]);
+				Assert.assertEquals("Max of owned series " + t + "-" + o, ownedValue(token, 1), values[1]);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the value a thread adds to a shared series, distinct for each thread and series
+	 * @param thread The thread index
+	 * @param series The shared series index
+	 * @return the value
+	 */
+	static long sharedValue(int thread, int series) {
+		return (thread + 1) * 1000L + series;
+	}
+	
+	/**
+	 * Returns the value added to an owned series in a round, which identifies the series so a value written to another series' entry shows
+	 * @param token The series' metric ID
+	 * @param round The round
+	 * @return the value
+	 */
+	static long ownedValue(long token, int round) {
+		return 1000000L + token * 10 + (round & 1);
+	}
+	
+	/**
+	 * Creates a live tier entry and a metric tokenized with its metric ID
+	 * @param live The live tier
+	 * @param catalog The metric catalog
+	 * @param name The metric name
+	 * @return the tokenized delegate metric
+	 */
+	static IDelegateMetric delegate(ChronicleTier live, ICEMetricCatalog catalog, String name) {
+		long token = live.createNewMetric();
+		catalog.setToken(token, "tier-host", "tier-agent", name, MetricType.LONG_GAUGE, "concurrency");
+		return catalog.get("tier-host", "tier-agent", name, MetricType.LONG_GAUGE, "concurrency");
+	}
+	
+	/**
+	 * Returns the single period of a series as <code>[min, max, avg, count]</code>
+	 * @param live The live tier
+	 * @param metricId The series' metric ID
+	 * @return the period values
+	 */
+	static long[] currentPeriod(ChronicleTier live, long metricId) {
+		Map<Long, long[]> periods = live.getSeries(metricId).getPeriods();
+		List<Long> keys = new ArrayList<Long>(periods.keySet());
+		Assert.assertEquals("Periods of series " + metricId + ": " + keys, 1, periods.size());
+		return periods.get(keys.get(0));
+	}
+}
@@ -0,0 +1,422 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.apmrouter.server.net;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.helios.apmrouter.OpCode;
+import org.helios.apmrouter.sender.netty.UDPSender;
+import org.helios.apmrouter.server.net.listener.netty.UDPAgentListener;
+import org.helios.apmrouter.server.net.listener.netty.handlers.AgentRequestHandler;
+import org.helios.apmrouter.server.net.listener.netty.handlers.JsonResponseDownstreamHandler;
+import org.helios.apmrouter.server.net.listener.netty.handlers.udp.UDPAgentOperationRouter;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.MemoryAwareThreadPoolExecutor;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.context.support.StaticApplicationContext;
+
+/**
+ * <p>Title: UDPAgentListenerTestCase</p>
+ * <p>Description: Starts {@link UDPAgentListener}s with the same pipeline factory and handler beans the server configures,
+ * and verifies the resolved pipeline, the socket range advertised in {@link OpCode#HELLO_CONFIRM}, the thread that decodes with and
+ * without the execution handler, and the socket each agent lands on as the socket count changes.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.apmrouter.server.net.UDPAgentListenerTestCase</code></p>
+ */
+public class UDPAgentListenerTestCase {
+	/** The number of simulated agents */
+	static final int AGENTS = 8;
+	/** The number of metric datagrams sent by each agent */
+	static final int DATAGRAMS = 20;
+	/** The execution handler bean name */
+	static final String EXEC_HANDLER = "UDPExecutionHandler";
+	/** The op router bean name */
+	static final String OP_ROUTER = "UDPAgentOperationRouter";
+	
+	/**
+	 * <p>Title: RecordingThreadFactory</p>
+	 * <p>Description: A thread factory that remembers the threads it created</p> 
+	 */
+	static class RecordingThreadFactory implements ThreadFactory {
+		/** The created threads */
+		final Set<Thread> threads = new CopyOnWriteArraySet<Thread>();
+		/** The thread name prefix */
+		final String prefix;
+		/** The thread serial number */
+		final AtomicInteger serial = new AtomicInteger(0);
+		
+		/**
+		 * Creates a new RecordingThreadFactory
+		 * @param prefix The thread name prefix
+		 */
+		RecordingThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + "#" + serial.incrementAndGet());
+			t.setDaemon(true);
+			threads.add(t);
+			return t;
+		}
+	}
+	
+	/**
+	 * <p>Title: MetricSink</p>
+	 * <p>Description: A {@link OpCode#SEND_METRIC} handler that records the sending agent, the local port and the decoding thread of each datagram</p> 
+	 */
+	static class MetricSink implements AgentRequestHandler {
+		/** The local ports each agent's datagrams arrived on, keyed by the agent index */
+		final Map<Integer, Set<Integer>> agentPorts = new ConcurrentHashMap<Integer, Set<Integer>>();
+		/** The threads that handled a datagram */
+		final Set<Thread> threads = new CopyOnWriteArraySet<Thread>();
+		/** The number of datagrams handled */
+		final AtomicLong received = new AtomicLong(0L);
+		
+		@Override
+		public void processAgentRequest(OpCode opCode, ChannelBuffer buff, SocketAddress remoteAddress, Channel channel) {
+			int agent = buff.getInt(1);
+			Set<Integer> ports = agentPorts.get(agent);
+			if(ports==null) {
+				synchronized(agentPorts) {
+					ports = agentPorts.get(agent);
+					if(ports==null) {
+						ports = new CopyOnWriteArraySet<Integer>();
+						agentPorts.put(agent, ports);
+					}
+				}
+			}
+			ports.add(((InetSocketAddress)channel.getLocalAddress()).getPort());
+			threads.add(Thread.currentThread());
+			received.incrementAndGet();
+		}
+		
+		@Override
+		public OpCode[] getHandledOpCodes() {
+			return new OpCode[]{OpCode.SEND_METRIC};
+		}
+	}
+	
+	/**
+	 * <p>Title: TestOperationRouter</p>
+	 * <p>Description: The production op router with the json response handler that spring would autowire</p> 
+	 */
+	static class TestOperationRouter extends UDPAgentOperationRouter {
+		/**
+		 * Creates a new TestOperationRouter
+		 * @param sink The metric handler
+		 */
+		TestOperationRouter(MetricSink sink) {
+			jsonResponseDownstreamHandler = new JsonResponseDownstreamHandler();
+			setAgentRequestHandlers(Collections.<AgentRequestHandler>singleton(sink));
+		}
+	}
+	
+	/**
+	 * <p>Title: TestUDPListener</p>
+	 * <p>Description: A UDPAgentListener resolving its pipeline from a static application context holding the production handlers</p> 
+	 */
+	static class TestUDPListener extends UDPAgentListener {
+		/** The metric handler */
+		final MetricSink sink = new MetricSink();
+		/** The netty reader threads */
+		final RecordingThreadFactory readers = new RecordingThreadFactory("UDPReader");
+		/** The execution handler threads */
+		final RecordingThreadFactory decoders = new RecordingThreadFactory("UDPDecode");
+		/** The base port */
+		final int basePort;
+		
+		/**
+		 * Creates and starts a new TestUDPListener
+		 * @param basePort The base port
+		 * @param sockets The number of sockets
+		 * @param pooled true to install the execution handler ahead of the op router
+		 * @throws Exception thrown on any error
+		 */
+		TestUDPListener(int basePort, int sockets, boolean pooled) throws Exception {
+			this.basePort = basePort;
+			StaticApplicationContext ctx = new StaticApplicationContext();
+			ctx.getBeanFactory().registerSingleton(EXEC_HANDLER, new ExecutionHandler(new MemoryAwareThreadPoolExecutor(4, 1048576, 1048576, 30, TimeUnit.SECONDS, decoders)));
+			ctx.getBeanFactory().registerSingleton(OP_ROUTER, new TestOperationRouter(sink));
+			ctx.refresh();
+			Map<Integer, String> handlers = new HashMap<Integer, String>();
+			if(pooled) handlers.put(0, EXEC_HANDLER);
+			handlers.put(1, OP_ROUTER);
+			setChannelHandlers(handlers);
+			setApplicationContext(ctx);
+			setBindHost("127.0.0.1");
+			setBindPort(basePort);
+			setSocketCount(sockets);
+			setWorkerPool(Executors.newCachedThreadPool(readers));
+			start();
+			onApplicationContextRefresh(null);
+		}
+		
+		/**
+		 * Stops this listener
+		 */
+		void close() {
+			try { stop(); } catch (Exception ex) {/* No Op */}
+			workerPool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Sends {@link #DATAGRAMS} metric datagrams from each of {@link #AGENTS} agents to the socket {@link UDPSender} would select
+	 * and waits until every agent has been handled at least once
+	 * @param listener The listener to send to
+	 * @param sockets The number of sockets the agents select from
+	 * @return a map of the expected port keyed by agent index
+	 * @throws Exception thrown on any error
+	 */
+	static Map<Integer, Integer> send(TestUDPListener listener, int sockets) throws Exception {
+		Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			for(int a = 0; a < AGENTS; a++) {
+				int port = listener.basePort + UDPSender.socketIndex("host" + a + ":agent", sockets);
+				expected.put(a, port);
+				byte[] payload = ByteBuffer.allocate(5).put(OpCode.SEND_METRIC.op()).putInt(a).array();
+				DatagramPacket packet = new DatagramPacket(payload, payload.length, new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+				for(int i = 0; i < DATAGRAMS; i++) {
+					socket.send(packet);
+				}
+			}
+		} finally {
+			socket.close();
+		}
+		long timeout = System.currentTimeMillis() + 10000;
+		while(listener.sink.agentPorts.size() < AGENTS && System.currentTimeMillis() < timeout) {
+			Thread.sleep(50);
+		}
+		Assert.assertEquals("Agents handled", AGENTS, listener.sink.agentPorts.size());
+		Thread.sleep(200);
+		System.out.println(String.format("[UDPAgentListenerTestCase] %s sockets: sent %s, handled %s", 
+				sockets, AGENTS * DATAGRAMS, listener.sink.received.get()));
+		return expected;
+	}
+	
+	/**
+	 * Sends a HELLO to the passed port and returns the HELLO_CONFIRM
+	 * @param port The port to send to
+	 * @return the confirm datagram content
+	 * @throws Exception thrown on any error
+	 */
+	static ByteBuffer hello(int port) throws Exception {
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			socket.setSoTimeout(5000);
+			byte[] payload = new byte[]{OpCode.HELLO.op()};
+			socket.send(new DatagramPacket(payload, 1, new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port)));
+			byte[] buff = new byte[64];
+			DatagramPacket response = new DatagramPacket(buff, buff.length);
+			socket.receive(response);
+			return ByteBuffer.wrap(buff, 0, response.getLength());
+		} finally {
+			socket.close();
+		}
+	}
+	
+	/**
+	 * Verifies the listener resolves its pipeline handlers by bean name in the configured order
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testPipelineResolvedByBeanName() throws Exception {
+		TestUDPListener listener = new TestUDPListener(freePort(1), 1, true);
+		try {
+			Assert.assertArrayEquals("Unexpected handler names", new String[]{EXEC_HANDLER, OP_ROUTER}, listener.getChannelHandlerNames());
+			Assert.assertEquals("Unexpected pipeline", Arrays.asList(EXEC_HANDLER, OP_ROUTER), listener.getPipeline().getNames());
+			Assert.assertTrue("Execution handler not first", listener.getPipeline().getFirst() instanceof ExecutionHandler);
+		} finally {
+			listener.close();
+		}
+	}
+	
+	/**
+	 * Verifies the HELLO_CONFIRM advertises the socket range of a multi socket listener from any of its sockets
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testHelloConfirmSocketRange() throws Exception {
+		int basePort = freePort(4);
+		TestUDPListener listener = new TestUDPListener(basePort, 4, true);
+		try {
+			Assert.assertArrayEquals("Unexpected bound ports", new int[]{basePort, basePort+1, basePort+2, basePort+3}, listener.getBoundPorts());
+			for(int i = 0; i < 4; i++) {
+				ByteBuffer confirm = hello(basePort + i);
+				Assert.assertEquals("Confirm length", 17, confirm.remaining());
+				Assert.assertEquals("Confirm op", OpCode.HELLO_CONFIRM.op(), confirm.get());
+				Assert.assertEquals("Base port", basePort, confirm.getInt());
+				Assert.assertEquals("Socket count", 4, confirm.getInt());
+				Assert.assertEquals("Catalog epoch", 0L, confirm.getLong());
+			}
+		} finally {
+			listener.close();
+		}
+	}
+	
+	/**
+	 * Verifies the HELLO_CONFIRM of a single socket listener advertises its own port with a count of one
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testHelloConfirmSingleSocket() throws Exception {
+		int basePort = freePort(1);
+		TestUDPListener listener = new TestUDPListener(basePort, 1, true);
+		try {
+			ByteBuffer confirm = hello(basePort);
+			Assert.assertEquals("Confirm op", OpCode.HELLO_CONFIRM.op(), confirm.get());
+			Assert.assertEquals("Base port", basePort, confirm.getInt());
+			Assert.assertEquals("Socket count", 1, confirm.getInt());
+		} finally {
+			listener.close();
+		}
+	}
+	
+	/**
+	 * Varies only the decode mode on a single socket listener and verifies where ops are handled:
+	 * on the netty reader threads without the execution handler and only on the execution pool with it
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testDecodeMode() throws Exception {
+		int basePort = freePort(1);
+		TestUDPListener inline = new TestUDPListener(basePort, 1, false);
+		try {
+			send(inline, 1);
+			Assert.assertTrue("Inline ops not handled on reader threads", inline.readers.threads.containsAll(inline.sink.threads));
+			Assert.assertTrue("Decode pool used without execution handler", inline.decoders.threads.isEmpty());
+		} finally {
+			inline.close();
+		}
+		TestUDPListener pooled = new TestUDPListener(basePort, 1, true);
+		try {
+			send(pooled, 1);
+			Assert.assertTrue("Pooled ops not handled on the decode pool", pooled.decoders.threads.containsAll(pooled.sink.threads));
+			for(Thread t: pooled.sink.threads) {
+				Assert.assertFalse("Pooled op handled on a reader thread", pooled.readers.threads.contains(t));
+			}
+		} finally {
+			pooled.close();
+		}
+	}
+	
+	/**
+	 * Varies only the socket count of a pooled listener and verifies each agent's datagrams arrive on the socket {@link UDPSender} selects for it
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testSocketCount() throws Exception {
+		int basePort = freePort(4);
+		for(int sockets: new int[]{1, 4}) {
+			TestUDPListener listener = new TestUDPListener(basePort, sockets, true);
+			try {
+				Map<Integer, Integer> expected = send(listener, sockets);
+				for(Map.Entry<Integer, Integer> entry: expected.entrySet()) {
+					Assert.assertEquals("Ports for agent " + entry.getKey(), Collections.singleton(entry.getValue()), listener.sink.agentPorts.get(entry.getKey()));
+				}
+				Set<Integer> used = new HashSet<Integer>(expected.values());
+				if(sockets>1) {
+					Assert.assertTrue("Agents did not spread across sockets " + used, used.size() > 1);
+				} else {
+					Assert.assertEquals("Single socket ports", Collections.singleton(basePort), used);
+				}
+			} finally {
+				listener.close();
+			}
+		}
+	}
+	
+	/**
+	 * Verifies the agent socket selection is stable and spreads agents across sockets
+	 */
+	@Test
+	public void testSocketIndexSpread() {
+		int[] counts = new int[4];
+		for(int i = 0; i < 1000; i++) {
+			String key = "host" + i + ":agent";
+			int index = UDPSender.socketIndex(key, 4);
+			Assert.assertEquals("Unstable socket index", index, UDPSender.socketIndex(key, 4));
+			counts[index]++;
+		}
+		for(int c: counts) {
+			Assert.assertTrue("Uneven socket spread " + Arrays.toString(counts), c > 150);
+		}
+		Assert.assertEquals("Single socket index", 0, UDPSender.socketIndex("anything", 1));
+	}
+	
+	/**
+	 * Finds a base port with the passed number of free consecutive UDP ports
+	 * @param count The number of consecutive ports
+	 * @return the base port
+	 * @throws Exception thrown on any error
+	 */
+	static int freePort(int count) throws Exception {
+		for(int attempt = 0; attempt < 50; attempt++) {
+			DatagramSocket probe = new DatagramSocket(0);
+			int base = probe.getLocalPort();
+			probe.close();
+			if(base + count > 65535) continue;
+			List<DatagramSocket> sockets = new ArrayList<DatagramSocket>();
+			try {
+				for(int i = 0; i < count; i++) {
+					sockets.add(new DatagramSocket(base + i));
+				}
+				return base;
+			} catch (Exception ex) {
+				/* Retry */
+			} finally {
+				for(DatagramSocket s: sockets) s.close();
+			}
+		}
+		throw new Exception("No free port range");
+	}
+}
@@ -0,0 +1,215 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.org.helios.apmrouter.server.services.mtxml;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.helios.apmrouter.server.services.mtxml.SanStatsParserTracer;
+import org.helios.apmrouter.server.services.mtxml.SanStatsParsingContext;
+import org.helios.apmrouter.server.services.mtxml.SanStatsStreamingParser;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * <p>Title: SanStatsStreamingParserTestCase</p>
+ * <p>Description: Compares the output, elapsed time and allocations of the streaming san stats parser against the per-vlun map parser</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.org.helios.apmrouter.server.services.mtxml.SanStatsStreamingParserTestCase</code></p>
+ */
+public class SanStatsStreamingParserTestCase {
+	/** The granularity format */
+	static final String GFORMAT = "resource=3par/sysname=%s/vvname=%s/hostname=%s/portnode=%s";
+	/** The number of vluns in the generated document */
+	static final int VLUNS = 20000;
+	/** The generated document */
+	static byte[] DOCUMENT;
+	/** The reference context the generated vluns were added to in document order */
+	static SanStatsParsingContext REFERENCE;
+	/** The thread pool for parallel section scans */
+	static ExecutorService threadPool;
+	
+	/**
+	 * Generates the test document and the reference results
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		Random r = new Random(1234);
+		REFERENCE = new SanStatsParsingContext(GFORMAT);
+		StringBuilder b = new StringBuilder(VLUNS * 600);
+		b.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<sample>\n  <system_info>\n");
+		b.append("    <serial_number>1302666</serial_number>\n    <sys_name>test-3par-01</sys_name>\n    <cpu_mhz>2327</cpu_mhz>\n");
+		b.append("    <ip_name>test-3par-01</ip_name>\n    <os_rev>3.1.2</os_rev>\n    <system_model>InServ F400</system_model>\n    <ch_size_mb>256</ch_size_mb>\n");
+		b.append("  </system_info>\n  <perf_info>\n    <all_statvlun>\n");
+		Map<String, String> sysInfo = new HashMap<String, String>();
+		sysInfo.put("sys_name", "test-3par-01");
+		sysInfo.put("ch_size_mb", "256");
+		sysInfo.put("cpu_mhz", "2327");
+		REFERENCE.setSysInfo(sysInfo);
+		for(int i = 0; i < VLUNS; i++) {
+			Map<String, String> vlun = new HashMap<String, String>();
+			vlun.put(SanStatsParsingContext.VVNAME, "vv_" + r.nextInt(200));
+			vlun.put(SanStatsParsingContext.VVHOSTNAME, "host-" + r.nextInt(40));
+			vlun.put(SanStatsParsingContext.PORTNODE, "" + r.nextInt(4));
+			vlun.put(SanStatsParsingContext.PORTSLOT, "" + r.nextInt(3));
+			vlun.put(SanStatsParsingContext.PORTPORT, "" + r.nextInt(2));
+			vlun.put(SanStatsParsingContext.NOW, "" + (1298892751626L + i));
+			boolean idle = r.nextInt(10)==0;
+			for(String tag: new String[]{SanStatsParsingContext.QUEUE_LENGTH, SanStatsParsingContext.BUSY_TIME, 
+					SanStatsParsingContext.READ_COUNT, SanStatsParsingContext.READ_BYTES, SanStatsParsingContext.READ_ERRORS, SanStatsParsingContext.READ_DROPS, SanStatsParsingContext.READ_TICKS,
+					SanStatsParsingContext.WRITE_COUNT, SanStatsParsingContext.WRITE_BYTES, SanStatsParsingContext.WRITE_ERRORS, SanStatsParsingContext.WRITE_DROPS, SanStatsParsingContext.WRITE_TICKS}) {
+				vlun.put(tag, idle ? "0" : "" + r.nextInt(Integer.MAX_VALUE));
+			}
+			b.append("      <statvlun>\n");
+			for(String tag: new String[]{SanStatsParsingContext.VVNAME, SanStatsParsingContext.VVHOSTNAME, SanStatsParsingContext.PORTNODE, SanStatsParsingContext.PORTSLOT, SanStatsParsingContext.PORTPORT,
+					SanStatsParsingContext.NOW, SanStatsParsingContext.QUEUE_LENGTH, SanStatsParsingContext.BUSY_TIME, 
+					SanStatsParsingContext.READ_COUNT, SanStatsParsingContext.READ_BYTES, SanStatsParsingContext.READ_ERRORS, SanStatsParsingContext.READ_DROPS, SanStatsParsingContext.READ_TICKS,
+					SanStatsParsingContext.WRITE_COUNT, SanStatsParsingContext.WRITE_BYTES, SanStatsParsingContext.WRITE_ERRORS, SanStatsParsingContext.WRITE_DROPS, SanStatsParsingContext.WRITE_TICKS}) {
+				b.append("        <").append(tag).append(">").append(vlun.get(tag)).append("</").append(tag).append(">\n");
+			}
+			b.append("      </statvlun>\n");
+			REFERENCE.addVLun(vlun);
+		}
+		b.append("    </all_statvlun>\n  </perf_info>\n</sample>\n");
+		DOCUMENT = b.toString().getBytes();
+		threadPool = Executors.newFixedThreadPool(4);
+		log("Generated document of [" + DOCUMENT.length + "] bytes with [" + VLUNS + "] vluns across [" + REFERENCE.getCalcedTotals().size() + "] nodes");
+	}
+	
+	/**
+	 * Stops the thread pool
+	 */
+	@AfterClass
+	public static void tearDownAfterClass() {
+		threadPool.shutdownNow();
+	}
+	
+	protected static void log(Object obj) {
+		System.out.println(obj);
+	}
+	
+	/**
+	 * Verifies that the streaming parser produces identical output to the map parser, sequentially and in parallel, across repeated intervals
+	 */
+	@Test
+	public void testIdenticalOutput() {
+		final Map<String, Map<String, Long>> expected = REFERENCE.getCalcedTotals();
+		SanStatsStreamingParser parser = new SanStatsStreamingParser(GFORMAT);
+		parser.setMinSectionBytes(16 * 1024);
+		Assert.assertEquals("Sequential output", expected, parser.parse(ChannelBuffers.wrappedBuffer(DOCUMENT), null));
+		for(int i = 0; i < 3; i++) {
+			Assert.assertEquals("Parallel output, interval #" + i, expected, parser.parse(ChannelBuffers.wrappedBuffer(DOCUMENT), threadPool));
+		}
+		Assert.assertEquals("Vluns Parsed", VLUNS * 4, parser.getVlunsParsed());
+		Assert.assertEquals("Malformed Vluns", 0, parser.getMalformedVluns());
+	}
+	
+	/**
+	 * Verifies that incomplete vluns are skipped and counted
+	 */
+	@Test
+	public void testMalformedVluns() {
+		String doc = new String(DOCUMENT);
+		int first = doc.indexOf("<qlen>");
+		doc = doc.substring(0, first) + doc.substring(doc.indexOf("</qlen>", first) + "</qlen>".length());
+		SanStatsStreamingParser parser = new SanStatsStreamingParser(GFORMAT);
+		parser.parse(ChannelBuffers.wrappedBuffer(doc.getBytes()), null);
+		Assert.assertEquals("Malformed Vluns", 1, parser.getMalformedVluns());
+		Assert.assertEquals("Vluns Parsed", VLUNS - 1, parser.getVlunsParsed());
+	}
+	
+	/**
+	 * Compares the elapsed time and calling thread allocations of the streaming parser with the map parser
+	 */
+	@Test
+	public void testParseCost() {
+		final com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		final long tid = Thread.currentThread().getId();
+		LegacyParser legacy = new LegacyParser();
+		SanStatsStreamingParser parser = new SanStatsStreamingParser(GFORMAT);
+		// warm up
+		for(int i = 0; i < 3; i++) {
+			legacy.parse(ChannelBuffers.wrappedBuffer(DOCUMENT));
+			parser.parse(ChannelBuffers.wrappedBuffer(DOCUMENT), null);
+		}
+		long legacyAlloc = tmx.getThreadAllocatedBytes(tid);
+		long start = System.nanoTime();
+		Assert.assertEquals("Legacy output", REFERENCE.getCalcedTotals(), legacy.parse(ChannelBuffers.wrappedBuffer(DOCUMENT)));
+		long legacyElapsed = System.nanoTime() - start;
+		legacyAlloc = tmx.getThreadAllocatedBytes(tid) - legacyAlloc;
+		
+		long streamingAlloc = tmx.getThreadAllocatedBytes(tid);
+		start = System.nanoTime();
+		Map<String, Map<String, Long>> results = parser.parse(ChannelBuffers.wrappedBuffer(DOCUMENT), null);
+		long streamingElapsed = System.nanoTime() - start;
+		streamingAlloc = tmx.getThreadAllocatedBytes(tid) - streamingAlloc;
+		Assert.assertEquals("Streaming output", REFERENCE.getCalcedTotals(), results);
+		
+		start = System.nanoTime();
+		parser.parse(ChannelBuffers.wrappedBuffer(DOCUMENT), threadPool);
+		long parallelElapsed = System.nanoTime() - start;
+		log("Map Parser: " + (legacyElapsed/1000) + " us, " + legacyAlloc + " bytes allocated");
+		log("Streaming Parser: " + (streamingElapsed/1000) + " us, " + streamingAlloc + " bytes allocated");
+		log("Parallel Streaming Parser: " + (parallelElapsed/1000) + " us");
+		Assert.assertTrue("Streaming allocations [" + streamingAlloc + "] not less than map parser allocations [" + legacyAlloc + "]", streamingAlloc * 5 < legacyAlloc);
+	}
+	
+	/**
+	 * <p>Title: LegacyParser</p>
+	 * <p>Description: Runs the per-vlun map parser sequentially in the calling thread</p> 
+	 */
+	static class LegacyParser extends SanStatsParserTracer {
+		/**
+		 * Creates a new LegacyParser
+		 */
+		LegacyParser() {
+			super(GFORMAT);
+		}
+		
+		/**
+		 * Parses the passed document
+		 * @param b The buffer containing the document
+		 * @return the calculated values
+		 */
+		Map<String, Map<String, Long>> parse(ChannelBuffer b) {
+			SanStatsParsingContext ctx = new SanStatsParsingContext(GFORMAT);
+			ctx.setSysInfo(getSystemInfo(b));
+			ChannelBuffer vlun = null;
+			while((vlun = nextVlun(b))!=null) {
+				ctx.addVLun(getVlunInfo(vlun));
+			}
+			return ctx.getCalcedTotals();
+		}
+	}
+}